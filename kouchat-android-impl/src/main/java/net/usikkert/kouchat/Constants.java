@@ -90,12 +90,52 @@ public interface Constants {
      */
     int NETWORK_FILE_TRANSFER_PORT = 40756;
 
+    /**
+     * The multicast udp port used for sending and receiving
+     * the chunks of files sent to everyone in the chat.
+     */
+    int NETWORK_MULTICAST_FILE_PORT = 40856;
+
     /**
      * The size of the udp packets sent from normal and
      * private chats.
      */
     int NETWORK_PACKET_SIZE = 512;
 
+    /**
+     * The default number of milliseconds to wait for more messages
+     * to send together in the same packet, when message batching is enabled.
+     */
+    int NETWORK_BATCH_WINDOW = 20;
+
+    /**
+     * The default max number of file transfers that can be
+     * active at the same time in each direction. The rest are queued.
+     */
+    int NETWORK_MAX_TRANSFERS = 4;
+
+    /**
+     * The default max number of file transfers that can be
+     * active at the same time in each direction with each user.
+     */
+    int NETWORK_MAX_TRANSFERS_PER_USER = 2;
+
+    /**
+     * The max size of a file to receive inline in a private message, in bytes.
+     */
+    int NETWORK_INLINE_FILE_SIZE = 8192;
+
+    /**
+     * The default suspicion level (phi) where a user that has stopped
+     * sending idle messages is considered gone.
+     */
+    int NETWORK_FAILURE_THRESHOLD = 8;
+
+    /**
+     * The default max number of bytes per second to send a file to everyone with multicast.
+     */
+    int NETWORK_MULTICAST_FILE_RATE = 4 * 1024 * 1024;
+
     /**
      * The multicast address used for sending and receiving
      * packets for the main chat.
@@ -108,6 +148,13 @@ public interface Constants {
      */
     String NETWORK_TEMP_IP = "224.168.5.250";
 
+    /**
+     * The start of the multicast addresses used for sending and receiving
+     * the chunks of files sent to everyone in the chat. Each file transfer
+     * uses one of the addresses from .1 to .254.
+     */
+    String NETWORK_MULTICAST_FILE_IP_PREFIX = "224.168.6.";
+
     /**
      * The character set used for messages.
      */
@@ -125,6 +172,12 @@ public interface Constants {
      */
     int MESSAGE_MAX_BYTES = 450;
 
+    /**
+     * Max number of bytes allowed in a message when all the
+     * receivers can put together messages split into fragments.
+     */
+    int MESSAGE_MAX_FRAGMENTED_BYTES = 8000;
+
     /**
      * The folder where the application can save files.
      */
@@ -166,4 +219,89 @@ public interface Constants {
      * Property to access setting for <code>log location</code>.
      */
     String SETTINGS_LOG_LOCATION = "settings.logLocation";
+
+    /**
+     * Property to access setting for <code>nio network</code>.
+     */
+    String SETTINGS_NIO_NETWORK = "settings.nioNetwork";
+
+    /**
+     * Property to access setting for <code>receive queue size</code>.
+     */
+    String SETTINGS_RECEIVE_QUEUE_SIZE = "settings.receiveQueueSize";
+
+    /**
+     * Property to access setting for <code>receive queue overflow</code>.
+     */
+    String SETTINGS_RECEIVE_QUEUE_OVERFLOW = "settings.receiveQueueOverflow";
+
+    /**
+     * Property to access setting for <code>network event loop</code>.
+     */
+    String SETTINGS_NETWORK_EVENT_LOOP = "settings.networkEventLoop";
+
+    /**
+     * Property to access setting for <code>message batching</code>.
+     */
+    String SETTINGS_MESSAGE_BATCHING = "settings.messageBatching";
+
+    /**
+     * Property to access setting for <code>message batch window</code>.
+     */
+    String SETTINGS_MESSAGE_BATCH_WINDOW = "settings.messageBatchWindow";
+
+    /**
+     * Property to access setting for <code>flood protection</code>.
+     */
+    String SETTINGS_FLOOD_PROTECTION = "settings.floodProtection";
+
+    /**
+     * Property to access setting for <code>no channel transfers</code>.
+     */
+    String SETTINGS_NO_CHANNEL_TRANSFERS = "settings.noChannelTransfers";
+
+    /**
+     * Property to access setting for <code>file transfer streams</code>.
+     */
+    String SETTINGS_FILE_TRANSFER_STREAMS = "settings.fileTransferStreams";
+
+    /**
+     * Property to access setting for <code>max transfers</code>.
+     */
+    String SETTINGS_MAX_TRANSFERS = "settings.maxTransfers";
+
+    /**
+     * Property to access setting for <code>max transfers per user</code>.
+     */
+    String SETTINGS_MAX_TRANSFERS_PER_USER = "settings.maxTransfersPerUser";
+
+    /**
+     * Property to access setting for <code>max upload rate</code>.
+     */
+    String SETTINGS_MAX_UPLOAD_RATE = "settings.maxUploadRate";
+
+    /**
+     * Property to access setting for <code>max download rate</code>.
+     */
+    String SETTINGS_MAX_DOWNLOAD_RATE = "settings.maxDownloadRate";
+
+    /**
+     * Property to access setting for <code>shared file transfer port</code>.
+     */
+    String SETTINGS_SHARED_FILE_TRANSFER_PORT = "settings.sharedFileTransferPort";
+
+    /**
+     * Property to access setting for <code>inline file size</code>.
+     */
+    String SETTINGS_INLINE_FILE_SIZE = "settings.inlineFileSize";
+
+    /**
+     * Property to access setting for <code>failure threshold</code>.
+     */
+    String SETTINGS_FAILURE_THRESHOLD = "settings.failureThreshold";
+
+    /**
+     * Property to access setting for <code>multicast file rate</code>.
+     */
+    String SETTINGS_MULTICAST_FILE_RATE = "settings.multicastFileRate";
 }
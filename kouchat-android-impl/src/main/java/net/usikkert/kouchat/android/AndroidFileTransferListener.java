@@ -44,6 +44,11 @@ public class AndroidFileTransferListener implements FileTransferListener {
 
     }
 
+    @Override
+    public void statusQueued() {
+
+    }
+
     @Override
     public void statusConnecting() {
 
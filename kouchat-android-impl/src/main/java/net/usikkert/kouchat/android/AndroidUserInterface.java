@@ -28,6 +28,7 @@ import java.util.concurrent.ExecutionException;
 import net.usikkert.kouchat.Constants;
 import net.usikkert.kouchat.android.controller.MainChatController;
 import net.usikkert.kouchat.android.notification.NotificationService;
+import net.usikkert.kouchat.event.MessageSentListener;
 import net.usikkert.kouchat.event.NetworkConnectionListener;
 import net.usikkert.kouchat.misc.ChatLogger;
 import net.usikkert.kouchat.misc.CommandException;
@@ -38,6 +39,7 @@ import net.usikkert.kouchat.misc.Settings;
 import net.usikkert.kouchat.misc.Topic;
 import net.usikkert.kouchat.misc.User;
 import net.usikkert.kouchat.misc.UserList;
+import net.usikkert.kouchat.misc.UserListBatcher;
 import net.usikkert.kouchat.net.FileReceiver;
 import net.usikkert.kouchat.net.FileSender;
 import net.usikkert.kouchat.ui.ChatWindow;
@@ -247,46 +249,51 @@ public class AndroidUserInterface implements UserInterface, ChatWindow {
     public void sendMessage(final String message) {
         Validate.notEmpty(message, "Message can not be empty");
 
-        final AsyncTask<Void, Void, Void> sendMessageTask = new AsyncTask<Void, Void, Void>() {
-            @Override
-            public Void doInBackground(final Void... voids) {
-                try {
-                    controller.sendChatMessage(message);
-                    msgController.showOwnMessage(message);
-                }
-
-                catch (final CommandException e) {
-                    msgController.showSystemMessage(e.getMessage());
+        // Queued without waiting, so the message is shown by the listener when the send queue is done with it
+        try {
+            controller.sendChatMessage(message, new MessageSentListener() {
+                @Override
+                public void messageSent(final boolean sent) {
+                    if (sent) {
+                        msgController.showOwnMessage(message);
+                    }
+
+                    else {
+                        msgController.showSystemMessage("Failed to send message: " + message);
+                    }
                 }
+            });
+        }
 
-                return null;
-            }
-        };
-
-        sendMessageTask.execute((Void) null);
+        catch (final CommandException e) {
+            msgController.showSystemMessage(e.getMessage());
+        }
     }
 
     public void sendPrivateMessage(final String privateMessage, final User user) {
         Validate.notEmpty(privateMessage, "Private message can not be empty");
         Validate.notNull(user, "User can not be null");
 
-        final AsyncTask<Void, Void, Void> sendMessageTask = new AsyncTask<Void, Void, Void>() {
-            @Override
-            public Void doInBackground(final Void... voids) {
-                try {
-                    controller.sendPrivateMessage(privateMessage, user);
-                    msgController.showPrivateOwnMessage(user, privateMessage);
-                }
-
-                catch (CommandException e) {
-                    msgController.showPrivateSystemMessage(user, e.getMessage());
+        // Queued without waiting, so the message is shown by the listener when the send queue is done with it
+        try {
+            controller.sendPrivateMessage(privateMessage, user, new MessageSentListener() {
+                @Override
+                public void messageSent(final boolean sent) {
+                    if (sent) {
+                        msgController.showPrivateOwnMessage(user, privateMessage);
+                    }
+
+                    else {
+                        msgController.showPrivateSystemMessage(user, "Failed to send private message to " +
+                                user.getNick() + ": " + privateMessage);
+                    }
                 }
+            });
+        }
 
-                return null;
-            }
-        };
-
-        sendMessageTask.execute((Void) null);
+        catch (final CommandException e) {
+            msgController.showPrivateSystemMessage(user, e.getMessage());
+        }
     }
 
     public void setNickNameFromSettings() {
@@ -421,6 +428,15 @@ public class AndroidUserInterface implements UserInterface, ChatWindow {
         return userList;
     }
 
+    /**
+     * Gets the backend batcher of changes to the user list.
+     *
+     * @return The user list batcher.
+     */
+    public UserListBatcher getUserListBatcher() {
+        return controller.getUserListBatcher();
+    }
+
     /**
      * Gets the application user.
      *
@@ -22,13 +22,17 @@
 
 package net.usikkert.kouchat.android.controller;
 
+import java.util.List;
+
 import net.usikkert.kouchat.android.AndroidUserInterface;
 import net.usikkert.kouchat.android.R;
 import net.usikkert.kouchat.android.service.ChatService;
 import net.usikkert.kouchat.android.service.ChatServiceBinder;
-import net.usikkert.kouchat.event.UserListListener;
+import net.usikkert.kouchat.event.UserListBatchListener;
+import net.usikkert.kouchat.event.UserListChange;
 import net.usikkert.kouchat.misc.User;
 import net.usikkert.kouchat.misc.UserList;
+import net.usikkert.kouchat.misc.UserListBatcher;
 
 import com.actionbarsherlock.app.SherlockActivity;
 import com.actionbarsherlock.view.Menu;
@@ -75,7 +79,7 @@ import android.widget.TextView;
  *
  * @author Christian Ihle
  */
-public class MainChatController extends SherlockActivity implements UserListListener {
+public class MainChatController extends SherlockActivity implements UserListBatchListener {
 
     private Intent chatServiceIntent;
     private ServiceConnection serviceConnection;
@@ -87,6 +91,7 @@ public class MainChatController extends SherlockActivity implements UserListList
 
     private AndroidUserInterface androidUserInterface;
     private UserList userList;
+    private UserListBatcher userListBatcher;
 
     /** If the main chat is currently visible. */
     private boolean visible;
@@ -126,7 +131,8 @@ public class MainChatController extends SherlockActivity implements UserListList
                 androidUserInterface.showTopic();
 
                 userList = androidUserInterface.getUserList();
-                userList.addUserListListener(MainChatController.this);
+                userListBatcher = androidUserInterface.getUserListBatcher();
+                userListBatcher.addUserListBatchListener(MainChatController.this);
                 userListAdapter.addUsers(userList);
             }
 
@@ -217,13 +223,14 @@ public class MainChatController extends SherlockActivity implements UserListList
     @Override
     protected void onDestroy() {
         if (androidUserInterface != null) {
-            userList.removeUserListListener(this);
+            userListBatcher.removeUserListBatchListener(this);
             androidUserInterface.unregisterMainChatController();
             unbindService(serviceConnection);
         }
 
         androidUserInterface = null;
         userList = null;
+        userListBatcher = null;
 
         super.onDestroy();
     }
@@ -340,28 +347,10 @@ public class MainChatController extends SherlockActivity implements UserListList
     }
 
     @Override
-    public void userAdded(final int pos, final User user) {
-        runOnUiThread(new Runnable() {
-            public void run() {
-                userListAdapter.add(user);
-            }
-        });
-    }
-
-    @Override
-    public void userRemoved(final int pos, final User user) {
-        runOnUiThread(new Runnable() {
-            public void run() {
-                userListAdapter.remove(user);
-            }
-        });
-    }
-
-    @Override
-    public void userChanged(final int pos, final User user) {
+    public void usersChanged(final List<UserListChange> changes) {
         runOnUiThread(new Runnable() {
             public void run() {
-                userListAdapter.sort();
+                userListAdapter.applyChanges(changes);
             }
         });
     }
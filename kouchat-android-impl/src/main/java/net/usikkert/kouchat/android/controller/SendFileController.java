@@ -23,14 +23,17 @@
 package net.usikkert.kouchat.android.controller;
 
 import java.io.File;
+import java.util.List;
 
 import net.usikkert.kouchat.android.AndroidUserInterface;
 import net.usikkert.kouchat.android.R;
 import net.usikkert.kouchat.android.service.ChatService;
 import net.usikkert.kouchat.android.service.ChatServiceBinder;
-import net.usikkert.kouchat.event.UserListListener;
+import net.usikkert.kouchat.event.UserListBatchListener;
+import net.usikkert.kouchat.event.UserListChange;
 import net.usikkert.kouchat.misc.User;
 import net.usikkert.kouchat.misc.UserList;
+import net.usikkert.kouchat.misc.UserListBatcher;
 import net.usikkert.kouchat.util.Tools;
 
 import android.app.Activity;
@@ -56,7 +59,7 @@ import android.widget.TextView;
  *
  * @author Christian Ihle
  */
-public class SendFileController extends Activity implements UserListListener {
+public class SendFileController extends Activity implements UserListBatchListener {
 
     private ServiceConnection serviceConnection;
     private UserListAdapter userListAdapter;
@@ -66,6 +69,7 @@ public class SendFileController extends Activity implements UserListListener {
 
     private File fileToSend;
     private UserList userList;
+    private UserListBatcher userListBatcher;
 
     public void onCreate(final Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -118,11 +122,12 @@ public class SendFileController extends Activity implements UserListListener {
     @Override
     protected void onDestroy() {
         if (userList != null) {
-            userList.removeUserListListener(this);
+            userListBatcher.removeUserListBatchListener(this);
             unbindService(serviceConnection);
         }
 
         userList = null;
+        userListBatcher = null;
         androidUserInterface = null;
 
         super.onDestroy();
@@ -150,7 +155,8 @@ public class SendFileController extends Activity implements UserListListener {
                 userListView.setAdapter(userListAdapter);
 
                 userList = androidUserInterface.getUserList();
-                userList.addUserListListener(SendFileController.this);
+                userListBatcher = androidUserInterface.getUserListBatcher();
+                userListBatcher.addUserListBatchListener(SendFileController.this);
                 userListAdapter.addUsers(userList);
                 selectTextForLine2();
 
@@ -185,29 +191,10 @@ public class SendFileController extends Activity implements UserListListener {
     }
 
     @Override
-    public void userAdded(final int pos, final User user) {
+    public void usersChanged(final List<UserListChange> changes) {
         runOnUiThread(new Runnable() {
             public void run() {
-                userListAdapter.add(user);
-                selectTextForLine2();
-            }
-        });
-    }
-
-    @Override
-    public void userChanged(final int pos, final User user) {
-        runOnUiThread(new Runnable() {
-            public void run() {
-                userListAdapter.sort();
-            }
-        });
-    }
-
-    @Override
-    public void userRemoved(final int pos, final User user) {
-        runOnUiThread(new Runnable() {
-            public void run() {
-                userListAdapter.remove(user);
+                userListAdapter.applyChanges(changes);
                 selectTextForLine2();
             }
         });
@@ -22,7 +22,13 @@
 
 package net.usikkert.kouchat.android.controller;
 
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
 import net.usikkert.kouchat.android.R;
+import net.usikkert.kouchat.event.UserListChange;
 import net.usikkert.kouchat.misc.User;
 import net.usikkert.kouchat.misc.UserList;
 import net.usikkert.kouchat.util.Validate;
@@ -78,4 +84,52 @@ public class UserListAdapter extends ArrayAdapter<User> {
              add(userList.get(i));
         }
     }
+
+    /**
+     * Adds and removes the users in a batch of changes to the user list, and then sorts the list once.
+     * The list view is only notified after all the changes are done.
+     *
+     * <p>Users that are already in the list are not added again. The batch can contain changes
+     * from before the list was filled with {@link #addUsers(UserList)}.</p>
+     *
+     * <p>The changes are applied to a set of the users, and the list is filled again from the set,
+     * so a large batch doesn't search the list once for each change.</p>
+     *
+     * @param changes The changes to the user list.
+     */
+    public void applyChanges(final List<UserListChange> changes) {
+        Validate.notNull(changes, "Changes can not be null");
+
+        final Set<User> users = Collections.newSetFromMap(new IdentityHashMap<User, Boolean>());
+
+        for (int i = 0; i < getCount(); i++) {
+            users.add(getItem(i));
+        }
+
+        for (final UserListChange change : changes) {
+            switch (change.getType()) {
+                case ADDED:
+                    users.add(change.getUser());
+                    break;
+
+                case REMOVED:
+                    users.remove(change.getUser());
+                    break;
+
+                default:
+                    // Changed users are handled by the sorting
+                    break;
+            }
+        }
+
+        setNotifyOnChange(false);
+        clear();
+
+        for (final User user : users) {
+            super.add(user);
+        }
+
+        sort(comparator);
+        notifyDataSetChanged();
+    }
 }
@@ -22,62 +22,49 @@
 
 package net.usikkert.kouchat.autocomplete;
 
-import net.usikkert.kouchat.event.UserListListener;
+import java.util.List;
+
+import net.usikkert.kouchat.event.UserListBatchListener;
+import net.usikkert.kouchat.event.UserListChange;
 import net.usikkert.kouchat.misc.User;
 import net.usikkert.kouchat.misc.UserList;
+import net.usikkert.kouchat.misc.UserListBatcher;
 import net.usikkert.kouchat.util.Tools;
 
 /**
  * This autocompleter has a list of all the users currently online.
  *
+ * <p>The list is rebuilt once for each batch of changes to the user list.</p>
+ *
  * @author Christian Ihle
  */
-public class UserAutoCompleteList implements AutoCompleteList, UserListListener {
+public class UserAutoCompleteList implements AutoCompleteList, UserListBatchListener {
 
     /** The real user list. */
     private final UserList userList;
 
     /** A simple array with users, for use in auto completion. */
-    private String[] users;
+    private volatile String[] users;
 
     /**
-     * Constructor. Registers itself as a user list listener.
+     * Constructor. Registers itself as a listener of batches of changes to the user list.
      *
      * @param userList The list of online users.
+     * @param userListBatcher The batcher delivering the changes to the user list.
      */
-    public UserAutoCompleteList(final UserList userList) {
+    public UserAutoCompleteList(final UserList userList, final UserListBatcher userListBatcher) {
         this.userList = userList;
-        userList.addUserListListener(this);
-        updateWords();
-    }
-
-    /**
-     * Updates the list of users.
-     *
-     * {@inheritDoc}
-     */
-    @Override
-    public void userAdded(final int pos, final User user) {
+        userListBatcher.addUserListBatchListener(this);
         updateWords();
     }
 
     /**
-     * Updates the list of users.
+     * Updates the list of users, once for all the changes.
      *
      * {@inheritDoc}
      */
     @Override
-    public void userChanged(final int pos, final User user) {
-        updateWords();
-    }
-
-    /**
-     * Updates the list of users.
-     *
-     * {@inheritDoc}
-     */
-    @Override
-    public void userRemoved(final int pos, final User user) {
+    public void usersChanged(final List<UserListChange> changes) {
         updateWords();
     }
 
@@ -86,11 +73,14 @@ public class UserAutoCompleteList implements AutoCompleteList, UserListListener
      * list of words.
      */
     private void updateWords() {
-        users = new String[userList.size()];
+        final List<User> currentUsers = userList.getUsers();
+        final String[] nickNames = new String[currentUsers.size()];
 
-        for (int i = 0; i < userList.size(); i++) {
-            users[i] = userList.get(i).getNick();
+        for (int i = 0; i < nickNames.length; i++) {
+            nickNames[i] = currentUsers.get(i).getNick();
         }
+
+        users = nickNames;
     }
 
     /**
@@ -0,0 +1,45 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.event;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link ReceiverListener} that can handle the raw bytes of a message
+ * directly, without having the bytes decoded into a string first.
+ *
+ * <p>Receivers that support this will hand over a reused buffer, so the
+ * content of the buffer is only valid for the duration of the call.</p>
+ *
+ * @author Christian Ihle
+ */
+public interface ByteReceiverListener extends ReceiverListener {
+
+    /**
+     * Called when a new message arrives over the network.
+     *
+     * @param message The encoded message that arrived, between position and limit.
+     * @param ipAddress The ip address of the user that sent the message.
+     */
+    void messageArrived(ByteBuffer message, String ipAddress);
+}
@@ -36,6 +36,12 @@ public interface FileTransferListener {
      */
     void statusWaiting();
 
+    /**
+     * Called when the file transfer has to wait in the queue
+     * for other file transfers to finish first.
+     */
+    void statusQueued();
+
     /**
      * Called when the file transfer process is started, but before
      * connection has been established.
@@ -0,0 +1,41 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.event;
+
+/**
+ * Implement this interface and give it to the send queue with a message, to get notified
+ * when the message has been sent, without waiting for it.
+ *
+ * <p>The listener is notified by the thread that sent the message.</p>
+ *
+ * @author Christian Ihle
+ */
+public interface MessageSentListener {
+
+    /**
+     * The message is done sending.
+     *
+     * @param sent If the message was sent, or <code>false</code> if sending failed.
+     */
+    void messageSent(boolean sent);
+}
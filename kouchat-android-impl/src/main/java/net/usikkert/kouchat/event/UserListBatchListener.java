@@ -0,0 +1,44 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.event;
+
+import java.util.List;
+
+/**
+ * This interface can be used to be notified of changes to the user list
+ * in batches, instead of one at a time like with {@link UserListListener}.
+ *
+ * <p>Useful when many users come and go at the same time, like when the network comes up,
+ * so the ui can update itself once for all the changes.</p>
+ *
+ * @author Christian Ihle
+ */
+public interface UserListBatchListener {
+
+    /**
+     * One or more changes have been done to the user list.
+     *
+     * @param changes The changes, in the order they happened. Never empty.
+     */
+    void usersChanged(final List<UserListChange> changes);
+}
@@ -0,0 +1,108 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.event;
+
+import net.usikkert.kouchat.misc.User;
+import net.usikkert.kouchat.util.Validate;
+
+/**
+ * A single change to the user list, delivered together with other changes
+ * to a {@link UserListBatchListener}.
+ *
+ * @author Christian Ihle
+ */
+public class UserListChange {
+
+    /**
+     * The different kinds of changes to the user list.
+     */
+    public enum Type {
+
+        /** A user was added. See {@link UserListListener#userAdded(int, User)}. */
+        ADDED,
+
+        /** A user was changed. See {@link UserListListener#userChanged(int, User)}. */
+        CHANGED,
+
+        /** A user was removed. See {@link UserListListener#userRemoved(int, User)}. */
+        REMOVED
+    }
+
+    /** The kind of change. */
+    private final Type type;
+
+    /** The position of the user in the user list when the change happened. */
+    private final int pos;
+
+    /** The user that was changed. */
+    private final User user;
+
+    /**
+     * Constructor.
+     *
+     * @param type The kind of change.
+     * @param pos The position of the user in the user list when the change happened.
+     * @param user The user that was changed.
+     */
+    public UserListChange(final Type type, final int pos, final User user) {
+        Validate.notNull(type, "Type can not be null");
+        Validate.notNull(user, "User can not be null");
+
+        this.type = type;
+        this.pos = pos;
+        this.user = user;
+    }
+
+    /**
+     * Gets the kind of change.
+     *
+     * @return The kind of change.
+     */
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Gets the position of the user in the user list when the change happened.
+     * Later changes in the same batch may have moved the user since.
+     *
+     * @return The position of the user.
+     */
+    public int getPos() {
+        return pos;
+    }
+
+    /**
+     * Gets the user that was changed.
+     *
+     * @return The user.
+     */
+    public User getUser() {
+        return user;
+    }
+
+    @Override
+    public String toString() {
+        return type + "[" + pos + "]: " + user.getNick();
+    }
+}
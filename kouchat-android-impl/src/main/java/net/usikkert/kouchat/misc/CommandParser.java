@@ -31,6 +31,7 @@ import net.usikkert.kouchat.Constants;
 import net.usikkert.kouchat.net.FileReceiver;
 import net.usikkert.kouchat.net.FileSender;
 import net.usikkert.kouchat.net.FileTransfer;
+import net.usikkert.kouchat.net.MulticastFileSender;
 import net.usikkert.kouchat.net.TransferList;
 import net.usikkert.kouchat.ui.UserInterface;
 import net.usikkert.kouchat.util.Tools;
@@ -284,6 +285,38 @@ public class CommandParser {
         }
     }
 
+    /**
+     * Command: <em>/sendall &lt;file&gt;</em>.
+     * Send a file to everyone who wants it.
+     *
+     * @param args The file to send.
+     */
+    private void cmdSendAll(final String args) {
+        final String file = args.trim();
+
+        if (file.length() == 0) {
+            msgController.showSystemMessage("/sendall - missing argument <file>");
+        }
+
+        else {
+            final File sendFile = new File(file);
+
+            if (sendFile.exists() && sendFile.isFile()) {
+                try {
+                    sendFileToAll(sendFile);
+                }
+
+                catch (final CommandException e) {
+                    msgController.showSystemMessage(e.getMessage());
+                }
+            }
+
+            else {
+                msgController.showSystemMessage("/sendall - no such file '" + file + "'");
+            }
+        }
+    }
+
     /**
      * Command: <em>/receive &lt;nick&gt; &lt;id&gt;</em>.
      * Accept a file transfer request from a user and start the transfer.
@@ -333,7 +366,11 @@ public class CommandParser {
 
         final File file = fileReceiver.getFile();
 
-        if (file.exists()) {
+        if (file.exists() && fileReceiver.isResumable()) {
+            msgController.showSystemMessage("/receive - resuming the partial file '" + file.getName() + "'");
+        }
+
+        else if (file.exists()) {
             final File newFile = Tools.getFileWithIncrementedName(file);
             msgController.showSystemMessage("/receive - file '" + file.getName() + "' already exists - renaming to '" + newFile.getName() + "'");
             fileReceiver.setFile(newFile);
@@ -626,7 +663,7 @@ public class CommandParser {
         transferInfo.append(fileTransfer.getFile().getName());
         transferInfo.append(" [" + Tools.byteToString(fileTransfer.getFileSize()) + "]");
         transferInfo.append(" (" + fileTransfer.getPercent() + "%, ");
-        transferInfo.append(Tools.byteToString(fileTransfer.getSpeed()) + "/s)");
+        transferInfo.append(Tools.byteToString(fileTransfer.getSmoothedSpeed()) + "/s)");
         transferInfo.append(" " + direction + " ");
         transferInfo.append(fileTransfer.getUser().getNick());
     }
@@ -686,14 +723,73 @@ public class CommandParser {
     /**
      * Sends a file to a user.
      *
+     * <p>The file is only offered here. The file transfer waits for its turn with the scheduler
+     * when the user accepts, so offers that are not answered don't keep other file transfers waiting.</p>
+     *
      * @param user The user to send to.
      * @param file The file to send to the user.
      * @throws CommandException If there was a problem sending the file.
      */
     public void sendFile(final User user, final File file) throws CommandException {
-        controller.sendFile(user, file);
+        Validate.notNull(user, "User can not be null");
+        Validate.notNull(file, "File can not be null");
+
         final FileSender fileSend = tList.addFileSender(user, file);
+        offerFile(fileSend);
         ui.showTransfer(fileSend);
+    }
+
+    /**
+     * Offers a file to everyone in the chat, and sends it once from a multicast group
+     * to all the users who accept it.
+     *
+     * @param file The file to send.
+     * @throws CommandException If there was a problem offering the file.
+     */
+    public void sendFileToAll(final File file) throws CommandException {
+        Validate.notNull(file, "File can not be null");
+
+        final MulticastFileSender multicastSender = controller.sendGroupFile(file);
+        tList.addMulticastSender(multicastSender);
+
+        final String size = Tools.byteToString(file.length());
+        msgController.showSystemMessage("Trying to send the file " + file.getName() + " [" + size + "] to everyone");
+
+        new Thread("CommandParserMulticastFileSend") {
+            @Override
+            public void run() {
+                final int received = multicastSender.transfer();
+                tList.removeMulticastSender(multicastSender);
+
+                if (multicastSender.isCanceled()) {
+                    msgController.showSystemMessage("Stopped sending " + file.getName() + " to everyone");
+                }
+
+                else {
+                    msgController.showSystemMessage(file.getName() + " was received by " + received + " users");
+                }
+            }
+        } .start();
+    }
+
+    /**
+     * Asks the user to receive the file. Removes the file transfer if asking failed.
+     *
+     * @param fileSend The file transfer to ask about.
+     * @throws CommandException If there was a problem asking the user.
+     */
+    private void offerFile(final FileSender fileSend) throws CommandException {
+        final User user = fileSend.getUser();
+        final File file = fileSend.getFile();
+
+        try {
+            controller.sendFile(user, file);
+        }
+
+        catch (final CommandException e) {
+            tList.removeFileSender(fileSend);
+            throw e;
+        }
 
         final String size = Tools.byteToString(file.length());
         msgController.showSystemMessage("Trying to send the file " +
@@ -742,6 +838,7 @@ public class CommandParser {
                 "/receive <nick> <id> - accept a file transfer request from a user\n" +
                 "/reject <nick> <id> - reject a file transfer request from a user\n" +
                 "/send <nick> <file> - send a file to a user\n" +
+                "/sendall <file> - send a file to everyone who wants it\n" +
                 "/topic <optional new topic> - prints the current topic, or changes the topic\n" +
                 "/transfers - shows a list of all file transfers and their status\n" +
                 "/users - show the user list\n" +
@@ -784,6 +881,8 @@ public class CommandParser {
                 cmdWhois(args);
             } else if (command.equals("send")) {
                 cmdSend(args);
+            } else if (command.equals("sendall")) {
+                cmdSendAll(args);
             } else if (command.equals("receive")) {
                 cmdReceive(args);
             } else if (command.equals("reject")) {
@@ -33,8 +33,10 @@ import net.usikkert.kouchat.Constants;
 import net.usikkert.kouchat.autocomplete.AutoCompleter;
 import net.usikkert.kouchat.autocomplete.CommandAutoCompleteList;
 import net.usikkert.kouchat.autocomplete.UserAutoCompleteList;
+import net.usikkert.kouchat.event.MessageSentListener;
 import net.usikkert.kouchat.event.NetworkConnectionListener;
 import net.usikkert.kouchat.jmx.JMXBeanLoader;
+import net.usikkert.kouchat.net.Capability;
 import net.usikkert.kouchat.net.DefaultMessageResponder;
 import net.usikkert.kouchat.net.DefaultPrivateMessageResponder;
 import net.usikkert.kouchat.net.FileReceiver;
@@ -42,10 +44,15 @@ import net.usikkert.kouchat.net.FileSender;
 import net.usikkert.kouchat.net.MessageParser;
 import net.usikkert.kouchat.net.MessageResponder;
 import net.usikkert.kouchat.net.Messages;
+import net.usikkert.kouchat.net.MulticastFileSender;
+import net.usikkert.kouchat.net.MulticastOffer;
 import net.usikkert.kouchat.net.NetworkService;
 import net.usikkert.kouchat.net.PrivateMessageParser;
 import net.usikkert.kouchat.net.PrivateMessageResponder;
+import net.usikkert.kouchat.net.ServerException;
 import net.usikkert.kouchat.net.TransferList;
+import net.usikkert.kouchat.net.TransferOptions;
+import net.usikkert.kouchat.net.TransferScheduler;
 import net.usikkert.kouchat.ui.UserInterface;
 import net.usikkert.kouchat.util.Tools;
 import net.usikkert.kouchat.util.Validate;
@@ -68,10 +75,12 @@ public class Controller implements NetworkConnectionListener {
 
     private final ChatState chatState;
     private final UserListController userListController;
+    private final UserListBatcher userListBatcher;
     private final NetworkService networkService;
     private final Messages messages;
     private final IdleThread idleThread;
     private final TransferList tList;
+    private final TransferScheduler scheduler;
     private final WaitingList wList;
     private final User me;
     private final UserInterface ui;
@@ -102,23 +111,29 @@ public class Controller implements NetworkConnectionListener {
 
         me = settings.getMe();
         userListController = new UserListController(settings);
+        userListBatcher = new UserListBatcher();
+        userListController.getUserList().addUserListListener(userListBatcher);
         chatState = new ChatState();
-        tList = new TransferList();
+        networkService = new NetworkService(settings);
+        scheduler = new TransferScheduler(settings.getMaxTransfers(),
+                settings.getMaxTransfersPerUser(), settings.getMaxUploadRate(), settings.getMaxDownloadRate());
+        tList = new TransferList(networkService.getEventLoop(), !settings.isNoChannelTransfers(),
+                                 settings.getFileTransferStreams(), scheduler, networkService.getFileTransferServer());
         wList = new WaitingList();
         idleThread = new IdleThread(this, ui, settings);
-        networkService = new NetworkService(settings);
         final MessageResponder msgResponder = new DefaultMessageResponder(this, ui, settings);
         final PrivateMessageResponder privmsgResponder = new DefaultPrivateMessageResponder(this, ui, settings);
         final MessageParser msgParser = new MessageParser(msgResponder, settings);
         networkService.registerMessageReceiverListener(msgParser);
         final PrivateMessageParser privmsgParser = new PrivateMessageParser(privmsgResponder, settings);
         networkService.registerUDPReceiverListener(privmsgParser);
-        messages = new Messages(networkService, settings);
+        messages = new Messages(networkService, settings, userListController.getUserList());
         networkService.registerNetworkConnectionListener(this);
         msgController = ui.getMessageController();
 
         new DayTimer(ui);
         idleThread.start();
+        userListBatcher.start();
 
         msgController.showSystemMessage("Welcome to " + Constants.APP_NAME + " v" + Constants.APP_VERSION + "!");
         final String date = Tools.dateToString(null, "EEEE, d MMMM yyyy");
@@ -143,6 +158,16 @@ public class Controller implements NetworkConnectionListener {
         return userListController.getUserList();
     }
 
+    /**
+     * Gets the batcher delivering the changes to the user list in batches,
+     * for user interfaces that want to update once for a burst of changes.
+     *
+     * @return The user list batcher.
+     */
+    public UserListBatcher getUserListBatcher() {
+        return userListBatcher;
+    }
+
     /**
      * Returns if the application user wrote the last time
      * {@link #changeWriting(int, boolean)} was called.
@@ -349,10 +374,10 @@ public class Controller implements NetworkConnectionListener {
      */
     private void removeAllUsers() {
         final UserList userList = getUserList();
+        cancelMulticastSenders();
+        tList.getConnectionPool().closeAll();
 
-        for (int i = 0; i < userList.size(); i++) {
-            final User user = userList.get(i);
-
+        for (final User user : userList.getUsers()) {
             if (!user.isMe()) {
                 user.setOnline(false);
                 cancelFileTransfers(user);
@@ -362,12 +387,20 @@ public class Controller implements NetworkConnectionListener {
                     msgController.showPrivateSystemMessage(user, "You logged off");
                     user.getPrivchat().setLoggedOff();
                 }
-
-                i--;
             }
         }
     }
 
+    /**
+     * Cancels all the files being sent to everyone.
+     */
+    private void cancelMulticastSenders() {
+        for (final MulticastFileSender multicastSender : tList.getMulticastSenders()) {
+            multicastSender.cancel();
+            tList.removeMulticastSender(multicastSender);
+        }
+    }
+
     /**
      * Cancels all file transfers for that user.
      *
@@ -394,6 +427,7 @@ public class Controller implements NetworkConnectionListener {
      */
     private void shutdown() {
         idleThread.stopThread();
+        userListBatcher.stop();
     }
 
     /**
@@ -438,19 +472,72 @@ public class Controller implements NetworkConnectionListener {
      *         or the message is too long.
      */
     public void sendChatMessage(final String msg) throws CommandException {
+        validateChatMessage(msg);
+        messages.sendChatMessage(msg);
+    }
+
+    /**
+     * Sends a chat message over the network, to all the other users, without waiting for it to be sent.
+     *
+     * @param msg The message to send.
+     * @param listener Notified by the send queue when the message is done.
+     * @throws CommandException If there is no connection to the network,
+     *         or the application user is away,
+     *         or the message is empty,
+     *         or the message is too long.
+     */
+    public void sendChatMessage(final String msg, final MessageSentListener listener) throws CommandException {
+        validateChatMessage(msg);
+        messages.sendChatMessage(msg, listener);
+    }
+
+    /**
+     * Checks if the chat message can be sent.
+     *
+     * @param msg The message to send.
+     * @throws CommandException If the message can not be sent.
+     */
+    private void validateChatMessage(final String msg) throws CommandException {
         if (!isConnected()) {
             throw new CommandException("You can not send a chat message without being connected");
         } else if (me.isAway()) {
             throw new CommandException("You can not send a chat message while away");
         } else if (msg.trim().length() == 0) {
             throw new CommandException("You can not send an empty chat message");
-        } else if (Tools.getBytes(msg) > Constants.MESSAGE_MAX_BYTES) {
-            throw new CommandException("You can not send a chat message with more than " + Constants.MESSAGE_MAX_BYTES + " bytes");
-        } else {
-            messages.sendChatMessage(msg);
+        } else if (Tools.getBytes(msg) > getMaxMessageBytes()) {
+            throw new CommandException("You can not send a chat message with more than " + getMaxMessageBytes() + " bytes");
         }
     }
 
+    /**
+     * Gets the max number of bytes allowed in a chat message or topic. Larger messages
+     * are allowed when all the other users can put together fragmented messages.
+     *
+     * @return The max number of bytes.
+     */
+    private int getMaxMessageBytes() {
+        if (userListController.isCapabilitySupported(Capability.FRAGMENT)) {
+            return Constants.MESSAGE_MAX_FRAGMENTED_BYTES;
+        }
+
+        return Constants.MESSAGE_MAX_BYTES;
+    }
+
+    /**
+     * Gets the max number of bytes allowed in a private message to the user. Larger messages
+     * are allowed when the user can put together fragmented messages.
+     *
+     * @param user The user to send the private message to.
+     * @return The max number of bytes.
+     */
+    private int getMaxPrivateMessageBytes(final User user) {
+        if (user.hasCapability(Capability.FRAGMENT)) {
+            return Constants.MESSAGE_MAX_FRAGMENTED_BYTES;
+        }
+
+        return Constants.MESSAGE_MAX_BYTES;
+    }
+
     /**
      * Sends a message over the network with the current topic.
      */
@@ -471,8 +558,8 @@ public class Controller implements NetworkConnectionListener {
             throw new CommandException("You can not change the topic without being connected");
         } else if (me.isAway()) {
             throw new CommandException("You can not change the topic while away");
-        } else if (Tools.getBytes(newTopic) > Constants.MESSAGE_MAX_BYTES) {
-            throw new CommandException("You can not set a topic with more than " + Constants.MESSAGE_MAX_BYTES + " bytes");
+        } else if (Tools.getBytes(newTopic) > getMaxMessageBytes()) {
+            throw new CommandException("You can not set a topic with more than " + getMaxMessageBytes() + " bytes");
         }
 
         final long time = System.currentTimeMillis();
@@ -505,6 +592,44 @@ public class Controller implements NetworkConnectionListener {
         messages.sendFileAbort(user, fileHash, fileName);
     }
 
+    /**
+     * Tells the receiver of a file that the file transfer is waiting for other file transfers to finish.
+     *
+     * @param user The user receiving the file.
+     * @param fileHash The unique hash code of the file.
+     * @param fileName The name of the file.
+     */
+    public void sendFileQueued(final User user, final int fileHash, final String fileName) {
+        messages.sendFileQueued(user, fileHash, fileName);
+    }
+
+    /**
+     * Sends the content of a small file inline in a private message.
+     *
+     * @param user The user receiving the file.
+     * @param fileName The name of the file.
+     * @param content The content of the file.
+     * @param checksum The checksum of the content.
+     * @throws CommandException If the message was not sent successfully.
+     */
+    public void sendFileData(final User user, final String fileName, final byte[] content, final long checksum)
+            throws CommandException {
+        messages.sendFileData(user, fileName, content, checksum);
+    }
+
+    /**
+     * Sends a private message to tell the sender of a small file inline if the content
+     * arrived with the right checksum.
+     *
+     * @param user The user sending the file.
+     * @param fileHash The unique hash code of the file.
+     * @param fileName The name of the file.
+     * @param verified If the content arrived with the right checksum.
+     */
+    public void sendFileDataAck(final User user, final int fileHash, final String fileName, final boolean verified) {
+        messages.sendFileDataAck(user, fileHash, fileName, verified);
+    }
+
     /**
      * Sends a message over the network to notify the file sender that you
      * accepted the file transfer.
@@ -514,10 +639,12 @@ public class Controller implements NetworkConnectionListener {
      *             to start the file transfer.
      * @param fileHash The unique hash code of the file.
      * @param fileName The name of the file.
+     * @param options How the file sender should send the file.
      * @throws CommandException If the message was not sent successfully.
      */
-    public void sendFileAccept(final User user, final int port, final int fileHash, final String fileName) throws CommandException {
-        messages.sendFileAccept(user, port, fileHash, fileName);
+    public void sendFileAccept(final User user, final int port, final int fileHash, final String fileName,
+                               final TransferOptions options) throws CommandException {
+        messages.sendFileAccept(user, port, fileHash, fileName, options);
     }
 
     /**
@@ -551,6 +678,54 @@ public class Controller implements NetworkConnectionListener {
         }
     }
 
+    /**
+     * Offers a file to everyone in the chat, and prepares to send it from a multicast group
+     * to the users who accept it.
+     *
+     * @param file The file to send.
+     * @return The sender of the file, ready to send with {@link MulticastFileSender#transfer()}.
+     * @throws CommandException If there is no connection to the network,
+     *                          or the application user is away,
+     *                          or none of the users can receive files sent to everyone,
+     *                          or the file name is too long,
+     *                          or the file transfer could not be started.
+     */
+    public MulticastFileSender sendGroupFile(final File file) throws CommandException {
+        Validate.notNull(file, "File can not be null");
+
+        if (!isConnected()) {
+            throw new CommandException("You can not send a file without being connected");
+        } else if (me.isAway()) {
+            throw new CommandException("You can not send a file while away");
+        } else if (!userListController.isCapabilitySupportedByAnyone(Capability.MULTICAST)) {
+            throw new CommandException("None of the users can receive a file sent to everyone");
+        } else if (Tools.getBytes(file.getName()) > Constants.MESSAGE_MAX_BYTES) {
+            throw new CommandException("You can not send a file with a name with more than " + Constants.MESSAGE_MAX_BYTES + " bytes");
+        }
+
+        final MulticastFileSender multicastSender = new MulticastFileSender(file);
+        multicastSender.setMaxRate(scheduler.capUploadRate(settings.getMulticastFileRate()));
+
+        try {
+            final MulticastOffer offer =
+                    multicastSender.start(networkService.getConnectionWorker().getCurrentNetworkInterface());
+            messages.sendGroupFile(offer);
+        }
+
+        catch (final ServerException e) {
+            LOG.log(Level.SEVERE, e.toString(), e);
+            multicastSender.stop();
+            throw new CommandException("Failed to send " + file.getName() + " to everyone");
+        }
+
+        catch (final CommandException e) {
+            multicastSender.stop();
+            throw e;
+        }
+
+        return multicastSender;
+    }
+
     /**
      * Gets the list of current transfers.
      *
@@ -569,6 +744,17 @@ public class Controller implements NetworkConnectionListener {
         return wList;
     }
 
+    /**
+     * Updates the time of the last idle message from the user,
+     * and moves the timeout of the user forward.
+     *
+     * @param user The user who sent an idle message.
+     */
+    public void updateLastIdle(final User user) {
+        user.setLastIdle(System.currentTimeMillis());
+        idleThread.updateTimeout(user);
+    }
+
     /**
      * If any users have timed out because of missed idle messages, then
      * send a message over the network to ask all clients to identify
@@ -580,6 +766,27 @@ public class Controller implements NetworkConnectionListener {
         }
     }
 
+    /**
+     * Sends a message over the network to ask a user to send lost chat messages again.
+     *
+     * @param user The user who sent the lost messages.
+     * @param fromSequence The sequence number of the first lost message.
+     * @param toSequence The sequence number of the last lost message.
+     */
+    public void sendResendRequest(final User user, final int fromSequence, final int toSequence) {
+        messages.sendNackMessage(user, fromSequence, toSequence);
+    }
+
+    /**
+     * Sends chat messages lost by another user over the network again.
+     *
+     * @param fromSequence The sequence number of the first lost message.
+     * @param toSequence The sequence number of the last lost message.
+     */
+    public void resendChatMessages(final int fromSequence, final int toSequence) {
+        messages.resendChatMessages(fromSequence, toSequence);
+    }
+
     /**
      * Sends a message over the network with more information about this client.
      */
@@ -600,14 +807,42 @@ public class Controller implements NetworkConnectionListener {
      *                          or the specified user is away or offline.
      */
     public void sendPrivateMessage(final String privmsg, final User user) throws CommandException {
+        validatePrivateMessage(privmsg, user);
+        messages.sendPrivateMessage(privmsg, user);
+    }
+
+    /**
+     * Sends a private chat message over the network, to the specified user, without waiting for it to be sent.
+     *
+     * @param privmsg The private message to send.
+     * @param user The user to send the private message to.
+     * @param listener Notified by the send queue when the message is done.
+     * @throws CommandException If the private message can not be sent,
+     *                          for the same reasons as {@link #sendPrivateMessage(String, User)}.
+     */
+    public void sendPrivateMessage(final String privmsg, final User user, final MessageSentListener listener)
+            throws CommandException {
+        validatePrivateMessage(privmsg, user);
+        messages.sendPrivateMessage(privmsg, user, listener);
+    }
+
+    /**
+     * Checks if the private chat message can be sent to the user.
+     *
+     * @param privmsg The private message to send.
+     * @param user The user to send the private message to.
+     * @throws CommandException If the private message can not be sent.
+     */
+    private void validatePrivateMessage(final String privmsg, final User user) throws CommandException {
         if (!isConnected()) {
             throw new CommandException("You can not send a private chat message without being connected");
         } else if (me.isAway()) {
             throw new CommandException("You can not send a private chat message while away");
         } else if (privmsg.trim().length() == 0) {
             throw new CommandException("You can not send an empty private chat message");
-        } else if (Tools.getBytes(privmsg) > Constants.MESSAGE_MAX_BYTES) {
-            throw new CommandException("You can not send a private chat message with more than " + Constants.MESSAGE_MAX_BYTES + " bytes");
+        } else if (Tools.getBytes(privmsg) > getMaxPrivateMessageBytes(user)) {
+            throw new CommandException("You can not send a private chat message with more than " +
+                    getMaxPrivateMessageBytes(user) + " bytes");
         } else if (user.getPrivateChatPort() == 0) {
             throw new CommandException("You can not send a private chat message to a user with no available port number");
         } else if (user.isAway()) {
@@ -616,8 +851,6 @@ public class Controller implements NetworkConnectionListener {
             throw new CommandException("You can not send a private chat message to a user that is offline");
         } else if (settings.isNoPrivateChat()) {
             throw new CommandException("You can not send a private chat message when private chat is disabled");
-        } else {
-            messages.sendPrivateMessage(privmsg, user);
         }
     }
 
@@ -696,7 +929,7 @@ public class Controller implements NetworkConnectionListener {
     public AutoCompleter getAutoCompleter() {
         final AutoCompleter autoCompleter = new AutoCompleter();
         autoCompleter.addAutoCompleteList(new CommandAutoCompleteList());
-        autoCompleter.addAutoCompleteList(new UserAutoCompleteList(getUserList()));
+        autoCompleter.addAutoCompleteList(new UserAutoCompleteList(getUserList(), userListBatcher));
 
         return autoCompleter;
     }
@@ -25,6 +25,7 @@ package net.usikkert.kouchat.misc;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import net.usikkert.kouchat.event.UserListListener;
 import net.usikkert.kouchat.ui.UserInterface;
 import net.usikkert.kouchat.util.Validate;
 
@@ -36,6 +37,13 @@ import net.usikkert.kouchat.util.Validate;
  * and if that is the case, remove them and show a message
  * in the user interface.
  *
+ * <p>The timeouts of the other users are kept in a {@link TimeoutWheel}, that is updated when users
+ * come and go, and when they send idle messages. The thread wakes up when the next timeout is due,
+ * and only looks at the users that are actually timing out.</p>
+ *
+ * <p>How long to wait for each user is decided by a {@link PhiAccrualFailureDetector}, that learns
+ * how regularly the idle messages from the user arrive. The timeout is never longer than {@link #TIMEOUT}.</p>
+ *
  * @author Christian Ihle
  */
 public class IdleThread extends Thread {
@@ -53,14 +61,30 @@ public class IdleThread extends Thread {
      * If an idle message has not been received from another
      * client in this number of milliseconds, then it's not
      * on the network anymore and must be removed.
+     * Used until the failure detector knows the client.
      */
     private static final int TIMEOUT = 120000;
 
+    /** Number of milliseconds in each tick of the timeout wheel. */
+    private static final int TICK = 1000;
+
+    /** Number of slots in the timeout wheel. Covers a bit more than {@link #TIMEOUT}. */
+    private static final int WHEEL_SIZE = 128;
+
+    /** The lowest standard deviation of the idle message intervals the failure detector uses, in milliseconds. */
+    private static final int MIN_STD_DEVIATION = 500;
+
     private final Controller controller;
     private final UserList userList;
     private final User me;
     private final MessageController msgController;
 
+    /** When the other users time out. */
+    private final TimeoutWheel timeouts;
+
+    /** Decides how long to wait for idle messages from each user. */
+    private final PhiAccrualFailureDetector failureDetector;
+
     /** The thread runs while this is true. */
     private boolean run;
 
@@ -81,11 +105,38 @@ public class IdleThread extends Thread {
         userList = controller.getUserList();
         me = settings.getMe();
         msgController = ui.getMessageController();
+        timeouts = new TimeoutWheel(TICK, WHEEL_SIZE, System.currentTimeMillis());
+
+        // Accepts one lost idle message on top of what the failure detector has learned
+        failureDetector = new PhiAccrualFailureDetector(settings.getFailureThreshold(), MIN_STD_DEVIATION, IDLE_TIME, TIMEOUT);
+
+        userList.addUserListListener(new TimeoutUpdater());
+
+        for (final User user : userList.getUsers()) {
+            updateTimeout(user);
+        }
 
         run = true;
         setName("IdleThread");
     }
 
+    /**
+     * Registers the last idle message from the user with the failure detector,
+     * and moves the timeout of the user forward.
+     *
+     * @param user The user to update the timeout for.
+     */
+    public void updateTimeout(final User user) {
+        Validate.notNull(user, "User can not be null");
+
+        final int userCode = user.getCode();
+
+        if (userCode != me.getCode()) {
+            failureDetector.heartbeat(userCode, user.getLastIdle());
+            timeouts.schedule(userCode, failureDetector.getDeadline(userCode));
+        }
+    }
+
     /**
      * This is where most of the action is.
      *
@@ -98,27 +149,29 @@ public class IdleThread extends Thread {
         // In case of any error messages during startup
         me.setLastIdle(System.currentTimeMillis());
 
+        long nextIdleMessage = 0;
+
         while (run) {
-            controller.sendIdleMessage();
-            boolean timeout = false;
-
-            for (int i = 0; i < userList.size(); i++) {
-                final User temp = userList.get(i);
-
-                if (temp.getCode() != me.getCode() && temp.getLastIdle() < System.currentTimeMillis() - TIMEOUT) {
-                    userList.remove(temp);
-                    userTimedOut(temp);
-                    timeout = true;
-                    i--;
-                }
+            final long now = System.currentTimeMillis();
+
+            if (now >= nextIdleMessage) {
+                controller.sendIdleMessage();
+                nextIdleMessage = now + IDLE_TIME;
             }
 
-            if (timeout) {
+            if (removeTimedOutUsers(now)) {
                 controller.updateAfterTimeout();
             }
 
+            long wakeUp = nextIdleMessage;
+            final long nextTimeout = timeouts.getNextExpiryTime();
+
+            if (nextTimeout >= 0 && nextTimeout < wakeUp) {
+                wakeUp = nextTimeout;
+            }
+
             try {
-                sleep(IDLE_TIME);
+                sleep(Math.max(1, wakeUp - System.currentTimeMillis()));
             }
 
             // Sleep interrupted - probably from stopThread()
@@ -128,6 +181,35 @@ public class IdleThread extends Thread {
         }
     }
 
+    /**
+     * Removes the users with timeouts that are due.
+     *
+     * @param now The current time, in milliseconds.
+     * @return If any users timed out.
+     */
+    private boolean removeTimedOutUsers(final long now) {
+        boolean timeout = false;
+
+        for (final int userCode : timeouts.expire(now)) {
+            final User user = userList.getUser(userCode);
+
+            if (user == null) {
+                failureDetector.remove(userCode);
+                continue;
+            }
+
+            // In case an idle message arrived after the timeout was due
+            updateTimeout(user);
+
+            if (failureDetector.getDeadline(userCode) <= now && userList.remove(user)) {
+                userTimedOut(user);
+                timeout = true;
+            }
+        }
+
+        return timeout;
+    }
+
     /**
      * When a user times out, all current file transfers must
      * be canceled, and messages must be shown in the normal
@@ -153,4 +235,41 @@ public class IdleThread extends Thread {
         run = false;
         interrupt();
     }
+
+    /**
+     * Keeps the timeouts up to date with the users in the user list.
+     */
+    private class TimeoutUpdater implements UserListListener {
+
+        /**
+         * Schedules the timeout of the new user.
+         *
+         * {@inheritDoc}
+         */
+        @Override
+        public void userAdded(final int pos, final User user) {
+            updateTimeout(user);
+        }
+
+        /**
+         * Nothing to do.
+         *
+         * {@inheritDoc}
+         */
+        @Override
+        public void userChanged(final int pos, final User user) {
+            // The timeout is only updated by idle messages
+        }
+
+        /**
+         * Removes the timeout of the user.
+         *
+         * {@inheritDoc}
+         */
+        @Override
+        public void userRemoved(final int pos, final User user) {
+            timeouts.cancel(user.getCode());
+            failureDetector.remove(user.getCode());
+        }
+    }
 }
@@ -0,0 +1,336 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.misc;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An adaptive failure detector, deciding when a user has stopped sending idle messages.
+ *
+ * <p>Instead of a fixed timeout, the detector learns how the idle messages from each user usually
+ * arrive, and gives the suspicion level <em>phi</em> that the user is gone. Phi is based on how likely
+ * it is to wait this long for the next idle message, given the mean and standard deviation of the
+ * earlier intervals. A phi of 1 means about 10% chance of a mistake, a phi of 2 about 1%, and so on.</p>
+ *
+ * <p>On a stable network the intervals hardly vary, and a user that stops sending idle messages is
+ * suspected soon after the next message should have arrived. On a noisy network with lost messages
+ * the intervals vary a lot, and the detector waits longer before suspecting the user.</p>
+ *
+ * <p>Until enough intervals are known, and when the threshold is <code>0</code>, the max timeout
+ * is used. The max timeout is also the upper limit of the learned timeouts.</p>
+ *
+ * <p>Based on "The phi accrual failure detector" by Hayashibara et al.
+ * This class is thread safe.</p>
+ *
+ * @author Christian Ihle
+ */
+public class PhiAccrualFailureDetector {
+
+    /** The max number of intervals to remember for each user. */
+    private static final int MAX_SAMPLE_SIZE = 100;
+
+    /** The number of intervals needed before the learned distribution is used. */
+    private static final int MIN_SAMPLE_SIZE = 3;
+
+    /** First factor of the logistic approximation of the cumulative normal distribution. */
+    private static final double LOGISTIC_FACTOR = 1.5976;
+
+    /** Cubic factor of the logistic approximation of the cumulative normal distribution. */
+    private static final double LOGISTIC_CUBIC_FACTOR = 0.070566;
+
+    /** The max number of standard deviations to search for the threshold. */
+    private static final double MAX_DEVIATIONS = 64;
+
+    /** The number of steps in the search for the threshold. */
+    private static final int SEARCH_STEPS = 64;
+
+    /** The phi to suspect a user at, or <code>0</code> to always use the max timeout. */
+    private final double threshold;
+
+    /** The lowest standard deviation to use, in milliseconds, so very regular intervals don't give a hair trigger. */
+    private final double minStdDeviation;
+
+    /** The number of milliseconds of missing idle messages to accept on top of the learned intervals. */
+    private final long acceptablePause;
+
+    /** The max number of milliseconds to wait for an idle message. */
+    private final long maxTimeout;
+
+    /** The number of standard deviations above the mean where phi reaches the threshold. */
+    private final double thresholdDeviations;
+
+    /** The intervals between the idle messages of each user, by user code. */
+    private final Map<Integer, HeartbeatHistory> histories;
+
+    /**
+     * Constructor.
+     *
+     * @param threshold The phi to suspect a user at, or <code>0</code> to always use the max timeout.
+     * @param minStdDeviation The lowest standard deviation to use, in milliseconds.
+     * @param acceptablePause The number of milliseconds of missing idle messages to accept
+     *                        on top of the learned intervals.
+     * @param maxTimeout The max number of milliseconds to wait for an idle message.
+     */
+    public PhiAccrualFailureDetector(final double threshold, final long minStdDeviation,
+                                     final long acceptablePause, final long maxTimeout) {
+        this.threshold = threshold;
+        this.minStdDeviation = minStdDeviation;
+        this.acceptablePause = acceptablePause;
+        this.maxTimeout = maxTimeout;
+
+        thresholdDeviations = findDeviations(threshold);
+        histories = new HashMap<Integer, HeartbeatHistory>();
+    }
+
+    /**
+     * Registers an idle message from the user. Idle messages at or before the last
+     * registered idle message are ignored.
+     *
+     * @param userCode The code of the user who sent the idle message.
+     * @param time When the idle message arrived, in milliseconds.
+     */
+    public synchronized void heartbeat(final int userCode, final long time) {
+        final HeartbeatHistory history = histories.get(userCode);
+
+        if (history == null) {
+            histories.put(userCode, new HeartbeatHistory(time));
+        }
+
+        else if (time > history.getLastHeartbeat()) {
+            history.add(time);
+        }
+    }
+
+    /**
+     * Forgets everything about the user.
+     *
+     * @param userCode The code of the user.
+     */
+    public synchronized void remove(final int userCode) {
+        histories.remove(userCode);
+    }
+
+    /**
+     * Gets the suspicion level that the user is gone.
+     *
+     * @param userCode The code of the user.
+     * @param now The current time, in milliseconds.
+     * @return The phi of the user, or <code>0</code> if the user is unknown or too little is known yet.
+     */
+    public synchronized double phi(final int userCode, final long now) {
+        final HeartbeatHistory history = histories.get(userCode);
+
+        if (history == null || history.getSize() < MIN_SAMPLE_SIZE) {
+            return 0;
+        }
+
+        final long timeDiff = now - history.getLastHeartbeat();
+
+        return phi(timeDiff, history.getMean() + acceptablePause, getStdDeviation(history));
+    }
+
+    /**
+     * Gets when the user should be considered gone, if no more idle messages arrive.
+     *
+     * @param userCode The code of the user.
+     * @return The deadline in milliseconds, or <code>-1</code> if the user is unknown.
+     */
+    public synchronized long getDeadline(final int userCode) {
+        final HeartbeatHistory history = histories.get(userCode);
+
+        if (history == null) {
+            return -1;
+        }
+
+        final long lastHeartbeat = history.getLastHeartbeat();
+
+        if (threshold <= 0 || history.getSize() < MIN_SAMPLE_SIZE) {
+            return lastHeartbeat + maxTimeout;
+        }
+
+        final double timeout = history.getMean() + acceptablePause + thresholdDeviations * getStdDeviation(history);
+
+        return lastHeartbeat + Math.min(maxTimeout, (long) Math.ceil(timeout));
+    }
+
+    /**
+     * Gets the standard deviation of the intervals of the user, but not lower than the min standard deviation.
+     *
+     * @param history The intervals of the user.
+     * @return The standard deviation to use.
+     */
+    private double getStdDeviation(final HeartbeatHistory history) {
+        return Math.max(minStdDeviation, history.getStdDeviation());
+    }
+
+    /**
+     * Calculates phi, using a logistic approximation of the cumulative normal distribution.
+     *
+     * @param timeDiff The number of milliseconds since the last idle message.
+     * @param mean The mean interval.
+     * @param stdDeviation The standard deviation of the intervals.
+     * @return The phi.
+     */
+    static double phi(final double timeDiff, final double mean, final double stdDeviation) {
+        return phi((timeDiff - mean) / stdDeviation);
+    }
+
+    /**
+     * Calculates phi for a number of standard deviations from the mean.
+     *
+     * @param deviations The number of standard deviations from the mean.
+     * @return The phi.
+     */
+    private static double phi(final double deviations) {
+        final double e = Math.exp(-deviations * (LOGISTIC_FACTOR + LOGISTIC_CUBIC_FACTOR * deviations * deviations));
+
+        if (deviations > 0) {
+            return -Math.log10(e / (1.0 + e));
+        }
+
+        return -Math.log10(1.0 - 1.0 / (1.0 + e));
+    }
+
+    /**
+     * Finds the number of standard deviations above the mean where phi reaches the threshold.
+     *
+     * @param phi The threshold.
+     * @return The number of standard deviations.
+     */
+    private static double findDeviations(final double phi) {
+        double low = 0;
+        double high = MAX_DEVIATIONS;
+
+        for (int i = 0; i < SEARCH_STEPS; i++) {
+            final double middle = (low + high) / 2;
+
+            if (phi(middle) < phi) {
+                low = middle;
+            }
+
+            else {
+                high = middle;
+            }
+        }
+
+        return high;
+    }
+
+    /**
+     * The most recent intervals between the idle messages of a user.
+     */
+    private static class HeartbeatHistory {
+
+        /** The intervals, in milliseconds, as a ring buffer. */
+        private final long[] intervals;
+
+        /** The number of intervals in the buffer. */
+        private int size;
+
+        /** The position of the next interval in the buffer. */
+        private int next;
+
+        /** The sum of the intervals in the buffer. */
+        private double sum;
+
+        /** The sum of the squares of the intervals in the buffer. */
+        private double squaredSum;
+
+        /** When the last idle message arrived, in milliseconds. */
+        private long lastHeartbeat;
+
+        /**
+         * Constructor.
+         *
+         * @param firstHeartbeat When the first idle message arrived, in milliseconds.
+         */
+        HeartbeatHistory(final long firstHeartbeat) {
+            intervals = new long[MAX_SAMPLE_SIZE];
+            lastHeartbeat = firstHeartbeat;
+        }
+
+        /**
+         * Adds the interval since the last idle message, and forgets the oldest interval if full.
+         *
+         * @param heartbeat When the idle message arrived, in milliseconds.
+         */
+        public void add(final long heartbeat) {
+            final long interval = heartbeat - lastHeartbeat;
+            lastHeartbeat = heartbeat;
+
+            if (size == intervals.length) {
+                final long oldest = intervals[next];
+                sum -= oldest;
+                squaredSum -= (double) oldest * oldest;
+            }
+
+            else {
+                size++;
+            }
+
+            intervals[next] = interval;
+            next = (next + 1) % intervals.length;
+            sum += interval;
+            squaredSum += (double) interval * interval;
+        }
+
+        /**
+         * Gets when the last idle message arrived.
+         *
+         * @return The time of the last idle message, in milliseconds.
+         */
+        public long getLastHeartbeat() {
+            return lastHeartbeat;
+        }
+
+        /**
+         * Gets the number of intervals in the buffer.
+         *
+         * @return The number of intervals.
+         */
+        public int getSize() {
+            return size;
+        }
+
+        /**
+         * Gets the mean of the intervals.
+         *
+         * @return The mean interval, in milliseconds.
+         */
+        public double getMean() {
+            return sum / size;
+        }
+
+        /**
+         * Gets the standard deviation of the intervals.
+         *
+         * @return The standard deviation, in milliseconds.
+         */
+        public double getStdDeviation() {
+            final double mean = getMean();
+
+            return Math.sqrt(Math.max(0, squaredSum / size - mean * mean));
+        }
+    }
+}
@@ -118,6 +118,57 @@ public class Settings {
     /** The location to store logs. */
     private String logLocation;
 
+    /** If the channel based network receivers should be used instead of the socket based. */
+    private boolean nioNetwork;
+
+    /** The number of received messages that can wait to be parsed, or <code>0</code> to parse on the receiver thread. */
+    private int receiveQueueSize;
+
+    /** What to do when the receive queue is full. */
+    private String receiveQueueOverflow;
+
+    /** If a single event loop should handle the network channels, instead of a thread for each. */
+    private boolean networkEventLoop;
+
+    /** If small status messages should be sent together in one packet, when all the other users support it. */
+    private boolean messageBatching;
+
+    /** The number of milliseconds to wait for more messages to send together in one packet. */
+    private int messageBatchWindow;
+
+    /** If received messages should be thrown away when a user sends too many of them. */
+    private boolean floodProtection;
+
+    /** If file transfers should use streams instead of channels. */
+    private boolean noChannelTransfers;
+
+    /** The max number of connections to receive a large file over at the same time. */
+    private int fileTransferStreams;
+
+    /** The max number of active file transfers in each direction. <code>0</code> means unlimited. */
+    private int maxTransfers;
+
+    /** The max number of active file transfers in each direction with each user. <code>0</code> means unlimited. */
+    private int maxTransfersPerUser;
+
+    /** The max number of bytes per second to send files with. <code>0</code> means unlimited. */
+    private long maxUploadRate;
+
+    /** The max number of bytes per second to receive files with. <code>0</code> means unlimited. */
+    private long maxDownloadRate;
+
+    /** If all incoming file transfers should use the same port. */
+    private boolean sharedFileTransferPort;
+
+    /** The max size of a file to receive inline in a private message. <code>0</code> means never. */
+    private int inlineFileSize;
+
+    /** The suspicion level where a user that has stopped sending idle messages is gone. <code>0</code> means fixed timeout. */
+    private int failureThreshold;
+
+    /** The max number of bytes per second to send a file to everyone with. <code>0</code> means unlimited. */
+    private long multicastFileRate;
+
     /**
      * Private constructor.
      *
@@ -178,6 +229,24 @@ public class Settings {
         noPrivateChat = Boolean.valueOf(System.getProperty(Constants.SETTINGS_NO_PRIVATE_CHAT));
         alwaysLog = Boolean.valueOf(System.getProperty(Constants.SETTINGS_ALWAYS_LOG));
         logLocation = System.getProperty(Constants.SETTINGS_LOG_LOCATION);
+        nioNetwork = Boolean.valueOf(System.getProperty(Constants.SETTINGS_NIO_NETWORK));
+        receiveQueueSize = Integer.getInteger(Constants.SETTINGS_RECEIVE_QUEUE_SIZE, 0);
+        receiveQueueOverflow = System.getProperty(Constants.SETTINGS_RECEIVE_QUEUE_OVERFLOW);
+        networkEventLoop = Boolean.valueOf(System.getProperty(Constants.SETTINGS_NETWORK_EVENT_LOOP));
+        messageBatching = Boolean.valueOf(System.getProperty(Constants.SETTINGS_MESSAGE_BATCHING));
+        messageBatchWindow = Integer.getInteger(Constants.SETTINGS_MESSAGE_BATCH_WINDOW, Constants.NETWORK_BATCH_WINDOW);
+        floodProtection = Boolean.valueOf(System.getProperty(Constants.SETTINGS_FLOOD_PROTECTION));
+        noChannelTransfers = Boolean.valueOf(System.getProperty(Constants.SETTINGS_NO_CHANNEL_TRANSFERS));
+        fileTransferStreams = Integer.getInteger(Constants.SETTINGS_FILE_TRANSFER_STREAMS, 1);
+        maxTransfers = Integer.getInteger(Constants.SETTINGS_MAX_TRANSFERS, Constants.NETWORK_MAX_TRANSFERS);
+        maxTransfersPerUser = Integer.getInteger(Constants.SETTINGS_MAX_TRANSFERS_PER_USER,
+                                                 Constants.NETWORK_MAX_TRANSFERS_PER_USER);
+        maxUploadRate = Long.getLong(Constants.SETTINGS_MAX_UPLOAD_RATE, 0);
+        maxDownloadRate = Long.getLong(Constants.SETTINGS_MAX_DOWNLOAD_RATE, 0);
+        sharedFileTransferPort = Boolean.valueOf(System.getProperty(Constants.SETTINGS_SHARED_FILE_TRANSFER_PORT));
+        inlineFileSize = Integer.getInteger(Constants.SETTINGS_INLINE_FILE_SIZE, Constants.NETWORK_INLINE_FILE_SIZE);
+        failureThreshold = Integer.getInteger(Constants.SETTINGS_FAILURE_THRESHOLD, Constants.NETWORK_FAILURE_THRESHOLD);
+        multicastFileRate = Long.getLong(Constants.SETTINGS_MULTICAST_FILE_RATE, Constants.NETWORK_MULTICAST_FILE_RATE);
     }
 
     /**
@@ -584,6 +653,316 @@ public class Settings {
         this.logLocation = logLocation;
     }
 
+    /**
+     * If the channel based network receivers should be used instead of the socket based.
+     *
+     * @return If the channel based network receivers should be used.
+     */
+    public boolean isNioNetwork() {
+        return nioNetwork;
+    }
+
+    /**
+     * Sets if the channel based network receivers should be used instead of the socket based.
+     *
+     * @param nioNetwork If the channel based network receivers should be used.
+     */
+    public void setNioNetwork(final boolean nioNetwork) {
+        this.nioNetwork = nioNetwork;
+    }
+
+    /**
+     * Gets the number of received messages that can wait to be parsed.
+     *
+     * @return The size of the receive queue, or <code>0</code> if messages are parsed on the receiver thread.
+     */
+    public int getReceiveQueueSize() {
+        return receiveQueueSize;
+    }
+
+    /**
+     * Sets the number of received messages that can wait to be parsed.
+     *
+     * @param receiveQueueSize The size of the receive queue, or <code>0</code> to parse on the receiver thread.
+     */
+    public void setReceiveQueueSize(final int receiveQueueSize) {
+        this.receiveQueueSize = receiveQueueSize;
+    }
+
+    /**
+     * Gets what to do when the receive queue is full.
+     *
+     * @return The name of the overflow policy, or <code>null</code> to use the default.
+     */
+    public String getReceiveQueueOverflow() {
+        return receiveQueueOverflow;
+    }
+
+    /**
+     * Sets what to do when the receive queue is full.
+     *
+     * @param receiveQueueOverflow The name of the overflow policy.
+     */
+    public void setReceiveQueueOverflow(final String receiveQueueOverflow) {
+        this.receiveQueueOverflow = receiveQueueOverflow;
+    }
+
+    /**
+     * If a single event loop should handle the network channels, instead of a thread for each.
+     * Implies the channel based network receivers.
+     *
+     * @return If the network event loop should be used.
+     */
+    public boolean isNetworkEventLoop() {
+        return networkEventLoop;
+    }
+
+    /**
+     * Sets if a single event loop should handle the network channels, instead of a thread for each.
+     *
+     * @param networkEventLoop If the network event loop should be used.
+     */
+    public void setNetworkEventLoop(final boolean networkEventLoop) {
+        this.networkEventLoop = networkEventLoop;
+    }
+
+    /**
+     * If small status messages should be sent together in one packet, when all the other users support it.
+     *
+     * @return If message batching is enabled.
+     */
+    public boolean isMessageBatching() {
+        return messageBatching;
+    }
+
+    /**
+     * Sets if small status messages should be sent together in one packet, when all the other users support it.
+     *
+     * @param messageBatching If message batching should be enabled.
+     */
+    public void setMessageBatching(final boolean messageBatching) {
+        this.messageBatching = messageBatching;
+    }
+
+    /**
+     * Gets the number of milliseconds to wait for more messages to send together in one packet.
+     *
+     * @return The message batch window, in milliseconds.
+     */
+    public int getMessageBatchWindow() {
+        return messageBatchWindow;
+    }
+
+    /**
+     * Sets the number of milliseconds to wait for more messages to send together in one packet.
+     *
+     * @param messageBatchWindow The message batch window, in milliseconds.
+     */
+    public void setMessageBatchWindow(final int messageBatchWindow) {
+        this.messageBatchWindow = messageBatchWindow;
+    }
+
+    /**
+     * If received messages should be thrown away when a user sends too many of them.
+     *
+     * @return If flood protection is enabled.
+     */
+    public boolean isFloodProtection() {
+        return floodProtection;
+    }
+
+    /**
+     * Sets if received messages should be thrown away when a user sends too many of them.
+     *
+     * @param floodProtection If flood protection should be enabled.
+     */
+    public void setFloodProtection(final boolean floodProtection) {
+        this.floodProtection = floodProtection;
+    }
+
+    /**
+     * If file transfers should use streams instead of channels.
+     *
+     * @return If channel transfers are disabled.
+     */
+    public boolean isNoChannelTransfers() {
+        return noChannelTransfers;
+    }
+
+    /**
+     * Sets if file transfers should use streams instead of channels.
+     *
+     * @param noChannelTransfers If channel transfers should be disabled.
+     */
+    public void setNoChannelTransfers(final boolean noChannelTransfers) {
+        this.noChannelTransfers = noChannelTransfers;
+    }
+
+    /**
+     * Gets the max number of connections to receive a large file over at the same time.
+     *
+     * @return The max number of file transfer connections.
+     */
+    public int getFileTransferStreams() {
+        return fileTransferStreams;
+    }
+
+    /**
+     * Sets the max number of connections to receive a large file over at the same time.
+     *
+     * @param fileTransferStreams The max number of file transfer connections.
+     */
+    public void setFileTransferStreams(final int fileTransferStreams) {
+        this.fileTransferStreams = fileTransferStreams;
+    }
+
+    /**
+     * Gets the max number of active file transfers in each direction.
+     *
+     * @return The max number of active file transfers, or <code>0</code> for unlimited.
+     */
+    public int getMaxTransfers() {
+        return maxTransfers;
+    }
+
+    /**
+     * Sets the max number of active file transfers in each direction.
+     *
+     * @param maxTransfers The max number of active file transfers, or <code>0</code> for unlimited.
+     */
+    public void setMaxTransfers(final int maxTransfers) {
+        this.maxTransfers = maxTransfers;
+    }
+
+    /**
+     * Gets the max number of active file transfers in each direction with each user.
+     *
+     * @return The max number of active file transfers with each user, or <code>0</code> for unlimited.
+     */
+    public int getMaxTransfersPerUser() {
+        return maxTransfersPerUser;
+    }
+
+    /**
+     * Sets the max number of active file transfers in each direction with each user.
+     *
+     * @param maxTransfersPerUser The max number of active file transfers with each user, or <code>0</code> for unlimited.
+     */
+    public void setMaxTransfersPerUser(final int maxTransfersPerUser) {
+        this.maxTransfersPerUser = maxTransfersPerUser;
+    }
+
+    /**
+     * Gets the max number of bytes per second to send files with.
+     *
+     * @return The max upload rate, or <code>0</code> for unlimited.
+     */
+    public long getMaxUploadRate() {
+        return maxUploadRate;
+    }
+
+    /**
+     * Sets the max number of bytes per second to send files with.
+     *
+     * @param maxUploadRate The max upload rate, or <code>0</code> for unlimited.
+     */
+    public void setMaxUploadRate(final long maxUploadRate) {
+        this.maxUploadRate = maxUploadRate;
+    }
+
+    /**
+     * Gets the max number of bytes per second to receive files with.
+     *
+     * @return The max download rate, or <code>0</code> for unlimited.
+     */
+    public long getMaxDownloadRate() {
+        return maxDownloadRate;
+    }
+
+    /**
+     * Sets the max number of bytes per second to receive files with.
+     *
+     * @param maxDownloadRate The max download rate, or <code>0</code> for unlimited.
+     */
+    public void setMaxDownloadRate(final long maxDownloadRate) {
+        this.maxDownloadRate = maxDownloadRate;
+    }
+
+    /**
+     * If all incoming file transfers should use the same port, instead of a new port for each transfer.
+     * Only used with the network event loop.
+     *
+     * @return If the shared file transfer port is enabled.
+     */
+    public boolean isSharedFileTransferPort() {
+        return sharedFileTransferPort;
+    }
+
+    /**
+     * Sets if all incoming file transfers should use the same port.
+     *
+     * @param sharedFileTransferPort If the shared file transfer port should be enabled.
+     */
+    public void setSharedFileTransferPort(final boolean sharedFileTransferPort) {
+        this.sharedFileTransferPort = sharedFileTransferPort;
+    }
+
+    /**
+     * Gets the max size of a file to receive inline in a private message, instead of over a separate connection.
+     *
+     * @return The max inline file size in bytes, or <code>0</code> to never receive files inline.
+     */
+    public int getInlineFileSize() {
+        return inlineFileSize;
+    }
+
+    /**
+     * Sets the max size of a file to receive inline in a private message.
+     *
+     * @param inlineFileSize The max inline file size in bytes, or <code>0</code> to never receive files inline.
+     */
+    public void setInlineFileSize(final int inlineFileSize) {
+        this.inlineFileSize = inlineFileSize;
+    }
+
+    /**
+     * Gets the suspicion level (phi) where a user that has stopped sending idle messages
+     * is considered gone. Higher values give fewer mistakes, but take longer to notice.
+     *
+     * @return The failure threshold, or <code>0</code> to use a fixed timeout.
+     */
+    public int getFailureThreshold() {
+        return failureThreshold;
+    }
+
+    /**
+     * Sets the suspicion level where a user that has stopped sending idle messages is considered gone.
+     *
+     * @param failureThreshold The failure threshold, or <code>0</code> to use a fixed timeout.
+     */
+    public void setFailureThreshold(final int failureThreshold) {
+        this.failureThreshold = failureThreshold;
+    }
+
+    /**
+     * Gets the max number of bytes per second to send a file to everyone with multicast.
+     * The max upload rate also applies, if lower.
+     *
+     * @return The max multicast file rate, or <code>0</code> for unlimited.
+     */
+    public long getMulticastFileRate() {
+        return multicastFileRate;
+    }
+
+    /**
+     * Sets the max number of bytes per second to send a file to everyone with multicast.
+     *
+     * @param multicastFileRate The max multicast file rate, or <code>0</code> for unlimited.
+     */
+    public void setMulticastFileRate(final long multicastFileRate) {
+        this.multicastFileRate = multicastFileRate;
+    }
+
     /**
      * If balloon notifications are enabled.
      *
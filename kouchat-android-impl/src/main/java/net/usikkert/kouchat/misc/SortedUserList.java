@@ -24,7 +24,10 @@ package net.usikkert.kouchat.misc;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 
 import net.usikkert.kouchat.event.UserListListener;
 import net.usikkert.kouchat.util.Validate;
@@ -35,6 +38,16 @@ import net.usikkert.kouchat.util.Validate;
  * <p>The users in the list are sorted by nick name,
  * as specified in {@link User#compareTo(User)}.</p>
  *
+ * <p>The list is kept sorted as it changes, instead of sorting the whole list each time.
+ * New users are inserted at the position found with a binary search, and a changed user is only
+ * moved if it's no longer in order with its neighbours. Users with the same nick name stay in the
+ * order they were added.</p>
+ *
+ * <p>The users are also indexed by unique code and by nick name, ignoring case, so looking up
+ * a user doesn't have to search the list. The list is thread safe, using the lock on the list
+ * itself. The listeners are notified while holding the lock, so the positions they get are
+ * always correct.</p>
+ *
  * @author Christian Ihle
  */
 public class SortedUserList implements UserList {
@@ -45,38 +58,48 @@ public class SortedUserList implements UserList {
     /** The list of listeners of changes to the user list. */
     private final List<UserListListener> listeners;
 
+    /** The users by their unique code. */
+    private final Map<Integer, User> usersByCode;
+
+    /** The users by their nick name in lower case, in the order they were indexed. */
+    private final Map<String, List<User>> usersByNick;
+
+    /** The nick name key each user is indexed with, since the nick name can change before the list is told. */
+    private final Map<User, String> indexedNicks;
+
     /**
      * Constructor.
      */
     public SortedUserList() {
         userList = new ArrayList<User>();
         listeners = new ArrayList<UserListListener>();
+        usersByCode = new HashMap<Integer, User>();
+        usersByNick = new HashMap<String, List<User>>();
+        indexedNicks = new IdentityHashMap<User, String>();
     }
 
     /**
-     * Adds the user, and then sorts the list.
+     * Adds the user at the sorted position.
      *
      * {@inheritDoc}
      */
     @Override
-    public boolean add(final User user) {
+    public synchronized boolean add(final User user) {
         Validate.notNull(user, "User can not be null");
 
-        final boolean success = userList.add(user);
-
-        if (success) {
-            Collections.sort(userList);
-            fireUserAdded(userList.indexOf(user), user);
-        }
+        final int pos = findPositionAfter(user, 0, userList.size());
+        userList.add(pos, user);
+        index(user);
+        fireUserAdded(pos, user);
 
-        return success;
+        return true;
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public User get(final int pos) {
+    public synchronized User get(final int pos) {
         if (pos < userList.size()) {
             return userList.get(pos);
         } else {
@@ -88,9 +111,16 @@ public class SortedUserList implements UserList {
      * {@inheritDoc}
      */
     @Override
-    public int indexOf(final User user) {
+    public synchronized int indexOf(final User user) {
         Validate.notNull(user, "User can not be null");
 
+        final int pos = findUser(user);
+
+        if (pos != -1) {
+            return pos;
+        }
+
+        // The nick name may have changed without calling set() yet
         return userList.indexOf(user);
     }
 
@@ -98,31 +128,37 @@ public class SortedUserList implements UserList {
      * {@inheritDoc}
      */
     @Override
-    public boolean remove(final User user) {
+    public synchronized boolean remove(final User user) {
         Validate.notNull(user, "User can not be null");
 
-        final int pos = userList.indexOf(user);
-        final boolean success = userList.remove(user);
+        final int pos = indexOf(user);
 
-        if (success) {
-            fireUserRemoved(pos, user);
+        if (pos == -1) {
+            return false;
         }
 
-        return success;
+        userList.remove(pos);
+        unindex(user);
+        fireUserRemoved(pos, user);
+
+        return true;
     }
 
     /**
-     * Sets the user, and then sorts the list.
+     * Sets the user, and then moves it to the sorted position, if necessary.
      *
      * {@inheritDoc}
      */
     @Override
-    public User set(final int pos, final User user) {
+    public synchronized User set(final int pos, final User user) {
         Validate.notNull(user, "User can not be null");
 
         final User oldUser = userList.set(pos, user);
-        Collections.sort(userList);
-        fireUserChanged(userList.indexOf(user), user);
+        unindex(oldUser);
+        index(user);
+
+        final int newPos = reposition(pos, user);
+        fireUserChanged(newPos, user);
 
         return oldUser;
     }
@@ -131,7 +167,255 @@ public class SortedUserList implements UserList {
      * {@inheritDoc}
      */
     @Override
-    public int size() {
+    public synchronized boolean update(final User user) {
+        Validate.notNull(user, "User can not be null");
+
+        final int pos = indexOf(user);
+
+        if (pos == -1) {
+            return false;
+        }
+
+        set(pos, user);
+
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized User getUser(final int code) {
+        return usersByCode.get(code);
+    }
+
+    /**
+     * Gets the user from the index of nick names. Users with a nick name that changed
+     * after it was indexed are skipped.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized User getUser(final String nick) {
+        if (nick == null) {
+            return null;
+        }
+
+        final List<User> users = usersByNick.get(toKey(nick));
+
+        if (users != null) {
+            for (final User user : users) {
+                if (user.getNick().equalsIgnoreCase(nick)) {
+                    return user;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Checks all the users in the index with the nick name, since the application user can have
+     * the same nick name as another user for a while, and is then often the first one indexed.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized boolean isNickInUseByOthers(final String nick) {
+        if (nick == null) {
+            return false;
+        }
+
+        final List<User> users = usersByNick.get(toKey(nick));
+
+        if (users != null) {
+            for (final User user : users) {
+                if (!user.isMe() && user.getNick().equalsIgnoreCase(nick)) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized List<User> getUsers() {
+        return new ArrayList<User>(userList);
+    }
+
+    /**
+     * Adds the user to the indexes, with the current nick name.
+     *
+     * @param user The user to index.
+     */
+    private void index(final User user) {
+        usersByCode.put(user.getCode(), user);
+
+        final String key = toKey(user.getNick());
+        List<User> users = usersByNick.get(key);
+
+        if (users == null) {
+            users = new ArrayList<User>(1);
+            usersByNick.put(key, users);
+        }
+
+        users.add(user);
+        indexedNicks.put(user, key);
+    }
+
+    /**
+     * Removes the user from the indexes, using the nick name it was indexed with.
+     *
+     * @param user The user to remove from the indexes.
+     */
+    private void unindex(final User user) {
+        if (usersByCode.get(user.getCode()) == user) {
+            usersByCode.remove(user.getCode());
+        }
+
+        final String key = indexedNicks.remove(user);
+        final List<User> users = usersByNick.get(key);
+
+        if (users != null) {
+            users.remove(user);
+
+            if (users.isEmpty()) {
+                usersByNick.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Converts the nick name to the key in the index of nick names. Nick names that are
+     * equal ignoring case, as in {@link String#equalsIgnoreCase(String)}, get the same key.
+     *
+     * @param nick The nick name.
+     * @return The key for the nick name.
+     */
+    private String toKey(final String nick) {
+        final char[] key = nick.toCharArray();
+
+        for (int i = 0; i < key.length; i++) {
+            key[i] = Character.toLowerCase(Character.toUpperCase(key[i]));
+        }
+
+        return new String(key);
+    }
+
+    /**
+     * Moves the user at the position to where it belongs in the sorted list. The rest of the list
+     * is already sorted, so only the users between the old and the new position are shifted.
+     * Users with the same nick name as the moved user keep their order relative to it.
+     *
+     * @param pos The current position of the user.
+     * @param user The user to move.
+     * @return The new position of the user.
+     */
+    private int reposition(final int pos, final User user) {
+        if (pos > 0 && userList.get(pos - 1).compareTo(user) > 0) {
+            final int newPos = findPositionAfter(user, 0, pos);
+            Collections.rotate(userList.subList(newPos, pos + 1), 1);
+
+            return newPos;
+        }
+
+        if (pos < userList.size() - 1 && user.compareTo(userList.get(pos + 1)) > 0) {
+            // The user is still in the list before the new position, so it ends up one step earlier
+            final int newPos = findPositionBefore(user, pos + 1, userList.size()) - 1;
+            Collections.rotate(userList.subList(pos, newPos + 1), -1);
+
+            return newPos;
+        }
+
+        return pos;
+    }
+
+    /**
+     * Finds the position to insert the user at, after any users with the same nick name,
+     * using a binary search between the positions.
+     *
+     * @param user The user to find the position for.
+     * @param from The first position to search, inclusive.
+     * @param to The last position to search, exclusive.
+     * @return The first position with a user sorted after the user, or <code>to</code> if there are none.
+     */
+    private int findPositionAfter(final User user, final int from, final int to) {
+        int low = from;
+        int high = to;
+
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+
+            if (userList.get(middle).compareTo(user) > 0) {
+                high = middle;
+            }
+
+            else {
+                low = middle + 1;
+            }
+        }
+
+        return low;
+    }
+
+    /**
+     * Finds the position to insert the user at, before any users with the same nick name,
+     * using a binary search between the positions.
+     *
+     * @param user The user to find the position for.
+     * @param from The first position to search, inclusive.
+     * @param to The last position to search, exclusive.
+     * @return The first position with a user not sorted before the user, or <code>to</code> if there are none.
+     */
+    private int findPositionBefore(final User user, final int from, final int to) {
+        int low = from;
+        int high = to;
+
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+
+            if (userList.get(middle).compareTo(user) < 0) {
+                low = middle + 1;
+            }
+
+            else {
+                high = middle;
+            }
+        }
+
+        return low;
+    }
+
+    /**
+     * Finds the user with a binary search for the nick name.
+     *
+     * @param user The user to find.
+     * @return The position of the user, or <code>-1</code> if not found where the nick name belongs.
+     */
+    private int findUser(final User user) {
+        int pos = findPositionBefore(user, 0, userList.size());
+
+        // Several users can have the same nick name
+        while (pos < userList.size() && userList.get(pos).compareTo(user) == 0) {
+            if (userList.get(pos).equals(user)) {
+                return pos;
+            }
+
+            pos++;
+        }
+
+        return -1;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized int size() {
         return userList.size();
     }
 
@@ -139,7 +423,7 @@ public class SortedUserList implements UserList {
      * {@inheritDoc}
      */
     @Override
-    public void addUserListListener(final UserListListener listener) {
+    public synchronized void addUserListListener(final UserListListener listener) {
         Validate.notNull(listener, "UserListListener can not be null");
 
         listeners.add(listener);
@@ -149,7 +433,7 @@ public class SortedUserList implements UserList {
      * {@inheritDoc}
      */
     @Override
-    public void removeUserListListener(final UserListListener listener) {
+    public synchronized void removeUserListListener(final UserListListener listener) {
         Validate.notNull(listener, "UserListListener can not be null");
 
         listeners.remove(listener);
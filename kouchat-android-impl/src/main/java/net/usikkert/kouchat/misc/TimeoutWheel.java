@@ -0,0 +1,250 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.misc;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A hashed timing wheel, keeping track of when the users time out.
+ *
+ * <p>Time is divided into ticks. The wheel has a slot for each tick, and a timeout is put in the slot
+ * for the tick when it's due. Moving the timeout forward just moves it to another slot. When the wheel
+ * is advanced, only the slots for the ticks that have passed are checked, so the work is proportional to
+ * the number of timeouts actually due, and not to the number of users on the network.</p>
+ *
+ * <p>A timeout further away than one turn of the wheel shares the slot with timeouts due earlier,
+ * and stays in the slot until its own turn. Make the wheel large enough to cover the usual timeout
+ * to avoid this.</p>
+ *
+ * <p>Timeouts fire at most one tick late. This class is thread safe.</p>
+ *
+ * @author Christian Ihle
+ */
+public class TimeoutWheel {
+
+    /** The number of milliseconds in each tick. */
+    private final long tickDuration;
+
+    /** The slots of the wheel, with the keys of the timeouts due in each tick. */
+    private final List<Set<Integer>> slots;
+
+    /** The timeouts in the wheel, by key. */
+    private final Map<Integer, Timeout> timeouts;
+
+    /** The next tick to check for timeouts. */
+    private long currentTick;
+
+    /**
+     * Constructor.
+     *
+     * @param tickDuration The number of milliseconds in each tick.
+     * @param wheelSize The number of slots in the wheel.
+     * @param now The current time, in milliseconds.
+     */
+    public TimeoutWheel(final long tickDuration, final int wheelSize, final long now) {
+        this.tickDuration = tickDuration;
+
+        slots = new ArrayList<Set<Integer>>(wheelSize);
+
+        for (int i = 0; i < wheelSize; i++) {
+            slots.add(new HashSet<Integer>());
+        }
+
+        timeouts = new HashMap<Integer, Timeout>();
+        currentTick = now / tickDuration;
+    }
+
+    /**
+     * Schedules a timeout, or moves the timeout if the key already has one.
+     * A deadline that has already passed is due at the next tick.
+     *
+     * @param key The key of the timeout, like the user code.
+     * @param deadline When the timeout is due, in milliseconds.
+     */
+    public synchronized void schedule(final int key, final long deadline) {
+        cancel(key);
+
+        final long tick = Math.max(getTick(deadline), currentTick);
+        final int slot = getSlot(tick);
+
+        slots.get(slot).add(key);
+        timeouts.put(key, new Timeout(deadline, slot));
+    }
+
+    /**
+     * Removes the timeout for the key.
+     *
+     * @param key The key of the timeout.
+     * @return If the key had a timeout.
+     */
+    public synchronized boolean cancel(final int key) {
+        final Timeout timeout = timeouts.remove(key);
+
+        if (timeout == null) {
+            return false;
+        }
+
+        slots.get(timeout.getSlot()).remove(key);
+
+        return true;
+    }
+
+    /**
+     * Checks if the key has a timeout.
+     *
+     * @param key The key of the timeout.
+     * @return If the key has a timeout.
+     */
+    public synchronized boolean contains(final int key) {
+        return timeouts.containsKey(key);
+    }
+
+    /**
+     * Gets the number of timeouts in the wheel.
+     *
+     * @return The number of timeouts.
+     */
+    public synchronized int size() {
+        return timeouts.size();
+    }
+
+    /**
+     * Advances the wheel to the current time, and removes the timeouts that are due.
+     *
+     * @param now The current time, in milliseconds.
+     * @return The keys of the timeouts that were due.
+     */
+    public synchronized List<Integer> expire(final long now) {
+        final List<Integer> expired = new ArrayList<Integer>();
+        final long nowTick = now / tickDuration;
+
+        // Every slot is checked at most once, even if the wheel has not been advanced for a long time
+        long tick = Math.max(currentTick, nowTick - slots.size() + 1);
+
+        while (tick <= nowTick) {
+            final Iterator<Integer> keys = slots.get(getSlot(tick)).iterator();
+
+            while (keys.hasNext()) {
+                final Integer key = keys.next();
+
+                if (timeouts.get(key).getDeadline() <= now) {
+                    keys.remove();
+                    timeouts.remove(key);
+                    expired.add(key);
+                }
+            }
+
+            tick++;
+        }
+
+        currentTick = Math.max(currentTick, tick);
+
+        return expired;
+    }
+
+    /**
+     * Gets the time of the next tick with any timeouts in the wheel.
+     *
+     * @return The time of the next tick with timeouts, in milliseconds, or <code>-1</code> if the wheel is empty.
+     */
+    public synchronized long getNextExpiryTime() {
+        if (timeouts.isEmpty()) {
+            return -1;
+        }
+
+        for (long tick = currentTick; tick < currentTick + slots.size(); tick++) {
+            if (!slots.get(getSlot(tick)).isEmpty()) {
+                return tick * tickDuration;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Gets the first tick starting at or after the time.
+     *
+     * @param time The time, in milliseconds.
+     * @return The tick.
+     */
+    private long getTick(final long time) {
+        return (time + tickDuration - 1) / tickDuration;
+    }
+
+    /**
+     * Gets the slot in the wheel for the tick.
+     *
+     * @param tick The tick.
+     * @return The slot.
+     */
+    private int getSlot(final long tick) {
+        return (int) (tick % slots.size());
+    }
+
+    /**
+     * A timeout in the wheel.
+     */
+    private static class Timeout {
+
+        /** When the timeout is due, in milliseconds. */
+        private final long deadline;
+
+        /** The slot in the wheel the timeout is in. */
+        private final int slot;
+
+        /**
+         * Constructor.
+         *
+         * @param deadline When the timeout is due, in milliseconds.
+         * @param slot The slot in the wheel the timeout is in.
+         */
+        Timeout(final long deadline, final int slot) {
+            this.deadline = deadline;
+            this.slot = slot;
+        }
+
+        /**
+         * Gets when the timeout is due.
+         *
+         * @return The deadline, in milliseconds.
+         */
+        public long getDeadline() {
+            return deadline;
+        }
+
+        /**
+         * Gets the slot in the wheel the timeout is in.
+         *
+         * @return The slot.
+         */
+        public int getSlot() {
+            return slot;
+        }
+    }
+}
@@ -22,6 +22,11 @@
 
 package net.usikkert.kouchat.misc;
 
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+import net.usikkert.kouchat.net.Capability;
 import net.usikkert.kouchat.ui.PrivateChatWindow;
 
 /**
@@ -46,6 +51,9 @@ public class User implements Comparable<User> {
     /** Which type of chat client the user is connected with, like <code>KouChat v.1.0.0 Swing</code>. */
     private String client;
 
+    /** The optional protocol features supported by the user's client. */
+    private Set<Capability> capabilities;
+
     /** The user's host name. */
     private String hostName;
 
@@ -104,6 +112,7 @@ public class User implements Comparable<User> {
         logonTime = 0;
         operatingSystem = "<unknown>";
         client = "<unknown>";
+        capabilities = Collections.emptySet();
         hostName = null;
         newMsg = false;
         privateChatPort = 0;
@@ -316,6 +325,40 @@ public class User implements Comparable<User> {
         this.client = client;
     }
 
+    /**
+     * Gets the optional protocol features supported by the user's client.
+     *
+     * @return The capabilities of the client. Can not be modified.
+     */
+    public Set<Capability> getCapabilities() {
+        return capabilities;
+    }
+
+    /**
+     * Sets the optional protocol features supported by the user's client.
+     *
+     * @param capabilities The capabilities of the client.
+     */
+    public void setCapabilities(final Set<Capability> capabilities) {
+        if (capabilities.isEmpty()) {
+            this.capabilities = Collections.emptySet();
+        }
+
+        else {
+            this.capabilities = Collections.unmodifiableSet(EnumSet.copyOf(capabilities));
+        }
+    }
+
+    /**
+     * Checks if the user's client supports the optional protocol feature.
+     *
+     * @param capability The capability to check.
+     * @return If the client has the capability.
+     */
+    public boolean hasCapability(final Capability capability) {
+        return capabilities.contains(capability);
+    }
+
     /**
      * Gets the private chat window connected to this user.
      *
@@ -22,6 +22,8 @@
 
 package net.usikkert.kouchat.misc;
 
+import java.util.List;
+
 import net.usikkert.kouchat.event.UserListListener;
 
 /**
@@ -83,6 +85,52 @@ public interface UserList {
      */
     User set(int pos, User user);
 
+    /**
+     * Updates the position of the user after the user has changed,
+     * and notifies with {@link UserListListener#userChanged(int, User)}.
+     *
+     * <p>Safer than {@link #set(int, User)} when other threads can change the list,
+     * since the position of the user is found while changing the list. The nick name
+     * of a user in the list should be changed while holding the lock on the list,
+     * so other threads don't see the list out of order before the update.</p>
+     *
+     * @param user The user that changed.
+     * @return If the user was in the list.
+     */
+    boolean update(User user);
+
+    /**
+     * Gets the user with the unique code.
+     *
+     * @param code The unique code of the user.
+     * @return The user, or <code>null</code> if not found.
+     */
+    User getUser(int code);
+
+    /**
+     * Gets the user with the nick name, ignoring case.
+     *
+     * @param nick The nick name of the user.
+     * @return The user, or <code>null</code> if not found.
+     */
+    User getUser(String nick);
+
+    /**
+     * Checks if any user except the application user has the nick name, ignoring case.
+     *
+     * @param nick The nick name to check.
+     * @return If another user has the nick name.
+     */
+    boolean isNickInUseByOthers(String nick);
+
+    /**
+     * Gets a copy of the users in the list, in the same order as the list.
+     * The copy can be used without being affected by changes to the list.
+     *
+     * @return The users in the list.
+     */
+    List<User> getUsers();
+
     /**
      * Gets the number for users in the list.
      *
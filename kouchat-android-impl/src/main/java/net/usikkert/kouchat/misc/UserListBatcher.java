@@ -0,0 +1,281 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.misc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.usikkert.kouchat.event.UserListBatchListener;
+import net.usikkert.kouchat.event.UserListChange;
+import net.usikkert.kouchat.event.UserListListener;
+import net.usikkert.kouchat.util.Validate;
+
+/**
+ * Collects the changes to the user list for a short time, and delivers them together
+ * to the {@link UserListBatchListener}s.
+ *
+ * <p>When the network comes up, or many users log on at once, the user list gets a burst of changes.
+ * Instead of updating the ui once for every change, the listeners get one batch for the whole burst.</p>
+ *
+ * <p>The first change starts the batch. The batch is delivered when no new changes have arrived for
+ * the quiet period, or when the max delay is over, whichever comes first. A steady stream of changes
+ * is then still delivered regularly.</p>
+ *
+ * <p>The listeners are notified from the batcher thread, without holding any locks. If the batcher
+ * thread is not running, each change is delivered directly as a batch of one.</p>
+ *
+ * @author Christian Ihle
+ */
+public class UserListBatcher implements UserListListener, Runnable {
+
+    /** The logger. */
+    private static final Logger LOG = Logger.getLogger(UserListBatcher.class.getName());
+
+    /** The default number of milliseconds without changes before a batch is delivered. */
+    public static final int QUIET_PERIOD = 50;
+
+    /** The default max number of milliseconds to wait before a batch is delivered. */
+    public static final int MAX_DELAY = 250;
+
+    /** The listeners getting the batches. */
+    private final List<UserListBatchListener> listeners;
+
+    /** The number of milliseconds without changes before a batch is delivered. */
+    private final long quietPeriod;
+
+    /** The max number of milliseconds to wait before a batch is delivered. */
+    private final long maxDelay;
+
+    /** The changes waiting to be delivered. */
+    private List<UserListChange> pending;
+
+    /** When the last change was added, in milliseconds. */
+    private long lastChange;
+
+    /** If the batcher thread is accepting changes. */
+    private boolean running;
+
+    /** The batcher thread, or <code>null</code> if not running. */
+    private Thread worker;
+
+    /**
+     * Constructor. Uses the default quiet period and max delay.
+     */
+    public UserListBatcher() {
+        this(QUIET_PERIOD, MAX_DELAY);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param quietPeriod The number of milliseconds without changes before a batch is delivered.
+     * @param maxDelay The max number of milliseconds to wait before a batch is delivered.
+     */
+    public UserListBatcher(final int quietPeriod, final int maxDelay) {
+        this.quietPeriod = quietPeriod;
+        this.maxDelay = maxDelay;
+
+        listeners = new CopyOnWriteArrayList<UserListBatchListener>();
+        pending = new ArrayList<UserListChange>();
+    }
+
+    /**
+     * Starts the batcher thread, if not already running.
+     */
+    public synchronized void start() {
+        running = true;
+
+        if (worker == null) {
+            worker = new Thread(this, "UserListBatcher");
+            worker.start();
+        }
+    }
+
+    /**
+     * Stops accepting new changes. The batcher thread delivers the changes
+     * already waiting without waiting any longer, before it stops.
+     */
+    public synchronized void stop() {
+        running = false;
+        notifyAll();
+    }
+
+    /**
+     * Adds a listener for batches of changes to the user list.
+     *
+     * @param listener The listener to add.
+     */
+    public void addUserListBatchListener(final UserListBatchListener listener) {
+        Validate.notNull(listener, "Listener can not be null");
+        listeners.add(listener);
+    }
+
+    /**
+     * Removes a listener for batches of changes to the user list.
+     *
+     * @param listener The listener to remove.
+     */
+    public void removeUserListBatchListener(final UserListBatchListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Adds the change to the next batch.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void userAdded(final int pos, final User user) {
+        add(new UserListChange(UserListChange.Type.ADDED, pos, user));
+    }
+
+    /**
+     * Adds the change to the next batch.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void userChanged(final int pos, final User user) {
+        add(new UserListChange(UserListChange.Type.CHANGED, pos, user));
+    }
+
+    /**
+     * Adds the change to the next batch.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void userRemoved(final int pos, final User user) {
+        add(new UserListChange(UserListChange.Type.REMOVED, pos, user));
+    }
+
+    /**
+     * Gets the number of changes waiting to be delivered.
+     *
+     * @return The number of waiting changes.
+     */
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * The batcher thread. Waits for the burst of changes to end, and delivers the waiting changes.
+     */
+    @Override
+    public void run() {
+        while (true) {
+            final List<UserListChange> changes;
+
+            synchronized (this) {
+                while (running && pending.isEmpty()) {
+                    waitFor(0);
+                }
+
+                if (pending.isEmpty()) {
+                    worker = null;
+                    return;
+                }
+
+                waitForQuietPeriod();
+
+                changes = pending;
+                pending = new ArrayList<UserListChange>();
+            }
+
+            deliver(changes);
+        }
+    }
+
+    /**
+     * Adds a change to the next batch, or delivers it directly if the batcher thread is not running.
+     *
+     * @param change The change to add.
+     */
+    private void add(final UserListChange change) {
+        synchronized (this) {
+            if (running) {
+                pending.add(change);
+                lastChange = System.currentTimeMillis();
+                notifyAll();
+
+                return;
+            }
+        }
+
+        // Not running, so there is no batcher thread
+        deliver(Collections.singletonList(change));
+    }
+
+    /**
+     * Waits until there have been no changes for the quiet period, the max delay is over,
+     * or the batcher stops. Must be called while holding the lock.
+     */
+    private void waitForQuietPeriod() {
+        final long end = System.currentTimeMillis() + maxDelay;
+        long remaining = Math.min(quietPeriod, maxDelay);
+
+        while (running && remaining > 0) {
+            waitFor(remaining);
+
+            final long now = System.currentTimeMillis();
+            remaining = Math.min(lastChange + quietPeriod, end) - now;
+        }
+    }
+
+    /**
+     * Notifies the listeners of the changes.
+     *
+     * @param changes The changes to deliver.
+     */
+    private void deliver(final List<UserListChange> changes) {
+        if (LOG.isLoggable(Level.FINE)) {
+            LOG.log(Level.FINE, "Delivering " + changes.size() + " user list changes");
+        }
+
+        final List<UserListChange> unmodifiableChanges = Collections.unmodifiableList(changes);
+
+        for (final UserListBatchListener listener : listeners) {
+            listener.usersChanged(unmodifiableChanges);
+        }
+    }
+
+    /**
+     * Waits for a change to be added, or for the batcher to stop.
+     * Must be called while holding the lock.
+     *
+     * @param timeout The max number of milliseconds to wait, or <code>0</code> to wait until notified.
+     */
+    private void waitFor(final long timeout) {
+        try {
+            wait(timeout);
+        }
+
+        catch (final InterruptedException e) {
+            LOG.log(Level.FINE, e.toString());
+        }
+    }
+}
@@ -22,13 +22,15 @@
 
 package net.usikkert.kouchat.misc;
 
+import net.usikkert.kouchat.net.Capability;
 import net.usikkert.kouchat.util.Validate;
 
 /**
  * This is the controller responsible for the user list.
  *
  * It contains methods for getting information about users,
- * and updating the state of users.
+ * and updating the state of users. Users are looked up by code
+ * and nick name using the indexes of the {@link SortedUserList}.
  *
  * @author Christian Ihle
  */
@@ -37,6 +39,9 @@ public class UserListController {
     /** The user list. */
     private final UserList userList;
 
+    /** The application user. */
+    private final User me;
+
     /**
      * Constructor.
      *
@@ -47,8 +52,9 @@ public class UserListController {
     public UserListController(final Settings settings) {
         Validate.notNull(settings, "Settings can not be null");
 
+        me = settings.getMe();
         userList = new SortedUserList();
-        userList.add(settings.getMe());
+        userList.add(me);
     }
 
     /**
@@ -58,18 +64,7 @@ public class UserListController {
      * @return The user, or <code>null</code> if the user was not found.
      */
     public User getUser(final int code) {
-        User user = null;
-
-        for (int i = 0; i < userList.size(); i++) {
-            final User temp = userList.get(i);
-
-            if (temp.getCode() == code) {
-                user = temp;
-                break;
-            }
-        }
-
-        return user;
+        return userList.getUser(code);
     }
 
     /**
@@ -79,18 +74,12 @@ public class UserListController {
      * @return The user, or <code>null</code> if the user was not found.
      */
     public User getUser(final String nickname) {
-        User user = null;
-
-        for (int i = 0; i < userList.size(); i++) {
-            final User temp = userList.get(i);
-
-            if (temp.getNick().equalsIgnoreCase(nickname)) {
-                user = temp;
-                break;
-            }
+        // The application user can change nick name before logging on, without going through the user list
+        if (me.getNick().equalsIgnoreCase(nickname)) {
+            return me;
         }
 
-        return user;
+        return userList.getUser(nickname);
     }
 
     /**
@@ -100,13 +89,13 @@ public class UserListController {
      * @param nickname The new nick name of the user.
      */
     public void changeNickName(final int code, final String nickname) {
-        for (int i = 0; i < userList.size(); i++) {
-            final User temp = userList.get(i);
+        final User user = userList.getUser(code);
 
-            if (temp.getCode() == code) {
-                temp.setNick(nickname);
-                userList.set(i, temp);
-                break;
+        if (user != null) {
+            // Other threads must not see the list out of order while the nick name changes
+            synchronized (userList) {
+                user.setNick(nickname);
+                userList.update(user);
             }
         }
     }
@@ -119,15 +108,12 @@ public class UserListController {
      * @param awaymsg The new away message.
      */
     public void changeAwayStatus(final int code, final boolean away, final String awaymsg) {
-        for (int i = 0; i < userList.size(); i++) {
-            final User temp = userList.get(i);
-
-            if (temp.getCode() == code) {
-                temp.setAway(away);
-                temp.setAwayMsg(awaymsg);
-                userList.set(i, temp);
-                break;
-            }
+        final User user = userList.getUser(code);
+
+        if (user != null) {
+            user.setAway(away);
+            user.setAwayMsg(awaymsg);
+            userList.update(user);
         }
     }
 
@@ -138,14 +124,11 @@ public class UserListController {
      * @param writing If the user is writing.
      */
     public void changeWriting(final int code, final boolean writing) {
-        for (int i = 0; i < userList.size(); i++) {
-            final User temp = userList.get(i);
+        final User user = userList.getUser(code);
 
-            if (temp.getCode() == code) {
-                temp.setWriting(writing);
-                userList.set(i, temp);
-                break;
-            }
+        if (user != null) {
+            user.setWriting(writing);
+            userList.update(user);
         }
     }
 
@@ -156,14 +139,11 @@ public class UserListController {
      * @param newMsg If the user has new private messages.
      */
     public void changeNewMessage(final int code, final boolean newMsg) {
-        for (int i = 0; i < userList.size(); i++) {
-            final User temp = userList.get(i);
+        final User user = userList.getUser(code);
 
-            if (temp.getCode() == code) {
-                temp.setNewPrivMsg(newMsg);
-                userList.set(i, temp);
-                break;
-            }
+        if (user != null) {
+            user.setNewPrivMsg(newMsg);
+            userList.update(user);
         }
     }
 
@@ -174,18 +154,7 @@ public class UserListController {
      * @return If the nick name is in use.
      */
     public boolean isNickNameInUse(final String nickname) {
-        boolean inUse = false;
-
-        for (int i = 0; i < userList.size(); i++) {
-            final User temp = userList.get(i);
-
-            if (temp.getNick().equalsIgnoreCase(nickname) && !temp.isMe()) {
-                inUse = true;
-                break;
-            }
-        }
-
-        return inUse;
+        return userList.isNickInUseByOthers(nickname);
     }
 
     /**
@@ -195,18 +164,7 @@ public class UserListController {
      * @return If the user is new, which means it is not in the user list.
      */
     public boolean isNewUser(final int code) {
-        boolean newUser = true;
-
-        for (int i = 0; i < userList.size(); i++) {
-            final User temp = userList.get(i);
-
-            if (temp.getCode() == code) {
-                newUser = false;
-                break;
-            }
-        }
-
-        return newUser;
+        return userList.getUser(code) == null;
     }
 
     /**
@@ -220,10 +178,40 @@ public class UserListController {
      * @return If there are any timeout users.
      */
     public boolean isTimeoutUsers() {
-        for (int i = 0; i < userList.size(); i++) {
-            final User temp = userList.get(i);
+        for (final User user : userList.getUsers()) {
+            if (user.getNick().equals("" + user.getCode())) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Checks if all the other users in the chat have the capability.
+     *
+     * @param capability The capability to check.
+     * @return If all the other users have the capability.
+     */
+    public boolean isCapabilitySupported(final Capability capability) {
+        for (final User user : userList.getUsers()) {
+            if (!user.isMe() && !user.hasCapability(capability)) {
+                return false;
+            }
+        }
 
-            if (temp.getNick().equals("" + temp.getCode())) {
+        return true;
+    }
+
+    /**
+     * Checks if at least one of the other users has the capability.
+     *
+     * @param capability The capability to check.
+     * @return If any of the other users have the capability.
+     */
+    public boolean isCapabilitySupportedByAnyone(final Capability capability) {
+        for (final User user : userList.getUsers()) {
+            if (!user.isMe() && user.hasCapability(capability)) {
                 return true;
             }
         }
@@ -0,0 +1,194 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Optional features of the network protocol, that a client can support.
+ *
+ * <p>The capabilities of a client are advertised at the end of the <code>CLIENT</code> message,
+ * after the private chat port, like <code>&lt;5000&gt;caps=batch</code>. Older clients ignore
+ * anything after the port, and never advertise any capabilities.</p>
+ *
+ * <p>A feature should only be used towards the other users when all of them have the capability.</p>
+ *
+ * @author Christian Ihle
+ */
+public enum Capability {
+
+    /** Can unpack several messages sent together in one <code>BATCH</code> message. */
+    BATCH("batch"),
+
+    /** Can put together a large message split into several <code>FRAGMENT</code> messages. */
+    FRAGMENT("fragment"),
+
+    /** Can resume an interrupted file transfer from the offset in the <code>SENDFILEACCEPT</code> message. */
+    RESUME("resume"),
+
+    /** Can send a file over several connections, when asked for in the <code>SENDFILEACCEPT</code> message. */
+    PARALLEL("parallel"),
+
+    /** Can exchange a checksum of the content at the end of a file transfer. */
+    CHECKSUM("checksum"),
+
+    /** Can identify each file transfer connection with a handshake, when asked for in the <code>SENDFILEACCEPT</code> message. */
+    HANDSHAKE("handshake"),
+
+    /** Can send and receive a small file inline in a <code>SENDFILEDATA</code> private message. */
+    INLINE("inline"),
+
+    /** Can receive a file offered to everyone in a <code>SENDGROUPFILE</code> message, from a multicast group. */
+    MULTICAST("multicast"),
+
+    /** Can keep a file transfer connection open, and use it again for the next file transfer with the same handshake. */
+    KEEPALIVE("keepalive");
+
+    /** The text before the list of capabilities in the <code>CLIENT</code> message. */
+    public static final String PREFIX = "caps=";
+
+    /** The character separating the capabilities in the list. */
+    private static final char SEPARATOR = ',';
+
+    /** All the capabilities supported by this client. */
+    private static final Set<Capability> SUPPORTED = Collections.unmodifiableSet(EnumSet.allOf(Capability.class));
+
+    /** The capabilities supported by this client when file transfers use streams instead of channels. */
+    private static final Set<Capability> SUPPORTED_WITHOUT_CHANNELS =
+            Collections.unmodifiableSet(EnumSet.complementOf(EnumSet.of(PARALLEL, KEEPALIVE)));
+
+    /** The name of the capability, as used in the <code>CLIENT</code> message. */
+    private final String name;
+
+    /**
+     * Constructor.
+     *
+     * @param name The name of the capability, as used in the <code>CLIENT</code> message.
+     */
+    Capability(final String name) {
+        this.name = name;
+    }
+
+    /**
+     * Gets the name of the capability, as used in the <code>CLIENT</code> message.
+     *
+     * @return The name of the capability.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets the capabilities supported by this client.
+     *
+     * <p>Sending a file over several connections and keeping connections open both need channels,
+     * so those capabilities are left out when file transfers use streams.</p>
+     *
+     * @param channelTransfers If file transfers use channels.
+     * @return The supported capabilities. Can not be modified.
+     */
+    public static Set<Capability> getSupported(final boolean channelTransfers) {
+        if (channelTransfers) {
+            return SUPPORTED;
+        }
+
+        return SUPPORTED_WITHOUT_CHANNELS;
+    }
+
+    /**
+     * Creates the list of capabilities to advertise in the <code>CLIENT</code> message.
+     *
+     * @param capabilities The capabilities to advertise.
+     * @return The list, like <code>caps=batch</code>, or an empty string if there are no capabilities.
+     */
+    public static String format(final Set<Capability> capabilities) {
+        if (capabilities.isEmpty()) {
+            return "";
+        }
+
+        final StringBuilder list = new StringBuilder(PREFIX);
+
+        for (final Capability capability : capabilities) {
+            if (list.length() > PREFIX.length()) {
+                list.append(SEPARATOR);
+            }
+
+            list.append(capability.name);
+        }
+
+        return list.toString();
+    }
+
+    /**
+     * Parses the list of capabilities from the <code>CLIENT</code> message.
+     * Unknown capabilities are ignored.
+     *
+     * @param list The list, like <code>caps=batch</code>. Can be empty.
+     * @return The capabilities in the list.
+     */
+    public static Set<Capability> parse(final String list) {
+        final Set<Capability> capabilities = EnumSet.noneOf(Capability.class);
+
+        if (!list.startsWith(PREFIX)) {
+            return capabilities;
+        }
+
+        int start = PREFIX.length();
+
+        while (start < list.length()) {
+            int end = list.indexOf(SEPARATOR, start);
+
+            if (end == -1) {
+                end = list.length();
+            }
+
+            final Capability capability = get(list.substring(start, end).trim());
+
+            if (capability != null) {
+                capabilities.add(capability);
+            }
+
+            start = end + 1;
+        }
+
+        return capabilities;
+    }
+
+    /**
+     * Finds the capability with the given name.
+     *
+     * @param name The name of the capability, as used in the <code>CLIENT</code> message.
+     * @return The capability, or <code>null</code> if unknown.
+     */
+    private static Capability get(final String name) {
+        for (final Capability capability : values()) {
+            if (capability.name.equals(name)) {
+                return capability;
+            }
+        }
+
+        return null;
+    }
+}
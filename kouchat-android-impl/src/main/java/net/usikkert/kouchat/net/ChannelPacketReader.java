@@ -0,0 +1,191 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.usikkert.kouchat.Constants;
+import net.usikkert.kouchat.event.ByteReceiverListener;
+import net.usikkert.kouchat.event.ReceiverListener;
+
+/**
+ * Reads datagrams from a {@link DatagramChannel} into a reused direct buffer,
+ * and hands them over to a {@link ReceiverListener}.
+ *
+ * <p>Listeners implementing {@link ByteReceiverListener} get the buffer directly,
+ * so no objects are created for the message itself. Other listeners get the message
+ * decoded into a string, like with the socket based receivers.</p>
+ *
+ * <p>Not thread safe. Each receiving thread must use its own reader.</p>
+ *
+ * @author Christian Ihle
+ */
+class ChannelPacketReader {
+
+    /** The logger. */
+    private static final Logger LOG = Logger.getLogger(ChannelPacketReader.class.getName());
+
+    /** The max number of ip addresses to keep in the address cache. */
+    private static final int MAX_CACHED_ADDRESSES = 256;
+
+    /** The reused buffer every datagram is read into. */
+    private final ByteBuffer buffer;
+
+    /** The reused array used when decoding a message for listeners that need a string. */
+    private final byte[] decodeBuffer;
+
+    /** Cache of the string version of the ip addresses messages arrive from. */
+    private final Map<InetAddress, String> addressCache;
+
+    /**
+     * Constructor.
+     */
+    ChannelPacketReader() {
+        buffer = ByteBuffer.allocateDirect(Constants.NETWORK_PACKET_SIZE);
+        decodeBuffer = new byte[Constants.NETWORK_PACKET_SIZE];
+        addressCache = new AddressCache();
+    }
+
+    /**
+     * Receives a datagram from the channel, and notifies the listener.
+     *
+     * <p>Datagrams larger than {@link Constants#NETWORK_PACKET_SIZE} are truncated.</p>
+     *
+     * @param channel The channel to receive from.
+     * @param listener The listener to notify, or <code>null</code>.
+     * @return If a datagram was received. Will only be false for channels in non-blocking mode.
+     * @throws IOException If the channel failed to receive.
+     */
+    public boolean receive(final DatagramChannel channel, final ReceiverListener listener) throws IOException {
+        buffer.clear();
+        final SocketAddress sender = channel.receive(buffer);
+
+        if (sender == null) {
+            return false;
+        }
+
+        buffer.flip();
+        final String ip = getHostAddress(((InetSocketAddress) sender).getAddress());
+
+        if (LOG.isLoggable(Level.FINE)) {
+            LOG.log(Level.FINE, "Message arrived from " + ip + ": " + buffer.remaining() + " bytes");
+        }
+
+        if (listener instanceof ByteReceiverListener) {
+            ((ByteReceiverListener) listener).messageArrived(buffer, ip);
+        }
+
+        else if (listener != null) {
+            listener.messageArrived(decodeMessage(), ip);
+        }
+
+        return true;
+    }
+
+    /**
+     * Receives the datagrams waiting in a non-blocking channel, and notifies the listener of each of them.
+     *
+     * @param channel The channel to receive from. Must be in non-blocking mode.
+     * @param listener The listener to notify, or <code>null</code>.
+     * @param maxDatagrams The max number of datagrams to receive, to give other channels a chance.
+     * @return The number of datagrams received.
+     * @throws IOException If the channel failed to receive.
+     */
+    public int receiveAvailable(final DatagramChannel channel, final ReceiverListener listener, final int maxDatagrams)
+            throws IOException {
+        int received = 0;
+
+        while (received < maxDatagrams && receive(channel, listener)) {
+            received++;
+        }
+
+        return received;
+    }
+
+    /**
+     * Decodes the message in the buffer into a string, trimmed the same way as
+     * the messages from the socket based receivers.
+     *
+     * @return The decoded message.
+     * @throws IOException If the message charset is unsupported.
+     */
+    private String decodeMessage() throws IOException {
+        final int length = buffer.remaining();
+        buffer.get(decodeBuffer, 0, length);
+
+        return new String(decodeBuffer, 0, length, Constants.MESSAGE_CHARSET).trim();
+    }
+
+    /**
+     * Gets the ip address as a string, from the cache if possible.
+     *
+     * @param address The address to get the ip address for.
+     * @return The ip address as a string.
+     */
+    private String getHostAddress(final InetAddress address) {
+        String ip = addressCache.get(address);
+
+        if (ip == null) {
+            ip = address.getHostAddress();
+            addressCache.put(address, ip);
+        }
+
+        return ip;
+    }
+
+    /**
+     * A small cache of ip addresses, that throws out the least recently used
+     * address when full.
+     */
+    private static class AddressCache extends LinkedHashMap<InetAddress, String> {
+
+        /** Standard serial version UID. */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Constructor. Creates a cache ordered by access.
+         */
+        AddressCache() {
+            super(16, 0.75f, true);
+        }
+
+        /**
+         * Removes the least recently used address when the cache is full.
+         *
+         * {@inheritDoc}
+         */
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<InetAddress, String> eldest) {
+            return size() > MAX_CACHED_ADDRESSES;
+        }
+    }
+}
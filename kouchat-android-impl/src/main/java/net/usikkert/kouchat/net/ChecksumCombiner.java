@@ -0,0 +1,175 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+/**
+ * Combines the CRC32 checksums of two blocks of bytes into the CRC32 of the blocks after each other,
+ * without the bytes. Works like <code>crc32_combine()</code> in zlib.
+ *
+ * <p>Appending a block to the first block is the same as appending that many zero bytes to the first
+ * block, and then adding the checksum of the block. Appending zero bytes is a linear operation on the checksum,
+ * so it's done as a 32x32 bit matrix, squared once for each bit in the length.</p>
+ *
+ * <p>An instance keeps the matrix for one block length, so combining a block of that length
+ * only costs one matrix multiplication.</p>
+ *
+ * @author Christian Ihle
+ */
+class ChecksumCombiner {
+
+    /** The reversed CRC32 polynomial. */
+    private static final long POLYNOMIAL = 0xedb88320L;
+
+    /** The number of bits in the checksum. */
+    private static final int BITS = 32;
+
+    /** The matrix for appending the block length of zero bytes. */
+    private final long[] operator;
+
+    /** The length of the blocks to append. */
+    private final long length;
+
+    /**
+     * Constructor.
+     *
+     * @param length The length of the blocks to append.
+     */
+    ChecksumCombiner(final long length) {
+        this.length = length;
+
+        operator = new long[BITS];
+
+        for (int bit = 0; bit < BITS; bit++) {
+            operator[bit] = combine(1L << bit, 0, length);
+        }
+    }
+
+    /**
+     * Combines the checksum of the first bytes with the checksum of the block appended to them.
+     *
+     * @param first The checksum of the first bytes.
+     * @param block The checksum of the block, with the length of this combiner.
+     * @return The checksum of the first bytes followed by the block.
+     */
+    public long combine(final long first, final long block) {
+        if (length <= 0) {
+            return first;
+        }
+
+        return times(operator, first) ^ block;
+    }
+
+    /**
+     * Combines the checksum of the first bytes with the checksum of a block of any length appended to them.
+     *
+     * @param first The checksum of the first bytes.
+     * @param block The checksum of the block.
+     * @param blockLength The length of the block.
+     * @return The checksum of the first bytes followed by the block.
+     */
+    static long combine(final long first, final long block, final long blockLength) {
+        if (blockLength <= 0) {
+            return first;
+        }
+
+        final long[] even = new long[BITS];
+        final long[] odd = new long[BITS];
+
+        // The operator for one zero bit
+        odd[0] = POLYNOMIAL;
+        long row = 1;
+
+        for (int n = 1; n < BITS; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+
+        // The operators for two and four zero bits
+        square(even, odd);
+        square(odd, even);
+
+        long crc = first;
+        long remaining = blockLength;
+
+        // Each pass appends the zero bytes for one bit of the length
+        while (remaining != 0) {
+            square(even, odd);
+
+            if ((remaining & 1) != 0) {
+                crc = times(even, crc);
+            }
+
+            remaining >>>= 1;
+
+            if (remaining == 0) {
+                break;
+            }
+
+            square(odd, even);
+
+            if ((remaining & 1) != 0) {
+                crc = times(odd, crc);
+            }
+
+            remaining >>>= 1;
+        }
+
+        return crc ^ block;
+    }
+
+    /**
+     * Multiplies the matrix with the vector.
+     *
+     * @param matrix The matrix.
+     * @param vector The vector.
+     * @return The product.
+     */
+    private static long times(final long[] matrix, final long vector) {
+        long sum = 0;
+        long rest = vector;
+        int row = 0;
+
+        while (rest != 0) {
+            if ((rest & 1) != 0) {
+                sum ^= matrix[row];
+            }
+
+            rest >>>= 1;
+            row++;
+        }
+
+        return sum;
+    }
+
+    /**
+     * Squares the matrix.
+     *
+     * @param square The matrix to put the square in.
+     * @param matrix The matrix to square.
+     */
+    private static void square(final long[] square, final long[] matrix) {
+        for (int n = 0; n < BITS; n++) {
+            square[n] = times(matrix, matrix[n]);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+import net.usikkert.kouchat.misc.User;
+
+/**
+ * Exchanges the checksum of a file transfer at the end of the stream.
+ *
+ * <p>The sender updates a checksum with the bytes while sending them, and writes the value
+ * after the last byte of the file. The receiver updates its own checksum while receiving,
+ * compares it with the value from the sender, and answers with a single byte telling
+ * if they matched. The content is never read a second time to verify it.</p>
+ *
+ * <p>When a transfer is resumed, the value is the checksum of the bytes sent this time, from the resume offset.
+ * The receiver already compared the bytes from the earlier attempt with the checksum in its {@link TransferJournal}
+ * before resuming, so neither side reads them again at the end.</p>
+ *
+ * <p>Only used when the other user has the {@link Capability#CHECKSUM} capability.</p>
+ *
+ * @author Christian Ihle
+ */
+final class ChecksumExchange {
+
+    /** The number of bytes in a checksum, sent as a long. */
+    static final int CHECKSUM_SIZE = 8;
+
+    /** The answer from the receiver when the checksums matched. */
+    private static final byte MATCH = 1;
+
+    /** The answer from the receiver when the checksums did not match. */
+    private static final byte MISMATCH = 0;
+
+    /**
+     * Private constructor. Only static methods here.
+     */
+    private ChecksumExchange() {
+
+    }
+
+    /**
+     * Checks if the checksum should be exchanged with the user.
+     *
+     * @param user The other user in the file transfer.
+     * @return If the user supports checksums.
+     */
+    static boolean isSupported(final User user) {
+        return user.hasCapability(Capability.CHECKSUM);
+    }
+
+    /**
+     * Writes the checksum to the connection.
+     *
+     * @param connection The connection to write to. Must be in blocking mode.
+     * @param checksum The checksum to write.
+     * @throws IOException If writing failed.
+     */
+    static void writeChecksum(final WritableByteChannel connection, final long checksum) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(CHECKSUM_SIZE);
+        buffer.putLong(checksum).flip();
+        write(connection, buffer);
+    }
+
+    /**
+     * Reads a checksum from the connection.
+     *
+     * @param connection The connection to read from. Must be in blocking mode.
+     * @return The checksum.
+     * @throws IOException If reading failed, or the connection was closed before the whole checksum arrived.
+     */
+    static long readChecksum(final ReadableByteChannel connection) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(CHECKSUM_SIZE);
+
+        if (!read(connection, buffer)) {
+            throw new IOException("Connection closed before the checksum arrived");
+        }
+
+        return buffer.getLong();
+    }
+
+    /**
+     * Writes the answer to the sender, telling if the checksums matched.
+     *
+     * @param connection The connection to write to. Must be in blocking mode.
+     * @param match If the checksums matched.
+     * @throws IOException If writing failed.
+     */
+    static void writeVerdict(final WritableByteChannel connection, final boolean match) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(1);
+
+        if (match) {
+            buffer.put(MATCH);
+        }
+
+        else {
+            buffer.put(MISMATCH);
+        }
+
+        buffer.flip();
+        write(connection, buffer);
+    }
+
+    /**
+     * Reads the answer from the receiver, telling if the checksums matched.
+     *
+     * @param connection The connection to read from. Must be in blocking mode.
+     * @return If the checksums matched. False if the connection was closed without an answer.
+     * @throws IOException If reading failed.
+     */
+    static boolean readVerdict(final ReadableByteChannel connection) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(1);
+
+        return read(connection, buffer) && buffer.get() == MATCH;
+    }
+
+    /**
+     * Writes the whole buffer to the connection.
+     *
+     * @param connection The connection to write to.
+     * @param buffer The buffer to write.
+     * @throws IOException If writing failed.
+     */
+    private static void write(final WritableByteChannel connection, final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            connection.write(buffer);
+        }
+    }
+
+    /**
+     * Fills the buffer from the connection, and flips it for reading.
+     *
+     * @param connection The connection to read from.
+     * @param buffer The buffer to fill.
+     * @return If the buffer was filled, or <code>false</code> if the connection was closed first.
+     * @throws IOException If reading failed.
+     */
+    private static boolean read(final ReadableByteChannel connection, final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (connection.read(buffer) == -1) {
+                return false;
+            }
+        }
+
+        buffer.flip();
+
+        return true;
+    }
+}
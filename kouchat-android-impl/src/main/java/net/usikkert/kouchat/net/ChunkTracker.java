@@ -0,0 +1,305 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.util.BitSet;
+
+/**
+ * Keeps track of which chunks of a file have arrived in a multicast file transfer,
+ * and recovers lost chunks using the parity of each group of chunks.
+ *
+ * <p>The chunks are split into groups of {@link #GROUP_SIZE} chunks. The parity of a group is
+ * the chunks of the group combined with xor, with each chunk padded with zeros to
+ * {@link MulticastPacket#CHUNK_SIZE} bytes. Every chunk and parity that arrives for a group is
+ * combined the same way, so when all but one of the chunks and the parity have arrived,
+ * the combined bytes are the missing chunk. A single lost packet in each group is then
+ * recovered without asking the sender.</p>
+ *
+ * <p>The combined bytes of a group are only kept while the group is incomplete.</p>
+ *
+ * <p>Not thread safe.</p>
+ *
+ * @author Christian Ihle
+ */
+class ChunkTracker {
+
+    /** The number of chunks in each group with a parity. */
+    static final int GROUP_SIZE = 8;
+
+    /** The value returned when no chunk was recovered. */
+    static final int NONE = -1;
+
+    /** The size of the file. */
+    private final long size;
+
+    /** The number of chunks in the file. */
+    private final int chunkCount;
+
+    /** The chunks that have arrived, or have been recovered. */
+    private final BitSet arrived;
+
+    /** The number of chunks that have arrived in each group. */
+    private final int[] arrivedInGroup;
+
+    /** The groups where the parity has arrived. */
+    private final BitSet parityArrived;
+
+    /** The combined bytes of the chunks and parity that have arrived in each group, or <code>null</code>. */
+    private final byte[][] combined;
+
+    /** The content of the last recovered chunk. */
+    private byte[] recovered;
+
+    /**
+     * Constructor.
+     *
+     * @param size The size of the file.
+     */
+    ChunkTracker(final long size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("Size can not be negative");
+        }
+
+        this.size = size;
+        chunkCount = getChunkCount(size);
+        arrived = new BitSet(chunkCount);
+        arrivedInGroup = new int[getGroupCount(chunkCount)];
+        parityArrived = new BitSet(arrivedInGroup.length);
+        combined = new byte[arrivedInGroup.length][];
+    }
+
+    /**
+     * Gets the number of chunks in a file.
+     *
+     * @param size The size of the file.
+     * @return The number of chunks.
+     */
+    static int getChunkCount(final long size) {
+        return (int) ((size + MulticastPacket.CHUNK_SIZE - 1) / MulticastPacket.CHUNK_SIZE);
+    }
+
+    /**
+     * Gets the number of groups of chunks.
+     *
+     * @param chunkCount The number of chunks.
+     * @return The number of groups.
+     */
+    static int getGroupCount(final int chunkCount) {
+        return (chunkCount + GROUP_SIZE - 1) / GROUP_SIZE;
+    }
+
+    /**
+     * Combines the bytes into the target with xor.
+     *
+     * @param target The bytes to combine into.
+     * @param data The bytes to combine with.
+     * @param offset The position of the first byte to combine with.
+     * @param length The number of bytes to combine with.
+     */
+    static void xor(final byte[] target, final byte[] data, final int offset, final int length) {
+        for (int i = 0; i < length; i++) {
+            target[i] ^= data[offset + i];
+        }
+    }
+
+    /**
+     * Gets the number of chunks in the file.
+     *
+     * @return The number of chunks.
+     */
+    int getChunkCount() {
+        return chunkCount;
+    }
+
+    /**
+     * Gets the length of the chunk. Only the last chunk can be shorter than {@link MulticastPacket#CHUNK_SIZE}.
+     *
+     * @param index The index of the chunk.
+     * @return The length of the chunk.
+     */
+    int getChunkLength(final int index) {
+        final long position = (long) index * MulticastPacket.CHUNK_SIZE;
+
+        return (int) Math.min(MulticastPacket.CHUNK_SIZE, size - position);
+    }
+
+    /**
+     * Checks if the chunk is still missing.
+     *
+     * @param index The index of the chunk.
+     * @return If the chunk is a valid chunk that has not arrived yet.
+     */
+    boolean isMissing(final int index) {
+        return index >= 0 && index < chunkCount && !arrived.get(index);
+    }
+
+    /**
+     * Checks if all the chunks have arrived.
+     *
+     * @return If the file is complete.
+     */
+    boolean isComplete() {
+        return arrived.cardinality() == chunkCount;
+    }
+
+    /**
+     * Registers a chunk that has arrived. Chunks that are not missing are ignored.
+     *
+     * @param index The index of the chunk.
+     * @param data The bytes with the content of the chunk. Must have the length given by {@link #getChunkLength(int)}.
+     * @param offset The position of the first byte of the chunk.
+     * @return The index of a chunk in the same group that was recovered, or {@link #NONE}.
+     */
+    int chunkArrived(final int index, final byte[] data, final int offset) {
+        if (!isMissing(index)) {
+            return NONE;
+        }
+
+        final int group = index / GROUP_SIZE;
+        arrived.set(index);
+        arrivedInGroup[group]++;
+
+        if (isGroupComplete(group)) {
+            combined[group] = null;
+            return NONE;
+        }
+
+        combine(group, data, offset, getChunkLength(index));
+
+        return recover(group);
+    }
+
+    /**
+     * Registers the parity of a group that has arrived.
+     *
+     * @param group The index of the group.
+     * @param data The bytes with the parity.
+     * @param offset The position of the first byte of the parity.
+     * @param length The length of the parity.
+     * @return The index of a chunk in the group that was recovered, or {@link #NONE}.
+     */
+    int parityArrived(final int group, final byte[] data, final int offset, final int length) {
+        if (group < 0 || group >= arrivedInGroup.length || parityArrived.get(group) || isGroupComplete(group)) {
+            return NONE;
+        }
+
+        parityArrived.set(group);
+        combine(group, data, offset, Math.min(length, MulticastPacket.CHUNK_SIZE));
+
+        return recover(group);
+    }
+
+    /**
+     * Gets the content of the last recovered chunk. The length is given by {@link #getChunkLength(int)}.
+     *
+     * @return The content of the chunk.
+     */
+    byte[] getRecovered() {
+        return recovered;
+    }
+
+    /**
+     * Finds the ranges of chunks that are still missing, starting with the first missing chunk.
+     *
+     * @param maxRanges The max number of ranges to find.
+     * @return The first and last chunk in each range, after each other.
+     */
+    int[] getMissingRanges(final int maxRanges) {
+        final int[] ranges = new int[maxRanges * 2];
+        int count = 0;
+        int from = arrived.nextClearBit(0);
+
+        while (from < chunkCount && count < ranges.length) {
+            int to = arrived.nextSetBit(from);
+
+            if (to < 0) {
+                to = chunkCount;
+            }
+
+            ranges[count++] = from;
+            ranges[count++] = to - 1;
+            from = arrived.nextClearBit(to);
+        }
+
+        final int[] result = new int[count];
+        System.arraycopy(ranges, 0, result, 0, count);
+
+        return result;
+    }
+
+    /**
+     * Combines the bytes into the combined bytes of the group.
+     *
+     * @param group The index of the group.
+     * @param data The bytes to combine with.
+     * @param offset The position of the first byte to combine with.
+     * @param length The number of bytes to combine with.
+     */
+    private void combine(final int group, final byte[] data, final int offset, final int length) {
+        if (combined[group] == null) {
+            combined[group] = new byte[MulticastPacket.CHUNK_SIZE];
+        }
+
+        xor(combined[group], data, offset, length);
+    }
+
+    /**
+     * Recovers the missing chunk of the group, if only one chunk is missing and the parity has arrived.
+     *
+     * @param group The index of the group.
+     * @return The index of the recovered chunk, or {@link #NONE}.
+     */
+    private int recover(final int group) {
+        if (!parityArrived.get(group) || arrivedInGroup[group] != getChunksInGroup(group) - 1) {
+            return NONE;
+        }
+
+        final int index = arrived.nextClearBit(group * GROUP_SIZE);
+        recovered = combined[group];
+        combined[group] = null;
+        arrived.set(index);
+        arrivedInGroup[group]++;
+
+        return index;
+    }
+
+    /**
+     * Checks if all the chunks in the group have arrived.
+     *
+     * @param group The index of the group.
+     * @return If the group is complete.
+     */
+    private boolean isGroupComplete(final int group) {
+        return arrivedInGroup[group] == getChunksInGroup(group);
+    }
+
+    /**
+     * Gets the number of chunks in the group. Only the last group can have fewer than {@link #GROUP_SIZE} chunks.
+     *
+     * @param group The index of the group.
+     * @return The number of chunks.
+     */
+    private int getChunksInGroup(final int group) {
+        return Math.min(GROUP_SIZE, chunkCount - group * GROUP_SIZE);
+    }
+}
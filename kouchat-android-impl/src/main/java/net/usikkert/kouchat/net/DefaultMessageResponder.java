@@ -24,6 +24,7 @@ package net.usikkert.kouchat.net;
 
 import java.io.File;
 import java.util.Date;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -56,6 +57,9 @@ public class DefaultMessageResponder implements MessageResponder {
     private final MessageController msgController;
     private final ChatState chatState;
 
+    /** The max size of a file to receive inline in a private message. */
+    private final int inlineFileSize;
+
     /**
      * Constructor.
      *
@@ -76,6 +80,7 @@ public class DefaultMessageResponder implements MessageResponder {
         tList = controller.getTransferList();
         wList = controller.getWaitingList();
         chatState = controller.getChatState();
+        inlineFileSize = settings.getInlineFileSize();
     }
 
     /**
@@ -164,10 +169,14 @@ public class DefaultMessageResponder implements MessageResponder {
      * If the user's nick name is not valid, it is reset, and reported if
      * it is identical to the application user's nick.
      *
-     * @param newUser The user logging on to the chat.
+     * @param userCode The unique code of the user logging on to the chat.
+     * @param nick The nick name of the user.
+     * @param ipAddress The IP address of the user.
      */
     @Override
-    public void userLogOn(final User newUser) {
+    public void userLogOn(final int userCode, final String nick, final String ipAddress) {
+        final User newUser = createUser(userCode, nick, ipAddress);
+
         if (me.getNick().trim().equalsIgnoreCase(newUser.getNick())) {
             controller.sendNickCrashMessage(newUser.getNick());
             newUser.setNick("" + newUser.getCode());
@@ -262,11 +271,21 @@ public class DefaultMessageResponder implements MessageResponder {
      * Adds unknown users that are exposing themselves.
      * This happens mostly during startup, but can also happen after a timeout.
      *
-     * @param user The unknown user who was exposed.
+     * @param userCode The unique code of the user who was exposed.
+     * @param nick The nick name of the user.
+     * @param awayMsg The away message of the user, or an empty string if not away.
+     * @param ipAddress The IP address of the user.
      */
     @Override
-    public void userExposing(final User user) {
-        if (controller.isNewUser(user.getCode())) {
+    public void userExposing(final int userCode, final String nick, final String awayMsg, final String ipAddress) {
+        if (controller.isNewUser(userCode)) {
+            final User user = createUser(userCode, nick, ipAddress);
+            user.setAwayMsg(awayMsg);
+
+            if (awayMsg.length() > 0) {
+                user.setAway(true);
+            }
+
             // Usually this happens when someone returns from a timeout
             if (chatState.isLogonCompleted()) {
                 if (wList.isWaitingUser(user.getCode())) {
@@ -283,19 +302,36 @@ public class DefaultMessageResponder implements MessageResponder {
         }
 
         else {
-            final User orgUser = controller.getUser(user.getCode());
+            final User orgUser = controller.getUser(userCode);
 
             // When users timeout, there can become sync issues
-            if (!orgUser.getNick().equals(user.getNick())) {
-                nickChanged(user.getCode(), user.getNick());
+            if (!orgUser.getNick().equals(nick)) {
+                nickChanged(userCode, nick);
             }
 
-            if (!orgUser.getAwayMsg().equals(user.getAwayMsg())) {
-                awayChanged(user.getCode(), user.isAway(), user.getAwayMsg());
+            if (!orgUser.getAwayMsg().equals(awayMsg)) {
+                awayChanged(userCode, awayMsg.length() > 0, awayMsg);
             }
         }
     }
 
+    /**
+     * Creates a new user that just logged on, or was exposed.
+     *
+     * @param userCode The unique code of the user.
+     * @param nick The nick name of the user.
+     * @param ipAddress The IP address of the user.
+     * @return The new user.
+     */
+    private User createUser(final int userCode, final String nick, final String ipAddress) {
+        final User user = new User(nick, userCode);
+        user.setIpAddress(ipAddress);
+        user.setLastIdle(System.currentTimeMillis());
+        user.setLogonTime(System.currentTimeMillis());
+
+        return user;
+    }
+
     /**
      * When the user has logged on to the network, the application updates
      * the status.
@@ -414,7 +450,7 @@ public class DefaultMessageResponder implements MessageResponder {
 
         else {
             final User user = controller.getUser(userCode);
-            user.setLastIdle(System.currentTimeMillis());
+            controller.updateLastIdle(user);
 
             if (!user.getIpAddress().equals(ipAddress)) {
                 msgController.showSystemMessage(user.getNick() + " changed ip from " + user.getIpAddress() + " to " + ipAddress);
@@ -522,6 +558,7 @@ public class DefaultMessageResponder implements MessageResponder {
                     final File defaultFile = new File(
                             System.getProperty("user.home") + System.getProperty("file.separator") + fileName);
                     final FileReceiver fileRes = tList.addFileReceiver(tmpUser, defaultFile, byteSize);
+                    fileRes.setOffer(fileName, fileHash);
 
                     msgController.showSystemMessage(
                             user + " is trying to send the file " + fileName + " (#" + fileRes.getId() + ") [" + size + "]");
@@ -532,33 +569,52 @@ public class DefaultMessageResponder implements MessageResponder {
                         if (fileRes.isAccepted() && !fileRes.isCanceled()) {
                             ui.showTransfer(fileRes);
 
-                            try {
-                                final int port = fileRes.startServer();
-                                controller.sendFileAccept(tmpUser, port, fileHash, fileName);
+                            if (!waitForTurn(fileRes, fileName, fileHash)) {
+                                msgController.showSystemMessage("You cancelled receiving of " + fileName + " from " + user);
+                                controller.sendFileAbort(tmpUser, fileHash, fileName);
+                            }
 
-                                if (fileRes.transfer()) {
-                                    msgController.showSystemMessage("Successfully received " + fileName +
-                                            " from " + user + ", and saved as " + fileRes.getFile().getName());
+                            else {
+                                try {
+                                    final long resumeOffset = fileRes.prepareResume(fileName, fileHash);
+                                    final int streams = fileRes.prepareStreams();
+                                    fileRes.prepareInline(getInlineFileSize());
+                                    final boolean checksum = fileRes.prepareChecksum();
+                                    final int port = fileRes.startServer();
+                                    final TransferOptions options =
+                                            new TransferOptions(resumeOffset, streams, fileRes.getHandshakeId(), checksum);
+                                    controller.sendFileAccept(tmpUser, port, fileHash, fileName, options);
+                                    final boolean received = fileRes.transfer();
+
+                                    // The sender of a file inline waits for the answer
+                                    if (fileRes.isInline()) {
+                                        controller.sendFileDataAck(tmpUser, fileHash, fileName, received);
+                                    }
+
+                                    if (received) {
+                                        msgController.showSystemMessage("Successfully received " + fileName +
+                                                " from " + user + ", and saved as " + fileRes.getFile().getName());
+                                    }
+
+                                    else {
+                                        msgController.showSystemMessage("Failed to receive " + fileName + " from " + user);
+                                        fileRes.cancel();
+                                    }
                                 }
 
-                                else {
+                                // Failed to start the server
+                                catch (final ServerException e) {
+                                    LOG.log(Level.SEVERE, e.toString(), e);
                                     msgController.showSystemMessage("Failed to receive " + fileName + " from " + user);
+                                    controller.sendFileAbort(tmpUser, fileHash, fileName);
                                     fileRes.cancel();
                                 }
-                            }
 
-                            // Failed to start the server
-                            catch (final ServerException e) {
-                                LOG.log(Level.SEVERE, e.toString(), e);
-                                msgController.showSystemMessage("Failed to receive " + fileName + " from " + user);
-                                controller.sendFileAbort(tmpUser, fileHash, fileName);
-                                fileRes.cancel();
-                            }
-
-                            // Failed to send the accept message
-                            catch (final CommandException e) {
-                                msgController.showSystemMessage("Failed to receive " + fileName + " from " + user);
-                                fileRes.cancel();
+                                // Failed to send the accept message
+                                catch (final CommandException e) {
+                                    msgController.showSystemMessage("Failed to receive " + fileName + " from " + user);
+                                    fileRes.cancel();
+                                }
                             }
                         }
 
@@ -584,6 +640,111 @@ public class DefaultMessageResponder implements MessageResponder {
         } .start();
     }
 
+    /**
+     * The user wants to send a file to everyone in the chat. Asks the application user
+     * to receive the file, and receives it from the multicast group of the file transfer if accepted.
+     *
+     * <p>Nothing is sent to the user if the file is declined, as it's sent to the others anyway.
+     * The file transfer is not queued by the scheduler, as it would miss the chunks while waiting.</p>
+     *
+     * @param userCode The unique code of the user who is asking to send a file.
+     * @param offer The offer with the details of the file transfer.
+     */
+    @Override
+    public void groupFileSend(final int userCode, final MulticastOffer offer) {
+        if (controller.isNewUser(userCode)) {
+            wList.addWaitingUser(userCode);
+            controller.sendExposeMessage();
+            controller.sendGetTopicMessage();
+        }
+
+        new Thread("DefaultMessageResponderGroupFileSend") {
+            @Override
+            public void run() {
+                int counter = 0;
+
+                while (wList.isWaitingUser(userCode) && counter < 40) {
+                    counter++;
+                    Tools.sleep(50);
+                }
+
+                if (!controller.isNewUser(userCode)) {
+                    final String fileName = offer.getFileName();
+                    final String size = Tools.byteToString(offer.getSize());
+                    final User tmpUser = controller.getUser(userCode);
+                    final String user = tmpUser.getNick();
+                    final File defaultFile = new File(
+                            System.getProperty("user.home") + System.getProperty("file.separator") + fileName);
+                    final FileReceiver fileRes = tList.addFileReceiver(tmpUser, defaultFile, offer.getSize());
+
+                    msgController.showSystemMessage(user + " is trying to send the file " + fileName +
+                            " (#" + fileRes.getId() + ") [" + size + "] to everyone");
+
+                    if (ui.askFileSave(user, fileName, size)) {
+                        ui.showFileSave(fileRes);
+                    }
+
+                    if (fileRes.isAccepted() && !fileRes.isCanceled()) {
+                        ui.showTransfer(fileRes);
+                        fileRes.prepareMulticast(offer);
+
+                        if (fileRes.transfer()) {
+                            msgController.showSystemMessage("Successfully received " + fileName +
+                                    " from " + user + ", and saved as " + fileRes.getFile().getName());
+                        }
+
+                        else {
+                            msgController.showSystemMessage("Failed to receive " + fileName + " from " + user);
+                            fileRes.cancel();
+                        }
+                    }
+
+                    else if (!fileRes.isCanceled()) {
+                        msgController.showSystemMessage("You declined to receive " + fileName + " from " + user);
+                    }
+
+                    tList.removeFileReceiver(fileRes);
+                }
+
+                else {
+                    LOG.log(Level.SEVERE, "Could not find user: " + userCode);
+                }
+            }
+        } .start();
+    }
+
+    /**
+     * Waits for the file transfer to get its turn in the transfer scheduler.
+     *
+     * <p>Both sides wait for their turn after the file is accepted, so only the file transfers
+     * that are about to copy count against the limits, and unanswered offers never do.
+     * The receiver is already waiting for the connection when the sender gets here,
+     * so a queued sender tells the receiver to keep waiting past the timeout.</p>
+     *
+     * @param fileTransfer The file transfer to start.
+     * @param fileName The name of the file.
+     * @param fileHash The hash code of the file.
+     * @return If the file transfer can start, or <code>false</code> if it was canceled while waiting.
+     */
+    private boolean waitForTurn(final FileTransfer fileTransfer, final String fileName, final int fileHash) {
+        final TransferScheduler scheduler = tList.getScheduler();
+
+        if (scheduler.tryAcquire(fileTransfer)) {
+            return true;
+        }
+
+        if (fileTransfer.getDirection() == FileTransfer.Direction.SEND) {
+            msgController.showSystemMessage("Queued sending of " + fileName + " until other file transfers are done");
+            controller.sendFileQueued(fileTransfer.getUser(), fileHash, fileName);
+        }
+
+        else {
+            msgController.showSystemMessage("Queued receiving of " + fileName + " until other file transfers are done");
+        }
+
+        return scheduler.acquire(fileTransfer);
+    }
+
     /**
      * The other user stopped a file transfer from the application user,
      * or the other way around.
@@ -612,6 +773,26 @@ public class DefaultMessageResponder implements MessageResponder {
         }
     }
 
+    /**
+     * The other user is waiting for other file transfers to finish before sending
+     * a file to the application user. Keeps waiting for the connection until then.
+     *
+     * @param userCode The unique code of the other user.
+     * @param fileName The name of the file.
+     * @param fileHash The hash code of the file.
+     */
+    @Override
+    public void fileSendQueued(final int userCode, final String fileName, final int fileHash) {
+        final User user = controller.getUser(userCode);
+        final FileReceiver fileReceiver = tList.getFileReceiver(user, fileName);
+
+        if (fileReceiver != null) {
+            fileReceiver.senderQueued();
+            msgController.showSystemMessage(user.getNick() + " queued sending of " + fileName +
+                    " until other file transfers are done");
+        }
+    }
+
     /**
      * The other user has accepted a file transfer. Will try to connect to the
      * user to send the file.
@@ -620,9 +801,11 @@ public class DefaultMessageResponder implements MessageResponder {
      * @param fileName The name of the file.
      * @param fileHash The hash code of the file.
      * @param port The port to use for connecting to the other user.
+     * @param options How the user asked for the file to be sent.
      */
     @Override
-    public void fileSendAccepted(final int userCode, final String fileName, final int fileHash, final int port) {
+    public void fileSendAccepted(final int userCode, final String fileName, final int fileHash, final int port,
+                                 final TransferOptions options) {
         new Thread("DefaultMessageResponderFileSendAccepted") {
             @Override
             public void run() {
@@ -630,12 +813,37 @@ public class DefaultMessageResponder implements MessageResponder {
                 final FileSender fileSend = tList.getFileSender(user, fileName, fileHash);
 
                 if (fileSend != null) {
-                    msgController.showSystemMessage(user.getNick() + " accepted sending of " + fileName);
+                    final long resumeOffset = options.getResumeOffset();
+
+                    if (resumeOffset > 0) {
+                        msgController.showSystemMessage(user.getNick() + " accepted sending of " + fileName +
+                                ", resuming from " + Tools.byteToString(resumeOffset));
+                    }
+
+                    else {
+                        msgController.showSystemMessage(user.getNick() + " accepted sending of " + fileName);
+                    }
 
-                    // Give the server some time to set up the connection first
-                    Tools.sleep(200);
+                    final boolean sent;
 
-                    if (fileSend.transfer(port)) {
+                    // Canceled while waiting for other file transfers to finish
+                    if (!waitForTurn(fileSend, fileName, fileHash)) {
+                        sent = false;
+                    }
+
+                    // Port 0 means the user wants the file inline
+                    else if (port == 0) {
+                        sent = fileSend.transferInline(createInlineSender(user, fileName));
+                    }
+
+                    else {
+                        // Give the server some time to set up the connection first
+                        Tools.sleep(200);
+                        fileSend.setSenderCode(me.getCode());
+                        sent = fileSend.transfer(port, options);
+                    }
+
+                    if (sent) {
                         msgController.showSystemMessage(fileName + " successfully sent to " + user.getNick());
                     }
 
@@ -649,6 +857,44 @@ public class DefaultMessageResponder implements MessageResponder {
         } .start();
     }
 
+    /**
+     * Creates the sender of the content of a small file, in a private message.
+     *
+     * @param user The user receiving the file.
+     * @param fileName The name of the file.
+     * @return The inline sender.
+     */
+    private InlineTransfer.Sender createInlineSender(final User user, final String fileName) {
+        return new InlineTransfer.Sender() {
+            @Override
+            public boolean send(final byte[] content, final long checksum) {
+                try {
+                    controller.sendFileData(user, fileName, content, checksum);
+                    return true;
+                }
+
+                catch (final CommandException e) {
+                    LOG.log(Level.WARNING, e.toString());
+                    return false;
+                }
+            }
+        };
+    }
+
+    /**
+     * Gets the max size of a file to receive inline. Files are never received inline
+     * when private chat is disabled, since the content arrives in a private message.
+     *
+     * @return The max inline file size, or <code>0</code> to never receive files inline.
+     */
+    private int getInlineFileSize() {
+        if (me.getPrivateChatPort() > 0) {
+            return inlineFileSize;
+        }
+
+        return 0;
+    }
+
     /**
      * Updates the client information about the user.
      *
@@ -657,9 +903,11 @@ public class DefaultMessageResponder implements MessageResponder {
      * @param timeSinceLogon Number of milliseconds since the user logged on.
      * @param operatingSystem The user's operating system.
      * @param privateChatPort The port to use for sending private chat messages to this user.
+     * @param capabilities The optional protocol features supported by the client.
      */
     @Override
-    public void clientInfo(final int userCode, final String client, final long timeSinceLogon, final String operatingSystem, final int privateChatPort) {
+    public void clientInfo(final int userCode, final String client, final long timeSinceLogon, final String operatingSystem, final int privateChatPort,
+            final Set<Capability> capabilities) {
         final User user = controller.getUser(userCode);
 
         if (user != null) {
@@ -667,10 +915,48 @@ public class DefaultMessageResponder implements MessageResponder {
             user.setLogonTime(System.currentTimeMillis() - timeSinceLogon);
             user.setOperatingSystem(operatingSystem);
             user.setPrivateChatPort(privateChatPort);
+            user.setCapabilities(capabilities);
+
+            // Lets the listeners of the user list see the new capabilities
+            controller.getUserList().update(user);
+        }
+
+        else {
+            LOG.log(Level.SEVERE, "Could not find user: " + userCode);
+        }
+    }
+
+    /**
+     * Asks the user to send the lost chat messages again.
+     *
+     * @param userCode The unique code of the user who sent the messages.
+     * @param fromSequence The sequence number of the first lost message.
+     * @param toSequence The sequence number of the last lost message.
+     */
+    @Override
+    public void messagesLost(final int userCode, final int fromSequence, final int toSequence) {
+        final User user = controller.getUser(userCode);
+
+        if (user != null) {
+            LOG.log(Level.FINE, "Lost messages " + fromSequence + "-" + toSequence + " from " + user.getNick());
+            controller.sendResendRequest(user, fromSequence, toSequence);
         }
 
         else {
             LOG.log(Level.SEVERE, "Could not find user: " + userCode);
         }
     }
+
+    /**
+     * Sends the chat messages lost by the user again.
+     *
+     * @param userCode The unique code of the user who lost the messages.
+     * @param fromSequence The sequence number of the first lost message.
+     * @param toSequence The sequence number of the last lost message.
+     */
+    @Override
+    public void resendRequested(final int userCode, final int fromSequence, final int toSequence) {
+        LOG.log(Level.FINE, "User " + userCode + " lost messages " + fromSequence + "-" + toSequence);
+        controller.resendChatMessages(fromSequence, toSequence);
+    }
 }
@@ -110,4 +110,40 @@ public class DefaultPrivateMessageResponder implements PrivateMessageResponder {
             LOG.log(Level.SEVERE, "Could not find user: " + userCode);
         }
     }
+
+    /**
+     * Gives the content of the file to the file receiver waiting for it.
+     *
+     * @param userCode The unique code of the user who sent the file.
+     * @param fileName The name of the file.
+     * @param content The content of the file.
+     * @param checksum The checksum of the content, from the sender.
+     */
+    @Override
+    public void fileDataArrived(final int userCode, final String fileName, final byte[] content, final long checksum) {
+        final User user = controller.getUser(userCode);
+        final FileReceiver fileReceiver = controller.getTransferList().getFileReceiver(user, fileName);
+
+        if (fileReceiver == null || !fileReceiver.inlineContentArrived(content, checksum)) {
+            LOG.log(Level.WARNING, "Got unexpected content of " + fileName + " from " + userCode);
+        }
+    }
+
+    /**
+     * Gives the answer from the receiver to the file sender waiting for it.
+     *
+     * @param userCode The unique code of the user who received the file.
+     * @param fileName The name of the file.
+     * @param fileHash The hash code of the file.
+     * @param verified If the content arrived with the right checksum.
+     */
+    @Override
+    public void fileDataAcknowledged(final int userCode, final String fileName, final int fileHash, final boolean verified) {
+        final User user = controller.getUser(userCode);
+        final FileSender fileSender = controller.getTransferList().getFileSender(user, fileName, fileHash);
+
+        if (fileSender == null || !fileSender.inlineAnswerArrived(verified)) {
+            LOG.log(Level.WARNING, "Got unexpected answer about " + fileName + " from " + userCode);
+        }
+    }
 }
@@ -0,0 +1,294 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.usikkert.kouchat.Constants;
+import net.usikkert.kouchat.util.Validate;
+
+/**
+ * Lets a {@link NetworkEventLoop} wait for the connection from a file sender on a server channel
+ * opened for the file transfer. No extra threads are needed while waiting.
+ *
+ * <p>The event loop accepts a single connection, and closes the server channel when
+ * the connection arrives, or at the timeout. There is no timeout while the sender is queued.</p>
+ *
+ * @author Christian Ihle
+ */
+class EventLoopConnections implements IncomingConnections {
+
+    /** The logger. */
+    private static final Logger LOG = Logger.getLogger(EventLoopConnections.class.getName());
+
+    /** The number of ports to try before giving up. */
+    private static final int MAX_PORTS = 50;
+
+    /** The event loop to wait for the connection with. */
+    private final NetworkEventLoop eventLoop;
+
+    /** Milliseconds to wait for the sender to connect, before closing the server channel. */
+    private final int timeout;
+
+    /** Released when the event loop has accepted the connection, or given up. */
+    private final CountDownLatch acceptLatch;
+
+    /** The server channel waiting for the connection. */
+    private ServerSocketChannel serverChannel;
+
+    /** The connection accepted by the event loop. */
+    private volatile SocketChannel acceptedChannel;
+
+    /** If the sender is waiting in its queue, so the server channel is kept open after the timeout. */
+    private volatile boolean senderQueued;
+
+    /**
+     * Constructor.
+     *
+     * @param eventLoop The running event loop to wait for the connection with.
+     * @param timeout Milliseconds to wait for the sender to connect, before closing the server channel.
+     */
+    EventLoopConnections(final NetworkEventLoop eventLoop, final int timeout) {
+        Validate.notNull(eventLoop, "Event loop can not be null");
+
+        this.eventLoop = eventLoop;
+        this.timeout = timeout;
+
+        acceptLatch = new CountDownLatch(1);
+    }
+
+    /**
+     * Opens the server channel on the first free port, starting from the file transfer port,
+     * and lets the event loop wait for the sender to connect.
+     *
+     * @return The port the sender can connect to.
+     * @throws ServerException If no port could be opened.
+     */
+    @Override
+    public int start() throws ServerException {
+        int port = Constants.NETWORK_FILE_TRANSFER_PORT;
+        int counter = 0;
+
+        while (serverChannel == null && counter < MAX_PORTS) {
+            ServerSocketChannel channel = null;
+
+            try {
+                channel = ServerSocketChannel.open();
+                channel.socket().bind(new InetSocketAddress(port));
+                serverChannel = channel;
+            }
+
+            catch (final IOException e) {
+                LOG.log(Level.WARNING, "Could not open " + port, e);
+                closeChannel(channel);
+                port++;
+            }
+
+            finally {
+                counter++;
+            }
+        }
+
+        if (serverChannel == null) {
+            throw new ServerException("Could not start server");
+        }
+
+        final AcceptHandler acceptHandler = new AcceptHandler(serverChannel);
+        eventLoop.register(serverChannel, SelectionKey.OP_ACCEPT, acceptHandler);
+        acceptHandler.setTimeout(eventLoop.schedule(acceptHandler, timeout));
+
+        return port;
+    }
+
+    /**
+     * Waits for the event loop to accept the connection.
+     *
+     * @return The connection, or <code>null</code> if none arrived before the timeout, or it was closed.
+     */
+    @Override
+    public Socket waitForConnection() {
+        try {
+            // The event loop handles the timeout, but don't wait forever if the event loop is stopped
+            while (!acceptLatch.await(timeout * 2, TimeUnit.MILLISECONDS)) {
+                if (!senderQueued || !eventLoop.isRunning()) {
+                    closeChannel(serverChannel);
+                    break;
+                }
+            }
+        }
+
+        catch (final InterruptedException e) {
+            LOG.log(Level.SEVERE, e.toString(), e);
+        }
+
+        final SocketChannel connection = acceptedChannel;
+
+        if (connection != null) {
+            return connection.socket();
+        }
+
+        return null;
+    }
+
+    /**
+     * The event loop only accepts a single connection.
+     *
+     * @return Never returns.
+     * @throws IOException Always.
+     */
+    @Override
+    public SocketChannel waitForNextConnection() throws IOException {
+        throw new IOException("Only a single connection is accepted by the event loop");
+    }
+
+    /**
+     * No handshake is needed, since the server channel is only used for this file transfer.
+     *
+     * @return <code>false</code>.
+     */
+    @Override
+    public boolean isHandshakeNeeded() {
+        return false;
+    }
+
+    /**
+     * Connections are not kept, since the server channel is only used for this file transfer.
+     *
+     * @param connection The connection.
+     * @return <code>false</code>.
+     */
+    @Override
+    public boolean keepAlive(final SocketChannel connection) {
+        return false;
+    }
+
+    /**
+     * Lets the event loop keep the server channel open after the timeout, until the sender connects.
+     */
+    @Override
+    public void senderQueued() {
+        senderQueued = true;
+    }
+
+    /**
+     * Closes the server channel, and stops waiting for the connection.
+     */
+    @Override
+    public void close() {
+        closeChannel(serverChannel);
+        acceptLatch.countDown();
+    }
+
+    /**
+     * Closes the server channel, if not <code>null</code>.
+     * The event loop is woken up to release the port.
+     *
+     * @param channel The channel to close.
+     */
+    private void closeChannel(final ServerSocketChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            }
+
+            catch (final IOException e) {
+                LOG.log(Level.SEVERE, e.toString(), e);
+            }
+
+            eventLoop.wakeup();
+        }
+    }
+
+    /**
+     * Accepts the connection from the sender on the event loop thread, or closes
+     * the server channel if no connection arrives before the timeout.
+     */
+    private class AcceptHandler implements NetworkEventLoop.ChannelHandler, Runnable {
+
+        /** The server channel waiting for the connection. */
+        private final ServerSocketChannel channel;
+
+        /** The timeout for the connection. */
+        private volatile NetworkEventLoop.Timeout acceptTimeout;
+
+        /**
+         * Constructor.
+         *
+         * @param channel The server channel waiting for the connection.
+         */
+        AcceptHandler(final ServerSocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Sets the timeout, so it can be canceled when the connection arrives.
+         *
+         * @param acceptTimeout The timeout for the connection.
+         */
+        public void setTimeout(final NetworkEventLoop.Timeout acceptTimeout) {
+            this.acceptTimeout = acceptTimeout;
+        }
+
+        /**
+         * Accepts the connection, and closes the server channel.
+         *
+         * @param key The selection key of the server channel.
+         * @throws IOException If the connection could not be accepted.
+         */
+        @Override
+        public void channelReady(final SelectionKey key) throws IOException {
+            final SocketChannel connection = channel.accept();
+
+            if (connection != null) {
+                if (acceptTimeout != null) {
+                    acceptTimeout.cancel();
+                }
+
+                acceptedChannel = connection;
+                closeChannel(channel);
+                acceptLatch.countDown();
+            }
+        }
+
+        /**
+         * Closes the server channel when no connection arrived before the timeout, unless the sender is queued.
+         */
+        @Override
+        public void run() {
+            if (acceptedChannel == null && !senderQueued) {
+                LOG.log(Level.FINE, "No connection before timeout, closing server");
+                closeChannel(channel);
+                acceptLatch.countDown();
+            }
+        }
+    }
+}
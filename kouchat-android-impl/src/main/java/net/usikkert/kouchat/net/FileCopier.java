@@ -0,0 +1,385 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.Checksum;
+
+/**
+ * Copies the content of a file transfer between a file and a connection, in chunks.
+ *
+ * <p>With channels, the bytes are copied using {@link FileChannel#transferTo(long, long, WritableByteChannel)}
+ * and {@link FileChannel#transferFrom(ReadableByteChannel, long, long)}, so the operating system
+ * can move the bytes without copying them through the Java heap. The stream methods copy
+ * through a large buffer, for connections without a channel.</p>
+ *
+ * <p>A copy can start in the middle of the file, to resume an interrupted transfer.</p>
+ *
+ * <p>If a checksum is given, it's updated with the bytes while copying them, so the content
+ * never has to be read again to verify it. The checksum needs to see the bytes, so the channel methods
+ * then copy through a buffer instead of directly between the channels, and update the checksum
+ * with the buffer on the way. The checksum is of the bytes that actually went over the connection.
+ * Since both clients must support {@link Capability#CHECKSUM} to exchange the checksum, this is how most
+ * channel transfers are copied. Only transfers without a checksum copy directly between the channels.
+ * Every byte has to pass through the checksum either way, and copying through the buffer is no slower
+ * than copying directly and reading each chunk back from the file to update the checksum.</p>
+ *
+ * <p>The progress is reported once for each chunk, instead of for each read. The size of the chunks
+ * adapts to the speed of the transfer, so the progress is reported a few times each second, both on
+ * slow and fast networks.</p>
+ *
+ * <p>Not thread safe. Each file transfer must use its own copier.</p>
+ *
+ * @author Christian Ihle
+ */
+class FileCopier {
+
+    /** The smallest number of bytes to copy between each progress report. */
+    static final int MIN_CHUNK_SIZE = 64 * 1024;
+
+    /** The largest number of bytes to copy between each progress report. */
+    static final int MAX_CHUNK_SIZE = 8 * 1024 * 1024;
+
+    /** The size of the buffer used when copying between streams. */
+    static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    /** Chunks copied faster than this number of milliseconds are made larger. */
+    private static final int FAST_CHUNK_TIME = 50;
+
+    /** Chunks copied slower than this number of milliseconds are made smaller. */
+    private static final int SLOW_CHUNK_TIME = 200;
+
+    /** Gets the progress reports, and decides when to stop. */
+    private final Progress progress;
+
+    /** The current number of bytes to copy between each progress report. */
+    private int chunkSize;
+
+    /** The buffer used when copying between channels with a checksum, created when first needed. */
+    private ByteBuffer buffer;
+
+    /**
+     * Constructor.
+     *
+     * @param progress Gets the progress reports, and decides when to stop.
+     */
+    FileCopier(final Progress progress) {
+        this.progress = progress;
+        chunkSize = MIN_CHUNK_SIZE;
+    }
+
+    /**
+     * Sends the file to the connection, until the whole file is sent or the transfer is canceled.
+     *
+     * @param file The file to send.
+     * @param connection The connection to send the file to. Must be in blocking mode.
+     * @param position The position in the file to start sending from.
+     * @param size The size of the file. Bytes from the position up to this size are sent.
+     * @return The number of bytes sent.
+     * @throws IOException If the file could not be read, or the connection failed.
+     */
+    public long send(final FileChannel file, final WritableByteChannel connection, final long position, final long size)
+            throws IOException {
+        return send(file, connection, position, size, null);
+    }
+
+    /**
+     * Sends the file to the connection, until the whole file is sent or the transfer is canceled.
+     *
+     * <p>Without a checksum, the file channel sends directly to the connection. With a checksum,
+     * the bytes are sent through a buffer, and the checksum is updated with the buffer.</p>
+     *
+     * @param file The file to send.
+     * @param connection The connection to send the file to. Must be in blocking mode.
+     * @param position The position in the file to start sending from.
+     * @param size The size of the file. Bytes from the position up to this size are sent.
+     * @param checksum The checksum to update with the sent bytes, or <code>null</code>.
+     * @return The number of bytes sent.
+     * @throws IOException If the file could not be read, or the connection failed.
+     */
+    public long send(final FileChannel file, final WritableByteChannel connection, final long position, final long size,
+                     final Checksum checksum) throws IOException {
+        long current = position;
+
+        while (!progress.isCanceled() && current < size) {
+            final long start = System.currentTimeMillis();
+            final long count = Math.min(chunkSize, size - current);
+            final long copied;
+
+            if (checksum != null) {
+                copied = sendThroughBuffer(file, connection, current, count, checksum);
+            }
+
+            else {
+                copied = file.transferTo(current, count, connection);
+            }
+
+            // The file is shorter than expected
+            if (copied <= 0) {
+                break;
+            }
+
+            current += copied;
+            chunkCopied(copied, start);
+        }
+
+        return current - position;
+    }
+
+    /**
+     * Receives the file from the connection, until the whole file is received, the connection is closed,
+     * or the transfer is canceled.
+     *
+     * <p>Without a checksum, the file channel receives directly from the connection. With a checksum,
+     * the bytes are received through a buffer, and the checksum is updated with the buffer.</p>
+     *
+     * @param connection The connection to receive the file from. Must be in blocking mode.
+     * @param file The file to save to.
+     * @param position The position in the file to start saving at.
+     * @param size The size of the file. Bytes from the position up to this size are received.
+     * @param checksum The checksum to update with the received bytes, or <code>null</code>.
+     * @return The number of bytes received.
+     * @throws IOException If the file could not be written, or the connection failed.
+     */
+    public long receive(final ReadableByteChannel connection, final FileChannel file, final long position,
+                        final long size, final Checksum checksum) throws IOException {
+        long current = position;
+
+        while (!progress.isCanceled() && current < size) {
+            final long start = System.currentTimeMillis();
+            final long count = Math.min(chunkSize, size - current);
+            final long copied;
+
+            if (checksum != null) {
+                copied = receiveThroughBuffer(connection, file, current, count, checksum);
+            }
+
+            else {
+                copied = file.transferFrom(connection, current, count);
+            }
+
+            // The connection was closed
+            if (copied <= 0) {
+                break;
+            }
+
+            current += copied;
+            chunkCopied(copied, start);
+        }
+
+        return current - position;
+    }
+
+    /**
+     * Copies from the input stream to the output stream, until the number of bytes are copied,
+     * the end of the input stream, or the transfer is canceled.
+     *
+     * <p>Never reads more than the number of bytes from the input stream, so anything sent
+     * after the file can be read from the stream afterwards.</p>
+     *
+     * @param input The stream to copy from.
+     * @param output The stream to copy to.
+     * @param count The number of bytes to copy.
+     * @param checksum The checksum to update with the copied bytes, or <code>null</code>.
+     * @return The number of bytes copied.
+     * @throws IOException If reading or writing failed.
+     */
+    public long copy(final InputStream input, final OutputStream output, final long count, final Checksum checksum)
+            throws IOException {
+        final byte[] streamBuffer = new byte[STREAM_BUFFER_SIZE];
+        long total = 0;
+        long chunk = 0;
+        long start = System.currentTimeMillis();
+        int read = 0;
+
+        while (!progress.isCanceled() && total < count &&
+                (read = input.read(streamBuffer, 0, (int) Math.min(streamBuffer.length, count - total))) != -1) {
+            output.write(streamBuffer, 0, read);
+
+            if (checksum != null) {
+                checksum.update(streamBuffer, 0, read);
+            }
+
+            total += read;
+            chunk += read;
+
+            if (chunk >= chunkSize) {
+                chunkCopied(chunk, start);
+                chunk = 0;
+                start = System.currentTimeMillis();
+            }
+        }
+
+        if (chunk > 0) {
+            progress.bytesCopied(chunk);
+        }
+
+        return total;
+    }
+
+    /**
+     * Gets the current number of bytes to copy between each progress report.
+     *
+     * @return The chunk size.
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Sends a chunk of the file to the connection through the buffer, and updates the checksum
+     * with the bytes on the way. Reads at the position, without changing the position of the channel.
+     *
+     * @param file The file to send.
+     * @param connection The connection to send the chunk to.
+     * @param position The position in the file of the first byte of the chunk.
+     * @param count The number of bytes in the chunk.
+     * @param checksum The checksum to update.
+     * @return The number of bytes sent, less than the count at the end of the file.
+     * @throws IOException If the file could not be read, or the connection failed.
+     */
+    private long sendThroughBuffer(final FileChannel file, final WritableByteChannel connection, final long position,
+                                   final long count, final Checksum checksum) throws IOException {
+        long sent = 0;
+
+        while (sent < count) {
+            final ByteBuffer chunk = getBuffer(count - sent);
+            final int bytes = file.read(chunk, position + sent);
+
+            if (bytes <= 0) {
+                break;
+            }
+
+            checksum.update(chunk.array(), 0, bytes);
+            chunk.flip();
+
+            while (chunk.hasRemaining()) {
+                connection.write(chunk);
+            }
+
+            sent += bytes;
+        }
+
+        return sent;
+    }
+
+    /**
+     * Receives a chunk of the file from the connection through the buffer, and updates the checksum
+     * with the bytes on the way. Writes at the position, without changing the position of the channel.
+     *
+     * @param connection The connection to receive the chunk from.
+     * @param file The file to save to.
+     * @param position The position in the file of the first byte of the chunk.
+     * @param count The number of bytes in the chunk.
+     * @param checksum The checksum to update.
+     * @return The number of bytes received, less than the count if the connection was closed.
+     * @throws IOException If the file could not be written, or the connection failed.
+     */
+    private long receiveThroughBuffer(final ReadableByteChannel connection, final FileChannel file, final long position,
+                                      final long count, final Checksum checksum) throws IOException {
+        long received = 0;
+
+        while (received < count) {
+            final ByteBuffer chunk = getBuffer(count - received);
+            final int bytes = connection.read(chunk);
+
+            if (bytes <= 0) {
+                break;
+            }
+
+            checksum.update(chunk.array(), 0, bytes);
+            chunk.flip();
+
+            while (chunk.hasRemaining()) {
+                file.write(chunk, position + received + chunk.position());
+            }
+
+            received += bytes;
+        }
+
+        return received;
+    }
+
+    /**
+     * Gets the cleared buffer, limited to the number of bytes left.
+     *
+     * @param remaining The number of bytes left to copy.
+     * @return The buffer.
+     */
+    private ByteBuffer getBuffer(final long remaining) {
+        if (buffer == null) {
+            buffer = ByteBuffer.allocate(STREAM_BUFFER_SIZE);
+        }
+
+        buffer.clear();
+        buffer.limit((int) Math.min(buffer.capacity(), remaining));
+
+        return buffer;
+    }
+
+    /**
+     * Reports the progress, and adjusts the size of the next chunk to the time this one took.
+     *
+     * @param copied The number of bytes copied in the chunk.
+     * @param start When copying of the chunk started.
+     */
+    private void chunkCopied(final long copied, final long start) {
+        progress.bytesCopied(copied);
+
+        final long elapsed = System.currentTimeMillis() - start;
+
+        if (elapsed < FAST_CHUNK_TIME && chunkSize < MAX_CHUNK_SIZE) {
+            chunkSize *= 2;
+        }
+
+        else if (elapsed > SLOW_CHUNK_TIME && chunkSize > MIN_CHUNK_SIZE) {
+            chunkSize /= 2;
+        }
+    }
+
+    /**
+     * Gets the progress of a copy, and decides when to stop.
+     */
+    interface Progress {
+
+        /**
+         * Checks if the copy should stop.
+         *
+         * @return If the file transfer has been canceled.
+         */
+        boolean isCanceled();
+
+        /**
+         * Called after each chunk has been copied.
+         *
+         * @param bytes The number of bytes copied since the last call.
+         */
+        void bytesCopied(long bytes);
+    }
+}
@@ -26,21 +26,63 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.ServerSocket;
+import java.io.RandomAccessFile;
 import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
 
-import net.usikkert.kouchat.Constants;
 import net.usikkert.kouchat.event.FileTransferListener;
 import net.usikkert.kouchat.misc.User;
 import net.usikkert.kouchat.util.ByteCounter;
+import net.usikkert.kouchat.util.Validate;
 
 /**
  * This is a class for receiving files from other users.
  *
  * <p>To receive a file, a server socket has to be opened,
- * to wait for incoming transfers.</p>
+ * to wait for incoming transfers. How to wait is decided by the {@link IncomingConnections}.</p>
+ *
+ * <p>If a running {@link NetworkEventLoop} is available, the event loop waits for the
+ * incoming connection, and handles the timeout, using {@link EventLoopConnections}.
+ * No extra threads are then needed while waiting.</p>
+ *
+ * <p>The file is received directly from the socket channel to the file channel, unless channel
+ * transfers are disabled. Then the file is received through streams instead.</p>
+ *
+ * <p>If {@link #prepareResume(String, int)} is used, a {@link TransferJournal} is kept next to the file
+ * while receiving, using a {@link ResumableTransfer}. An interrupted transfer of the same file can then continue from where it stopped.</p>
+ *
+ * <p>If {@link #prepareStreams()} finds that both sides support it, large files are received
+ * over several connections at the same time, using a {@link ParallelTransfer}.</p>
+ *
+ * <p>The speed of the transfer can be limited by a {@link TransferScheduler}.</p>
+ *
+ * <p>If the sender supports it, a checksum of the received bytes is computed while receiving, and
+ * compared with the checksum from the sender at the end using {@link ChecksumExchange}. The file is
+ * only received if the checksums match.</p>
+ *
+ * <p>If a {@link FileTransferServer} is running, and the sender supports handshakes, no server is
+ * opened for the transfer. The sender connects to the shared server instead, and the connections
+ * are handed over after the handshake, using {@link SharedServerConnections}. If the sender supports it,
+ * the connection is given back to the shared server after the transfer, so the sender can use it again
+ * for the next file.</p>
+ *
+ * <p>If {@link #prepareInline(int)} finds that the file is small enough, and both sides support it,
+ * no server is opened at all. The sender sends the whole file in a private message instead,
+ * and the {@link InlineReceiver} waits for it.</p>
+ *
+ * <p>If {@link #prepareMulticast(MulticastOffer)} is used, the file was offered to everyone, and is received
+ * from the multicast group of the file transfer using a {@link MulticastFileReceiver}. The checksum of the whole
+ * file is compared with the checksum in the offer at the end.</p>
  *
  * @author Christian Ihle
  */
@@ -49,6 +91,9 @@ public class FileReceiver implements FileTransfer {
     /** The logger. */
     private static final Logger LOG = Logger.getLogger(FileReceiver.class.getName());
 
+    /** Milliseconds to wait for the sender to connect, before closing the server. */
+    private static final int ACCEPT_TIMEOUT = 15000;
+
     /** The user sending the file. */
     private final User user;
 
@@ -64,6 +109,30 @@ public class FileReceiver implements FileTransfer {
     /** Keeps count of the transfer speed. */
     private final ByteCounter bCounter;
 
+    /** If the file should be received with channels, or through streams. */
+    private boolean channelTransfers;
+
+    /** Keeps the journal of the received bytes, or <code>null</code> if the transfer is not resumable. */
+    private ResumableTransfer resume;
+
+    /** The name of the file, as given by the sender, or <code>null</code> if not known. */
+    private String offeredFileName;
+
+    /** The hash code of the file, as given by the sender. */
+    private int offeredFileHash;
+
+    /** The max number of connections to receive a file over at the same time. */
+    private final int maxStreams;
+
+    /** The number of connections to receive the file over. */
+    private int streams;
+
+    /** The file, opened for receiving over several connections. */
+    private RandomAccessFile raf;
+
+    /** The connections used when receiving over several connections. Can be closed from other threads. */
+    private final List<SocketChannel> connections;
+
     /** Percent of the file received. */
     private int percent;
 
@@ -73,9 +142,21 @@ public class FileReceiver implements FileTransfer {
     /** If the file was successfully received. */
     private boolean received;
 
+    /** The checksum of the received bytes, or <code>-1</code> if not exchanged with the sender. */
+    private long receivedChecksum;
+
+    /** If the checksum of the received bytes matched the checksum from the sender. */
+    private boolean verified;
+
     /** If the file transfer is canceled. */
     private boolean cancel;
 
+    /** If the file transfer is waiting in the queue. */
+    private volatile boolean queued;
+
+    /** Decides how fast the file transfer can go, or <code>null</code> if not limited. */
+    private TransferScheduler scheduler;
+
     /** If the client has accepted to receive the file. */
     private boolean accepted;
 
@@ -85,8 +166,8 @@ public class FileReceiver implements FileTransfer {
     /** The file transfer listener. */
     private FileTransferListener listener;
 
-    /** The server socket waiting for an incoming connection. */
-    private ServerSocket sSock;
+    /** Waits for the connections from the sender, or <code>null</code> if the server is not started. */
+    private volatile IncomingConnections server;
 
     /** The socket connection to the other user. */
     private Socket sock;
@@ -97,21 +178,49 @@ public class FileReceiver implements FileTransfer {
     /** The input stream from the other user. */
     private InputStream is;
 
+    /** The event loop to wait for the connection with, or <code>null</code> to wait in the transfer thread. */
+    private NetworkEventLoop eventLoop;
+
+    /** The shared server for all file transfers, or <code>null</code> if not used. */
+    private FileTransferServer sharedServer;
+
+    /** If the checksum is exchanged with the sender at the end of the transfer. */
+    private boolean checksumRequested;
+
+    /** Waits for the file in a private message, or <code>null</code> if the file is not received inline. */
+    private InlineReceiver inlineReceiver;
+
+    /** The offer of a file sent to everyone, or <code>null</code> if the file is only sent to the application user. */
+    private MulticastOffer multicastOffer;
+
     /**
-     * Constructor. Creates a new file receiver.
+     * Constructor. Creates a new file receiver, that receives with channels.
+     *
+     * <p>The options are the most the receiver can ask the sender for. Only the number of streams
+     * is used here, as the max number of connections to receive the file over at the same time.
+     * The rest of the options are decided when the file is accepted.</p>
      *
      * @param user The user which sends the file.
      * @param file The file the user is sending.
      * @param size The size of the file, in bytes.
      * @param id The unique ID of this file transfer.
+     * @param options The most the receiver can ask the sender for.
      */
-    public FileReceiver(final User user, final File file, final long size, final int id) {
+    public FileReceiver(final User user, final File file, final long size, final int id,
+                        final TransferOptions options) {
+        Validate.notNull(options, "Transfer options can not be null");
+
         this.user = user;
         this.file = file;
         this.size = size;
         this.id = id;
+        maxStreams = Math.min(options.getStreams(), ParallelTransfer.MAX_STREAMS);
+        channelTransfers = true;
 
         bCounter = new ByteCounter();
+        connections = new CopyOnWriteArrayList<SocketChannel>();
+        streams = 1;
+        receivedChecksum = -1;
     }
 
     /**
@@ -122,33 +231,242 @@ public class FileReceiver implements FileTransfer {
      * @throws ServerException If the server could not be started.
      */
     public int startServer() throws ServerException {
-        int port = Constants.NETWORK_FILE_TRANSFER_PORT;
-        boolean done = false;
-        int counter = 0;
+        // The sender does not connect at all
+        if (inlineReceiver != null) {
+            return 0;
+        }
 
-        while (!done && counter < 50) {
-            try {
-                sSock = new ServerSocket(port);
-                final TimeoutThread tt = new TimeoutThread();
-                tt.start();
-                done = true;
-            }
+        server = createIncomingConnections();
 
-            catch (final IOException e) {
-                LOG.log(Level.WARNING, "Could not open " + port, e);
-                port++;
-            }
+        return server.start();
+    }
 
-            finally {
-                counter++;
-            }
+    /**
+     * Decides how to wait for the connections from the sender. The shared server is used if it's running and
+     * the sender supports handshakes. Otherwise a server is opened for the transfer, on the event loop
+     * if it's running, since the event loop only accepts a single connection.
+     *
+     * @return The incoming connections.
+     */
+    private IncomingConnections createIncomingConnections() {
+        if (sharedServer != null && sharedServer.isRunning() && user.hasCapability(Capability.HANDSHAKE)) {
+            return new SharedServerConnections(sharedServer, new TransferHandshake(user.getCode(), id),
+                                               ACCEPT_TIMEOUT, user.hasCapability(Capability.KEEPALIVE));
+        }
+
+        if (eventLoop != null && eventLoop.isRunning() && streams == 1) {
+            return new EventLoopConnections(eventLoop, ACCEPT_TIMEOUT);
+        }
+
+        return new ServerSocketConnections(channelTransfers, ACCEPT_TIMEOUT);
+    }
+
+    /**
+     * The sender is waiting for other file transfers to finish before connecting.
+     * Keeps waiting for the connection until the sender connects, or the transfer is canceled,
+     * instead of giving up at the timeout. Does nothing if the server is not started.
+     */
+    public void senderQueued() {
+        final IncomingConnections incoming = server;
+
+        if (incoming != null) {
+            incoming.senderQueued();
+        }
+    }
+
+    /**
+     * Gets the id the sender should put in the handshake of each connection.
+     *
+     * <p>Must be called after the server is started.</p>
+     *
+     * @return The id of this file transfer, or <code>0</code> if the sender should not send a handshake.
+     */
+    public int getHandshakeId() {
+        if (server != null && server.isHandshakeNeeded()) {
+            return id;
+        }
+
+        return 0;
+    }
+
+    /**
+     * Remembers how the sender identified the file in the offer, so {@link #isResumable()}
+     * can look for a journal from an earlier attempt before the file to save to is chosen.
+     *
+     * @param fileName The name of the file, as given by the sender.
+     * @param fileHash The hash code of the file, as given by the sender.
+     */
+    public void setOffer(final String fileName, final int fileHash) {
+        offeredFileName = fileName;
+        offeredFileHash = fileHash;
+    }
+
+    /**
+     * Checks if the current file is a partial file from an earlier attempt to receive the same file,
+     * that {@link #prepareResume(String, int)} can continue. Such a file should be kept, instead of
+     * saving to a new file next to it.
+     *
+     * @return If the transfer can continue where an earlier attempt stopped.
+     */
+    public boolean isResumable() {
+        if (offeredFileName == null || !user.hasCapability(Capability.RESUME)) {
+            return false;
+        }
+
+        return new ResumableTransfer(file, offeredFileName, offeredFileHash, size).matches();
+    }
+
+    /**
+     * Makes the file transfer resumable, by keeping a journal of the received bytes next to the file.
+     * If an earlier attempt to receive the same file was interrupted, and the sender supports it,
+     * the transfer continues from where that attempt stopped.
+     *
+     * <p>Must be called after the file to save to has been chosen, and before the transfer starts.</p>
+     *
+     * @param fileName The name of the file, as given by the sender.
+     * @param fileHash The hash code of the file, as given by the sender.
+     * @return The number of bytes the sender can skip, or <code>0</code> to send the whole file.
+     */
+    public long prepareResume(final String fileName, final int fileHash) {
+        resume = new ResumableTransfer(file, fileName, fileHash, size);
+        final long resumeOffset = resume.findOffset(user.hasCapability(Capability.RESUME));
+
+        if (resumeOffset > 0) {
+            LOG.log(Level.FINE, "Resuming " + file + " from byte " + resumeOffset);
+        }
+
+        return resumeOffset;
+    }
+
+    /**
+     * Decides how many connections to receive the file over. Several connections are only used
+     * for large files, when the sender supports it, and the transfer is not resumed.
+     * A transfer over several connections is not resumable.
+     *
+     * <p>Must be called after {@link #prepareResume(String, int)}, if used, and before the server is started.</p>
+     *
+     * @return The number of connections the sender should use.
+     */
+    public int prepareStreams() {
+        if (maxStreams > 1 && channelTransfers && getResumeOffset() == 0 && size >= ParallelTransfer.MIN_FILE_SIZE &&
+                user.hasCapability(Capability.PARALLEL)) {
+            streams = maxStreams;
+            resume = null;
+        }
+
+        else {
+            streams = 1;
+        }
+
+        return streams;
+    }
+
+    /**
+     * Decides if the file should be received inline in a private message. Only used for small files,
+     * when the sender supports it, and the file is received over a single connection from the start.
+     * An inline transfer is not resumable.
+     *
+     * <p>Must be called after {@link #prepareStreams()}, and before the server is started.</p>
+     *
+     * @param maxSize The max size of a file to receive inline, or <code>0</code> to never receive inline.
+     * @return If the file is received inline.
+     */
+    public boolean prepareInline(final int maxSize) {
+        if (size <= Math.min(maxSize, InlineTransfer.MAX_SIZE) && getResumeOffset() == 0 && streams == 1 &&
+                InlineTransfer.isSupported(user)) {
+            inlineReceiver = new InlineReceiver();
+            resume = null;
+        }
+
+        else {
+            inlineReceiver = null;
+        }
+
+        return isInline();
+    }
+
+    /**
+     * Decides if the checksum should be exchanged with the sender at the end of the transfer.
+     * Only used when the sender supports it. The sender is told in the accept message,
+     * so both sides agree even if one of them has old information about the capabilities of the other.
+     *
+     * <p>Must be called before the server is started.</p>
+     *
+     * @return If the sender should exchange the checksum.
+     */
+    public boolean prepareChecksum() {
+        checksumRequested = ChecksumExchange.isSupported(user);
+        return checksumRequested;
+    }
+
+    /**
+     * Checks if the file is received inline in a private message.
+     *
+     * @return If the file is received inline.
+     */
+    public boolean isInline() {
+        return inlineReceiver != null;
+    }
+
+    /**
+     * Gives the content of an inline file to the file receiver waiting for it.
+     *
+     * @param content The content of the file.
+     * @param contentChecksum The checksum of the content, from the sender.
+     * @return If the file receiver was waiting for the content.
+     */
+    public boolean inlineContentArrived(final byte[] content, final long contentChecksum) {
+        final InlineReceiver receiver = inlineReceiver;
+
+        if (receiver == null) {
+            return false;
         }
 
-        if (!done) {
-            throw new ServerException("Could not start server");
+        return receiver.contentArrived(content, contentChecksum);
+    }
+
+    /**
+     * Prepares to receive a file sent to everyone, from the multicast group in the offer.
+     * No server is needed then.
+     *
+     * @param offer The offer from the sender.
+     */
+    public void prepareMulticast(final MulticastOffer offer) {
+        Validate.notNull(offer, "Offer can not be null");
+
+        multicastOffer = offer;
+        resume = null;
+    }
+
+    /**
+     * Checks if the file is received from a multicast group.
+     *
+     * @return If the file is received from a multicast group.
+     */
+    public boolean isMulticast() {
+        return multicastOffer != null;
+    }
+
+    /**
+     * Gets the number of connections the file is received over.
+     *
+     * @return The number of connections.
+     */
+    public int getStreams() {
+        return streams;
+    }
+
+    /**
+     * Gets the number of bytes already received in an earlier attempt.
+     *
+     * @return The number of bytes skipped, or <code>0</code> if the whole file is received.
+     */
+    public long getResumeOffset() {
+        if (resume != null) {
+            return resume.getOffset();
         }
 
-        return port;
+        return 0;
     }
 
     /**
@@ -158,42 +476,58 @@ public class FileReceiver implements FileTransfer {
      * @return If the file transfer was successful.
      */
     public boolean transfer() {
+        if (inlineReceiver != null) {
+            return transferInline();
+        }
+
+        if (multicastOffer != null) {
+            return transferMulticast();
+        }
+
         listener.statusConnecting();
 
         received = false;
         cancel = false;
+        verified = false;
 
         try {
-            if (sSock != null) {
-                sock = sSock.accept();
+            if (server != null) {
+                sock = server.waitForConnection();
+            }
+
+            if (sock != null) {
                 listener.statusTransferring();
-                fos = new FileOutputStream(file);
-                is = sock.getInputStream();
-
-                final byte[] b = new byte[1024];
-                transferred = 0;
-                percent = 0;
-                int tmpTransferred = 0;
-                int tmpPercent = 0;
-                int transCounter = 0;
+
+                final long resumeOffset = getResumeOffset();
+                final TransferProgress progress = new TransferProgress();
+                final CRC32 crc = createChecksum();
+                transferred = resumeOffset;
+                percent = calculatePercent();
                 bCounter.prepare();
+                boolean complete = true;
+
+                if (streams > 1 && sock.getChannel() != null) {
+                    complete = receiveParallel(progress, crc != null);
+                }
 
-                while (!cancel && (tmpTransferred = is.read(b)) != -1) {
-                    fos.write(b, 0, tmpTransferred);
-                    transferred += tmpTransferred;
-                    percent = (int) ((transferred * 100) / size);
-                    bCounter.addBytes(tmpTransferred);
-                    transCounter++;
-
-                    if (percent > tmpPercent || transCounter >= 250) {
-                        transCounter = 0;
-                        tmpPercent = percent;
-                        listener.transferUpdate();
-                    }
+                else if (channelTransfers && sock.getChannel() != null) {
+                    new FileCopier(progress).receive(sock.getChannel(), openFileChannel(), resumeOffset, size,
+                                                     getChecksumToUpdate(crc));
+                }
+
+                else {
+                    openFile();
+                    is = sock.getInputStream();
+                    new FileCopier(progress).copy(is, fos, size - resumeOffset, getChecksumToUpdate(crc));
                 }
 
-                if (!cancel && transferred == size) {
+                if (!cancel && complete && transferred == size && crc != null) {
+                    complete = verifyChecksum(crc);
+                }
+
+                if (!cancel && complete && transferred == size) {
                     received = true;
+                    keepConnectionAlive();
                     listener.statusCompleted();
                 }
 
@@ -211,19 +545,318 @@ public class FileReceiver implements FileTransfer {
         finally {
             stopReceiver();
             cleanupConnections();
+
+            if (resume != null) {
+                resume.finished(received, transferred);
+            }
         }
 
         return received;
     }
 
+    /**
+     * Waits for the content of the file in a private message, and saves it if
+     * the checksum from the sender matches.
+     *
+     * @return If the file transfer was successful.
+     */
+    private boolean transferInline() {
+        listener.statusConnecting();
+
+        received = false;
+        cancel = false;
+        verified = false;
+
+        try {
+            final byte[] content = inlineReceiver.waitForContent();
+
+            if (content != null && !cancel) {
+                listener.statusTransferring();
+                bCounter.prepare();
+                verified = inlineReceiver.verify(content, size);
+                receivedChecksum = inlineReceiver.getChecksum();
+
+                if (verified) {
+                    openFile();
+                    fos.write(content);
+                    transferred = 0;
+                    new TransferProgress().bytesCopied(content.length);
+
+                    received = true;
+                    listener.statusCompleted();
+                }
+
+                else {
+                    LOG.log(Level.SEVERE, "Checksum mismatch when receiving " + file + " inline");
+                    listener.statusFailed();
+                }
+            }
+
+            else {
+                listener.statusFailed();
+            }
+        }
+
+        catch (final IOException e) {
+            LOG.log(Level.SEVERE, e.toString());
+            listener.statusFailed();
+        }
+
+        finally {
+            stopReceiver();
+            cleanupConnections();
+        }
+
+        return received;
+    }
+
+    /**
+     * Receives the file from the multicast group, and verifies the checksum of the whole file.
+     *
+     * @return If the file was received.
+     */
+    private boolean transferMulticast() {
+        listener.statusConnecting();
+
+        received = false;
+        cancel = false;
+        verified = false;
+
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            raf.setLength(size);
+
+            listener.statusTransferring();
+            bCounter.prepare();
+            transferred = 0;
+
+            final MulticastFileReceiver multicastReceiver = new MulticastFileReceiver(multicastOffer, user.getIpAddress());
+
+            if (multicastReceiver.receive(raf, new TransferProgress()) && !cancel) {
+                receivedChecksum = multicastReceiver.getChecksum();
+                verified = receivedChecksum == multicastOffer.getChecksum();
+
+                if (verified) {
+                    received = true;
+                    listener.statusCompleted();
+                }
+
+                else {
+                    LOG.log(Level.SEVERE, "Checksum mismatch when receiving " + file + " from a multicast group");
+                    listener.statusFailed();
+                }
+            }
+
+            else {
+                listener.statusFailed();
+            }
+        }
+
+        catch (final IOException e) {
+            LOG.log(Level.SEVERE, e.toString());
+            listener.statusFailed();
+        }
+
+        finally {
+            stopReceiver();
+            cleanupConnections();
+        }
+
+        return received;
+    }
+
+    /**
+     * Accepts the rest of the connections from the sender, and receives the chunks of the file
+     * from all the connections into the preallocated file.
+     *
+     * @param progress The progress of the transfer.
+     * @param checksums If each chunk is followed by its checksum.
+     * @return If all the chunks were received.
+     * @throws IOException If a connection failed, or the file could not be opened.
+     */
+    private boolean receiveParallel(final TransferProgress progress, final boolean checksums) throws IOException {
+        raf = new RandomAccessFile(file, "rw");
+        raf.setLength(size);
+        connections.add(sock.getChannel());
+
+        while (connections.size() < streams && !cancel) {
+            connections.add(server.waitForNextConnection());
+        }
+
+        final ParallelTransfer parallelTransfer =
+                new ParallelTransfer(raf.getChannel(), size, connections, progress, checksums);
+        final boolean complete = parallelTransfer.receive();
+        receivedChecksum = parallelTransfer.getChecksum();
+
+        return complete;
+    }
+
+    /**
+     * Lets the incoming connections keep the connection after a successful transfer, so the sender
+     * can start the next file transfer on it. Only done for a single connection that is not wrapped
+     * in a stream.
+     */
+    private void keepConnectionAlive() {
+        if (connections.isEmpty() && is == null && sock.getChannel() != null && server.keepAlive(sock.getChannel())) {
+            sock = null;
+        }
+    }
+
+    /**
+     * Creates the checksum to compare with the checksum from the sender.
+     *
+     * @return The checksum, or <code>null</code> if the checksum was not asked for.
+     */
+    private CRC32 createChecksum() {
+        if (checksumRequested) {
+            return new CRC32();
+        }
+
+        return null;
+    }
+
+    /**
+     * Reads the checksum the sender wrote after the end of the file, compares it with the checksum
+     * of the received bytes, and tells the sender if they matched. When receiving over several connections,
+     * the checksum of each chunk has already been verified.
+     *
+     * <p>When resuming, only the bytes received this time are compared. The bytes from the earlier attempt
+     * were compared with the checksum in the journal when the offset was found.</p>
+     *
+     * <p>A resume journal is no use after a mismatch, since the corrupt bytes can be anywhere in the file.</p>
+     *
+     * @param crc The checksum of the received bytes.
+     * @return If the checksums matched.
+     * @throws IOException If the connection failed.
+     */
+    private boolean verifyChecksum(final CRC32 crc) throws IOException {
+        if (connections.isEmpty()) {
+            receivedChecksum = crc.getValue();
+            verified = ChecksumExchange.readChecksum(getInputChannel()) == receivedChecksum;
+        }
+
+        else {
+            verified = true;
+        }
+
+        ChecksumExchange.writeVerdict(getOutputChannel(), verified);
+
+        if (!verified) {
+            LOG.log(Level.SEVERE, "Checksum mismatch when receiving " + file);
+
+            if (resume != null) {
+                resume.discard();
+            }
+        }
+
+        return verified;
+    }
+
+    /**
+     * Gets the channel to read from the sender with, after the file.
+     *
+     * @return The input channel.
+     * @throws IOException If the connection is closed.
+     */
+    private ReadableByteChannel getInputChannel() throws IOException {
+        if (is != null) {
+            return Channels.newChannel(is);
+        }
+
+        return sock.getChannel();
+    }
+
+    /**
+     * Gets the channel to write to the sender with.
+     *
+     * @return The output channel.
+     * @throws IOException If the connection is closed.
+     */
+    private WritableByteChannel getOutputChannel() throws IOException {
+        if (sock.getChannel() != null) {
+            return sock.getChannel();
+        }
+
+        return Channels.newChannel(sock.getOutputStream());
+    }
+
+    /**
+     * Opens the file to save to. When resuming, the bytes after the resume offset are removed,
+     * and the file is opened for appending.
+     *
+     * @throws IOException If the file could not be opened.
+     */
+    private void openFile() throws IOException {
+        final long resumeOffset = getResumeOffset();
+
+        if (resumeOffset > 0) {
+            fos = new FileOutputStream(file, true);
+            fos.getChannel().truncate(resumeOffset);
+        }
+
+        else {
+            fos = new FileOutputStream(file);
+        }
+
+        if (resume != null) {
+            resume.started();
+        }
+    }
+
+    /**
+     * Opens the file for receiving with channels, starting at the resume offset.
+     *
+     * @return The channel to receive the file to.
+     * @throws IOException If the file could not be opened.
+     */
+    private FileChannel openFileChannel() throws IOException {
+        raf = new RandomAccessFile(file, "rw");
+        raf.setLength(getResumeOffset());
+
+        if (resume != null) {
+            resume.started();
+        }
+
+        return raf.getChannel();
+    }
+
+    /**
+     * Gets the checksum to update with the received bytes.
+     *
+     * @param crc The checksum to compare with the sender, or <code>null</code>.
+     * @return The checksum, or <code>null</code> if the transfer is not resumable, and no checksum is exchanged.
+     */
+    private Checksum getChecksumToUpdate(final CRC32 crc) {
+        if (resume != null) {
+            return resume.getChecksumToUpdate(crc);
+        }
+
+        return crc;
+    }
+
+    /**
+     * Calculates the percent of the file received.
+     *
+     * @return The percent received.
+     */
+    private int calculatePercent() {
+        if (size > 0) {
+            return (int) ((transferred * 100) / size);
+        }
+
+        return 0;
+    }
+
     /**
      * Sets all connections to null.
      */
     private void cleanupConnections() {
         is = null;
         fos = null;
+        raf = null;
+        connections.clear();
         sock = null;
-        sSock = null;
+        server = null;
     }
 
     /**
@@ -240,6 +873,26 @@ public class FileReceiver implements FileTransfer {
             LOG.log(Level.SEVERE, e.toString(), e);
         }
 
+        for (final SocketChannel connection : connections) {
+            try {
+                connection.close();
+            }
+
+            catch (final IOException e) {
+                LOG.log(Level.SEVERE, e.toString(), e);
+            }
+        }
+
+        try {
+            if (raf != null) {
+                raf.close();
+            }
+        }
+
+        catch (final IOException e) {
+            LOG.log(Level.SEVERE, e.toString(), e);
+        }
+
         try {
             if (fos != null) {
                 fos.flush();
@@ -270,14 +923,16 @@ public class FileReceiver implements FileTransfer {
             LOG.log(Level.SEVERE, e.toString(), e);
         }
 
-        try {
-            if (sSock != null) {
-                sSock.close();
-            }
+        final IncomingConnections incoming = server;
+
+        if (incoming != null) {
+            incoming.close();
         }
 
-        catch (final IOException e) {
-            LOG.log(Level.SEVERE, e.toString(), e);
+        final InlineReceiver receiver = inlineReceiver;
+
+        if (receiver != null) {
+            receiver.stop();
         }
     }
 
@@ -324,6 +979,86 @@ public class FileReceiver implements FileTransfer {
         return received;
     }
 
+    /**
+     * Checks if the file transfer is waiting in the queue for other file transfers to finish.
+     *
+     * @return If the file transfer is queued.
+     */
+    @Override
+    public boolean isQueued() {
+        return queued;
+    }
+
+    /**
+     * Sets if the file transfer is waiting in the queue, and notifies the listener when queued.
+     *
+     * @param queued If the file transfer is queued.
+     */
+    @Override
+    public void setQueued(final boolean queued) {
+        this.queued = queued;
+
+        if (queued && listener != null) {
+            listener.statusQueued();
+        }
+    }
+
+    /**
+     * Sets the scheduler that decides how fast the file transfer can go.
+     *
+     * @param scheduler The scheduler, or <code>null</code> if not limited.
+     */
+    void setScheduler(final TransferScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Sets the shared server to receive the connections from, when the sender supports handshakes.
+     *
+     * @param sharedServer The shared server, or <code>null</code> to open a server for the transfer.
+     */
+    void setSharedServer(final FileTransferServer sharedServer) {
+        this.sharedServer = sharedServer;
+    }
+
+    /**
+     * Sets the event loop to wait for the connection with.
+     *
+     * @param eventLoop The event loop, or <code>null</code> to wait in the transfer thread.
+     */
+    void setEventLoop(final NetworkEventLoop eventLoop) {
+        this.eventLoop = eventLoop;
+    }
+
+    /**
+     * Sets if the file should be received with channels, or through streams.
+     *
+     * @param channelTransfers If the file should be received with channels. The default is <code>true</code>.
+     */
+    void setChannelTransfers(final boolean channelTransfers) {
+        this.channelTransfers = channelTransfers;
+    }
+
+    /**
+     * Gets the checksum of the received bytes.
+     *
+     * @return The checksum, or <code>-1</code> if not exchanged with the sender.
+     */
+    @Override
+    public long getChecksum() {
+        return receivedChecksum;
+    }
+
+    /**
+     * Checks if the checksum of the received bytes matched the checksum from the sender.
+     *
+     * @return If the checksum was verified.
+     */
+    @Override
+    public boolean isVerified() {
+        return verified;
+    }
+
     /**
      * Gets the file that is being transferred.
      *
@@ -402,6 +1137,36 @@ public class FileReceiver implements FileTransfer {
         return bCounter.getBytesPerSec();
     }
 
+    /**
+     * Gets the number of bytes transferred per second, smoothed over the last seconds.
+     *
+     * @return The smoothed speed in bytes per second.
+     */
+    @Override
+    public long getSmoothedSpeed() {
+        return bCounter.getSmoothedBytesPerSec();
+    }
+
+    /**
+     * Gets the estimated time left of the file transfer, based on the smoothed speed.
+     *
+     * @return The number of seconds left, or <code>-1</code> if unknown.
+     */
+    @Override
+    public long getSecondsLeft() {
+        return bCounter.getSecondsLeft(size - transferred);
+    }
+
+    /**
+     * Gets the speed of each of the last seconds of the file transfer.
+     *
+     * @return The number of bytes transferred in each second, with the oldest second first.
+     */
+    @Override
+    public long[] getSpeedHistory() {
+        return bCounter.getHistory();
+    }
+
     /**
      * Gets the ID of this file transfer. The ID is unique during the session, and starts with 1.
      *
@@ -457,45 +1222,50 @@ public class FileReceiver implements FileTransfer {
     }
 
     /**
-     * A thread for closing the server connection if no client
-     * has connected within 15 seconds.
-     *
-     * <p>This does not mean that the user only has 15 seconds to decide
-     * where to save the file. This timer is started after the user has
-     * decided, and waits for an automated response from the sender.
-     * If nothing has happened to the sender, the response should be very quick.</p>
+     * Updates the progress of the file transfer after each chunk is received.
+     * Synchronized, since several connections may receive at the same time.
      */
-    private class TimeoutThread extends Thread {
+    private class TransferProgress implements FileCopier.Progress {
+
         /**
-         * Constructor. Sets the name of the thread.
+         * Checks if the file transfer has been canceled.
+         *
+         * @return If the file transfer has been canceled.
          */
-        public TimeoutThread() {
-            setName("TimeoutThread");
+        @Override
+        public boolean isCanceled() {
+            return cancel;
         }
 
         /**
-         * The thread. Sleeps for 15 seconds, and then closes the
-         * server connection if it is not already closed.
+         * Registers the received bytes, and notifies the listener. Waits if the transfer
+         * is going faster than its share of the download rate.
+         *
+         * <p>Only the counters are updated while holding the lock, so the other connections
+         * of a transfer are never blocked while this one saves the journal or waits.</p>
+         *
+         * @param bytes The number of bytes received since the last call.
          */
         @Override
-        public void run() {
-            try {
-                sleep(15000);
+        public void bytesCopied(final long bytes) {
+            final long total;
+
+            synchronized (this) {
+                transferred += bytes;
+                total = transferred;
+                percent = calculatePercent();
+                bCounter.addBytes(bytes);
             }
 
-            catch (final InterruptedException e) {
-                LOG.log(Level.SEVERE, e.toString(), e);
+            // Only used when receiving over a single connection
+            if (resume != null) {
+                resume.bytesReceived(total);
             }
 
-            try {
-                if (sSock != null) {
-                    sSock.close();
-                    sSock = null;
-                }
-            }
+            listener.transferUpdate();
 
-            catch (final IOException e) {
-                LOG.log(Level.SEVERE, e.toString(), e);
+            if (scheduler != null) {
+                scheduler.throttle(FileReceiver.this, bytes);
             }
         }
     }
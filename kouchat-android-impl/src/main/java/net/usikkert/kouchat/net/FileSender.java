@@ -27,14 +27,25 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.CRC32;
 
 import net.usikkert.kouchat.event.FileTransferListener;
 import net.usikkert.kouchat.misc.User;
 import net.usikkert.kouchat.util.ByteCounter;
+import net.usikkert.kouchat.util.Validate;
 
 /**
  * This is a class for sending files to other users.
@@ -42,6 +53,28 @@ import net.usikkert.kouchat.util.ByteCounter;
  * <p>To send a file, the user at the other end needs to
  * open a server socket so this client can connect.</p>
  *
+ * <p>The file is sent directly from the file channel to the socket channel, unless channel
+ * transfers are disabled. Then the file is sent through streams instead.</p>
+ *
+ * <p>If the receiver already has the start of the file from an interrupted transfer,
+ * only the rest of the file is sent.</p>
+ *
+ * <p>If the receiver asks for it, the file is sent over several connections at the same time,
+ * using a {@link ParallelTransfer}.</p>
+ *
+ * <p>The speed of the transfer can be limited by a {@link TransferScheduler}.</p>
+ *
+ * <p>If the receiver supports it, a checksum of the sent bytes is computed while sending, and
+ * exchanged with the receiver at the end using {@link ChecksumExchange}. The file is then only
+ * sent when the receiver confirms that the checksums matched.</p>
+ *
+ * <p>If the receiver uses a shared {@link FileTransferServer}, each connection starts with
+ * a {@link TransferHandshake}, so the receiver knows which file transfer it belongs to. If the receiver
+ * also supports keeping the connection open, the connection is put in a {@link TransferConnectionPool}
+ * after the transfer, and the next file transfer to the receiver starts on the same connection.</p>
+ *
+ * <p>Small files can be sent inline in a private message instead, using {@link InlineTransfer}.</p>
+ *
  * @author Christian Ihle
  */
 public class FileSender implements FileTransfer {
@@ -49,6 +82,9 @@ public class FileSender implements FileTransfer {
     /** The logger. */
     private static final Logger LOG = Logger.getLogger(FileSender.class.getName());
 
+    /** Milliseconds between each check for cancel, while waiting for the receiver of a file inline to answer. */
+    private static final int CANCEL_CHECK_INTERVAL = 500;
+
     /** The user to send a file to. */
     private final User user;
 
@@ -61,6 +97,9 @@ public class FileSender implements FileTransfer {
     /** Keeps count of the transfer speed. */
     private final ByteCounter bCounter;
 
+    /** If the file should be sent with channels, or through streams. */
+    private final boolean channelTransfers;
+
     /** Percent of the file transferred. */
     private int percent;
 
@@ -70,9 +109,27 @@ public class FileSender implements FileTransfer {
     /** If the file was successfully sent. */
     private boolean sent;
 
+    /** The checksum of the sent bytes, or <code>-1</code> if not exchanged with the receiver. */
+    private long checksum;
+
+    /** If the receiver confirmed that the checksums matched. */
+    private boolean verified;
+
+    /** Counted down when the receiver of a file inline answers. */
+    private volatile CountDownLatch inlineAnswerLatch;
+
+    /** If the receiver of a file inline answered that the content arrived with the right checksum. */
+    private volatile boolean inlineVerified;
+
     /** If the file transfer is canceled. */
     private boolean cancel;
 
+    /** If the file transfer is waiting in the queue. */
+    private volatile boolean queued;
+
+    /** Decides how fast the file transfer can go, or <code>null</code> if not limited. */
+    private TransferScheduler scheduler;
+
     /** If still waiting for the file transfer to begin. */
     private boolean waiting;
 
@@ -88,44 +145,96 @@ public class FileSender implements FileTransfer {
     /** The socket connection to the other user. */
     private Socket sock;
 
+    /** All the connections, when sending over several connections. Can be closed from other threads. */
+    private final List<SocketChannel> connections;
+
+    /** The handshake to start each connection with, or <code>null</code> if the receiver did not ask for one. */
+    private TransferHandshake handshake;
+
+    /** If the receiver asked to exchange the checksum at the end of the transfer. */
+    private boolean checksumRequested;
+
+    /** The pool of connections to use again, or <code>null</code> to always open a new connection. */
+    private TransferConnectionPool connectionPool;
+
+    /** The user code of the application user, to start the handshake with. */
+    private int senderCode;
+
     /**
-     * Constructor. Creates a new file sender.
+     * Constructor. Creates a new file sender, that sends with channels.
      *
      * @param user The user to send the file to.
      * @param file The file to send.
      * @param id The unique ID of this file transfer.
      */
     public FileSender(final User user, final File file, final int id) {
+        this(user, file, id, true);
+    }
+
+    /**
+     * Constructor. Creates a new file sender.
+     *
+     * @param user The user to send the file to.
+     * @param file The file to send.
+     * @param id The unique ID of this file transfer.
+     * @param channelTransfers If the file should be sent with channels, or through streams.
+     */
+    public FileSender(final User user, final File file, final int id, final boolean channelTransfers) {
         this.user = user;
         this.file = file;
         this.id = id;
+        this.channelTransfers = channelTransfers;
+
+        connections = new CopyOnWriteArrayList<SocketChannel>();
 
         bCounter = new ByteCounter();
         waiting = true;
+        checksum = -1;
     }
 
     /**
      * Connects to the user at the specified port and transfers the file
-     * to that user.
+     * to that user, the way the user asked for when accepting the file.
+     *
+     * <p>The file is sent from the resume offset, over the number of connections in the options.
+     * Each connection starts with a handshake if the user asked for one, and the checksum is
+     * exchanged at the end if the user asked for it.</p>
      *
      * @param port The port to use when connecting to the user.
+     * @param options The options the user asked for when accepting the file.
      * @return If the file transfer was successful.
      */
-    public boolean transfer(final int port) {
+    public boolean transfer(final int port, final TransferOptions options) {
+        Validate.notNull(options, "Transfer options can not be null");
+
+        final long offset = options.getResumeOffset();
+        final int streams = options.getStreams();
+        handshake = createHandshake(options.getHandshakeId());
+        checksumRequested = options.isChecksum();
+
+        if (offset < 0 || offset > file.length()) {
+            LOG.log(Level.SEVERE, "Invalid resume offset " + offset + " for " + file);
+            listener.statusFailed();
+            return false;
+        }
+
         if (!cancel) {
             listener.statusConnecting();
 
             waiting = false;
             sent = false;
+            verified = false;
 
             try {
+                final boolean singleStream = streams <= 1 || offset > 0;
+                sock = reuseConnection(port, singleStream);
                 int counter = 0;
 
                 while (sock == null && counter < 10) {
                     counter++;
 
                     try {
-                        sock = new Socket(InetAddress.getByName(user.getIpAddress()), port);
+                        sock = connect(InetAddress.getByName(user.getIpAddress()), port);
                     }
 
                     catch (final UnknownHostException e) {
@@ -148,32 +257,38 @@ public class FileSender implements FileTransfer {
                 if (sock != null && !cancel) {
                     listener.statusTransferring();
                     fis = new FileInputStream(file);
-                    os = sock.getOutputStream();
-
-                    final byte[] b = new byte[1024];
-                    transferred = 0;
-                    percent = 0;
-                    int tmpTransferred = 0;
-                    int tmpPercent = 0;
-                    int transCounter = 0;
+
+                    final long fileSize = file.length();
+                    final TransferProgress progress = new TransferProgress(fileSize);
+                    final FileCopier copier = new FileCopier(progress);
+                    final CRC32 crc = createChecksum();
+                    transferred = offset;
+                    percent = calculatePercent(fileSize);
                     bCounter.prepare();
+                    boolean complete = true;
+
+                    if (streams > 1 && offset == 0 && sock.getChannel() != null) {
+                        complete = sendParallel(port, Math.min(streams, ParallelTransfer.MAX_STREAMS), fileSize, progress,
+                                                crc != null);
+                    }
 
-                    while (!cancel && (tmpTransferred = fis.read(b)) != -1) {
-                        os.write(b, 0, tmpTransferred);
-                        transferred += tmpTransferred;
-                        percent = (int) ((transferred * 100) / file.length());
-                        bCounter.addBytes(tmpTransferred);
-                        transCounter++;
-
-                        if (percent > tmpPercent || transCounter >= 250) {
-                            transCounter = 0;
-                            tmpPercent = percent;
-                            listener.transferUpdate();
-                        }
+                    else if (sock.getChannel() != null) {
+                        copier.send(fis.getChannel(), sock.getChannel(), offset, fileSize, crc);
                     }
 
-                    if (!cancel && transferred == file.length()) {
+                    else {
+                        fis.getChannel().position(offset);
+                        os = sock.getOutputStream();
+                        copier.copy(fis, os, fileSize - offset, crc);
+                    }
+
+                    if (!cancel && complete && transferred == fileSize && crc != null) {
+                        complete = verifyChecksum(crc);
+                    }
+
+                    if (!cancel && complete && transferred == fileSize) {
                         sent = true;
+                        releaseConnection(port, singleStream);
                         listener.statusCompleted();
                     }
 
@@ -206,10 +321,358 @@ public class FileSender implements FileTransfer {
         return sent;
     }
 
+    /**
+     * Sends the whole file inline, without connecting to the user. The file is sent
+     * when the receiver answers that the content arrived with the right checksum.
+     *
+     * @param inlineSender Sends the content of the file to the user.
+     * @return If the file transfer was successful.
+     */
+    public boolean transferInline(final InlineTransfer.Sender inlineSender) {
+        if (!cancel) {
+            listener.statusConnecting();
+
+            waiting = false;
+            sent = false;
+            verified = false;
+
+            try {
+                final byte[] content = InlineTransfer.readFile(file);
+                checksum = InlineTransfer.checksum(content);
+                bCounter.prepare();
+                listener.statusTransferring();
+                inlineAnswerLatch = new CountDownLatch(1);
+
+                if (!cancel && inlineSender.send(content, checksum) && waitForInlineAnswer()) {
+                    transferred = content.length;
+                    percent = calculatePercent(content.length);
+                    bCounter.addBytes(content.length);
+                    listener.transferUpdate();
+
+                    sent = true;
+                    verified = true;
+                    listener.statusCompleted();
+                }
+
+                else {
+                    listener.statusFailed();
+                }
+            }
+
+            catch (final IOException e) {
+                LOG.log(Level.SEVERE, e.toString());
+                listener.statusFailed();
+            }
+
+            finally {
+                inlineAnswerLatch = null;
+            }
+        }
+
+        return sent;
+    }
+
+    /**
+     * Creates the handshake to start each connection with.
+     *
+     * @param handshakeId The id the receiver asked for, or <code>0</code>.
+     * @return The handshake, or <code>null</code> if the receiver did not ask for one.
+     */
+    private TransferHandshake createHandshake(final int handshakeId) {
+        if (handshakeId > 0) {
+            return new TransferHandshake(senderCode, handshakeId);
+        }
+
+        return null;
+    }
+
+    /**
+     * Connects to the user, with a socket channel if channel transfers are enabled,
+     * and writes the handshake, if any.
+     *
+     * @param address The address of the user.
+     * @param port The port to connect to.
+     * @return The connected socket.
+     * @throws IOException If the connection failed.
+     */
+    private Socket connect(final InetAddress address, final int port) throws IOException {
+        final Socket socket;
+
+        if (channelTransfers) {
+            socket = SocketChannel.open(new InetSocketAddress(address, port)).socket();
+        }
+
+        else {
+            socket = new Socket(address, port);
+        }
+
+        if (handshake != null) {
+            try {
+                writeHandshake(socket);
+            }
+
+            catch (final IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+
+        return socket;
+    }
+
+    /**
+     * Takes an idle connection to the user from the pool, and starts this file transfer on it
+     * with the handshake.
+     *
+     * @param port The port of the file transfer server of the user.
+     * @param singleStream If the file is sent over a single connection.
+     * @return The connection, or <code>null</code> if a new connection is needed.
+     */
+    private Socket reuseConnection(final int port, final boolean singleStream) {
+        if (!canReuseConnection(singleStream)) {
+            return null;
+        }
+
+        final InetSocketAddress address = new InetSocketAddress(user.getIpAddress(), port);
+        SocketChannel connection = connectionPool.acquire(address);
+
+        while (connection != null) {
+            try {
+                handshake.write(connection);
+                LOG.log(Level.FINE, "Reusing connection to " + address + " for " + file);
+
+                return connection.socket();
+            }
+
+            catch (final IOException e) {
+                LOG.log(Level.FINE, e.toString());
+                closeQuietly(connection);
+            }
+
+            connection = connectionPool.acquire(address);
+        }
+
+        return null;
+    }
+
+    /**
+     * Puts the connection in the pool after a successful transfer, if it can be used again.
+     *
+     * @param port The port of the file transfer server of the user.
+     * @param singleStream If the file was sent over a single connection.
+     */
+    private void releaseConnection(final int port, final boolean singleStream) {
+        if (canReuseConnection(singleStream) && connections.isEmpty() && sock.getChannel() != null) {
+            connectionPool.release(new InetSocketAddress(user.getIpAddress(), port), sock.getChannel());
+            sock = null;
+        }
+    }
+
+    /**
+     * Checks if the connection for this file transfer can come from, and go back to, the pool.
+     * The receiver must use the shared server, and support keeping the connection open.
+     *
+     * @param singleStream If the file is sent over a single connection.
+     * @return If the connection can be used again.
+     */
+    private boolean canReuseConnection(final boolean singleStream) {
+        return connectionPool != null && handshake != null && singleStream && channelTransfers &&
+                user.hasCapability(Capability.KEEPALIVE);
+    }
+
+    /**
+     * Closes the connection, and logs any failure.
+     *
+     * @param connection The connection to close.
+     */
+    private void closeQuietly(final SocketChannel connection) {
+        try {
+            connection.close();
+        }
+
+        catch (final IOException e) {
+            LOG.log(Level.SEVERE, e.toString(), e);
+        }
+    }
+
+    /**
+     * Writes the handshake to the new connection.
+     *
+     * @param socket The new connection.
+     * @throws IOException If writing failed.
+     */
+    private void writeHandshake(final Socket socket) throws IOException {
+        if (socket.getChannel() != null) {
+            handshake.write(socket.getChannel());
+        }
+
+        else {
+            handshake.write(Channels.newChannel(socket.getOutputStream()));
+        }
+    }
+
+    /**
+     * Opens the rest of the connections to the user, and sends the chunks of the file over all of them.
+     *
+     * @param port The port to use when connecting to the user.
+     * @param streams The number of connections to use.
+     * @param fileSize The size of the file.
+     * @param progress The progress of the transfer.
+     * @param checksums If each chunk should be followed by its checksum.
+     * @return If all the chunks were sent.
+     * @throws IOException If a connection could not be opened.
+     */
+    private boolean sendParallel(final int port, final int streams, final long fileSize, final TransferProgress progress,
+                                 final boolean checksums) throws IOException {
+        connections.add(sock.getChannel());
+        final InetAddress address = sock.getInetAddress();
+
+        while (connections.size() < streams && !cancel) {
+            connections.add(connect(address, port).getChannel());
+        }
+
+        final ParallelTransfer parallelTransfer =
+                new ParallelTransfer(fis.getChannel(), fileSize, connections, progress, checksums);
+        final boolean complete = parallelTransfer.send();
+        checksum = parallelTransfer.getChecksum();
+
+        return complete;
+    }
+
+    /**
+     * Gives the answer from the receiver of a file inline to the file sender waiting for it.
+     *
+     * @param answer If the content arrived with the right checksum.
+     * @return If the file sender was waiting for the answer.
+     */
+    public boolean inlineAnswerArrived(final boolean answer) {
+        final CountDownLatch latch = inlineAnswerLatch;
+
+        if (latch == null || latch.getCount() == 0) {
+            return false;
+        }
+
+        inlineVerified = answer;
+        latch.countDown();
+
+        return true;
+    }
+
+    /**
+     * Waits for the receiver of a file inline to answer if the content arrived, until the timeout
+     * or the transfer is canceled.
+     *
+     * @return If the receiver answered that the content arrived with the right checksum.
+     */
+    private boolean waitForInlineAnswer() {
+        final long end = System.currentTimeMillis() + InlineTransfer.ANSWER_TIMEOUT;
+
+        try {
+            while (!cancel && System.currentTimeMillis() < end) {
+                if (inlineAnswerLatch.await(CANCEL_CHECK_INTERVAL, TimeUnit.MILLISECONDS)) {
+                    if (!inlineVerified) {
+                        LOG.log(Level.SEVERE, "The receiver of " + file + " did not get the content inline");
+                    }
+
+                    return inlineVerified;
+                }
+            }
+        }
+
+        catch (final InterruptedException e) {
+            LOG.log(Level.SEVERE, e.toString(), e);
+        }
+
+        LOG.log(Level.WARNING, "The receiver of " + file + " did not answer before the timeout");
+
+        return false;
+    }
+
+    /**
+     * Creates the checksum to update with the sent bytes.
+     *
+     * @return The checksum, or <code>null</code> if the receiver did not ask for the checksum.
+     */
+    private CRC32 createChecksum() {
+        if (checksumRequested) {
+            return new CRC32();
+        }
+
+        return null;
+    }
+
+    /**
+     * Sends the checksum after the end of the file, and waits for the receiver to answer
+     * if it matched the checksum of the received bytes. When sending over several connections,
+     * the checksums were sent with each chunk, so only the answer is needed.
+     *
+     * @param crc The checksum of the sent bytes.
+     * @return If the receiver confirmed that the checksums matched.
+     * @throws IOException If the connection failed.
+     */
+    private boolean verifyChecksum(final CRC32 crc) throws IOException {
+        final ReadableByteChannel input;
+
+        if (sock.getChannel() != null) {
+            input = sock.getChannel();
+        }
+
+        else {
+            input = Channels.newChannel(sock.getInputStream());
+        }
+
+        if (connections.isEmpty()) {
+            checksum = crc.getValue();
+            writeChecksum();
+        }
+
+        verified = ChecksumExchange.readVerdict(input);
+
+        if (!verified) {
+            LOG.log(Level.SEVERE, "The receiver of " + file + " reported a checksum mismatch");
+        }
+
+        return verified;
+    }
+
+    /**
+     * Writes the checksum of the sent bytes to the connection.
+     *
+     * @throws IOException If the connection failed.
+     */
+    private void writeChecksum() throws IOException {
+        final WritableByteChannel output;
+
+        if (sock.getChannel() != null) {
+            output = sock.getChannel();
+        }
+
+        else {
+            output = Channels.newChannel(os);
+        }
+
+        ChecksumExchange.writeChecksum(output, checksum);
+    }
+
+    /**
+     * Calculates the percent of the file sent.
+     *
+     * @param fileSize The size of the file being sent.
+     * @return The percent sent.
+     */
+    private int calculatePercent(final long fileSize) {
+        if (fileSize > 0) {
+            return (int) ((transferred * 100) / fileSize);
+        }
+
+        return 0;
+    }
+
     /**
      * Sets all connections to null.
      */
     private void cleanupConnections() {
+        connections.clear();
         fis = null;
         os = null;
         sock = null;
@@ -229,6 +692,16 @@ public class FileSender implements FileTransfer {
             LOG.log(Level.SEVERE, e.toString(), e);
         }
 
+        for (final SocketChannel connection : connections) {
+            try {
+                connection.close();
+            }
+
+            catch (final IOException e) {
+                LOG.log(Level.SEVERE, e.toString(), e);
+            }
+        }
+
         try {
             if (os != null) {
                 os.flush();
@@ -290,6 +763,79 @@ public class FileSender implements FileTransfer {
         return sent;
     }
 
+    /**
+     * Checks if the file transfer is waiting in the queue for other file transfers to finish.
+     *
+     * @return If the file transfer is queued.
+     */
+    @Override
+    public boolean isQueued() {
+        return queued;
+    }
+
+    /**
+     * Sets if the file transfer is waiting in the queue, and notifies the listener when queued.
+     *
+     * @param queued If the file transfer is queued.
+     */
+    @Override
+    public void setQueued(final boolean queued) {
+        this.queued = queued;
+
+        if (queued && listener != null) {
+            listener.statusQueued();
+        }
+    }
+
+    /**
+     * Sets the scheduler that decides how fast the file transfer can go.
+     *
+     * @param scheduler The scheduler, or <code>null</code> if not limited.
+     */
+    void setScheduler(final TransferScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Sets the pool of connections to the receivers, so back to back file transfers to the same user
+     * can use the same connection.
+     *
+     * @param connectionPool The pool, or <code>null</code> to always open a new connection.
+     */
+    void setConnectionPool(final TransferConnectionPool connectionPool) {
+        this.connectionPool = connectionPool;
+    }
+
+    /**
+     * Sets the user code of the application user, to start the handshake with
+     * when the receiver asks for one.
+     *
+     * @param senderCode The user code of the application user.
+     */
+    void setSenderCode(final int senderCode) {
+        this.senderCode = senderCode;
+    }
+
+    /**
+     * Gets the checksum of the sent bytes.
+     *
+     * @return The checksum, or <code>-1</code> if not exchanged with the receiver.
+     */
+    @Override
+    public long getChecksum() {
+        return checksum;
+    }
+
+    /**
+     * Checks if the receiver confirmed that the checksums matched.
+     *
+     * @return If the checksum was verified.
+     */
+    @Override
+    public boolean isVerified() {
+        return verified;
+    }
+
     /**
      * The percent of the file transfer that is completed.
      *
@@ -350,6 +896,36 @@ public class FileSender implements FileTransfer {
         return bCounter.getBytesPerSec();
     }
 
+    /**
+     * Gets the number of bytes transferred per second, smoothed over the last seconds.
+     *
+     * @return The smoothed speed in bytes per second.
+     */
+    @Override
+    public long getSmoothedSpeed() {
+        return bCounter.getSmoothedBytesPerSec();
+    }
+
+    /**
+     * Gets the estimated time left of the file transfer, based on the smoothed speed.
+     *
+     * @return The number of seconds left, or <code>-1</code> if unknown.
+     */
+    @Override
+    public long getSecondsLeft() {
+        return bCounter.getSecondsLeft(file.length() - transferred);
+    }
+
+    /**
+     * Gets the speed of each of the last seconds of the file transfer.
+     *
+     * @return The number of bytes transferred in each second, with the oldest second first.
+     */
+    @Override
+    public long[] getSpeedHistory() {
+        return bCounter.getHistory();
+    }
+
     /**
      * Gets the ID of this file transfer. The ID is unique during the session, and starts with 1.
      *
@@ -390,4 +966,57 @@ public class FileSender implements FileTransfer {
         this.listener = listener;
         listener.statusWaiting();
     }
+
+    /**
+     * Updates the progress of the file transfer after each chunk is sent.
+     * Synchronized, since several connections may send at the same time.
+     */
+    private class TransferProgress implements FileCopier.Progress {
+
+        /** The size of the file being sent. */
+        private final long fileSize;
+
+        /**
+         * Constructor.
+         *
+         * @param fileSize The size of the file being sent.
+         */
+        TransferProgress(final long fileSize) {
+            this.fileSize = fileSize;
+        }
+
+        /**
+         * Checks if the file transfer has been canceled.
+         *
+         * @return If the file transfer has been canceled.
+         */
+        @Override
+        public boolean isCanceled() {
+            return cancel;
+        }
+
+        /**
+         * Registers the sent bytes, and notifies the listener. Waits if the transfer
+         * is going faster than its share of the upload rate.
+         *
+         * <p>Only the counters are updated while holding the lock, so the other connections
+         * of a transfer are never blocked while this one waits.</p>
+         *
+         * @param bytes The number of bytes sent since the last call.
+         */
+        @Override
+        public void bytesCopied(final long bytes) {
+            synchronized (this) {
+                transferred += bytes;
+                percent = calculatePercent(fileSize);
+                bCounter.addBytes(bytes);
+            }
+
+            listener.transferUpdate();
+
+            if (scheduler != null) {
+                scheduler.throttle(FileSender.this, bytes);
+            }
+        }
+    }
 }
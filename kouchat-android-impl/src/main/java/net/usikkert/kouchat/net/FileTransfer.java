@@ -95,6 +95,28 @@ public interface FileTransfer {
      */
     long getSpeed();
 
+    /**
+     * Gets the number of bytes transferred per second, smoothed over the last seconds.
+     * More stable than {@link #getSpeed()}, for showing to the user.
+     *
+     * @return The smoothed speed in bytes per second.
+     */
+    long getSmoothedSpeed();
+
+    /**
+     * Gets the estimated time left of the file transfer, based on the smoothed speed.
+     *
+     * @return The number of seconds left, or <code>-1</code> if unknown.
+     */
+    long getSecondsLeft();
+
+    /**
+     * Gets the speed of each of the last seconds of the file transfer.
+     *
+     * @return The number of bytes transferred in each second, with the oldest second first.
+     */
+    long[] getSpeedHistory();
+
     /**
      * Gets the ID of this file transfer. The ID is unique during the session, and starts with 1.
      *
@@ -121,6 +143,39 @@ public interface FileTransfer {
      */
     boolean isTransferred();
 
+    /**
+     * Checks if the file transfer is waiting in the queue for other file transfers to finish.
+     *
+     * @return If the file transfer is queued.
+     */
+    boolean isQueued();
+
+    /**
+     * Sets if the file transfer is waiting in the queue. Used by the {@link TransferScheduler}.
+     * The listener is notified when the file transfer is queued.
+     *
+     * @param queued If the file transfer is queued.
+     */
+    void setQueued(boolean queued);
+
+    /**
+     * Gets the checksum of the bytes transferred, computed while transferring.
+     *
+     * <p>When resuming, only the bytes transferred this time are included. When transferring
+     * over several connections, this is a checksum of the checksums of each chunk.</p>
+     *
+     * @return The checksum, or <code>-1</code> if no checksum was exchanged with the other user.
+     */
+    long getChecksum();
+
+    /**
+     * Checks if the receiver found that the checksum of the received bytes matched
+     * the checksum from the sender.
+     *
+     * @return If the checksum was verified.
+     */
+    boolean isVerified();
+
     /**
      * Registers a file transfer listener, which will receive updates
      * when certain events happen in the progression of the file transfer.
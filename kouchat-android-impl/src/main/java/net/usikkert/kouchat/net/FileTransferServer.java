@@ -0,0 +1,409 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.usikkert.kouchat.Constants;
+import net.usikkert.kouchat.util.Validate;
+
+/**
+ * A single server for all the incoming file transfer connections, listening on the same port
+ * as long as the network is up.
+ *
+ * <p>The file sender starts each connection with a {@link TransferHandshake}, telling which
+ * file transfer the connection belongs to. A file receiver asks for the connections with
+ * its handshake using {@link #expect(TransferHandshake)}, and gets them in a queue.
+ * Connections with an unknown handshake, or no handshake before the timeout, are closed.</p>
+ *
+ * <p>The server and the handshakes are handled by the {@link NetworkEventLoop}, so there are no
+ * threads or ports for each file transfer waiting for the sender to connect.</p>
+ *
+ * <p>After a file transfer, the file receiver can give the connection back with {@link #keepAlive(SocketChannel)},
+ * so the sender can start the next file transfer on the same connection with a new handshake.</p>
+ *
+ * @author Christian Ihle
+ */
+public class FileTransferServer implements NetworkEventLoop.ChannelHandler {
+
+    /** The logger. */
+    private static final Logger LOG = Logger.getLogger(FileTransferServer.class.getName());
+
+    /** Milliseconds to wait for the handshake, before closing the connection. */
+    private static final int HANDSHAKE_TIMEOUT = 5000;
+
+    /** Milliseconds to keep a connection open after a file transfer, waiting for the next handshake. */
+    static final int KEEP_ALIVE_TIMEOUT = 30000;
+
+    /** The number of ports to try, before giving up. */
+    private static final int MAX_PORTS = 50;
+
+    /** The event loop handling the server and the handshakes. */
+    private final NetworkEventLoop eventLoop;
+
+    /** The queues of connections for the expected file transfers, by handshake. */
+    private final ConcurrentMap<TransferHandshake, BlockingQueue<SocketChannel>> expected;
+
+    /** The server channel, or <code>null</code> if not started. */
+    private volatile ServerSocketChannel serverChannel;
+
+    /** The port the server listens on, or <code>0</code> if not started. */
+    private volatile int port;
+
+    /**
+     * Constructor.
+     *
+     * @param eventLoop The event loop handling the server and the handshakes.
+     */
+    public FileTransferServer(final NetworkEventLoop eventLoop) {
+        Validate.notNull(eventLoop, "Event loop can not be null");
+
+        this.eventLoop = eventLoop;
+        expected = new ConcurrentHashMap<TransferHandshake, BlockingQueue<SocketChannel>>();
+    }
+
+    /**
+     * Opens the server on the first available port from {@link Constants#NETWORK_FILE_TRANSFER_PORT},
+     * and lets the event loop accept the connections. Does nothing if already started.
+     *
+     * @throws ServerException If no port was available.
+     */
+    public synchronized void start() throws ServerException {
+        if (serverChannel != null) {
+            return;
+        }
+
+        int nextPort = Constants.NETWORK_FILE_TRANSFER_PORT;
+
+        while (serverChannel == null && nextPort < Constants.NETWORK_FILE_TRANSFER_PORT + MAX_PORTS) {
+            ServerSocketChannel channel = null;
+
+            try {
+                channel = ServerSocketChannel.open();
+                channel.socket().bind(new InetSocketAddress(nextPort));
+                serverChannel = channel;
+                port = nextPort;
+            }
+
+            catch (final IOException e) {
+                LOG.log(Level.WARNING, "Could not open " + nextPort, e);
+                close(channel);
+                nextPort++;
+            }
+        }
+
+        if (serverChannel == null) {
+            throw new ServerException("Could not start file transfer server");
+        }
+
+        eventLoop.register(serverChannel, SelectionKey.OP_ACCEPT, this);
+        LOG.log(Level.FINE, "File transfer server listening on port " + port);
+    }
+
+    /**
+     * Closes the server. Connections already given to file receivers are not closed.
+     */
+    public synchronized void stop() {
+        if (serverChannel == null) {
+            return;
+        }
+
+        close(serverChannel);
+        serverChannel = null;
+        port = 0;
+        eventLoop.wakeup();
+    }
+
+    /**
+     * Checks if the server is accepting connections.
+     *
+     * @return If the server is running.
+     */
+    public boolean isRunning() {
+        return serverChannel != null && eventLoop.isRunning();
+    }
+
+    /**
+     * Gets the port the server listens on.
+     *
+     * @return The port, or <code>0</code> if not started.
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Starts waiting for connections with the handshake. The connections are in blocking mode
+     * when added to the queue.
+     *
+     * @param handshake The handshake the file sender will start the connections with.
+     * @return The queue the connections are added to.
+     */
+    public BlockingQueue<SocketChannel> expect(final TransferHandshake handshake) {
+        Validate.notNull(handshake, "Handshake can not be null");
+
+        final BlockingQueue<SocketChannel> connections = new LinkedBlockingQueue<SocketChannel>();
+        expected.put(handshake, connections);
+
+        return connections;
+    }
+
+    /**
+     * Stops waiting for connections with the handshake, and closes the connections no one took from the queue.
+     *
+     * @param handshake The handshake to stop waiting for.
+     */
+    public void forget(final TransferHandshake handshake) {
+        if (handshake == null) {
+            return;
+        }
+
+        final BlockingQueue<SocketChannel> connections = expected.remove(handshake);
+
+        if (connections != null) {
+            SocketChannel connection = connections.poll();
+
+            while (connection != null) {
+                close(connection);
+                connection = connections.poll();
+            }
+        }
+    }
+
+    /**
+     * Keeps the connection open after a file transfer, and lets the event loop wait for the handshake
+     * of the next file transfer from the same sender. The connection is closed if the sender closes it,
+     * or no handshake arrives before the timeout.
+     *
+     * @param connection The connection, in blocking mode, with the whole file transfer read.
+     */
+    public void keepAlive(final SocketChannel connection) {
+        Validate.notNull(connection, "Connection can not be null");
+
+        if (!isRunning()) {
+            close(connection);
+            return;
+        }
+
+        waitForHandshake(connection, KEEP_ALIVE_TIMEOUT, true);
+    }
+
+    /**
+     * Accepts the waiting connections, and lets the event loop wait for their handshakes.
+     *
+     * @param key The selection key of the server channel.
+     * @throws IOException If a connection could not be accepted.
+     */
+    @Override
+    public void channelReady(final SelectionKey key) throws IOException {
+        final ServerSocketChannel channel = (ServerSocketChannel) key.channel();
+        SocketChannel connection = channel.accept();
+
+        while (connection != null) {
+            waitForHandshake(connection, HANDSHAKE_TIMEOUT, false);
+            connection = channel.accept();
+        }
+    }
+
+    /**
+     * Lets the event loop read the handshake from the connection.
+     *
+     * @param connection The connection to read the handshake from.
+     * @param timeout Milliseconds to wait for the handshake, before closing the connection.
+     * @param keptAlive If the connection was kept open after an earlier file transfer.
+     */
+    private void waitForHandshake(final SocketChannel connection, final int timeout, final boolean keptAlive) {
+        final HandshakeReader reader = new HandshakeReader(connection, keptAlive);
+        eventLoop.register(connection, SelectionKey.OP_READ, reader);
+        reader.setTimeout(eventLoop.schedule(reader, timeout));
+    }
+
+    /**
+     * Gives the connection to the file receiver expecting the handshake, or closes it if no one is.
+     * Runs on the event loop thread, after the connection has left the selector.
+     *
+     * @param connection The connection, in non-blocking mode.
+     * @param handshake The handshake the connection started with.
+     */
+    private void handOver(final SocketChannel connection, final TransferHandshake handshake) {
+        final BlockingQueue<SocketChannel> connections = expected.get(handshake);
+
+        if (connections == null) {
+            LOG.log(Level.WARNING, "Closing connection for unknown file transfer " + handshake.getTransferId() +
+                    " from user " + handshake.getUserCode());
+            close(connection);
+            return;
+        }
+
+        try {
+            connection.configureBlocking(true);
+            connections.add(connection);
+        }
+
+        catch (final IOException e) {
+            LOG.log(Level.WARNING, e.toString());
+            close(connection);
+            return;
+        }
+
+        // The file receiver may have given up while the connection was added
+        if (expected.get(handshake) != connections && connections.remove(connection)) {
+            close(connection);
+        }
+    }
+
+    /**
+     * Closes the channel, if not <code>null</code>.
+     *
+     * @param channel The channel to close.
+     */
+    private void close(final Channel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            }
+
+            catch (final IOException e) {
+                LOG.log(Level.WARNING, e.toString());
+            }
+        }
+    }
+
+    /**
+     * Reads the handshake from a new connection on the event loop thread, or closes the
+     * connection if the handshake is invalid or doesn't arrive before the timeout.
+     */
+    private class HandshakeReader implements NetworkEventLoop.ChannelHandler, Runnable {
+
+        /** The new connection. */
+        private final SocketChannel connection;
+
+        /** The bytes of the handshake. */
+        private final ByteBuffer buffer;
+
+        /** If the connection was kept open after an earlier file transfer. */
+        private final boolean keptAlive;
+
+        /** The timeout for the handshake. */
+        private volatile NetworkEventLoop.Timeout timeout;
+
+        /** If the whole handshake has arrived. */
+        private boolean done;
+
+        /**
+         * Constructor.
+         *
+         * @param connection The new connection.
+         * @param keptAlive If the connection was kept open after an earlier file transfer.
+         */
+        HandshakeReader(final SocketChannel connection, final boolean keptAlive) {
+            this.connection = connection;
+            this.keptAlive = keptAlive;
+            buffer = ByteBuffer.allocate(TransferHandshake.SIZE);
+        }
+
+        /**
+         * Sets the timeout, so it can be canceled when the handshake arrives.
+         *
+         * @param timeout The timeout for the handshake.
+         */
+        public void setTimeout(final NetworkEventLoop.Timeout timeout) {
+            this.timeout = timeout;
+        }
+
+        /**
+         * Reads the available bytes of the handshake. When the whole handshake has arrived,
+         * the connection is released from the event loop and handed over.
+         *
+         * @param key The selection key of the connection.
+         * @throws IOException If reading failed, or the connection was closed before the handshake arrived.
+         */
+        @Override
+        public void channelReady(final SelectionKey key) throws IOException {
+            if (connection.read(buffer) == -1) {
+                // The sender is done with the connection it kept open
+                if (keptAlive && buffer.position() == 0) {
+                    done = true;
+                    cancelTimeout();
+                    close(connection);
+                    return;
+                }
+
+                throw new IOException("Connection closed before the handshake arrived");
+            }
+
+            if (buffer.hasRemaining()) {
+                return;
+            }
+
+            done = true;
+            cancelTimeout();
+
+            buffer.flip();
+            final TransferHandshake handshake = TransferHandshake.read(buffer);
+
+            if (handshake == null) {
+                throw new IOException("Invalid file transfer handshake");
+            }
+
+            eventLoop.release(key, new Runnable() {
+                @Override
+                public void run() {
+                    handOver(connection, handshake);
+                }
+            });
+        }
+
+        /**
+         * Cancels the timeout, if set.
+         */
+        private void cancelTimeout() {
+            if (timeout != null) {
+                timeout.cancel();
+            }
+        }
+
+        /**
+         * Closes the connection when the handshake did not arrive before the timeout.
+         */
+        @Override
+        public void run() {
+            if (!done) {
+                LOG.log(Level.FINE, "No handshake before timeout, closing connection");
+                close(connection);
+            }
+        }
+    }
+}
@@ -0,0 +1,399 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.usikkert.kouchat.event.ByteReceiverListener;
+import net.usikkert.kouchat.event.ReceiverListener;
+import net.usikkert.kouchat.misc.User;
+import net.usikkert.kouchat.util.Validate;
+
+/**
+ * Protects the listener against users flooding the network with messages.
+ *
+ * <p>Each user gets a token bucket for chat messages and another for the other messages.
+ * A message uses one token, and the tokens are refilled at a steady rate up to a max burst.
+ * Messages arriving when the bucket is empty are thrown away before they are parsed, so
+ * a single misbehaving client can't make everyone else's client fall behind.</p>
+ *
+ * <p>The IP address of the sender gets the same buckets, with room for a few users, and is
+ * checked first. The user code is chosen by the sender, so a client making up a new user code
+ * for each message would otherwise get full buckets every time.</p>
+ *
+ * <p>Only the user code and type of the message are read to decide. Messages from the
+ * application user, and invalid messages, are always given to the listener.</p>
+ *
+ * <p>Messages arrive on a single receiver thread, but the counters may be read from any thread.</p>
+ *
+ * @author Christian Ihle
+ */
+public class FloodFilter implements ByteReceiverListener {
+
+    /** The logger. */
+    private static final Logger LOG = Logger.getLogger(FloodFilter.class.getName());
+
+    /** The number of chat messages each user can send each second, over time. */
+    static final int CHAT_RATE = 20;
+
+    /** The number of chat messages each user can send at once. Room for the fragments of the largest message. */
+    static final int CHAT_BURST = 40;
+
+    /** The number of other messages each user can send each second, over time. */
+    static final int CONTROL_RATE = 20;
+
+    /** The number of other messages each user can send at once. */
+    static final int CONTROL_BURST = 60;
+
+    /** The max number of users to remember. The least recently active user is forgotten first. */
+    static final int MAX_USERS = 256;
+
+    /** The number of users each IP address has tokens for. Leaves room for several clients on the same computer. */
+    static final int USERS_PER_ADDRESS = 4;
+
+    /** The max number of IP addresses to remember. The least recently active address is forgotten first. */
+    static final int MAX_ADDRESSES = 256;
+
+    /** The number of milliseconds in a second. Tokens are counted in thousandths, to refill every millisecond. */
+    private static final int MILLIS_PER_SECOND = 1000;
+
+    /** The listener to give the accepted messages to. */
+    private final ReceiverListener listener;
+
+    /** The listener, if it can parse bytes directly. */
+    private final ByteReceiverListener byteListener;
+
+    /** The application user. */
+    private final User me;
+
+    /** Used to find the user code and type of arriving messages. */
+    private final MessageTokenizer tokenizer;
+
+    /** The token buckets of each user code. */
+    private final Map<Integer, SenderBuckets> senders;
+
+    /** The token buckets of each IP address. */
+    private final Map<String, SenderBuckets> addresses;
+
+    /** The number of messages thrown away since startup. */
+    private long throttledMessages;
+
+    /**
+     * Constructor.
+     *
+     * @param listener The listener to give the accepted messages to.
+     * @param me The application user.
+     */
+    public FloodFilter(final ReceiverListener listener, final User me) {
+        Validate.notNull(listener, "Listener can not be null");
+        Validate.notNull(me, "Me can not be null");
+
+        this.listener = listener;
+        this.me = me;
+
+        if (listener instanceof ByteReceiverListener) {
+            byteListener = (ByteReceiverListener) listener;
+        }
+
+        else {
+            byteListener = null;
+        }
+
+        tokenizer = new MessageTokenizer();
+        senders = new SenderCache<Integer>(MAX_USERS);
+        addresses = new SenderCache<String>(MAX_ADDRESSES);
+    }
+
+    /**
+     * Encodes the message, and checks it like any other message.
+     *
+     * @param message The message that arrived.
+     * @param ipAddress The IP address of the sender.
+     */
+    @Override
+    public void messageArrived(final String message, final String ipAddress) {
+        messageArrived(ByteBuffer.wrap(message.getBytes(MessageTokenizer.CHARSET)), ipAddress);
+    }
+
+    /**
+     * Gives the message to the listener, unless the sender has used up the budget for the type of message.
+     *
+     * @param message The message that arrived.
+     * @param ipAddress The IP address of the sender.
+     */
+    @Override
+    public void messageArrived(final ByteBuffer message, final String ipAddress) {
+        if (!isAllowed(message, ipAddress)) {
+            return;
+        }
+
+        if (byteListener != null) {
+            byteListener.messageArrived(message, ipAddress);
+        }
+
+        else {
+            listener.messageArrived(tokenizer.decode(message.position(), message.limit()), ipAddress);
+        }
+    }
+
+    /**
+     * Gets the number of messages thrown away since startup.
+     *
+     * @return The number of throttled messages.
+     */
+    public synchronized long getThrottledMessages() {
+        return throttledMessages;
+    }
+
+    /**
+     * Gets the number of messages thrown away from each of the users that have been throttled.
+     *
+     * @return A copy of the counters, with the user code as key.
+     */
+    public synchronized Map<Integer, Long> getThrottledSenders() {
+        final Map<Integer, Long> throttledSenders = new HashMap<Integer, Long>();
+
+        for (final Map.Entry<Integer, SenderBuckets> sender : senders.entrySet()) {
+            if (sender.getValue().throttled > 0) {
+                throttledSenders.put(sender.getKey(), sender.getValue().throttled);
+            }
+        }
+
+        return throttledSenders;
+    }
+
+    /**
+     * Gets the number of messages thrown away from each of the IP addresses that have been throttled.
+     *
+     * @return A copy of the counters, with the IP address as key.
+     */
+    public synchronized Map<String, Long> getThrottledAddresses() {
+        final Map<String, Long> throttledAddresses = new HashMap<String, Long>();
+
+        for (final Map.Entry<String, SenderBuckets> address : addresses.entrySet()) {
+            if (address.getValue().throttled > 0) {
+                throttledAddresses.put(address.getKey(), address.getValue().throttled);
+            }
+        }
+
+        return throttledAddresses;
+    }
+
+    /**
+     * Gets the current time, in milliseconds.
+     *
+     * @return The current time.
+     */
+    long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Checks if the sender of the message has tokens left for the type of message, and uses one.
+     * The IP address is checked before the user code, so messages thrown away because of the
+     * address don't make room for new user codes.
+     *
+     * @param message The message to check.
+     * @param ipAddress The IP address of the sender.
+     * @return If the message should be given to the listener.
+     */
+    private boolean isAllowed(final ByteBuffer message, final String ipAddress) {
+        final int userCode;
+        final MessageType type;
+
+        try {
+            if (!tokenizer.tokenize(message)) {
+                return true;
+            }
+
+            userCode = tokenizer.getCode();
+            type = tokenizer.getType();
+        }
+
+        catch (final NumberFormatException e) {
+            return true;
+        }
+
+        if (userCode == me.getCode()) {
+            return true;
+        }
+
+        final boolean chat = type == MessageType.MSG || type == MessageType.PRIVMSG || type == MessageType.FRAGMENT;
+
+        synchronized (this) {
+            final long now = currentTimeMillis();
+
+            if (ipAddress != null) {
+                SenderBuckets addressBuckets = addresses.get(ipAddress);
+
+                if (addressBuckets == null) {
+                    addressBuckets = new SenderBuckets(USERS_PER_ADDRESS);
+                    addresses.put(ipAddress, addressBuckets);
+                }
+
+                if (!addressBuckets.take(chat, now)) {
+                    throttledMessages++;
+                    addressBuckets.throttled++;
+
+                    if (!addressBuckets.flooding) {
+                        addressBuckets.flooding = true;
+                        LOG.log(Level.WARNING, "Throttling messages from " + ipAddress);
+                    }
+
+                    return false;
+                }
+            }
+
+            SenderBuckets buckets = senders.get(userCode);
+
+            if (buckets == null) {
+                buckets = new SenderBuckets(1);
+                senders.put(userCode, buckets);
+            }
+
+            if (buckets.take(chat, now)) {
+                return true;
+            }
+
+            throttledMessages++;
+            buckets.throttled++;
+
+            // Only logs when the flood starts, to not make things worse
+            if (!buckets.flooding) {
+                buckets.flooding = true;
+                LOG.log(Level.WARNING, "Throttling messages from user code " + userCode + " at " + ipAddress);
+            }
+
+            return false;
+        }
+    }
+
+    /**
+     * The token buckets of a single user, or of an IP address.
+     */
+    private static final class SenderBuckets {
+
+        /** The number of users the buckets have room for. */
+        private final int users;
+
+        /** The chat tokens left, in thousandths of a message. */
+        private long chatTokens;
+
+        /** The other tokens left, in thousandths of a message. */
+        private long controlTokens;
+
+        /** When the tokens were last refilled. */
+        private long lastRefill;
+
+        /** If the last message from the sender was throttled. */
+        private boolean flooding;
+
+        /** The number of messages thrown away from this sender. */
+        private long throttled;
+
+        /**
+         * Constructor. Starts with full buckets.
+         *
+         * @param users The number of users the buckets have room for.
+         */
+        SenderBuckets(final int users) {
+            this.users = users;
+            chatTokens = (long) CHAT_BURST * users * MILLIS_PER_SECOND;
+            controlTokens = (long) CONTROL_BURST * users * MILLIS_PER_SECOND;
+            lastRefill = -1;
+        }
+
+        /**
+         * Refills the buckets, and takes a token from the correct one, if possible.
+         *
+         * @param chat If the message is a chat message.
+         * @param now The current time, in milliseconds.
+         * @return If a token was available.
+         */
+        public boolean take(final boolean chat, final long now) {
+            if (lastRefill >= 0 && now > lastRefill) {
+                final long elapsed = now - lastRefill;
+                chatTokens = Math.min(chatTokens + elapsed * CHAT_RATE * users, (long) CHAT_BURST * users * MILLIS_PER_SECOND);
+                controlTokens = Math.min(controlTokens + elapsed * CONTROL_RATE * users,
+                        (long) CONTROL_BURST * users * MILLIS_PER_SECOND);
+            }
+
+            if (now > lastRefill) {
+                lastRefill = now;
+            }
+
+            if (chat && chatTokens >= MILLIS_PER_SECOND) {
+                chatTokens -= MILLIS_PER_SECOND;
+                flooding = false;
+                return true;
+            }
+
+            if (!chat && controlTokens >= MILLIS_PER_SECOND) {
+                controlTokens -= MILLIS_PER_SECOND;
+                flooding = false;
+                return true;
+            }
+
+            return false;
+        }
+    }
+
+    /**
+     * A map of senders that forgets the least recently active sender when full.
+     *
+     * @param <K> The type of key identifying the sender.
+     */
+    private static class SenderCache<K> extends LinkedHashMap<K, SenderBuckets> {
+
+        /** Standard serial version UID. */
+        private static final long serialVersionUID = 1L;
+
+        /** The max number of senders to remember. */
+        private final int maxSize;
+
+        /**
+         * Constructor. Creates a map ordered by access.
+         *
+         * @param maxSize The max number of senders to remember.
+         */
+        SenderCache(final int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        /**
+         * Removes the least recently active sender when the map is full.
+         *
+         * {@inheritDoc}
+         */
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<K, SenderBuckets> eldest) {
+            return size() > maxSize;
+        }
+    }
+}
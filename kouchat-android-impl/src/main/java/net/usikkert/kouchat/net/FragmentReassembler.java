@@ -0,0 +1,359 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Puts the fragments from a {@link MessageFragmenter} together again, into the complete message.
+ *
+ * <p>Fragments can arrive in any order. The fragments of a message are kept until all of them
+ * have arrived, but never longer than {@link #TIMEOUT}. To protect against lost or malicious fragments,
+ * there is a limit on the number of incomplete messages, and the total number of bytes kept.
+ * The oldest incomplete message is thrown away when a limit is reached.</p>
+ *
+ * <p>Not thread safe. Each parser must use its own reassembler.</p>
+ *
+ * @author Christian Ihle
+ */
+class FragmentReassembler {
+
+    /** The max number of fragments in a message. */
+    static final int MAX_FRAGMENTS = 64;
+
+    /** The max number of milliseconds to wait for all the fragments of a message. */
+    static final long TIMEOUT = 10000;
+
+    /** The max number of incomplete messages to keep. */
+    static final int MAX_MESSAGES = 16;
+
+    /** The max number of bytes to keep in all the incomplete messages. */
+    static final int MAX_BYTES = 65536;
+
+    /** The logger. */
+    private static final Logger LOG = Logger.getLogger(FragmentReassembler.class.getName());
+
+    /** Used for combining the fields in the hash code of the message keys. */
+    private static final int HASH_PRIME = 31;
+
+    /** The incomplete messages, with the oldest first. */
+    private final Map<MessageKey, PartialMessage> messages;
+
+    /** The number of bytes kept in all the incomplete messages. */
+    private int bytes;
+
+    /**
+     * Constructor.
+     */
+    FragmentReassembler() {
+        messages = new LinkedHashMap<MessageKey, PartialMessage>();
+    }
+
+    /**
+     * Adds the fragment in the tokenized message: <code>{id}[index/count]data</code>.
+     *
+     * @param tokenizer The tokenizer with the fragment.
+     * @param message The encoded fragment. The data ends at the limit of the buffer,
+     *                so whitespace at the end of the data is kept.
+     * @return The complete message, if this was the last missing fragment, or <code>null</code>.
+     * @throws NumberFormatException If the fragment numbers are invalid.
+     * @throws IndexOutOfBoundsException If the fragment is missing parts.
+     */
+    public ByteBuffer add(final MessageTokenizer tokenizer, final ByteBuffer message) {
+        final int leftCurly = tokenizer.indexOfInPayload('{');
+        final int rightCurly = tokenizer.indexOfInPayload('}');
+        final int leftBracket = tokenizer.indexOfInPayload('[');
+        final int slash = tokenizer.indexOfInPayload('/');
+        final int rightBracket = tokenizer.indexOfInPayload(']');
+
+        final int messageId = tokenizer.parseInt(leftCurly + 1, rightCurly);
+        final int index = tokenizer.parseInt(leftBracket + 1, slash);
+        final int count = tokenizer.parseInt(slash + 1, rightBracket);
+
+        final int dataStart = rightBracket + 1;
+        final byte[] data = new byte[message.limit() - dataStart];
+
+        for (int i = 0; i < data.length; i++) {
+            data[i] = message.get(dataStart + i);
+        }
+
+        return add(tokenizer.getCode(), messageId, index, count, data);
+    }
+
+    /**
+     * Adds a fragment.
+     *
+     * @param userCode The user code of the user who sent the fragment.
+     * @param messageId The id of the fragmented message.
+     * @param index The number of the fragment, starting at <code>0</code>.
+     * @param count The number of fragments in the message.
+     * @param data The data in the fragment.
+     * @return The complete message, if this was the last missing fragment, or <code>null</code>.
+     */
+    public ByteBuffer add(final int userCode, final int messageId, final int index, final int count, final byte[] data) {
+        if (count < 1 || count > MAX_FRAGMENTS || index < 0 || index >= count) {
+            LOG.log(Level.WARNING, "Invalid fragment " + index + "/" + count + " from " + userCode);
+            return null;
+        }
+
+        removeExpired(System.currentTimeMillis());
+
+        final MessageKey key = new MessageKey(userCode, messageId);
+        PartialMessage partialMessage = messages.get(key);
+
+        if (partialMessage == null) {
+            partialMessage = new PartialMessage(count);
+            messages.put(key, partialMessage);
+        }
+
+        else if (partialMessage.getCount() != count) {
+            LOG.log(Level.WARNING, "Fragment " + index + "/" + count + " from " + userCode + " does not match earlier fragments");
+            return null;
+        }
+
+        if (!partialMessage.add(index, data)) {
+            return null;
+        }
+
+        bytes += data.length;
+
+        if (partialMessage.isComplete()) {
+            messages.remove(key);
+            bytes -= partialMessage.getSize();
+
+            return ByteBuffer.wrap(partialMessage.getMessage());
+        }
+
+        removeOldestWhenFull(key);
+
+        return null;
+    }
+
+    /**
+     * Gets the number of incomplete messages.
+     *
+     * @return The number of incomplete messages.
+     */
+    public int getIncompleteMessages() {
+        return messages.size();
+    }
+
+    /**
+     * Gets the number of bytes kept in the incomplete messages.
+     *
+     * @return The number of bytes.
+     */
+    public int getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Removes the incomplete messages that have waited too long for the rest of the fragments.
+     *
+     * @param now The current time.
+     */
+    private void removeExpired(final long now) {
+        final Iterator<PartialMessage> iterator = messages.values().iterator();
+
+        while (iterator.hasNext()) {
+            final PartialMessage partialMessage = iterator.next();
+
+            // The oldest message is first, so the rest are newer
+            if (now - partialMessage.getCreated() < TIMEOUT) {
+                return;
+            }
+
+            LOG.log(Level.FINE, "Timeout waiting for fragments");
+            bytes -= partialMessage.getSize();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Removes the oldest incomplete messages, until the limits are no longer exceeded.
+     * The newest message is kept even if it alone is above the limit of bytes.
+     *
+     * @param newest The key of the newest message.
+     */
+    private void removeOldestWhenFull(final MessageKey newest) {
+        final Iterator<Map.Entry<MessageKey, PartialMessage>> iterator = messages.entrySet().iterator();
+
+        while ((messages.size() > MAX_MESSAGES || bytes > MAX_BYTES) && iterator.hasNext()) {
+            final Map.Entry<MessageKey, PartialMessage> entry = iterator.next();
+
+            if (!entry.getKey().equals(newest)) {
+                LOG.log(Level.WARNING, "Too many incomplete messages. Throwing away the oldest.");
+                bytes -= entry.getValue().getSize();
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Identifies a fragmented message.
+     */
+    private static final class MessageKey {
+
+        /** The user code of the user who sent the message. */
+        private final int userCode;
+
+        /** The id of the message. */
+        private final int messageId;
+
+        /**
+         * Constructor.
+         *
+         * @param userCode The user code of the user who sent the message.
+         * @param messageId The id of the message.
+         */
+        MessageKey(final int userCode, final int messageId) {
+            this.userCode = userCode;
+            this.messageId = messageId;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+
+            if (!(obj instanceof MessageKey)) {
+                return false;
+            }
+
+            final MessageKey other = (MessageKey) obj;
+
+            return userCode == other.userCode && messageId == other.messageId;
+        }
+
+        @Override
+        public int hashCode() {
+            return HASH_PRIME * userCode + messageId;
+        }
+    }
+
+    /**
+     * The fragments of a message, while waiting for the rest.
+     */
+    private static final class PartialMessage {
+
+        /** The fragments that have arrived, or <code>null</code> for missing fragments. */
+        private final byte[][] fragments;
+
+        /** When the first fragment arrived. */
+        private final long created;
+
+        /** The number of fragments that have arrived. */
+        private int received;
+
+        /** The number of bytes in the fragments that have arrived. */
+        private int size;
+
+        /**
+         * Constructor.
+         *
+         * @param count The number of fragments in the message.
+         */
+        PartialMessage(final int count) {
+            fragments = new byte[count][];
+            created = System.currentTimeMillis();
+        }
+
+        /**
+         * Adds a fragment.
+         *
+         * @param index The number of the fragment.
+         * @param data The data in the fragment.
+         * @return If the fragment was added. Duplicates are not added.
+         */
+        public boolean add(final int index, final byte[] data) {
+            if (fragments[index] != null) {
+                return false;
+            }
+
+            fragments[index] = data;
+            received++;
+            size += data.length;
+
+            return true;
+        }
+
+        /**
+         * Checks if all the fragments have arrived.
+         *
+         * @return If the message is complete.
+         */
+        public boolean isComplete() {
+            return received == fragments.length;
+        }
+
+        /**
+         * Puts the fragments together into the complete message.
+         *
+         * @return The complete message.
+         */
+        public byte[] getMessage() {
+            final byte[] message = new byte[size];
+            int position = 0;
+
+            for (final byte[] fragment : fragments) {
+                System.arraycopy(fragment, 0, message, position, fragment.length);
+                position += fragment.length;
+            }
+
+            return message;
+        }
+
+        /**
+         * Gets the number of fragments in the message.
+         *
+         * @return The number of fragments.
+         */
+        public int getCount() {
+            return fragments.length;
+        }
+
+        /**
+         * Gets the number of bytes in the fragments that have arrived.
+         *
+         * @return The number of bytes.
+         */
+        public int getSize() {
+            return size;
+        }
+
+        /**
+         * Gets when the first fragment arrived.
+         *
+         * @return The time of the first fragment.
+         */
+        public long getCreated() {
+            return created;
+        }
+    }
+}
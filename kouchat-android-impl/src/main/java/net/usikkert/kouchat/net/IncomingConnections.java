@@ -0,0 +1,89 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Waits for the connections from a file sender, so a {@link FileReceiver} can receive the file.
+ *
+ * <p>There is one implementation for each way of waiting: a server socket for the file transfer,
+ * a server channel on the {@link NetworkEventLoop}, or the shared {@link FileTransferServer}.</p>
+ *
+ * @author Christian Ihle
+ */
+interface IncomingConnections {
+
+    /**
+     * Starts waiting for the sender to connect.
+     *
+     * @return The port the sender can connect to.
+     * @throws ServerException If the server could not be started.
+     */
+    int start() throws ServerException;
+
+    /**
+     * Waits for the first connection from the sender.
+     *
+     * @return The connection, or <code>null</code> if none arrived before the timeout, or it was closed.
+     * @throws IOException If waiting for the connection failed.
+     */
+    Socket waitForConnection() throws IOException;
+
+    /**
+     * Waits for one more connection from the sender, when the file is received over several connections.
+     *
+     * @return The connection, in blocking mode.
+     * @throws IOException If no connection arrived before the timeout, or more connections are not supported.
+     */
+    SocketChannel waitForNextConnection() throws IOException;
+
+    /**
+     * Checks if the sender must start each connection with a {@link TransferHandshake}.
+     *
+     * @return If a handshake is needed.
+     */
+    boolean isHandshakeNeeded();
+
+    /**
+     * Keeps the connection open after a successful transfer, so the sender can use it for the next file.
+     *
+     * @param connection The connection, with the whole file transfer read.
+     * @return If the connection was kept. The connection must be closed as usual if not.
+     */
+    boolean keepAlive(SocketChannel connection);
+
+    /**
+     * The sender is waiting for other file transfers to finish before connecting.
+     * Keeps waiting for the first connection until it arrives, or the server is closed,
+     * instead of giving up at the timeout.
+     */
+    void senderQueued();
+
+    /**
+     * Stops waiting for connections, and closes the server, if any.
+     */
+    void close();
+}
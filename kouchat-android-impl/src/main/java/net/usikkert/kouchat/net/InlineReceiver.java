@@ -0,0 +1,144 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Waits for the content of a file sent inline in a private message, using {@link InlineTransfer},
+ * and verifies it against the checksum from the sender.
+ *
+ * <p>The content arrives on the thread handling private messages, while the file receiver
+ * waits for it on the file transfer thread.</p>
+ *
+ * @author Christian Ihle
+ */
+class InlineReceiver {
+
+    /** The logger. */
+    private static final Logger LOG = Logger.getLogger(InlineReceiver.class.getName());
+
+    /** Released when the content has arrived, or the transfer is stopped. */
+    private final CountDownLatch latch;
+
+    /** Milliseconds to wait for the content. */
+    private final long timeout;
+
+    /** The content of the file, when it has arrived. */
+    private volatile byte[] content;
+
+    /** The checksum of the content, from the sender. */
+    private volatile long contentChecksum;
+
+    /** The checksum of the received content, or <code>-1</code> if nothing is received yet. */
+    private long checksum;
+
+    /**
+     * Constructor. Waits for {@link InlineTransfer#TIMEOUT} milliseconds.
+     */
+    InlineReceiver() {
+        this(InlineTransfer.TIMEOUT);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param timeout Milliseconds to wait for the content.
+     */
+    InlineReceiver(final long timeout) {
+        this.timeout = timeout;
+
+        latch = new CountDownLatch(1);
+        checksum = -1;
+    }
+
+    /**
+     * Gives the content of the file to the file receiver waiting for it.
+     *
+     * @param fileContent The content of the file.
+     * @param fileChecksum The checksum of the content, from the sender.
+     * @return If the content was waited for.
+     */
+    public boolean contentArrived(final byte[] fileContent, final long fileChecksum) {
+        if (latch.getCount() == 0) {
+            return false;
+        }
+
+        contentChecksum = fileChecksum;
+        content = fileContent;
+        latch.countDown();
+
+        return true;
+    }
+
+    /**
+     * Waits for the content of the file to arrive.
+     *
+     * @return The content, or <code>null</code> if it did not arrive before the timeout, or the transfer was stopped.
+     */
+    public byte[] waitForContent() {
+        try {
+            if (!latch.await(timeout, TimeUnit.MILLISECONDS)) {
+                LOG.log(Level.WARNING, "The content of the file did not arrive before the timeout");
+            }
+        }
+
+        catch (final InterruptedException e) {
+            LOG.log(Level.SEVERE, e.toString(), e);
+        }
+
+        return content;
+    }
+
+    /**
+     * Checks if the content has the expected size, and the same checksum as the sender.
+     *
+     * @param fileContent The content of the file.
+     * @param size The size of the file, from the offer.
+     * @return If the content is the file that was offered.
+     */
+    public boolean verify(final byte[] fileContent, final long size) {
+        checksum = InlineTransfer.checksum(fileContent);
+        return fileContent.length == size && checksum == contentChecksum;
+    }
+
+    /**
+     * Gets the checksum of the received content.
+     *
+     * @return The checksum, or <code>-1</code> if nothing is verified yet.
+     */
+    public long getChecksum() {
+        return checksum;
+    }
+
+    /**
+     * Stops waiting for the content, and forgets the content if it has arrived.
+     */
+    public void stop() {
+        latch.countDown();
+        content = null;
+    }
+}
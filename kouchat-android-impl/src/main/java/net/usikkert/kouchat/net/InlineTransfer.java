@@ -0,0 +1,258 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+import net.usikkert.kouchat.misc.User;
+
+/**
+ * Sends small files inline in a private message, instead of over a separate connection.
+ *
+ * <p>After the receiver has accepted the file, the sender puts the whole file in a single
+ * <code>SENDFILEDATA</code> message: <code>(code)[checksum]&lt;content&gt;fileName</code>.
+ * The content is encoded with Base64, and the checksum is a CRC32 of the content.
+ * Messages too large for one packet are split into fragments, and put together again
+ * by the receiver, like any other private message.</p>
+ *
+ * <p>When the receiver is done waiting for the content, it answers with a <code>SENDFILEDATAACK</code>
+ * private message: <code>(code)[verified]{hash}fileName</code>, where verified is <code>1</code> if
+ * the content arrived with the right checksum, and <code>0</code> if not. The sender waits for the
+ * answer, so the transfer is only completed on the sender side when the receiver has the file.</p>
+ *
+ * <p>Only used when the other user has the {@link Capability#INLINE} capability, and private chat
+ * is enabled on both sides. The receiver asks for the file inline by accepting on port <code>0</code>.</p>
+ *
+ * @author Christian Ihle
+ */
+public final class InlineTransfer {
+
+    /**
+     * Sends the content of a small file to the receiver.
+     */
+    public interface Sender {
+
+        /**
+         * Sends the content of the file.
+         *
+         * @param content The content of the file.
+         * @param checksum The checksum of the content.
+         * @return If the content was sent.
+         */
+        boolean send(byte[] content, long checksum);
+    }
+
+    /**
+     * The max size of a file sent inline, in bytes. After encoding, the message is split into about 25 fragments,
+     * which leaves room in the burst of chat messages the {@link FloodFilter} of the receiver lets through.
+     */
+    public static final int MAX_SIZE = 8192;
+
+    /** Milliseconds the receiver waits for the content, after accepting the file. */
+    static final long TIMEOUT = FragmentReassembler.TIMEOUT + 5000;
+
+    /** Milliseconds the sender waits for the answer from the receiver, after sending the content. */
+    static final long ANSWER_TIMEOUT = TIMEOUT + 5000;
+
+    /** The characters used in Base64. */
+    private static final char[] ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    /** The character used for padding at the end in Base64. */
+    private static final char PADDING = '=';
+
+    /** The number of bits in each Base64 character. */
+    private static final int BITS_PER_CHAR = 6;
+
+    /** The lowest 6 bits. */
+    private static final int CHAR_MASK = 0x3F;
+
+    /** The lowest 8 bits. */
+    private static final int BYTE_MASK = 0xFF;
+
+    /** The number of bits in a byte. */
+    private static final int BITS_PER_BYTE = 8;
+
+    /** Base64 encodes each group of 3 bytes into 4 characters. */
+    private static final int BYTES_PER_GROUP = 3;
+
+    /** Base64 encodes each group of 3 bytes into 4 characters. */
+    private static final int CHARS_PER_GROUP = 4;
+
+    /** The value of each Base64 character, or <code>-1</code> for other characters. */
+    private static final int[] VALUES = new int['z' + 1];
+
+    static {
+        for (int i = 0; i < VALUES.length; i++) {
+            VALUES[i] = -1;
+        }
+
+        for (int i = 0; i < ALPHABET.length; i++) {
+            VALUES[ALPHABET[i]] = i;
+        }
+    }
+
+    /**
+     * Private constructor. Only static methods here.
+     */
+    private InlineTransfer() {
+
+    }
+
+    /**
+     * Checks if a file can be sent inline with the user.
+     *
+     * @param user The other user in the file transfer.
+     * @return If the user supports inline file transfers, and has private chat enabled.
+     */
+    static boolean isSupported(final User user) {
+        return user.hasCapability(Capability.INLINE) && user.getPrivateChatPort() > 0;
+    }
+
+    /**
+     * Reads the whole file.
+     *
+     * @param file The file to read.
+     * @return The content of the file.
+     * @throws IOException If the file could not be read, or is too large to send inline.
+     */
+    static byte[] readFile(final File file) throws IOException {
+        final long length = file.length();
+
+        if (length > MAX_SIZE) {
+            throw new IOException(file + " is too large to send inline: " + length + " bytes");
+        }
+
+        final byte[] content = new byte[(int) length];
+        final FileInputStream inputStream = new FileInputStream(file);
+
+        try {
+            int read = 0;
+
+            while (read < content.length) {
+                final int count = inputStream.read(content, read, content.length - read);
+
+                if (count == -1) {
+                    throw new IOException("End of " + file + " after " + read + " bytes");
+                }
+
+                read += count;
+            }
+        }
+
+        finally {
+            inputStream.close();
+        }
+
+        return content;
+    }
+
+    /**
+     * Calculates the checksum of the content.
+     *
+     * @param content The content.
+     * @return The checksum.
+     */
+    static long checksum(final byte[] content) {
+        final CRC32 crc = new CRC32();
+        crc.update(content, 0, content.length);
+
+        return crc.getValue();
+    }
+
+    /**
+     * Encodes the content with Base64.
+     *
+     * @param content The content to encode.
+     * @return The encoded content.
+     */
+    static String encode(final byte[] content) {
+        final StringBuilder encoded = new StringBuilder((content.length + BYTES_PER_GROUP - 1) / BYTES_PER_GROUP * CHARS_PER_GROUP);
+        int bits = 0;
+        int bitCount = 0;
+
+        for (final byte b : content) {
+            bits = (bits << BITS_PER_BYTE) | (b & BYTE_MASK);
+            bitCount += BITS_PER_BYTE;
+
+            while (bitCount >= BITS_PER_CHAR) {
+                bitCount -= BITS_PER_CHAR;
+                encoded.append(ALPHABET[(bits >> bitCount) & CHAR_MASK]);
+            }
+        }
+
+        if (bitCount > 0) {
+            encoded.append(ALPHABET[(bits << (BITS_PER_CHAR - bitCount)) & CHAR_MASK]);
+        }
+
+        while (encoded.length() % CHARS_PER_GROUP != 0) {
+            encoded.append(PADDING);
+        }
+
+        return encoded.toString();
+    }
+
+    /**
+     * Decodes content encoded with Base64.
+     *
+     * @param encoded The encoded content.
+     * @return The decoded content, or <code>null</code> if the encoding is invalid.
+     */
+    static byte[] decode(final String encoded) {
+        int length = encoded.length();
+
+        if (length % CHARS_PER_GROUP != 0) {
+            return null;
+        }
+
+        while (length > 0 && encoded.charAt(length - 1) == PADDING) {
+            length--;
+        }
+
+        final byte[] content = new byte[length * BITS_PER_CHAR / BITS_PER_BYTE];
+        int bits = 0;
+        int bitCount = 0;
+        int position = 0;
+
+        for (int i = 0; i < length; i++) {
+            final char c = encoded.charAt(i);
+
+            if (c >= VALUES.length || VALUES[c] == -1) {
+                return null;
+            }
+
+            bits = (bits << BITS_PER_CHAR) | VALUES[c];
+            bitCount += BITS_PER_CHAR;
+
+            if (bitCount >= BITS_PER_BYTE) {
+                bitCount -= BITS_PER_BYTE;
+                content[position++] = (byte) (bits >> bitCount);
+            }
+        }
+
+        return content;
+    }
+}
@@ -0,0 +1,147 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Packs several messages into one <code>BATCH</code> message, and finds the messages again.
+ *
+ * <p>A batch looks like <code>code!BATCH#nick:[length]message[length]message</code>, where
+ * each length is the number of bytes in the encoded message following it. The messages are
+ * complete messages, with their own header, so the receiver can parse them like any other message.</p>
+ *
+ * <p>Clients without {@link Capability#BATCH} ignore the whole batch, since they don't know the type.</p>
+ *
+ * @author Christian Ihle
+ */
+final class MessageBatch {
+
+    /** The character before the length of a message in the batch. */
+    private static final byte LENGTH_START = '[';
+
+    /** The character after the length of a message in the batch. */
+    private static final byte LENGTH_END = ']';
+
+    /** The radix of the message lengths. */
+    private static final int RADIX = 10;
+
+    /**
+     * Private constructor. Only static methods here.
+     */
+    private MessageBatch() {
+
+    }
+
+    /**
+     * Gets the number of bytes a message uses in a batch, including the length.
+     *
+     * @param message The message to add to a batch.
+     * @return The number of bytes used.
+     */
+    static int getEntrySize(final String message) {
+        final int length = getByteLength(message);
+
+        return length + Integer.toString(length).length() + 2;
+    }
+
+    /**
+     * Gets the number of bytes in the encoded message.
+     *
+     * @param message The message to encode.
+     * @return The number of bytes.
+     */
+    static int getByteLength(final String message) {
+        return message.getBytes(MessageTokenizer.CHARSET).length;
+    }
+
+    /**
+     * Creates a batch with the messages.
+     *
+     * @param header The header of the batch, like <code>code!BATCH#nick:</code>.
+     * @param messages The messages to add to the batch.
+     * @return The batch.
+     */
+    static String create(final String header, final List<String> messages) {
+        final StringBuilder batch = new StringBuilder(header);
+
+        for (final String message : messages) {
+            batch.append((char) LENGTH_START)
+                 .append(getByteLength(message))
+                 .append((char) LENGTH_END)
+                 .append(message);
+        }
+
+        return batch.toString();
+    }
+
+    /**
+     * Finds the next message in a batch. The entry buffer is changed to
+     * only contain the message, without copying anything.
+     *
+     * @param batch The buffer with the batch.
+     * @param position The position of the next message in the batch.
+     * @param end The position after the last byte of the batch.
+     * @param entry A buffer sharing content with the batch buffer, to use for the message.
+     * @return The position after the message.
+     * @throws NumberFormatException If the length of the message is invalid.
+     * @throws IndexOutOfBoundsException If the message is outside of the batch.
+     */
+    static int nextEntry(final ByteBuffer batch, final int position, final int end, final ByteBuffer entry) {
+        if (batch.get(position) != LENGTH_START) {
+            throw new NumberFormatException("Missing length of batched message at position " + position);
+        }
+
+        int current = position + 1;
+        int length = 0;
+
+        while (current < end && batch.get(current) != LENGTH_END) {
+            final int digit = Character.digit(batch.get(current), RADIX);
+
+            if (digit == -1) {
+                throw new NumberFormatException("Invalid length of batched message at position " + position);
+            }
+
+            length = length * RADIX + digit;
+
+            if (length > end) {
+                throw new IndexOutOfBoundsException("Batched message outside of batch at position " + position);
+            }
+
+            current++;
+        }
+
+        final int entryStart = current + 1;
+        final int entryEnd = entryStart + length;
+
+        if (current == position + 1 || entryEnd > end) {
+            throw new IndexOutOfBoundsException("Batched message outside of batch at position " + position);
+        }
+
+        entry.limit(entryEnd);
+        entry.position(entryStart);
+
+        return entryEnd;
+    }
+}
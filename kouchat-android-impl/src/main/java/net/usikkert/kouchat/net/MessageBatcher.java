@@ -0,0 +1,378 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.usikkert.kouchat.Constants;
+import net.usikkert.kouchat.misc.User;
+import net.usikkert.kouchat.util.Validate;
+
+/**
+ * Collects small status messages for a short time window, and sends them
+ * together in one multicast packet, to reduce the number of packets on the network.
+ *
+ * <p>The first message added starts the window. When the window is over, or the messages no longer fit
+ * in one packet, the collected messages are packed into a <code>BATCH</code> message and added to the
+ * {@link SendQueue}. A single message is sent as it is, without a batch around it.</p>
+ *
+ * <p>Only use this when all the other users have {@link Capability#BATCH}.</p>
+ *
+ * <p>If the batcher thread is not running, messages are added directly to the send queue.</p>
+ *
+ * @author Christian Ihle
+ */
+public class MessageBatcher implements Runnable {
+
+    /** The logger. */
+    private static final Logger LOG = Logger.getLogger(MessageBatcher.class.getName());
+
+    /** The queue to add the batches to. */
+    private final SendQueue sendQueue;
+
+    /** The sender of the batches. */
+    private final MessageSender messageSender;
+
+    /** The application user. */
+    private final User me;
+
+    /** The number of milliseconds to wait for more messages after the first message. */
+    private final long window;
+
+    /** The messages waiting for the window to end. */
+    private List<BatchedMessage> pending;
+
+    /** The number of bytes the waiting messages will use in a batch. */
+    private int pendingSize;
+
+    /** If the batcher thread is accepting messages. */
+    private boolean running;
+
+    /** The batcher thread, or <code>null</code> if not running. */
+    private Thread worker;
+
+    /**
+     * Constructor.
+     *
+     * @param sendQueue The queue to add the batches to.
+     * @param messageSender The sender of the batches.
+     * @param me The application user.
+     * @param window The number of milliseconds to wait for more messages after the first message.
+     */
+    public MessageBatcher(final SendQueue sendQueue, final MessageSender messageSender, final User me, final int window) {
+        Validate.notNull(sendQueue, "Send queue can not be null");
+        Validate.notNull(messageSender, "Message sender can not be null");
+        Validate.notNull(me, "Me can not be null");
+
+        this.sendQueue = sendQueue;
+        this.messageSender = messageSender;
+        this.me = me;
+        this.window = window;
+
+        pending = new ArrayList<BatchedMessage>();
+    }
+
+    /**
+     * Starts the batcher thread, if not already running.
+     */
+    public synchronized void start() {
+        running = true;
+
+        if (worker == null) {
+            worker = new Thread(this, "MessageBatcher");
+            worker.start();
+        }
+    }
+
+    /**
+     * Stops accepting new messages. The batcher thread sends the messages
+     * already waiting without waiting for the window to end, before it stops.
+     */
+    public synchronized void stop() {
+        running = false;
+        notifyAll();
+    }
+
+    /**
+     * Waits for the batcher thread to add the waiting messages to the send queue, and stop.
+     * Must be called after {@link #stop()}.
+     *
+     * @param timeout The max number of milliseconds to wait.
+     * @return If the batcher thread stopped before the timeout.
+     */
+    public synchronized boolean awaitStop(final long timeout) {
+        final long end = System.currentTimeMillis() + timeout;
+        long remaining = timeout;
+
+        while (worker != null && remaining > 0) {
+            waitFor(remaining);
+            remaining = end - System.currentTimeMillis();
+        }
+
+        return worker == null;
+    }
+
+    /**
+     * Adds a message to the next batch.
+     *
+     * @param message The message to send.
+     * @return If the message was sent or not, when done.
+     */
+    public Future<Boolean> add(final String message) {
+        Validate.notNull(message, "Message can not be null");
+
+        final BatchedMessage batchedMessage = new BatchedMessage(message);
+
+        synchronized (this) {
+            if (running) {
+                pending.add(batchedMessage);
+                pendingSize += batchedMessage.getSize();
+                notifyAll();
+
+                return batchedMessage.getResult();
+            }
+        }
+
+        // Not running, so there is no batcher thread
+        return send(message);
+    }
+
+    /**
+     * The batcher thread. Waits for the window to end, and sends the waiting messages.
+     */
+    @Override
+    public void run() {
+        while (true) {
+            final List<BatchedMessage> messages;
+
+            synchronized (this) {
+                while (running && pending.isEmpty()) {
+                    waitFor(0);
+                }
+
+                if (pending.isEmpty()) {
+                    worker = null;
+                    notifyAll();
+                    return;
+                }
+
+                waitForWindow();
+
+                messages = pending;
+                pending = new ArrayList<BatchedMessage>();
+                pendingSize = 0;
+            }
+
+            sendBatches(messages);
+        }
+    }
+
+    /**
+     * Waits until the window ends, the waiting messages fill a packet, or the batcher stops.
+     * Must be called while holding the lock.
+     */
+    private void waitForWindow() {
+        final long end = System.currentTimeMillis() + window;
+        long remaining = window;
+
+        while (running && remaining > 0 && pendingSize < Constants.NETWORK_PACKET_SIZE) {
+            waitFor(remaining);
+            remaining = end - System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Packs the messages into as few batches as possible, and adds them to the send queue.
+     * The results of the messages are ready when the batches are sent.
+     *
+     * @param messages The messages to send.
+     */
+    private void sendBatches(final List<BatchedMessage> messages) {
+        final String header = me.getCode() + "!" + MessageType.BATCH + "#" + me.getNick() + ":";
+        final int headerSize = MessageBatch.getByteLength(header);
+        final List<String> batch = new ArrayList<String>();
+        final List<Future<Boolean>> results = new ArrayList<Future<Boolean>>(messages.size());
+        int batchSize = headerSize;
+
+        for (final BatchedMessage message : messages) {
+            if (!batch.isEmpty() && batchSize + message.getSize() > Constants.NETWORK_PACKET_SIZE) {
+                final Future<Boolean> result = sendBatch(header, batch);
+
+                for (int i = 0; i < batch.size(); i++) {
+                    results.add(result);
+                }
+
+                batch.clear();
+                batchSize = headerSize;
+            }
+
+            batch.add(message.getMessage());
+            batchSize += message.getSize();
+        }
+
+        final Future<Boolean> result = sendBatch(header, batch);
+
+        for (int i = 0; i < batch.size(); i++) {
+            results.add(result);
+        }
+
+        for (int i = 0; i < messages.size(); i++) {
+            messages.get(i).setSent(results.get(i));
+        }
+    }
+
+    /**
+     * Adds a batch to the send queue.
+     *
+     * @param header The header of the batch.
+     * @param batch The messages in the batch.
+     * @return If the batch was sent or not, when done.
+     */
+    private Future<Boolean> sendBatch(final String header, final List<String> batch) {
+        if (batch.size() == 1) {
+            return send(batch.get(0));
+        }
+
+        if (LOG.isLoggable(Level.FINE)) {
+            LOG.log(Level.FINE, "Sending " + batch.size() + " messages in one batch");
+        }
+
+        return send(MessageBatch.create(header, batch));
+    }
+
+    /**
+     * Adds a message to the send queue, as a status message.
+     *
+     * @param message The message to send.
+     * @return If the message was sent or not, when done.
+     */
+    private Future<Boolean> send(final String message) {
+        return sendQueue.add(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return messageSender.send(message);
+            }
+        }, SendPriority.STATUS);
+    }
+
+    /**
+     * Waits for a message to be added, or for the batcher to stop.
+     * Must be called while holding the lock.
+     *
+     * @param timeout The max number of milliseconds to wait, or <code>0</code> to wait until notified.
+     */
+    private void waitFor(final long timeout) {
+        try {
+            wait(timeout);
+        }
+
+        catch (final InterruptedException e) {
+            LOG.log(Level.FINE, e.toString());
+        }
+    }
+
+    /**
+     * A message waiting to be sent in a batch.
+     */
+    private static class BatchedMessage implements Callable<Boolean> {
+
+        /** The message to send. */
+        private final String message;
+
+        /** The number of bytes the message uses in a batch. */
+        private final int size;
+
+        /** The result given to the caller. Ready when the batch with the message is sent. */
+        private final FutureTask<Boolean> result;
+
+        /** The result of sending the batch with the message. */
+        private Future<Boolean> sent;
+
+        /**
+         * Constructor.
+         *
+         * @param message The message to send.
+         */
+        BatchedMessage(final String message) {
+            this.message = message;
+
+            size = MessageBatch.getEntrySize(message);
+            result = new FutureTask<Boolean>(this);
+        }
+
+        /**
+         * Gets the message to send.
+         *
+         * @return The message.
+         */
+        public String getMessage() {
+            return message;
+        }
+
+        /**
+         * Gets the number of bytes the message uses in a batch.
+         *
+         * @return The size of the message.
+         */
+        public int getSize() {
+            return size;
+        }
+
+        /**
+         * Gets the result given to the caller.
+         *
+         * @return The result.
+         */
+        public Future<Boolean> getResult() {
+            return result;
+        }
+
+        /**
+         * Sets the result of sending the batch with the message, and waits for it.
+         * The result given to the caller gets the same result.
+         *
+         * @param sent The result of sending the batch.
+         */
+        public void setSent(final Future<Boolean> sent) {
+            this.sent = sent;
+            result.run();
+        }
+
+        /**
+         * Waits for the batch with the message to be sent.
+         *
+         * @return If the batch was sent.
+         * @throws Exception If the batch failed.
+         */
+        @Override
+        public Boolean call() throws Exception {
+            return sent.get();
+        }
+    }
+}
@@ -0,0 +1,177 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.usikkert.kouchat.Constants;
+import net.usikkert.kouchat.misc.User;
+import net.usikkert.kouchat.util.Validate;
+
+/**
+ * Splits messages too large for one packet into numbered fragments.
+ *
+ * <p>A fragment looks like <code>code!FRAGMENT#nick:{id}[index/count]data</code>, where the id is unique
+ * for each fragmented message from this client, and the data is a part of the complete message.
+ * The message is only split between characters, so each fragment is valid text.
+ * The receiver puts the fragments together again with a {@link FragmentReassembler}.</p>
+ *
+ * <p>Clients without {@link Capability#FRAGMENT} ignore the fragments, since they don't know the type.</p>
+ *
+ * @author Christian Ihle
+ */
+class MessageFragmenter {
+
+    /** The logger. */
+    private static final Logger LOG = Logger.getLogger(MessageFragmenter.class.getName());
+
+    /** Bits set in the bytes following the first byte of a character encoded with UTF-8. */
+    private static final int CONTINUATION_BITS = 0x80;
+
+    /** Bits to check for continuation bytes in a character encoded with UTF-8. */
+    private static final int CONTINUATION_MASK = 0xC0;
+
+    /** The application user. */
+    private final User me;
+
+    /** The id of the next fragmented message. */
+    private int nextMessageId;
+
+    /**
+     * Constructor.
+     *
+     * @param me The application user.
+     */
+    MessageFragmenter(final User me) {
+        Validate.notNull(me, "Me can not be null");
+
+        this.me = me;
+    }
+
+    /**
+     * Splits the message into fragments, if it's too large for one packet.
+     *
+     * @param message The message to split.
+     * @return The fragments to send, or only the message itself if it fits in one packet.
+     */
+    public List<String> split(final String message) {
+        final byte[] encodedMsg = message.getBytes(MessageTokenizer.CHARSET);
+
+        if (encodedMsg.length <= Constants.NETWORK_PACKET_SIZE) {
+            return Collections.singletonList(message);
+        }
+
+        final int messageId = getNextMessageId();
+        final String maxHeader = createHeader(messageId, FragmentReassembler.MAX_FRAGMENTS, FragmentReassembler.MAX_FRAGMENTS);
+        final int maxDataSize = Constants.NETWORK_PACKET_SIZE - maxHeader.getBytes(MessageTokenizer.CHARSET).length;
+        final List<Integer> boundaries = findBoundaries(encodedMsg, maxDataSize);
+        final int count = boundaries.size() - 1;
+
+        if (count > FragmentReassembler.MAX_FRAGMENTS) {
+            LOG.log(Level.WARNING, "Message was " + encodedMsg.length + " bytes, which is too large to fragment.");
+            return Collections.singletonList(message);
+        }
+
+        final List<String> fragments = new ArrayList<String>(count);
+
+        for (int index = 0; index < count; index++) {
+            final int from = boundaries.get(index);
+            final int to = boundaries.get(index + 1);
+
+            fragments.add(createHeader(messageId, index, count) +
+                    new String(encodedMsg, from, to - from, MessageTokenizer.CHARSET));
+        }
+
+        if (LOG.isLoggable(Level.FINE)) {
+            LOG.log(Level.FINE, "Split message of " + encodedMsg.length + " bytes into " + count + " fragments");
+        }
+
+        return fragments;
+    }
+
+    /**
+     * Finds where to split the encoded message, without splitting any characters.
+     *
+     * @param encodedMsg The encoded message.
+     * @param maxDataSize The max number of bytes in each fragment.
+     * @return The positions to split at, including the start and the end of the message.
+     */
+    private List<Integer> findBoundaries(final byte[] encodedMsg, final int maxDataSize) {
+        final List<Integer> boundaries = new ArrayList<Integer>();
+        int from = 0;
+        boundaries.add(from);
+
+        while (from < encodedMsg.length) {
+            int to = Math.min(from + maxDataSize, encodedMsg.length);
+
+            while (to < encodedMsg.length && to > from + 1 && isContinuation(encodedMsg[to])) {
+                to--;
+            }
+
+            boundaries.add(to);
+            from = to;
+        }
+
+        return boundaries;
+    }
+
+    /**
+     * Checks if the byte is in the middle of a character encoded with UTF-8.
+     *
+     * @param encodedByte The byte to check.
+     * @return If the byte is not the first byte of a character.
+     */
+    private boolean isContinuation(final byte encodedByte) {
+        return (encodedByte & CONTINUATION_MASK) == CONTINUATION_BITS;
+    }
+
+    /**
+     * Creates the start of a fragment.
+     *
+     * @param messageId The id of the fragmented message.
+     * @param index The number of the fragment, starting at <code>0</code>.
+     * @param count The number of fragments in the message.
+     * @return The start of the fragment.
+     */
+    private String createHeader(final int messageId, final int index, final int count) {
+        return me.getCode() + "!" + MessageType.FRAGMENT + "#" + me.getNick() + ":" +
+                "{" + messageId + "}" +
+                "[" + index + "/" + count + "]";
+    }
+
+    /**
+     * Gets a new id for a fragmented message.
+     *
+     * @return The message id.
+     */
+    private synchronized int getNextMessageId() {
+        final int messageId = nextMessageId;
+        nextMessageId = (nextMessageId + 1) & Integer.MAX_VALUE;
+
+        return messageId;
+    }
+}
@@ -22,10 +22,12 @@
 
 package net.usikkert.kouchat.net;
 
+import java.nio.ByteBuffer;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import net.usikkert.kouchat.event.ReceiverListener;
+import net.usikkert.kouchat.event.ByteReceiverListener;
 import net.usikkert.kouchat.misc.Settings;
 import net.usikkert.kouchat.misc.User;
 import net.usikkert.kouchat.util.Validate;
@@ -34,6 +36,10 @@ import net.usikkert.kouchat.util.Validate;
  * This class listens for multicast messages from the network,
  * and parses them into a format the {@link MessageResponder} can use.
  *
+ * <p>The messages are parsed directly from the encoded bytes. Messages from the
+ * application user, and messages arriving before logon, are rejected before
+ * anything is decoded. Only the fields given to the responder are decoded.</p>
+ *
  * <p>The supported message types:</p>
  *
  * <ul>
@@ -55,11 +61,28 @@ import net.usikkert.kouchat.util.Validate;
  *   <li>SENDFILEABORT</li>
  *   <li>SENDFILE</li>
  *   <li>CLIENT</li>
+ *   <li>BATCH</li>
+ *   <li>FRAGMENT</li>
+ *   <li>NACK</li>
+ *   <li>SENDGROUPFILE</li>
+ *   <li>SENDFILEQUEUED</li>
  * </ul>
  *
+ * <p>Chat messages from newer clients have a sequence number. Lost messages are reported
+ * to the responder, so they can be requested again with a <code>NACK</code>, and messages
+ * that arrive more than once are only given to the responder the first time. Idle messages
+ * from newer clients have the sequence number of the last chat message, to find lost messages
+ * at the end of a burst.</p>
+ *
+ * <p>A <code>BATCH</code> contains several complete messages, which are parsed one by one.
+ * See {@link MessageBatch}.</p>
+ *
+ * <p>A <code>FRAGMENT</code> contains a part of a message too large for one packet.
+ * The message is parsed when all the fragments have arrived. See {@link MessageFragmenter}.</p>
+ *
  * @author Christian Ihle
  */
-public class MessageParser implements ReceiverListener {
+public class MessageParser implements ByteReceiverListener {
 
     /** The logger. */
     private static final Logger LOG = Logger.getLogger(MessageParser.class.getName());
@@ -70,9 +93,21 @@ public class MessageParser implements ReceiverListener {
     /** The application settings. */
     private final Settings settings;
 
+    /** Finds the different parts of the messages. */
+    private final MessageTokenizer tokenizer;
+
+    /** Puts the fragments of large messages together. */
+    private final FragmentReassembler reassembler;
+
+    /** Finds lost and duplicate chat messages. */
+    private final SequenceTracker sequenceTracker;
+
     /** If logged on to the chat or not. */
     private boolean loggedOn;
 
+    /** If the messages in a batch are being parsed. Batches inside batches are not allowed. */
+    private boolean parsingBatch;
+
     /**
      * Constructor.
      *
@@ -85,6 +120,21 @@ public class MessageParser implements ReceiverListener {
 
         this.responder = responder;
         this.settings = settings;
+
+        tokenizer = new MessageTokenizer();
+        reassembler = new FragmentReassembler();
+        sequenceTracker = new SequenceTracker();
+    }
+
+    /**
+     * Encodes the message, and parses it like any other message.
+     *
+     * @param message The raw message to parse.
+     * @param ipAddress The IP address of the user who sent the message.
+     */
+    @Override
+    public void messageArrived(final String message, final String ipAddress) {
+        messageArrived(ByteBuffer.wrap(message.getBytes(MessageTokenizer.CHARSET)), ipAddress);
     }
 
     /**
@@ -92,212 +142,546 @@ public class MessageParser implements ReceiverListener {
      * and then gives the correct data to the responder for
      * more processing.
      *
-     * @param message The raw message to parse.
+     * @param message The encoded message to parse.
      * @param ipAddress The IP address of the user who sent the message.
      */
     @Override
-    public void messageArrived(final String message, final String ipAddress) {
+    public void messageArrived(final ByteBuffer message, final String ipAddress) {
         try {
-            final int exclamation = message.indexOf("!");
-            final int hash = message.indexOf("#");
-            final int colon = message.indexOf(":");
-
-            final int msgCode = Integer.parseInt(message.substring(0, exclamation));
-            final String type = message.substring(exclamation + 1, hash);
-            final String msgNick = message.substring(hash + 1, colon);
-            final String msg = message.substring(colon + 1, message.length());
+            if (!tokenizer.tokenize(message)) {
+                LOG.log(Level.SEVERE, "Invalid message: " + tokenizer.getMessage());
+                return;
+            }
 
-            final User tempme = settings.getMe();
+            final int msgCode = tokenizer.getCode();
+            final MessageType type = tokenizer.getType();
 
-            if (msgCode != tempme.getCode() && loggedOn) {
-                if (type.equals("MSG")) {
-                    final int leftBracket = msg.indexOf("[");
-                    final int rightBracket = msg.indexOf("]");
-                    final int rgb = Integer.parseInt(msg.substring(leftBracket + 1, rightBracket));
+            // Unknown message type. Ignore.
+            if (type == null) {
+                return;
+            }
 
-                    responder.messageArrived(msgCode, msg.substring(rightBracket + 1, msg.length()), rgb);
+            // The messages in the batch are checked like any other message
+            if (type == MessageType.BATCH) {
+                if (!parsingBatch) {
+                    parseBatch(message, ipAddress);
                 }
 
-                else if (type.equals("LOGON")) {
-                    final User newUser = new User(msgNick, msgCode);
-                    newUser.setIpAddress(ipAddress);
-                    newUser.setLastIdle(System.currentTimeMillis());
-                    newUser.setLogonTime(System.currentTimeMillis());
+                return;
+            }
+
+            final User tempme = settings.getMe();
 
-                    responder.userLogOn(newUser);
+            if (type == MessageType.FRAGMENT) {
+                if (msgCode != tempme.getCode() && loggedOn) {
+                    parseFragment(message, ipAddress);
                 }
+            }
 
-                else if (type.equals("EXPOSING")) {
-                    final User user = new User(msgNick, msgCode);
-                    user.setIpAddress(ipAddress);
-                    user.setAwayMsg(msg);
+            else if (msgCode == tempme.getCode()) {
+                ownMessageArrived(type, ipAddress);
+            }
 
-                    if (msg.length() > 0) {
-                        user.setAway(true);
-                    }
+            else if (loggedOn) {
+                userMessageArrived(msgCode, type, ipAddress, tempme);
+            }
+        }
 
-                    user.setLastIdle(System.currentTimeMillis());
-                    user.setLogonTime(System.currentTimeMillis());
+        catch (final IndexOutOfBoundsException e) {
+            LOG.log(Level.SEVERE, e.toString(), e);
+        }
 
-                    responder.userExposing(user);
-                }
+        catch (final NumberFormatException e) {
+            LOG.log(Level.SEVERE, e.toString(), e);
+        }
+    }
 
-                else if (type.equals("LOGOFF")) {
-                    responder.userLogOff(msgCode);
-                }
+    /**
+     * Parses each of the messages in a batch: <code>[length]message[length]message</code>.
+     *
+     * <p>The batch is only read up to the first invalid message.</p>
+     *
+     * @param message The encoded batch.
+     * @param ipAddress The IP address of the user who sent the batch.
+     */
+    private void parseBatch(final ByteBuffer message, final String ipAddress) {
+        // The tokenizer is reused for each message, so the positions are needed before parsing
+        final int payloadEnd = tokenizer.getPayloadEnd();
+        final int end = message.limit();
+        final ByteBuffer entry = message.duplicate();
+        int position = tokenizer.getPayloadStart();
 
-                else if (type.equals("AWAY")) {
-                    responder.awayChanged(msgCode, true, msg);
-                }
+        parsingBatch = true;
 
-                else if (type.equals("BACK")) {
-                    responder.awayChanged(msgCode, false, "");
-                }
+        try {
+            while (position < payloadEnd) {
+                position = MessageBatch.nextEntry(message, position, end, entry);
+                messageArrived(entry, ipAddress);
+            }
+        }
 
-                else if (type.equals("EXPOSE")) {
-                    responder.exposeRequested();
-                }
+        finally {
+            parsingBatch = false;
+        }
+    }
 
-                else if (type.equals("NICKCRASH")) {
-                    if (tempme.getNick().equals(msg)) {
-                        responder.nickCrash();
-                    }
-                }
+    /**
+     * Adds the fragment to the reassembler, and parses the complete message
+     * if this was the last fragment.
+     *
+     * @param message The encoded fragment.
+     * @param ipAddress The IP address of the user who sent the fragment.
+     */
+    private void parseFragment(final ByteBuffer message, final String ipAddress) {
+        final int msgCode = tokenizer.getCode();
+        final ByteBuffer completeMessage = reassembler.add(tokenizer, message);
+
+        if (completeMessage != null) {
+            if (!tokenizer.tokenize(completeMessage) || tokenizer.getCode() != msgCode) {
+                LOG.log(Level.SEVERE, "Invalid fragmented message from " + msgCode);
+                return;
+            }
 
-                else if (type.equals("WRITING")) {
-                    responder.writingChanged(msgCode, true);
-                }
+            messageArrived(completeMessage, ipAddress);
+        }
+    }
 
-                else if (type.equals("STOPPEDWRITING")) {
-                    responder.writingChanged(msgCode, false);
-                }
+    /**
+     * Handles messages looped back from the application user.
+     *
+     * @param type The message type.
+     * @param ipAddress The IP address of the application user.
+     */
+    private void ownMessageArrived(final MessageType type, final String ipAddress) {
+        if (type == MessageType.LOGON) {
+            sequenceTracker.clear();
+            responder.meLogOn(ipAddress);
+            loggedOn = true;
+        }
+
+        else if (type == MessageType.IDLE && loggedOn) {
+            responder.meIdle(ipAddress);
+        }
+    }
 
-                else if (type.equals("GETTOPIC")) {
-                    responder.topicRequested();
+    /**
+     * Handles messages from the other users.
+     *
+     * @param msgCode The unique code of the user who sent the message.
+     * @param type The message type.
+     * @param ipAddress The IP address of the user who sent the message.
+     * @param tempme The application user.
+     */
+    private void userMessageArrived(final int msgCode, final MessageType type, final String ipAddress, final User tempme) {
+        switch (type) {
+            case MSG:
+                parseChatMessage(msgCode);
+                break;
+
+            case LOGON:
+                sequenceTracker.remove(msgCode);
+                responder.userLogOn(msgCode, tokenizer.getNick(), ipAddress);
+                break;
+
+            case EXPOSING:
+                responder.userExposing(msgCode, tokenizer.getNick(), tokenizer.getPayload(), ipAddress);
+                break;
+
+            case LOGOFF:
+                sequenceTracker.remove(msgCode);
+                responder.userLogOff(msgCode);
+                break;
+
+            case AWAY:
+                responder.awayChanged(msgCode, true, tokenizer.getPayload());
+                break;
+
+            case BACK:
+                responder.awayChanged(msgCode, false, "");
+                break;
+
+            case EXPOSE:
+                responder.exposeRequested();
+                break;
+
+            case NICKCRASH:
+                if (tempme.getNick().equals(tokenizer.getPayload())) {
+                    responder.nickCrash();
                 }
 
-                else if (type.equals("TOPIC")) {
-                    final int leftBracket = msg.indexOf("[");
-                    final int rightBracket = msg.indexOf("]");
-                    final int leftPara = msg.indexOf("(");
-                    final int rightPara = msg.indexOf(")");
+                break;
+
+            case WRITING:
+                responder.writingChanged(msgCode, true);
+                break;
 
-                    if (rightBracket != -1 && leftBracket != -1) {
-                        final String theNick = msg.substring(leftPara + 1, rightPara);
-                        final long theTime = Long.parseLong(msg.substring(leftBracket + 1, rightBracket));
-                        String theTopic = null;
+            case STOPPEDWRITING:
+                responder.writingChanged(msgCode, false);
+                break;
 
-                        if (msg.length() > rightBracket + 1) {
-                            theTopic = msg.substring(rightBracket + 1, msg.length());
-                        }
+            case GETTOPIC:
+                responder.topicRequested();
+                break;
 
-                        responder.topicChanged(msgCode, theTopic, theNick, theTime);
-                    }
+            case TOPIC:
+                parseTopic(msgCode);
+                break;
+
+            case NICK:
+                responder.nickChanged(msgCode, tokenizer.getNick());
+                break;
+
+            case IDLE:
+                parseIdle(msgCode, ipAddress);
+                break;
+
+            case SENDFILEACCEPT:
+                if (isMessageToMe(tempme)) {
+                    parseFileAccept(msgCode);
                 }
 
-                else if (type.equals("NICK")) {
-                    responder.nickChanged(msgCode, msgNick);
+                break;
+
+            case SENDFILEABORT:
+                if (isMessageToMe(tempme)) {
+                    parseFileAbort(msgCode);
                 }
 
-                else if (type.equals("IDLE")) {
-                    responder.userIdle(msgCode, ipAddress);
+                break;
+
+            case SENDFILE:
+                if (isMessageToMe(tempme)) {
+                    parseFileSend(msgCode);
                 }
 
-                else if (type.equals("SENDFILEACCEPT")) {
-                    final int leftPara = msg.indexOf("(");
-                    final int rightPara = msg.indexOf(")");
-                    final int fileCode = Integer.parseInt(msg.substring(leftPara + 1, rightPara));
-
-                    if (fileCode == tempme.getCode()) {
-                        final int leftCurly = msg.indexOf("{");
-                        final int rightCurly = msg.indexOf("}");
-                        final int leftBracket = msg.indexOf("[");
-                        final int rightBracket = msg.indexOf("]");
-                        final int port = Integer.parseInt(msg.substring(leftBracket + 1, rightBracket));
-                        final int fileHash = Integer.parseInt(msg.substring(leftCurly + 1, rightCurly));
-                        final String fileName = msg.substring(rightCurly + 1, msg.length());
-
-                        responder.fileSendAccepted(msgCode, fileName, fileHash, port);
-                    }
+                break;
+
+            case SENDFILEQUEUED:
+                if (isMessageToMe(tempme)) {
+                    parseFileQueued(msgCode);
                 }
 
-                else if (type.equals("SENDFILEABORT")) {
-                    final int leftPara = msg.indexOf("(");
-                    final int rightPara = msg.indexOf(")");
-                    final int fileCode = Integer.parseInt(msg.substring(leftPara + 1, rightPara));
+                break;
 
-                    if (fileCode == tempme.getCode()) {
-                        final int leftCurly = msg.indexOf("{");
-                        final int rightCurly = msg.indexOf("}");
-                        final String fileName = msg.substring(rightCurly + 1, msg.length());
-                        final int fileHash = Integer.parseInt(msg.substring(leftCurly + 1, rightCurly));
+            case CLIENT:
+                parseClient(msgCode);
+                break;
 
-                        responder.fileSendAborted(msgCode, fileName, fileHash);
-                    }
+            case NACK:
+                if (isMessageToMe(tempme)) {
+                    parseNack(msgCode);
                 }
 
-                else if (type.equals("SENDFILE")) {
-                    final int leftPara = msg.indexOf("(");
-                    final int rightPara = msg.indexOf(")");
-                    final int fileCode = Integer.parseInt(msg.substring(leftPara + 1, rightPara));
-
-                    if (fileCode == tempme.getCode()) {
-                        final int leftCurly = msg.indexOf("{");
-                        final int rightCurly = msg.indexOf("}");
-                        final int leftBracket = msg.indexOf("[");
-                        final int rightBracket = msg.indexOf("]");
-                        final long byteSize = Long.parseLong(msg.substring(leftBracket + 1, rightBracket));
-                        final String fileName = msg.substring(rightCurly + 1, msg.length());
-                        final int fileHash = Integer.parseInt(msg.substring(leftCurly + 1, rightCurly));
-
-                        responder.fileSend(msgCode, byteSize, fileName, msgNick, fileHash);
-                    }
-                }
+                break;
 
-                else if (type.equals("CLIENT")) {
-                    final int leftPara = msg.indexOf("(");
-                    final int rightPara = msg.indexOf(")");
-                    final int leftBracket = msg.indexOf("[");
-                    final int rightBracket = msg.indexOf("]");
-                    final int leftCurly = msg.indexOf("{");
-                    final int rightCurly = msg.indexOf("}");
-                    final int lessThan = msg.indexOf("<");
-                    final int greaterThan = msg.indexOf(">");
+            case SENDGROUPFILE:
+                parseGroupFileSend(msgCode);
+                break;
 
-                    final String client = msg.substring(leftPara + 1, rightPara);
-                    final long timeSinceLogon = Long.parseLong(msg.substring(leftBracket + 1, rightBracket));
-                    final String operatingSystem = msg.substring(leftCurly + 1, rightCurly);
+            default:
+                // Not a multicast message
+                break;
+        }
+    }
 
-                    int privateChatPort = 0;
+    /**
+     * Parses a chat message: <code>{sequence}[color]message</code>.
+     * Messages from older clients have no sequence number.
+     *
+     * @param msgCode The unique code of the user who sent the message.
+     */
+    private void parseChatMessage(final int msgCode) {
+        final int leftBracket = tokenizer.indexOfInPayload('[');
+        final int rightBracket = tokenizer.indexOfInPayload(']');
+        final int rgb = tokenizer.parseInt(leftBracket + 1, rightBracket);
 
-                    try {
-                        privateChatPort = Integer.parseInt(msg.substring(lessThan + 1, greaterThan));
-                    }
+        if (tokenizer.payloadStartsWith('{')) {
+            final int sequence = tokenizer.parseInt(tokenizer.getPayloadStart() + 1, tokenizer.indexOfInPayload('}'));
+            final int missing = sequenceTracker.accept(msgCode, sequence);
 
-                    catch (final NumberFormatException e) {
-                        LOG.log(Level.WARNING, e.toString());
-                    }
+            if (missing == SequenceTracker.DUPLICATE) {
+                return;
+            }
 
-                    responder.clientInfo(msgCode, client, timeSinceLogon, operatingSystem, privateChatPort);
-                }
+            if (missing > 0) {
+                responder.messagesLost(msgCode, sequence - missing, sequence - 1);
             }
+        }
 
-            else if (msgCode == tempme.getCode() && type.equals("LOGON")) {
-                responder.meLogOn(ipAddress);
-                loggedOn = true;
+        responder.messageArrived(msgCode, tokenizer.decode(rightBracket + 1, tokenizer.getPayloadEnd()), rgb);
+    }
+
+    /**
+     * Parses an idle message: <code>{sequence}</code>.
+     * Messages from older clients, and from users who have not sent any chat messages, have no sequence number.
+     *
+     * @param msgCode The unique code of the user who sent the message.
+     * @param ipAddress The IP address of the user who sent the message.
+     */
+    private void parseIdle(final int msgCode, final String ipAddress) {
+        responder.userIdle(msgCode, ipAddress);
+
+        if (tokenizer.payloadStartsWith('{')) {
+            final int sequence = tokenizer.parseInt(tokenizer.getPayloadStart() + 1, tokenizer.indexOfInPayload('}'));
+            final int missing = sequenceTracker.acceptLast(msgCode, sequence);
+
+            if (missing > 0) {
+                responder.messagesLost(msgCode, sequence - missing + 1, sequence);
             }
+        }
+    }
 
-            else if (msgCode == tempme.getCode() && type.equals("IDLE") && loggedOn) {
-                responder.meIdle(ipAddress);
+    /**
+     * Parses a topic message: <code>(nick)[time]topic</code>.
+     *
+     * @param msgCode The unique code of the user who sent the message.
+     */
+    private void parseTopic(final int msgCode) {
+        final int leftBracket = tokenizer.indexOfInPayload('[');
+        final int rightBracket = tokenizer.indexOfInPayload(']');
+        final int leftPara = tokenizer.indexOfInPayload('(');
+        final int rightPara = tokenizer.indexOfInPayload(')');
+
+        if (rightBracket != -1 && leftBracket != -1) {
+            final String theNick = tokenizer.decode(leftPara + 1, rightPara);
+            final long theTime = tokenizer.parseLong(leftBracket + 1, rightBracket);
+            String theTopic = null;
+
+            if (tokenizer.getPayloadEnd() > rightBracket + 1) {
+                theTopic = tokenizer.decode(rightBracket + 1, tokenizer.getPayloadEnd());
             }
+
+            responder.topicChanged(msgCode, theTopic, theNick, theTime);
         }
+    }
 
-        catch (final StringIndexOutOfBoundsException e) {
-            LOG.log(Level.SEVERE, e.toString(), e);
+    /**
+     * Checks if a file transfer message or a <code>NACK</code> is meant for the application user,
+     * by comparing the code in the payload: <code>(code)</code>.
+     *
+     * @param tempme The application user.
+     * @return If the message is for the application user.
+     */
+    private boolean isMessageToMe(final User tempme) {
+        final int leftPara = tokenizer.indexOfInPayload('(');
+        final int rightPara = tokenizer.indexOfInPayload(')');
+        final int fileCode = tokenizer.parseInt(leftPara + 1, rightPara);
+
+        return fileCode == tempme.getCode();
+    }
+
+    /**
+     * Parses a file accept message: <code>(code)[port]{hash}fileName</code>. The port can be followed by
+     * the offset to resume the transfer from, and the number of connections to use: <code>[port/offset/streams]</code>.
+     * The number of connections can be followed by the id to use in the handshake: <code>[port/offset/streams/id]</code>,
+     * and the id can be followed by <code>1</code> if the checksum should be exchanged: <code>[port/offset/streams/id/1]</code>.
+     *
+     * @param msgCode The unique code of the user who sent the message.
+     */
+    private void parseFileAccept(final int msgCode) {
+        final int leftCurly = tokenizer.indexOfInPayload('{');
+        final int rightCurly = tokenizer.indexOfInPayload('}');
+        final int leftBracket = tokenizer.indexOfInPayload('[');
+        final int rightBracket = tokenizer.indexOfInPayload(']');
+        final int firstSlash = indexOfSlash(leftBracket + 1, rightBracket);
+        final int secondSlash = indexOfSlash(firstSlash + 1, rightBracket);
+        final int thirdSlash = indexOfSlash(secondSlash + 1, rightBracket);
+        final int fourthSlash = indexOfSlash(thirdSlash + 1, rightBracket);
+        final int port;
+        long resumeOffset = 0;
+        int streams = 1;
+        int handshakeId = 0;
+        boolean checksum = false;
+
+        if (firstSlash == -1) {
+            port = tokenizer.parseInt(leftBracket + 1, rightBracket);
+        }
+
+        else if (secondSlash == -1) {
+            port = tokenizer.parseInt(leftBracket + 1, firstSlash);
+            resumeOffset = tokenizer.parseLong(firstSlash + 1, rightBracket);
+        }
+
+        else if (thirdSlash == -1) {
+            port = tokenizer.parseInt(leftBracket + 1, firstSlash);
+            resumeOffset = tokenizer.parseLong(firstSlash + 1, secondSlash);
+            streams = tokenizer.parseInt(secondSlash + 1, rightBracket);
+        }
+
+        else if (fourthSlash == -1) {
+            port = tokenizer.parseInt(leftBracket + 1, firstSlash);
+            resumeOffset = tokenizer.parseLong(firstSlash + 1, secondSlash);
+            streams = tokenizer.parseInt(secondSlash + 1, thirdSlash);
+            handshakeId = tokenizer.parseInt(thirdSlash + 1, rightBracket);
+        }
+
+        else {
+            port = tokenizer.parseInt(leftBracket + 1, firstSlash);
+            resumeOffset = tokenizer.parseLong(firstSlash + 1, secondSlash);
+            streams = tokenizer.parseInt(secondSlash + 1, thirdSlash);
+            handshakeId = tokenizer.parseInt(thirdSlash + 1, fourthSlash);
+            checksum = tokenizer.parseInt(fourthSlash + 1, rightBracket) == 1;
+        }
+
+        final int fileHash = tokenizer.parseInt(leftCurly + 1, rightCurly);
+        final String fileName = tokenizer.decode(rightCurly + 1, tokenizer.getPayloadEnd());
+
+        responder.fileSendAccepted(msgCode, fileName, fileHash, port,
+                                   new TransferOptions(resumeOffset, streams, handshakeId, checksum));
+    }
+
+    /**
+     * Finds the first slash between the two positions.
+     *
+     * @param from The position to start searching from. No searching is done if this is <code>0</code> or less.
+     * @param to The position to stop searching at.
+     * @return The position of the slash, or <code>-1</code> if not found.
+     */
+    private int indexOfSlash(final int from, final int to) {
+        if (from <= 0) {
+            return -1;
+        }
+
+        final int slash = tokenizer.indexOf('/', from);
+
+        if (slash >= to) {
+            return -1;
+        }
+
+        return slash;
+    }
+
+    /**
+     * Parses a file abort message: <code>(code){hash}fileName</code>.
+     *
+     * @param msgCode The unique code of the user who sent the message.
+     */
+    private void parseFileAbort(final int msgCode) {
+        final int leftCurly = tokenizer.indexOfInPayload('{');
+        final int rightCurly = tokenizer.indexOfInPayload('}');
+        final String fileName = tokenizer.decode(rightCurly + 1, tokenizer.getPayloadEnd());
+        final int fileHash = tokenizer.parseInt(leftCurly + 1, rightCurly);
+
+        responder.fileSendAborted(msgCode, fileName, fileHash);
+    }
+
+    /**
+     * Parses a file queued message: <code>(code){hash}fileName</code>.
+     *
+     * @param msgCode The unique code of the user who sent the message.
+     */
+    private void parseFileQueued(final int msgCode) {
+        final int leftCurly = tokenizer.indexOfInPayload('{');
+        final int rightCurly = tokenizer.indexOfInPayload('}');
+        final String fileName = tokenizer.decode(rightCurly + 1, tokenizer.getPayloadEnd());
+        final int fileHash = tokenizer.parseInt(leftCurly + 1, rightCurly);
+
+        responder.fileSendQueued(msgCode, fileName, fileHash);
+    }
+
+    /**
+     * Parses a file send message: <code>(code)[size]{hash}fileName</code>.
+     *
+     * @param msgCode The unique code of the user who sent the message.
+     */
+    private void parseFileSend(final int msgCode) {
+        final int leftCurly = tokenizer.indexOfInPayload('{');
+        final int rightCurly = tokenizer.indexOfInPayload('}');
+        final int leftBracket = tokenizer.indexOfInPayload('[');
+        final int rightBracket = tokenizer.indexOfInPayload(']');
+        final long byteSize = tokenizer.parseLong(leftBracket + 1, rightBracket);
+        final String fileName = tokenizer.decode(rightCurly + 1, tokenizer.getPayloadEnd());
+        final int fileHash = tokenizer.parseInt(leftCurly + 1, rightCurly);
+
+        responder.fileSend(msgCode, byteSize, fileName, tokenizer.getNick(), fileHash);
+    }
+
+    /**
+     * Parses an offer of a file to everyone:
+     * <code>(transferId)[size]{checksum}&lt;groupAddress:groupPort:controlPort&gt;fileName</code>.
+     *
+     * @param msgCode The unique code of the user who wants to send the file.
+     */
+    private void parseGroupFileSend(final int msgCode) {
+        final int leftPara = tokenizer.indexOfInPayload('(');
+        final int rightPara = tokenizer.indexOfInPayload(')');
+        final int leftBracket = tokenizer.indexOfInPayload('[');
+        final int rightBracket = tokenizer.indexOfInPayload(']');
+        final int leftCurly = tokenizer.indexOfInPayload('{');
+        final int rightCurly = tokenizer.indexOfInPayload('}');
+        final int lessThan = tokenizer.indexOf('<', rightCurly);
+        final int greaterThan = tokenizer.indexOf('>', lessThan);
+        final int portColon = tokenizer.indexOf(':', lessThan);
+        final int controlColon = tokenizer.indexOf(':', portColon + 1);
+
+        final boolean validGroup = lessThan != -1 && portColon > lessThan + 1 && controlColon != -1 && greaterThan > controlColon;
+
+        if (rightCurly == -1 || !validGroup || greaterThan + 1 >= tokenizer.getPayloadEnd()) {
+            LOG.log(Level.SEVERE, "Invalid multicast file offer from " + msgCode);
+            return;
+        }
+
+        final MulticastOffer offer = new MulticastOffer(
+                tokenizer.parseInt(leftPara + 1, rightPara),
+                tokenizer.decode(greaterThan + 1, tokenizer.getPayloadEnd()),
+                tokenizer.parseLong(leftBracket + 1, rightBracket),
+                tokenizer.parseLong(leftCurly + 1, rightCurly),
+                tokenizer.decode(lessThan + 1, portColon),
+                tokenizer.parseInt(portColon + 1, controlColon),
+                tokenizer.parseInt(controlColon + 1, greaterThan));
+
+        responder.groupFileSend(msgCode, offer);
+    }
+
+    /**
+     * Parses a request to send lost chat messages again: <code>(userCode)[fromSequence]{toSequence}</code>.
+     *
+     * @param msgCode The unique code of the user who lost the messages.
+     */
+    private void parseNack(final int msgCode) {
+        final int leftBracket = tokenizer.indexOfInPayload('[');
+        final int rightBracket = tokenizer.indexOfInPayload(']');
+        final int leftCurly = tokenizer.indexOfInPayload('{');
+        final int rightCurly = tokenizer.indexOfInPayload('}');
+
+        final int fromSequence = tokenizer.parseInt(leftBracket + 1, rightBracket);
+        final int toSequence = tokenizer.parseInt(leftCurly + 1, rightCurly);
+
+        responder.resendRequested(msgCode, fromSequence, toSequence);
+    }
+
+    /**
+     * Parses a client message: <code>(client)[timeSinceLogon]{operatingSystem}&lt;privateChatPort&gt;capabilities</code>.
+     *
+     * @param msgCode The unique code of the user who sent the message.
+     */
+    private void parseClient(final int msgCode) {
+        final int leftPara = tokenizer.indexOfInPayload('(');
+        final int rightPara = tokenizer.indexOfInPayload(')');
+        final int leftBracket = tokenizer.indexOfInPayload('[');
+        final int rightBracket = tokenizer.indexOfInPayload(']');
+        final int leftCurly = tokenizer.indexOfInPayload('{');
+        final int rightCurly = tokenizer.indexOfInPayload('}');
+        final int lessThan = tokenizer.indexOfInPayload('<');
+        final int greaterThan = tokenizer.indexOfInPayload('>');
+
+        final String client = tokenizer.decode(leftPara + 1, rightPara);
+        final long timeSinceLogon = tokenizer.parseLong(leftBracket + 1, rightBracket);
+        final String operatingSystem = tokenizer.decode(leftCurly + 1, rightCurly);
+
+        int privateChatPort = 0;
+
+        try {
+            privateChatPort = tokenizer.parseInt(lessThan + 1, greaterThan);
         }
 
         catch (final NumberFormatException e) {
-            LOG.log(Level.SEVERE, e.toString(), e);
+            LOG.log(Level.WARNING, e.toString());
         }
+
+        // Newer clients add their capabilities after the port
+        final Set<Capability> capabilities = Capability.parse(tokenizer.decode(greaterThan + 1, tokenizer.getPayloadEnd()));
+
+        responder.clientInfo(msgCode, client, timeSinceLogon, operatingSystem, privateChatPort, capabilities);
     }
 }
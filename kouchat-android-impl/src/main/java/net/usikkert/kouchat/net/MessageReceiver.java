@@ -27,10 +27,12 @@ import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.net.MulticastSocket;
 import java.net.NetworkInterface;
+import java.nio.ByteBuffer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import net.usikkert.kouchat.Constants;
+import net.usikkert.kouchat.event.ByteReceiverListener;
 import net.usikkert.kouchat.event.ReceiverListener;
 import net.usikkert.kouchat.misc.ErrorHandler;
 import net.usikkert.kouchat.util.Tools;
@@ -41,7 +43,7 @@ import net.usikkert.kouchat.util.Tools;
  *
  * @author Christian Ihle
  */
-public class MessageReceiver implements Runnable {
+public class MessageReceiver implements MulticastReceiver, Runnable {
 
     /** The logger. */
     private static final Logger LOG = Logger.getLogger(MessageReceiver.class.getName());
@@ -116,12 +118,7 @@ public class MessageReceiver implements Runnable {
                 if (connected) {
                     mcSocket.receive(packet);
                     final String ip = packet.getAddress().getHostAddress();
-                    final String message = new String(packet.getData(), Constants.MESSAGE_CHARSET).trim();
-                    LOG.log(Level.FINE, "Message arrived from " + ip + ": " + message);
-
-                    if (listener != null) {
-                        listener.messageArrived(message, ip);
-                    }
+                    notifyListener(packet, ip);
                 }
             }
 
@@ -138,6 +135,28 @@ public class MessageReceiver implements Runnable {
         }
     }
 
+    /**
+     * Gives the packet to the listener. Listeners able to parse bytes get the packet data directly,
+     * without decoding it to a string first.
+     *
+     * @param packet The packet that arrived.
+     * @param ip The IP address of the sender.
+     */
+    private void notifyListener(final DatagramPacket packet, final String ip) {
+        if (LOG.isLoggable(Level.FINE)) {
+            final String message = new String(packet.getData(), 0, packet.getLength(), MessageTokenizer.CHARSET).trim();
+            LOG.log(Level.FINE, "Message arrived from " + ip + ": " + message);
+        }
+
+        if (listener instanceof ByteReceiverListener) {
+            ((ByteReceiverListener) listener).messageArrived(ByteBuffer.wrap(packet.getData(), 0, packet.getLength()), ip);
+        }
+
+        else if (listener != null) {
+            listener.messageArrived(new String(packet.getData(), 0, packet.getLength(), MessageTokenizer.CHARSET).trim(), ip);
+        }
+    }
+
     /**
      * Starts the thread that listens for messages.
      */
@@ -157,6 +176,7 @@ public class MessageReceiver implements Runnable {
      * @param networkInterface The network interface to use, or <code>null</code>.
      * @return If connected to the network or not.
      */
+    @Override
     public synchronized boolean startReceiver(final NetworkInterface networkInterface) {
         LOG.log(Level.FINE, "Connecting to " + address.getHostAddress() + ":" + port + " on " + networkInterface);
 
@@ -206,6 +226,7 @@ public class MessageReceiver implements Runnable {
     /**
      * Disconnects from the network and closes the multicast socket.
      */
+    @Override
     public synchronized void stopReceiver() {
         LOG.log(Level.FINE, "Disconnecting from " + address.getHostAddress() + ":" + port);
 
@@ -241,6 +262,7 @@ public class MessageReceiver implements Runnable {
      *
      * @param listener The listener to register.
      */
+    @Override
     public void registerReceiverListener(final ReceiverListener listener) {
         this.listener = listener;
     }
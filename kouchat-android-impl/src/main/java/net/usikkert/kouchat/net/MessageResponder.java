@@ -22,7 +22,7 @@
 
 package net.usikkert.kouchat.net;
 
-import net.usikkert.kouchat.misc.User;
+import java.util.Set;
 
 /**
  * This is the interface for responders to multicast messages.
@@ -90,9 +90,11 @@ public interface MessageResponder {
     /**
      * A new user has logged on to the chat.
      *
-     * @param newUser The user logging on to the chat.
+     * @param userCode The unique code of the user logging on to the chat.
+     * @param nick The nick name of the user.
+     * @param ipAddress The IP address of the user.
      */
-    void userLogOn(User newUser);
+    void userLogOn(int userCode, String nick, String ipAddress);
 
     /**
      * A user has logged off the chat.
@@ -104,9 +106,12 @@ public interface MessageResponder {
     /**
      * A user is notifying that it is available and logged on to the chat.
      *
-     * @param user The unknown user who was exposed.
+     * @param userCode The unique code of the user who was exposed.
+     * @param nick The nick name of the user.
+     * @param awayMsg The away message of the user, or an empty string if not away.
+     * @param ipAddress The IP address of the user.
      */
-    void userExposing(User user);
+    void userExposing(int userCode, String nick, String awayMsg, String ipAddress);
 
     /**
      * A user has requested information about the other clients that are logged
@@ -150,6 +155,14 @@ public interface MessageResponder {
      */
     void fileSend(int userCode, long byteSize, String fileName, String user, int fileHash);
 
+    /**
+     * A user is offering a file to everyone in the chat, to be received from a multicast group.
+     *
+     * @param userCode The unique code of the user who wants to send a file.
+     * @param offer The offer with the details of the file transfer.
+     */
+    void groupFileSend(int userCode, MulticastOffer offer);
+
     /**
      * A user has aborted a file transfer from the application user.
      *
@@ -159,6 +172,16 @@ public interface MessageResponder {
      */
     void fileSendAborted(int userCode, String fileName, int fileHash);
 
+    /**
+     * A user who is sending a file to the application user is waiting for other file transfers
+     * to finish before connecting.
+     *
+     * @param userCode The unique code of the user who is sending the file.
+     * @param fileName The name of the file.
+     * @param fileHash The hash code of the file.
+     */
+    void fileSendQueued(int userCode, String fileName, int fileHash);
+
     /**
      * A user has accepted a file transfer from the application user.
      *
@@ -166,8 +189,9 @@ public interface MessageResponder {
      * @param fileName The name of the file.
      * @param fileHash The hash code of the file.
      * @param port The port to use for connecting to the other user.
+     * @param options How the user asked for the file to be sent.
      */
-    void fileSendAccepted(int userCode, String fileName, int fileHash, int port);
+    void fileSendAccepted(int userCode, String fileName, int fileHash, int port, TransferOptions options);
 
     /**
      * A user has sent information about it's client.
@@ -177,6 +201,27 @@ public interface MessageResponder {
      * @param timeSinceLogon Number of milliseconds since the user logged on.
      * @param operatingSystem The user's operating system.
      * @param privateChatPort The port to use for sending private chat messages to this user.
+     * @param capabilities The optional protocol features supported by the client.
+     */
+    void clientInfo(int userCode, String client, long timeSinceLogon, String operatingSystem, int privateChatPort,
+            Set<Capability> capabilities);
+
+    /**
+     * Chat messages from a user were lost on the way.
+     *
+     * @param userCode The unique code of the user who sent the messages.
+     * @param fromSequence The sequence number of the first lost message.
+     * @param toSequence The sequence number of the last lost message.
+     */
+    void messagesLost(int userCode, int fromSequence, int toSequence);
+
+    /**
+     * A user has lost some of the chat messages from the application user,
+     * and wants them sent again.
+     *
+     * @param userCode The unique code of the user who lost the messages.
+     * @param fromSequence The sequence number of the first lost message.
+     * @param toSequence The sequence number of the last lost message.
      */
-    void clientInfo(int userCode, String client, long timeSinceLogon, String operatingSystem, int privateChatPort);
+    void resendRequested(int userCode, int fromSequence, int toSequence);
 }
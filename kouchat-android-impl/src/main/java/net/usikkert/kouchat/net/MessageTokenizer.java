@@ -0,0 +1,369 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import net.usikkert.kouchat.Constants;
+
+/**
+ * Finds the different parts of an encoded message, directly in the bytes.
+ *
+ * <p>Messages have the format <code>code!type#nick:payload</code>. The message is scanned
+ * once by {@link #tokenize(ByteBuffer)} to find the separators. Numbers can then be parsed,
+ * and the message type looked up without decoding anything. Only the parts of the message that
+ * are actually used need to be decoded into strings.</p>
+ *
+ * <p>Positions are absolute positions in the buffer. Not thread safe.</p>
+ *
+ * @author Christian Ihle
+ */
+final class MessageTokenizer {
+
+    /** The character set used for messages. */
+    static final Charset CHARSET = Charset.forName(Constants.MESSAGE_CHARSET);
+
+    /** The highest byte value that is trimmed away, like in {@link String#trim()}. */
+    private static final int MAX_WHITESPACE = 0x20;
+
+    /** For reading a byte as an unsigned value. */
+    private static final int BYTE_MASK = 0xFF;
+
+    /** The radix of the numbers in the messages. */
+    private static final int RADIX = 10;
+
+    /** The buffer with the current message. */
+    private ByteBuffer buffer;
+
+    /** The position of the first byte of the message, after trimming. */
+    private int start;
+
+    /** The position after the last byte of the message, after trimming. */
+    private int end;
+
+    /** The position of the separator after the user code. */
+    private int exclamation;
+
+    /** The position of the separator after the message type. */
+    private int hash;
+
+    /** The position of the separator after the nick name. */
+    private int colon;
+
+    /** Reused array for decoding parts of messages from buffers without a backing array. */
+    private byte[] decodeBuffer;
+
+    /**
+     * Constructor.
+     */
+    MessageTokenizer() {
+        decodeBuffer = new byte[Constants.NETWORK_PACKET_SIZE];
+    }
+
+    /**
+     * Finds the separators in the message between the position and the limit of the buffer.
+     * Whitespace at the beginning and end of the message is ignored.
+     *
+     * <p>The buffer is used until the next message is tokenized, but it's not modified.</p>
+     *
+     * @param message The buffer with the message.
+     * @return If all the separators were found.
+     */
+    public boolean tokenize(final ByteBuffer message) {
+        buffer = message;
+        start = message.position();
+        end = message.limit();
+
+        while (start < end && isWhitespace(buffer.get(start))) {
+            start++;
+        }
+
+        while (end > start && isWhitespace(buffer.get(end - 1))) {
+            end--;
+        }
+
+        exclamation = indexOf('!', start);
+
+        if (exclamation == -1) {
+            return false;
+        }
+
+        hash = indexOf('#', exclamation + 1);
+
+        if (hash == -1) {
+            return false;
+        }
+
+        colon = indexOf(':', hash + 1);
+
+        return colon != -1;
+    }
+
+    /**
+     * Parses the code of the user who sent the message.
+     *
+     * @return The user code.
+     * @throws NumberFormatException If the code is not a number.
+     */
+    public int getCode() {
+        return parseInt(start, exclamation);
+    }
+
+    /**
+     * Looks up the message type, without decoding it.
+     *
+     * @return The message type, or <code>null</code> if the type is unknown.
+     */
+    public MessageType getType() {
+        return MessageType.get(buffer, exclamation + 1, hash);
+    }
+
+    /**
+     * Decodes the nick name of the user who sent the message.
+     *
+     * @return The nick name.
+     */
+    public String getNick() {
+        return decode(hash + 1, colon);
+    }
+
+    /**
+     * Gets the position of the first byte of the payload, after the nick name.
+     *
+     * @return The start position of the payload.
+     */
+    public int getPayloadStart() {
+        return colon + 1;
+    }
+
+    /**
+     * Gets the position after the last byte of the payload.
+     *
+     * @return The end position of the payload.
+     */
+    public int getPayloadEnd() {
+        return end;
+    }
+
+    /**
+     * Decodes the complete payload.
+     *
+     * @return The payload.
+     */
+    public String getPayload() {
+        return decode(colon + 1, end);
+    }
+
+    /**
+     * Decodes the whole message, after trimming. Useful for logging.
+     *
+     * @return The message.
+     */
+    public String getMessage() {
+        return decode(start, end);
+    }
+
+    /**
+     * Finds the position of the first occurrence of the character in the payload.
+     *
+     * @param character The ascii character to look for.
+     * @return The position of the character, or <code>-1</code> if not found.
+     */
+    public int indexOfInPayload(final char character) {
+        return indexOf(character, colon + 1);
+    }
+
+    /**
+     * Checks if the payload starts with the character.
+     *
+     * @param character The ascii character to check.
+     * @return If the first byte of the payload is the character.
+     */
+    public boolean payloadStartsWith(final char character) {
+        return colon + 1 < end && buffer.get(colon + 1) == character;
+    }
+
+    /**
+     * Finds the position of the first occurrence of the character in the message,
+     * starting at the given position.
+     *
+     * @param character The ascii character to look for.
+     * @param from The position to start looking from.
+     * @return The position of the character, or <code>-1</code> if not found.
+     */
+    public int indexOf(final char character, final int from) {
+        for (int i = Math.max(from, start); i < end; i++) {
+            if (buffer.get(i) == character) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Parses the number between the two positions.
+     *
+     * @param from The position of the first digit.
+     * @param to The position after the last digit.
+     * @return The number.
+     * @throws NumberFormatException If it's not a valid int.
+     */
+    public int parseInt(final int from, final int to) {
+        final long number = parseLong(from, to);
+
+        if (number < Integer.MIN_VALUE || number > Integer.MAX_VALUE) {
+            throw numberFormatException(from, to);
+        }
+
+        return (int) number;
+    }
+
+    /**
+     * Parses the number between the two positions, like {@link Long#parseLong(String)}.
+     *
+     * @param from The position of the first digit.
+     * @param to The position after the last digit.
+     * @return The number.
+     * @throws NumberFormatException If it's not a valid long.
+     */
+    public long parseLong(final int from, final int to) {
+        checkRange(from, to);
+
+        if (from == to) {
+            throw numberFormatException(from, to);
+        }
+
+        int position = from;
+        boolean negative = false;
+        final byte first = buffer.get(position);
+
+        if (first == '-') {
+            negative = true;
+            position++;
+        }
+
+        else if (first == '+') {
+            position++;
+        }
+
+        if (position == to) {
+            throw numberFormatException(from, to);
+        }
+
+        // Accumulates negatively, to be able to parse Long.MIN_VALUE
+        long limit = -Long.MAX_VALUE;
+
+        if (negative) {
+            limit = Long.MIN_VALUE;
+        }
+
+        final long multiplyLimit = limit / RADIX;
+        long result = 0;
+
+        while (position < to) {
+            final int digit = buffer.get(position++) - '0';
+
+            if (digit < 0 || digit >= RADIX || result < multiplyLimit) {
+                throw numberFormatException(from, to);
+            }
+
+            result *= RADIX;
+
+            if (result < limit + digit) {
+                throw numberFormatException(from, to);
+            }
+
+            result -= digit;
+        }
+
+        if (negative) {
+            return result;
+        }
+
+        return -result;
+    }
+
+    /**
+     * Decodes the bytes between the two positions into a string.
+     *
+     * @param from The position of the first byte.
+     * @param to The position after the last byte.
+     * @return The decoded string.
+     */
+    public String decode(final int from, final int to) {
+        checkRange(from, to);
+        final int length = to - from;
+
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + from, length, CHARSET);
+        }
+
+        if (decodeBuffer.length < length) {
+            decodeBuffer = new byte[length];
+        }
+
+        final int originalPosition = buffer.position();
+        buffer.position(from);
+        buffer.get(decodeBuffer, 0, length);
+        buffer.position(originalPosition);
+
+        return new String(decodeBuffer, 0, length, CHARSET);
+    }
+
+    /**
+     * Checks that the positions are within the message, like {@link String#substring(int, int)} does.
+     *
+     * @param from The first position.
+     * @param to The last position.
+     * @throws IndexOutOfBoundsException If the positions are outside the message, or in the wrong order.
+     */
+    private void checkRange(final int from, final int to) {
+        if (from < start || to > end || from > to) {
+            throw new IndexOutOfBoundsException("Invalid range " + from + "-" + to + " in " + start + "-" + end);
+        }
+    }
+
+    /**
+     * Creates an exception with the invalid number.
+     *
+     * @param from The position of the first digit.
+     * @param to The position after the last digit.
+     * @return The exception.
+     */
+    private NumberFormatException numberFormatException(final int from, final int to) {
+        return new NumberFormatException("For input string: \"" + decode(from, to) + "\"");
+    }
+
+    /**
+     * Checks if the byte is whitespace, using the same rules as {@link String#trim()}.
+     * Bytes in multi byte characters are never whitespace.
+     *
+     * @param value The byte to check.
+     * @return If the byte is whitespace.
+     */
+    private boolean isWhitespace(final byte value) {
+        return (value & BYTE_MASK) <= MAX_WHITESPACE;
+    }
+}
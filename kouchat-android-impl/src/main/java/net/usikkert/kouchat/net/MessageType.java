@@ -0,0 +1,152 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The different types of messages sent between the clients.
+ *
+ * <p>The type is the part of the message between <code>!</code> and <code>#</code>,
+ * like <code>IDLE</code> in <code>12345678!IDLE#Nick:</code>.</p>
+ *
+ * @author Christian Ihle
+ */
+public enum MessageType {
+
+    MSG,
+    LOGON,
+    EXPOSING,
+    LOGOFF,
+    AWAY,
+    BACK,
+    EXPOSE,
+    NICKCRASH,
+    WRITING,
+    STOPPEDWRITING,
+    GETTOPIC,
+    TOPIC,
+    NICK,
+    IDLE,
+    SENDFILEACCEPT,
+    SENDFILEABORT,
+    SENDFILE,
+    CLIENT,
+    PRIVMSG,
+    BATCH,
+    FRAGMENT,
+    NACK,
+    SENDFILEDATA,
+    SENDFILEDATAACK,
+    SENDGROUPFILE,
+    SENDFILEQUEUED;
+
+    /** All the message types, grouped by the length of the encoded type. */
+    private static final MessageType[][] TYPES_BY_LENGTH;
+
+    static {
+        int maxLength = 0;
+
+        for (final MessageType type : values()) {
+            maxLength = Math.max(maxLength, type.encodedType.length);
+        }
+
+        TYPES_BY_LENGTH = new MessageType[maxLength + 1][];
+
+        for (int length = 0; length <= maxLength; length++) {
+            int count = 0;
+
+            for (final MessageType type : values()) {
+                if (type.encodedType.length == length) {
+                    count++;
+                }
+            }
+
+            TYPES_BY_LENGTH[length] = new MessageType[count];
+            count = 0;
+
+            for (final MessageType type : values()) {
+                if (type.encodedType.length == length) {
+                    TYPES_BY_LENGTH[length][count++] = type;
+                }
+            }
+        }
+    }
+
+    /** The type as encoded in a message. The type names are plain ascii. */
+    private final byte[] encodedType;
+
+    /**
+     * Constructor. Encodes the name of the type.
+     */
+    MessageType() {
+        final String name = name();
+        encodedType = new byte[name.length()];
+
+        for (int i = 0; i < encodedType.length; i++) {
+            encodedType[i] = (byte) name.charAt(i);
+        }
+    }
+
+    /**
+     * Finds the message type encoded in the buffer between the two positions,
+     * without decoding anything.
+     *
+     * @param buffer The buffer with the encoded message.
+     * @param from The position of the first byte of the type.
+     * @param to The position after the last byte of the type.
+     * @return The message type, or <code>null</code> if it's not a known type.
+     */
+    public static MessageType get(final ByteBuffer buffer, final int from, final int to) {
+        final int length = to - from;
+
+        if (length <= 0 || length >= TYPES_BY_LENGTH.length) {
+            return null;
+        }
+
+        for (final MessageType type : TYPES_BY_LENGTH[length]) {
+            if (type.matches(buffer, from)) {
+                return type;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Checks if the buffer contains this type, starting at the given position.
+     *
+     * @param buffer The buffer with the encoded message.
+     * @param from The position of the first byte of the type.
+     * @return If the type matches.
+     */
+    private boolean matches(final ByteBuffer buffer, final int from) {
+        for (int i = 0; i < encodedType.length; i++) {
+            if (buffer.get(from + i) != encodedType[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
@@ -23,17 +23,32 @@
 package net.usikkert.kouchat.net;
 
 import java.io.File;
-
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+
+import net.usikkert.kouchat.event.MessageSentListener;
+import net.usikkert.kouchat.event.UserListListener;
 import net.usikkert.kouchat.misc.CommandException;
 import net.usikkert.kouchat.misc.Settings;
 import net.usikkert.kouchat.misc.Topic;
 import net.usikkert.kouchat.misc.User;
+import net.usikkert.kouchat.misc.UserList;
 import net.usikkert.kouchat.util.Validate;
 
 /**
  * This class gives access to sending the different kinds of messages
  * that this application supports. Both multicast, and normal udp.
  *
+ * <p>Messages where the result is checked wait until they are sent. The other
+ * messages are only added to the send queue.</p>
+ *
+ * <p>If message batching is enabled, and all the other users support it, the small status
+ * messages are sent together in batches. The users that don't support it are kept track of
+ * from the user list, so the list is not checked for every status message.</p>
+ *
  * @author Christian Ihle
  */
 public class Messages {
@@ -47,29 +62,59 @@ public class Messages {
     /** Settings. */
     private final Settings settings;
 
+    /** The most recently sent chat messages, kept in case other users lose them. */
+    private final SentMessageBuffer sentMessages;
+
+    /** The sequence number of the next chat message. */
+    private int nextChatSequence;
+
+    /** The codes of the other users that are not able to unpack batches. */
+    private final Set<Integer> usersWithoutBatch;
+
     /**
      * Constructor.
      *
      * @param networkService The network service used for sending the actual messages.
      * @param settings The settings to use.
+     * @param userList The list of online users.
      */
-    public Messages(final NetworkService networkService, final Settings settings) {
+    public Messages(final NetworkService networkService, final Settings settings, final UserList userList) {
         Validate.notNull(networkService, "Network service can not be null");
         Validate.notNull(settings, "Settings can not be null");
+        Validate.notNull(userList, "User list can not be null");
 
         this.networkService = networkService;
         this.settings = settings;
         me = settings.getMe();
+        sentMessages = new SentMessageBuffer(SequenceTracker.WINDOW);
+        usersWithoutBatch = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+        userList.addUserListListener(new BatchCapabilityTracker());
+
+        for (final User user : userList.getUsers()) {
+            updateBatchCapability(user);
+        }
     }
 
     /**
      * Sends a message notifying other clients that this client is still alive.
      *
+     * <p>The message has the sequence number of the last chat message, so the other users can tell
+     * if the last messages were lost. Older clients ignore the sequence number.</p>
+     *
      * <p>Note: the network will be checked if this fails!</p>
      */
     public void sendIdleMessage() {
-        final String msg = createMessage("IDLE");
-        final boolean sent = networkService.sendMulticastMsg(msg);
+        final String msg = createIdleMessage();
+        final boolean sent;
+
+        if (isBatchingPossible()) {
+            sent = networkService.sendBatchedMulticastMsg(msg);
+        }
+
+        else {
+            sent = networkService.sendMulticastMsg(msg);
+        }
 
         if (!sent) {
             checkNetwork();
@@ -99,7 +144,7 @@ public class Messages {
      */
     public void sendTopicRequestedMessage(final Topic topic) {
         final String msg = createTopicMessage(topic);
-        networkService.sendMulticastMsg(msg);
+        networkService.queueMulticastMsg(msg);
     }
 
     /**
@@ -135,17 +180,17 @@ public class Messages {
     /**
      * Sends a normal chat message, that is part of the main chat.
      *
+     * <p>The message gets the next sequence number, so the other users can tell if it's lost.
+     * Older clients ignore the sequence number.</p>
+     *
      * <p>Note: the network will be checked, and the user notified if this fails!</p>
      *
      * @param chatMsg The message for the main chat.
      * @throws CommandException If the message was not sent successfully.
      */
     public void sendChatMessage(final String chatMsg) throws CommandException {
-        final String msg = createMessage("MSG") +
-                "[" + settings.getOwnColor() + "]" +
-                chatMsg;
-
-        final boolean sent = networkService.sendMulticastMsg(msg);
+        final Future<Boolean> result = queueChatMessage(chatMsg);
+        final boolean sent = networkService.waitForResult(result);
 
         if (!sent) {
             checkNetwork();
@@ -153,12 +198,27 @@ public class Messages {
         }
     }
 
+    /**
+     * Sends a normal chat message, that is part of the main chat, without waiting for it to be sent.
+     * The listener is notified by the send queue when the message is done.
+     *
+     * <p>Note: the network will be checked if this fails!</p>
+     *
+     * @param chatMsg The message for the main chat.
+     * @param listener Notified when the message is done.
+     */
+    public synchronized void sendChatMessage(final String chatMsg, final MessageSentListener listener) {
+        Validate.notNull(listener, "Listener can not be null");
+
+        networkService.queueMulticastMsg(createChatMessage(chatMsg), checkNetworkIfNotSent(listener));
+    }
+
     /**
      * Sends a message to log this client on the network.
      */
     public void sendLogonMessage() {
         final String msg = createMessage("LOGON");
-        networkService.sendMulticastMsg(msg);
+        networkService.queueMulticastMsg(msg);
     }
 
     /**
@@ -174,7 +234,7 @@ public class Messages {
      */
     public void sendExposeMessage() {
         final String msg = createMessage("EXPOSE");
-        networkService.sendMulticastMsg(msg);
+        networkService.queueMulticastMsg(msg);
     }
 
     /**
@@ -182,7 +242,7 @@ public class Messages {
      */
     public void sendExposingMessage() {
         final String msg = createMessage("EXPOSING") + me.getAwayMsg();
-        networkService.sendMulticastMsg(msg);
+        networkService.queueMulticastMsg(msg);
     }
 
     /**
@@ -190,7 +250,38 @@ public class Messages {
      */
     public void sendGetTopicMessage() {
         final String msg = createMessage("GETTOPIC");
-        networkService.sendMulticastMsg(msg);
+        networkService.queueMulticastMsg(msg);
+    }
+
+    /**
+     * Sends a message asking a user to send lost chat messages again.
+     *
+     * @param user The user who sent the lost messages.
+     * @param fromSequence The sequence number of the first lost message.
+     * @param toSequence The sequence number of the last lost message.
+     */
+    public void sendNackMessage(final User user, final int fromSequence, final int toSequence) {
+        final String msg = createMessage("NACK") +
+                "(" + user.getCode() + ")" +
+                "[" + fromSequence + "]" +
+                "{" + toSequence + "}";
+
+        networkService.queueMulticastMsg(msg);
+    }
+
+    /**
+     * Sends chat messages lost by another user again, if they are still available.
+     * The messages are sent exactly like the first time, so users who already got them can ignore them.
+     *
+     * @param fromSequence The sequence number of the first lost message.
+     * @param toSequence The sequence number of the last lost message.
+     */
+    public void resendChatMessages(final int fromSequence, final int toSequence) {
+        final List<String> lostMessages = sentMessages.getMessagesToResend(fromSequence, toSequence);
+
+        for (final String msg : lostMessages) {
+            networkService.queueMulticastMsg(msg);
+        }
     }
 
     /**
@@ -198,7 +289,7 @@ public class Messages {
      */
     public void sendWritingMessage() {
         final String msg = createMessage("WRITING");
-        networkService.sendMulticastMsg(msg);
+        queueStatusMessage(msg);
     }
 
     /**
@@ -206,7 +297,7 @@ public class Messages {
      */
     public void sendStoppedWritingMessage() {
         final String msg = createMessage("STOPPEDWRITING");
-        networkService.sendMulticastMsg(msg);
+        queueStatusMessage(msg);
     }
 
     /**
@@ -233,7 +324,7 @@ public class Messages {
      */
     public void sendNickCrashMessage(final String crashNick) {
         final String msg = createMessage("NICKCRASH") + crashNick;
-        networkService.sendMulticastMsg(msg);
+        networkService.queueMulticastMsg(msg);
     }
 
     /**
@@ -256,6 +347,28 @@ public class Messages {
         }
     }
 
+    /**
+     * Sends a message to notify the file receiver that the file transfer is waiting for other
+     * file transfers to finish, so the receiver keeps waiting for the connection.
+     * Older clients ignore the message, and give up at the usual timeout.
+     *
+     * @param user The user receiving a file.
+     * @param fileHash The unique hash code of the file.
+     * @param fileName The name of the file.
+     */
+    public void sendFileQueued(final User user, final int fileHash, final String fileName) {
+        final String msg = createMessage("SENDFILEQUEUED") +
+                "(" + user.getCode() + ")" +
+                "{" + fileHash + "}" +
+                fileName;
+
+        final boolean sent = networkService.sendMulticastMsg(msg);
+
+        if (!sent) {
+            checkNetwork();
+        }
+    }
+
     /**
      * Sends a message to notify the file sender that you
      * accepted the file transfer.
@@ -267,13 +380,38 @@ public class Messages {
      *             to start the file transfer.
      * @param fileHash The unique hash code of the file.
      * @param fileName The name of the file.
+     * @param options How the file sender should send the file. The resume offset is only sent to users with
+     *                the {@link Capability#RESUME} capability, the number of connections only to users with
+     *                {@link Capability#PARALLEL}, the handshake id only to users with {@link Capability#HANDSHAKE},
+     *                and the checksum only to users with {@link Capability#CHECKSUM}.
      * @throws CommandException If the message was not sent successfully.
      */
-    public void sendFileAccept(final User user, final int port,
-            final int fileHash, final String fileName) throws CommandException {
+    public void sendFileAccept(final User user, final int port, final int fileHash, final String fileName,
+            final TransferOptions options) throws CommandException {
+        final long resumeOffset = options.getResumeOffset();
+        final int streams = options.getStreams();
+        final int handshakeId = options.getHandshakeId();
+        String portAndOffset = String.valueOf(port);
+
+        if (options.isChecksum() && user.hasCapability(Capability.CHECKSUM)) {
+            portAndOffset += "/" + resumeOffset + "/" + streams + "/" + handshakeId + "/1";
+        }
+
+        else if (handshakeId > 0 && user.hasCapability(Capability.HANDSHAKE)) {
+            portAndOffset += "/" + resumeOffset + "/" + streams + "/" + handshakeId;
+        }
+
+        else if (streams > 1 && user.hasCapability(Capability.PARALLEL)) {
+            portAndOffset += "/" + resumeOffset + "/" + streams;
+        }
+
+        else if (resumeOffset > 0 && user.hasCapability(Capability.RESUME)) {
+            portAndOffset += "/" + resumeOffset;
+        }
+
         final String msg = createMessage("SENDFILEACCEPT") +
                 "(" + user.getCode() + ")" +
-                "[" + port + "]" +
+                "[" + portAndOffset + "]" +
                 "{" + fileHash + "}" +
                 fileName;
 
@@ -309,6 +447,90 @@ public class Messages {
         }
     }
 
+    /**
+     * Sends a message to offer a file to everyone in the chat, to be received from a multicast group.
+     * See {@link MulticastFileSender}.
+     *
+     * <p>Note: the network will be checked, and the user notified if this fails!</p>
+     *
+     * @param offer The offer with the details of the file transfer.
+     * @throws CommandException If the message was not sent successfully.
+     */
+    public void sendGroupFile(final MulticastOffer offer) throws CommandException {
+        final String msg = createMessage("SENDGROUPFILE") +
+                "(" + offer.getTransferId() + ")" +
+                "[" + offer.getSize() + "]" +
+                "{" + offer.getChecksum() + "}" +
+                "<" + offer.getGroupAddress() + ":" + offer.getGroupPort() + ":" + offer.getControlPort() + ">" +
+                offer.getFileName();
+
+        final boolean sent = networkService.sendMulticastMsg(msg);
+
+        if (!sent) {
+            checkNetwork();
+            notifyUser("Failed to send file to everyone: " + offer.getFileName());
+        }
+    }
+
+    /**
+     * Sends the content of a small file inline in a private message, after the user
+     * accepted to receive it that way. See {@link InlineTransfer}.
+     *
+     * <p>Note: the network will be checked, and the user notified if this fails!</p>
+     *
+     * @param user The user receiving the file.
+     * @param fileName The name of the file.
+     * @param content The content of the file.
+     * @param checksum The checksum of the content.
+     * @throws CommandException If the message was not sent successfully.
+     */
+    public void sendFileData(final User user, final String fileName, final byte[] content, final long checksum)
+            throws CommandException {
+        final String msg = createMessage("SENDFILEDATA") +
+                "(" + user.getCode() + ")" +
+                "[" + checksum + "]" +
+                "<" + InlineTransfer.encode(content) + ">" +
+                fileName;
+
+        final boolean sent = networkService.sendUDPMsg(msg, user.getIpAddress(), user.getPrivateChatPort());
+
+        if (!sent) {
+            checkNetwork();
+            notifyUser("Failed to send file to " + user.getNick() + ": " + fileName);
+        }
+    }
+
+    /**
+     * Sends a message to tell the sender of a small file inline if the content arrived
+     * with the right checksum. See {@link InlineTransfer}.
+     *
+     * <p>Note: the network will be checked if this fails!</p>
+     *
+     * @param user The user sending the file.
+     * @param fileHash The unique hash code of the file.
+     * @param fileName The name of the file.
+     * @param verified If the content arrived with the right checksum.
+     */
+    public void sendFileDataAck(final User user, final int fileHash, final String fileName, final boolean verified) {
+        String answer = "0";
+
+        if (verified) {
+            answer = "1";
+        }
+
+        final String msg = createMessage("SENDFILEDATAACK") +
+                "(" + user.getCode() + ")" +
+                "[" + answer + "]" +
+                "{" + fileHash + "}" +
+                fileName;
+
+        final boolean sent = networkService.sendUDPMsg(msg, user.getIpAddress(), user.getPrivateChatPort());
+
+        if (!sent) {
+            checkNetwork();
+        }
+    }
+
     /**
      * Sends a message with extra client information:
      *
@@ -317,6 +539,7 @@ public class Messages {
      *   <li>Client uptime.</li>
      *   <li>Operating system.</li>
      *   <li>Port to connect to for private chat.</li>
+     *   <li>Supported protocol capabilities.</li>
      * </ul>
      */
     public void sendClient() {
@@ -324,9 +547,10 @@ public class Messages {
                 "(" + me.getClient() + ")" +
                 "[" + (System.currentTimeMillis() - me.getLogonTime()) + "]" +
                 "{" + me.getOperatingSystem() + "}" +
-                "<" + me.getPrivateChatPort() + ">";
+                "<" + me.getPrivateChatPort() + ">" +
+                Capability.format(Capability.getSupported(!settings.isNoChannelTransfers()));
 
-        networkService.sendMulticastMsg(msg);
+        networkService.queueMulticastMsg(msg);
     }
 
     /**
@@ -352,6 +576,136 @@ public class Messages {
         }
     }
 
+    /**
+     * Sends a private message to a user, without waiting for it to be sent.
+     * The listener is notified by the send queue when the message is done.
+     *
+     * <p>Note: the network will be checked if this fails!</p>
+     *
+     * @param privMsg The private message to send.
+     * @param user The user to send the message to.
+     * @param listener Notified when the message is done.
+     */
+    public void sendPrivateMessage(final String privMsg, final User user, final MessageSentListener listener) {
+        Validate.notNull(listener, "Listener can not be null");
+
+        final String msg = createMessage("PRIVMSG") +
+                "(" + user.getCode() + ")" +
+                "[" + settings.getOwnColor() + "]" +
+                privMsg;
+
+        networkService.queueUDPMsg(msg, user.getIpAddress(), user.getPrivateChatPort(), checkNetworkIfNotSent(listener));
+    }
+
+    /**
+     * Adds a small status message to the send queue, or to the next batch if possible.
+     *
+     * @param msg The message to send.
+     */
+    private void queueStatusMessage(final String msg) {
+        if (isBatchingPossible()) {
+            networkService.queueBatchedMulticastMsg(msg);
+        }
+
+        else {
+            networkService.queueMulticastMsg(msg);
+        }
+    }
+
+    /**
+     * Checks if message batching is enabled, and all the other users
+     * are able to unpack batches.
+     *
+     * @return If messages can be sent in batches.
+     */
+    private boolean isBatchingPossible() {
+        return settings.isMessageBatching() && usersWithoutBatch.isEmpty();
+    }
+
+    /**
+     * Keeps track of the user, if it's another user that is not able to unpack batches.
+     *
+     * @param user The user that was added or changed.
+     */
+    private void updateBatchCapability(final User user) {
+        if (!user.isMe() && !user.hasCapability(Capability.BATCH)) {
+            usersWithoutBatch.add(user.getCode());
+        }
+
+        else {
+            usersWithoutBatch.remove(user.getCode());
+        }
+    }
+
+    /**
+     * Creates a chat message with the next sequence number, and adds it to the send queue.
+     *
+     * <p>The sequence number is given and the message queued under the same lock, so the messages
+     * are sent in the same order as they are numbered.</p>
+     *
+     * @param chatMsg The message for the main chat.
+     * @return If the message was sent or not, when done.
+     */
+    private synchronized Future<Boolean> queueChatMessage(final String chatMsg) {
+        return networkService.queueMulticastMsg(createChatMessage(chatMsg));
+    }
+
+    /**
+     * Creates a chat message with the next sequence number: <code>{sequence}[color]message</code>.
+     * The message is kept, in case it needs to be sent again. Must be called while holding the lock,
+     * and the message queued before the lock is released.
+     *
+     * @param chatMsg The message for the main chat.
+     * @return The complete chat message.
+     */
+    private String createChatMessage(final String chatMsg) {
+        final int sequence = nextChatSequence++;
+        final String msg = createMessage("MSG") +
+                "{" + sequence + "}" +
+                "[" + settings.getOwnColor() + "]" +
+                chatMsg;
+
+        sentMessages.add(sequence, msg);
+
+        return msg;
+    }
+
+    /**
+     * Creates an idle message with the sequence number of the last chat message: <code>{sequence}</code>.
+     * Has no sequence number if no chat messages have been sent.
+     *
+     * <p>Idle messages are only sent when no chat messages are waiting in the send queue,
+     * so the last chat message is sent before the idle message.</p>
+     *
+     * @return The complete idle message.
+     */
+    private synchronized String createIdleMessage() {
+        if (nextChatSequence == 0) {
+            return createMessage("IDLE");
+        }
+
+        return createMessage("IDLE") + "{" + (nextChatSequence - 1) + "}";
+    }
+
+    /**
+     * Wraps the listener, so the network is checked before the listener is notified, if the message was not sent.
+     *
+     * @param listener The listener to notify.
+     * @return The listener to give the send queue.
+     */
+    private MessageSentListener checkNetworkIfNotSent(final MessageSentListener listener) {
+        return new MessageSentListener() {
+            @Override
+            public void messageSent(final boolean sent) {
+                if (!sent) {
+                    checkNetwork();
+                }
+
+                listener.messageSent(sent);
+            }
+        };
+    }
+
     /**
      * Creates the standard part of all messages, with the specified type
      * as the message type.
@@ -404,4 +758,40 @@ public class Messages {
     private void checkNetwork() {
         networkService.checkNetwork();
     }
+
+    /**
+     * Keeps track of the other users that are not able to unpack batches.
+     */
+    private class BatchCapabilityTracker implements UserListListener {
+
+        /**
+         * Checks the capabilities of the new user.
+         *
+         * {@inheritDoc}
+         */
+        @Override
+        public void userAdded(final int pos, final User user) {
+            updateBatchCapability(user);
+        }
+
+        /**
+         * Checks the capabilities of the user again, since they arrive after the user is added.
+         *
+         * {@inheritDoc}
+         */
+        @Override
+        public void userChanged(final int pos, final User user) {
+            updateBatchCapability(user);
+        }
+
+        /**
+         * Stops keeping track of the user.
+         *
+         * {@inheritDoc}
+         */
+        @Override
+        public void userRemoved(final int pos, final User user) {
+            usersWithoutBatch.remove(user.getCode());
+        }
+    }
 }
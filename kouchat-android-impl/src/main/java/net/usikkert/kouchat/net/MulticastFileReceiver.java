@@ -0,0 +1,374 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.BitSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import net.usikkert.kouchat.util.Validate;
+
+/**
+ * Receives a file sent to everyone at the same time by a {@link MulticastFileSender}.
+ *
+ * <p>Joins the multicast group from the {@link MulticastOffer}, and writes each chunk to its position
+ * in the file as it arrives. Chunks lost in the network are recovered from the parity of their group
+ * if possible, and the rest are asked for again with a nack at the end of each round. A nack is also
+ * sent if nothing has arrived for a while, in case the end of the round was lost.</p>
+ *
+ * <p>The checksum of each chunk is computed when it's written, and the checksums are combined
+ * in the order of the file as the chunks before them arrive, so the checksum of the whole file
+ * is ready when the last chunk is written, without reading the file again.</p>
+ *
+ * @author Christian Ihle
+ */
+class MulticastFileReceiver {
+
+    /** The logger. */
+    private static final Logger LOG = Logger.getLogger(MulticastFileReceiver.class.getName());
+
+    /** Number of milliseconds to wait for a packet before asking the sender for the missing chunks. */
+    private static final int IDLE_TIMEOUT = 1000;
+
+    /** Number of milliseconds without any packets from the sender before giving up. */
+    private static final int GIVE_UP_TIMEOUT = 30000;
+
+    /** Number of times to tell the sender that the file was received, in case the first one is lost. */
+    private static final int DONE_REPEATS = 2;
+
+    /** For reading the checksum of a chunk, kept in an int, as an unsigned value. */
+    private static final long UNSIGNED_INT_MASK = 0xffffffffL;
+
+    /** The size of the receive buffer of the socket, with room for bursts of chunks. */
+    private static final int RECEIVE_BUFFER_SIZE = 256 * 1024;
+
+    /** The offer with the details of the file transfer. */
+    private final MulticastOffer offer;
+
+    /** The address of the sender, where the nacks are sent. */
+    private final SocketAddress sender;
+
+    /** Keeps track of the chunks that have arrived. */
+    private final ChunkTracker chunks;
+
+    /** The socket for sending the nacks to the sender. */
+    private DatagramSocket controlSocket;
+
+    /** Computes the checksum of each chunk. */
+    private final CRC32 chunkChecksum;
+
+    /** The checksums of the written chunks that are not combined yet. */
+    private final int[] chunkChecksums;
+
+    /** The chunks that have been written. */
+    private final BitSet written;
+
+    /** Combines the checksums of chunks with the full chunk size. */
+    private final ChecksumCombiner combiner;
+
+    /** The checksum of the chunks before the first chunk that is not written yet. */
+    private long checksum;
+
+    /** The index of the first chunk that is not written yet. */
+    private int firstUnwritten;
+
+    /**
+     * Constructor.
+     *
+     * @param offer The offer with the details of the file transfer.
+     * @param senderAddress The ip address of the sender.
+     */
+    MulticastFileReceiver(final MulticastOffer offer, final String senderAddress) {
+        Validate.notNull(offer, "Offer can not be null");
+        Validate.notEmpty(senderAddress, "Sender address can not be empty");
+
+        this.offer = offer;
+
+        sender = new InetSocketAddress(senderAddress, offer.getControlPort());
+        chunks = new ChunkTracker(offer.getSize());
+        chunkChecksum = new CRC32();
+        chunkChecksums = new int[chunks.getChunkCount()];
+        written = new BitSet(chunks.getChunkCount());
+        combiner = new ChecksumCombiner(MulticastPacket.CHUNK_SIZE);
+    }
+
+    /**
+     * Joins the multicast group, and receives the chunks of the file until all have arrived.
+     *
+     * @param file The file to write the chunks to.
+     * @param progress The progress of the transfer.
+     * @return If the whole file was received.
+     * @throws IOException If the sockets could not be opened, or the file could not be written to.
+     */
+    boolean receive(final RandomAccessFile file, final FileCopier.Progress progress) throws IOException {
+        final InetAddress groupAddress = InetAddress.getByName(offer.getGroupAddress());
+        final MulticastSocket dataSocket = new MulticastSocket(offer.getGroupPort());
+
+        try {
+            controlSocket = new DatagramSocket();
+            dataSocket.setReceiveBufferSize(RECEIVE_BUFFER_SIZE);
+            dataSocket.setSoTimeout(IDLE_TIMEOUT);
+
+            if (groupAddress.isMulticastAddress()) {
+                dataSocket.joinGroup(groupAddress);
+            }
+
+            sendToSender(MulticastPacket.JOIN, 0);
+            receiveChunks(dataSocket, file, progress);
+
+            if (chunks.isComplete()) {
+                for (int i = 0; i < DONE_REPEATS; i++) {
+                    sendToSender(MulticastPacket.DONE, 1);
+                }
+
+                return true;
+            }
+
+            sendToSender(MulticastPacket.DONE, 0);
+
+            return false;
+        }
+
+        finally {
+            if (groupAddress.isMulticastAddress()) {
+                leaveGroup(dataSocket, groupAddress);
+            }
+
+            dataSocket.close();
+
+            if (controlSocket != null) {
+                controlSocket.close();
+            }
+        }
+    }
+
+    /**
+     * Receives chunks until all have arrived, the transfer is canceled, or the sender stops sending.
+     *
+     * @param dataSocket The socket to receive the chunks with.
+     * @param file The file to write the chunks to.
+     * @param progress The progress of the transfer.
+     * @throws IOException If the file could not be written to, or the nacks could not be sent.
+     */
+    private void receiveChunks(final MulticastSocket dataSocket, final RandomAccessFile file,
+                               final FileCopier.Progress progress) throws IOException {
+        final DatagramPacket packet = new DatagramPacket(new byte[MulticastPacket.MAX_SIZE], MulticastPacket.MAX_SIZE);
+        long lastPacket = System.currentTimeMillis();
+        boolean started = false;
+        int round = 0;
+
+        while (!chunks.isComplete() && !progress.isCanceled()) {
+            try {
+                dataSocket.receive(packet);
+                final MulticastPacket chunk = MulticastPacket.read(packet);
+
+                if (chunk == null || chunk.getTransferId() != offer.getTransferId()) {
+                    continue;
+                }
+
+                lastPacket = System.currentTimeMillis();
+                started = true;
+
+                if (chunk.getType() == MulticastPacket.DATA) {
+                    dataArrived(chunk, file, progress);
+                }
+
+                else if (chunk.getType() == MulticastPacket.PARITY) {
+                    final int recovered = chunks.parityArrived(
+                            chunk.getIndex(), chunk.getData(), chunk.getOffset(), chunk.getLength());
+                    writeRecovered(recovered, file, progress);
+                }
+
+                else if (chunk.getType() == MulticastPacket.END) {
+                    round = chunk.getIndex();
+                    sendNack(round);
+                }
+            }
+
+            catch (final SocketTimeoutException e) {
+                if (System.currentTimeMillis() - lastPacket > GIVE_UP_TIMEOUT) {
+                    LOG.log(Level.WARNING, "Gave up waiting for the chunks of " + offer.getFileName());
+                    return;
+                }
+
+                // The join or the end of the round might have been lost
+                if (started) {
+                    sendNack(round);
+                }
+
+                else {
+                    sendToSender(MulticastPacket.JOIN, 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes a chunk to the file, if it's missing.
+     *
+     * @param chunk The chunk.
+     * @param file The file to write the chunk to.
+     * @param progress The progress of the transfer.
+     * @throws IOException If the file could not be written to.
+     */
+    private void dataArrived(final MulticastPacket chunk, final RandomAccessFile file,
+                             final FileCopier.Progress progress) throws IOException {
+        final int index = chunk.getIndex();
+
+        if (!chunks.isMissing(index) || chunk.getLength() != chunks.getChunkLength(index)) {
+            return;
+        }
+
+        write(file, index, chunk.getData(), chunk.getOffset(), progress);
+        writeRecovered(chunks.chunkArrived(index, chunk.getData(), chunk.getOffset()), file, progress);
+    }
+
+    /**
+     * Writes a chunk recovered from the parity to the file.
+     *
+     * @param index The index of the recovered chunk, or {@link ChunkTracker#NONE}.
+     * @param file The file to write the chunk to.
+     * @param progress The progress of the transfer.
+     * @throws IOException If the file could not be written to.
+     */
+    private void writeRecovered(final int index, final RandomAccessFile file,
+                                final FileCopier.Progress progress) throws IOException {
+        if (index != ChunkTracker.NONE) {
+            write(file, index, chunks.getRecovered(), 0, progress);
+        }
+    }
+
+    /**
+     * Writes a chunk to its position in the file.
+     *
+     * @param file The file to write the chunk to.
+     * @param index The index of the chunk.
+     * @param data The bytes with the content of the chunk.
+     * @param offset The position of the first byte of the chunk.
+     * @param progress The progress of the transfer.
+     * @throws IOException If the file could not be written to.
+     */
+    private void write(final RandomAccessFile file, final int index, final byte[] data, final int offset,
+                       final FileCopier.Progress progress) throws IOException {
+        final int length = chunks.getChunkLength(index);
+
+        file.seek((long) index * MulticastPacket.CHUNK_SIZE);
+        file.write(data, offset, length);
+        chunkWritten(index, data, offset, length);
+        progress.bytesCopied(length);
+    }
+
+    /**
+     * Keeps the checksum of the written chunk, and adds the checksums of the chunks that are now
+     * in order to the checksum of the file.
+     *
+     * @param index The index of the chunk.
+     * @param data The bytes with the content of the chunk.
+     * @param offset The position of the first byte of the chunk.
+     * @param length The length of the chunk.
+     */
+    private void chunkWritten(final int index, final byte[] data, final int offset, final int length) {
+        chunkChecksum.reset();
+        chunkChecksum.update(data, offset, length);
+        chunkChecksums[index] = (int) chunkChecksum.getValue();
+        written.set(index);
+
+        while (firstUnwritten < chunkChecksums.length && written.get(firstUnwritten)) {
+            final long value = chunkChecksums[firstUnwritten] & UNSIGNED_INT_MASK;
+            final int chunkLength = chunks.getChunkLength(firstUnwritten);
+
+            if (chunkLength == MulticastPacket.CHUNK_SIZE) {
+                checksum = combiner.combine(checksum, value);
+            }
+
+            else {
+                checksum = ChecksumCombiner.combine(checksum, value, chunkLength);
+            }
+
+            firstUnwritten++;
+        }
+    }
+
+    /**
+     * Gets the CRC32 of the whole file, computed from the chunks as they were written.
+     *
+     * @return The checksum, or <code>-1</code> if not all the chunks are written.
+     */
+    long getChecksum() {
+        if (firstUnwritten < chunkChecksums.length) {
+            return -1;
+        }
+
+        return checksum;
+    }
+
+    /**
+     * Asks the sender for the chunks that are still missing.
+     *
+     * @param round The number of the last round.
+     * @throws IOException If the nack could not be sent.
+     */
+    private void sendNack(final int round) throws IOException {
+        if (!chunks.isComplete()) {
+            final int[] ranges = chunks.getMissingRanges(MulticastPacket.MAX_RANGES);
+            controlSocket.send(MulticastPacket.createNack(offer.getTransferId(), round, ranges, sender));
+        }
+    }
+
+    /**
+     * Sends a packet with only a header to the sender.
+     *
+     * @param type The type of the packet.
+     * @param index The index of the packet.
+     * @throws IOException If the packet could not be sent.
+     */
+    private void sendToSender(final byte type, final int index) throws IOException {
+        controlSocket.send(MulticastPacket.create(type, offer.getTransferId(), index, sender));
+    }
+
+    /**
+     * Leaves the multicast group.
+     *
+     * @param dataSocket The socket that joined the group.
+     * @param groupAddress The address of the group.
+     */
+    private void leaveGroup(final MulticastSocket dataSocket, final InetAddress groupAddress) {
+        try {
+            dataSocket.leaveGroup(groupAddress);
+        }
+
+        catch (final IOException e) {
+            LOG.log(Level.WARNING, e.toString());
+        }
+    }
+}
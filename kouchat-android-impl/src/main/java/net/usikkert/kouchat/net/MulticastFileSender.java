@@ -0,0 +1,567 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import net.usikkert.kouchat.Constants;
+import net.usikkert.kouchat.util.Validate;
+
+/**
+ * Sends a file to everyone who wants it at the same time, using multicast.
+ *
+ * <p>The file is offered to everyone in the chat with a {@link MulticastOffer}. Each user who accepts
+ * joins the multicast group of the file transfer, and sends a {@link MulticastPacket#JOIN} directly to
+ * the sender. When the first user has joined, and the others have had a moment to do the same,
+ * the sender sends each chunk of the file to the group once. The cost for the sender is then the same
+ * no matter how many users receive the file.</p>
+ *
+ * <p>The file is sent in rounds. The first round sends all the chunks, with the parity of each group
+ * of chunks after the group. A receiver that loses a single chunk in a group recovers it from the parity,
+ * using a {@link ChunkTracker}. At the end of each round, each receiver sends a {@link MulticastPacket#NACK}
+ * with the chunks it's still missing, or a {@link MulticastPacket#DONE} when it has the whole file.
+ * The next round sends the chunks missing in any of the receivers, once. The transfer is done when
+ * all the receivers are done, or none of them have answered for a while.</p>
+ *
+ * <p>Users who join after the first round has started get the chunks they missed in the next rounds.</p>
+ *
+ * <p>The packets are paced by a {@link MulticastPacer}, to avoid overflowing the receive buffers of the receivers.
+ * The rate slows down when the nacks report many lost chunks, and speeds up again when they don't.</p>
+ *
+ * @author Christian Ihle
+ */
+public class MulticastFileSender {
+
+    /** The logger. */
+    private static final Logger LOG = Logger.getLogger(MulticastFileSender.class.getName());
+
+    /** Number of milliseconds to wait for the first user to join. */
+    private static final int JOIN_TIMEOUT = 60000;
+
+    /** Number of milliseconds to wait for more users after the first user joined. */
+    private static final int GATHER_TIME = 2000;
+
+    /** Number of milliseconds to wait for nacks at the end of each round. */
+    private static final int REPORT_TIME = 500;
+
+    /** Number of rounds in a row without an answer from any receiver before giving up on them. */
+    private static final int MAX_SILENT_ROUNDS = 10;
+
+    /** Number of milliseconds to wait for a packet before checking if the transfer is canceled. */
+    private static final int RECEIVE_TIMEOUT = 100;
+
+    /** The number of routers the packets can pass. Same as for the chat messages. */
+    private static final int TIME_TO_LIVE = 64;
+
+    /** The number of multicast addresses to choose from. */
+    private static final int GROUP_ADDRESSES = 254;
+
+    /** The file to send. */
+    private final File file;
+
+    /** The id of the file transfer. */
+    private final int transferId;
+
+    /** The address of the group to send the chunks to. */
+    private final String groupAddress;
+
+    /** The port to send the chunks to. */
+    private final int groupPort;
+
+    /** The addresses of the receivers that are not done yet. */
+    private final Set<SocketAddress> receivers;
+
+    /** The addresses of the receivers that are done. */
+    private final Set<SocketAddress> finished;
+
+    /** The number of receivers that received the whole file. */
+    private int completed;
+
+    /** If the file transfer is canceled. */
+    private volatile boolean cancel;
+
+    /** Keeps track of the chunks of the file. */
+    private ChunkTracker chunks;
+
+    /** The file to read the chunks from. */
+    private RandomAccessFile raf;
+
+    /** The socket for sending the chunks to the group. */
+    private MulticastSocket dataSocket;
+
+    /** The socket for receiving the answers from the receivers. */
+    private DatagramSocket controlSocket;
+
+    /** The address of the group. */
+    private SocketAddress group;
+
+    /** The number of packets sent. */
+    private long packetsSent;
+
+    /** The max number of bytes per second to send the packets with, or <code>0</code> for unlimited. */
+    private long maxRate;
+
+    /** Paces the packets. */
+    private MulticastPacer pacer;
+
+    /**
+     * Constructor. Chooses a random id for the file transfer, and the multicast group to use from the id.
+     *
+     * @param file The file to send.
+     */
+    public MulticastFileSender(final File file) {
+        this(file, new Random().nextInt(Integer.MAX_VALUE));
+    }
+
+    /**
+     * Constructor. Chooses the multicast group to use from the id.
+     *
+     * @param file The file to send.
+     * @param transferId The id of the file transfer.
+     */
+    public MulticastFileSender(final File file, final int transferId) {
+        this(file, transferId, Constants.NETWORK_MULTICAST_FILE_IP_PREFIX + (1 + transferId % GROUP_ADDRESSES),
+             Constants.NETWORK_MULTICAST_FILE_PORT);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param file The file to send.
+     * @param transferId The id of the file transfer.
+     * @param groupAddress The address of the group to send the chunks to.
+     * @param groupPort The port to send the chunks to.
+     */
+    public MulticastFileSender(final File file, final int transferId, final String groupAddress, final int groupPort) {
+        Validate.notNull(file, "File can not be null");
+        Validate.notEmpty(groupAddress, "Group address can not be empty");
+
+        this.file = file;
+        this.transferId = transferId;
+        this.groupAddress = groupAddress;
+        this.groupPort = groupPort;
+
+        receivers = new HashSet<SocketAddress>();
+        finished = new HashSet<SocketAddress>();
+        maxRate = Constants.NETWORK_MULTICAST_FILE_RATE;
+    }
+
+    /**
+     * Sets the max rate to send the packets with. Must be set before the transfer starts.
+     * The rate is lowered while the receivers lose many chunks.
+     *
+     * @param maxRate The max number of bytes per second, or <code>0</code> for unlimited.
+     */
+    public void setMaxRate(final long maxRate) {
+        this.maxRate = maxRate;
+    }
+
+    /**
+     * Gets the current rate the packets are sent with.
+     *
+     * @return The number of bytes per second, or <code>0</code> for unlimited.
+     */
+    public long getRate() {
+        if (pacer == null) {
+            return maxRate;
+        }
+
+        return pacer.getRate();
+    }
+
+    /**
+     * Opens the file and the sockets, and creates the offer to send to the other users.
+     *
+     * @param networkInterface The network interface to send the chunks with, or <code>null</code>
+     *                         to let the operating system choose.
+     * @return The offer.
+     * @throws ServerException If the file or the sockets could not be opened.
+     */
+    public MulticastOffer start(final NetworkInterface networkInterface) throws ServerException {
+        try {
+            raf = new RandomAccessFile(file, "r");
+            final long size = raf.length();
+            final long checksum = checksum(raf, size);
+            chunks = new ChunkTracker(size);
+
+            controlSocket = new DatagramSocket();
+            dataSocket = new MulticastSocket();
+            dataSocket.setTimeToLive(TIME_TO_LIVE);
+
+            if (networkInterface != null) {
+                dataSocket.setNetworkInterface(networkInterface);
+            }
+
+            group = new InetSocketAddress(groupAddress, groupPort);
+
+            return new MulticastOffer(transferId, file.getName(), size, checksum, groupAddress, groupPort,
+                                      controlSocket.getLocalPort());
+        }
+
+        catch (final IOException e) {
+            stop();
+            throw new ServerException("Could not start multicast file transfer of " + file, e);
+        }
+    }
+
+    /**
+     * Waits for users to join, and sends the file to them in rounds until all of them are done.
+     * {@link #start(NetworkInterface)} must be called first.
+     *
+     * @return The number of users who received the whole file.
+     */
+    public int transfer() {
+        try {
+            if (waitForReceivers()) {
+                sendRounds();
+            }
+        }
+
+        catch (final IOException e) {
+            LOG.log(Level.WARNING, e.toString());
+        }
+
+        finally {
+            stop();
+        }
+
+        return completed;
+    }
+
+    /**
+     * Cancels the file transfer.
+     */
+    public void cancel() {
+        cancel = true;
+    }
+
+    /**
+     * Checks if the file transfer is canceled.
+     *
+     * @return If the file transfer is canceled.
+     */
+    public boolean isCanceled() {
+        return cancel;
+    }
+
+    /**
+     * Gets the file to send.
+     *
+     * @return The file.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Gets the id of the file transfer.
+     *
+     * @return The id of the file transfer.
+     */
+    public int getTransferId() {
+        return transferId;
+    }
+
+    /**
+     * Gets the number of packets sent to the group. Does not depend on the number of receivers,
+     * only on how many chunks they lose.
+     *
+     * @return The number of packets sent.
+     */
+    public long getPacketsSent() {
+        return packetsSent;
+    }
+
+    /**
+     * Computes the checksum of the file.
+     *
+     * @param file The file to compute the checksum of.
+     * @param size The size of the file.
+     * @return The CRC32 of the whole file.
+     * @throws IOException If the file could not be read.
+     */
+    static long checksum(final RandomAccessFile file, final long size) throws IOException {
+        final CRC32 crc = new CRC32();
+        final byte[] buffer = new byte[MulticastPacket.CHUNK_SIZE * ChunkTracker.GROUP_SIZE];
+        long position = 0;
+
+        file.seek(0);
+
+        while (position < size) {
+            final int length = (int) Math.min(buffer.length, size - position);
+            file.readFully(buffer, 0, length);
+            crc.update(buffer, 0, length);
+            position += length;
+        }
+
+        return crc.getValue();
+    }
+
+    /**
+     * Waits for the first user to join, and then a little while longer for the others.
+     *
+     * @return If any users joined.
+     * @throws IOException If the answers could not be received.
+     */
+    private boolean waitForReceivers() throws IOException {
+        final long deadline = System.currentTimeMillis() + JOIN_TIMEOUT;
+
+        while (!cancel && receivers.isEmpty() && System.currentTimeMillis() < deadline) {
+            receiveAnswers(RECEIVE_TIMEOUT, null);
+        }
+
+        if (receivers.isEmpty()) {
+            LOG.log(Level.FINE, "Nobody joined the multicast file transfer of " + file);
+            return false;
+        }
+
+        receiveAnswers(GATHER_TIME, null);
+
+        return !cancel;
+    }
+
+    /**
+     * Sends the file in rounds, until all the receivers are done, or have stopped answering.
+     *
+     * @throws IOException If the file could not be read, or the packets could not be sent.
+     */
+    private void sendRounds() throws IOException {
+        final BitSet pending = new BitSet(chunks.getChunkCount());
+        pending.set(0, chunks.getChunkCount());
+        pacer = new MulticastPacer(maxRate);
+
+        int round = 0;
+        int silentRounds = 0;
+
+        while (!cancel && !receivers.isEmpty() && silentRounds < MAX_SILENT_ROUNDS) {
+            final int sent = pending.cardinality();
+            sendChunks(pending, round == 0);
+            pending.clear();
+            dataSocket.send(MulticastPacket.create(MulticastPacket.END, transferId, round, group));
+
+            if (receiveAnswers(REPORT_TIME, pending)) {
+                silentRounds = 0;
+                pacer.roundDone(sent, pending.cardinality());
+            }
+
+            else {
+                silentRounds++;
+            }
+
+            round++;
+        }
+
+        if (!receivers.isEmpty()) {
+            LOG.log(Level.WARNING, receivers.size() + " receivers of " + file + " stopped answering");
+        }
+    }
+
+    /**
+     * Sends the chunks to the group.
+     *
+     * @param pending The chunks to send.
+     * @param withParity If the parity of each group of chunks should be sent after the group.
+     *                   Only works when all the chunks are sent.
+     * @throws IOException If the file could not be read, or the packets could not be sent.
+     */
+    private void sendChunks(final BitSet pending, final boolean withParity) throws IOException {
+        final byte[] buffer = new byte[MulticastPacket.MAX_SIZE];
+        final byte[] parity = new byte[MulticastPacket.CHUNK_SIZE];
+        final DatagramPacket packet = new DatagramPacket(buffer, buffer.length, group);
+        final int lastChunk = chunks.getChunkCount() - 1;
+
+        for (int index = pending.nextSetBit(0); index >= 0 && !cancel; index = pending.nextSetBit(index + 1)) {
+            final int length = chunks.getChunkLength(index);
+
+            MulticastPacket.writeHeader(buffer, MulticastPacket.DATA, transferId, index);
+            raf.seek((long) index * MulticastPacket.CHUNK_SIZE);
+            raf.readFully(buffer, MulticastPacket.HEADER_SIZE, length);
+            send(packet, length);
+
+            if (withParity) {
+                ChunkTracker.xor(parity, buffer, MulticastPacket.HEADER_SIZE, length);
+
+                if ((index + 1) % ChunkTracker.GROUP_SIZE == 0 || index == lastChunk) {
+                    MulticastPacket.writeHeader(buffer, MulticastPacket.PARITY, transferId, index / ChunkTracker.GROUP_SIZE);
+                    System.arraycopy(parity, 0, buffer, MulticastPacket.HEADER_SIZE, parity.length);
+                    send(packet, parity.length);
+                    Arrays.fill(parity, (byte) 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends a packet to the group, when the pacer allows it.
+     *
+     * @param packet The packet to send.
+     * @param length The number of bytes after the header.
+     * @throws IOException If the packet could not be sent.
+     */
+    private void send(final DatagramPacket packet, final int length) throws IOException {
+        packet.setLength(MulticastPacket.HEADER_SIZE + length);
+        pacer.pace(packet.getLength());
+        dataSocket.send(packet);
+        packetsSent++;
+    }
+
+    /**
+     * Receives the answers from the receivers for a while.
+     *
+     * @param time Number of milliseconds to receive answers.
+     * @param missing The chunks missing in any of the receivers, or <code>null</code> to ignore the nacks.
+     * @return If any answers arrived.
+     * @throws IOException If the answers could not be received.
+     */
+    private boolean receiveAnswers(final int time, final BitSet missing) throws IOException {
+        final DatagramPacket packet = new DatagramPacket(new byte[MulticastPacket.MAX_SIZE], MulticastPacket.MAX_SIZE);
+        final long deadline = System.currentTimeMillis() + time;
+        boolean answered = false;
+        long remaining = time;
+
+        while (!cancel && remaining > 0) {
+            controlSocket.setSoTimeout((int) Math.min(remaining, RECEIVE_TIMEOUT));
+
+            try {
+                controlSocket.receive(packet);
+                final MulticastPacket answer = MulticastPacket.read(packet);
+
+                if (answer != null && answer.getTransferId() == transferId) {
+                    answered = true;
+                    answerArrived(answer, packet.getSocketAddress(), missing);
+                }
+            }
+
+            catch (final SocketTimeoutException e) {
+                // Just to check for cancel
+            }
+
+            remaining = deadline - System.currentTimeMillis();
+        }
+
+        return answered;
+    }
+
+    /**
+     * Registers an answer from a receiver.
+     *
+     * @param answer The answer.
+     * @param receiver The address of the receiver.
+     * @param missing The chunks missing in any of the receivers, or <code>null</code> to ignore the nacks.
+     */
+    private void answerArrived(final MulticastPacket answer, final SocketAddress receiver, final BitSet missing) {
+        // The receiver has already said it's done, so this is an old or duplicate answer
+        if (finished.contains(receiver)) {
+            return;
+        }
+
+        switch (answer.getType()) {
+            case MulticastPacket.JOIN:
+                receivers.add(receiver);
+                break;
+
+            case MulticastPacket.NACK:
+                receivers.add(receiver);
+
+                if (missing != null) {
+                    addMissing(answer.readRanges(), missing);
+                }
+
+                break;
+
+            case MulticastPacket.DONE:
+                receivers.remove(receiver);
+                finished.add(receiver);
+
+                if (answer.getIndex() == 1) {
+                    completed++;
+                }
+
+                break;
+
+            default:
+                LOG.log(Level.FINE, "Unknown answer: " + answer.getType());
+                break;
+        }
+    }
+
+    /**
+     * Adds the ranges of missing chunks from a nack.
+     *
+     * @param ranges The first and last chunk in each range.
+     * @param missing The chunks missing in any of the receivers.
+     */
+    private void addMissing(final int[] ranges, final BitSet missing) {
+        final int chunkCount = chunks.getChunkCount();
+
+        for (int i = 0; i + 1 < ranges.length; i += 2) {
+            final int from = Math.max(ranges[i], 0);
+            final int to = Math.min(ranges[i + 1], chunkCount - 1);
+
+            if (from <= to) {
+                missing.set(from, to + 1);
+            }
+        }
+    }
+
+    /**
+     * Closes the file and the sockets. Done automatically at the end of {@link #transfer()},
+     * so only needed if the file transfer is never started.
+     */
+    public void stop() {
+        if (dataSocket != null) {
+            dataSocket.close();
+        }
+
+        if (controlSocket != null) {
+            controlSocket.close();
+        }
+
+        if (raf != null) {
+            try {
+                raf.close();
+            }
+
+            catch (final IOException e) {
+                LOG.log(Level.WARNING, e.toString());
+            }
+        }
+    }
+}
@@ -0,0 +1,143 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import net.usikkert.kouchat.util.Validate;
+
+/**
+ * A file offered to everyone in the chat, to be received in a multicast file transfer.
+ * See {@link MulticastFileSender}.
+ *
+ * @author Christian Ihle
+ */
+public final class MulticastOffer {
+
+    /** The id of the file transfer. */
+    private final int transferId;
+
+    /** The name of the file. */
+    private final String fileName;
+
+    /** The size of the file. */
+    private final long size;
+
+    /** The checksum of the file. */
+    private final long checksum;
+
+    /** The address of the group the chunks of the file are sent to. */
+    private final String groupAddress;
+
+    /** The port the chunks of the file are sent to. */
+    private final int groupPort;
+
+    /** The port of the sender, where the receivers send their nacks. */
+    private final int controlPort;
+
+    /**
+     * Constructor.
+     *
+     * @param transferId The id of the file transfer.
+     * @param fileName The name of the file.
+     * @param size The size of the file.
+     * @param checksum The checksum of the file.
+     * @param groupAddress The address of the group the chunks of the file are sent to.
+     * @param groupPort The port the chunks of the file are sent to.
+     * @param controlPort The port of the sender, where the receivers send their nacks.
+     */
+    public MulticastOffer(final int transferId, final String fileName, final long size, final long checksum,
+                          final String groupAddress, final int groupPort, final int controlPort) {
+        Validate.notEmpty(fileName, "File name can not be empty");
+        Validate.notEmpty(groupAddress, "Group address can not be empty");
+
+        this.transferId = transferId;
+        this.fileName = fileName;
+        this.size = size;
+        this.checksum = checksum;
+        this.groupAddress = groupAddress;
+        this.groupPort = groupPort;
+        this.controlPort = controlPort;
+    }
+
+    /**
+     * Gets the id of the file transfer.
+     *
+     * @return The id of the file transfer.
+     */
+    public int getTransferId() {
+        return transferId;
+    }
+
+    /**
+     * Gets the name of the file.
+     *
+     * @return The name of the file.
+     */
+    public String getFileName() {
+        return fileName;
+    }
+
+    /**
+     * Gets the size of the file.
+     *
+     * @return The size of the file, in bytes.
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Gets the checksum of the file.
+     *
+     * @return The CRC32 of the whole file.
+     */
+    public long getChecksum() {
+        return checksum;
+    }
+
+    /**
+     * Gets the address of the group the chunks of the file are sent to.
+     *
+     * @return The group address.
+     */
+    public String getGroupAddress() {
+        return groupAddress;
+    }
+
+    /**
+     * Gets the port the chunks of the file are sent to.
+     *
+     * @return The group port.
+     */
+    public int getGroupPort() {
+        return groupPort;
+    }
+
+    /**
+     * Gets the port of the sender, where the receivers send their nacks.
+     *
+     * @return The control port.
+     */
+    public int getControlPort() {
+        return controlPort;
+    }
+}
@@ -0,0 +1,168 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Paces the packets of a file sent to everyone with multicast, so they are sent at a steady rate
+ * instead of as fast as the network card can send them.
+ *
+ * <p>Multicast has no flow control, so a sender going faster than the slowest receiver only
+ * fills its receive buffer, and the chunks have to be sent again in the next round. The rate starts
+ * at the max rate, and adapts to the nacks at the end of each round: it's halved when many chunks
+ * were lost, and increased a little at a time when almost none were lost.</p>
+ *
+ * <p>A max rate of <code>0</code> means unlimited. The packets are then never paced.</p>
+ *
+ * <p>Not thread safe. Each multicast file transfer must use its own pacer.</p>
+ *
+ * @author Christian Ihle
+ */
+class MulticastPacer {
+
+    /** The logger. */
+    private static final Logger LOG = Logger.getLogger(MulticastPacer.class.getName());
+
+    /** The lowest rate the pacer slows down to, in bytes per second. */
+    static final long MIN_RATE = 64 * 1024;
+
+    /** Rounds losing at least this many of each thousand chunks sent halve the rate. */
+    static final int HIGH_LOSS = 50;
+
+    /** Rounds losing at most this many of each thousand chunks sent increase the rate. */
+    static final int LOW_LOSS = 10;
+
+    /** The rate is increased by the max rate divided by this, after each round with low loss. */
+    private static final int RATE_INCREASE_STEPS = 8;
+
+    /** The loss is counted in chunks lost of each this many chunks sent. */
+    private static final int PER_MILLE = 1000;
+
+    /** The number of nanoseconds in a second. */
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    /** The number of nanoseconds in a millisecond. */
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    /** The max number of nanoseconds the pacer can save up, after sending slower than the rate. */
+    private static final long MAX_BURST_TIME = 20 * NANOS_PER_MILLI;
+
+    /** The max number of bytes per second, or <code>0</code> for unlimited. */
+    private final long maxRate;
+
+    /** The current number of bytes per second. */
+    private long rate;
+
+    /** When the next packet can be sent, in nanoseconds. */
+    private long nextTime;
+
+    /**
+     * Constructor.
+     *
+     * @param maxRate The max number of bytes per second, or <code>0</code> for unlimited.
+     */
+    MulticastPacer(final long maxRate) {
+        this.maxRate = maxRate;
+        rate = maxRate;
+        nextTime = Long.MIN_VALUE;
+    }
+
+    /**
+     * Registers a packet that is about to be sent, and sleeps until it can be sent without going
+     * faster than the current rate.
+     *
+     * @param bytes The number of bytes in the packet.
+     */
+    public void pace(final int bytes) {
+        if (maxRate <= 0) {
+            return;
+        }
+
+        final long now = nanoTime();
+        nextTime = Math.max(nextTime, now - MAX_BURST_TIME) + bytes * NANOS_PER_SECOND / rate;
+
+        final long sleepTime = (nextTime - now) / NANOS_PER_MILLI;
+
+        if (sleepTime > 0) {
+            sleep(sleepTime);
+        }
+    }
+
+    /**
+     * Adapts the rate to the number of chunks lost in a round.
+     *
+     * @param sent The number of chunks sent in the round.
+     * @param lost The number of chunks missing in any of the receivers after the round.
+     */
+    public void roundDone(final int sent, final int lost) {
+        if (maxRate <= 0 || sent <= 0) {
+            return;
+        }
+
+        final long loss = (long) Math.min(sent, lost) * PER_MILLE / sent;
+
+        if (loss >= HIGH_LOSS) {
+            rate = Math.max(Math.min(MIN_RATE, maxRate), rate / 2);
+            LOG.log(Level.FINE, "Lost " + lost + " of " + sent + " chunks, slowing down to " + rate + " bytes/s");
+        }
+
+        else if (loss <= LOW_LOSS) {
+            rate = Math.min(maxRate, rate + Math.max(1, maxRate / RATE_INCREASE_STEPS));
+        }
+    }
+
+    /**
+     * Gets the current rate.
+     *
+     * @return The current number of bytes per second, or <code>0</code> for unlimited.
+     */
+    public long getRate() {
+        return rate;
+    }
+
+    /**
+     * Gets the current time. Can be overridden in tests.
+     *
+     * @return The current time in nanoseconds.
+     */
+    long nanoTime() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Sleeps. Can be overridden in tests.
+     *
+     * @param millis The number of milliseconds to sleep.
+     */
+    void sleep(final long millis) {
+        try {
+            Thread.sleep(millis);
+        }
+
+        catch (final InterruptedException e) {
+            LOG.log(Level.FINE, e.toString());
+        }
+    }
+}
@@ -0,0 +1,293 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.net.DatagramPacket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * A packet in a multicast file transfer. See {@link MulticastFileSender}.
+ *
+ * <p>Each packet starts with a header of {@link #HEADER_SIZE} bytes: a magic number, the type
+ * of the packet as a byte, the id of the file transfer as an int, and an index as an int.
+ * The meaning of the index and the rest of the packet depends on the type:</p>
+ *
+ * <ul>
+ *   <li>{@link #DATA}: the index of the chunk, followed by the content of the chunk.</li>
+ *   <li>{@link #PARITY}: the index of the group of chunks, followed by the parity of the group.</li>
+ *   <li>{@link #END}: the number of the round that just ended.</li>
+ *   <li>{@link #JOIN}: always <code>0</code>.</li>
+ *   <li>{@link #NACK}: the number of the round, followed by ranges of missing chunks,
+ *       as pairs of ints with the first and last chunk in each range.</li>
+ *   <li>{@link #DONE}: <code>1</code> if the whole file was received, or <code>0</code> if the receiver gave up.</li>
+ * </ul>
+ *
+ * <p>The first three types are multicast by the sender, and the last three are sent
+ * directly to the sender by each receiver.</p>
+ *
+ * @author Christian Ihle
+ */
+final class MulticastPacket {
+
+    /** The magic number the packets start with: "KCMF" in ascii. */
+    static final int MAGIC = 0x4B434D46;
+
+    /** The size of the header. */
+    static final int HEADER_SIZE = 13;
+
+    /** The max number of bytes in a chunk. */
+    static final int CHUNK_SIZE = 1024;
+
+    /** The max size of a packet. */
+    static final int MAX_SIZE = HEADER_SIZE + CHUNK_SIZE;
+
+    /** The size of a range of missing chunks in a nack: the first and last chunk as ints. */
+    private static final int RANGE_SIZE = 8;
+
+    /** The max number of ranges in a nack. */
+    static final int MAX_RANGES = CHUNK_SIZE / RANGE_SIZE;
+
+    /** A chunk of the file. */
+    static final byte DATA = 1;
+
+    /** The parity of a group of chunks. */
+    static final byte PARITY = 2;
+
+    /** The end of a round of chunks. */
+    static final byte END = 3;
+
+    /** A receiver wants to receive the file. */
+    static final byte JOIN = 4;
+
+    /** A receiver is missing chunks. */
+    static final byte NACK = 5;
+
+    /** A receiver is done. */
+    static final byte DONE = 6;
+
+    /** The type of the packet. */
+    private final byte type;
+
+    /** The id of the file transfer. */
+    private final int transferId;
+
+    /** The index of the packet. */
+    private final int index;
+
+    /** The bytes of the packet. */
+    private final byte[] data;
+
+    /** The position of the first byte after the header. */
+    private final int offset;
+
+    /** The number of bytes after the header. */
+    private final int length;
+
+    /**
+     * Constructor.
+     *
+     * @param type The type of the packet.
+     * @param transferId The id of the file transfer.
+     * @param index The index of the packet.
+     * @param data The bytes of the packet.
+     * @param offset The position of the first byte after the header.
+     * @param length The number of bytes after the header.
+     */
+    private MulticastPacket(final byte type, final int transferId, final int index,
+                            final byte[] data, final int offset, final int length) {
+        this.type = type;
+        this.transferId = transferId;
+        this.index = index;
+        this.data = data;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * Writes the header of a packet to the start of the buffer.
+     *
+     * @param buffer The buffer to write to. Must have room for the header.
+     * @param type The type of the packet.
+     * @param transferId The id of the file transfer.
+     * @param index The index of the packet.
+     */
+    static void writeHeader(final byte[] buffer, final byte type, final int transferId, final int index) {
+        final ByteBuffer header = ByteBuffer.wrap(buffer, 0, HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.put(type);
+        header.putInt(transferId);
+        header.putInt(index);
+    }
+
+    /**
+     * Creates a packet with only a header.
+     *
+     * @param type The type of the packet.
+     * @param transferId The id of the file transfer.
+     * @param index The index of the packet.
+     * @param address The address to send the packet to.
+     * @return The packet.
+     */
+    static DatagramPacket create(final byte type, final int transferId, final int index, final SocketAddress address) {
+        final byte[] buffer = new byte[HEADER_SIZE];
+        writeHeader(buffer, type, transferId, index);
+
+        return createPacket(buffer, address);
+    }
+
+    /**
+     * Creates a nack packet with the ranges of missing chunks.
+     *
+     * @param transferId The id of the file transfer.
+     * @param round The number of the round.
+     * @param ranges The first and last chunk of each range. See {@link ChunkTracker#getMissingRanges(int)}.
+     * @param address The address to send the packet to.
+     * @return The packet.
+     */
+    static DatagramPacket createNack(final int transferId, final int round, final int[] ranges,
+                                     final SocketAddress address) {
+        final byte[] buffer = new byte[HEADER_SIZE + ranges.length * RANGE_SIZE / 2];
+        writeHeader(buffer, NACK, transferId, round);
+
+        final ByteBuffer payload = ByteBuffer.wrap(buffer, HEADER_SIZE, buffer.length - HEADER_SIZE);
+
+        for (final int chunk : ranges) {
+            payload.putInt(chunk);
+        }
+
+        return createPacket(buffer, address);
+    }
+
+    /**
+     * Creates a packet with the whole buffer, addressed to the given address.
+     *
+     * <p>The address is set afterwards, because the constructor taking a socket address
+     * throws a checked exception on older versions of Java and Android.</p>
+     *
+     * @param buffer The contents of the packet.
+     * @param address The address to send the packet to.
+     * @return The packet.
+     */
+    private static DatagramPacket createPacket(final byte[] buffer, final SocketAddress address) {
+        final DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        packet.setSocketAddress(address);
+
+        return packet;
+    }
+
+    /**
+     * Reads the header of a received packet.
+     *
+     * @param packet The received packet.
+     * @return The packet, or <code>null</code> if it's not a multicast file transfer packet.
+     */
+    static MulticastPacket read(final DatagramPacket packet) {
+        if (packet.getLength() < HEADER_SIZE) {
+            return null;
+        }
+
+        final ByteBuffer header = ByteBuffer.wrap(packet.getData(), packet.getOffset(), HEADER_SIZE);
+
+        if (header.getInt() != MAGIC) {
+            return null;
+        }
+
+        final byte type = header.get();
+        final int transferId = header.getInt();
+        final int index = header.getInt();
+
+        return new MulticastPacket(type, transferId, index, packet.getData(),
+                                   packet.getOffset() + HEADER_SIZE, packet.getLength() - HEADER_SIZE);
+    }
+
+    /**
+     * Reads the ranges of missing chunks in a nack packet.
+     *
+     * @return The first and last chunk of each range.
+     */
+    int[] readRanges() {
+        final ByteBuffer payload = ByteBuffer.wrap(data, offset, length);
+        final int[] ranges = new int[Math.min(length / RANGE_SIZE, MAX_RANGES) * 2];
+
+        for (int i = 0; i < ranges.length; i++) {
+            ranges[i] = payload.getInt();
+        }
+
+        return ranges;
+    }
+
+    /**
+     * Gets the type of the packet.
+     *
+     * @return The type.
+     */
+    byte getType() {
+        return type;
+    }
+
+    /**
+     * Gets the id of the file transfer.
+     *
+     * @return The id of the file transfer.
+     */
+    int getTransferId() {
+        return transferId;
+    }
+
+    /**
+     * Gets the index of the packet.
+     *
+     * @return The index.
+     */
+    int getIndex() {
+        return index;
+    }
+
+    /**
+     * Gets the bytes of the packet.
+     *
+     * @return The bytes of the packet, including the header.
+     */
+    byte[] getData() {
+        return data;
+    }
+
+    /**
+     * Gets the position of the first byte after the header.
+     *
+     * @return The position.
+     */
+    int getOffset() {
+        return offset;
+    }
+
+    /**
+     * Gets the number of bytes after the header.
+     *
+     * @return The number of bytes.
+     */
+    int getLength() {
+        return length;
+    }
+}
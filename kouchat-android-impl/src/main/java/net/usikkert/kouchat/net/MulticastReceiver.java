@@ -0,0 +1,59 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.net.NetworkInterface;
+
+import net.usikkert.kouchat.event.ReceiverListener;
+
+/**
+ * Interface for classes that receive multicast messages from the network,
+ * and notify a listener when messages arrive.
+ *
+ * @author Christian Ihle
+ */
+public interface MulticastReceiver {
+
+    /**
+     * Connects to the network with the given network interface, or gives
+     * the control to the operating system to choose if <code>null</code>
+     * is given.
+     *
+     * @param networkInterface The network interface to use, or <code>null</code>.
+     * @return If connected to the network or not.
+     */
+    boolean startReceiver(NetworkInterface networkInterface);
+
+    /**
+     * Disconnects from the network.
+     */
+    void stopReceiver();
+
+    /**
+     * Registers as the listener to receive all the messages from
+     * the network.
+     *
+     * @param listener The listener to register.
+     */
+    void registerReceiverListener(ReceiverListener listener);
+}
@@ -0,0 +1,501 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.usikkert.kouchat.util.Validate;
+
+/**
+ * A single thread using a {@link Selector} to wait for events on many channels at once.
+ *
+ * <p>Channels are registered with a {@link ChannelHandler} that is notified on the event loop
+ * thread when the channel is ready. Timeouts are also handled by the event loop thread, so
+ * the number of threads stays the same no matter how many channels are waiting.</p>
+ *
+ * <p>All handlers and tasks run on the event loop thread, and must never block.</p>
+ *
+ * @author Christian Ihle
+ */
+public class NetworkEventLoop implements Runnable {
+
+    /**
+     * Handles events on a channel registered with the event loop.
+     */
+    public interface ChannelHandler {
+
+        /**
+         * The channel is ready for one or more of the operations it was registered for.
+         * Runs on the event loop thread.
+         *
+         * @param key The selection key of the channel.
+         * @throws IOException If the channel failed. The channel is then closed.
+         */
+        void channelReady(SelectionKey key) throws IOException;
+    }
+
+    /**
+     * A task to run on the event loop thread at a later time.
+     */
+    public static final class Timeout implements Comparable<Timeout> {
+
+        /** The task to run. */
+        private final Runnable task;
+
+        /** When to run the task, in {@link System#nanoTime()}. */
+        private final long deadline;
+
+        /** If the timeout is canceled. */
+        private volatile boolean canceled;
+
+        /**
+         * Constructor.
+         *
+         * @param task The task to run.
+         * @param deadline When to run the task, in {@link System#nanoTime()}.
+         */
+        private Timeout(final Runnable task, final long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancels the timeout, if it has not already run.
+         */
+        public void cancel() {
+            canceled = true;
+        }
+
+        /**
+         * Checks if the timeout is canceled.
+         *
+         * @return If the timeout is canceled.
+         */
+        public boolean isCanceled() {
+            return canceled;
+        }
+
+        /**
+         * Sorts the timeouts by deadline. Uses subtraction to handle overflow of the nano time.
+         *
+         * {@inheritDoc}
+         */
+        @Override
+        public int compareTo(final Timeout other) {
+            final long difference = deadline - other.deadline;
+
+            if (difference < 0) {
+                return -1;
+            }
+
+            else if (difference > 0) {
+                return 1;
+            }
+
+            return 0;
+        }
+    }
+
+    /** The logger. */
+    private static final Logger LOG = Logger.getLogger(NetworkEventLoop.class.getName());
+
+    /** Tasks from other threads, waiting to run on the event loop thread. */
+    private final Queue<Runnable> tasks;
+
+    /** The timeouts, sorted by deadline. Only used by the event loop thread. */
+    private final PriorityQueue<Timeout> timeouts;
+
+    /** Tasks waiting for released channels to leave the selector. Only used by the event loop thread. */
+    private final List<Runnable> releaseTasks;
+
+    /** The selector waiting for events. */
+    private volatile Selector selector;
+
+    /** If the event loop is running. */
+    private volatile boolean running;
+
+    /** The event loop thread. */
+    private Thread worker;
+
+    /**
+     * Constructor.
+     */
+    public NetworkEventLoop() {
+        tasks = new ConcurrentLinkedQueue<Runnable>();
+        timeouts = new PriorityQueue<Timeout>();
+        releaseTasks = new ArrayList<Runnable>();
+    }
+
+    /**
+     * Opens the selector, and starts the event loop thread, if not already running.
+     *
+     * @throws IOException If the selector could not be opened.
+     */
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+
+        LOG.log(Level.FINE, "Starting.");
+        running = true;
+
+        // The thread is still alive if stopped and started again before it noticed
+        if (worker == null) {
+            selector = Selector.open();
+            worker = new Thread(this, "NetworkEventLoop");
+            worker.start();
+        }
+    }
+
+    /**
+     * Stops the event loop thread, and closes the selector.
+     * Registered channels are not closed, but are no longer notified.
+     */
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+
+        LOG.log(Level.FINE, "Stopping.");
+
+        running = false;
+        selector.wakeup();
+    }
+
+    /**
+     * Checks if the event loop is running.
+     *
+     * @return If the event loop is running.
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Checks if the current thread is the event loop thread.
+     *
+     * @return If running on the event loop thread.
+     */
+    public synchronized boolean isEventLoopThread() {
+        return Thread.currentThread() == worker;
+    }
+
+    /**
+     * Registers a channel with the event loop. The channel is changed to non-blocking mode,
+     * and the handler is notified when the channel is ready for any of the operations.
+     *
+     * <p>Closing the channel removes it from the event loop.</p>
+     *
+     * @param channel The channel to register.
+     * @param operations The operations to wait for, as in {@link SelectionKey#OP_READ}.
+     * @param handler The handler to notify.
+     */
+    public void register(final SelectableChannel channel, final int operations, final ChannelHandler handler) {
+        Validate.notNull(channel, "Channel can not be null");
+        Validate.notNull(handler, "Handler can not be null");
+
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    channel.configureBlocking(false);
+                    channel.register(selector, operations, handler);
+                }
+
+                catch (final ClosedChannelException e) {
+                    LOG.log(Level.FINE, "Channel closed before registration: " + e.toString());
+                }
+
+                catch (final IOException e) {
+                    LOG.log(Level.SEVERE, e.toString(), e);
+                    closeChannel(channel);
+                }
+            }
+        });
+    }
+
+    /**
+     * Removes a channel from the event loop without closing it. The task runs on the event loop thread
+     * when the channel has left the selector, and can be changed back to blocking mode.
+     *
+     * <p>Must be called on the event loop thread, like from a {@link ChannelHandler}.</p>
+     *
+     * @param key The selection key of the channel to release.
+     * @param task The task to run when the channel is released.
+     */
+    public void release(final SelectionKey key, final Runnable task) {
+        Validate.notNull(key, "Key can not be null");
+        Validate.notNull(task, "Task can not be null");
+
+        key.cancel();
+        releaseTasks.add(task);
+
+        // Canceled keys leave the selector during the next select, so make sure it returns at once
+        wakeup();
+    }
+
+    /**
+     * Runs the task on the event loop thread as soon as possible.
+     *
+     * @param task The task to run.
+     */
+    public void execute(final Runnable task) {
+        Validate.notNull(task, "Task can not be null");
+
+        tasks.add(task);
+        wakeup();
+    }
+
+    /**
+     * Runs the task on the event loop thread after the delay.
+     *
+     * @param task The task to run.
+     * @param delay The delay, in milliseconds.
+     * @return The timeout, which can be used to cancel the task.
+     */
+    public Timeout schedule(final Runnable task, final long delay) {
+        Validate.notNull(task, "Task can not be null");
+
+        final Timeout timeout = new Timeout(task, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay));
+
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                timeouts.add(timeout);
+            }
+        });
+
+        return timeout;
+    }
+
+    /**
+     * Wakes up the event loop thread, if it's waiting for events.
+     */
+    public void wakeup() {
+        final Selector currentSelector = selector;
+
+        if (currentSelector != null) {
+            currentSelector.wakeup();
+        }
+    }
+
+    /**
+     * The event loop. Waits for events on the registered channels, or the next timeout,
+     * and runs waiting tasks.
+     */
+    @Override
+    public void run() {
+        final Selector currentSelector = selector;
+
+        while (isStillRunning()) {
+            try {
+                runTasks();
+                final int released = releaseTasks.size();
+                currentSelector.select(getSelectTimeout());
+                runReleaseTasks(released);
+                handleSelectedKeys(currentSelector);
+                runTimeouts();
+            }
+
+            catch (final IOException e) {
+                LOG.log(Level.SEVERE, e.toString(), e);
+            }
+
+            catch (final RuntimeException e) {
+                LOG.log(Level.SEVERE, e.toString(), e);
+            }
+        }
+
+        try {
+            currentSelector.close();
+        }
+
+        catch (final IOException e) {
+            LOG.log(Level.WARNING, e.toString());
+        }
+
+        LOG.log(Level.FINE, "Stopped.");
+    }
+
+    /**
+     * Checks if the event loop thread should continue. If not, the thread is
+     * marked as stopped while holding the lock, so {@link #start()} knows to start a new thread.
+     *
+     * @return If the event loop thread should continue.
+     */
+    private synchronized boolean isStillRunning() {
+        if (!running) {
+            worker = null;
+            timeouts.clear();
+            releaseTasks.clear();
+        }
+
+        return running;
+    }
+
+    /**
+     * Runs all the tasks added by other threads.
+     */
+    private void runTasks() {
+        Runnable task = tasks.poll();
+
+        while (task != null) {
+            try {
+                task.run();
+            }
+
+            catch (final RuntimeException e) {
+                LOG.log(Level.SEVERE, e.toString(), e);
+            }
+
+            task = tasks.poll();
+        }
+    }
+
+    /**
+     * Runs the tasks for the channels released before the last select.
+     *
+     * @param count The number of tasks that were waiting before the last select.
+     */
+    private void runReleaseTasks(final int count) {
+        for (int i = 0; i < count; i++) {
+            try {
+                releaseTasks.remove(0).run();
+            }
+
+            catch (final RuntimeException e) {
+                LOG.log(Level.SEVERE, e.toString(), e);
+            }
+        }
+    }
+
+    /**
+     * Runs the timeouts that have reached their deadline, and removes canceled timeouts.
+     */
+    private void runTimeouts() {
+        final long now = System.nanoTime();
+        Timeout timeout = timeouts.peek();
+
+        while (timeout != null && (timeout.canceled || timeout.deadline - now <= 0)) {
+            timeouts.poll();
+
+            if (!timeout.canceled) {
+                try {
+                    timeout.task.run();
+                }
+
+                catch (final RuntimeException e) {
+                    LOG.log(Level.SEVERE, e.toString(), e);
+                }
+            }
+
+            timeout = timeouts.peek();
+        }
+    }
+
+    /**
+     * Finds how long to wait for events before the next timeout.
+     *
+     * @return Milliseconds to wait, or <code>0</code> to wait until woken up.
+     */
+    private long getSelectTimeout() {
+        final Timeout timeout = timeouts.peek();
+
+        if (timeout == null) {
+            return 0;
+        }
+
+        final long remaining = TimeUnit.NANOSECONDS.toMillis(timeout.deadline - System.nanoTime());
+
+        // 0 would mean no timeout at all
+        return Math.max(1, remaining + 1);
+    }
+
+    /**
+     * Notifies the handlers of the channels that are ready.
+     *
+     * @param currentSelector The selector with the ready keys.
+     */
+    private void handleSelectedKeys(final Selector currentSelector) {
+        final Iterator<SelectionKey> keys = currentSelector.selectedKeys().iterator();
+
+        while (keys.hasNext()) {
+            final SelectionKey key = keys.next();
+            keys.remove();
+
+            if (key.isValid()) {
+                handleKey(key);
+            }
+        }
+    }
+
+    /**
+     * Notifies the handler of a channel that is ready. Closes the channel if the handler fails.
+     *
+     * @param key The selection key of the channel.
+     */
+    private void handleKey(final SelectionKey key) {
+        final ChannelHandler handler = (ChannelHandler) key.attachment();
+
+        try {
+            handler.channelReady(key);
+        }
+
+        catch (final IOException e) {
+            LOG.log(Level.WARNING, e.toString());
+            closeChannel(key.channel());
+        }
+
+        catch (final RuntimeException e) {
+            LOG.log(Level.SEVERE, e.toString(), e);
+        }
+    }
+
+    /**
+     * Closes the channel, and logs any errors.
+     *
+     * @param channel The channel to close.
+     */
+    private void closeChannel(final SelectableChannel channel) {
+        try {
+            channel.close();
+        }
+
+        catch (final IOException e) {
+            LOG.log(Level.WARNING, e.toString());
+        }
+    }
+}
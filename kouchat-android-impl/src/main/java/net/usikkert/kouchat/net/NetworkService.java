@@ -22,12 +22,19 @@
 
 package net.usikkert.kouchat.net;
 
+import java.io.IOException;
 import java.net.NetworkInterface;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import net.usikkert.kouchat.event.MessageSentListener;
 import net.usikkert.kouchat.event.NetworkConnectionListener;
 import net.usikkert.kouchat.event.ReceiverListener;
 import net.usikkert.kouchat.misc.Settings;
+import net.usikkert.kouchat.misc.User;
 import net.usikkert.kouchat.util.Validate;
 
 /**
@@ -40,6 +47,9 @@ public class NetworkService implements NetworkConnectionListener {
     /** The logger. */
     private static final Logger LOG = Logger.getLogger(NetworkService.class.getName());
 
+    /** The max number of milliseconds to wait for the waiting messages to be sent, when the network goes down. */
+    private static final long DRAIN_TIMEOUT = 1000;
+
     /** The thread responsible for keeping the network connection up. */
     private final ConnectionWorker connectionWorker;
 
@@ -47,20 +57,77 @@ public class NetworkService implements NetworkConnectionListener {
     private final MessageSender messageSender;
 
     /** The multicast message receiver. */
-    private final MessageReceiver messageReceiver;
+    private final MulticastReceiver messageReceiver;
 
     /** The private message sender. */
     private final UDPSender udpSender;
 
     /** The private message receiver. */
-    private final UDPReceiver udpReceiver;
+    private final UnicastReceiver udpReceiver;
 
     /** If private chat should be enabled. */
     private final boolean privateChatEnabled;
 
+    /** The number of received messages that can wait to be parsed, or <code>0</code> to parse on the receiver threads. */
+    private final int receiveQueueSize;
+
+    /** What to do when a receive queue is full. */
+    private final ReceiverDispatchQueue.OverflowPolicy overflowPolicy;
+
+    /** The queue between the multicast message receiver and its listener, if enabled. */
+    private ReceiverDispatchQueue messageQueue;
+
+    /** The queue between the private message receiver and its listener, if enabled. */
+    private ReceiverDispatchQueue udpQueue;
+
+    /** The application user. */
+    private final User me;
+
+    /** If received messages from users sending too many should be thrown away. */
+    private final boolean floodProtection;
+
+    /** Throws away multicast messages from users sending too many, if enabled. */
+    private FloodFilter messageFloodFilter;
+
+    /** Throws away private messages from users sending too many, if enabled. */
+    private FloodFilter udpFloodFilter;
+
+    /** The event loop handling the network channels, if enabled. */
+    private final NetworkEventLoop eventLoop;
+
+    /** The queue of messages waiting to be sent by the senders. */
+    private final SendQueue sendQueue;
+
+    /** Sends status messages together in batches, if enabled. */
+    private final MessageBatcher messageBatcher;
+
+    /** Splits messages too large for one packet. */
+    private final MessageFragmenter messageFragmenter;
+
+    /** The shared server for incoming file transfers, if enabled. */
+    private final FileTransferServer fileTransferServer;
+
     /**
      * Constructor.
      *
+     * <p>Uses the channel based receivers if {@link Settings#isNioNetwork()} is enabled,
+     * or the socket based receivers otherwise.</p>
+     *
+     * <p>If {@link Settings#isNetworkEventLoop()} is enabled, the channel based receivers
+     * are used with a single {@link NetworkEventLoop} instead of a thread for each.</p>
+     *
+     * <p>If {@link Settings#getReceiveQueueSize()} is more than <code>0</code>, the received messages
+     * are given to the listeners through a {@link ReceiverDispatchQueue}.</p>
+     *
+     * <p>If {@link Settings#isMessageBatching()} is enabled, batched messages are sent through
+     * a {@link MessageBatcher}.</p>
+     *
+     * <p>If {@link Settings#isFloodProtection()} is enabled, the received messages pass through
+     * a {@link FloodFilter} before they are queued or parsed.</p>
+     *
+     * <p>If {@link Settings#isSharedFileTransferPort()} is enabled together with the event loop,
+     * incoming file transfers use a single {@link FileTransferServer}.</p>
+     *
      * @param settings The settings to use.
      */
     public NetworkService(final Settings settings) {
@@ -69,13 +136,63 @@ public class NetworkService implements NetworkConnectionListener {
         LOG.fine("Initializing network");
 
         privateChatEnabled = !settings.isNoPrivateChat();
+        final boolean nioNetwork = settings.isNioNetwork() || settings.isNetworkEventLoop();
+        receiveQueueSize = settings.getReceiveQueueSize();
+        overflowPolicy = ReceiverDispatchQueue.OverflowPolicy.fromName(settings.getReceiveQueueOverflow());
+        me = settings.getMe();
+        floodProtection = settings.isFloodProtection();
+
+        if (settings.isNetworkEventLoop()) {
+            LOG.fine("Using network event loop");
+            eventLoop = new NetworkEventLoop();
+        }
+
+        else {
+            eventLoop = null;
+        }
+
+        if (eventLoop != null && settings.isSharedFileTransferPort()) {
+            LOG.fine("Using shared file transfer port");
+            fileTransferServer = new FileTransferServer(eventLoop);
+        }
+
+        else {
+            fileTransferServer = null;
+        }
+
+        if (nioNetwork) {
+            LOG.fine("Using channel based receivers");
+            messageReceiver = new NioMessageReceiver(eventLoop);
+        }
+
+        else {
+            messageReceiver = new MessageReceiver();
+        }
 
-        messageReceiver = new MessageReceiver();
         messageSender = new MessageSender();
+        sendQueue = new SendQueue();
+        messageFragmenter = new MessageFragmenter(settings.getMe());
+
+        if (settings.isMessageBatching()) {
+            LOG.fine("Using message batching");
+            messageBatcher = new MessageBatcher(sendQueue, messageSender, settings.getMe(), settings.getMessageBatchWindow());
+        }
+
+        else {
+            messageBatcher = null;
+        }
+
         connectionWorker = new ConnectionWorker(settings);
 
         if (privateChatEnabled) {
-            udpReceiver = new UDPReceiver(settings);
+            if (nioNetwork) {
+                udpReceiver = new NioUDPReceiver(settings, eventLoop);
+            }
+
+            else {
+                udpReceiver = new UDPReceiver(settings);
+            }
+
             udpSender = new UDPSender();
         }
 
@@ -96,10 +213,32 @@ public class NetworkService implements NetworkConnectionListener {
     }
 
     /**
-     * Stops the thread responsible for connecting to the network.
+     * Stops the thread responsible for connecting to the network, and the event loop.
      */
     public void disconnect() {
         connectionWorker.stop();
+
+        if (eventLoop != null) {
+            eventLoop.stop();
+        }
+    }
+
+    /**
+     * Gets the event loop handling the network channels.
+     *
+     * @return The event loop, or <code>null</code> if not enabled.
+     */
+    public NetworkEventLoop getEventLoop() {
+        return eventLoop;
+    }
+
+    /**
+     * Gets the shared server for incoming file transfers.
+     *
+     * @return The file transfer server, or <code>null</code> if not enabled.
+     */
+    public FileTransferServer getFileTransferServer() {
+        return fileTransferServer;
     }
 
     /**
@@ -144,7 +283,20 @@ public class NetworkService implements NetworkConnectionListener {
      * @param listener The listener to register.
      */
     public void registerMessageReceiverListener(final ReceiverListener listener) {
-        messageReceiver.registerReceiverListener(listener);
+        ReceiverListener receiverListener = listener;
+
+        if (receiveQueueSize > 0) {
+            messageQueue = new ReceiverDispatchQueue(listener, receiveQueueSize, overflowPolicy, "MessageDispatchWorker");
+            receiverListener = messageQueue;
+        }
+
+        // Before the queue, so floods never fill it up
+        if (floodProtection) {
+            messageFloodFilter = new FloodFilter(receiverListener, me);
+            receiverListener = messageFloodFilter;
+        }
+
+        messageReceiver.registerReceiverListener(receiverListener);
     }
 
     /**
@@ -154,22 +306,139 @@ public class NetworkService implements NetworkConnectionListener {
      */
     public void registerUDPReceiverListener(final ReceiverListener listener) {
         if (privateChatEnabled) {
-            udpReceiver.registerReceiverListener(listener);
+            ReceiverListener receiverListener = listener;
+
+            if (receiveQueueSize > 0) {
+                udpQueue = new ReceiverDispatchQueue(listener, receiveQueueSize, overflowPolicy, "UDPDispatchWorker");
+                receiverListener = udpQueue;
+            }
+
+            if (floodProtection) {
+                udpFloodFilter = new FloodFilter(receiverListener, me);
+                receiverListener = udpFloodFilter;
+            }
+
+            udpReceiver.registerReceiverListener(receiverListener);
         }
     }
 
     /**
-     * Send a message with multicast, to all users.
+     * Gets the queue between the multicast message receiver and its listener.
+     *
+     * @return The queue, or <code>null</code> if the receive queue is disabled.
+     */
+    public ReceiverDispatchQueue getMessageQueue() {
+        return messageQueue;
+    }
+
+    /**
+     * Gets the queue between the private message receiver and its listener.
+     *
+     * @return The queue, or <code>null</code> if the receive queue or private chat is disabled.
+     */
+    public ReceiverDispatchQueue getUDPQueue() {
+        return udpQueue;
+    }
+
+    /**
+     * Gets the flood filter in front of the multicast message listener.
+     *
+     * @return The flood filter, or <code>null</code> if flood protection is disabled.
+     */
+    public FloodFilter getMessageFloodFilter() {
+        return messageFloodFilter;
+    }
+
+    /**
+     * Gets the flood filter in front of the private message listener.
+     *
+     * @return The flood filter, or <code>null</code> if flood protection or private chat is disabled.
+     */
+    public FloodFilter getUDPFloodFilter() {
+        return udpFloodFilter;
+    }
+
+    /**
+     * Send a message with multicast, to all users. Waits until the message is sent.
      *
      * @param message The message to send.
      * @return If the message was sent or not.
      */
     public boolean sendMulticastMsg(final String message) {
-        return messageSender.send(message);
+        return waitForResult(queueMulticastMsg(message));
     }
 
     /**
-     * Send a message with UDP, to a single user.
+     * Adds a message to the send queue, to be sent with multicast to all users.
+     * Does not wait for the message to be sent.
+     *
+     * <p>Messages too large for one packet are sent in several fragments.</p>
+     *
+     * @param message The message to send.
+     * @return If the message was sent or not, when done.
+     */
+    public Future<Boolean> queueMulticastMsg(final String message) {
+        return queueMulticastMsg(message, null);
+    }
+
+    /**
+     * Adds a message to the send queue, to be sent with multicast to all users.
+     * Does not wait for the message to be sent, but notifies the listener when done.
+     *
+     * <p>Messages too large for one packet are sent in several fragments.</p>
+     *
+     * @param message The message to send.
+     * @param listener Notified when the message is done, or <code>null</code>.
+     * @return If the message was sent or not, when done.
+     */
+    public Future<Boolean> queueMulticastMsg(final String message, final MessageSentListener listener) {
+        return sendQueue.add(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                for (final String fragment : messageFragmenter.split(message)) {
+                    if (!messageSender.send(fragment)) {
+                        return false;
+                    }
+                }
+
+                return true;
+            }
+        }, SendPriority.of(message), listener);
+    }
+
+    /**
+     * Send a message with multicast, to all users, in the same packet as other batched messages
+     * if message batching is enabled. Waits until the message is sent.
+     *
+     * <p>All the other users must have {@link Capability#BATCH}.</p>
+     *
+     * @param message The message to send.
+     * @return If the message was sent or not.
+     */
+    public boolean sendBatchedMulticastMsg(final String message) {
+        return waitForResult(queueBatchedMulticastMsg(message));
+    }
+
+    /**
+     * Adds a message to the next batch, to be sent with multicast to all users in the same packet
+     * as other batched messages. The message is added directly to the send queue if message batching
+     * is disabled. Does not wait for the message to be sent.
+     *
+     * <p>All the other users must have {@link Capability#BATCH}.</p>
+     *
+     * @param message The message to send.
+     * @return If the message was sent or not, when done.
+     */
+    public Future<Boolean> queueBatchedMulticastMsg(final String message) {
+        if (messageBatcher != null) {
+            return messageBatcher.add(message);
+        }
+
+        return queueMulticastMsg(message);
+    }
+
+    /**
+     * Send a message with UDP, to a single user. Waits until the message is sent.
      *
      * @param message The message to send.
      * @param ip The ip address of the user.
@@ -177,13 +446,77 @@ public class NetworkService implements NetworkConnectionListener {
      * @return If the message was sent or not.
      */
     public boolean sendUDPMsg(final String message, final String ip, final int port) {
-        if (privateChatEnabled) {
-            return udpSender.send(message, ip, port);
+        return waitForResult(queueUDPMsg(message, ip, port));
+    }
+
+    /**
+     * Adds a message to the send queue, to be sent with UDP to a single user.
+     * Does not wait for the message to be sent.
+     *
+     * <p>Messages too large for one packet are sent in several fragments.</p>
+     *
+     * @param message The message to send.
+     * @param ip The ip address of the user.
+     * @param port The port to send the message to.
+     * @return If the message was sent or not, when done.
+     */
+    public Future<Boolean> queueUDPMsg(final String message, final String ip, final int port) {
+        return queueUDPMsg(message, ip, port, null);
+    }
+
+    /**
+     * Adds a message to the send queue, to be sent with UDP to a single user.
+     * Does not wait for the message to be sent, but notifies the listener when done.
+     *
+     * <p>Messages too large for one packet are sent in several fragments.</p>
+     *
+     * @param message The message to send.
+     * @param ip The ip address of the user.
+     * @param port The port to send the message to.
+     * @param listener Notified when the message is done, or <code>null</code>.
+     * @return If the message was sent or not, when done.
+     */
+    public Future<Boolean> queueUDPMsg(final String message, final String ip, final int port,
+                                       final MessageSentListener listener) {
+        return sendQueue.add(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                if (!privateChatEnabled) {
+                    return false;
+                }
+
+                for (final String fragment : messageFragmenter.split(message)) {
+                    if (!udpSender.send(fragment, ip, port)) {
+                        return false;
+                    }
+                }
+
+                return true;
+            }
+        }, SendPriority.of(message), listener);
+    }
+
+    /**
+     * Waits for a queued message to be sent.
+     *
+     * @param result The result of sending the message.
+     * @return If the message was sent or not.
+     */
+    public boolean waitForResult(final Future<Boolean> result) {
+        try {
+            return result.get();
         }
 
-        else {
-            return false;
+        catch (final InterruptedException e) {
+            LOG.log(Level.WARNING, "Interrupted while waiting for message to be sent");
+            Thread.currentThread().interrupt();
+        }
+
+        catch (final ExecutionException e) {
+            LOG.log(Level.SEVERE, e.getCause().toString(), e.getCause());
         }
+
+        return false;
     }
 
     /**
@@ -195,12 +528,34 @@ public class NetworkService implements NetworkConnectionListener {
     }
 
     /**
-     * Stops all senders and receivers.
+     * Stops the file transfer server, the message batcher, the send queue, all senders and receivers,
+     * and then the receive queues. The messages waiting in the message batcher and the send queue
+     * are given some time to be sent before the senders are stopped.
      *
      * {@inheritDoc}
      */
     @Override
     public void networkWentDown(final boolean silent) {
+        if (fileTransferServer != null) {
+            fileTransferServer.stop();
+        }
+
+        final long drainEnd = System.currentTimeMillis() + DRAIN_TIMEOUT;
+
+        if (messageBatcher != null) {
+            messageBatcher.stop();
+
+            if (!messageBatcher.awaitStop(DRAIN_TIMEOUT)) {
+                LOG.log(Level.WARNING, "Timed out waiting for the message batcher to stop");
+            }
+        }
+
+        sendQueue.stop();
+
+        if (!sendQueue.awaitStop(Math.max(1, drainEnd - System.currentTimeMillis()))) {
+            LOG.log(Level.WARNING, "Timed out waiting for the send queue to send the waiting messages");
+        }
+
         if (privateChatEnabled) {
             udpSender.stopSender();
             udpReceiver.stopReceiver();
@@ -208,6 +563,14 @@ public class NetworkService implements NetworkConnectionListener {
 
         messageSender.stopSender();
         messageReceiver.stopReceiver();
+
+        if (udpQueue != null) {
+            udpQueue.stop();
+        }
+
+        if (messageQueue != null) {
+            messageQueue.stop();
+        }
     }
 
     @Override
@@ -216,12 +579,25 @@ public class NetworkService implements NetworkConnectionListener {
     }
 
     /**
-     * Starts all senders and receivers.
+     * Starts the receive queues, all senders and receivers, then the send queue and the message batcher,
+     * and finally the file transfer server.
      *
      * {@inheritDoc}
      */
     @Override
     public void networkCameUp(final boolean silent) {
+        if (eventLoop != null) {
+            startEventLoop();
+        }
+
+        if (messageQueue != null) {
+            messageQueue.start();
+        }
+
+        if (udpQueue != null) {
+            udpQueue.start();
+        }
+
         if (privateChatEnabled) {
             udpSender.startSender();
             udpReceiver.startReceiver();
@@ -230,5 +606,40 @@ public class NetworkService implements NetworkConnectionListener {
         final NetworkInterface currentNetworkInterface = connectionWorker.getCurrentNetworkInterface();
         messageSender.startSender(currentNetworkInterface);
         messageReceiver.startReceiver(currentNetworkInterface);
+        sendQueue.start();
+
+        if (messageBatcher != null) {
+            messageBatcher.start();
+        }
+
+        if (fileTransferServer != null) {
+            startFileTransferServer();
+        }
+    }
+
+    /**
+     * Starts the shared file transfer server. If it fails, each file transfer opens its own server instead.
+     */
+    private void startFileTransferServer() {
+        try {
+            fileTransferServer.start();
+        }
+
+        catch (final ServerException e) {
+            LOG.log(Level.SEVERE, "Could not start the file transfer server: " + e.toString(), e);
+        }
+    }
+
+    /**
+     * Starts the event loop, if not already running.
+     */
+    private void startEventLoop() {
+        try {
+            eventLoop.start();
+        }
+
+        catch (final IOException e) {
+            LOG.log(Level.SEVERE, "Could not start the network event loop: " + e.toString(), e);
+        }
     }
 }
@@ -0,0 +1,439 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.usikkert.kouchat.Constants;
+import net.usikkert.kouchat.event.ReceiverListener;
+import net.usikkert.kouchat.misc.ErrorHandler;
+import net.usikkert.kouchat.util.Tools;
+
+/**
+ * This is the thread that listens for multicast messages from
+ * the network using a {@link DatagramChannel}, and notifies any listeners
+ * when messages arrive.
+ *
+ * <p>Unlike {@link MessageReceiver}, no objects are created for each datagram
+ * when the listener is a {@link net.usikkert.kouchat.event.ByteReceiverListener}.</p>
+ *
+ * <p>Datagram channels can not join multicast groups before Java 7 (and Android API 24).
+ * The channel joins the group itself when supported, and a network interface is available.
+ * If not, the group is joined by a separate multicast socket on an unused port. Group membership
+ * is then per network interface, so the channel bound to the chat port gets the messages.</p>
+ *
+ * @author Christian Ihle
+ */
+public class NioMessageReceiver implements MulticastReceiver, Runnable, NetworkEventLoop.ChannelHandler {
+
+    /** The logger. */
+    private static final Logger LOG = Logger.getLogger(NioMessageReceiver.class.getName());
+
+    /** The max number of datagrams to receive each time the event loop notifies about the channel. */
+    private static final int MAX_DATAGRAMS_PER_EVENT = 64;
+
+    /** Milliseconds to pause after an error, before receiving again. */
+    private static final int ERROR_PAUSE = 500;
+
+    /** Reads the datagrams from the channel. */
+    private final ChannelPacketReader packetReader;
+
+    /** The port to receive messages on. */
+    private final int port;
+
+    /** The event loop to receive with, or <code>null</code> to use a separate thread. */
+    private final NetworkEventLoop eventLoop;
+
+    /** The channel used for receiving messages. */
+    private volatile DatagramChannel channel;
+
+    /** The multicast socket used only for joining the multicast group, when the channel can't join. */
+    private MulticastSocket groupSocket;
+
+    /** The inetaddress object with the multicast ip address to receive messages from. */
+    private InetAddress address;
+
+    /** The listener getting all the messages received here. */
+    private ReceiverListener listener;
+
+    /** If connected to the network or not. */
+    private volatile boolean connected;
+
+    /** The background thread watching for messages from the network. */
+    private Thread worker;
+
+    /**
+     * Default constructor.
+     *
+     * <p>Initializes the network with the default ip address and port.</p>
+     *
+     * @see Constants#NETWORK_IP
+     * @see Constants#NETWORK_CHAT_PORT
+     */
+    public NioMessageReceiver() {
+        this(Constants.NETWORK_IP, Constants.NETWORK_CHAT_PORT, null);
+    }
+
+    /**
+     * Constructor for receiving messages with an event loop.
+     *
+     * <p>Initializes the network with the default ip address and port.</p>
+     *
+     * @param eventLoop The event loop to receive with, or <code>null</code> to use a separate thread.
+     */
+    public NioMessageReceiver(final NetworkEventLoop eventLoop) {
+        this(Constants.NETWORK_IP, Constants.NETWORK_CHAT_PORT, eventLoop);
+    }
+
+    /**
+     * Alternative constructor.
+     *
+     * <p>Initializes the network with the given ip address and port.</p>
+     *
+     * @param ipAddress Multicast ip address to connect to.
+     * @param port Port to connect to.
+     * @param eventLoop The event loop to receive with, or <code>null</code> to use a separate thread.
+     */
+    public NioMessageReceiver(final String ipAddress, final int port, final NetworkEventLoop eventLoop) {
+        LOG.fine("Creating NioMessageReceiver on " + ipAddress + ":" + port);
+
+        this.port = port;
+        this.eventLoop = eventLoop;
+        packetReader = new ChannelPacketReader();
+
+        try {
+            address = InetAddress.getByName(ipAddress);
+        }
+
+        catch (final IOException e) {
+            LOG.log(Level.SEVERE, e.toString(), e);
+
+            final ErrorHandler errorHandler = ErrorHandler.getErrorHandler();
+            errorHandler.showCriticalError("Failed to initialize the network:\n" + e + "\n" +
+                    Constants.APP_NAME + " will now shutdown.");
+
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Waits for incoming datagrams, and notifies the listener when they arrive.
+     *
+     * <p>Stops when the channel is closed, unless the receiver has been restarted with a new channel.
+     * Pauses a little after other errors, so a network that is down does not keep the thread busy.</p>
+     */
+    public void run() {
+        while (connected) {
+            final DatagramChannel currentChannel = channel;
+
+            if (currentChannel == null || !currentChannel.isOpen()) {
+                if (stopWorker(currentChannel)) {
+                    return;
+                }
+
+                continue;
+            }
+
+            try {
+                packetReader.receive(currentChannel, listener);
+            }
+
+            // Happens when the channel is closed
+            catch (final ClosedChannelException e) {
+                LOG.log(Level.FINE, e.toString());
+
+                if (stopWorker(currentChannel)) {
+                    return;
+                }
+            }
+
+            // Happens when the network is down
+            catch (final IOException e) {
+                if (connected) {
+                    LOG.log(Level.WARNING, e.toString());
+                    Tools.sleep(ERROR_PAUSE);
+                }
+
+                else {
+                    LOG.log(Level.FINE, e.toString());
+                }
+            }
+        }
+    }
+
+    /**
+     * Decides if the thread should stop, after the channel it received on was closed.
+     *
+     * <p>Synchronized with {@link #startReceiver(NetworkInterface)}, so a restart either finds the thread
+     * gone and starts a new one, or the thread continues with the new channel.</p>
+     *
+     * @param closedChannel The channel that was closed, or <code>null</code>.
+     * @return If the thread should stop.
+     */
+    private synchronized boolean stopWorker(final DatagramChannel closedChannel) {
+        final DatagramChannel currentChannel = channel;
+
+        if (connected && currentChannel != null && currentChannel != closedChannel && currentChannel.isOpen()) {
+            return false;
+        }
+
+        if (connected) {
+            LOG.log(Level.WARNING, "The channel was closed while connected. Stopping.");
+        }
+
+        worker = null;
+
+        return true;
+    }
+
+    /**
+     * Receives the waiting datagrams, when notified by the event loop.
+     *
+     * @param key The selection key of the channel.
+     */
+    @Override
+    public void channelReady(final SelectionKey key) {
+        try {
+            packetReader.receiveAvailable((DatagramChannel) key.channel(), listener, MAX_DATAGRAMS_PER_EVENT);
+        }
+
+        catch (final IOException e) {
+            if (connected) {
+                LOG.log(Level.WARNING, e.toString());
+            }
+
+            else {
+                LOG.log(Level.FINE, e.toString());
+            }
+        }
+    }
+
+    /**
+     * Starts the thread that listens for messages.
+     */
+    private void startThread() {
+        LOG.log(Level.FINE, "Starting.");
+        worker = new Thread(this, "NioMessageReceiverWorker");
+        worker.start();
+    }
+
+    /**
+     * Opens the channel, joins the multicast group with the given network interface,
+     * or gives the control to the operating system to choose if <code>null</code> is given.
+     *
+     * <p>Will also start a thread to continuously receive messages,
+     * or register the channel with the event loop.</p>
+     *
+     * @param networkInterface The network interface to use, or <code>null</code>.
+     * @return If connected to the network or not.
+     */
+    @Override
+    public synchronized boolean startReceiver(final NetworkInterface networkInterface) {
+        LOG.log(Level.FINE, "Connecting to " + address.getHostAddress() + ":" + port + " on " + networkInterface);
+
+        try {
+            if (connected) {
+                LOG.log(Level.FINE, "Already connected.");
+            }
+
+            else {
+                if (channel == null) {
+                    channel = DatagramChannel.open();
+                    channel.socket().setReuseAddress(true);
+                    channel.socket().bind(new InetSocketAddress(port));
+                }
+
+                if (!joinGroupWithChannel(networkInterface)) {
+                    joinGroupWithSocket(networkInterface);
+                }
+
+                connected = true;
+
+                if (eventLoop != null) {
+                    eventLoop.register(channel, SelectionKey.OP_READ, this);
+                }
+            }
+        }
+
+        catch (final IOException e) {
+            LOG.log(Level.SEVERE, "Could not start receiver: " + e.toString(), e);
+            closeGroupSocket();
+            closeChannel();
+        }
+
+        if (connected && eventLoop == null && (worker == null || !worker.isAlive())) {
+            startThread();
+        }
+
+        return connected;
+    }
+
+    /**
+     * Leaves the multicast group, and closes the channel.
+     */
+    @Override
+    public synchronized void stopReceiver() {
+        LOG.log(Level.FINE, "Disconnecting from " + address.getHostAddress() + ":" + port);
+
+        if (!connected) {
+            LOG.log(Level.FINE, "Not connected.");
+        }
+
+        else {
+            connected = false;
+
+            try {
+                if (groupSocket != null && !groupSocket.isClosed()) {
+                    groupSocket.leaveGroup(address);
+                }
+            }
+
+            catch (final IOException e) {
+                LOG.log(Level.WARNING, e.toString());
+            }
+
+            // Closing the channel also drops any membership the channel has
+            closeGroupSocket();
+            closeChannel();
+
+            LOG.log(Level.FINE, "Disconnected from " + address.getHostAddress() + ":" + port);
+        }
+    }
+
+    /**
+     * Joins the multicast group with the channel, if supported by the platform.
+     *
+     * <p>Uses reflection, as <code>DatagramChannel.join()</code> is not available in Java 6.</p>
+     *
+     * @param networkInterface The network interface to join the group on, or <code>null</code>.
+     * @return If the channel joined the group.
+     * @throws IOException If the channel supports joining, but failed to join.
+     */
+    private boolean joinGroupWithChannel(final NetworkInterface networkInterface) throws IOException {
+        if (networkInterface == null) {
+            return false;
+        }
+
+        try {
+            final Method join = DatagramChannel.class.getMethod("join", InetAddress.class, NetworkInterface.class);
+            join.invoke(channel, address, networkInterface);
+            LOG.log(Level.FINE, "Channel joined group on " + networkInterface.getName());
+
+            return true;
+        }
+
+        catch (final NoSuchMethodException e) {
+            LOG.log(Level.FINE, "Channel can not join groups on this platform");
+            return false;
+        }
+
+        catch (final IllegalAccessException e) {
+            LOG.log(Level.WARNING, e.toString());
+            return false;
+        }
+
+        catch (final InvocationTargetException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+
+            LOG.log(Level.WARNING, e.getCause().toString());
+            return false;
+        }
+    }
+
+    /**
+     * Joins the multicast group with a separate multicast socket on an unused port.
+     *
+     * @param networkInterface The network interface to use, or <code>null</code>.
+     * @throws IOException If the socket failed to join.
+     */
+    private void joinGroupWithSocket(final NetworkInterface networkInterface) throws IOException {
+        if (groupSocket == null) {
+            groupSocket = new MulticastSocket();
+        }
+
+        if (networkInterface != null) {
+            groupSocket.setNetworkInterface(networkInterface);
+        }
+
+        groupSocket.joinGroup(address);
+    }
+
+    /**
+     * Closes the multicast socket used for the group membership, if open.
+     */
+    private void closeGroupSocket() {
+        if (groupSocket != null) {
+            if (!groupSocket.isClosed()) {
+                groupSocket.close();
+            }
+
+            groupSocket = null;
+        }
+    }
+
+    /**
+     * Closes the channel, if open. Any thread blocking on the channel will get an exception.
+     * The event loop is woken up to release the channel.
+     */
+    private void closeChannel() {
+        if (channel != null) {
+            try {
+                channel.close();
+            }
+
+            catch (final IOException e) {
+                LOG.log(Level.WARNING, e.toString());
+            }
+
+            channel = null;
+
+            if (eventLoop != null) {
+                eventLoop.wakeup();
+            }
+        }
+    }
+
+    /**
+     * Registers as the listener to receive all the messages from
+     * the network.
+     *
+     * @param listener The listener to register.
+     */
+    @Override
+    public void registerReceiverListener(final ReceiverListener listener) {
+        this.listener = listener;
+    }
+}
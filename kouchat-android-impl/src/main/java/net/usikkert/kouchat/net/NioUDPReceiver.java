@@ -0,0 +1,279 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.usikkert.kouchat.Constants;
+import net.usikkert.kouchat.event.ReceiverListener;
+import net.usikkert.kouchat.misc.ErrorHandler;
+import net.usikkert.kouchat.misc.Settings;
+import net.usikkert.kouchat.misc.User;
+import net.usikkert.kouchat.util.Tools;
+import net.usikkert.kouchat.util.Validate;
+
+/**
+ * Receives UDP packets sent directly to the IP address
+ * of this machine, using a {@link DatagramChannel}.
+ *
+ * <p>Unlike {@link UDPReceiver}, no objects are created for each datagram
+ * when the listener is a {@link net.usikkert.kouchat.event.ByteReceiverListener}.</p>
+ *
+ * <p>If a {@link NetworkEventLoop} is given, the channel is registered with the event loop
+ * instead of using a separate thread.</p>
+ *
+ * @author Christian Ihle
+ */
+public class NioUDPReceiver implements UnicastReceiver, Runnable, NetworkEventLoop.ChannelHandler {
+
+    /** The logger. */
+    private static final Logger LOG = Logger.getLogger(NioUDPReceiver.class.getName());
+
+    /** The max number of datagrams to receive each time the event loop notifies about the channel. */
+    private static final int MAX_DATAGRAMS_PER_EVENT = 64;
+
+    /** Milliseconds to pause after an error, before receiving again. */
+    private static final int ERROR_PAUSE = 500;
+
+    /** Reads the datagrams from the channel. */
+    private final ChannelPacketReader packetReader;
+
+    /** The error handler for registering important messages. */
+    private final ErrorHandler errorHandler;
+
+    /** The application user. */
+    private final User me;
+
+    /** The event loop to receive with, or <code>null</code> to use a separate thread. */
+    private final NetworkEventLoop eventLoop;
+
+    /** The channel used for receiving messages. */
+    private volatile DatagramChannel channel;
+
+    /** The listener getting all the messages received here. */
+    private ReceiverListener listener;
+
+    /** If connected to the network or not. */
+    private volatile boolean connected;
+
+    /**
+     * Default constructor.
+     *
+     * @param settings The settings to use.
+     */
+    public NioUDPReceiver(final Settings settings) {
+        this(settings, null);
+    }
+
+    /**
+     * Constructor for receiving messages with an event loop.
+     *
+     * @param settings The settings to use.
+     * @param eventLoop The event loop to receive with, or <code>null</code> to use a separate thread.
+     */
+    public NioUDPReceiver(final Settings settings, final NetworkEventLoop eventLoop) {
+        Validate.notNull(settings, "Settings can not be null");
+
+        this.eventLoop = eventLoop;
+        errorHandler = ErrorHandler.getErrorHandler();
+        me = settings.getMe();
+        packetReader = new ChannelPacketReader();
+    }
+
+    /**
+     * Waits for incoming datagrams, and notifies the listener when they arrive.
+     *
+     * <p>Stops when the channel is closed. A new thread is started for the new channel if the receiver
+     * is restarted. Pauses a little after other errors, so a network that is down does not keep the thread busy.</p>
+     */
+    public void run() {
+        while (connected) {
+            final DatagramChannel currentChannel = channel;
+
+            if (currentChannel == null || !currentChannel.isOpen()) {
+                LOG.log(Level.FINE, "The channel is closed. Stopping.");
+                return;
+            }
+
+            try {
+                packetReader.receive(currentChannel, listener);
+            }
+
+            // Happens when the channel is closed
+            catch (final ClosedChannelException e) {
+                LOG.log(Level.FINE, e.toString());
+                return;
+            }
+
+            // Happens when the network is down
+            catch (final IOException e) {
+                if (connected) {
+                    LOG.log(Level.WARNING, e.toString());
+                    Tools.sleep(ERROR_PAUSE);
+                }
+
+                else {
+                    LOG.log(Level.FINE, e.toString());
+                }
+            }
+        }
+    }
+
+    /**
+     * Receives the waiting datagrams, when notified by the event loop.
+     *
+     * @param key The selection key of the channel.
+     */
+    @Override
+    public void channelReady(final SelectionKey key) {
+        try {
+            packetReader.receiveAvailable((DatagramChannel) key.channel(), listener, MAX_DATAGRAMS_PER_EVENT);
+        }
+
+        catch (final IOException e) {
+            if (connected) {
+                LOG.log(Level.WARNING, e.toString());
+            }
+
+            else {
+                LOG.log(Level.FINE, e.toString());
+            }
+        }
+    }
+
+    /**
+     * Opens a new channel, and starts a thread listening
+     * on the UDP port, or registers the channel with the event loop.
+     * If the UDP port is in use, a new port will be tried instead.
+     */
+    @Override
+    public void startReceiver() {
+        LOG.log(Level.FINE, "Connecting...");
+
+        if (connected) {
+            LOG.log(Level.FINE, "Already connected.");
+        }
+
+        else {
+            int port = Constants.NETWORK_PRIVCHAT_PORT;
+            int counter = 0;
+
+            while (counter < 50 && !connected) {
+                try {
+                    channel = DatagramChannel.open();
+                    channel.socket().bind(new InetSocketAddress(port));
+                    connected = true;
+
+                    if (eventLoop != null) {
+                        eventLoop.register(channel, SelectionKey.OP_READ, this);
+                    }
+
+                    else {
+                        // The background thread watching for messages from the network.
+                        final Thread worker = new Thread(this, "NioUDPReceiverWorker");
+                        worker.start();
+                    }
+
+                    me.setPrivateChatPort(port);
+                    LOG.log(Level.FINE, "Connected to port " + port);
+                }
+
+                catch (final IOException e) {
+                    LOG.log(Level.SEVERE, e.toString() + " " + port);
+                    closeChannel();
+
+                    counter++;
+                    port++;
+                    me.setPrivateChatPort(0);
+                }
+            }
+
+            if (!connected) {
+                final String error = "Failed to initialize udp network:" +
+                        "\nNo available listening port between " + Constants.NETWORK_PRIVCHAT_PORT +
+                        " and " + (port - 1) + "." +
+                        "\n\nYou will not be able to receive private messages!";
+
+                LOG.log(Level.SEVERE, error);
+                errorHandler.showError(error);
+            }
+        }
+    }
+
+    /**
+     * Closes the channel, and stops the thread.
+     */
+    @Override
+    public void stopReceiver() {
+        LOG.log(Level.FINE, "Disconnecting...");
+
+        if (!connected) {
+            LOG.log(Level.FINE, "Not connected.");
+        }
+
+        else {
+            connected = false;
+            closeChannel();
+
+            LOG.log(Level.FINE, "Disconnected.");
+        }
+    }
+
+    /**
+     * Closes the channel, if open. Any thread blocking on the channel will get an exception.
+     */
+    private void closeChannel() {
+        if (channel != null) {
+            try {
+                channel.close();
+            }
+
+            catch (final IOException e) {
+                LOG.log(Level.WARNING, e.toString());
+            }
+
+            channel = null;
+
+            if (eventLoop != null) {
+                eventLoop.wakeup();
+            }
+        }
+    }
+
+    /**
+     * Sets the listener who will receive all the messages
+     * from the UDP packets.
+     *
+     * @param listener The object to register as a listener.
+     */
+    @Override
+    public void registerReceiverListener(final ReceiverListener listener) {
+        this.listener = listener;
+    }
+}
@@ -0,0 +1,477 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import net.usikkert.kouchat.util.Validate;
+
+/**
+ * Transfers a file in chunks over several connections at the same time.
+ *
+ * <p>The file is split into chunks of {@link #CHUNK_SIZE} bytes. Each connection has its own thread,
+ * and the sending threads take the next chunk that is not sent yet, so a slow connection
+ * only sends fewer chunks. Each chunk starts with a header with the position of the chunk in the file
+ * and its length, so the receiver can write it at the correct position in the preallocated file.</p>
+ *
+ * <p>When a sender has no more chunks to send, it shuts down the output of the connection. The receiver
+ * reads chunks from each connection until the connection is shut down.</p>
+ *
+ * <p>If checksums are used, each chunk is followed by the checksum of the chunk, computed while sending it.
+ * The receiver computes the checksum while receiving, and fails the transfer if they don't match.</p>
+ *
+ * <p>The progress is shared by all the threads, so it must be thread safe.</p>
+ *
+ * @author Christian Ihle
+ */
+class ParallelTransfer {
+
+    /** The logger. */
+    private static final Logger LOG = Logger.getLogger(ParallelTransfer.class.getName());
+
+    /** The max number of connections to use for a single file transfer. */
+    static final int MAX_STREAMS = 8;
+
+    /** The number of bytes in each chunk. */
+    static final int CHUNK_SIZE = 1024 * 1024;
+
+    /** The smallest file worth splitting over several connections. */
+    static final long MIN_FILE_SIZE = 4L * CHUNK_SIZE;
+
+    /** The size of the chunk header: the position as a long, and the length as an int. */
+    private static final int HEADER_SIZE = 12;
+
+    /** The file to send from or receive to. */
+    private final FileChannel file;
+
+    /** The size of the file. */
+    private final long size;
+
+    /** The connections to use, one for each thread. */
+    private final List<SocketChannel> connections;
+
+    /** The progress of the transfer, shared by all the threads. */
+    private final FileCopier.Progress progress;
+
+    /** The number of chunks in the file. */
+    private final int chunkCount;
+
+    /** The chunks that have been transferred. */
+    private final BitSet completedChunks;
+
+    /** The checksums of the chunks, or <code>null</code> if checksums are not used. */
+    private final long[] chunkChecksums;
+
+    /** The next chunk to send. */
+    private int nextChunk;
+
+    /** If one of the connections failed. */
+    private boolean failed;
+
+    /**
+     * Constructor.
+     *
+     * @param file The file to send from or receive to.
+     * @param size The size of the file.
+     * @param connections The connections to use, in blocking mode.
+     * @param progress The progress of the transfer, shared by all the threads. Must be thread safe.
+     * @param checksums If each chunk should be followed by its checksum.
+     */
+    ParallelTransfer(final FileChannel file, final long size, final List<SocketChannel> connections,
+                     final FileCopier.Progress progress, final boolean checksums) {
+        Validate.notNull(file, "File can not be null");
+        Validate.notNull(connections, "Connections can not be null");
+        Validate.notNull(progress, "Progress can not be null");
+
+        this.file = file;
+        this.size = size;
+        this.connections = connections;
+        this.progress = progress;
+
+        chunkCount = getChunkCount(size);
+        completedChunks = new BitSet(chunkCount);
+
+        if (checksums) {
+            chunkChecksums = new long[chunkCount];
+        }
+
+        else {
+            chunkChecksums = null;
+        }
+    }
+
+    /**
+     * Gets the number of chunks a file of the given size is split into.
+     *
+     * @param size The size of the file.
+     * @return The number of chunks.
+     */
+    static int getChunkCount(final long size) {
+        return (int) ((size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+    }
+
+    /**
+     * Sends the file over all the connections. Returns when all the chunks are sent,
+     * or the transfer failed or was canceled.
+     *
+     * @return If all the chunks were sent.
+     */
+    public boolean send() {
+        runWorkers(true);
+
+        return isComplete();
+    }
+
+    /**
+     * Receives the file from all the connections. Returns when all the connections are shut down,
+     * or the transfer failed or was canceled.
+     *
+     * @return If all the chunks were received.
+     */
+    public boolean receive() {
+        runWorkers(false);
+
+        return isComplete();
+    }
+
+    /**
+     * Gets a checksum of the whole file, computed from the checksums of all the chunks, in order.
+     * The sender and the receiver get the same value when all the chunks are transferred.
+     *
+     * @return The checksum, or <code>-1</code> if checksums are not used.
+     */
+    public synchronized long getChecksum() {
+        if (chunkChecksums == null) {
+            return -1;
+        }
+
+        final CRC32 checksum = new CRC32();
+        final ByteBuffer buffer = ByteBuffer.allocate(ChecksumExchange.CHECKSUM_SIZE);
+
+        for (final long chunkChecksum : chunkChecksums) {
+            buffer.clear();
+            buffer.putLong(chunkChecksum);
+            checksum.update(buffer.array(), 0, ChecksumExchange.CHECKSUM_SIZE);
+        }
+
+        return checksum.getValue();
+    }
+
+    /**
+     * Closes all the connections. Threads using the connections will stop with an exception.
+     */
+    public void close() {
+        for (final SocketChannel connection : connections) {
+            try {
+                connection.close();
+            }
+
+            catch (final IOException e) {
+                LOG.log(Level.FINE, e.toString());
+            }
+        }
+    }
+
+    /**
+     * Checks if all the chunks have been transferred, without any failures.
+     *
+     * @return If the transfer is complete.
+     */
+    private synchronized boolean isComplete() {
+        return !failed && completedChunks.cardinality() == chunkCount;
+    }
+
+    /**
+     * Transfers using a thread for each connection, and waits for all of them to finish.
+     * The current thread handles the first connection.
+     *
+     * @param sending If sending or receiving.
+     */
+    private void runWorkers(final boolean sending) {
+        final List<Thread> threads = new ArrayList<Thread>();
+
+        for (int i = 1; i < connections.size(); i++) {
+            final Thread thread = new Thread(new Worker(connections.get(i), sending), "ParallelTransferWorker" + i);
+            thread.start();
+            threads.add(thread);
+        }
+
+        new Worker(connections.get(0), sending).run();
+
+        for (final Thread thread : threads) {
+            try {
+                thread.join();
+            }
+
+            catch (final InterruptedException e) {
+                LOG.log(Level.SEVERE, e.toString(), e);
+            }
+        }
+    }
+
+    /**
+     * Takes the next chunk to send.
+     *
+     * @return The index of the chunk, or <code>-1</code> if there are no more chunks to send.
+     */
+    private synchronized int takeNextChunk() {
+        if (failed || nextChunk >= chunkCount || progress.isCanceled()) {
+            return -1;
+        }
+
+        return nextChunk++;
+    }
+
+    /**
+     * Registers that a chunk has been transferred.
+     *
+     * @param chunk The index of the chunk.
+     * @param checksum The checksum of the chunk, or <code>null</code> if checksums are not used.
+     * @return If the chunk was new, and not transferred before.
+     */
+    private synchronized boolean completeChunk(final int chunk, final CRC32 checksum) {
+        if (completedChunks.get(chunk)) {
+            return false;
+        }
+
+        completedChunks.set(chunk);
+
+        if (checksum != null) {
+            chunkChecksums[chunk] = checksum.getValue();
+        }
+
+        return true;
+    }
+
+    /**
+     * Registers that a connection failed, and stops the other connections.
+     *
+     * @param e The reason for the failure.
+     */
+    private void fail(final IOException e) {
+        synchronized (this) {
+            if (failed) {
+                return;
+            }
+
+            failed = true;
+        }
+
+        if (!progress.isCanceled()) {
+            LOG.log(Level.SEVERE, e.toString());
+        }
+
+        close();
+    }
+
+    /**
+     * Gets the length of the chunk.
+     *
+     * @param chunk The index of the chunk.
+     * @return The number of bytes in the chunk.
+     */
+    private int getChunkLength(final int chunk) {
+        return (int) Math.min(CHUNK_SIZE, size - (long) chunk * CHUNK_SIZE);
+    }
+
+    /**
+     * Transfers chunks over a single connection.
+     */
+    private class Worker implements Runnable {
+
+        /** The connection to use. */
+        private final SocketChannel connection;
+
+        /** If sending or receiving. */
+        private final boolean sending;
+
+        /** Copies the chunks. One for each connection, since it is not thread safe. */
+        private final FileCopier copier;
+
+        /** The chunk header. */
+        private final ByteBuffer header;
+
+        /** The checksum of the current chunk, or <code>null</code> if checksums are not used. */
+        private final CRC32 checksum;
+
+        /**
+         * Constructor.
+         *
+         * @param connection The connection to use.
+         * @param sending If sending or receiving.
+         */
+        Worker(final SocketChannel connection, final boolean sending) {
+            this.connection = connection;
+            this.sending = sending;
+
+            copier = new FileCopier(progress);
+            header = ByteBuffer.allocate(HEADER_SIZE);
+
+            if (chunkChecksums != null) {
+                checksum = new CRC32();
+            }
+
+            else {
+                checksum = null;
+            }
+        }
+
+        /**
+         * Sends or receives chunks until there are no more.
+         */
+        @Override
+        public void run() {
+            try {
+                if (sending) {
+                    sendChunks();
+                }
+
+                else {
+                    receiveChunks();
+                }
+            }
+
+            catch (final IOException e) {
+                fail(e);
+            }
+        }
+
+        /**
+         * Sends chunks until all are taken, and then shuts down the output of the connection.
+         *
+         * @throws IOException If reading the file or sending failed.
+         */
+        private void sendChunks() throws IOException {
+            int chunk = takeNextChunk();
+
+            while (chunk != -1) {
+                final long position = (long) chunk * CHUNK_SIZE;
+                final int length = getChunkLength(chunk);
+
+                header.clear();
+                header.putLong(position).putInt(length).flip();
+
+                while (header.hasRemaining()) {
+                    connection.write(header);
+                }
+
+                resetChecksum();
+
+                if (copier.send(file, connection, position, position + length, checksum) != length) {
+                    // Either canceled, or the file is shorter than expected
+                    if (progress.isCanceled()) {
+                        return;
+                    }
+
+                    throw new IOException("Could not read chunk " + chunk + " from the file");
+                }
+
+                if (checksum != null) {
+                    ChecksumExchange.writeChecksum(connection, checksum.getValue());
+                }
+
+                completeChunk(chunk, checksum);
+                chunk = takeNextChunk();
+            }
+
+            connection.socket().shutdownOutput();
+        }
+
+        /**
+         * Receives chunks until the other side shuts down the connection.
+         *
+         * @throws IOException If receiving or writing to the file failed, or a chunk was invalid.
+         */
+        private void receiveChunks() throws IOException {
+            while (!progress.isCanceled() && readHeader()) {
+                final long position = header.getLong();
+                final int length = header.getInt();
+                final int chunk = (int) (position / CHUNK_SIZE);
+
+                if (position < 0 || position % CHUNK_SIZE != 0 || chunk >= chunkCount || length != getChunkLength(chunk)) {
+                    throw new IOException("Invalid chunk: position " + position + ", length " + length);
+                }
+
+                resetChecksum();
+
+                if (copier.receive(connection, file, position, position + length, checksum) != length) {
+                    if (progress.isCanceled()) {
+                        return;
+                    }
+
+                    throw new IOException("Connection closed in the middle of chunk " + chunk);
+                }
+
+                if (checksum != null && ChecksumExchange.readChecksum(connection) != checksum.getValue()) {
+                    throw new IOException("Checksum mismatch in chunk " + chunk);
+                }
+
+                if (!completeChunk(chunk, checksum)) {
+                    throw new IOException("Chunk " + chunk + " received twice");
+                }
+            }
+        }
+
+        /**
+         * Resets the checksum before the next chunk, if checksums are used.
+         */
+        private void resetChecksum() {
+            if (checksum != null) {
+                checksum.reset();
+            }
+        }
+
+        /**
+         * Reads the header of the next chunk.
+         *
+         * @return If a header was read, or <code>false</code> if the connection was shut down.
+         * @throws IOException If reading failed, or the connection was shut down in the middle of the header.
+         */
+        private boolean readHeader() throws IOException {
+            header.clear();
+
+            while (header.hasRemaining()) {
+                if (connection.read(header) == -1) {
+                    if (header.position() == 0) {
+                        return false;
+                    }
+
+                    throw new IOException("Connection closed in the middle of a chunk header");
+                }
+            }
+
+            header.flip();
+
+            return true;
+        }
+    }
+}
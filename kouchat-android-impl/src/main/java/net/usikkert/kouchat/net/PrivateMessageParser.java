@@ -22,10 +22,11 @@
 
 package net.usikkert.kouchat.net;
 
+import java.nio.ByteBuffer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import net.usikkert.kouchat.event.ReceiverListener;
+import net.usikkert.kouchat.event.ByteReceiverListener;
 import net.usikkert.kouchat.misc.Settings;
 import net.usikkert.kouchat.misc.User;
 import net.usikkert.kouchat.util.Validate;
@@ -34,15 +35,24 @@ import net.usikkert.kouchat.util.Validate;
  * This class listens for udp messages from the network,
  * and parses them into a format the {@link PrivateMessageResponder} can use.
  *
+ * <p>The messages are parsed directly from the encoded bytes, using the same
+ * tokenizer as the {@link MessageParser}. Messages not meant for the application user
+ * are rejected before anything is decoded.</p>
+ *
  * <p>The supported message types:</p>
  *
  * <ul>
  *   <li>PRIVMSG</li>
+ *   <li>SENDFILEDATA</li>
+ *   <li>FRAGMENT</li>
  * </ul>
  *
+ * <p>A <code>FRAGMENT</code> contains a part of a message too large for one packet.
+ * The message is parsed when all the fragments have arrived.</p>
+ *
  * @author Christian Ihle
  */
-public class PrivateMessageParser implements ReceiverListener {
+public class PrivateMessageParser implements ByteReceiverListener {
 
     /** The logger. */
     private static final Logger LOG = Logger.getLogger(PrivateMessageParser.class.getName());
@@ -50,6 +60,12 @@ public class PrivateMessageParser implements ReceiverListener {
     private final Settings settings;
     private final PrivateMessageResponder privmsgResponder;
 
+    /** Finds the different parts of the messages. */
+    private final MessageTokenizer tokenizer;
+
+    /** Puts the fragments of large messages together. */
+    private final FragmentReassembler reassembler;
+
     /**
      * Constructor.
      *
@@ -62,6 +78,19 @@ public class PrivateMessageParser implements ReceiverListener {
 
         this.privmsgResponder = privmsgResponder;
         this.settings = settings;
+
+        tokenizer = new MessageTokenizer();
+        reassembler = new FragmentReassembler();
+    }
+
+    /**
+     * Encodes the message, and parses it like any other message.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void messageArrived(final String message, final String ipAddress) {
+        messageArrived(ByteBuffer.wrap(message.getBytes(MessageTokenizer.CHARSET)), ipAddress);
     }
 
     /**
@@ -71,37 +100,51 @@ public class PrivateMessageParser implements ReceiverListener {
      * {@inheritDoc}
      */
     @Override
-    public void messageArrived(final String message, final String ipAddress) {
+    public void messageArrived(final ByteBuffer message, final String ipAddress) {
         try {
-            final int exclamation = message.indexOf("!");
-            final int hash = message.indexOf("#");
-            final int colon = message.indexOf(":");
+            if (!tokenizer.tokenize(message)) {
+                LOG.log(Level.SEVERE, "Invalid message: " + tokenizer.getMessage());
+                return;
+            }
 
-            final int fromCode = Integer.parseInt(message.substring(0, exclamation));
+            final int fromCode = tokenizer.getCode();
 
-            final String type = message.substring(exclamation + 1, hash);
-            final String msg = message.substring(colon + 1, message.length());
+            if (tokenizer.getType() == MessageType.FRAGMENT) {
+                if (fromCode != settings.getMe().getCode()) {
+                    parseFragment(message, ipAddress);
+                }
+
+                return;
+            }
 
-            final int leftPara = msg.indexOf("(");
-            final int rightPara = msg.indexOf(")");
-            final int toCode = Integer.parseInt(msg.substring(leftPara + 1, rightPara));
+            final int leftPara = tokenizer.indexOfInPayload('(');
+            final int rightPara = tokenizer.indexOfInPayload(')');
+            final int toCode = tokenizer.parseInt(leftPara + 1, rightPara);
 
             final User tempme = settings.getMe();
 
             if (fromCode != tempme.getCode() && toCode == tempme.getCode()) {
-                if (type.equals("PRIVMSG")) {
-                    final int leftBracket = msg.indexOf("[");
-                    final int rightBracket = msg.indexOf("]");
-                    final int rgb = Integer.parseInt(msg.substring(leftBracket + 1, rightBracket));
-                    final String privmsg = msg.substring(rightBracket + 1, msg.length());
+                if (tokenizer.getType() == MessageType.PRIVMSG) {
+                    final int leftBracket = tokenizer.indexOfInPayload('[');
+                    final int rightBracket = tokenizer.indexOfInPayload(']');
+                    final int rgb = tokenizer.parseInt(leftBracket + 1, rightBracket);
+                    final String privmsg = tokenizer.decode(rightBracket + 1, tokenizer.getPayloadEnd());
 
                     privmsgResponder.messageArrived(fromCode, privmsg, rgb);
                 }
+
+                else if (tokenizer.getType() == MessageType.SENDFILEDATA) {
+                    parseFileData(fromCode);
+                }
+
+                else if (tokenizer.getType() == MessageType.SENDFILEDATAACK) {
+                    parseFileDataAck(fromCode);
+                }
             }
         }
 
         // Just ignore, someone sent a badly formatted message
-        catch (final StringIndexOutOfBoundsException e) {
+        catch (final IndexOutOfBoundsException e) {
             LOG.log(Level.SEVERE, e.toString(), e);
         }
 
@@ -110,4 +153,76 @@ public class PrivateMessageParser implements ReceiverListener {
             LOG.log(Level.SEVERE, e.toString(), e);
         }
     }
+
+    /**
+     * Parses the content of a small file sent inline: <code>(code)[checksum]&lt;content&gt;fileName</code>.
+     *
+     * @param fromCode The unique code of the user who sent the file.
+     */
+    private void parseFileData(final int fromCode) {
+        final int leftBracket = tokenizer.indexOfInPayload('[');
+        final int rightBracket = tokenizer.indexOfInPayload(']');
+        final int leftAngle = tokenizer.indexOf('<', rightBracket);
+        final int rightAngle = tokenizer.indexOf('>', leftAngle);
+
+        if (rightBracket == -1 || leftAngle == -1 || rightAngle == -1) {
+            LOG.log(Level.SEVERE, "Invalid file data from " + fromCode);
+            return;
+        }
+
+        final long checksum = tokenizer.parseLong(leftBracket + 1, rightBracket);
+        final byte[] content = InlineTransfer.decode(tokenizer.decode(leftAngle + 1, rightAngle));
+        final String fileName = tokenizer.decode(rightAngle + 1, tokenizer.getPayloadEnd());
+
+        if (content == null) {
+            LOG.log(Level.SEVERE, "Invalid content of " + fileName + " from " + fromCode);
+            return;
+        }
+
+        privmsgResponder.fileDataArrived(fromCode, fileName, content, checksum);
+    }
+
+    /**
+     * Parses the answer from the receiver of a small file sent inline: <code>(code)[verified]{hash}fileName</code>.
+     *
+     * @param fromCode The unique code of the user who received the file.
+     */
+    private void parseFileDataAck(final int fromCode) {
+        final int leftBracket = tokenizer.indexOfInPayload('[');
+        final int rightBracket = tokenizer.indexOfInPayload(']');
+        final int leftCurly = tokenizer.indexOf('{', rightBracket);
+        final int rightCurly = tokenizer.indexOf('}', leftCurly);
+
+        if (rightBracket == -1 || leftCurly == -1 || rightCurly == -1) {
+            LOG.log(Level.SEVERE, "Invalid file data answer from " + fromCode);
+            return;
+        }
+
+        final boolean verified = tokenizer.parseInt(leftBracket + 1, rightBracket) == 1;
+        final int fileHash = tokenizer.parseInt(leftCurly + 1, rightCurly);
+        final String fileName = tokenizer.decode(rightCurly + 1, tokenizer.getPayloadEnd());
+
+        privmsgResponder.fileDataAcknowledged(fromCode, fileName, fileHash, verified);
+    }
+
+    /**
+     * Adds the fragment to the reassembler, and parses the complete message
+     * if this was the last fragment.
+     *
+     * @param message The encoded fragment.
+     * @param ipAddress The IP address of the user who sent the fragment.
+     */
+    private void parseFragment(final ByteBuffer message, final String ipAddress) {
+        final int fromCode = tokenizer.getCode();
+        final ByteBuffer completeMessage = reassembler.add(tokenizer, message);
+
+        if (completeMessage != null) {
+            if (!tokenizer.tokenize(completeMessage) || tokenizer.getCode() != fromCode) {
+                LOG.log(Level.SEVERE, "Invalid fragmented message from " + fromCode);
+                return;
+            }
+
+            messageArrived(completeMessage, ipAddress);
+        }
+    }
 }
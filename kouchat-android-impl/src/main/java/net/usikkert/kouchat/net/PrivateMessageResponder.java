@@ -40,4 +40,24 @@ public interface PrivateMessageResponder {
      * @param color The color to show the message in.
      */
     void messageArrived(int userCode, String msg, int color);
+
+    /**
+     * The content of a small file sent inline has arrived.
+     *
+     * @param userCode The unique code for the user that sent the file.
+     * @param fileName The name of the file.
+     * @param content The content of the file.
+     * @param checksum The checksum of the content, from the sender.
+     */
+    void fileDataArrived(int userCode, String fileName, byte[] content, long checksum);
+
+    /**
+     * The receiver of a small file sent inline has answered if the content arrived.
+     *
+     * @param userCode The unique code for the user that received the file.
+     * @param fileName The name of the file.
+     * @param fileHash The hash code of the file.
+     * @param verified If the content arrived with the right checksum.
+     */
+    void fileDataAcknowledged(int userCode, String fileName, int fileHash, boolean verified);
 }
@@ -0,0 +1,461 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.nio.ByteBuffer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.usikkert.kouchat.Constants;
+import net.usikkert.kouchat.event.ByteReceiverListener;
+import net.usikkert.kouchat.event.ReceiverListener;
+import net.usikkert.kouchat.util.Validate;
+
+/**
+ * A bounded queue between a receiver and the listener parsing the messages.
+ *
+ * <p>The receiver thread only copies the message into a preallocated slot in a ring buffer,
+ * and goes back to reading from the socket. A dedicated dispatch thread gives the messages
+ * to the listener in the same order as they arrived. A slow listener will then not stop
+ * the receiver from emptying the socket buffer.</p>
+ *
+ * <p>When the queue is full, the {@link OverflowPolicy} decides what to do. Only
+ * {@link MessageType#IDLE} and {@link MessageType#WRITING} messages are ever dropped,
+ * since they are repeated regularly anyway. Other messages make the receiver wait for room
+ * in the queue.</p>
+ *
+ * <p>If the dispatch thread is not running, messages are given directly to the listener.</p>
+ *
+ * @author Christian Ihle
+ */
+public class ReceiverDispatchQueue implements ByteReceiverListener, Runnable {
+
+    /**
+     * What to do when a message arrives and the queue is full.
+     */
+    public enum OverflowPolicy {
+
+        /** Drops the oldest queued message that can be dropped, to make room for the new message. */
+        DROP_OLDEST,
+
+        /** Drops the new message if it can be dropped, or else the oldest queued message that can be dropped. */
+        DROP_NEWEST,
+
+        /** Never drops messages, but waits for room in the queue. */
+        BLOCK;
+
+        /**
+         * Finds the policy with the given name, ignoring case.
+         *
+         * @param name The name of the policy.
+         * @return The policy, or {@link #DROP_OLDEST} if the name is unknown.
+         */
+        public static OverflowPolicy fromName(final String name) {
+            for (final OverflowPolicy policy : values()) {
+                if (policy.name().equalsIgnoreCase(name)) {
+                    return policy;
+                }
+            }
+
+            return DROP_OLDEST;
+        }
+    }
+
+    /** The logger. */
+    private static final Logger LOG = Logger.getLogger(ReceiverDispatchQueue.class.getName());
+
+    /** The listener to give the messages to. */
+    private final ReceiverListener listener;
+
+    /** The listener, if it can parse bytes directly. */
+    private final ByteReceiverListener byteListener;
+
+    /** What to do when the queue is full. */
+    private final OverflowPolicy overflowPolicy;
+
+    /** The name of the dispatch thread. */
+    private final String threadName;
+
+    /** The copied messages. The slots are reused. */
+    private final ByteBuffer[] messages;
+
+    /** The IP address of the sender of each message. */
+    private final String[] ipAddresses;
+
+    /** If each message can be dropped when the queue is full. */
+    private final boolean[] droppable;
+
+    /** Used to find the type of arriving messages. Only used by the receiver thread. */
+    private final MessageTokenizer tokenizer;
+
+    /** The message currently being dispatched. Swapped with a slot in the queue, to avoid copying. */
+    private ByteBuffer dispatchMessage;
+
+    /** The index of the oldest message in the queue. */
+    private int head;
+
+    /** The number of messages in the queue. */
+    private int size;
+
+    /** The highest number of messages in the queue at the same time. */
+    private int maxSize;
+
+    /** The number of messages dropped because the queue was full. */
+    private long droppedMessages;
+
+    /** The number of times the receiver had to wait because the queue was full. */
+    private long blockedMessages;
+
+    /** If the queue is accepting messages. */
+    private boolean running;
+
+    /** The dispatch thread, or <code>null</code> if not running. */
+    private Thread worker;
+
+    /**
+     * Constructor.
+     *
+     * @param listener The listener to give the messages to.
+     * @param capacity The maximum number of messages in the queue.
+     * @param overflowPolicy What to do when the queue is full.
+     * @param threadName The name of the dispatch thread.
+     */
+    public ReceiverDispatchQueue(final ReceiverListener listener, final int capacity,
+                                 final OverflowPolicy overflowPolicy, final String threadName) {
+        Validate.notNull(listener, "Listener can not be null");
+        Validate.notNull(overflowPolicy, "Overflow policy can not be null");
+        Validate.notEmpty(threadName, "Thread name can not be empty");
+
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least 1");
+        }
+
+        this.listener = listener;
+        this.overflowPolicy = overflowPolicy;
+        this.threadName = threadName;
+
+        if (listener instanceof ByteReceiverListener) {
+            byteListener = (ByteReceiverListener) listener;
+        }
+
+        else {
+            byteListener = null;
+        }
+
+        messages = new ByteBuffer[capacity];
+        ipAddresses = new String[capacity];
+        droppable = new boolean[capacity];
+
+        for (int i = 0; i < capacity; i++) {
+            messages[i] = ByteBuffer.allocate(Constants.NETWORK_PACKET_SIZE);
+        }
+
+        dispatchMessage = ByteBuffer.allocate(Constants.NETWORK_PACKET_SIZE);
+        tokenizer = new MessageTokenizer();
+    }
+
+    /**
+     * Starts the dispatch thread, if not already running.
+     */
+    public synchronized void start() {
+        running = true;
+
+        if (worker == null) {
+            worker = new Thread(this, threadName);
+            worker.start();
+        }
+    }
+
+    /**
+     * Stops accepting new messages. The dispatch thread gives the messages
+     * already in the queue to the listener before it stops.
+     */
+    public synchronized void stop() {
+        running = false;
+        notifyAll();
+    }
+
+    /**
+     * Encodes the message, and adds it to the queue.
+     *
+     * @param message The message that arrived.
+     * @param ipAddress The IP address of the sender.
+     */
+    @Override
+    public void messageArrived(final String message, final String ipAddress) {
+        messageArrived(ByteBuffer.wrap(message.getBytes(MessageTokenizer.CHARSET)), ipAddress);
+    }
+
+    /**
+     * Copies the message into the queue. Waits if the queue is full and no message can be dropped.
+     *
+     * @param message The message that arrived. Only read during this call.
+     * @param ipAddress The IP address of the sender.
+     */
+    @Override
+    public void messageArrived(final ByteBuffer message, final String ipAddress) {
+        final boolean canDrop = isDroppable(message);
+
+        synchronized (this) {
+            while (running && size == messages.length) {
+                if (makeRoom(canDrop)) {
+                    break;
+                }
+
+                if (canDrop) {
+                    droppedMessages++;
+                    return;
+                }
+
+                blockedMessages++;
+                waitForChange();
+            }
+
+            if (running) {
+                enqueue(message, ipAddress, canDrop);
+                return;
+            }
+        }
+
+        // Not running, so there is no dispatch thread
+        dispatch(message, ipAddress);
+    }
+
+    /**
+     * The dispatch thread. Takes messages from the queue, and gives them to the listener.
+     */
+    @Override
+    public void run() {
+        while (true) {
+            final String ipAddress;
+
+            synchronized (this) {
+                while (running && size == 0) {
+                    waitForChange();
+                }
+
+                if (size == 0) {
+                    worker = null;
+                    return;
+                }
+
+                // Takes the slot, and leaves the previous dispatch buffer in its place
+                final ByteBuffer message = messages[head];
+                messages[head] = dispatchMessage;
+                dispatchMessage = message;
+                ipAddress = ipAddresses[head];
+                ipAddresses[head] = null;
+
+                head = (head + 1) % messages.length;
+                size--;
+                notifyAll();
+            }
+
+            try {
+                dispatch(dispatchMessage, ipAddress);
+            }
+
+            catch (final RuntimeException e) {
+                LOG.log(Level.SEVERE, e.toString(), e);
+            }
+        }
+    }
+
+    /**
+     * Gets the number of messages currently waiting in the queue.
+     *
+     * @return The queue depth.
+     */
+    public synchronized int getQueueSize() {
+        return size;
+    }
+
+    /**
+     * Gets the highest number of messages that have been waiting in the queue at the same time.
+     *
+     * @return The highest queue depth.
+     */
+    public synchronized int getMaxQueueSize() {
+        return maxSize;
+    }
+
+    /**
+     * Gets the number of messages dropped because the queue was full.
+     *
+     * @return The number of dropped messages.
+     */
+    public synchronized long getDroppedMessages() {
+        return droppedMessages;
+    }
+
+    /**
+     * Gets the number of times the receiver had to wait because the queue was full.
+     *
+     * @return The number of times the receiver was blocked.
+     */
+    public synchronized long getBlockedMessages() {
+        return blockedMessages;
+    }
+
+    /**
+     * Gets the maximum number of messages in the queue.
+     *
+     * @return The capacity of the queue.
+     */
+    public int getCapacity() {
+        return messages.length;
+    }
+
+    /**
+     * Checks if the message is of a type that can be dropped if the queue is full.
+     *
+     * @param message The message to check.
+     * @return If the message can be dropped.
+     */
+    private boolean isDroppable(final ByteBuffer message) {
+        if (overflowPolicy == OverflowPolicy.BLOCK || !tokenizer.tokenize(message)) {
+            return false;
+        }
+
+        final MessageType type = tokenizer.getType();
+
+        return type == MessageType.IDLE || type == MessageType.WRITING;
+    }
+
+    /**
+     * Tries to make room in a full queue for a new message, according to the overflow policy.
+     * Must be called while holding the lock.
+     *
+     * @param canDrop If the new message can be dropped.
+     * @return If a queued message was dropped to make room.
+     */
+    private boolean makeRoom(final boolean canDrop) {
+        if (overflowPolicy == OverflowPolicy.BLOCK) {
+            return false;
+        }
+
+        if (overflowPolicy == OverflowPolicy.DROP_NEWEST && canDrop) {
+            return false;
+        }
+
+        for (int i = 0; i < size; i++) {
+            if (droppable[(head + i) % messages.length]) {
+                remove(i);
+                droppedMessages++;
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Removes the message at the given position in the queue, by moving
+     * the older messages one step forward. Must be called while holding the lock.
+     *
+     * @param position The position of the message, counting from the oldest message.
+     */
+    private void remove(final int position) {
+        final int capacity = messages.length;
+        final int index = (head + position) % capacity;
+        final ByteBuffer removed = messages[index];
+
+        for (int i = position; i > 0; i--) {
+            final int to = (head + i) % capacity;
+            final int from = (head + i - 1) % capacity;
+
+            messages[to] = messages[from];
+            ipAddresses[to] = ipAddresses[from];
+            droppable[to] = droppable[from];
+        }
+
+        messages[head] = removed;
+        ipAddresses[head] = null;
+        head = (head + 1) % capacity;
+        size--;
+    }
+
+    /**
+     * Copies the message into the next free slot. Must be called while holding the lock.
+     *
+     * @param message The message to copy.
+     * @param ipAddress The IP address of the sender.
+     * @param canDrop If the message can be dropped if the queue gets full.
+     */
+    private void enqueue(final ByteBuffer message, final String ipAddress, final boolean canDrop) {
+        final int index = (head + size) % messages.length;
+
+        if (messages[index].capacity() < message.remaining()) {
+            messages[index] = ByteBuffer.allocate(message.remaining());
+        }
+
+        final ByteBuffer slot = messages[index];
+        final int position = message.position();
+
+        slot.clear();
+        slot.put(message);
+        slot.flip();
+        message.position(position);
+
+        ipAddresses[index] = ipAddress;
+        droppable[index] = canDrop;
+        size++;
+
+        if (size > maxSize) {
+            maxSize = size;
+        }
+
+        notifyAll();
+    }
+
+    /**
+     * Gives the message to the listener.
+     *
+     * @param message The message.
+     * @param ipAddress The IP address of the sender.
+     */
+    private void dispatch(final ByteBuffer message, final String ipAddress) {
+        if (byteListener != null) {
+            byteListener.messageArrived(message, ipAddress);
+        }
+
+        else {
+            final byte[] bytes = new byte[message.remaining()];
+            message.get(bytes);
+            listener.messageArrived(new String(bytes, MessageTokenizer.CHARSET).trim(), ipAddress);
+        }
+    }
+
+    /**
+     * Waits for the queue to change. Must be called while holding the lock.
+     */
+    private void waitForChange() {
+        try {
+            wait();
+        }
+
+        catch (final InterruptedException e) {
+            LOG.log(Level.FINE, e.toString());
+        }
+    }
+}
@@ -0,0 +1,232 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.io.File;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+/**
+ * Keeps a {@link TransferJournal} of a file being received over a single connection,
+ * so the file transfer can continue where it stopped if it's interrupted.
+ *
+ * <p>The checksum of the received bytes is kept up to date while receiving, and saved in
+ * the journal with the number of bytes received. When the transfer starts, the journal from an earlier
+ * attempt to receive the same file decides how many bytes the sender can skip.</p>
+ *
+ * @author Christian Ihle
+ */
+class ResumableTransfer {
+
+    /** The journal next to the file. */
+    private final TransferJournal journal;
+
+    /** The checksum of the bytes received, for the journal. */
+    private final CRC32 checksum;
+
+    /** The number of bytes already received in an earlier attempt. */
+    private long offset;
+
+    /** If the journal is no longer kept. */
+    private boolean discarded;
+
+    /**
+     * Constructor.
+     *
+     * @param file The file to save to.
+     * @param fileName The name of the file, as given by the sender.
+     * @param fileHash The hash code of the file, as given by the sender.
+     * @param size The size of the file.
+     */
+    ResumableTransfer(final File file, final String fileName, final int fileHash, final long size) {
+        journal = new TransferJournal(file, fileName, fileHash, size);
+        checksum = new CRC32();
+    }
+
+    /**
+     * Checks if the file has a journal from an earlier attempt to receive the same file.
+     *
+     * @return If the transfer can continue where the earlier attempt stopped.
+     */
+    public boolean matches() {
+        return journal.matches();
+    }
+
+    /**
+     * Finds the number of bytes the sender can skip. The transfer always starts from the beginning
+     * if the sender does not support resuming, but the journal is still kept for a later attempt.
+     *
+     * @param resumeSupported If the sender supports resuming.
+     * @return The number of bytes the sender can skip, or <code>0</code> to send the whole file.
+     */
+    public long findOffset(final boolean resumeSupported) {
+        if (resumeSupported) {
+            offset = journal.findResumeOffset(checksum);
+        }
+
+        else {
+            checksum.reset();
+            offset = 0;
+        }
+
+        return offset;
+    }
+
+    /**
+     * Gets the number of bytes already received in an earlier attempt.
+     *
+     * @return The number of bytes the sender skips.
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * Saves the journal when the file has been opened at the offset, before any bytes are received.
+     */
+    public void started() {
+        journal.save(offset, checksum.getValue());
+    }
+
+    /**
+     * Gets the checksum to update with the received bytes. Both the checksum for the journal
+     * and the checksum to compare with the sender are updated in the same pass.
+     *
+     * @param crc The checksum to compare with the sender, or <code>null</code>.
+     * @return The checksum to update.
+     */
+    public Checksum getChecksumToUpdate(final CRC32 crc) {
+        if (crc != null) {
+            return new CombinedChecksum(checksum, crc);
+        }
+
+        return checksum;
+    }
+
+    /**
+     * Saves the progress in the journal, if it's time to save again.
+     *
+     * @param transferred The number of bytes received of the whole file.
+     */
+    public void bytesReceived(final long transferred) {
+        if (!discarded) {
+            journal.saveIfDue(transferred, checksum.getValue());
+        }
+    }
+
+    /**
+     * Deletes the journal, since the received bytes can't be trusted. The file is then received
+     * from the beginning the next time.
+     */
+    public void discard() {
+        discarded = true;
+        journal.delete();
+    }
+
+    /**
+     * Deletes the journal if the whole file was received, or saves the final progress
+     * so the transfer can be resumed later.
+     *
+     * @param received If the whole file was received.
+     * @param transferred The number of bytes received of the whole file.
+     */
+    public void finished(final boolean received, final long transferred) {
+        if (discarded) {
+            return;
+        }
+
+        if (received) {
+            journal.delete();
+        }
+
+        else if (transferred > 0) {
+            journal.save(transferred, checksum.getValue());
+        }
+    }
+
+    /**
+     * Updates two checksums with the same bytes. The value is the value of the first checksum.
+     */
+    private static class CombinedChecksum implements Checksum {
+
+        /** The first checksum. */
+        private final Checksum first;
+
+        /** The second checksum. */
+        private final Checksum second;
+
+        /**
+         * Constructor.
+         *
+         * @param first The first checksum.
+         * @param second The second checksum.
+         */
+        CombinedChecksum(final Checksum first, final Checksum second) {
+            this.first = first;
+            this.second = second;
+        }
+
+        /**
+         * Updates both checksums with the byte.
+         *
+         * @param b The byte.
+         */
+        @Override
+        public void update(final int b) {
+            first.update(b);
+            second.update(b);
+        }
+
+        /**
+         * Updates both checksums with the bytes.
+         *
+         * @param b The bytes.
+         * @param off The start offset in the bytes.
+         * @param len The number of bytes to use.
+         */
+        @Override
+        public void update(final byte[] b, final int off, final int len) {
+            first.update(b, off, len);
+            second.update(b, off, len);
+        }
+
+        /**
+         * Gets the value of the first checksum.
+         *
+         * @return The value of the first checksum.
+         */
+        @Override
+        public long getValue() {
+            return first.getValue();
+        }
+
+        /**
+         * Resets both checksums.
+         */
+        @Override
+        public void reset() {
+            first.reset();
+            second.reset();
+        }
+    }
+}
@@ -0,0 +1,66 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+/**
+ * The priority of messages waiting in the {@link SendQueue}.
+ *
+ * <p>Chat messages and control messages are sent together, in the order they were queued, so a message
+ * written after a nick or topic change is never seen by the other users before the change.
+ * Status messages are sent when there are no other messages waiting, unless they have waited
+ * too long. Messages with the same priority are always sent in the order they were queued.</p>
+ *
+ * @author Christian Ihle
+ */
+public enum SendPriority {
+
+    /** Chat messages, private messages and control messages, like topic and nick changes. Sent in the order they were queued. */
+    MESSAGE,
+
+    /** Status messages that are repeated regularly, like idle and writing. Sent when nothing else is waiting. */
+    STATUS;
+
+    /**
+     * Finds the priority of the message, from the message type.
+     *
+     * @param message The message to find the priority of, as <code>code!type#nick:payload</code>.
+     * @return The priority of the message. Unknown types are {@link #MESSAGE} messages.
+     */
+    public static SendPriority of(final String message) {
+        final int exclamation = message.indexOf('!');
+        final int hash = message.indexOf('#');
+
+        if (exclamation == -1 || hash < exclamation) {
+            return MESSAGE;
+        }
+
+        final String type = message.substring(exclamation + 1, hash);
+
+        if (type.equals(MessageType.IDLE.name()) || type.equals(MessageType.WRITING.name()) ||
+                type.equals(MessageType.STOPPEDWRITING.name())) {
+            return STATUS;
+        }
+
+        return MESSAGE;
+    }
+}
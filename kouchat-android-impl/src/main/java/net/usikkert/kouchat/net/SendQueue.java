@@ -0,0 +1,338 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.usikkert.kouchat.event.MessageSentListener;
+import net.usikkert.kouchat.util.Validate;
+
+/**
+ * A queue of messages waiting to be sent, with a single writer thread sending them.
+ *
+ * <p>Callers add a message to the queue, and get a {@link Future} that tells if the message
+ * was sent. The caller decides if it's necessary to wait for the result, or can give a
+ * {@link MessageSentListener} to be notified when the message is done instead. The message is sent
+ * by the writer thread, so the caller is never blocked by the network, or by other callers.</p>
+ *
+ * <p>Chat and control messages share one lane, so they are sent in the order they were queued.
+ * Status messages have their own lane, which the writer thread only takes from when the other lane
+ * is empty, so a burst of status messages never delays a chat message. To keep a long burst of chat
+ * messages from delaying the idle messages until the other clients think the user is gone, a status
+ * message that has waited longer than the max status delay is sent before the next chat message.</p>
+ *
+ * <p>If the writer thread is not running, messages are sent directly by the caller. Messages with
+ * a listener are not sent at all then, since the caller does not wait for the result, and may be on
+ * a thread that must never use the network, like the main thread on Android. The listener is told
+ * at once that the message was not sent.</p>
+ *
+ * @author Christian Ihle
+ */
+public class SendQueue implements Runnable {
+
+    /** The logger. */
+    private static final Logger LOG = Logger.getLogger(SendQueue.class.getName());
+
+    /** The default max number of milliseconds a status message waits for chat messages. */
+    public static final long DEFAULT_MAX_STATUS_DELAY = 2000;
+
+    /** Messages with {@link SendPriority#MESSAGE}. */
+    private final Queue<FutureTask<Boolean>> messageLane;
+
+    /** Messages with {@link SendPriority#STATUS}. */
+    private final Queue<FutureTask<Boolean>> statusLane;
+
+    /** When each of the messages in the status lane was queued. */
+    private final Queue<Long> statusQueueTimes;
+
+    /** The max number of milliseconds a status message waits for chat messages. */
+    private final long maxStatusDelay;
+
+    /** If the writer thread is accepting messages. */
+    private boolean running;
+
+    /** The writer thread, or <code>null</code> if not running. */
+    private Thread worker;
+
+    /**
+     * Constructor, with the default max status delay.
+     */
+    public SendQueue() {
+        this(DEFAULT_MAX_STATUS_DELAY);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param maxStatusDelay The max number of milliseconds a status message waits for chat messages.
+     */
+    public SendQueue(final long maxStatusDelay) {
+        this.maxStatusDelay = maxStatusDelay;
+
+        messageLane = new ArrayDeque<FutureTask<Boolean>>();
+        statusLane = new ArrayDeque<FutureTask<Boolean>>();
+        statusQueueTimes = new ArrayDeque<Long>();
+    }
+
+    /**
+     * Starts the writer thread, if not already running.
+     */
+    public synchronized void start() {
+        running = true;
+
+        if (worker == null) {
+            worker = new Thread(this, "SendQueueWriter");
+            worker.start();
+        }
+    }
+
+    /**
+     * Stops accepting new messages. The writer thread sends the messages
+     * already in the queue before it stops.
+     */
+    public synchronized void stop() {
+        running = false;
+        notifyAll();
+    }
+
+    /**
+     * Waits for the writer thread to send the messages already in the queue, and stop.
+     * Must be called after {@link #stop()}.
+     *
+     * @param timeout The max number of milliseconds to wait.
+     * @return If the writer thread stopped before the timeout.
+     */
+    public synchronized boolean awaitStop(final long timeout) {
+        final long end = System.currentTimeMillis() + timeout;
+        long remaining = timeout;
+
+        while (worker != null && remaining > 0) {
+            waitFor(remaining);
+            remaining = end - System.currentTimeMillis();
+        }
+
+        return worker == null;
+    }
+
+    /**
+     * Adds a message to the queue.
+     *
+     * @param send Sends the message, and returns if it was sent.
+     * @param priority The priority of the message.
+     * @return The result of sending the message.
+     */
+    public Future<Boolean> add(final Callable<Boolean> send, final SendPriority priority) {
+        return add(send, priority, null);
+    }
+
+    /**
+     * Adds a message to the queue, and notifies the listener when the message is done.
+     *
+     * <p>With a listener, the message is never sent by the caller. If the writer thread is not running,
+     * the result is canceled, and the listener is notified at once that the message was not sent.</p>
+     *
+     * @param send Sends the message, and returns if it was sent.
+     * @param priority The priority of the message.
+     * @param listener Notified when the message is done, or <code>null</code>.
+     * @return The result of sending the message.
+     */
+    public Future<Boolean> add(final Callable<Boolean> send, final SendPriority priority,
+                               final MessageSentListener listener) {
+        Validate.notNull(send, "Send can not be null");
+        Validate.notNull(priority, "Priority can not be null");
+
+        final FutureTask<Boolean> task = new SendTask(send, listener);
+
+        synchronized (this) {
+            if (running) {
+                if (priority == SendPriority.STATUS) {
+                    statusLane.add(task);
+                    statusQueueTimes.add(System.currentTimeMillis());
+                }
+
+                else {
+                    messageLane.add(task);
+                }
+
+                notifyAll();
+
+                return task;
+            }
+        }
+
+        // Not running, so there is no writer thread
+        if (listener != null) {
+            LOG.log(Level.FINE, "Send queue is not running, message not sent");
+            task.cancel(false);
+        }
+
+        else {
+            task.run();
+        }
+
+        return task;
+    }
+
+    /**
+     * Gets the number of messages waiting to be sent.
+     *
+     * @return The number of waiting messages.
+     */
+    public synchronized int getQueueSize() {
+        return messageLane.size() + statusLane.size();
+    }
+
+    /**
+     * The writer thread. Sends the chat and control messages first, and the status messages
+     * when nothing else is waiting, or they have waited too long.
+     */
+    @Override
+    public void run() {
+        while (true) {
+            final FutureTask<Boolean> task;
+
+            synchronized (this) {
+                while (running && getQueueSize() == 0) {
+                    waitFor(0);
+                }
+
+                task = nextTask();
+
+                if (task == null) {
+                    worker = null;
+                    notifyAll();
+                    return;
+                }
+            }
+
+            // Exceptions are given to the caller through the future
+            task.run();
+        }
+    }
+
+    /**
+     * Takes the next message. The oldest status message is taken first if it has waited too long,
+     * then the chat and control messages, and the status messages last.
+     * Must be called while holding the lock.
+     *
+     * @return The next message, or <code>null</code> if there are no messages.
+     */
+    private FutureTask<Boolean> nextTask() {
+        if (!statusLane.isEmpty() && System.currentTimeMillis() - statusQueueTimes.peek() >= maxStatusDelay) {
+            return takeStatusTask();
+        }
+
+        if (!messageLane.isEmpty()) {
+            return messageLane.poll();
+        }
+
+        return takeStatusTask();
+    }
+
+    /**
+     * Takes the oldest status message.
+     * Must be called while holding the lock.
+     *
+     * @return The oldest status message, or <code>null</code> if there are no status messages.
+     */
+    private FutureTask<Boolean> takeStatusTask() {
+        statusQueueTimes.poll();
+
+        return statusLane.poll();
+    }
+
+    /**
+     * Waits for a message to be added, for the queue to stop, or for the writer thread to stop.
+     * Must be called while holding the lock.
+     *
+     * @param timeout The max number of milliseconds to wait, or <code>0</code> to wait until notified.
+     */
+    private void waitFor(final long timeout) {
+        try {
+            wait(timeout);
+        }
+
+        catch (final InterruptedException e) {
+            LOG.log(Level.FINE, e.toString());
+        }
+    }
+
+    /**
+     * A message in the queue, that notifies its listener when done.
+     */
+    private static class SendTask extends FutureTask<Boolean> {
+
+        /** Notified when the message is done, or <code>null</code>. */
+        private final MessageSentListener listener;
+
+        /**
+         * Constructor.
+         *
+         * @param send Sends the message, and returns if it was sent.
+         * @param listener Notified when the message is done, or <code>null</code>.
+         */
+        SendTask(final Callable<Boolean> send, final MessageSentListener listener) {
+            super(send);
+            this.listener = listener;
+        }
+
+        /**
+         * Notifies the listener if the message was sent. An exception while sending,
+         * or a message that was canceled, means the message was not sent.
+         */
+        @Override
+        protected void done() {
+            if (listener == null) {
+                return;
+            }
+
+            boolean sent = false;
+
+            try {
+                sent = get();
+            }
+
+            catch (final InterruptedException e) {
+                LOG.log(Level.FINE, e.toString());
+            }
+
+            catch (final ExecutionException e) {
+                LOG.log(Level.SEVERE, e.getCause().toString(), e.getCause());
+            }
+
+            catch (final CancellationException e) {
+                LOG.log(Level.FINE, e.toString());
+            }
+
+            listener.messageSent(sent);
+        }
+    }
+}
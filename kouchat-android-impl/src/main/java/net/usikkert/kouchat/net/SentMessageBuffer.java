@@ -0,0 +1,112 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the most recently sent chat messages, so they can be sent again
+ * when other users report them as lost.
+ *
+ * <p>Only the newest messages are kept, and a message is not sent again if it was already sent again less than {@link #RESEND_INTERVAL}
+ * milliseconds ago, since several users usually report the same lost message.</p>
+ *
+ * <p>Thread safe.</p>
+ *
+ * @author Christian Ihle
+ */
+class SentMessageBuffer {
+
+    /** The min number of milliseconds between sending the same message again. */
+    static final long RESEND_INTERVAL = 1000;
+
+    /** The sequence numbers of the messages, in a ring. */
+    private final int[] sequences;
+
+    /** The messages, in a ring. Empty slots are <code>null</code>. */
+    private final String[] messages;
+
+    /** When each message was last sent again. */
+    private final long[] resent;
+
+    /**
+     * Constructor.
+     *
+     * @param capacity The max number of messages to keep.
+     */
+    SentMessageBuffer(final int capacity) {
+        sequences = new int[capacity];
+        messages = new String[capacity];
+        resent = new long[capacity];
+    }
+
+    /**
+     * Adds a message. The oldest message is thrown away if the buffer is full.
+     *
+     * @param sequence The sequence number of the message.
+     * @param message The complete message.
+     */
+    public synchronized void add(final int sequence, final String message) {
+        final int slot = getSlot(sequence);
+
+        sequences[slot] = sequence;
+        messages[slot] = message;
+        resent[slot] = 0;
+    }
+
+    /**
+     * Gets the messages to send again, from the first to the last sequence number.
+     * Messages no longer in the buffer, or sent again too recently, are skipped.
+     *
+     * @param from The first sequence number.
+     * @param to The last sequence number.
+     * @return The messages to send again, in order.
+     */
+    public synchronized List<String> getMessagesToResend(final int from, final int to) {
+        final List<String> resend = new ArrayList<String>();
+        final long now = System.currentTimeMillis();
+
+        // Never more than a full buffer, even for a huge range
+        for (int sequence = Math.max(from, to - messages.length + 1); sequence <= to && sequence >= from; sequence++) {
+            final int slot = getSlot(sequence);
+
+            if (messages[slot] != null && sequences[slot] == sequence && now - resent[slot] >= RESEND_INTERVAL) {
+                resend.add(messages[slot]);
+                resent[slot] = now;
+            }
+        }
+
+        return resend;
+    }
+
+    /**
+     * Finds the slot in the ring for the sequence number.
+     *
+     * @param sequence The sequence number.
+     * @return The slot.
+     */
+    private int getSlot(final int sequence) {
+        return (sequence & Integer.MAX_VALUE) % messages.length;
+    }
+}
@@ -0,0 +1,227 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps track of the sequence numbers of the chat messages from each user, to find
+ * lost messages and to throw away duplicates.
+ *
+ * <p>For each user, the highest sequence number is kept, together with which of the
+ * {@link #WINDOW} sequence numbers before it have arrived. Messages older than the window
+ * are treated as duplicates.</p>
+ *
+ * <p>Idle messages from newer clients have the sequence number of the last chat message sent,
+ * so messages lost at the end of a burst are found without waiting for the next chat message.</p>
+ *
+ * <p>Not thread safe. Each parser must use its own tracker.</p>
+ *
+ * @author Christian Ihle
+ */
+class SequenceTracker {
+
+    /** The number of sequence numbers to remember for each user. */
+    static final int WINDOW = Long.SIZE;
+
+    /** The max number of users to remember. The least recently active user is forgotten first. */
+    static final int MAX_USERS = 256;
+
+    /** The value returned for messages that have already arrived. */
+    static final int DUPLICATE = -1;
+
+    /** The sequence numbers for each user code. */
+    private final Map<Integer, ReceiveWindow> users;
+
+    /**
+     * Constructor.
+     */
+    SequenceTracker() {
+        users = new UserCache();
+    }
+
+    /**
+     * Registers that a message with the sequence number has arrived from the user.
+     *
+     * @param userCode The unique code of the user who sent the message.
+     * @param sequence The sequence number of the message.
+     * @return The number of messages missing right before this message, or {@link #DUPLICATE}
+     *         if this message has arrived before. Never more than {@link #WINDOW} - 1.
+     */
+    public int accept(final int userCode, final int sequence) {
+        final ReceiveWindow window = users.get(userCode);
+
+        if (window == null) {
+            users.put(userCode, new ReceiveWindow(sequence));
+            return 0;
+        }
+
+        return window.accept(sequence);
+    }
+
+    /**
+     * Registers the sequence number of the last chat message the user has sent, from an idle message.
+     * The messages after the highest sequence number that has arrived are missing. They are not
+     * reported again by the next idle message, and are accepted once if they arrive later.
+     *
+     * @param userCode The unique code of the user who sent the messages.
+     * @param sequence The sequence number of the last chat message from the user.
+     * @return The number of messages missing at the end, up to and including the last message.
+     *         Never more than {@link #WINDOW}.
+     */
+    public int acceptLast(final int userCode, final int sequence) {
+        final ReceiveWindow window = users.get(userCode);
+
+        if (window == null) {
+            users.put(userCode, new ReceiveWindow(sequence));
+            return 0;
+        }
+
+        return window.acceptLast(sequence);
+    }
+
+    /**
+     * Forgets the sequence numbers from the user, like when the user logs on or off.
+     *
+     * @param userCode The unique code of the user.
+     */
+    public void remove(final int userCode) {
+        users.remove(userCode);
+    }
+
+    /**
+     * Forgets the sequence numbers from all the users.
+     */
+    public void clear() {
+        users.clear();
+    }
+
+    /**
+     * The sequence numbers that have arrived from a single user.
+     */
+    private static final class ReceiveWindow {
+
+        /** The highest sequence number that has arrived. */
+        private int highest;
+
+        /** Bit <code>n</code> is set if the message with sequence number <code>highest - n</code> has arrived. */
+        private long received;
+
+        /**
+         * Constructor.
+         *
+         * @param sequence The sequence number of the first message to arrive.
+         */
+        ReceiveWindow(final int sequence) {
+            highest = sequence;
+            received = 1;
+        }
+
+        /**
+         * Registers that a message with the sequence number has arrived.
+         *
+         * @param sequence The sequence number of the message.
+         * @return The number of messages missing right before this message, or {@link #DUPLICATE}.
+         */
+        public int accept(final int sequence) {
+            final int distance = sequence - highest;
+
+            if (distance > 0) {
+                if (distance >= WINDOW) {
+                    received = 1;
+                }
+
+                else {
+                    received = (received << distance) | 1;
+                }
+
+                highest = sequence;
+
+                return Math.min(distance - 1, WINDOW - 1);
+            }
+
+            final int offset = -distance;
+
+            if (offset >= WINDOW || (received & (1L << offset)) != 0) {
+                return DUPLICATE;
+            }
+
+            received |= 1L << offset;
+
+            return 0;
+        }
+
+        /**
+         * Registers the sequence number of the last message sent, without marking it as arrived.
+         *
+         * @param sequence The sequence number of the last message sent.
+         * @return The number of messages missing at the end.
+         */
+        public int acceptLast(final int sequence) {
+            final int distance = sequence - highest;
+
+            if (distance <= 0) {
+                return 0;
+            }
+
+            if (distance >= WINDOW) {
+                received = 0;
+            }
+
+            else {
+                received <<= distance;
+            }
+
+            highest = sequence;
+
+            return Math.min(distance, WINDOW);
+        }
+    }
+
+    /**
+     * A map of users that forgets the least recently active user when full.
+     */
+    private static class UserCache extends LinkedHashMap<Integer, ReceiveWindow> {
+
+        /** Standard serial version UID. */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Constructor. Creates a map ordered by access.
+         */
+        UserCache() {
+            super(16, 0.75f, true);
+        }
+
+        /**
+         * Removes the least recently active user when the map is full.
+         *
+         * {@inheritDoc}
+         */
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<Integer, ReceiveWindow> eldest) {
+            return size() > MAX_USERS;
+        }
+    }
+}
@@ -0,0 +1,260 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.usikkert.kouchat.Constants;
+
+/**
+ * Waits for the connections from a file sender on a server socket opened for the file transfer.
+ *
+ * <p>The server socket has a channel if channel transfers are enabled, so the accepted
+ * connections have channels as well. The server socket is closed if the sender has not
+ * connected before the timeout.</p>
+ *
+ * @author Christian Ihle
+ */
+class ServerSocketConnections implements IncomingConnections {
+
+    /** The logger. */
+    private static final Logger LOG = Logger.getLogger(ServerSocketConnections.class.getName());
+
+    /** The number of ports to try before giving up. */
+    private static final int MAX_PORTS = 50;
+
+    /** If the server socket should have a channel. */
+    private final boolean channelTransfers;
+
+    /** Milliseconds to wait for the sender to connect, before closing the server socket. */
+    private final int timeout;
+
+    /** The server socket waiting for incoming connections. */
+    private volatile ServerSocket serverSocket;
+
+    /** If the sender is waiting in its queue, so the server socket is kept open after the timeout. */
+    private volatile boolean senderQueued;
+
+    /**
+     * Constructor.
+     *
+     * @param channelTransfers If the connections should have channels.
+     * @param timeout Milliseconds to wait for the sender to connect, before closing the server socket.
+     */
+    ServerSocketConnections(final boolean channelTransfers, final int timeout) {
+        this.channelTransfers = channelTransfers;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Opens the server socket on the first free port, starting from the file transfer port.
+     *
+     * @return The port the sender can connect to.
+     * @throws ServerException If no port could be opened.
+     */
+    @Override
+    public int start() throws ServerException {
+        int port = Constants.NETWORK_FILE_TRANSFER_PORT;
+        boolean done = false;
+        int counter = 0;
+
+        while (!done && counter < MAX_PORTS) {
+            try {
+                serverSocket = openServerSocket(port);
+                final TimeoutThread tt = new TimeoutThread();
+                tt.start();
+                done = true;
+            }
+
+            catch (final IOException e) {
+                LOG.log(Level.WARNING, "Could not open " + port, e);
+                port++;
+            }
+
+            finally {
+                counter++;
+            }
+        }
+
+        if (!done) {
+            throw new ServerException("Could not start server");
+        }
+
+        return port;
+    }
+
+    /**
+     * Opens a server socket on the port.
+     *
+     * @param port The port to listen on.
+     * @return The server socket.
+     * @throws IOException If the port could not be opened.
+     */
+    private ServerSocket openServerSocket(final int port) throws IOException {
+        if (!channelTransfers) {
+            return new ServerSocket(port);
+        }
+
+        final ServerSocketChannel channel = ServerSocketChannel.open();
+
+        try {
+            channel.socket().bind(new InetSocketAddress(port));
+        }
+
+        catch (final IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        return channel.socket();
+    }
+
+    /**
+     * Waits for the sender to connect, until the server socket is closed.
+     *
+     * @return The connection, or <code>null</code> if the server socket is closed.
+     * @throws IOException If the server socket was closed while waiting.
+     */
+    @Override
+    public Socket waitForConnection() throws IOException {
+        final ServerSocket server = serverSocket;
+
+        if (server != null) {
+            return server.accept();
+        }
+
+        return null;
+    }
+
+    /**
+     * Waits for one more connection, until the timeout.
+     *
+     * @return The connection.
+     * @throws IOException If the server socket is closed, or no connection arrived before the timeout.
+     */
+    @Override
+    public SocketChannel waitForNextConnection() throws IOException {
+        final ServerSocket server = serverSocket;
+
+        if (server == null) {
+            throw new IOException("Server closed before all the connections arrived");
+        }
+
+        server.setSoTimeout(timeout);
+
+        return server.accept().getChannel();
+    }
+
+    /**
+     * No handshake is needed, since the server socket is only used for this file transfer.
+     *
+     * @return <code>false</code>.
+     */
+    @Override
+    public boolean isHandshakeNeeded() {
+        return false;
+    }
+
+    /**
+     * Connections are not kept, since the server socket is only used for this file transfer.
+     *
+     * @param connection The connection.
+     * @return <code>false</code>.
+     */
+    @Override
+    public boolean keepAlive(final SocketChannel connection) {
+        return false;
+    }
+
+    /**
+     * Keeps the server socket open after the timeout, until the sender connects.
+     */
+    @Override
+    public void senderQueued() {
+        senderQueued = true;
+    }
+
+    /**
+     * Closes the server socket.
+     */
+    @Override
+    public void close() {
+        final ServerSocket server = serverSocket;
+        serverSocket = null;
+
+        try {
+            if (server != null) {
+                server.close();
+            }
+        }
+
+        catch (final IOException e) {
+            LOG.log(Level.SEVERE, e.toString(), e);
+        }
+    }
+
+    /**
+     * A thread for closing the server socket if no client has connected before the timeout.
+     *
+     * <p>This does not mean that the user only has that long to decide
+     * where to save the file. This timer is started after the user has
+     * decided, and waits for an automated response from the sender.
+     * If nothing has happened to the sender, the response should be very quick.
+     * A sender waiting for other file transfers to finish says so, and the server socket is kept open.</p>
+     */
+    private class TimeoutThread extends Thread {
+
+        /**
+         * Constructor. Sets the name of the thread.
+         */
+        public TimeoutThread() {
+            setName("TimeoutThread");
+        }
+
+        /**
+         * The thread. Sleeps until the timeout, and then closes the
+         * server socket if it is not already closed, unless the sender is queued.
+         */
+        @Override
+        public void run() {
+            try {
+                sleep(timeout);
+            }
+
+            catch (final InterruptedException e) {
+                LOG.log(Level.SEVERE, e.toString(), e);
+            }
+
+            if (!senderQueued) {
+                close();
+            }
+        }
+    }
+}
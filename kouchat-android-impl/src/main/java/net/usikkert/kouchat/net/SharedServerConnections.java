@@ -0,0 +1,216 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.usikkert.kouchat.util.Validate;
+
+/**
+ * Takes the connections from a file sender from the shared {@link FileTransferServer}, after
+ * the sender has identified the file transfer with a {@link TransferHandshake}. No server is opened
+ * for the file transfer.
+ *
+ * <p>If the sender supports it, the connection is given back to the shared server after
+ * a successful transfer, so the sender can use it again for the next file.</p>
+ *
+ * @author Christian Ihle
+ */
+class SharedServerConnections implements IncomingConnections {
+
+    /** The logger. */
+    private static final Logger LOG = Logger.getLogger(SharedServerConnections.class.getName());
+
+    /** Milliseconds between each check for close, while waiting for a connection. */
+    private static final int CLOSE_CHECK_INTERVAL = 500;
+
+    /** The shared server for all file transfers. */
+    private final FileTransferServer sharedServer;
+
+    /** The handshake the sender starts the connections with. */
+    private final TransferHandshake handshake;
+
+    /** Milliseconds to wait for each connection. */
+    private final int timeout;
+
+    /** If the sender can use the connection again for the next file. */
+    private final boolean keepAliveSupported;
+
+    /** The connections from the shared server, or <code>null</code> if not started. */
+    private volatile BlockingQueue<SocketChannel> incoming;
+
+    /** If waiting for connections is stopped. */
+    private volatile boolean closed;
+
+    /** If the sender is waiting in its queue, so there is no timeout for the first connection. */
+    private volatile boolean senderQueued;
+
+    /**
+     * Constructor.
+     *
+     * @param sharedServer The running shared server.
+     * @param handshake The handshake the sender starts the connections with.
+     * @param timeout Milliseconds to wait for each connection.
+     * @param keepAliveSupported If the sender can use the connection again for the next file.
+     */
+    SharedServerConnections(final FileTransferServer sharedServer, final TransferHandshake handshake,
+                            final int timeout, final boolean keepAliveSupported) {
+        Validate.notNull(sharedServer, "Shared server can not be null");
+        Validate.notNull(handshake, "Handshake can not be null");
+
+        this.sharedServer = sharedServer;
+        this.handshake = handshake;
+        this.timeout = timeout;
+        this.keepAliveSupported = keepAliveSupported;
+    }
+
+    /**
+     * Tells the shared server to expect connections with the handshake.
+     *
+     * @return The port of the shared server.
+     */
+    @Override
+    public int start() {
+        incoming = sharedServer.expect(handshake);
+        return sharedServer.getPort();
+    }
+
+    /**
+     * Waits for the first connection with the handshake.
+     *
+     * @return The connection, or <code>null</code> if none arrived before the timeout, or it was closed.
+     */
+    @Override
+    public Socket waitForConnection() {
+        final SocketChannel connection = pollConnection(true);
+
+        if (connection != null) {
+            return connection.socket();
+        }
+
+        return null;
+    }
+
+    /**
+     * Waits for one more connection with the handshake.
+     *
+     * @return The connection.
+     * @throws IOException If no connection arrived before the timeout, or it was closed.
+     */
+    @Override
+    public SocketChannel waitForNextConnection() throws IOException {
+        final SocketChannel connection = pollConnection(false);
+
+        if (connection == null) {
+            throw new IOException("Timed out before all the connections arrived");
+        }
+
+        return connection;
+    }
+
+    /**
+     * Waits for the next connection with the handshake from the shared server.
+     *
+     * @param first If this is the first connection, which has no timeout while the sender is queued.
+     * @return The connection, or <code>null</code> if none arrived before the timeout, or it was closed.
+     */
+    private SocketChannel pollConnection(final boolean first) {
+        final BlockingQueue<SocketChannel> connections = incoming;
+        final long deadline = System.currentTimeMillis() + timeout;
+        long remaining = timeout;
+
+        while (!closed && (remaining > 0 || first && senderQueued) && connections != null) {
+            try {
+                // Past the timeout only while the sender is queued
+                final long pollTime = remaining > 0 ? Math.min(remaining, CLOSE_CHECK_INTERVAL) : CLOSE_CHECK_INTERVAL;
+                final SocketChannel connection = connections.poll(pollTime, TimeUnit.MILLISECONDS);
+
+                if (connection != null) {
+                    return connection;
+                }
+            }
+
+            catch (final InterruptedException e) {
+                LOG.log(Level.SEVERE, e.toString(), e);
+                return null;
+            }
+
+            remaining = deadline - System.currentTimeMillis();
+        }
+
+        return null;
+    }
+
+    /**
+     * The sender must start each connection with the handshake, so the shared server
+     * knows which file transfer it belongs to.
+     *
+     * @return <code>true</code>.
+     */
+    @Override
+    public boolean isHandshakeNeeded() {
+        return true;
+    }
+
+    /**
+     * Gives the connection back to the shared server, if the sender supports it,
+     * so the sender can start the next file transfer on it.
+     *
+     * @param connection The connection, with the whole file transfer read.
+     * @return If the connection was given back.
+     */
+    @Override
+    public boolean keepAlive(final SocketChannel connection) {
+        if (!keepAliveSupported) {
+            return false;
+        }
+
+        sharedServer.keepAlive(connection);
+
+        return true;
+    }
+
+    /**
+     * Keeps waiting for the first connection after the timeout, until the sender connects.
+     */
+    @Override
+    public void senderQueued() {
+        senderQueued = true;
+    }
+
+    /**
+     * Stops waiting for connections, and tells the shared server to close the connections with the handshake
+     * that no one took.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        sharedServer.forget(handshake);
+    }
+}
@@ -0,0 +1,307 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.usikkert.kouchat.util.Validate;
+
+/**
+ * A pool of idle file transfer connections to other users, so back to back file transfers
+ * to the same user don't have to connect and ramp up the speed again for each file.
+ *
+ * <p>When a file sender is done with a connection that the receiver keeps open, the connection is
+ * released to the pool. The next file sender to the same address acquires it, and starts the next
+ * file transfer on it with a new {@link TransferHandshake}. The handshake tells the receiver which
+ * file transfer the bytes belong to, and the receiver knows the length of the file from the offer.</p>
+ *
+ * <p>Connections idle for longer than the timeout are closed. The timeout is shorter than the time the
+ * {@link FileTransferServer} of the receiver keeps the connection open, so the connections in the pool
+ * should still be open in the other end. Connections closed by the receiver anyway are skipped.</p>
+ *
+ * @author Christian Ihle
+ */
+public class TransferConnectionPool {
+
+    /** The logger. */
+    private static final Logger LOG = Logger.getLogger(TransferConnectionPool.class.getName());
+
+    /** Milliseconds a connection can be idle in the pool, before it's closed. */
+    static final int IDLE_TIMEOUT = 20000;
+
+    /** The max number of idle connections to keep for each address. */
+    static final int MAX_IDLE_PER_ADDRESS = 4;
+
+    /** The event loop closing idle connections, or <code>null</code> to only close them when the pool is used. */
+    private final NetworkEventLoop eventLoop;
+
+    /** Milliseconds a connection can be idle in the pool. */
+    private final int idleTimeout;
+
+    /** The idle connections for each address, with the most recently used first. */
+    private final Map<InetSocketAddress, Deque<IdleConnection>> idleConnections;
+
+    /** Closes the connections that have been idle for too long. */
+    private final Runnable evictTask;
+
+    /**
+     * Constructor.
+     *
+     * @param eventLoop The event loop closing idle connections, or <code>null</code>.
+     */
+    public TransferConnectionPool(final NetworkEventLoop eventLoop) {
+        this(eventLoop, IDLE_TIMEOUT);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param eventLoop The event loop closing idle connections, or <code>null</code>.
+     * @param idleTimeout Milliseconds a connection can be idle in the pool.
+     */
+    TransferConnectionPool(final NetworkEventLoop eventLoop, final int idleTimeout) {
+        this.eventLoop = eventLoop;
+        this.idleTimeout = idleTimeout;
+
+        idleConnections = new HashMap<InetSocketAddress, Deque<IdleConnection>>();
+        evictTask = new Runnable() {
+            @Override
+            public void run() {
+                evictIdleConnections();
+            }
+        };
+    }
+
+    /**
+     * Takes the most recently used idle connection to the address out of the pool.
+     *
+     * @param address The address of the receiver, with the port of its file transfer server.
+     * @return The connection, in blocking mode, or <code>null</code> if there are no open connections to the address.
+     */
+    public synchronized SocketChannel acquire(final InetSocketAddress address) {
+        Validate.notNull(address, "Address can not be null");
+
+        evictIdleConnections();
+        final Deque<IdleConnection> connections = idleConnections.get(address);
+
+        if (connections == null) {
+            return null;
+        }
+
+        SocketChannel found = null;
+
+        while (found == null && !connections.isEmpty()) {
+            final SocketChannel connection = connections.pollFirst().getConnection();
+
+            if (isStillOpen(connection)) {
+                found = connection;
+            }
+
+            else {
+                close(connection);
+            }
+        }
+
+        if (connections.isEmpty()) {
+            idleConnections.remove(address);
+        }
+
+        return found;
+    }
+
+    /**
+     * Puts a connection the receiver keeps open back into the pool, for the next file transfer to the address.
+     * If the pool already has the max number of connections to the address, the least recently used is closed.
+     *
+     * @param address The address of the receiver, with the port of its file transfer server.
+     * @param connection The connection, in blocking mode, with no file transfer in progress.
+     */
+    public void release(final InetSocketAddress address, final SocketChannel connection) {
+        Validate.notNull(address, "Address can not be null");
+        Validate.notNull(connection, "Connection can not be null");
+
+        if (!connection.isOpen()) {
+            return;
+        }
+
+        synchronized (this) {
+            Deque<IdleConnection> connections = idleConnections.get(address);
+
+            if (connections == null) {
+                connections = new ArrayDeque<IdleConnection>();
+                idleConnections.put(address, connections);
+            }
+
+            if (connections.size() >= MAX_IDLE_PER_ADDRESS) {
+                close(connections.pollLast().getConnection());
+            }
+
+            connections.addFirst(new IdleConnection(connection));
+        }
+
+        if (eventLoop != null && eventLoop.isRunning()) {
+            eventLoop.schedule(evictTask, idleTimeout);
+        }
+    }
+
+    /**
+     * Gets the number of idle connections in the pool.
+     *
+     * @return The number of idle connections.
+     */
+    public synchronized int getIdleCount() {
+        int count = 0;
+
+        for (final Deque<IdleConnection> connections : idleConnections.values()) {
+            count += connections.size();
+        }
+
+        return count;
+    }
+
+    /**
+     * Closes all the idle connections. Used when the network goes down.
+     */
+    public synchronized void closeAll() {
+        for (final Deque<IdleConnection> connections : idleConnections.values()) {
+            for (final IdleConnection connection : connections) {
+                close(connection.getConnection());
+            }
+        }
+
+        idleConnections.clear();
+    }
+
+    /**
+     * Closes the connections that have been idle for longer than the timeout.
+     */
+    private synchronized void evictIdleConnections() {
+        final long oldest = System.currentTimeMillis() - idleTimeout;
+        final Iterator<Deque<IdleConnection>> addresses = idleConnections.values().iterator();
+
+        while (addresses.hasNext()) {
+            final Deque<IdleConnection> connections = addresses.next();
+
+            // The least recently used are at the end
+            while (!connections.isEmpty() && connections.peekLast().getIdleSince() <= oldest) {
+                LOG.log(Level.FINE, "Closing idle file transfer connection");
+                close(connections.pollLast().getConnection());
+            }
+
+            if (connections.isEmpty()) {
+                addresses.remove();
+            }
+        }
+    }
+
+    /**
+     * Checks that the receiver has not closed the connection while it was idle. Nothing should arrive
+     * on an idle connection, so anything to read means it can't be used.
+     *
+     * @param connection The connection to check.
+     * @return If the connection can be used for the next file transfer.
+     */
+    private boolean isStillOpen(final SocketChannel connection) {
+        if (!connection.isOpen()) {
+            return false;
+        }
+
+        try {
+            connection.configureBlocking(false);
+            final int read = connection.read(ByteBuffer.allocate(1));
+            connection.configureBlocking(true);
+
+            return read == 0;
+        }
+
+        catch (final IOException e) {
+            LOG.log(Level.FINE, e.toString());
+            return false;
+        }
+    }
+
+    /**
+     * Closes the connection.
+     *
+     * @param connection The connection to close.
+     */
+    private void close(final SocketChannel connection) {
+        try {
+            connection.close();
+        }
+
+        catch (final IOException e) {
+            LOG.log(Level.WARNING, e.toString());
+        }
+    }
+
+    /**
+     * A connection in the pool, and when it became idle.
+     */
+    private static class IdleConnection {
+
+        /** The idle connection. */
+        private final SocketChannel connection;
+
+        /** When the connection was put in the pool, in milliseconds since 1970. */
+        private final long idleSince;
+
+        /**
+         * Constructor.
+         *
+         * @param connection The idle connection.
+         */
+        IdleConnection(final SocketChannel connection) {
+            this.connection = connection;
+            idleSince = System.currentTimeMillis();
+        }
+
+        /**
+         * Gets the idle connection.
+         *
+         * @return The connection.
+         */
+        public SocketChannel getConnection() {
+            return connection;
+        }
+
+        /**
+         * Gets when the connection was put in the pool.
+         *
+         * @return Milliseconds since 1970.
+         */
+        public long getIdleSince() {
+            return idleSince;
+        }
+    }
+}
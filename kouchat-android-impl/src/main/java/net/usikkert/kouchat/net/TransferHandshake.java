@@ -0,0 +1,135 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * The first bytes the file sender writes on each connection to a {@link FileTransferServer},
+ * so the connection can be given to the right file receiver.
+ *
+ * <p>The handshake is made from the unique code of the file sender, and the id the
+ * file receiver gave the transfer in the <code>SENDFILEACCEPT</code> message. It starts
+ * with a magic number, to quickly get rid of connections from anything else.</p>
+ *
+ * <p>Only used when the file sender has the {@link Capability#HANDSHAKE} capability.</p>
+ *
+ * @author Christian Ihle
+ */
+public final class TransferHandshake {
+
+    /** The number of bytes in a handshake. */
+    public static final int SIZE = 12;
+
+    /** The magic number at the start of a handshake. Spells KCFT. */
+    private static final int MAGIC = 0x4B434654;
+
+    /** Prime used when combining the parts of the handshake into a hash code. */
+    private static final int HASH_PRIME = 31;
+
+    /** The unique code of the user sending the file. */
+    private final int userCode;
+
+    /** The id of the file transfer, as given by the file receiver. */
+    private final int transferId;
+
+    /**
+     * Constructor.
+     *
+     * @param userCode The unique code of the user sending the file.
+     * @param transferId The id of the file transfer, as given by the file receiver.
+     */
+    public TransferHandshake(final int userCode, final int transferId) {
+        this.userCode = userCode;
+        this.transferId = transferId;
+    }
+
+    /**
+     * Gets the unique code of the user sending the file.
+     *
+     * @return The user code.
+     */
+    public int getUserCode() {
+        return userCode;
+    }
+
+    /**
+     * Gets the id of the file transfer, as given by the file receiver.
+     *
+     * @return The file transfer id.
+     */
+    public int getTransferId() {
+        return transferId;
+    }
+
+    /**
+     * Writes the handshake to the connection.
+     *
+     * @param connection The connection to write to. Must be in blocking mode.
+     * @throws IOException If writing failed.
+     */
+    public void write(final WritableByteChannel connection) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(SIZE);
+        buffer.putInt(MAGIC).putInt(userCode).putInt(transferId).flip();
+
+        while (buffer.hasRemaining()) {
+            connection.write(buffer);
+        }
+    }
+
+    /**
+     * Reads a handshake from a buffer with {@link #SIZE} bytes remaining.
+     *
+     * @param buffer The buffer to read from.
+     * @return The handshake, or <code>null</code> if the bytes are not a handshake.
+     */
+    public static TransferHandshake read(final ByteBuffer buffer) {
+        if (buffer.remaining() < SIZE || buffer.getInt() != MAGIC) {
+            return null;
+        }
+
+        return new TransferHandshake(buffer.getInt(), buffer.getInt());
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj) {
+            return true;
+        }
+
+        if (!(obj instanceof TransferHandshake)) {
+            return false;
+        }
+
+        final TransferHandshake other = (TransferHandshake) obj;
+
+        return userCode == other.userCode && transferId == other.transferId;
+    }
+
+    @Override
+    public int hashCode() {
+        return HASH_PRIME * userCode + transferId;
+    }
+}
@@ -0,0 +1,350 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import net.usikkert.kouchat.misc.User;
+import net.usikkert.kouchat.util.Validate;
+
+/**
+ * Indexes of file transfers, for looking up a file transfer without going through all of them.
+ *
+ * <p>The file transfers are indexed by id, by user, by user and file name, and by user, file name
+ * and file hash. The users are identified by their unique code. The file name is the name of the file
+ * when the transfer was added, so a file receiver can still be found by the name of the offered file
+ * after saving it with another name.</p>
+ *
+ * <p>Lookups don't lock, and can be done from any thread while other threads add and remove
+ * file transfers. The lists returned are snapshots, that never change.</p>
+ *
+ * @param <T> The type of file transfer.
+ * @author Christian Ihle
+ */
+class TransferIndex<T extends FileTransfer> {
+
+    /** Prime used when combining the parts of a key into a hash code. */
+    private static final int HASH_PRIME = 31;
+
+    /** Sorts file transfers by id, which is the order they were added. */
+    private final Comparator<T> idComparator = new Comparator<T>() {
+        @Override
+        public int compare(final T transfer1, final T transfer2) {
+            return Integer.valueOf(transfer1.getId()).compareTo(transfer2.getId());
+        }
+    };
+
+    /** The file transfers, by id. */
+    private final ConcurrentMap<Integer, Entry<T>> byId;
+
+    /** The file transfers for each user, by user code. */
+    private final ConcurrentMap<Integer, List<T>> byUser;
+
+    /** The file transfers by user code and file name. */
+    private final ConcurrentMap<Key, List<T>> byName;
+
+    /** The file transfers by user code, file name and file hash. */
+    private final ConcurrentMap<Key, List<T>> byNameAndHash;
+
+    /**
+     * Constructor.
+     */
+    TransferIndex() {
+        byId = new ConcurrentHashMap<Integer, Entry<T>>();
+        byUser = new ConcurrentHashMap<Integer, List<T>>();
+        byName = new ConcurrentHashMap<Key, List<T>>();
+        byNameAndHash = new ConcurrentHashMap<Key, List<T>>();
+    }
+
+    /**
+     * Adds the file transfer to all the indexes.
+     *
+     * @param transfer The file transfer to add.
+     */
+    public synchronized void add(final T transfer) {
+        Validate.notNull(transfer, "Transfer can not be null");
+
+        final int userCode = transfer.getUser().getCode();
+        final String fileName = transfer.getFile().getName();
+        final Key nameKey = new Key(userCode, fileName, 0);
+        final Key hashKey = new Key(userCode, fileName, transfer.getFile().hashCode());
+
+        byId.put(transfer.getId(), new Entry<T>(transfer, nameKey, hashKey));
+        addTo(byUser, userCode, transfer);
+        addTo(byName, nameKey, transfer);
+        addTo(byNameAndHash, hashKey, transfer);
+    }
+
+    /**
+     * Removes the file transfer from all the indexes. Does nothing if the transfer is not indexed.
+     *
+     * @param transfer The file transfer to remove.
+     */
+    public synchronized void remove(final T transfer) {
+        if (transfer == null) {
+            return;
+        }
+
+        final Entry<T> entry = byId.get(transfer.getId());
+
+        if (entry == null || entry.transfer != transfer) {
+            return;
+        }
+
+        byId.remove(transfer.getId());
+        removeFrom(byUser, entry.nameKey.userCode, transfer);
+        removeFrom(byName, entry.nameKey, transfer);
+        removeFrom(byNameAndHash, entry.hashKey, transfer);
+    }
+
+    /**
+     * Gets the file transfer with the id, if it's with the user.
+     *
+     * @param user The other user in the file transfer.
+     * @param id The id of the file transfer.
+     * @return The file transfer, or <code>null</code> if none was found.
+     */
+    public T get(final User user, final int id) {
+        final Entry<T> entry = byId.get(id);
+
+        if (user == null || entry == null || entry.nameKey.userCode != user.getCode()) {
+            return null;
+        }
+
+        return entry.transfer;
+    }
+
+    /**
+     * Gets the first file transfer added for the user and file name.
+     *
+     * @param user The other user in the file transfer.
+     * @param fileName The name of the file.
+     * @return The file transfer, or <code>null</code> if none was found.
+     */
+    public T get(final User user, final String fileName) {
+        if (user == null || fileName == null) {
+            return null;
+        }
+
+        return getFirst(byName.get(new Key(user.getCode(), fileName, 0)));
+    }
+
+    /**
+     * Gets the first file transfer added for the user, file name and file hash.
+     *
+     * @param user The other user in the file transfer.
+     * @param fileName The name of the file.
+     * @param fileHash The hash code of the file.
+     * @return The file transfer, or <code>null</code> if none was found.
+     */
+    public T get(final User user, final String fileName, final int fileHash) {
+        if (user == null || fileName == null) {
+            return null;
+        }
+
+        return getFirst(byNameAndHash.get(new Key(user.getCode(), fileName, fileHash)));
+    }
+
+    /**
+     * Gets the file transfers with the user, in the order they were added.
+     *
+     * @param user The other user in the file transfers.
+     * @return A snapshot of the file transfers.
+     */
+    public List<T> getAll(final User user) {
+        if (user == null) {
+            return Collections.emptyList();
+        }
+
+        final List<T> transfers = byUser.get(user.getCode());
+
+        if (transfers == null) {
+            return Collections.emptyList();
+        }
+
+        return Collections.unmodifiableList(new ArrayList<T>(transfers));
+    }
+
+    /**
+     * Gets all the file transfers, in the order they were added.
+     *
+     * @return A snapshot of the file transfers.
+     */
+    public List<T> getAll() {
+        final List<T> transfers = new ArrayList<T>(byId.size());
+
+        for (final Entry<T> entry : byId.values()) {
+            transfers.add(entry.transfer);
+        }
+
+        Collections.sort(transfers, idComparator);
+
+        return Collections.unmodifiableList(transfers);
+    }
+
+    /**
+     * Gets the first file transfer in the list.
+     *
+     * @param transfers The list, or <code>null</code>.
+     * @return The first file transfer, or <code>null</code> if the list is empty or missing.
+     */
+    private T getFirst(final List<T> transfers) {
+        if (transfers == null) {
+            return null;
+        }
+
+        // Iterates over a snapshot, in case another thread empties the list
+        final Iterator<T> iterator = transfers.iterator();
+
+        if (iterator.hasNext()) {
+            return iterator.next();
+        }
+
+        return null;
+    }
+
+    /**
+     * Adds the file transfer to the list for the key. Must be called while holding the lock.
+     *
+     * @param index The index to add to.
+     * @param key The key of the list.
+     * @param transfer The file transfer to add.
+     * @param <K> The type of key.
+     */
+    private <K> void addTo(final ConcurrentMap<K, List<T>> index, final K key, final T transfer) {
+        List<T> transfers = index.get(key);
+
+        if (transfers == null) {
+            transfers = new CopyOnWriteArrayList<T>();
+            index.put(key, transfers);
+        }
+
+        transfers.add(transfer);
+    }
+
+    /**
+     * Removes the file transfer from the list for the key, and the list when empty.
+     * Must be called while holding the lock.
+     *
+     * @param index The index to remove from.
+     * @param key The key of the list.
+     * @param transfer The file transfer to remove.
+     * @param <K> The type of key.
+     */
+    private <K> void removeFrom(final ConcurrentMap<K, List<T>> index, final K key, final T transfer) {
+        final List<T> transfers = index.get(key);
+
+        if (transfers != null) {
+            transfers.remove(transfer);
+
+            if (transfers.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+
+    /**
+     * A file transfer, with the keys it was indexed with.
+     *
+     * @param <E> The type of file transfer.
+     */
+    private static class Entry<E> {
+
+        /** The file transfer. */
+        private final E transfer;
+
+        /** The key in the index by file name. */
+        private final Key nameKey;
+
+        /** The key in the index by file name and hash. */
+        private final Key hashKey;
+
+        /**
+         * Constructor.
+         *
+         * @param transfer The file transfer.
+         * @param nameKey The key in the index by file name.
+         * @param hashKey The key in the index by file name and hash.
+         */
+        Entry(final E transfer, final Key nameKey, final Key hashKey) {
+            this.transfer = transfer;
+            this.nameKey = nameKey;
+            this.hashKey = hashKey;
+        }
+    }
+
+    /**
+     * Key of a file transfer with a user, made from the user code, the file name and the file hash.
+     */
+    private static class Key {
+
+        /** The unique code of the user. */
+        private final int userCode;
+
+        /** The name of the file. */
+        private final String fileName;
+
+        /** The hash code of the file, or <code>0</code> when not used. */
+        private final int fileHash;
+
+        /**
+         * Constructor.
+         *
+         * @param userCode The unique code of the user.
+         * @param fileName The name of the file.
+         * @param fileHash The hash code of the file, or <code>0</code> when not used.
+         */
+        Key(final int userCode, final String fileName, final int fileHash) {
+            this.userCode = userCode;
+            this.fileName = fileName;
+            this.fileHash = fileHash;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+
+            final Key other = (Key) obj;
+
+            return userCode == other.userCode && fileHash == other.fileHash && fileName.equals(other.fileName);
+        }
+
+        @Override
+        public int hashCode() {
+            return HASH_PRIME * (HASH_PRIME * userCode + fileName.hashCode()) + fileHash;
+        }
+    }
+}
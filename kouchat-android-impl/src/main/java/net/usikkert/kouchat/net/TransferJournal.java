@@ -0,0 +1,347 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.Checksum;
+
+import net.usikkert.kouchat.util.Validate;
+
+/**
+ * A small journal next to a file being received, to make it possible to resume
+ * the file transfer if it's interrupted.
+ *
+ * <p>The journal is saved as <code>file name + {@link #SUFFIX}</code>, and contains the number of
+ * bytes received, the checksum of those bytes, and what file is being received. Since the journal
+ * is a file, it survives a restart of the application.</p>
+ *
+ * <p>Before resuming, the bytes already in the partial file are checked against the checksum,
+ * so a partial file that has been changed or truncated is received again from the beginning.</p>
+ *
+ * @author Christian Ihle
+ */
+class TransferJournal {
+
+    /** The logger. */
+    private static final Logger LOG = Logger.getLogger(TransferJournal.class.getName());
+
+    /** Added to the name of the partial file to get the name of the journal. */
+    static final String SUFFIX = ".resume";
+
+    /** The minimum number of milliseconds between each time the journal is saved during the transfer. */
+    static final int SAVE_INTERVAL = 1000;
+
+    /** The size of the buffer used when checking the partial file. */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** Key of the name of the file, as given by the sender. */
+    private static final String KEY_FILE_NAME = "fileName";
+
+    /** Key of the hash code of the file, as given by the sender. */
+    private static final String KEY_FILE_HASH = "fileHash";
+
+    /** Key of the size of the file. */
+    private static final String KEY_SIZE = "size";
+
+    /** Key of the number of bytes received. */
+    private static final String KEY_OFFSET = "offset";
+
+    /** Key of the checksum of the bytes received. */
+    private static final String KEY_CHECKSUM = "checksum";
+
+    /** The partial file. */
+    private final File file;
+
+    /** The journal. */
+    private final File journalFile;
+
+    /** The name of the file, as given by the sender. */
+    private final String fileName;
+
+    /** The hash code of the file, as given by the sender. */
+    private final int fileHash;
+
+    /** The size of the file. */
+    private final long size;
+
+    /** When the journal was last saved. */
+    private long lastSave;
+
+    /**
+     * Constructor.
+     *
+     * @param file The partial file.
+     * @param fileName The name of the file, as given by the sender.
+     * @param fileHash The hash code of the file, as given by the sender.
+     * @param size The size of the file.
+     */
+    TransferJournal(final File file, final String fileName, final int fileHash, final long size) {
+        Validate.notNull(file, "File can not be null");
+        Validate.notNull(fileName, "File name can not be null");
+
+        this.file = file;
+        this.fileName = fileName;
+        this.fileHash = fileHash;
+        this.size = size;
+
+        journalFile = new File(file.getPath() + SUFFIX);
+    }
+
+    /**
+     * Finds where the transfer can be resumed from, if the journal is for the same file,
+     * and the partial file still matches the checksum in the journal.
+     *
+     * <p>The bytes in the partial file are read into the checksum, so the checksum
+     * can be updated from where the transfer resumes.</p>
+     *
+     * @param checksum The checksum to read the partial file into. Reset if the transfer can't be resumed.
+     * @return The number of bytes to skip, or <code>0</code> to start from the beginning.
+     */
+    public long findResumeOffset(final Checksum checksum) {
+        checksum.reset();
+
+        final Properties journal = loadMatching();
+
+        if (journal == null) {
+            return 0;
+        }
+
+        try {
+            final long offset = Long.parseLong(journal.getProperty(KEY_OFFSET));
+            final long expectedChecksum = Long.parseLong(journal.getProperty(KEY_CHECKSUM));
+
+            readInto(checksum, offset);
+
+            if (checksum.getValue() != expectedChecksum) {
+                LOG.log(Level.WARNING, "Partial file does not match the journal: " + file);
+                checksum.reset();
+                return 0;
+            }
+
+            return offset;
+        }
+
+        catch (final NumberFormatException e) {
+            LOG.log(Level.WARNING, "Invalid journal: " + journalFile, e);
+        }
+
+        catch (final IOException e) {
+            LOG.log(Level.WARNING, e.toString(), e);
+        }
+
+        checksum.reset();
+
+        return 0;
+    }
+
+    /**
+     * Checks if there is a journal for the same file, and the partial file is long enough to resume from.
+     * Unlike {@link #findResumeOffset(Checksum)}, the bytes in the partial file are not checked.
+     *
+     * <p>Used to decide if an existing file is a partial file to keep, or a different file to avoid.</p>
+     *
+     * @return If the journal is for the same file.
+     */
+    public boolean matches() {
+        return loadMatching() != null;
+    }
+
+    /**
+     * Loads the journal, if it's for the same file, and the partial file is long enough to resume from.
+     *
+     * @return The content of the journal, or <code>null</code> if it does not match.
+     */
+    private Properties loadMatching() {
+        if (!journalFile.exists() || !file.exists()) {
+            return null;
+        }
+
+        try {
+            final Properties journal = load();
+
+            if (!fileName.equals(journal.getProperty(KEY_FILE_NAME)) ||
+                    fileHash != Integer.parseInt(journal.getProperty(KEY_FILE_HASH)) ||
+                    size != Long.parseLong(journal.getProperty(KEY_SIZE))) {
+                return null;
+            }
+
+            final long offset = Long.parseLong(journal.getProperty(KEY_OFFSET));
+
+            if (offset <= 0 || offset >= size || file.length() < offset) {
+                return null;
+            }
+
+            return journal;
+        }
+
+        catch (final NumberFormatException e) {
+            LOG.log(Level.WARNING, "Invalid journal: " + journalFile, e);
+        }
+
+        catch (final IOException e) {
+            LOG.log(Level.WARNING, e.toString(), e);
+        }
+
+        return null;
+    }
+
+    /**
+     * Saves the journal, if more than {@link #SAVE_INTERVAL} milliseconds have passed since the last save.
+     *
+     * @param offset The number of bytes received.
+     * @param checksum The checksum of the received bytes.
+     */
+    public void saveIfDue(final long offset, final long checksum) {
+        if (System.currentTimeMillis() - lastSave >= SAVE_INTERVAL) {
+            save(offset, checksum);
+        }
+    }
+
+    /**
+     * Saves the journal. Failing to save is only logged, since it only means the transfer can't be resumed.
+     *
+     * @param offset The number of bytes received.
+     * @param checksum The checksum of the received bytes.
+     */
+    public void save(final long offset, final long checksum) {
+        lastSave = System.currentTimeMillis();
+
+        final Properties journal = new Properties();
+        journal.setProperty(KEY_FILE_NAME, fileName);
+        journal.setProperty(KEY_FILE_HASH, String.valueOf(fileHash));
+        journal.setProperty(KEY_SIZE, String.valueOf(size));
+        journal.setProperty(KEY_OFFSET, String.valueOf(offset));
+        journal.setProperty(KEY_CHECKSUM, String.valueOf(checksum));
+
+        OutputStream outputStream = null;
+
+        try {
+            outputStream = new FileOutputStream(journalFile);
+            journal.store(outputStream, null);
+        }
+
+        catch (final IOException e) {
+            LOG.log(Level.WARNING, "Could not save journal: " + journalFile, e);
+        }
+
+        finally {
+            close(outputStream);
+        }
+    }
+
+    /**
+     * Deletes the journal, when the file is complete.
+     */
+    public void delete() {
+        if (journalFile.exists() && !journalFile.delete()) {
+            LOG.log(Level.WARNING, "Could not delete journal: " + journalFile);
+        }
+    }
+
+    /**
+     * Gets the journal file.
+     *
+     * @return The journal file.
+     */
+    public File getJournalFile() {
+        return journalFile;
+    }
+
+    /**
+     * Loads the journal.
+     *
+     * @return The content of the journal.
+     * @throws IOException If the journal could not be read.
+     */
+    private Properties load() throws IOException {
+        final Properties journal = new Properties();
+        final InputStream inputStream = new FileInputStream(journalFile);
+
+        try {
+            journal.load(inputStream);
+        }
+
+        finally {
+            close(inputStream);
+        }
+
+        return journal;
+    }
+
+    /**
+     * Reads the first bytes of the partial file into the checksum.
+     *
+     * @param checksum The checksum to update.
+     * @param count The number of bytes to read.
+     * @throws IOException If the file could not be read.
+     */
+    private void readInto(final Checksum checksum, final long count) throws IOException {
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        final InputStream inputStream = new FileInputStream(file);
+
+        try {
+            long remaining = count;
+
+            while (remaining > 0) {
+                final int read = inputStream.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+
+                if (read == -1) {
+                    throw new IOException("Partial file is shorter than the journal: " + file);
+                }
+
+                checksum.update(buffer, 0, read);
+                remaining -= read;
+            }
+        }
+
+        finally {
+            close(inputStream);
+        }
+    }
+
+    /**
+     * Closes the stream, if not <code>null</code>.
+     *
+     * @param stream The stream to close.
+     */
+    private void close(final Closeable stream) {
+        if (stream != null) {
+            try {
+                stream.close();
+            }
+
+            catch (final IOException e) {
+                LOG.log(Level.WARNING, e.toString(), e);
+            }
+        }
+    }
+}
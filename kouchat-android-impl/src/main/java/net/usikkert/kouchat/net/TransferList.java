@@ -25,31 +25,88 @@ package net.usikkert.kouchat.net;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.usikkert.kouchat.misc.User;
+import net.usikkert.kouchat.util.Validate;
 
 /**
  * This class keeps a list of all the ongoing file transfers.
  *
+ * <p>The file transfers in the list share a {@link TransferScheduler}, that decides when they can
+ * start and how fast they can go. Removing a file transfer releases it from the scheduler.</p>
+ *
+ * <p>The file transfers are kept in a {@link TransferIndex}, so they can be looked up without
+ * going through all of them. The list can be used from several threads at the same time,
+ * and the lists returned are snapshots that never change.</p>
+ *
  * @author Christian Ihle
  */
 public class TransferList {
 
-    /** The list of all the file senders. */
-    private final List<FileSender> senders;
+    /** The file senders. */
+    private final TransferIndex<FileSender> senders;
+
+    /** The file receivers. */
+    private final TransferIndex<FileReceiver> receivers;
 
-    /** The list of all the file receivers. */
-    private final List<FileReceiver> receivers;
+    /** The senders of files to everyone. */
+    private final List<MulticastFileSender> multicastSenders;
 
     /** Counter for unique file transfer id's. */
-    private int fileTransferIdCounter;
+    private final AtomicInteger fileTransferIdCounter;
+
+    /** The event loop used by file receivers, or <code>null</code>. */
+    private final NetworkEventLoop eventLoop;
+
+    /** If the file transfers should use channels, or streams. */
+    private final boolean channelTransfers;
+
+    /** The max number of connections to receive a file over at the same time. */
+    private final int maxStreams;
+
+    /** Decides when the file transfers can start, and how fast they can go. */
+    private final TransferScheduler scheduler;
+
+    /** The shared server for the file receivers, or <code>null</code> if not used. */
+    private final FileTransferServer fileTransferServer;
+
+    /** The idle connections the file senders can use again. */
+    private final TransferConnectionPool connectionPool;
 
     /**
-     * Constructor.
+     * Constructor. Creates a list using channels and a single connection for each file transfer,
+     * without any limits on the file transfers.
      */
     public TransferList() {
-        senders = new ArrayList<FileSender>();
-        receivers = new ArrayList<FileReceiver>();
+        this(null, true, 1, new TransferScheduler(), null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param eventLoop The event loop the file receivers should use, or <code>null</code>.
+     * @param channelTransfers If the file transfers should use channels, or streams.
+     * @param maxStreams The max number of connections to receive a file over at the same time.
+     * @param scheduler Decides when the file transfers can start, and how fast they can go.
+     * @param fileTransferServer The shared server for the file receivers, or <code>null</code>.
+     */
+    public TransferList(final NetworkEventLoop eventLoop, final boolean channelTransfers, final int maxStreams,
+                        final TransferScheduler scheduler, final FileTransferServer fileTransferServer) {
+        Validate.notNull(scheduler, "Scheduler can not be null");
+
+        this.eventLoop = eventLoop;
+        this.channelTransfers = channelTransfers;
+        this.maxStreams = maxStreams;
+        this.scheduler = scheduler;
+        this.fileTransferServer = fileTransferServer;
+
+        connectionPool = new TransferConnectionPool(eventLoop);
+        senders = new TransferIndex<FileSender>();
+        receivers = new TransferIndex<FileReceiver>();
+        multicastSenders = new CopyOnWriteArrayList<MulticastFileSender>();
+        fileTransferIdCounter = new AtomicInteger();
     }
 
     /**
@@ -60,19 +117,23 @@ public class TransferList {
      * @return The file sender object that was added to the transfer list.
      */
     public FileSender addFileSender(final User user, final File file) {
-        final FileSender fileSender = new FileSender(user, file, ++fileTransferIdCounter);
+        final FileSender fileSender =
+                new FileSender(user, file, fileTransferIdCounter.incrementAndGet(), channelTransfers);
+        fileSender.setScheduler(scheduler);
+        fileSender.setConnectionPool(connectionPool);
         senders.add(fileSender);
 
         return fileSender;
     }
 
     /**
-     * Removes a file sender from the list.
+     * Removes a file sender from the list, and releases it from the scheduler.
      *
      * @param fileSender The file sender to remove.
      */
     public void removeFileSender(final FileSender fileSender) {
         senders.remove(fileSender);
+        scheduler.release(fileSender);
     }
 
     /**
@@ -84,16 +145,7 @@ public class TransferList {
      * @return The file sender object, or <code>null</code> if none was found.
      */
     public FileSender getFileSender(final User user, final String fileName, final int fileHash) {
-        FileSender fileSender = null;
-
-        for (final FileSender fs : senders) {
-            if (fs.getUser() == user && fs.getFile().getName().equals(fileName) && fs.getFile().hashCode() == fileHash) {
-                fileSender = fs;
-                break;
-            }
-        }
-
-        return fileSender;
+        return senders.get(user, fileName, fileHash);
     }
 
     /**
@@ -104,16 +156,7 @@ public class TransferList {
      * @return The file sender object, or <code>null</code> if none was found.
      */
     public FileSender getFileSender(final User user, final String fileName) {
-        FileSender fileSender = null;
-
-        for (final FileSender fs : senders) {
-            if (fs.getUser() == user && fs.getFile().getName().equals(fileName)) {
-                fileSender = fs;
-                break;
-            }
-        }
-
-        return fileSender;
+        return senders.get(user, fileName);
     }
 
     /**
@@ -124,13 +167,7 @@ public class TransferList {
      * @return The file sender object, or <code>null</code> if none was found.
      */
     public FileSender getFileSender(final User user, final int id) {
-        for (final FileSender fs : senders) {
-            if (fs.getUser() == user && fs.getId() == id) {
-                return fs;
-            }
-        }
-
-        return null;
+        return senders.get(user, id);
     }
 
     /**
@@ -140,15 +177,7 @@ public class TransferList {
      * @return A list of all the file senders for the user.
      */
     public List<FileSender> getFileSenders(final User user) {
-        final List<FileSender> list = new ArrayList<FileSender>();
-
-        for (final FileSender fs : senders) {
-            if (fs.getUser() == user) {
-                list.add(fs);
-            }
-        }
-
-        return list;
+        return senders.getAll(user);
     }
 
     /**
@@ -157,13 +186,36 @@ public class TransferList {
      * @return A list of all the file senders.
      */
     public List<FileSender> getFileSenders() {
-        final List<FileSender> list = new ArrayList<FileSender>();
+        return senders.getAll();
+    }
 
-        for (final FileSender fs : senders) {
-            list.add(fs);
-        }
+    /**
+     * Adds a sender of a file to everyone to the list. Not handled by the scheduler,
+     * since the file is only sent once no matter how many receive it.
+     *
+     * @param multicastSender The sender to add.
+     */
+    public void addMulticastSender(final MulticastFileSender multicastSender) {
+        Validate.notNull(multicastSender, "Multicast sender can not be null");
+        multicastSenders.add(multicastSender);
+    }
+
+    /**
+     * Removes a sender of a file to everyone from the list.
+     *
+     * @param multicastSender The sender to remove.
+     */
+    public void removeMulticastSender(final MulticastFileSender multicastSender) {
+        multicastSenders.remove(multicastSender);
+    }
 
-        return list;
+    /**
+     * Gets all the senders of files to everyone.
+     *
+     * @return A list of all the senders of files to everyone.
+     */
+    public List<MulticastFileSender> getMulticastSenders() {
+        return new ArrayList<MulticastFileSender>(multicastSenders);
     }
 
     /**
@@ -175,19 +227,43 @@ public class TransferList {
      * @return The file receiver object that was added to the transfer list.
      */
     public FileReceiver addFileReceiver(final User user, final File file, final long size) {
-        final FileReceiver fileReceiver = new FileReceiver(user, file, size, ++fileTransferIdCounter);
+        final FileReceiver fileReceiver = new FileReceiver(user, file, size, fileTransferIdCounter.incrementAndGet(),
+                                                           new TransferOptions(0, maxStreams, 0, false));
+        fileReceiver.setEventLoop(eventLoop);
+        fileReceiver.setChannelTransfers(channelTransfers);
+        fileReceiver.setScheduler(scheduler);
+        fileReceiver.setSharedServer(fileTransferServer);
         receivers.add(fileReceiver);
 
         return fileReceiver;
     }
 
     /**
-     * Removes a file receiver from the list.
+     * Removes a file receiver from the list, and releases it from the scheduler.
      *
      * @param fileReceiver The file receiver to remove.
      */
     public void removeFileReceiver(final FileReceiver fileReceiver) {
         receivers.remove(fileReceiver);
+        scheduler.release(fileReceiver);
+    }
+
+    /**
+     * Gets the scheduler that decides when the file transfers can start, and how fast they can go.
+     *
+     * @return The scheduler.
+     */
+    public TransferScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Gets the pool of idle connections the file senders can use again.
+     *
+     * @return The connection pool.
+     */
+    public TransferConnectionPool getConnectionPool() {
+        return connectionPool;
     }
 
     /**
@@ -197,52 +273,29 @@ public class TransferList {
      * @return A list of all the file receivers for the user.
      */
     public List<FileReceiver> getFileReceivers(final User user) {
-        final List<FileReceiver> list = new ArrayList<FileReceiver>();
-
-        for (final FileReceiver fr : receivers) {
-            if (fr.getUser() == user) {
-                list.add(fr);
-            }
-        }
-
-        return list;
+        return receivers.getAll(user);
     }
 
     /**
      * Gets the file receiver object for the specified user and file.
      *
      * @param user The file receiver user.
-     * @param fileName The name of the file being received.
+     * @param fileName The name of the file being received, as offered by the user.
      * @return The file receiver object, or <code>null</code> if none was found.
      */
     public FileReceiver getFileReceiver(final User user, final String fileName) {
-        FileReceiver fileReceiver = null;
-
-        for (final FileReceiver fr : receivers) {
-            if (fr.getUser() == user && fr.getFile().getName().equals(fileName)) {
-                fileReceiver = fr;
-                break;
-            }
-        }
-
-        return fileReceiver;
+        return receivers.get(user, fileName);
     }
 
     /**
      * Gets the file receiver object for the specified user and file transfer id.
      *
      * @param user The file receiver user.
-     * @param id TThe file transfer id of the file being received.
+     * @param id The file transfer id of the file being received.
      * @return The file receiver object, or <code>null</code> if none was found.
      */
     public FileReceiver getFileReceiver(final User user, final int id) {
-        for (final FileReceiver fr : receivers) {
-            if (fr.getUser() == user && fr.getId() == id) {
-                return fr;
-            }
-        }
-
-        return null;
+        return receivers.get(user, id);
     }
 
     /**
@@ -251,13 +304,7 @@ public class TransferList {
      * @return A list of all the file receivers.
      */
     public List<FileReceiver> getFileReceivers() {
-        final List<FileReceiver> list = new ArrayList<FileReceiver>();
-
-        for (final FileReceiver fr : receivers) {
-            list.add(fr);
-        }
-
-        return list;
+        return receivers.getAll();
     }
 
     /**
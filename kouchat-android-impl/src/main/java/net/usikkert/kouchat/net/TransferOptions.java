@@ -0,0 +1,140 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+/**
+ * What the receiver of a file asks the sender to do, when accepting the file transfer.
+ *
+ * <p>The receiver decides all of these alone, and sends them in the accept message.
+ * The sender does exactly what it's asked, so both sides always agree on how the file
+ * is transferred, even if one of them has missed a message about the capabilities of the other.</p>
+ *
+ * @author Christian Ihle
+ */
+public class TransferOptions {
+
+    /** The options of a plain transfer from the beginning, over a single connection. */
+    public static final TransferOptions NONE = new TransferOptions(0, 1, 0, false);
+
+    /** The number of bytes already received from an interrupted transfer. */
+    private final long resumeOffset;
+
+    /** The number of connections to send the file over. */
+    private final int streams;
+
+    /** The id to start each connection with in a {@link TransferHandshake}, or <code>0</code>. */
+    private final int handshakeId;
+
+    /** If the checksum should be exchanged at the end of the transfer, using {@link ChecksumExchange}. */
+    private final boolean checksum;
+
+    /**
+     * Constructor.
+     *
+     * @param resumeOffset The number of bytes already received from an interrupted transfer, or <code>0</code>.
+     * @param streams The number of connections to send the file over.
+     * @param handshakeId The id to start each connection with in a {@link TransferHandshake}, or <code>0</code>.
+     * @param checksum If the checksum should be exchanged at the end of the transfer.
+     */
+    public TransferOptions(final long resumeOffset, final int streams, final int handshakeId, final boolean checksum) {
+        this.resumeOffset = resumeOffset;
+        this.streams = streams;
+        this.handshakeId = handshakeId;
+        this.checksum = checksum;
+    }
+
+    /**
+     * Gets the number of bytes already received from an interrupted transfer.
+     *
+     * @return The resume offset, or <code>0</code> to send the whole file.
+     */
+    public long getResumeOffset() {
+        return resumeOffset;
+    }
+
+    /**
+     * Gets the number of connections to send the file over.
+     *
+     * @return The number of connections.
+     */
+    public int getStreams() {
+        return streams;
+    }
+
+    /**
+     * Gets the id to start each connection with in a {@link TransferHandshake}.
+     *
+     * @return The handshake id, or <code>0</code> for no handshake.
+     */
+    public int getHandshakeId() {
+        return handshakeId;
+    }
+
+    /**
+     * Checks if the checksum should be exchanged at the end of the transfer.
+     *
+     * @return If the checksum should be exchanged.
+     */
+    public boolean isChecksum() {
+        return checksum;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj) {
+            return true;
+        }
+
+        if (!(obj instanceof TransferOptions)) {
+            return false;
+        }
+
+        final TransferOptions other = (TransferOptions) obj;
+
+        return resumeOffset == other.resumeOffset && streams == other.streams &&
+                handshakeId == other.handshakeId && checksum == other.checksum;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = (int) (resumeOffset ^ (resumeOffset >>> 32));
+        result = 31 * result + streams;
+        result = 31 * result + handshakeId;
+
+        if (checksum) {
+            result = 31 * result + 1;
+        }
+
+        else {
+            result = 31 * result;
+        }
+
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "TransferOptions[resumeOffset=" + resumeOffset + ", streams=" + streams +
+                ", handshakeId=" + handshakeId + ", checksum=" + checksum + "]";
+    }
+}
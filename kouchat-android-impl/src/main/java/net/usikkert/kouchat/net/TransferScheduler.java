@@ -0,0 +1,416 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.usikkert.kouchat.misc.User;
+import net.usikkert.kouchat.util.Validate;
+
+/**
+ * Decides when file transfers can start, and how fast they can go.
+ *
+ * <p>Only a limited number of file transfers can be active at the same time, both in total and
+ * with each user. The limits are counted for each direction, since a receiver is active before its sender,
+ * and two users sending files to each other must not fill each other's limits with receivers that wait
+ * for queued senders. The rest wait in a queue, and start in the order they were queued when an active
+ * transfer is released. A queued transfer that can't start because its direction or user is at the limit
+ * doesn't block the transfers behind it in the queue. Transfers are acquired after the file is accepted,
+ * so offers that are not answered yet don't count against the limits.</p>
+ *
+ * <p>If an upload or download rate is set, the active transfers in that direction share the rate
+ * equally. Each transfer reports the bytes it has copied to
+ * {@link #throttle(FileTransfer, long)}, which sleeps until the transfer is back within its share.
+ * Only the transfers that are copying share the rate. An active transfer that has not copied anything
+ * for a while, like one waiting for the connection, does not hold back the others.</p>
+ *
+ * <p>A limit or rate of <code>0</code> means unlimited.</p>
+ *
+ * @author Christian Ihle
+ */
+public class TransferScheduler {
+
+    /** The logger. */
+    private static final Logger LOG = Logger.getLogger(TransferScheduler.class.getName());
+
+    /** Milliseconds between each check for cancel while waiting in the queue. */
+    private static final int QUEUE_CHECK_INTERVAL = 500;
+
+    /** The number of milliseconds in a second. */
+    private static final int MILLIS_PER_SECOND = 1000;
+
+    /** The max number of milliseconds a transfer can save up, after going slower than its share. */
+    private static final int MAX_BURST_TIME = 1000;
+
+    /** Milliseconds since the last copied bytes before a transfer no longer counts as copying. */
+    static final int COPYING_TIMEOUT = 2000;
+
+    /** The max number of active file transfers in each direction, or <code>0</code> for unlimited. */
+    private final int maxTransfers;
+
+    /** The max number of active file transfers in each direction with each user, or <code>0</code> for unlimited. */
+    private final int maxTransfersPerUser;
+
+    /** The max number of bytes per second to send, or <code>0</code> for unlimited. */
+    private final long maxUploadRate;
+
+    /** The max number of bytes per second to receive, or <code>0</code> for unlimited. */
+    private final long maxDownloadRate;
+
+    /** The active file transfers, and how much they have used of their share of the rate. */
+    private final Map<FileTransfer, Slot> active;
+
+    /** The file transfers waiting to start, in the order they were queued. */
+    private final List<FileTransfer> queue;
+
+    /**
+     * Constructor. Creates a scheduler without any limits.
+     */
+    public TransferScheduler() {
+        this(0, 0, 0, 0);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param maxTransfers The max number of active file transfers in each direction, or <code>0</code> for unlimited.
+     * @param maxTransfersPerUser The max number of active file transfers in each direction with each user,
+     *                            or <code>0</code> for unlimited.
+     * @param maxUploadRate The max number of bytes per second to send, or <code>0</code> for unlimited.
+     * @param maxDownloadRate The max number of bytes per second to receive, or <code>0</code> for unlimited.
+     */
+    public TransferScheduler(final int maxTransfers, final int maxTransfersPerUser,
+                             final long maxUploadRate, final long maxDownloadRate) {
+        this.maxTransfers = maxTransfers;
+        this.maxTransfersPerUser = maxTransfersPerUser;
+        this.maxUploadRate = maxUploadRate;
+        this.maxDownloadRate = maxDownloadRate;
+
+        active = new HashMap<FileTransfer, Slot>();
+        queue = new ArrayList<FileTransfer>();
+    }
+
+    /**
+     * Starts the file transfer now if there is room for it, or puts it in the queue.
+     * Does not wait.
+     *
+     * @param transfer The file transfer to start.
+     * @return If the transfer can start now. If not, the transfer is queued, and {@link #acquire(FileTransfer)}
+     *         must be used to wait for its turn.
+     */
+    public synchronized boolean tryAcquire(final FileTransfer transfer) {
+        Validate.notNull(transfer, "Transfer can not be null");
+
+        if (active.containsKey(transfer)) {
+            return true;
+        }
+
+        if (!queue.contains(transfer)) {
+            queue.add(transfer);
+        }
+
+        if (isNextToStart(transfer)) {
+            start(transfer);
+            return true;
+        }
+
+        transfer.setQueued(true);
+
+        return false;
+    }
+
+    /**
+     * Starts the file transfer when there is room for it. Waits in the queue until then,
+     * or until the transfer is canceled.
+     *
+     * @param transfer The file transfer to start.
+     * @return If the transfer was started, or <code>false</code> if it was canceled while waiting.
+     */
+    public synchronized boolean acquire(final FileTransfer transfer) {
+        if (tryAcquire(transfer)) {
+            return true;
+        }
+
+        while (!transfer.isCanceled()) {
+            waitForRelease();
+
+            if (isNextToStart(transfer)) {
+                start(transfer);
+                return true;
+            }
+        }
+
+        queue.remove(transfer);
+        transfer.setQueued(false);
+        notifyAll();
+
+        return false;
+    }
+
+    /**
+     * Releases the file transfer, so the next transfer in the queue can start.
+     * Does nothing if the transfer is not active or queued.
+     *
+     * @param transfer The file transfer that is done.
+     */
+    public synchronized void release(final FileTransfer transfer) {
+        final boolean removed = active.remove(transfer) != null || queue.remove(transfer);
+
+        if (removed) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Registers bytes copied by an active file transfer, and sleeps until the transfer
+     * is back within its share of the rate. Returns at once if there is no rate for the direction.
+     *
+     * @param transfer The file transfer that copied the bytes.
+     * @param bytes The number of bytes copied.
+     */
+    public void throttle(final FileTransfer transfer, final long bytes) {
+        final long sleepTime = registerBytes(transfer, bytes);
+
+        if (sleepTime > 0) {
+            try {
+                Thread.sleep(sleepTime);
+            }
+
+            catch (final InterruptedException e) {
+                LOG.log(Level.FINE, e.toString());
+            }
+        }
+    }
+
+    /**
+     * Gets the number of active file transfers.
+     *
+     * @return The number of active transfers.
+     */
+    public synchronized int getActiveCount() {
+        return active.size();
+    }
+
+    /**
+     * Gets the number of file transfers waiting in the queue.
+     *
+     * @return The number of queued transfers.
+     */
+    public synchronized int getQueueSize() {
+        return queue.size();
+    }
+
+    /**
+     * Caps the rate of an upload that is not scheduled here, like a file sent to everyone
+     * with multicast, to the max upload rate.
+     *
+     * @param rate The number of bytes per second the upload wants to use, or <code>0</code> for unlimited.
+     * @return The rate the upload can use, or <code>0</code> if unlimited.
+     */
+    public long capUploadRate(final long rate) {
+        if (maxUploadRate == 0) {
+            return rate;
+        }
+
+        if (rate == 0) {
+            return maxUploadRate;
+        }
+
+        return Math.min(rate, maxUploadRate);
+    }
+
+    /**
+     * Gets the number of bytes per second the file transfer can use now. The rate is shared with
+     * the other transfers in the same direction that are copying.
+     *
+     * @param transfer The file transfer.
+     * @return The share of the rate, or <code>0</code> if unlimited.
+     */
+    public synchronized long getShare(final FileTransfer transfer) {
+        final long rate = getRate(transfer.getDirection());
+
+        if (rate == 0) {
+            return 0;
+        }
+
+        final long now = currentTimeMillis();
+        int count = 1;
+
+        for (final Map.Entry<FileTransfer, Slot> other : active.entrySet()) {
+            if (other.getKey() != transfer && other.getKey().getDirection() == transfer.getDirection() &&
+                    other.getValue().isCopying(now)) {
+                count++;
+            }
+        }
+
+        return Math.max(1, rate / count);
+    }
+
+    /**
+     * Registers the bytes copied, and calculates how long to sleep to stay within the share of the rate.
+     *
+     * @param transfer The file transfer that copied the bytes.
+     * @param bytes The number of bytes copied.
+     * @return The number of milliseconds to sleep.
+     */
+    private synchronized long registerBytes(final FileTransfer transfer, final long bytes) {
+        final Slot slot = active.get(transfer);
+        final long share = getShare(transfer);
+
+        if (slot == null || share == 0) {
+            return 0;
+        }
+
+        final long now = currentTimeMillis();
+        slot.lastCopyTime = now;
+        slot.nextTime = Math.max(slot.nextTime, now - MAX_BURST_TIME) + bytes * MILLIS_PER_SECOND / share;
+
+        return slot.nextTime - now;
+    }
+
+    /**
+     * Checks if the queued file transfer can start now. It can start if there is room for it,
+     * and no transfer before it in the queue can start.
+     *
+     * @param transfer The queued file transfer.
+     * @return If the transfer can start.
+     */
+    private boolean isNextToStart(final FileTransfer transfer) {
+        for (final FileTransfer next : queue) {
+            if (hasRoomFor(next.getDirection(), next.getUser())) {
+                return next == transfer;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Checks if another file transfer in the direction with the user can be active. Users are compared by code,
+     * since the same user can be a new instance after logging on again.
+     *
+     * @param direction The direction of the file transfer.
+     * @param user The user.
+     * @return If the direction and the user are below the limits.
+     */
+    private boolean hasRoomFor(final FileTransfer.Direction direction, final User user) {
+        int count = 0;
+        int userCount = 0;
+
+        for (final FileTransfer transfer : active.keySet()) {
+            if (transfer.getDirection() == direction) {
+                count++;
+
+                if (transfer.getUser().getCode() == user.getCode()) {
+                    userCount++;
+                }
+            }
+        }
+
+        return (maxTransfers <= 0 || count < maxTransfers) && (maxTransfersPerUser <= 0 || userCount < maxTransfersPerUser);
+    }
+
+    /**
+     * Moves the file transfer from the queue to the active transfers.
+     *
+     * @param transfer The file transfer to start.
+     */
+    private void start(final FileTransfer transfer) {
+        queue.remove(transfer);
+        active.put(transfer, new Slot(currentTimeMillis()));
+        transfer.setQueued(false);
+    }
+
+    /**
+     * Gets the rate for the direction.
+     *
+     * @param direction The direction of a file transfer.
+     * @return The max bytes per second, or <code>0</code> for unlimited.
+     */
+    private long getRate(final FileTransfer.Direction direction) {
+        if (direction == FileTransfer.Direction.SEND) {
+            return maxUploadRate;
+        }
+
+        return maxDownloadRate;
+    }
+
+    /**
+     * Waits for a transfer to be released, or for a while to check if the transfer was canceled.
+     * Must be called while holding the lock.
+     */
+    private void waitForRelease() {
+        try {
+            wait(QUEUE_CHECK_INTERVAL);
+        }
+
+        catch (final InterruptedException e) {
+            LOG.log(Level.FINE, e.toString());
+        }
+    }
+
+    /**
+     * Gets the current time. Can be overridden in tests.
+     *
+     * @return The current time in milliseconds.
+     */
+    long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * The state of an active file transfer.
+     */
+    private static class Slot {
+
+        /** When the transfer is within its share of the rate again, after the bytes copied so far. */
+        private long nextTime;
+
+        /** When the transfer last copied bytes, or <code>0</code> if it has not copied anything yet. */
+        private long lastCopyTime;
+
+        /**
+         * Constructor.
+         *
+         * @param startTime When the transfer started.
+         */
+        Slot(final long startTime) {
+            nextTime = startTime;
+        }
+
+        /**
+         * Checks if the transfer has copied bytes recently.
+         *
+         * @param now The current time.
+         * @return If the transfer is copying.
+         */
+        boolean isCopying(final long now) {
+            return lastCopyTime > 0 && now - lastCopyTime < COPYING_TIMEOUT;
+        }
+    }
+}
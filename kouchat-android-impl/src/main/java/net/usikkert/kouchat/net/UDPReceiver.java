@@ -25,10 +25,12 @@ package net.usikkert.kouchat.net;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.nio.ByteBuffer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import net.usikkert.kouchat.Constants;
+import net.usikkert.kouchat.event.ByteReceiverListener;
 import net.usikkert.kouchat.event.ReceiverListener;
 import net.usikkert.kouchat.misc.ErrorHandler;
 import net.usikkert.kouchat.misc.Settings;
@@ -41,7 +43,7 @@ import net.usikkert.kouchat.util.Validate;
  *
  * @author Christian Ihle
  */
-public class UDPReceiver implements Runnable {
+public class UDPReceiver implements UnicastReceiver, Runnable {
 
     /** The logger. */
     private static final Logger LOG = Logger.getLogger(UDPReceiver.class.getName());
@@ -85,12 +87,7 @@ public class UDPReceiver implements Runnable {
 
                 udpSocket.receive(packet);
                 final String ip = packet.getAddress().getHostAddress();
-                final String message = new String(packet.getData(), Constants.MESSAGE_CHARSET).trim();
-                LOG.log(Level.FINE, "Message arrived from " + ip + ": " + message);
-
-                if (listener != null) {
-                    listener.messageArrived(message, ip);
-                }
+                notifyListener(packet, ip);
             }
 
             // Happens when socket is closed, or network is down
@@ -106,11 +103,34 @@ public class UDPReceiver implements Runnable {
         }
     }
 
+    /**
+     * Gives the packet to the listener. Listeners able to parse bytes get the packet data directly,
+     * without decoding it to a string first.
+     *
+     * @param packet The packet that arrived.
+     * @param ip The IP address of the sender.
+     */
+    private void notifyListener(final DatagramPacket packet, final String ip) {
+        if (LOG.isLoggable(Level.FINE)) {
+            final String message = new String(packet.getData(), 0, packet.getLength(), MessageTokenizer.CHARSET).trim();
+            LOG.log(Level.FINE, "Message arrived from " + ip + ": " + message);
+        }
+
+        if (listener instanceof ByteReceiverListener) {
+            ((ByteReceiverListener) listener).messageArrived(ByteBuffer.wrap(packet.getData(), 0, packet.getLength()), ip);
+        }
+
+        else if (listener != null) {
+            listener.messageArrived(new String(packet.getData(), 0, packet.getLength(), MessageTokenizer.CHARSET).trim(), ip);
+        }
+    }
+
     /**
      * Creates a new UDP socket, and starts a thread listening
      * on the UDP port. If the UDP port is in use, a new port will be
      * tried instead.
      */
+    @Override
     public void startReceiver() {
         LOG.log(Level.FINE, "Connecting...");
 
@@ -159,6 +179,7 @@ public class UDPReceiver implements Runnable {
     /**
      * Closes the UDP socket, and stops the thread.
      */
+    @Override
     public void stopReceiver() {
         LOG.log(Level.FINE, "Disconnecting...");
 
@@ -183,6 +204,7 @@ public class UDPReceiver implements Runnable {
      *
      * @param listener The object to register as a listener.
      */
+    @Override
     public void registerReceiverListener(final ReceiverListener listener) {
         this.listener = listener;
     }
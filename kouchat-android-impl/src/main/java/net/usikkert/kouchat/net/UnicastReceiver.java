@@ -0,0 +1,53 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import net.usikkert.kouchat.event.ReceiverListener;
+
+/**
+ * Interface for classes that receive UDP messages sent directly to the ip
+ * address of this machine, and notify a listener when messages arrive.
+ *
+ * @author Christian Ihle
+ */
+public interface UnicastReceiver {
+
+    /**
+     * Starts listening on the first available private chat port,
+     * and sets that port on the application user.
+     */
+    void startReceiver();
+
+    /**
+     * Stops listening for messages.
+     */
+    void stopReceiver();
+
+    /**
+     * Sets the listener who will receive all the messages
+     * from the UDP packets.
+     *
+     * @param listener The object to register as a listener.
+     */
+    void registerReceiverListener(ReceiverListener listener);
+}
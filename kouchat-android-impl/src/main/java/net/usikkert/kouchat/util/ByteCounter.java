@@ -22,6 +22,8 @@
 
 package net.usikkert.kouchat.util;
 
+import java.util.concurrent.TimeUnit;
+
 /**
  * Used for calculating the number of bytes transferred per second.
  *
@@ -35,6 +37,13 @@ package net.usikkert.kouchat.util;
  *       available through {@link #getBytesPerSec()}.</li>
  * </ul>
  *
+ * <p>The speed of each second is also kept in a small history, and used for a smoothed speed
+ * that doesn't jump around as much, using an exponentially weighted moving average. The smoothed
+ * speed is used to estimate the time left of the transfer.</p>
+ *
+ * <p>The time is measured with {@link System#nanoTime()}, so changes to the system clock don't
+ * affect the speed. The counter is updated by the transferring thread, and safe to read from other threads.</p>
+ *
  * @author Christian Ihle
  */
 public class ByteCounter {
@@ -42,6 +51,24 @@ public class ByteCounter {
     /** Number of milliseconds in one second. */
     private static final int ONE_SECOND = 1000;
 
+    /** The number of seconds to keep in the history. */
+    public static final int HISTORY_SIZE = 30;
+
+    /** How much the speed of the newest second counts in the smoothed speed, between 0 and 1. */
+    private static final double SMOOTHING = 0.25;
+
+    /** The speed of each of the last seconds, as a ring buffer. */
+    private final long[] history = new long[HISTORY_SIZE];
+
+    /** The number of seconds in the history. */
+    private int historyCount;
+
+    /** The position in the history to put the next second. */
+    private int historyNext;
+
+    /** The smoothed number of bytes per second. */
+    private double smoothedBytesPerSec;
+
     /** Time of the previous update. */
     private long previousTime;
 
@@ -57,11 +84,14 @@ public class ByteCounter {
     /**
      * Use when starting the transfer to register the current time, and reset the counters.
      */
-    public void prepare() {
-        previousTime = System.currentTimeMillis();
+    public synchronized void prepare() {
+        previousTime = currentTimeMillis();
         timeCounted = 0;
         bytesPerSec = 0;
         bytesCounted = 0;
+        historyCount = 0;
+        historyNext = 0;
+        smoothedBytesPerSec = 0;
     }
 
     /**
@@ -72,12 +102,21 @@ public class ByteCounter {
      *
      * @param bytes Number of bytes transferred since last time.
      */
-    public void addBytes(final long bytes) {
-        final long currentTime = System.currentTimeMillis();
+    public synchronized void addBytes(final long bytes) {
+        final long currentTime = currentTimeMillis();
         final long timeSpent = updateTimeSpent(currentTime);
         updateCounters(bytes, timeSpent);
     }
 
+    /**
+     * Gets the current time in milliseconds, from a clock that is not affected by changes to the system clock.
+     *
+     * @return The current time in milliseconds, from an arbitrary origin.
+     */
+    private long currentTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
     /**
      * Gets the time spent since the last update, and changes the time
      * of the last update to current time.
@@ -126,6 +165,7 @@ public class ByteCounter {
         bytesPerSec = getBytesAddedInTimeLeft(bytesAdded, timeSpent, ONE_SECOND);
         timeCounted = 0;
         bytesCounted = 0;
+        addToHistory(bytesPerSec);
     }
 
     /**
@@ -152,6 +192,30 @@ public class ByteCounter {
         bytesPerSec = originalByteCount + bytesAddedInTimeLeft;
         timeCounted %= ONE_SECOND;
         bytesCounted -= bytesPerSec;
+        addToHistory(bytesPerSec);
+    }
+
+    /**
+     * Adds the speed of the last second to the history, and to the smoothed speed.
+     * The first second is used as the smoothed speed as it is.
+     *
+     * @param speed The number of bytes transferred in the last second.
+     */
+    private void addToHistory(final long speed) {
+        history[historyNext] = speed;
+        historyNext = (historyNext + 1) % HISTORY_SIZE;
+
+        if (historyCount < HISTORY_SIZE) {
+            historyCount++;
+        }
+
+        if (historyCount == 1) {
+            smoothedBytesPerSec = speed;
+        }
+
+        else {
+            smoothedBytesPerSec += SMOOTHING * (speed - smoothedBytesPerSec);
+        }
     }
 
     /**
@@ -174,16 +238,55 @@ public class ByteCounter {
      *
      * @return The current number of bytes per second.
      */
-    public long getBytesPerSec() {
+    public synchronized long getBytesPerSec() {
         return bytesPerSec;
     }
 
+    /**
+     * Gets the number of bytes per second, smoothed over the last seconds.
+     *
+     * @return The smoothed number of bytes per second.
+     */
+    public synchronized long getSmoothedBytesPerSec() {
+        return Math.round(smoothedBytesPerSec);
+    }
+
+    /**
+     * Estimates how long it takes to transfer the bytes that are left, with the smoothed speed.
+     *
+     * @param bytesLeft The number of bytes left to transfer.
+     * @return The number of seconds left, or <code>-1</code> if the speed is unknown.
+     */
+    public synchronized long getSecondsLeft(final long bytesLeft) {
+        if (smoothedBytesPerSec < 1) {
+            return -1;
+        }
+
+        return (long) Math.ceil(Math.max(0, bytesLeft) / smoothedBytesPerSec);
+    }
+
+    /**
+     * Gets the speed of each of the last seconds, up to {@link #HISTORY_SIZE} seconds.
+     *
+     * @return The number of bytes transferred in each second, with the oldest second first.
+     */
+    public synchronized long[] getHistory() {
+        final long[] seconds = new long[historyCount];
+        final int oldest = (historyNext - historyCount + HISTORY_SIZE) % HISTORY_SIZE;
+
+        for (int i = 0; i < historyCount; i++) {
+            seconds[i] = history[(oldest + i) % HISTORY_SIZE];
+        }
+
+        return seconds;
+    }
+
     /**
      * Get the number of bytes counted since the last second was calculated.
      *
      * @return Bytes counted since last second.
      */
-    public long getBytesCounted() {
+    public synchronized long getBytesCounted() {
         return bytesCounted;
     }
 
@@ -192,7 +295,7 @@ public class ByteCounter {
      *
      * @return Milliseconds counted since last second.
      */
-    public long getTimeCounted() {
+    public synchronized long getTimeCounted() {
         return timeCounted;
     }
 }
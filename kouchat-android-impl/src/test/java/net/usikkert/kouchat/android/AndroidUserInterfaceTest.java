@@ -41,6 +41,7 @@ import net.usikkert.kouchat.misc.Settings;
 import net.usikkert.kouchat.misc.SortedUserList;
 import net.usikkert.kouchat.misc.Topic;
 import net.usikkert.kouchat.misc.User;
+import net.usikkert.kouchat.misc.UserListBatcher;
 import net.usikkert.kouchat.net.FileReceiver;
 import net.usikkert.kouchat.net.FileSender;
 import net.usikkert.kouchat.ui.PrivateChatWindow;
@@ -640,6 +641,14 @@ public class AndroidUserInterfaceTest {
         assertEquals(SortedUserList.class, androidUserInterface.getUserList().getClass());
     }
 
+    @Test
+    public void getUserListBatcherShouldReturnBatcherFromController() {
+        final UserListBatcher userListBatcher = mock(UserListBatcher.class);
+        when(controller.getUserListBatcher()).thenReturn(userListBatcher);
+
+        assertSame(userListBatcher, androidUserInterface.getUserListBatcher());
+    }
+
     @Test
     public void getMeShouldReturnCorrectUser() {
         assertSame(me, androidUserInterface.getMe());
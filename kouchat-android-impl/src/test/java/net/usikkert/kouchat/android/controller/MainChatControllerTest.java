@@ -28,6 +28,7 @@ import static org.mockito.Mockito.*;
 import net.usikkert.kouchat.android.AndroidUserInterface;
 import net.usikkert.kouchat.android.service.ChatServiceBinder;
 import net.usikkert.kouchat.misc.UserList;
+import net.usikkert.kouchat.misc.UserListBatcher;
 import net.usikkert.kouchat.util.TestUtils;
 
 import org.junit.Before;
@@ -51,6 +52,7 @@ public class MainChatControllerTest {
 
     private AndroidUserInterface ui;
     private UserList userList;
+    private UserListBatcher userListBatcher;
     private ServiceConnection serviceConnection;
 
     @Before
@@ -66,6 +68,9 @@ public class MainChatControllerTest {
         userList = mock(UserList.class);
         when(ui.getUserList()).thenReturn(userList);
 
+        userListBatcher = mock(UserListBatcher.class);
+        when(ui.getUserListBatcher()).thenReturn(userListBatcher);
+
         serviceConnection = mock(ServiceConnection.class);
     }
 
@@ -109,12 +114,13 @@ public class MainChatControllerTest {
 
         controller.onDestroy();
 
-        verify(userList).removeUserListListener(controller);
+        verify(userListBatcher).removeUserListBatchListener(controller);
         verify(ui).unregisterMainChatController();
         assertEquals(1, Robolectric.getShadowApplication().getUnboundServiceConnections().size());
 
         assertTrue(TestUtils.fieldValueIsNull(controller, "androidUserInterface"));
         assertTrue(TestUtils.fieldValueIsNull(controller, "userList"));
+        assertTrue(TestUtils.fieldValueIsNull(controller, "userListBatcher"));
     }
 
     @Test
@@ -128,6 +134,7 @@ public class MainChatControllerTest {
 
     private void setupMocks() {
         TestUtils.setFieldValue(controller, "userList", userList);
+        TestUtils.setFieldValue(controller, "userListBatcher", userListBatcher);
         TestUtils.setFieldValue(controller, "androidUserInterface", ui);
         TestUtils.setFieldValue(controller, "serviceConnection", serviceConnection);
     }
@@ -28,6 +28,7 @@ import static org.mockito.Mockito.*;
 import net.usikkert.kouchat.android.AndroidUserInterface;
 import net.usikkert.kouchat.android.service.ChatServiceBinder;
 import net.usikkert.kouchat.misc.UserList;
+import net.usikkert.kouchat.misc.UserListBatcher;
 import net.usikkert.kouchat.util.TestUtils;
 
 import org.junit.Before;
@@ -50,6 +51,7 @@ public class SendFileControllerTest {
 
     private AndroidUserInterface ui;
     private UserList userList;
+    private UserListBatcher userListBatcher;
     private ServiceConnection serviceConnection;
 
     @Before
@@ -65,6 +67,9 @@ public class SendFileControllerTest {
         userList = mock(UserList.class);
         when(ui.getUserList()).thenReturn(userList);
 
+        userListBatcher = mock(UserListBatcher.class);
+        when(ui.getUserListBatcher()).thenReturn(userListBatcher);
+
         serviceConnection = mock(ServiceConnection.class);
     }
 
@@ -74,11 +79,12 @@ public class SendFileControllerTest {
 
         controller.onDestroy();
 
-        verify(userList).removeUserListListener(controller);
+        verify(userListBatcher).removeUserListBatchListener(controller);
         assertEquals(1, Robolectric.getShadowApplication().getUnboundServiceConnections().size());
 
         assertTrue(TestUtils.fieldValueIsNull(controller, "androidUserInterface"));
         assertTrue(TestUtils.fieldValueIsNull(controller, "userList"));
+        assertTrue(TestUtils.fieldValueIsNull(controller, "userListBatcher"));
     }
 
     @Test
@@ -92,6 +98,7 @@ public class SendFileControllerTest {
 
     private void setupMocks() {
         TestUtils.setFieldValue(controller, "userList", userList);
+        TestUtils.setFieldValue(controller, "userListBatcher", userListBatcher);
         TestUtils.setFieldValue(controller, "androidUserInterface", ui);
         TestUtils.setFieldValue(controller, "serviceConnection", serviceConnection);
     }
@@ -25,6 +25,9 @@ package net.usikkert.kouchat.android.controller;
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 
+import java.util.Arrays;
+
+import net.usikkert.kouchat.event.UserListChange;
 import net.usikkert.kouchat.misc.User;
 import net.usikkert.kouchat.misc.UserList;
 
@@ -144,6 +147,59 @@ public class UserListAdapterTest {
         assertOrder(user2, user3, user1);
     }
 
+    @Test
+    public void applyChangesShouldThrowExceptionIfChangesIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Changes can not be null");
+
+        adapter.applyChanges(null);
+    }
+
+    @Test
+    public void applyChangesShouldAddRemoveAndSortUsers() {
+        adapter.add(user1);
+        adapter.add(user2);
+
+        user2.setNick("Xyz");
+
+        adapter.applyChanges(Arrays.asList(
+                new UserListChange(UserListChange.Type.ADDED, 2, user3),
+                new UserListChange(UserListChange.Type.REMOVED, 0, user1),
+                new UserListChange(UserListChange.Type.CHANGED, 1, user2)));
+
+        assertEquals(2, adapter.getCount());
+        assertOrder(user3, user2);
+    }
+
+    @Test
+    public void applyChangesShouldNotAddUsersAddedBeforeTheChangesWereDelivered() {
+        // The change was pending in the batcher when the list was filled
+        adapter.add(user1);
+        adapter.add(user3);
+
+        adapter.applyChanges(Arrays.asList(
+                new UserListChange(UserListChange.Type.ADDED, 1, user3),
+                new UserListChange(UserListChange.Type.ADDED, 2, user2)));
+
+        assertEquals(3, adapter.getCount());
+        assertOrder(user1, user2, user3);
+    }
+
+    @Test
+    public void applyChangesShouldApplyTheChangesInOrder() {
+        adapter.add(user1);
+        adapter.add(user2);
+
+        adapter.applyChanges(Arrays.asList(
+                new UserListChange(UserListChange.Type.ADDED, 2, user3),
+                new UserListChange(UserListChange.Type.REMOVED, 2, user3),
+                new UserListChange(UserListChange.Type.REMOVED, 0, user1),
+                new UserListChange(UserListChange.Type.ADDED, 1, user1)));
+
+        assertEquals(2, adapter.getCount());
+        assertOrder(user1, user2);
+    }
+
     private void assertOrder(final User... users) {
         for (int i = 0; i < users.length; i++) {
             final User user = users[i];
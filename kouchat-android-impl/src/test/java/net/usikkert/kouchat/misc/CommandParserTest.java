@@ -26,11 +26,19 @@ import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.Properties;
+import java.util.zip.CRC32;
+
+import net.usikkert.kouchat.net.Capability;
 
 import net.usikkert.kouchat.net.FileReceiver;
 import net.usikkert.kouchat.net.FileSender;
 import net.usikkert.kouchat.net.FileTransfer;
 import net.usikkert.kouchat.net.TransferList;
+import net.usikkert.kouchat.net.TransferOptions;
 import net.usikkert.kouchat.ui.UserInterface;
 
 import org.junit.Before;
@@ -285,6 +293,53 @@ public class CommandParserTest {
         assertEquals("doc.pdf.1", newFileCaptor.getValue().getName());
     }
 
+    @Test
+    public void receiveShouldKeepPartialFileThatCanBeResumed() throws IOException {
+        final File dir = createTempDir();
+        final File file = new File(dir, "doc.pdf");
+        final FileReceiver fileReceiver = setupRealFileReceiver(file, EnumSet.of(Capability.RESUME));
+        writePartialFile(file, 123);
+
+        parser.parse("/receive SomeOne 1");
+
+        verify(messageController).showSystemMessage("/receive - resuming the partial file 'doc.pdf'");
+        assertEquals(file, fileReceiver.getFile());
+        assertTrue(fileReceiver.isAccepted());
+        assertEquals(4000, fileReceiver.prepareResume("doc.pdf", 123));
+
+        deleteDir(dir);
+    }
+
+    @Test
+    public void receiveShouldRenameExistingFileWithJournalForAnotherFile() throws IOException {
+        final File dir = createTempDir();
+        final File file = new File(dir, "doc.pdf");
+        final FileReceiver fileReceiver = setupRealFileReceiver(file, EnumSet.of(Capability.RESUME));
+        writePartialFile(file, 999);
+
+        parser.parse("/receive SomeOne 1");
+
+        verify(messageController).showSystemMessage("/receive - file 'doc.pdf' already exists - renaming to 'doc.pdf.1'");
+        assertEquals("doc.pdf.1", fileReceiver.getFile().getName());
+        assertEquals(0, fileReceiver.prepareResume("doc.pdf", 123));
+
+        deleteDir(dir);
+    }
+
+    @Test
+    public void receiveShouldRenameExistingFileIfSenderCanNotResume() throws IOException {
+        final File dir = createTempDir();
+        final File file = new File(dir, "doc.pdf");
+        final FileReceiver fileReceiver = setupRealFileReceiver(file, EnumSet.noneOf(Capability.class));
+        writePartialFile(file, 123);
+
+        parser.parse("/receive SomeOne 1");
+
+        assertEquals("doc.pdf.1", fileReceiver.getFile().getName());
+
+        deleteDir(dir);
+    }
+
     /*
     * cancel
     */
@@ -423,6 +478,74 @@ public class CommandParserTest {
         return fileReceiver;
     }
 
+    private FileReceiver setupRealFileReceiver(final File file, final EnumSet<Capability> capabilities) {
+        final User someOne = setupSomeOne();
+        someOne.setCapabilities(capabilities);
+
+        final FileReceiver fileReceiver = new FileReceiver(someOne, file, 10000, 1, TransferOptions.NONE);
+        fileReceiver.setOffer("doc.pdf", 123);
+        when(transferList.getFileReceiver(someOne, 1)).thenReturn(fileReceiver);
+
+        return fileReceiver;
+    }
+
+    /**
+     * Writes the first 4000 bytes of the file, and a journal like one left behind by an interrupted transfer.
+     */
+    private void writePartialFile(final File file, final int fileHash) throws IOException {
+        final byte[] content = new byte[4000];
+
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+
+        final CRC32 crc = new CRC32();
+        crc.update(content);
+
+        final FileOutputStream fileStream = new FileOutputStream(file);
+
+        try {
+            fileStream.write(content);
+        }
+
+        finally {
+            fileStream.close();
+        }
+
+        final Properties journal = new Properties();
+        journal.setProperty("fileName", "doc.pdf");
+        journal.setProperty("fileHash", String.valueOf(fileHash));
+        journal.setProperty("size", "10000");
+        journal.setProperty("offset", "4000");
+        journal.setProperty("checksum", String.valueOf(crc.getValue()));
+
+        final FileOutputStream journalStream = new FileOutputStream(file.getPath() + ".resume");
+
+        try {
+            journal.store(journalStream, null);
+        }
+
+        finally {
+            journalStream.close();
+        }
+    }
+
+    private File createTempDir() throws IOException {
+        final File dir = File.createTempFile("kouchat", "");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdir());
+
+        return dir;
+    }
+
+    private void deleteDir(final File dir) {
+        for (final File file : dir.listFiles()) {
+            file.delete();
+        }
+
+        dir.delete();
+    }
+
     private FileSender setupFileSender(final User user) {
         final FileSender fileSender = mock(FileSender.class);
 
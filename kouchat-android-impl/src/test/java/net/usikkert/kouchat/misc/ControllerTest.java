@@ -26,8 +26,10 @@ import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 
 import java.io.File;
+import java.util.EnumSet;
 
 import net.usikkert.kouchat.event.NetworkConnectionListener;
+import net.usikkert.kouchat.net.Capability;
 import net.usikkert.kouchat.net.Messages;
 import net.usikkert.kouchat.net.NetworkService;
 import net.usikkert.kouchat.ui.UserInterface;
@@ -188,6 +190,53 @@ public class ControllerTest {
         controller.sendFile(mock(User.class), file);
     }
 
+    @Test
+    public void sendChatMessageShouldThrowExceptionIfTooLongForUsersWithoutFragments() throws CommandException {
+        expectedException.expect(CommandException.class);
+        expectedException.expectMessage("You can not send a chat message with more than 450 bytes");
+
+        when(networkService.isNetworkUp()).thenReturn(true);
+        controller.getChatState().setLoggedOn(true);
+        me.setMe(true);
+
+        final User user = new User("Test", 124);
+        user.setCapabilities(EnumSet.of(Capability.BATCH));
+        controller.getUserList().add(user);
+
+        controller.sendChatMessage(createMessage(451));
+    }
+
+    @Test
+    public void sendChatMessageShouldAllowLargeMessagesWhenAllUsersSupportFragments() throws CommandException {
+        when(networkService.isNetworkUp()).thenReturn(true);
+        controller.getChatState().setLoggedOn(true);
+        me.setMe(true);
+
+        final User user = new User("Test", 124);
+        user.setCapabilities(EnumSet.of(Capability.FRAGMENT));
+        controller.getUserList().add(user);
+
+        final String message = createMessage(8000);
+        controller.sendChatMessage(message);
+
+        verify(messages).sendChatMessage(message);
+    }
+
+    @Test
+    public void sendPrivateMessageShouldAllowLargeMessagesWhenUserSupportsFragments() throws CommandException {
+        when(networkService.isNetworkUp()).thenReturn(true);
+        controller.getChatState().setLoggedOn(true);
+
+        final User user = new User("Test", 124);
+        user.setPrivateChatPort(12345);
+        user.setCapabilities(EnumSet.of(Capability.FRAGMENT));
+
+        final String message = createMessage(8000);
+        controller.sendPrivateMessage(message, user);
+
+        verify(messages).sendPrivateMessage(message, user);
+    }
+
     @Test
     public void sendFileShouldSendFileIfEverythingValidatedOK() throws CommandException {
         when(networkService.isNetworkUp()).thenReturn(true);
@@ -217,4 +266,14 @@ public class ControllerTest {
 
         verify(networkService).registerNetworkConnectionListener(listener);
     }
+
+    private String createMessage(final int length) {
+        final StringBuilder sb = new StringBuilder();
+
+        for (int i = 0; i < length; i++) {
+            sb.append('a');
+        }
+
+        return sb.toString();
+    }
 }
@@ -0,0 +1,164 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.misc;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of {@link PhiAccrualFailureDetector}.
+ *
+ * @author Christian Ihle
+ */
+public class PhiAccrualFailureDetectorTest {
+
+    private static final int USER = 1234;
+
+    private PhiAccrualFailureDetector detector;
+
+    @Before
+    public void setUp() {
+        detector = new PhiAccrualFailureDetector(8, 500, 15000, 120000);
+    }
+
+    @Test
+    public void unknownUserShouldHaveNoDeadlineAndNoSuspicion() {
+        assertEquals(-1, detector.getDeadline(USER));
+        assertEquals(0, detector.phi(USER, 100000), 0.0);
+    }
+
+    @Test
+    public void deadlineShouldUseMaxTimeoutUntilEnoughIntervalsAreKnown() {
+        detector.heartbeat(USER, 0);
+        assertEquals(120000, detector.getDeadline(USER));
+
+        detector.heartbeat(USER, 15000);
+        detector.heartbeat(USER, 30000);
+        assertEquals(150000, detector.getDeadline(USER));
+        assertEquals(0, detector.phi(USER, 100000), 0.0);
+    }
+
+    @Test
+    public void regularIdleMessagesShouldGiveShortDeadline() {
+        sendHeartbeats(0, 15000, 10);
+
+        final long deadline = detector.getDeadline(USER);
+        final long sinceLast = deadline - 150000;
+
+        assertTrue(sinceLast > 30000);
+        assertTrue(sinceLast < 35000);
+    }
+
+    @Test
+    public void phiShouldReachThresholdAtDeadline() {
+        sendHeartbeats(0, 15000, 10);
+
+        final long deadline = detector.getDeadline(USER);
+
+        assertTrue(detector.phi(USER, deadline - 1000) < 8);
+        assertEquals(8, detector.phi(USER, deadline), 0.1);
+        assertTrue(detector.phi(USER, deadline + 1000) > 8);
+    }
+
+    @Test
+    public void phiShouldIncreaseWithTime() {
+        sendHeartbeats(0, 15000, 10);
+
+        double previous = detector.phi(USER, 150000 + 26000);
+
+        for (long now = 150000 + 27000; now <= 150000 + 34000; now += 1000) {
+            final double phi = detector.phi(USER, now);
+            assertTrue(phi > previous);
+            previous = phi;
+        }
+    }
+
+    @Test
+    public void noisyIdleMessagesShouldGiveLongerDeadline() {
+        final PhiAccrualFailureDetector noisyDetector = new PhiAccrualFailureDetector(8, 500, 15000, 120000);
+        final long[] intervals = {15000, 30000, 15000, 45000, 15000, 15000, 30000, 15000, 15000, 30000};
+        long time = 0;
+        noisyDetector.heartbeat(USER, time);
+
+        for (final long interval : intervals) {
+            time += interval;
+            noisyDetector.heartbeat(USER, time);
+        }
+
+        sendHeartbeats(0, 15000, 10);
+
+        final long regularTimeout = detector.getDeadline(USER) - 150000;
+        final long noisyTimeout = noisyDetector.getDeadline(USER) - time;
+
+        assertTrue(noisyTimeout > regularTimeout);
+        assertTrue(noisyTimeout <= 120000);
+    }
+
+    @Test
+    public void deadlineShouldNeverBeLaterThanMaxTimeout() {
+        sendHeartbeats(0, 110000, 10);
+
+        assertEquals(1100000 + 120000, detector.getDeadline(USER));
+    }
+
+    @Test
+    public void thresholdZeroShouldAlwaysUseMaxTimeout() {
+        detector = new PhiAccrualFailureDetector(0, 500, 15000, 120000);
+        sendHeartbeats(0, 15000, 10);
+
+        assertEquals(150000 + 120000, detector.getDeadline(USER));
+    }
+
+    @Test
+    public void oldAndRepeatedHeartbeatsShouldBeIgnored() {
+        sendHeartbeats(0, 15000, 10);
+        final long deadline = detector.getDeadline(USER);
+
+        detector.heartbeat(USER, 150000);
+        detector.heartbeat(USER, 100000);
+
+        assertEquals(deadline, detector.getDeadline(USER));
+    }
+
+    @Test
+    public void removeShouldForgetUser() {
+        sendHeartbeats(0, 15000, 10);
+
+        detector.remove(USER);
+
+        assertEquals(-1, detector.getDeadline(USER));
+    }
+
+    @Test
+    public void phiAtTheMeanShouldBeAboutLogOfTwo() {
+        assertEquals(Math.log10(2), PhiAccrualFailureDetector.phi(1000, 1000, 100), 0.0001);
+    }
+
+    private void sendHeartbeats(final long start, final long interval, final int count) {
+        for (int i = 0; i <= count; i++) {
+            detector.heartbeat(USER, start + i * interval);
+        }
+    }
+}
@@ -25,6 +25,11 @@ package net.usikkert.kouchat.misc;
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
 import net.usikkert.kouchat.event.UserListListener;
 
 import org.junit.Before;
@@ -271,6 +276,263 @@ public class SortedUserListTest {
         userList.set(0, new User("Test1", 10));
     }
 
+    @Test
+    public void setShouldNotMoveUserWhenNickIsUnchanged() {
+        addAllUsers();
+
+        john.setAway(true);
+        userList.set(1, john);
+
+        verify(listener).userChanged(1, john);
+        assertSame(annie, userList.get(0));
+        assertSame(john, userList.get(1));
+        assertSame(lenny, userList.get(2));
+        assertSame(niles, userList.get(3));
+    }
+
+    @Test
+    public void setShouldMoveUserBackwardsWhenNickChanges() {
+        addAllUsers();
+
+        niles.setNick("Bob");
+        userList.set(3, niles);
+
+        verify(listener).userChanged(1, niles);
+        assertSame(annie, userList.get(0));
+        assertSame(niles, userList.get(1));
+        assertSame(john, userList.get(2));
+        assertSame(lenny, userList.get(3));
+    }
+
+    @Test
+    public void setShouldMoveUserForwardsWhenNickChanges() {
+        addAllUsers();
+
+        annie.setNick("Kim");
+        userList.set(0, annie);
+
+        verify(listener).userChanged(1, annie);
+        assertSame(john, userList.get(0));
+        assertSame(annie, userList.get(1));
+        assertSame(lenny, userList.get(2));
+        assertSame(niles, userList.get(3));
+    }
+
+    @Test
+    public void indexOfShouldFindUserWhenNickChangedBeforeSet() {
+        addAllUsers();
+
+        john.setNick("Zed");
+
+        assertEquals(1, userList.indexOf(john));
+    }
+
+    @Test
+    public void usersWithSameNickShouldStayInTheOrderTheyWereAdded() {
+        final User otherJohn = new User("john", 5);
+
+        userList.add(john);
+        userList.add(otherJohn);
+        userList.add(annie);
+
+        verify(listener).userAdded(1, otherJohn);
+        assertSame(annie, userList.get(0));
+        assertSame(john, userList.get(1));
+        assertSame(otherJohn, userList.get(2));
+        assertEquals(2, userList.indexOf(otherJohn));
+    }
+
+    @Test
+    public void changesShouldGiveTheSameOrderAsSortingTheWholeList() {
+        final Random random = new Random(1234);
+        final List<User> expected = new ArrayList<User>();
+
+        for (int i = 0; i < 500; i++) {
+            final User user = new User("User" + random.nextInt(100), i);
+            expected.add(user);
+            Collections.sort(expected);
+
+            userList.add(user);
+            verify(listener).userAdded(expected.indexOf(user), user);
+        }
+
+        for (int i = 0; i < 500; i++) {
+            final int pos = random.nextInt(expected.size());
+            final User user = expected.get(pos);
+            user.setNick("User" + random.nextInt(100));
+            Collections.sort(expected);
+
+            reset(listener);
+            userList.set(pos, user);
+            verify(listener).userChanged(expected.indexOf(user), user);
+        }
+
+        for (int i = 0; i < expected.size(); i++) {
+            assertSame(expected.get(i), userList.get(i));
+            assertEquals(i, userList.indexOf(expected.get(i)));
+        }
+    }
+
+    @Test
+    public void getUserShouldFindUserByCode() {
+        addAllUsers();
+
+        assertSame(lenny, userList.getUser(3));
+        assertNull(userList.getUser(99));
+    }
+
+    @Test
+    public void getUserShouldFindUserByNickIgnoringCase() {
+        addAllUsers();
+
+        assertSame(lenny, userList.getUser("lENNY"));
+        assertNull(userList.getUser("Bob"));
+        assertNull(userList.getUser((String) null));
+    }
+
+    @Test
+    public void getUserShouldNotFindRemovedUser() {
+        addAllUsers();
+
+        userList.remove(john);
+
+        assertNull(userList.getUser(2));
+        assertNull(userList.getUser("John"));
+    }
+
+    @Test
+    public void getUserShouldNotFindReplacedUser() {
+        addAllUsers();
+        final User test1 = new User("Test1", 10);
+
+        userList.set(0, test1);
+
+        assertNull(userList.getUser(4));
+        assertNull(userList.getUser("Annie"));
+        assertSame(test1, userList.getUser(10));
+        assertSame(test1, userList.getUser("test1"));
+    }
+
+    @Test
+    public void updateShouldMoveUserAndIndexTheNewNick() {
+        addAllUsers();
+
+        niles.setNick("Bob");
+
+        assertNull(userList.getUser("Bob"));
+        assertNull(userList.getUser("Niles"));
+
+        assertTrue(userList.update(niles));
+
+        verify(listener).userChanged(1, niles);
+        assertSame(niles, userList.get(1));
+        assertSame(niles, userList.getUser("bob"));
+        assertNull(userList.getUser("Niles"));
+        assertSame(niles, userList.getUser(1));
+    }
+
+    @Test
+    public void updateShouldReturnFalseIfUserDoesNotExist() {
+        assertFalse(userList.update(annie));
+
+        verifyZeroInteractions(listener);
+    }
+
+    @Test
+    public void getUserShouldFindTheOtherUserWithSameNickAfterRemove() {
+        final User otherJohn = new User("JOHN", 5);
+        userList.add(john);
+        userList.add(otherJohn);
+
+        assertSame(john, userList.getUser("john"));
+
+        userList.remove(john);
+
+        assertSame(otherJohn, userList.getUser("john"));
+    }
+
+    @Test
+    public void nickShouldBeInUseByOthersWhenAnotherUserHasTheSameNickAsMe() {
+        final User me = new User("John", 5);
+        me.setMe(true);
+        userList.add(me);
+
+        assertFalse(userList.isNickInUseByOthers("john"));
+
+        userList.add(john);
+
+        assertSame(me, userList.getUser("john"));
+        assertTrue(userList.isNickInUseByOthers("john"));
+        assertFalse(userList.isNickInUseByOthers("Niles"));
+        assertFalse(userList.isNickInUseByOthers(null));
+    }
+
+    @Test
+    public void getUsersShouldReturnCopyInSortedOrder() {
+        addAllUsers();
+
+        final List<User> users = userList.getUsers();
+        userList.remove(annie);
+
+        assertEquals(4, users.size());
+        assertSame(annie, users.get(0));
+        assertSame(john, users.get(1));
+        assertSame(lenny, users.get(2));
+        assertSame(niles, users.get(3));
+    }
+
+    @Test
+    public void concurrentChangesShouldKeepListAndIndexesInSync() throws Exception {
+        final Thread[] threads = new Thread[4];
+
+        for (int t = 0; t < threads.length; t++) {
+            final int first = t * 1000;
+
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = first; i < first + 1000; i++) {
+                        final User user = new User("User" + i, i);
+                        userList.add(user);
+
+                        synchronized (userList) {
+                            user.setNick("Renamed" + i);
+                            userList.update(user);
+                        }
+
+                        if (i % 2 == 0) {
+                            userList.remove(user);
+                        }
+                    }
+                }
+            };
+
+            threads[t].start();
+        }
+
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(2000, userList.size());
+
+        for (int i = 0; i < 4000; i++) {
+            if (i % 2 == 0) {
+                assertNull(userList.getUser(i));
+            }
+
+            else {
+                final User user = userList.getUser(i);
+                assertSame(user, userList.getUser("renamed" + i));
+                assertSame(user, userList.get(userList.indexOf(user)));
+            }
+        }
+
+        for (int i = 1; i < userList.size(); i++) {
+            assertTrue(userList.get(i - 1).compareTo(userList.get(i)) <= 0);
+        }
+    }
+
     private void addAllUsers() {
         userList.add(niles);
         userList.add(john);
@@ -0,0 +1,143 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.misc;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of {@link TimeoutWheel}.
+ *
+ * @author Christian Ihle
+ */
+public class TimeoutWheelTest {
+
+    private TimeoutWheel wheel;
+
+    @Before
+    public void setUp() {
+        wheel = new TimeoutWheel(1000, 8, 10000);
+    }
+
+    @Test
+    public void emptyWheelShouldHaveNothingToExpire() {
+        assertEquals(0, wheel.size());
+        assertEquals(-1, wheel.getNextExpiryTime());
+        assertTrue(wheel.expire(100000).isEmpty());
+    }
+
+    @Test
+    public void timeoutShouldExpireWhenDue() {
+        wheel.schedule(1, 12500);
+
+        assertTrue(wheel.contains(1));
+        assertEquals(13000, wheel.getNextExpiryTime());
+
+        assertTrue(wheel.expire(12499).isEmpty());
+        assertEquals(Arrays.asList(1), wheel.expire(13000));
+
+        assertFalse(wheel.contains(1));
+        assertEquals(0, wheel.size());
+        assertEquals(-1, wheel.getNextExpiryTime());
+    }
+
+    @Test
+    public void timeoutOnTickShouldExpireAtDeadline() {
+        wheel.schedule(1, 12000);
+
+        assertTrue(wheel.expire(11999).isEmpty());
+        assertEquals(Arrays.asList(1), wheel.expire(12000));
+    }
+
+    @Test
+    public void scheduleShouldMoveExistingTimeout() {
+        wheel.schedule(1, 12000);
+        wheel.schedule(1, 15000);
+
+        assertEquals(1, wheel.size());
+        assertTrue(wheel.expire(14999).isEmpty());
+        assertEquals(Arrays.asList(1), wheel.expire(15000));
+    }
+
+    @Test
+    public void cancelShouldRemoveTimeout() {
+        wheel.schedule(1, 12000);
+
+        assertTrue(wheel.cancel(1));
+        assertFalse(wheel.cancel(1));
+
+        assertTrue(wheel.expire(20000).isEmpty());
+    }
+
+    @Test
+    public void expireShouldOnlyReturnTimeoutsThatAreDue() {
+        wheel.schedule(1, 12000);
+        wheel.schedule(2, 13000);
+        wheel.schedule(3, 16000);
+
+        final List<Integer> expired = wheel.expire(13500);
+        Collections.sort(expired);
+
+        assertEquals(Arrays.asList(1, 2), expired);
+        assertTrue(wheel.contains(3));
+        assertEquals(16000, wheel.getNextExpiryTime());
+    }
+
+    @Test
+    public void passedDeadlineShouldExpireAtNextTick() {
+        wheel.expire(12000);
+        wheel.schedule(1, 5000);
+
+        assertEquals(Arrays.asList(1), wheel.expire(13000));
+    }
+
+    @Test
+    public void timeoutMoreThanOneTurnAwayShouldWaitForItsTurn() {
+        wheel.schedule(1, 21000);
+
+        assertTrue(wheel.expire(13000).isEmpty());
+        assertTrue(wheel.contains(1));
+
+        assertTrue(wheel.expire(20999).isEmpty());
+        assertEquals(Arrays.asList(1), wheel.expire(21000));
+    }
+
+    @Test
+    public void expireAfterLongPauseShouldExpireEverythingDue() {
+        wheel.schedule(1, 11000);
+        wheel.schedule(2, 17000);
+        wheel.schedule(3, 30000);
+
+        final List<Integer> expired = wheel.expire(50000);
+        Collections.sort(expired);
+
+        assertEquals(Arrays.asList(1, 2, 3), expired);
+        assertEquals(0, wheel.size());
+    }
+}
@@ -0,0 +1,208 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.misc;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import net.usikkert.kouchat.event.UserListBatchListener;
+import net.usikkert.kouchat.event.UserListChange;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+/**
+ * Test of {@link UserListBatcher}.
+ *
+ * @author Christian Ihle
+ */
+public class UserListBatcherTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private UserListBatcher batcher;
+    private RecordingListener listener;
+    private SortedUserList userList;
+
+    private User niles;
+    private User john;
+    private User lenny;
+
+    @Before
+    public void setUp() {
+        batcher = new UserListBatcher(100, 1000);
+        listener = new RecordingListener();
+        batcher.addUserListBatchListener(listener);
+
+        userList = new SortedUserList();
+        userList.addUserListListener(batcher);
+
+        niles = new User("Niles", 1);
+        john = new User("John", 2);
+        lenny = new User("Lenny", 3);
+    }
+
+    @After
+    public void tearDown() {
+        batcher.stop();
+    }
+
+    @Test
+    public void addUserListBatchListenerShouldThrowExceptionIfListenerIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Listener can not be null");
+
+        batcher.addUserListBatchListener(null);
+    }
+
+    @Test
+    public void changesShouldBeDeliveredDirectlyWhenNotStarted() {
+        userList.add(niles);
+        userList.add(john);
+
+        final List<List<UserListChange>> batches = listener.getBatches();
+        assertEquals(2, batches.size());
+        assertChange(batches.get(0).get(0), UserListChange.Type.ADDED, 0, niles);
+        assertChange(batches.get(1).get(0), UserListChange.Type.ADDED, 0, john);
+    }
+
+    @Test
+    public void burstOfChangesShouldBeDeliveredInOneBatchInOrder() throws InterruptedException {
+        batcher.start();
+        listener.expectBatches(1);
+
+        userList.add(niles);
+        userList.add(john);
+        userList.add(lenny);
+        userList.remove(niles);
+
+        john.setAway(true);
+        userList.set(0, john);
+
+        assertTrue(listener.await());
+        Thread.sleep(200);
+
+        final List<List<UserListChange>> batches = listener.getBatches();
+        assertEquals(1, batches.size());
+
+        final List<UserListChange> changes = batches.get(0);
+        assertEquals(5, changes.size());
+        assertChange(changes.get(0), UserListChange.Type.ADDED, 0, niles);
+        assertChange(changes.get(1), UserListChange.Type.ADDED, 0, john);
+        assertChange(changes.get(2), UserListChange.Type.ADDED, 1, lenny);
+        assertChange(changes.get(3), UserListChange.Type.REMOVED, 2, niles);
+        assertChange(changes.get(4), UserListChange.Type.CHANGED, 0, john);
+        assertEquals(0, batcher.getPendingCount());
+    }
+
+    @Test
+    public void steadyStreamOfChangesShouldBeDeliveredWhenMaxDelayIsOver() throws InterruptedException {
+        batcher = new UserListBatcher(200, 300);
+        batcher.addUserListBatchListener(listener);
+        batcher.start();
+        listener.expectBatches(2);
+
+        for (int i = 0; i < 20; i++) {
+            batcher.userChanged(0, niles);
+            Thread.sleep(50);
+        }
+
+        assertTrue(listener.await());
+    }
+
+    @Test
+    public void stopShouldDeliverWaitingChangesWithoutWaiting() throws InterruptedException {
+        batcher = new UserListBatcher(10000, 10000);
+        batcher.addUserListBatchListener(listener);
+        batcher.start();
+        listener.expectBatches(1);
+
+        batcher.userAdded(0, niles);
+        batcher.userAdded(1, john);
+        batcher.stop();
+
+        assertTrue(listener.await());
+        assertEquals(2, listener.getBatches().get(0).size());
+    }
+
+    @Test
+    public void removedListenerShouldNotGetChanges() {
+        final UserListBatchListener otherListener = mock(UserListBatchListener.class);
+        batcher.addUserListBatchListener(otherListener);
+        batcher.removeUserListBatchListener(otherListener);
+
+        userList.add(niles);
+
+        verifyZeroInteractions(otherListener);
+        assertEquals(1, listener.getBatches().size());
+    }
+
+    private void assertChange(final UserListChange change, final UserListChange.Type type, final int pos, final User user) {
+        assertEquals(type, change.getType());
+        assertEquals(pos, change.getPos());
+        assertSame(user, change.getUser());
+    }
+
+    /**
+     * Records the batches, and counts down a latch for each batch.
+     */
+    private static class RecordingListener implements UserListBatchListener {
+
+        private final List<List<UserListChange>> batches = new ArrayList<List<UserListChange>>();
+
+        private CountDownLatch latch = new CountDownLatch(0);
+
+        @Override
+        public synchronized void usersChanged(final List<UserListChange> changes) {
+            batches.add(new ArrayList<UserListChange>(changes));
+            latch.countDown();
+        }
+
+        public synchronized void expectBatches(final int count) {
+            latch = new CountDownLatch(count);
+        }
+
+        public boolean await() throws InterruptedException {
+            final CountDownLatch currentLatch;
+
+            synchronized (this) {
+                currentLatch = latch;
+            }
+
+            return currentLatch.await(5, TimeUnit.SECONDS);
+        }
+
+        public synchronized List<List<UserListChange>> getBatches() {
+            return new ArrayList<List<UserListChange>>(batches);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+import net.usikkert.kouchat.event.ByteReceiverListener;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ * Test of {@link ChannelPacketReader}.
+ *
+ * @author Christian Ihle
+ */
+public class ChannelPacketReaderTest {
+
+    private ChannelPacketReader packetReader;
+
+    private DatagramChannel receiverChannel;
+    private DatagramChannel senderChannel;
+
+    @Before
+    public void setUp() throws Exception {
+        packetReader = new ChannelPacketReader();
+
+        receiverChannel = DatagramChannel.open();
+        receiverChannel.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        senderChannel = DatagramChannel.open();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        receiverChannel.close();
+        senderChannel.close();
+    }
+
+    @Test
+    public void receiveShouldGiveTrimmedStringToNormalListener() throws Exception {
+        final SimpleReceiverListener listener = new SimpleReceiverListener(null);
+
+        send(" 12345!MSG#Test:[-1]Hello there ");
+
+        assertTrue(packetReader.receive(receiverChannel, listener));
+        assertEquals("12345!MSG#Test:[-1]Hello there", listener.getMessage());
+        assertEquals("127.0.0.1", listener.getIpAddress());
+    }
+
+    @Test
+    public void receiveShouldGiveBytesToByteListener() throws Exception {
+        final ByteReceiverListener listener = mock(ByteReceiverListener.class);
+        final String[] arrived = new String[1];
+
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(final InvocationOnMock invocation) throws Throwable {
+                final ByteBuffer buffer = (ByteBuffer) invocation.getArguments()[0];
+                final byte[] bytes = new byte[buffer.remaining()];
+                buffer.get(bytes);
+                arrived[0] = new String(bytes, "UTF-8");
+
+                return null;
+            }
+        }).when(listener).messageArrived(any(ByteBuffer.class), eq("127.0.0.1"));
+
+        send("12345!IDLE#Test:");
+
+        assertTrue(packetReader.receive(receiverChannel, listener));
+        assertEquals("12345!IDLE#Test:", arrived[0]);
+        verify(listener, never()).messageArrived(anyString(), anyString());
+    }
+
+    @Test
+    public void receiveShouldReturnFalseWhenNothingToReceiveInNonBlockingMode() throws Exception {
+        receiverChannel.configureBlocking(false);
+
+        assertFalse(packetReader.receive(receiverChannel, new SimpleReceiverListener(null)));
+    }
+
+    @Test
+    public void receiveShouldNotFailWithoutListener() throws Exception {
+        send("12345!IDLE#Test:");
+
+        assertTrue(packetReader.receive(receiverChannel, null));
+    }
+
+    private void send(final String message) throws Exception {
+        senderChannel.send(ByteBuffer.wrap(message.getBytes("UTF-8")), receiverChannel.socket().getLocalSocketAddress());
+    }
+}
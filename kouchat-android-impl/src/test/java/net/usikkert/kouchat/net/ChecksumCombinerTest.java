@@ -0,0 +1,82 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import org.junit.Test;
+
+/**
+ * Test of {@link ChecksumCombiner}.
+ *
+ * @author Christian Ihle
+ */
+public class ChecksumCombinerTest {
+
+    private final byte[] content = createContent(10000);
+
+    @Test
+    public void combinedChecksumShouldMatchTheChecksumOfAllTheBytes() {
+        for (final int split : new int[] {0, 1, 7, 1024, 5000, 9999, 10000}) {
+            final long combined = ChecksumCombiner.combine(checksumOf(0, split), checksumOf(split, content.length - split),
+                                                           content.length - split);
+
+            assertEquals("Split at " + split, checksumOf(0, content.length), combined);
+        }
+    }
+
+    @Test
+    public void combinerForBlockLengthShouldMatchTheChecksumOfAllTheBlocks() {
+        final ChecksumCombiner combiner = new ChecksumCombiner(1000);
+        long combined = 0;
+
+        for (int block = 0; block < 10; block++) {
+            combined = combiner.combine(combined, checksumOf(block * 1000, 1000));
+        }
+
+        assertEquals(checksumOf(0, content.length), combined);
+    }
+
+    @Test
+    public void emptyBlockShouldNotChangeTheChecksum() {
+        assertEquals(checksumOf(0, 100), ChecksumCombiner.combine(checksumOf(0, 100), 0, 0));
+        assertEquals(checksumOf(0, 100), new ChecksumCombiner(0).combine(checksumOf(0, 100), 0));
+    }
+
+    private long checksumOf(final int offset, final int length) {
+        final CRC32 crc = new CRC32();
+        crc.update(content, offset, length);
+
+        return crc.getValue();
+    }
+
+    private static byte[] createContent(final int size) {
+        final byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+
+        return bytes;
+    }
+}
@@ -0,0 +1,201 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of {@link ChunkTracker}.
+ *
+ * @author Christian Ihle
+ */
+public class ChunkTrackerTest {
+
+    private static final int CHUNK = MulticastPacket.CHUNK_SIZE;
+
+    /** 2 full groups, and a last group with 3 chunks where the last chunk is 100 bytes. */
+    private static final int SIZE = 18 * CHUNK + 100;
+
+    private byte[] content;
+    private ChunkTracker tracker;
+
+    @Before
+    public void setUp() {
+        content = new byte[SIZE];
+        new Random(1).nextBytes(content);
+        tracker = new ChunkTracker(SIZE);
+    }
+
+    @Test
+    public void chunksShouldBeCountedFromTheSize() {
+        assertEquals(0, ChunkTracker.getChunkCount(0));
+        assertEquals(1, ChunkTracker.getChunkCount(1));
+        assertEquals(1, ChunkTracker.getChunkCount(CHUNK));
+        assertEquals(2, ChunkTracker.getChunkCount(CHUNK + 1));
+        assertEquals(19, tracker.getChunkCount());
+
+        assertEquals(CHUNK, tracker.getChunkLength(0));
+        assertEquals(CHUNK, tracker.getChunkLength(17));
+        assertEquals(100, tracker.getChunkLength(18));
+    }
+
+    @Test
+    public void emptyFileShouldBeComplete() {
+        assertTrue(new ChunkTracker(0).isComplete());
+    }
+
+    @Test
+    public void fileShouldBeCompleteWhenAllChunksHaveArrived() {
+        for (int i = 0; i < tracker.getChunkCount(); i++) {
+            assertFalse(tracker.isComplete());
+            assertTrue(tracker.isMissing(i));
+            assertEquals(ChunkTracker.NONE, chunkArrived(i));
+            assertFalse(tracker.isMissing(i));
+        }
+
+        assertTrue(tracker.isComplete());
+        assertEquals(0, tracker.getMissingRanges(10).length);
+    }
+
+    @Test
+    public void chunksOutsideTheFileShouldNeverBeMissing() {
+        assertFalse(tracker.isMissing(-1));
+        assertFalse(tracker.isMissing(19));
+    }
+
+    @Test
+    public void duplicateChunksShouldBeIgnored() {
+        chunkArrived(1);
+        chunkArrived(1);
+
+        assertArrayEquals(new int[] {0, 0, 2, 18}, tracker.getMissingRanges(10));
+    }
+
+    @Test
+    public void missingRangesShouldBeFoundInOrder() {
+        for (int i = 0; i < tracker.getChunkCount(); i++) {
+            if (i != 2 && i != 3 && i != 9 && i != 18) {
+                chunkArrived(i);
+            }
+        }
+
+        assertArrayEquals(new int[] {2, 3, 9, 9, 18, 18}, tracker.getMissingRanges(10));
+        assertArrayEquals(new int[] {2, 3, 9, 9}, tracker.getMissingRanges(2));
+    }
+
+    @Test
+    public void chunkLostBeforeTheParityShouldBeRecovered() {
+        for (int i = 0; i < 8; i++) {
+            if (i != 5) {
+                assertEquals(ChunkTracker.NONE, chunkArrived(i));
+            }
+        }
+
+        assertEquals(5, parityArrived(0));
+        assertRecovered(5);
+        assertFalse(tracker.isMissing(5));
+    }
+
+    @Test
+    public void chunkLostAfterTheParityShouldBeRecoveredWhenTheRestArrives() {
+        assertEquals(ChunkTracker.NONE, parityArrived(1));
+
+        for (int i = 8; i < 14; i++) {
+            assertEquals(ChunkTracker.NONE, chunkArrived(i));
+        }
+
+        assertEquals(15, chunkArrived(14));
+        assertRecovered(15);
+    }
+
+    @Test
+    public void shortLastChunkShouldBeRecovered() {
+        chunkArrived(16);
+        chunkArrived(17);
+
+        assertEquals(18, parityArrived(2));
+        assertRecovered(18);
+        assertArrayEquals(new int[] {0, 15}, tracker.getMissingRanges(10));
+    }
+
+    @Test
+    public void twoLostChunksInAGroupShouldNotBeRecovered() {
+        for (int i = 0; i < 6; i++) {
+            chunkArrived(i);
+        }
+
+        assertEquals(ChunkTracker.NONE, parityArrived(0));
+        assertTrue(tracker.isMissing(6));
+        assertTrue(tracker.isMissing(7));
+
+        // When one of them is sent again, the other can be recovered
+        assertEquals(7, chunkArrived(6));
+        assertRecovered(7);
+    }
+
+    @Test
+    public void parityForCompleteGroupsShouldBeIgnored() {
+        for (int i = 0; i < 8; i++) {
+            chunkArrived(i);
+        }
+
+        assertEquals(ChunkTracker.NONE, parityArrived(0));
+        assertEquals(ChunkTracker.NONE, tracker.parityArrived(-1, new byte[CHUNK], 0, CHUNK));
+        assertEquals(ChunkTracker.NONE, tracker.parityArrived(3, new byte[CHUNK], 0, CHUNK));
+    }
+
+    private int chunkArrived(final int index) {
+        final byte[] chunk = new byte[tracker.getChunkLength(index)];
+        System.arraycopy(content, index * CHUNK, chunk, 0, chunk.length);
+
+        return tracker.chunkArrived(index, chunk, 0);
+    }
+
+    private int parityArrived(final int group) {
+        final byte[] parity = new byte[CHUNK];
+        final int first = group * ChunkTracker.GROUP_SIZE;
+        final int last = Math.min(first + ChunkTracker.GROUP_SIZE, tracker.getChunkCount());
+
+        for (int i = first; i < last; i++) {
+            ChunkTracker.xor(parity, content, i * CHUNK, tracker.getChunkLength(i));
+        }
+
+        return tracker.parityArrived(group, parity, 0, parity.length);
+    }
+
+    private void assertRecovered(final int index) {
+        final int length = tracker.getChunkLength(index);
+        final byte[] expected = new byte[length];
+        final byte[] actual = new byte[length];
+
+        System.arraycopy(content, index * CHUNK, expected, 0, length);
+        System.arraycopy(tracker.getRecovered(), 0, actual, 0, length);
+
+        assertArrayEquals(expected, actual);
+    }
+}
@@ -0,0 +1,192 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of {@link EventLoopConnections}.
+ *
+ * @author Christian Ihle
+ */
+public class EventLoopConnectionsTest {
+
+    private NetworkEventLoop eventLoop;
+
+    @Before
+    public void setUp() throws IOException {
+        eventLoop = new NetworkEventLoop();
+        eventLoop.start();
+    }
+
+    @After
+    public void tearDown() {
+        eventLoop.stop();
+    }
+
+    @Test
+    public void connectionShouldBeAcceptedByTheEventLoop() throws Exception {
+        final EventLoopConnections connections = new EventLoopConnections(eventLoop, 5000);
+        final int port = connections.start();
+        final SocketChannel client = connect(port);
+
+        try {
+            final Socket connection = connections.waitForConnection();
+
+            assertNotNull(connection);
+            assertNotNull(connection.getChannel());
+            assertTrue(connection.getChannel().isBlocking());
+
+            connection.close();
+        }
+
+        finally {
+            client.close();
+            connections.close();
+        }
+    }
+
+    @Test
+    public void serverShouldBeClosedAfterTheConnectionIsAccepted() throws Exception {
+        final EventLoopConnections connections = new EventLoopConnections(eventLoop, 5000);
+        final int port = connections.start();
+        final SocketChannel client = connect(port);
+
+        try {
+            connections.waitForConnection().close();
+            assertRefused(port);
+        }
+
+        finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void serverShouldBeClosedAtTheTimeout() throws Exception {
+        final EventLoopConnections connections = new EventLoopConnections(eventLoop, 100);
+        final int port = connections.start();
+
+        final long start = System.currentTimeMillis();
+        assertNull(connections.waitForConnection());
+        assertTrue(System.currentTimeMillis() - start < 2000);
+
+        assertRefused(port);
+    }
+
+    @Test
+    public void queuedSenderShouldBeAcceptedAfterTheTimeout() throws Exception {
+        final EventLoopConnections connections = new EventLoopConnections(eventLoop, 100);
+        final int port = connections.start();
+        connections.senderQueued();
+
+        Thread.sleep(500);
+        final SocketChannel client = connect(port);
+
+        try {
+            final Socket connection = connections.waitForConnection();
+
+            assertNotNull(connection);
+            connection.close();
+        }
+
+        finally {
+            client.close();
+            connections.close();
+        }
+    }
+
+    @Test
+    public void closeShouldEndTheWait() throws Exception {
+        final EventLoopConnections connections = new EventLoopConnections(eventLoop, 10000);
+        connections.start();
+
+        final Thread closer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    sleep(100);
+                }
+
+                catch (final InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+
+                connections.close();
+            }
+        };
+
+        closer.start();
+
+        final long start = System.currentTimeMillis();
+        assertNull(connections.waitForConnection());
+        assertTrue(System.currentTimeMillis() - start < 5000);
+
+        closer.join();
+    }
+
+    @Test(expected = IOException.class)
+    public void onlyOneConnectionShouldBeAccepted() throws Exception {
+        final EventLoopConnections connections = new EventLoopConnections(eventLoop, 5000);
+
+        connections.waitForNextConnection();
+    }
+
+    @Test
+    public void connectionsShouldNotUseHandshakeOrKeepAlive() {
+        final EventLoopConnections connections = new EventLoopConnections(eventLoop, 5000);
+
+        assertFalse(connections.isHandshakeNeeded());
+        assertFalse(connections.keepAlive(null));
+    }
+
+    private SocketChannel connect(final int port) throws IOException {
+        return SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+    }
+
+    private void assertRefused(final int port) throws IOException, InterruptedException {
+        // The port is released when the event loop has deregistered the closed channel
+        for (int i = 0; i < 20; i++) {
+            try {
+                connect(port).close();
+                Thread.sleep(100);
+            }
+
+            catch (final ConnectException e) {
+                return;
+            }
+        }
+
+        fail("The server should be closed");
+    }
+}
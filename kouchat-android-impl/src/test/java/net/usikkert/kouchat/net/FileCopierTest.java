@@ -0,0 +1,592 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import net.usikkert.kouchat.event.FileTransferListener;
+import net.usikkert.kouchat.misc.User;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of {@link FileCopier}.
+ *
+ * @author Christian Ihle
+ */
+public class FileCopierTest {
+
+    private byte[] content;
+    private File sourceFile;
+    private File targetFile;
+    private CountingProgress progress;
+    private FileCopier copier;
+
+    @Before
+    public void setUp() throws IOException {
+        content = new byte[FileCopier.MIN_CHUNK_SIZE * 3 + 123];
+        new Random(1).nextBytes(content);
+
+        sourceFile = File.createTempFile("kouchat", ".bin");
+        sourceFile.deleteOnExit();
+        targetFile = File.createTempFile("kouchat", ".bin");
+        targetFile.deleteOnExit();
+
+        final FileOutputStream outputStream = new FileOutputStream(sourceFile);
+
+        try {
+            outputStream.write(content);
+        }
+
+        finally {
+            outputStream.close();
+        }
+
+        progress = new CountingProgress();
+        copier = new FileCopier(progress);
+    }
+
+    @After
+    public void tearDown() {
+        sourceFile.delete();
+        targetFile.delete();
+    }
+
+    @Test
+    public void sendShouldCopyTheWholeFileInChunks() throws IOException {
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        final FileInputStream inputStream = new FileInputStream(sourceFile);
+
+        try {
+            assertEquals(content.length, copier.send(inputStream.getChannel(), Channels.newChannel(outputStream), 0, content.length));
+        }
+
+        finally {
+            inputStream.close();
+        }
+
+        assertArrayEquals(content, outputStream.toByteArray());
+        assertEquals(content.length, progress.bytes);
+        assertTrue(progress.calls < 5);
+    }
+
+    @Test
+    public void sendShouldStopAtTheEndOfAShorterFile() throws IOException {
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        final FileInputStream inputStream = new FileInputStream(sourceFile);
+
+        try {
+            assertEquals(content.length,
+                    copier.send(inputStream.getChannel(), Channels.newChannel(outputStream), 0, content.length + 100));
+        }
+
+        finally {
+            inputStream.close();
+        }
+    }
+
+    @Test
+    public void receiveShouldCopyTheExpectedNumberOfBytes() throws IOException {
+        final ReadableByteChannel connection = Channels.newChannel(new ByteArrayInputStream(content));
+        final FileOutputStream outputStream = new FileOutputStream(targetFile);
+
+        try {
+            assertEquals(content.length, copier.receive(connection, outputStream.getChannel(), 0, content.length, null));
+        }
+
+        finally {
+            outputStream.close();
+        }
+
+        assertArrayEquals(content, readFile(targetFile));
+        assertEquals(content.length, progress.bytes);
+    }
+
+    @Test
+    public void receiveShouldStopWhenTheConnectionIsClosed() throws IOException {
+        final ReadableByteChannel connection = Channels.newChannel(new ByteArrayInputStream(content));
+        final FileOutputStream outputStream = new FileOutputStream(targetFile);
+
+        try {
+            assertEquals(content.length, copier.receive(connection, outputStream.getChannel(), 0, content.length * 2, null));
+        }
+
+        finally {
+            outputStream.close();
+        }
+    }
+
+    @Test
+    public void sendShouldStartAtThePosition() throws IOException {
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        final FileInputStream inputStream = new FileInputStream(sourceFile);
+
+        try {
+            assertEquals(content.length - 1000,
+                    copier.send(inputStream.getChannel(), Channels.newChannel(outputStream), 1000, content.length));
+        }
+
+        finally {
+            inputStream.close();
+        }
+
+        assertArrayEquals(Arrays.copyOfRange(content, 1000, content.length), outputStream.toByteArray());
+    }
+
+    @Test
+    public void receiveWithChecksumShouldUpdateTheChecksumAndSaveAtThePosition() throws IOException {
+        final ReadableByteChannel connection = Channels.newChannel(new ByteArrayInputStream(content, 1000, content.length));
+        final CRC32 checksum = new CRC32();
+        checksum.update(content, 0, 1000);
+
+        final RandomAccessFile outputFile = new RandomAccessFile(targetFile, "rw");
+
+        try {
+            outputFile.write(content, 0, 1000);
+            assertEquals(content.length - 1000, copier.receive(connection, outputFile.getChannel(), 1000, content.length, checksum));
+        }
+
+        finally {
+            outputFile.close();
+        }
+
+        final CRC32 expectedChecksum = new CRC32();
+        expectedChecksum.update(content);
+
+        assertEquals(expectedChecksum.getValue(), checksum.getValue());
+        assertArrayEquals(content, readFile(targetFile));
+        assertEquals(content.length - 1000, progress.bytes);
+    }
+
+    @Test
+    public void copyShouldReportProgressInChunks() throws IOException {
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+        assertEquals(content.length, copier.copy(new ByteArrayInputStream(content), outputStream, content.length, null));
+
+        assertArrayEquals(content, outputStream.toByteArray());
+        assertEquals(content.length, progress.bytes);
+        assertTrue(progress.calls < 5);
+    }
+
+    @Test
+    public void copyShouldStopWhenCanceled() throws IOException {
+        progress.canceled = true;
+
+        assertEquals(0, copier.copy(new ByteArrayInputStream(content), new ByteArrayOutputStream(), content.length, null));
+        assertEquals(0, progress.calls);
+    }
+
+    @Test
+    public void copyShouldNotReadPastTheCount() throws IOException {
+        final ByteArrayInputStream inputStream = new ByteArrayInputStream(content);
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        final CRC32 checksum = new CRC32();
+
+        assertEquals(1000, copier.copy(inputStream, outputStream, 1000, checksum));
+
+        assertArrayEquals(Arrays.copyOf(content, 1000), outputStream.toByteArray());
+        assertEquals(content.length - 1000, inputStream.available());
+        assertEquals(crc(0, 1000), checksum.getValue());
+    }
+
+    @Test
+    public void sendWithChecksumShouldUpdateTheChecksum() throws IOException {
+        final FileInputStream inputStream = new FileInputStream(sourceFile);
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        final CRC32 checksum = new CRC32();
+
+        try {
+            assertEquals(content.length - 1000,
+                    copier.send(inputStream.getChannel(), Channels.newChannel(outputStream), 1000, content.length, checksum));
+        }
+
+        finally {
+            inputStream.close();
+        }
+
+        assertArrayEquals(Arrays.copyOfRange(content, 1000, content.length), outputStream.toByteArray());
+        assertEquals(crc(1000, content.length), checksum.getValue());
+    }
+
+    @Test
+    public void chunkSizeShouldGrowWhenTheCopyIsFast() throws IOException {
+        final FileInputStream inputStream = new FileInputStream(sourceFile);
+
+        try {
+            copier.send(inputStream.getChannel(), Channels.newChannel(new ByteArrayOutputStream()), 0, content.length);
+        }
+
+        finally {
+            inputStream.close();
+        }
+
+        assertTrue(copier.getChunkSize() > FileCopier.MIN_CHUNK_SIZE);
+        assertTrue(copier.getChunkSize() <= FileCopier.MAX_CHUNK_SIZE);
+    }
+
+    @Test
+    public void fileShouldBeTransferredWithChannels() throws Exception {
+        assertTrue(transferFile(true));
+        assertArrayEquals(content, readFile(targetFile));
+    }
+
+    @Test
+    public void fileShouldBeTransferredWithStreams() throws Exception {
+        assertTrue(transferFile(false));
+        assertArrayEquals(content, readFile(targetFile));
+    }
+
+    @Test
+    public void checksumShouldBeVerifiedWithChannels() throws Exception {
+        assertChecksumVerified(true);
+    }
+
+    @Test
+    public void checksumShouldBeVerifiedWithStreams() throws Exception {
+        assertChecksumVerified(false);
+    }
+
+    @Test
+    public void checksumMismatchShouldFailTheTransfer() throws Exception {
+        final User user = new User("Test", 1234);
+        user.setCapabilities(EnumSet.of(Capability.CHECKSUM));
+
+        final FileReceiver fileReceiver = new FileReceiver(user, targetFile, content.length, 1, TransferOptions.NONE);
+        fileReceiver.registerListener(mock(FileTransferListener.class));
+        assertTrue(fileReceiver.prepareChecksum());
+        final int port = fileReceiver.startServer();
+        final int[] verdict = new int[1];
+
+        final Thread senderThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    final Socket socket = new Socket("127.0.0.1", port);
+
+                    try {
+                        socket.getOutputStream().write(content);
+                        socket.getOutputStream().write(new byte[ChecksumExchange.CHECKSUM_SIZE]);
+                        verdict[0] = socket.getInputStream().read();
+                    }
+
+                    finally {
+                        socket.close();
+                    }
+                }
+
+                catch (final IOException e) {
+                    verdict[0] = -2;
+                }
+            }
+        };
+
+        senderThread.start();
+
+        assertFalse(fileReceiver.transfer());
+        senderThread.join(5000);
+
+        assertEquals(0, verdict[0]);
+        assertFalse(fileReceiver.isVerified());
+        assertEquals(crc(0, content.length), fileReceiver.getChecksum());
+    }
+
+    @Test
+    public void checksumShouldNotBeExchangedWithOldClients() throws Exception {
+        final User user = new User("Test", 1234);
+        user.setIpAddress("127.0.0.1");
+
+        final FileReceiver fileReceiver = new FileReceiver(user, targetFile, content.length, 1, TransferOptions.NONE);
+        fileReceiver.registerListener(mock(FileTransferListener.class));
+        final FileSender fileSender = new FileSender(user, sourceFile, 2, true);
+        fileSender.registerListener(mock(FileTransferListener.class));
+
+        assertTrue(transfer(fileReceiver, fileSender, 0));
+        assertEquals(-1, fileSender.getChecksum());
+        assertEquals(-1, fileReceiver.getChecksum());
+        assertFalse(fileReceiver.isVerified());
+    }
+
+    @Test
+    public void checksumShouldOnlyBeSentWhenTheReceiverAskedForIt() throws Exception {
+        final User user = new User("Test", 1234);
+        user.setIpAddress("127.0.0.1");
+        user.setCapabilities(EnumSet.of(Capability.CHECKSUM));
+
+        final FileReceiver fileReceiver = new FileReceiver(user, targetFile, content.length, 1, TransferOptions.NONE);
+        fileReceiver.registerListener(mock(FileTransferListener.class));
+        final FileSender fileSender = new FileSender(user, sourceFile, 2, true);
+        fileSender.registerListener(mock(FileTransferListener.class));
+        final int port = fileReceiver.startServer();
+
+        final Thread senderThread = new Thread() {
+            @Override
+            public void run() {
+                fileSender.transfer(port, TransferOptions.NONE);
+            }
+        };
+
+        senderThread.start();
+
+        assertTrue(fileReceiver.transfer());
+        senderThread.join(5000);
+
+        assertTrue(fileSender.isTransferred());
+        assertArrayEquals(content, readFile(targetFile));
+        assertEquals(-1, fileSender.getChecksum());
+        assertEquals(-1, fileReceiver.getChecksum());
+    }
+
+    @Test
+    public void resumedTransferShouldVerifyTheChecksumOfTheRest() throws Exception {
+        final int offset = FileCopier.MIN_CHUNK_SIZE + 10;
+        final FileOutputStream outputStream = new FileOutputStream(targetFile);
+
+        try {
+            outputStream.write(content, 0, offset);
+        }
+
+        finally {
+            outputStream.close();
+        }
+
+        final CRC32 checksum = new CRC32();
+        checksum.update(content, 0, offset);
+        new TransferJournal(targetFile, "source.bin", 999, content.length).save(offset, checksum.getValue());
+
+        final User user = new User("Test", 1234);
+        user.setIpAddress("127.0.0.1");
+        user.setCapabilities(EnumSet.of(Capability.RESUME, Capability.CHECKSUM));
+
+        final FileReceiver fileReceiver = new FileReceiver(user, targetFile, content.length, 1, TransferOptions.NONE);
+        fileReceiver.registerListener(mock(FileTransferListener.class));
+        assertEquals(offset, fileReceiver.prepareResume("source.bin", 999));
+        final FileSender fileSender = new FileSender(user, sourceFile, 2, true);
+        fileSender.registerListener(mock(FileTransferListener.class));
+
+        assertTrue(transfer(fileReceiver, fileSender, offset));
+        assertArrayEquals(content, readFile(targetFile));
+        assertTrue(fileReceiver.isVerified());
+        assertTrue(fileSender.isVerified());
+        assertEquals(crc(offset, content.length), fileReceiver.getChecksum());
+        assertEquals(crc(offset, content.length), fileSender.getChecksum());
+    }
+
+    @Test
+    public void interruptedTransferShouldBeResumed() throws Exception {
+        assertTrue(resumeFile(true));
+        assertArrayEquals(content, readFile(targetFile));
+        assertFalse(new File(targetFile.getPath() + TransferJournal.SUFFIX).exists());
+    }
+
+    @Test
+    public void interruptedTransferShouldBeResumedWithStreams() throws Exception {
+        assertTrue(resumeFile(false));
+        assertArrayEquals(content, readFile(targetFile));
+    }
+
+    private boolean resumeFile(final boolean channelTransfers) throws Exception {
+        final int offset = FileCopier.MIN_CHUNK_SIZE + 10;
+
+        // The result of the interrupted transfer, with some extra bytes not in the journal
+        final FileOutputStream outputStream = new FileOutputStream(targetFile);
+
+        try {
+            outputStream.write(content, 0, offset + 500);
+        }
+
+        finally {
+            outputStream.close();
+        }
+
+        final CRC32 checksum = new CRC32();
+        checksum.update(content, 0, offset);
+        new TransferJournal(targetFile, "source.bin", 999, content.length).save(offset, checksum.getValue());
+
+        final User user = new User("Test", 1234);
+        user.setIpAddress("127.0.0.1");
+        user.setCapabilities(EnumSet.of(Capability.RESUME));
+
+        final FileReceiver fileReceiver = new FileReceiver(user, targetFile, content.length, 1, TransferOptions.NONE);
+        fileReceiver.setChannelTransfers(channelTransfers);
+        fileReceiver.registerListener(mock(FileTransferListener.class));
+        assertEquals(offset, fileReceiver.prepareResume("source.bin", 999));
+
+        final FileSender fileSender = new FileSender(user, sourceFile, 2, channelTransfers);
+        fileSender.registerListener(mock(FileTransferListener.class));
+
+        final int port = fileReceiver.startServer();
+
+        final Thread senderThread = new Thread() {
+            @Override
+            public void run() {
+                fileSender.transfer(port, new TransferOptions(offset, 1, 0, false));
+            }
+        };
+
+        senderThread.start();
+
+        final boolean received = fileReceiver.transfer();
+        senderThread.join(5000);
+
+        assertTrue(fileSender.isTransferred());
+        assertEquals(content.length, fileReceiver.getTransferred());
+
+        return received;
+    }
+
+    private boolean transferFile(final boolean channelTransfers) throws Exception {
+        final User user = new User("Test", 1234);
+        user.setIpAddress("127.0.0.1");
+
+        final FileReceiver fileReceiver = new FileReceiver(user, targetFile, content.length, 1, TransferOptions.NONE);
+        fileReceiver.setChannelTransfers(channelTransfers);
+        fileReceiver.registerListener(mock(FileTransferListener.class));
+        final FileSender fileSender = new FileSender(user, sourceFile, 2, channelTransfers);
+        fileSender.registerListener(mock(FileTransferListener.class));
+
+        final int port = fileReceiver.startServer();
+
+        final Thread senderThread = new Thread() {
+            @Override
+            public void run() {
+                fileSender.transfer(port, TransferOptions.NONE);
+            }
+        };
+
+        senderThread.start();
+
+        final boolean received = fileReceiver.transfer();
+        senderThread.join(5000);
+
+        assertTrue(fileSender.isTransferred());
+        assertEquals(content.length, fileSender.getTransferred());
+        assertEquals(100, fileSender.getPercent());
+        assertEquals(100, fileReceiver.getPercent());
+
+        return received;
+    }
+
+    private void assertChecksumVerified(final boolean channelTransfers) throws Exception {
+        final User user = new User("Test", 1234);
+        user.setIpAddress("127.0.0.1");
+        user.setCapabilities(EnumSet.of(Capability.CHECKSUM));
+
+        final FileReceiver fileReceiver = new FileReceiver(user, targetFile, content.length, 1, TransferOptions.NONE);
+        fileReceiver.setChannelTransfers(channelTransfers);
+        fileReceiver.registerListener(mock(FileTransferListener.class));
+        final FileSender fileSender = new FileSender(user, sourceFile, 2, channelTransfers);
+        fileSender.registerListener(mock(FileTransferListener.class));
+
+        assertTrue(transfer(fileReceiver, fileSender, 0));
+        assertArrayEquals(content, readFile(targetFile));
+        assertTrue(fileReceiver.isVerified());
+        assertTrue(fileSender.isVerified());
+        assertEquals(crc(0, content.length), fileReceiver.getChecksum());
+        assertEquals(crc(0, content.length), fileSender.getChecksum());
+    }
+
+    private boolean transfer(final FileReceiver fileReceiver, final FileSender fileSender, final long offset)
+            throws Exception {
+        final boolean checksum = fileReceiver.prepareChecksum();
+        final int port = fileReceiver.startServer();
+
+        final Thread senderThread = new Thread() {
+            @Override
+            public void run() {
+                fileSender.transfer(port, new TransferOptions(offset, 1, 0, checksum));
+            }
+        };
+
+        senderThread.start();
+
+        final boolean received = fileReceiver.transfer();
+        senderThread.join(5000);
+
+        assertTrue(fileSender.isTransferred());
+
+        return received;
+    }
+
+    private long crc(final int from, final int to) {
+        final CRC32 checksum = new CRC32();
+        checksum.update(content, from, to - from);
+
+        return checksum.getValue();
+    }
+
+    private byte[] readFile(final File file) throws IOException {
+        final byte[] bytes = new byte[(int) file.length()];
+        final FileInputStream inputStream = new FileInputStream(file);
+
+        try {
+            int position = 0;
+
+            while (position < bytes.length) {
+                position += inputStream.read(bytes, position, bytes.length - position);
+            }
+        }
+
+        finally {
+            inputStream.close();
+        }
+
+        return bytes;
+    }
+
+    private static class CountingProgress implements FileCopier.Progress {
+
+        private boolean canceled;
+        private long bytes;
+        private int calls;
+
+        @Override
+        public boolean isCanceled() {
+            return canceled;
+        }
+
+        @Override
+        public void bytesCopied(final long copiedBytes) {
+            bytes += copiedBytes;
+            calls++;
+        }
+    }
+}
@@ -0,0 +1,376 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.EnumSet;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import net.usikkert.kouchat.event.FileTransferListener;
+import net.usikkert.kouchat.misc.User;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of {@link FileTransferServer}.
+ *
+ * @author Christian Ihle
+ */
+public class FileTransferServerTest {
+
+    private NetworkEventLoop eventLoop;
+    private FileTransferServer server;
+    private File sourceFile;
+    private File targetFile;
+
+    @Before
+    public void setUp() throws Exception {
+        eventLoop = new NetworkEventLoop();
+        eventLoop.start();
+        server = new FileTransferServer(eventLoop);
+        server.start();
+
+        sourceFile = File.createTempFile("kouchat-source", ".bin");
+        targetFile = File.createTempFile("kouchat-target", ".bin");
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+        eventLoop.stop();
+        sourceFile.delete();
+        targetFile.delete();
+    }
+
+    @Test
+    public void serverShouldListenOnFileTransferPort() {
+        assertTrue(server.isRunning());
+        assertTrue(server.getPort() > 0);
+    }
+
+    @Test
+    public void connectionWithExpectedHandshakeShouldBeHandedOverInBlockingMode() throws Exception {
+        final TransferHandshake handshake = new TransferHandshake(1234, 5);
+        final BlockingQueue<SocketChannel> connections = server.expect(handshake);
+        final SocketChannel client = connect(handshake);
+
+        try {
+            final SocketChannel connection = connections.poll(5, TimeUnit.SECONDS);
+            assertNotNull(connection);
+            assertTrue(connection.isBlocking());
+
+            client.write(ByteBuffer.wrap(new byte[] {42}));
+            final ByteBuffer buffer = ByteBuffer.allocate(1);
+            assertEquals(1, connection.read(buffer));
+            assertEquals(42, buffer.get(0));
+
+            connection.close();
+        }
+
+        finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void connectionWithUnknownHandshakeShouldBeClosed() throws Exception {
+        server.expect(new TransferHandshake(1234, 5));
+        final SocketChannel client = connect(new TransferHandshake(1234, 6));
+
+        try {
+            assertEquals(-1, client.read(ByteBuffer.allocate(1)));
+        }
+
+        finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void connectionWithInvalidHandshakeShouldBeClosed() throws Exception {
+        final SocketChannel client = SocketChannel.open(new InetSocketAddress("127.0.0.1", server.getPort()));
+
+        try {
+            client.write(ByteBuffer.wrap(new byte[TransferHandshake.SIZE]));
+            assertEquals(-1, client.read(ByteBuffer.allocate(1)));
+        }
+
+        finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void forgetShouldCloseConnectionsNotTaken() throws Exception {
+        final TransferHandshake handshake = new TransferHandshake(1234, 5);
+        final BlockingQueue<SocketChannel> connections = server.expect(handshake);
+        final SocketChannel client = connect(handshake);
+
+        try {
+            final SocketChannel connection = connections.poll(5, TimeUnit.SECONDS);
+            assertNotNull(connection);
+            connections.add(connection);
+
+            server.forget(handshake);
+
+            assertTrue(connections.isEmpty());
+            assertFalse(connection.isOpen());
+            assertEquals(-1, client.read(ByteBuffer.allocate(1)));
+        }
+
+        finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void keptAliveConnectionShouldBeHandedOverAgainWithNextHandshake() throws Exception {
+        final TransferHandshake first = new TransferHandshake(1234, 5);
+        final SocketChannel client = connect(first);
+
+        try {
+            final SocketChannel connection = server.expect(first).poll(5, TimeUnit.SECONDS);
+            assertNotNull(connection);
+            server.forget(first);
+
+            server.keepAlive(connection);
+
+            final TransferHandshake second = new TransferHandshake(1234, 6);
+            final BlockingQueue<SocketChannel> connections = server.expect(second);
+            second.write(client);
+
+            assertSame(connection, connections.poll(5, TimeUnit.SECONDS));
+            assertTrue(connection.isBlocking());
+
+            connection.close();
+        }
+
+        finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void keptAliveConnectionShouldBeClosedWhenSenderClosesIt() throws Exception {
+        final TransferHandshake handshake = new TransferHandshake(1234, 5);
+        final BlockingQueue<SocketChannel> connections = server.expect(handshake);
+        final SocketChannel client = connect(handshake);
+
+        final SocketChannel connection = connections.poll(5, TimeUnit.SECONDS);
+        assertNotNull(connection);
+
+        server.keepAlive(connection);
+        client.close();
+        Thread.sleep(200);
+
+        assertFalse(connection.isOpen());
+    }
+
+    @Test
+    public void fileShouldBeReceivedThroughSharedServer() throws Exception {
+        final byte[] content = createContent(100000);
+        final User user = createUser(Capability.HANDSHAKE, Capability.CHECKSUM);
+
+        final FileReceiver fileReceiver = createReceiver(user, content.length, 1);
+        fileReceiver.registerListener(mock(FileTransferListener.class));
+
+        assertTrue(transfer(fileReceiver, new FileSender(user, sourceFile, 3, true)));
+        assertArrayEquals(content, readFile(targetFile));
+        assertTrue(fileReceiver.isVerified());
+    }
+
+    @Test
+    public void fileShouldBeReceivedOverSeveralConnectionsThroughSharedServer() throws Exception {
+        final byte[] content = createContent((int) ParallelTransfer.MIN_FILE_SIZE + 1000);
+        final User user = createUser(Capability.HANDSHAKE, Capability.PARALLEL);
+
+        final FileReceiver fileReceiver = createReceiver(user, content.length, 3);
+        fileReceiver.registerListener(mock(FileTransferListener.class));
+        assertEquals(3, fileReceiver.prepareStreams());
+
+        assertTrue(transfer(fileReceiver, new FileSender(user, sourceFile, 3, true)));
+        assertArrayEquals(content, readFile(targetFile));
+    }
+
+    @Test
+    public void backToBackFilesShouldBeSentOverTheSameConnection() throws Exception {
+        final byte[] content = createContent(100000);
+        final User user = createUser(Capability.HANDSHAKE, Capability.CHECKSUM, Capability.KEEPALIVE);
+        final TransferConnectionPool pool = new TransferConnectionPool(eventLoop);
+        final InetSocketAddress address = new InetSocketAddress("127.0.0.1", server.getPort());
+
+        final FileReceiver firstReceiver = createReceiver(user, content.length, 1);
+        firstReceiver.registerListener(mock(FileTransferListener.class));
+        final FileSender firstSender = new FileSender(user, sourceFile, 3, true);
+        firstSender.setConnectionPool(pool);
+
+        assertTrue(transfer(firstReceiver, firstSender));
+        assertEquals(1, pool.getIdleCount());
+
+        final SocketChannel connection = pool.acquire(address);
+        pool.release(address, connection);
+        assertTrue(targetFile.delete());
+
+        final FileReceiver secondReceiver = createReceiver(user, content.length, 1);
+        secondReceiver.registerListener(mock(FileTransferListener.class));
+        final FileSender secondSender = new FileSender(user, sourceFile, 4, true);
+        secondSender.setConnectionPool(pool);
+
+        assertTrue(transfer(secondReceiver, secondSender));
+        assertArrayEquals(content, readFile(targetFile));
+        assertTrue(secondReceiver.isVerified());
+        assertSame(connection, pool.acquire(address));
+
+        pool.closeAll();
+        connection.close();
+    }
+
+    @Test
+    public void connectionShouldNotBeKeptWhenSenderDoesNotSupportIt() throws Exception {
+        final byte[] content = createContent(1000);
+        final User user = createUser(Capability.HANDSHAKE);
+        final TransferConnectionPool pool = new TransferConnectionPool(eventLoop);
+
+        final FileReceiver fileReceiver = createReceiver(user, content.length, 1);
+        fileReceiver.registerListener(mock(FileTransferListener.class));
+        final FileSender fileSender = new FileSender(user, sourceFile, 3, true);
+        fileSender.setConnectionPool(pool);
+
+        assertTrue(transfer(fileReceiver, fileSender));
+        assertArrayEquals(content, readFile(targetFile));
+        assertEquals(0, pool.getIdleCount());
+    }
+
+    @Test
+    public void fileReceiverShouldOpenItsOwnServerForSendersWithoutHandshake() throws Exception {
+        final FileReceiver fileReceiver = createReceiver(createUser(), 10, 1);
+
+        assertTrue(fileReceiver.startServer() != server.getPort());
+        assertEquals(0, fileReceiver.getHandshakeId());
+
+        fileReceiver.cancel();
+    }
+
+    private FileReceiver createReceiver(final User user, final long size, final int maxStreams) {
+        final FileReceiver fileReceiver =
+                new FileReceiver(user, targetFile, size, 7, new TransferOptions(0, maxStreams, 0, false));
+        fileReceiver.setEventLoop(eventLoop);
+        fileReceiver.setSharedServer(server);
+
+        return fileReceiver;
+    }
+
+    private boolean transfer(final FileReceiver fileReceiver, final FileSender fileSender) throws Exception {
+        fileSender.registerListener(mock(FileTransferListener.class));
+        fileSender.setSenderCode(1234);
+
+        final int port = fileReceiver.startServer();
+        assertEquals(server.getPort(), port);
+        assertEquals(7, fileReceiver.getHandshakeId());
+        final boolean checksum = fileReceiver.prepareChecksum();
+
+        final Thread senderThread = new Thread() {
+            @Override
+            public void run() {
+                fileSender.transfer(port, new TransferOptions(0, fileReceiver.getStreams(),
+                                                              fileReceiver.getHandshakeId(), checksum));
+            }
+        };
+
+        senderThread.start();
+
+        final boolean received = fileReceiver.transfer();
+        senderThread.join(5000);
+
+        assertTrue(fileSender.isTransferred());
+
+        return received;
+    }
+
+    private SocketChannel connect(final TransferHandshake handshake) throws IOException {
+        final SocketChannel client = SocketChannel.open(new InetSocketAddress("127.0.0.1", server.getPort()));
+        handshake.write(client);
+
+        return client;
+    }
+
+    private User createUser(final Capability... capabilities) {
+        final User user = new User("Test", 1234);
+        user.setIpAddress("127.0.0.1");
+
+        if (capabilities.length > 0) {
+            user.setCapabilities(EnumSet.of(capabilities[0], capabilities));
+        }
+
+        return user;
+    }
+
+    private byte[] createContent(final int size) throws IOException {
+        final byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+
+        final FileOutputStream outputStream = new FileOutputStream(sourceFile);
+
+        try {
+            outputStream.write(content);
+        }
+
+        finally {
+            outputStream.close();
+        }
+
+        return content;
+    }
+
+    private byte[] readFile(final File file) throws IOException {
+        final byte[] bytes = new byte[(int) file.length()];
+        final FileInputStream inputStream = new FileInputStream(file);
+
+        try {
+            int read = 0;
+
+            while (read < bytes.length) {
+                read += inputStream.read(bytes, read, bytes.length - read);
+            }
+        }
+
+        finally {
+            inputStream.close();
+        }
+
+        return bytes;
+    }
+}
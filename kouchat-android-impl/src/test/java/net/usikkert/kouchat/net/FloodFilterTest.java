@@ -0,0 +1,182 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.nio.ByteBuffer;
+
+import net.usikkert.kouchat.event.ByteReceiverListener;
+import net.usikkert.kouchat.event.ReceiverListener;
+import net.usikkert.kouchat.misc.User;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of {@link FloodFilter}.
+ *
+ * @author Christian Ihle
+ */
+public class FloodFilterTest {
+
+    private ByteReceiverListener listener;
+    private FloodFilter floodFilter;
+    private long now;
+
+    @Before
+    public void setUp() {
+        listener = mock(ByteReceiverListener.class);
+        now = 10000;
+
+        floodFilter = new FloodFilter(listener, new User("Me", 1000)) {
+            @Override
+            long currentTimeMillis() {
+                return now;
+            }
+        };
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfListenerIsNull() {
+        try {
+            new FloodFilter(null, new User("Me", 1000));
+            fail("Should throw exception");
+        }
+
+        catch (final IllegalArgumentException e) {
+            assertEquals("Listener can not be null", e.getMessage());
+        }
+    }
+
+    @Test
+    public void chatMessagesWithinTheBurstShouldBeAllowed() {
+        sendMessages("2000!MSG#Other:[0]Hello", FloodFilter.CHAT_BURST);
+
+        verify(listener, times(FloodFilter.CHAT_BURST)).messageArrived(any(ByteBuffer.class), eq("192.168.1.2"));
+        assertEquals(0, floodFilter.getThrottledMessages());
+        assertTrue(floodFilter.getThrottledSenders().isEmpty());
+    }
+
+    @Test
+    public void chatMessagesAfterTheBurstShouldBeThrottled() {
+        sendMessages("2000!MSG#Other:[0]Hello", FloodFilter.CHAT_BURST + 5);
+
+        verify(listener, times(FloodFilter.CHAT_BURST)).messageArrived(any(ByteBuffer.class), eq("192.168.1.2"));
+        assertEquals(5, floodFilter.getThrottledMessages());
+        assertEquals(Long.valueOf(5), floodFilter.getThrottledSenders().get(2000));
+    }
+
+    @Test
+    public void controlMessagesShouldHaveTheirOwnBudget() {
+        sendMessages("2000!MSG#Other:[0]Hello", FloodFilter.CHAT_BURST + 1);
+        sendMessages("2000!IDLE#Other:", FloodFilter.CONTROL_BURST + 1);
+
+        verify(listener, times(FloodFilter.CHAT_BURST + FloodFilter.CONTROL_BURST))
+                .messageArrived(any(ByteBuffer.class), eq("192.168.1.2"));
+        assertEquals(2, floodFilter.getThrottledMessages());
+    }
+
+    @Test
+    public void tokensShouldBeRefilledOverTime() {
+        sendMessages("2000!MSG#Other:[0]Hello", FloodFilter.CHAT_BURST + 1);
+        assertEquals(1, floodFilter.getThrottledMessages());
+
+        // Refills CHAT_RATE tokens
+        now += 1000;
+        sendMessages("2000!MSG#Other:[0]Hello", FloodFilter.CHAT_RATE + 1);
+
+        verify(listener, times(FloodFilter.CHAT_BURST + FloodFilter.CHAT_RATE))
+                .messageArrived(any(ByteBuffer.class), eq("192.168.1.2"));
+        assertEquals(2, floodFilter.getThrottledMessages());
+    }
+
+    @Test
+    public void tokensShouldNotBeRefilledAboveTheBurst() {
+        now += 60000;
+        sendMessages("2000!MSG#Other:[0]Hello", FloodFilter.CHAT_BURST + 1);
+
+        verify(listener, times(FloodFilter.CHAT_BURST)).messageArrived(any(ByteBuffer.class), eq("192.168.1.2"));
+    }
+
+    @Test
+    public void usersShouldHaveSeparateBudgets() {
+        sendMessages("2000!MSG#Other:[0]Hello", FloodFilter.CHAT_BURST + 3);
+        sendMessages("3000!MSG#Another:[0]Hello", FloodFilter.CHAT_BURST);
+
+        assertEquals(3, floodFilter.getThrottledMessages());
+        assertEquals(1, floodFilter.getThrottledSenders().size());
+        assertNull(floodFilter.getThrottledSenders().get(3000));
+    }
+
+    @Test
+    public void newUserCodeForEachMessageShouldBeThrottledByIpAddress() {
+        final int addressBurst = FloodFilter.CHAT_BURST * FloodFilter.USERS_PER_ADDRESS;
+
+        for (int i = 0; i < addressBurst + 10; i++) {
+            floodFilter.messageArrived((2000 + i) + "!MSG#Other:[0]Hello", "192.168.1.2");
+        }
+
+        verify(listener, times(addressBurst)).messageArrived(any(ByteBuffer.class), eq("192.168.1.2"));
+        assertEquals(10, floodFilter.getThrottledMessages());
+        assertEquals(Long.valueOf(10), floodFilter.getThrottledAddresses().get("192.168.1.2"));
+        assertTrue(floodFilter.getThrottledSenders().isEmpty());
+
+        floodFilter.messageArrived("5000!MSG#Another:[0]Hello", "192.168.1.3");
+        verify(listener).messageArrived(any(ByteBuffer.class), eq("192.168.1.3"));
+    }
+
+    @Test
+    public void ownMessagesShouldNeverBeThrottled() {
+        sendMessages("1000!MSG#Me:[0]Hello", FloodFilter.CHAT_BURST * 2);
+
+        verify(listener, times(FloodFilter.CHAT_BURST * 2)).messageArrived(any(ByteBuffer.class), eq("192.168.1.2"));
+        assertEquals(0, floodFilter.getThrottledMessages());
+    }
+
+    @Test
+    public void invalidMessagesShouldBeGivenToTheListener() {
+        sendMessages("Invalid message", FloodFilter.CONTROL_BURST * 2);
+        sendMessages("abc!MSG#Other:[0]Hello", FloodFilter.CHAT_BURST * 2);
+
+        verify(listener, times((FloodFilter.CONTROL_BURST + FloodFilter.CHAT_BURST) * 2))
+                .messageArrived(any(ByteBuffer.class), eq("192.168.1.2"));
+    }
+
+    @Test
+    public void stringListenersShouldGetTheDecodedMessage() {
+        final ReceiverListener stringListener = mock(ReceiverListener.class);
+        final FloodFilter stringFilter = new FloodFilter(stringListener, new User("Me", 1000));
+
+        stringFilter.messageArrived("2000!MSG#Other:[0]Hellø", "192.168.1.2");
+
+        verify(stringListener).messageArrived("2000!MSG#Other:[0]Hellø", "192.168.1.2");
+    }
+
+    private void sendMessages(final String message, final int count) {
+        for (int i = 0; i < count; i++) {
+            floodFilter.messageArrived(message, "192.168.1.2");
+        }
+    }
+}
@@ -0,0 +1,182 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import net.usikkert.kouchat.Constants;
+import net.usikkert.kouchat.misc.User;
+import net.usikkert.kouchat.util.TestUtils;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of {@link FragmentReassembler} and {@link MessageFragmenter}.
+ *
+ * @author Christian Ihle
+ */
+public class FragmentReassemblerTest {
+
+    private FragmentReassembler reassembler;
+    private MessageFragmenter fragmenter;
+    private MessageTokenizer tokenizer;
+
+    @Before
+    public void setUp() {
+        reassembler = new FragmentReassembler();
+        fragmenter = new MessageFragmenter(new User("Other", 2000));
+        tokenizer = new MessageTokenizer();
+    }
+
+    @Test
+    public void smallMessagesShouldNotBeSplit() {
+        final String message = "2000!MSG#Other:[0]Hello";
+
+        assertEquals(Collections.singletonList(message), fragmenter.split(message));
+    }
+
+    @Test
+    public void largeMessagesShouldBeSplitIntoFragmentsThatFitInOnePacket() {
+        final String message = createMessage("æøå ", 1000);
+        final List<String> fragments = fragmenter.split(message);
+
+        assertTrue(fragments.size() > 1);
+
+        for (int i = 0; i < fragments.size(); i++) {
+            final String fragment = fragments.get(i);
+
+            assertTrue(fragment.startsWith("2000!FRAGMENT#Other:{0}[" + i + "/" + fragments.size() + "]"));
+            assertTrue(encode(fragment).remaining() <= Constants.NETWORK_PACKET_SIZE);
+        }
+    }
+
+    @Test
+    public void fragmentsShouldBePutTogetherInAnyOrder() {
+        final String message = createMessage("æøå ", 1000);
+        final List<String> fragments = fragmenter.split(message);
+        Collections.reverse(fragments);
+
+        ByteBuffer complete = null;
+
+        for (final String fragment : fragments) {
+            assertNull(complete);
+            complete = add(fragment);
+        }
+
+        assertNotNull(complete);
+        assertEquals(message, MessageTokenizer.CHARSET.decode(complete).toString());
+        assertEquals(0, reassembler.getIncompleteMessages());
+        assertEquals(0, reassembler.getBytes());
+    }
+
+    @Test
+    public void whitespaceAtTheEndOfFragmentsShouldBeKept() {
+        assertNull(add("2000!FRAGMENT#Other:{5}[0/2]2000!MSG#Other:[0]Hello "));
+        final ByteBuffer complete = add("2000!FRAGMENT#Other:{5}[1/2]world ");
+
+        assertEquals("2000!MSG#Other:[0]Hello world ", MessageTokenizer.CHARSET.decode(complete).toString());
+    }
+
+    @Test
+    public void duplicateFragmentsShouldBeIgnored() {
+        assertNull(add("2000!FRAGMENT#Other:{5}[0/2]Hello "));
+        assertNull(add("2000!FRAGMENT#Other:{5}[0/2]Hello "));
+        assertEquals(6, reassembler.getBytes());
+
+        assertNotNull(add("2000!FRAGMENT#Other:{5}[1/2]world"));
+    }
+
+    @Test
+    public void fragmentsFromDifferentUsersShouldNotBeMixed() {
+        assertNull(add("2000!FRAGMENT#Other:{5}[0/2]Hello "));
+        assertNull(add("3000!FRAGMENT#Third:{5}[1/2]world"));
+
+        assertEquals(2, reassembler.getIncompleteMessages());
+    }
+
+    @Test
+    public void invalidFragmentNumbersShouldBeIgnored() {
+        assertNull(add("2000!FRAGMENT#Other:{5}[2/2]Hello"));
+        assertNull(add("2000!FRAGMENT#Other:{5}[0/0]Hello"));
+        assertNull(add("2000!FRAGMENT#Other:{6}[0/" + (FragmentReassembler.MAX_FRAGMENTS + 1) + "]Hello"));
+
+        assertNull(add("2000!FRAGMENT#Other:{7}[0/2]Hello"));
+        assertNull(add("2000!FRAGMENT#Other:{7}[1/3]world"));
+
+        assertEquals(1, reassembler.getIncompleteMessages());
+        assertEquals(5, reassembler.getBytes());
+    }
+
+    @Test
+    public void oldestIncompleteMessageShouldBeRemovedWhenTooMany() {
+        for (int i = 0; i <= FragmentReassembler.MAX_MESSAGES; i++) {
+            assertNull(add("2000!FRAGMENT#Other:{" + i + "}[0/2]Hello"));
+        }
+
+        assertEquals(FragmentReassembler.MAX_MESSAGES, reassembler.getIncompleteMessages());
+
+        // The first message was removed, so this starts a new message instead, and removes the second message
+        assertNull(add("2000!FRAGMENT#Other:{0}[1/2]world"));
+        assertNull(add("2000!FRAGMENT#Other:{1}[1/2]world"));
+        assertNotNull(add("2000!FRAGMENT#Other:{3}[1/2]world"));
+    }
+
+    @Test
+    public void incompleteMessagesShouldBeRemovedAfterTimeout() {
+        assertNull(add("2000!FRAGMENT#Other:{5}[0/2]Hello "));
+
+        final Object partialMessage = TestUtils.getFieldValue(reassembler, Map.class, "messages").values().iterator().next();
+        TestUtils.setFieldValue(partialMessage, "created", System.currentTimeMillis() - FragmentReassembler.TIMEOUT);
+
+        assertNull(add("2000!FRAGMENT#Other:{5}[1/2]world"));
+        assertEquals(1, reassembler.getIncompleteMessages());
+        assertEquals(5, reassembler.getBytes());
+    }
+
+    private ByteBuffer add(final String fragment) {
+        final ByteBuffer buffer = encode(fragment);
+        assertTrue(tokenizer.tokenize(buffer));
+
+        return reassembler.add(tokenizer, buffer);
+    }
+
+    private ByteBuffer encode(final String message) {
+        return ByteBuffer.wrap(message.getBytes(MessageTokenizer.CHARSET));
+    }
+
+    private String createMessage(final String text, final int times) {
+        final StringBuilder message = new StringBuilder("2000!MSG#Other:[0]");
+
+        for (int i = 0; i < times; i++) {
+            message.append(text);
+        }
+
+        return message.toString();
+    }
+}
@@ -0,0 +1,112 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Test of {@link InlineReceiver}.
+ *
+ * @author Christian Ihle
+ */
+public class InlineReceiverTest {
+
+    private final byte[] content = {1, 2, 3, 4, 5};
+
+    @Test
+    public void contentShouldBeVerifiedAgainstTheChecksumFromTheSender() {
+        final InlineReceiver receiver = new InlineReceiver();
+
+        assertTrue(receiver.contentArrived(content, InlineTransfer.checksum(content)));
+        assertSame(content, receiver.waitForContent());
+
+        assertTrue(receiver.verify(content, content.length));
+        assertEquals(InlineTransfer.checksum(content), receiver.getChecksum());
+    }
+
+    @Test
+    public void contentWithWrongChecksumShouldNotBeVerified() {
+        final InlineReceiver receiver = new InlineReceiver();
+        receiver.contentArrived(content, InlineTransfer.checksum(content) + 1);
+
+        assertFalse(receiver.verify(receiver.waitForContent(), content.length));
+        assertEquals(InlineTransfer.checksum(content), receiver.getChecksum());
+    }
+
+    @Test
+    public void contentWithWrongSizeShouldNotBeVerified() {
+        final InlineReceiver receiver = new InlineReceiver();
+        receiver.contentArrived(content, InlineTransfer.checksum(content));
+
+        assertFalse(receiver.verify(receiver.waitForContent(), content.length + 1));
+    }
+
+    @Test
+    public void contentShouldOnlyBeAcceptedOnce() {
+        final InlineReceiver receiver = new InlineReceiver();
+
+        assertTrue(receiver.contentArrived(content, 1));
+        assertFalse(receiver.contentArrived(new byte[1], 2));
+
+        assertSame(content, receiver.waitForContent());
+    }
+
+    @Test
+    public void waitingShouldStopAtTheTimeout() {
+        final InlineReceiver receiver = new InlineReceiver(100);
+
+        assertNull(receiver.waitForContent());
+        assertEquals(-1, receiver.getChecksum());
+    }
+
+    @Test
+    public void stopShouldEndTheWaitAndRejectTheContent() throws InterruptedException {
+        final InlineReceiver receiver = new InlineReceiver();
+
+        final Thread stopper = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    sleep(100);
+                }
+
+                catch (final InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+
+                receiver.stop();
+            }
+        };
+
+        stopper.start();
+
+        final long start = System.currentTimeMillis();
+        assertNull(receiver.waitForContent());
+        assertTrue(System.currentTimeMillis() - start < InlineTransfer.TIMEOUT);
+
+        stopper.join();
+        assertFalse(receiver.contentArrived(content, 1));
+    }
+}
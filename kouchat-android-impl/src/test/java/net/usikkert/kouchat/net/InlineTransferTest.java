@@ -0,0 +1,326 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.Random;
+
+import net.usikkert.kouchat.Constants;
+import net.usikkert.kouchat.event.FileTransferListener;
+import net.usikkert.kouchat.misc.User;
+import net.usikkert.kouchat.util.Tools;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of {@link InlineTransfer}.
+ *
+ * @author Christian Ihle
+ */
+public class InlineTransferTest {
+
+    private File sourceFile;
+    private File targetFile;
+    private User user;
+
+    @Before
+    public void setUp() throws IOException {
+        sourceFile = File.createTempFile("kouchat-source", ".bin");
+        targetFile = File.createTempFile("kouchat-target", ".bin");
+
+        user = new User("Test", 1234);
+        user.setPrivateChatPort(40656);
+        user.setCapabilities(EnumSet.of(Capability.INLINE));
+    }
+
+    @After
+    public void tearDown() {
+        sourceFile.delete();
+        targetFile.delete();
+    }
+
+    @Test
+    public void encodeShouldUseBase64WithPadding() {
+        assertEquals("", InlineTransfer.encode(new byte[0]));
+        assertEquals("Zg==", InlineTransfer.encode("f".getBytes()));
+        assertEquals("Zm8=", InlineTransfer.encode("fo".getBytes()));
+        assertEquals("Zm9v", InlineTransfer.encode("foo".getBytes()));
+        assertEquals("Zm9vYmFy", InlineTransfer.encode("foobar".getBytes()));
+        assertEquals("/+8=", InlineTransfer.encode(new byte[] {(byte) 0xFF, (byte) 0xEF}));
+    }
+
+    @Test
+    public void decodeShouldReverseEncode() {
+        final Random random = new Random(1);
+
+        for (int length = 0; length < 100; length++) {
+            final byte[] content = new byte[length];
+            random.nextBytes(content);
+
+            assertArrayEquals(content, InlineTransfer.decode(InlineTransfer.encode(content)));
+        }
+    }
+
+    @Test
+    public void decodeShouldReturnNullForInvalidContent() {
+        assertNull(InlineTransfer.decode("Zm9"));
+        assertNull(InlineTransfer.decode("Zm9*"));
+        assertNull(InlineTransfer.decode("Zm9æ"));
+    }
+
+    @Test(expected = IOException.class)
+    public void readFileShouldFailForLargeFiles() throws IOException {
+        writeFile(InlineTransfer.MAX_SIZE + 1);
+
+        InlineTransfer.readFile(sourceFile);
+    }
+
+    @Test
+    public void isSupportedShouldNeedCapabilityAndPrivateChat() {
+        assertTrue(InlineTransfer.isSupported(user));
+
+        user.setPrivateChatPort(0);
+        assertFalse(InlineTransfer.isSupported(user));
+
+        final User oldUser = new User("Old", 5678);
+        oldUser.setPrivateChatPort(40656);
+        assertFalse(InlineTransfer.isSupported(oldUser));
+    }
+
+    @Test
+    public void fileReceiverShouldOnlyBeInlineForSmallFiles() throws ServerException {
+        final FileReceiver small = new FileReceiver(user, targetFile, 1000, 1, TransferOptions.NONE);
+        assertTrue(small.prepareInline(1000));
+        assertEquals(0, small.startServer());
+
+        assertFalse(new FileReceiver(user, targetFile, 1001, 2, TransferOptions.NONE).prepareInline(1000));
+        assertFalse(new FileReceiver(user, targetFile, 1000, 3, TransferOptions.NONE).prepareInline(0));
+        final FileReceiver large = new FileReceiver(user, targetFile, InlineTransfer.MAX_SIZE + 1, 4, TransferOptions.NONE);
+        assertFalse(large.prepareInline(Integer.MAX_VALUE));
+        assertFalse(new FileReceiver(new User("Old", 5678), targetFile, 1000, 5, TransferOptions.NONE).prepareInline(1000));
+    }
+
+    @Test
+    public void largestInlineFileShouldFitInTheBurstOfTheFloodFilter() {
+        final User me = new User("Nick567890", Integer.MAX_VALUE);
+        final StringBuilder fileName = new StringBuilder();
+
+        while (fileName.length() < Constants.MESSAGE_MAX_BYTES) {
+            fileName.append('f');
+        }
+
+        final String message = me.getCode() + "!SENDFILEDATA#" + me.getNick() + ":" +
+                "(" + Integer.MAX_VALUE + ")" +
+                "[" + 4294967295L + "]" +
+                "<" + InlineTransfer.encode(new byte[InlineTransfer.MAX_SIZE]) + ">" +
+                fileName;
+
+        final int fragments = new MessageFragmenter(me).split(message).size();
+
+        assertTrue(fragments > 1);
+        assertTrue("Too many fragments: " + fragments, fragments <= FloodFilter.CHAT_BURST * 3 / 4);
+    }
+
+    @Test
+    public void smallFileShouldBeSentInline() throws Exception {
+        final byte[] content = writeFile(5000);
+        final FileReceiver fileReceiver = createFileReceiver(content.length);
+        final FileSender fileSender = createFileSender();
+        final Thread receiverThread = startReceiver(fileReceiver, fileSender);
+
+        final boolean sent = fileSender.transferInline(new InlineTransfer.Sender() {
+            @Override
+            public boolean send(final byte[] data, final long checksum) {
+                return fileReceiver.inlineContentArrived(data, checksum);
+            }
+        });
+
+        receiverThread.join(5000);
+
+        assertTrue(sent);
+        assertTrue(fileSender.isVerified());
+        assertTrue(fileReceiver.isTransferred());
+        assertTrue(fileReceiver.isVerified());
+        assertEquals(100, fileReceiver.getPercent());
+        assertEquals(fileSender.getChecksum(), fileReceiver.getChecksum());
+        assertArrayEquals(content, readFile(targetFile));
+    }
+
+    @Test
+    public void inlineFileWithWrongChecksumShouldNotBeReceived() throws Exception {
+        final byte[] content = writeFile(5000);
+        final FileReceiver fileReceiver = createFileReceiver(content.length);
+
+        assertTrue(fileReceiver.inlineContentArrived(content, InlineTransfer.checksum(content) + 1));
+        assertFalse(fileReceiver.transfer());
+        assertFalse(fileReceiver.isVerified());
+        assertEquals(0, targetFile.length());
+    }
+
+    @Test
+    public void contentShouldOnlyBeAcceptedOnce() throws Exception {
+        final byte[] content = writeFile(10);
+        final FileReceiver fileReceiver = createFileReceiver(content.length);
+        final long checksum = InlineTransfer.checksum(content);
+
+        assertTrue(fileReceiver.inlineContentArrived(content, checksum));
+        assertFalse(fileReceiver.inlineContentArrived(new byte[10], checksum));
+        assertTrue(fileReceiver.transfer());
+        assertArrayEquals(content, readFile(targetFile));
+    }
+
+    @Test
+    public void canceledInlineTransferShouldStopWaiting() throws Exception {
+        final FileReceiver fileReceiver = createFileReceiver(10);
+        fileReceiver.cancel();
+
+        final long start = System.currentTimeMillis();
+        assertFalse(fileReceiver.transfer());
+        assertTrue(System.currentTimeMillis() - start < InlineTransfer.TIMEOUT);
+        assertFalse(fileReceiver.inlineContentArrived(new byte[10], 0));
+    }
+
+    @Test
+    public void inlineFileShouldFailWhenTheReceiverAnswersThatTheChecksumDidNotMatch() throws Exception {
+        writeFile(5000);
+        final FileReceiver fileReceiver = createFileReceiver(5000);
+        final FileSender fileSender = createFileSender();
+        final Thread receiverThread = startReceiver(fileReceiver, fileSender);
+
+        final boolean sent = fileSender.transferInline(new InlineTransfer.Sender() {
+            @Override
+            public boolean send(final byte[] data, final long checksum) {
+                return fileReceiver.inlineContentArrived(data, checksum + 1);
+            }
+        });
+
+        receiverThread.join(5000);
+
+        assertFalse(sent);
+        assertFalse(fileSender.isTransferred());
+        assertFalse(fileSender.isVerified());
+        assertFalse(fileReceiver.isTransferred());
+    }
+
+    @Test
+    public void canceledInlineTransferShouldStopWaitingForTheAnswer() throws Exception {
+        writeFile(10);
+        final FileSender fileSender = createFileSender();
+
+        final long start = System.currentTimeMillis();
+        final boolean sent = fileSender.transferInline(new InlineTransfer.Sender() {
+            @Override
+            public boolean send(final byte[] data, final long checksum) {
+                fileSender.cancel();
+                return true;
+            }
+        });
+
+        assertFalse(sent);
+        assertTrue(System.currentTimeMillis() - start < InlineTransfer.ANSWER_TIMEOUT);
+        assertFalse(fileSender.inlineAnswerArrived(true));
+    }
+
+    @Test
+    public void answerShouldOnlyBeAcceptedWhileWaiting() {
+        assertFalse(createFileSender().inlineAnswerArrived(true));
+    }
+
+    private Thread startReceiver(final FileReceiver fileReceiver, final FileSender fileSender) {
+        final Thread receiverThread = new Thread() {
+            @Override
+            public void run() {
+                final boolean received = fileReceiver.transfer();
+
+                // Like the SENDFILEDATAACK, which may arrive before the sender starts waiting
+                while (!fileSender.inlineAnswerArrived(received) && !fileSender.isCanceled()) {
+                    Tools.sleep(10);
+                }
+            }
+        };
+
+        receiverThread.start();
+
+        return receiverThread;
+    }
+
+    private FileReceiver createFileReceiver(final long size) {
+        final FileReceiver fileReceiver = new FileReceiver(user, targetFile, size, 1, TransferOptions.NONE);
+        fileReceiver.registerListener(mock(FileTransferListener.class));
+        assertTrue(fileReceiver.prepareInline(InlineTransfer.MAX_SIZE));
+
+        return fileReceiver;
+    }
+
+    private FileSender createFileSender() {
+        final FileSender fileSender = new FileSender(user, sourceFile, 2);
+        fileSender.registerListener(mock(FileTransferListener.class));
+
+        return fileSender;
+    }
+
+    private byte[] writeFile(final int size) throws IOException {
+        final byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+
+        final FileOutputStream outputStream = new FileOutputStream(sourceFile);
+
+        try {
+            outputStream.write(content);
+        }
+
+        finally {
+            outputStream.close();
+        }
+
+        return content;
+    }
+
+    private byte[] readFile(final File file) throws IOException {
+        final byte[] bytes = new byte[(int) file.length()];
+        final FileInputStream inputStream = new FileInputStream(file);
+
+        try {
+            int read = 0;
+
+            while (read < bytes.length) {
+                read += inputStream.read(bytes, read, bytes.length - read);
+            }
+        }
+
+        finally {
+            inputStream.close();
+        }
+
+        return bytes;
+    }
+}
@@ -0,0 +1,174 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import net.usikkert.kouchat.Constants;
+import net.usikkert.kouchat.misc.User;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+/**
+ * Test of {@link MessageBatcher}.
+ *
+ * @author Christian Ihle
+ */
+public class MessageBatcherTest {
+
+    private static final String IDLE = "1000!IDLE#Me:";
+    private static final String WRITING = "1000!WRITING#Me:";
+    private static final String STOPPED_WRITING = "1000!STOPPEDWRITING#Me:";
+
+    private MessageBatcher batcher;
+    private MessageSender messageSender;
+
+    @Before
+    public void setUp() {
+        messageSender = mock(MessageSender.class);
+        when(messageSender.send(anyString())).thenReturn(true);
+
+        batcher = new MessageBatcher(new SendQueue(), messageSender, new User("Me", 1000), 200);
+    }
+
+    @After
+    public void tearDown() {
+        batcher.stop();
+    }
+
+    @Test
+    public void messagesShouldBeSentDirectlyWhenNotStarted() throws Exception {
+        final Future<Boolean> result = batcher.add(IDLE);
+
+        assertTrue(result.get());
+        verify(messageSender).send(IDLE);
+    }
+
+    @Test
+    public void messagesInTheSameWindowShouldBeSentInOneBatch() throws Exception {
+        batcher.start();
+
+        final Future<Boolean> idle = batcher.add(IDLE);
+        final Future<Boolean> writing = batcher.add(WRITING);
+        final Future<Boolean> stoppedWriting = batcher.add(STOPPED_WRITING);
+
+        assertTrue(idle.get(5, TimeUnit.SECONDS));
+        assertTrue(writing.get(5, TimeUnit.SECONDS));
+        assertTrue(stoppedWriting.get(5, TimeUnit.SECONDS));
+
+        verify(messageSender).send("1000!BATCH#Me:[13]" + IDLE + "[16]" + WRITING + "[23]" + STOPPED_WRITING);
+        verifyNoMoreInteractions(messageSender);
+    }
+
+    @Test
+    public void singleMessageShouldBeSentWithoutBatch() throws Exception {
+        batcher.start();
+
+        assertTrue(batcher.add(WRITING).get(5, TimeUnit.SECONDS));
+
+        verify(messageSender).send(WRITING);
+    }
+
+    @Test
+    public void messagesShouldBeSplitWhenTooLargeForOnePacket() throws Exception {
+        final List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+        batcher.start();
+
+        // 30 messages of 24 bytes is too much for 512 bytes
+        for (int i = 0; i < 30; i++) {
+            results.add(batcher.add("1000!AWAY#Me:" + (100000 + i)));
+        }
+
+        for (final Future<Boolean> result : results) {
+            assertTrue(result.get(5, TimeUnit.SECONDS));
+        }
+
+        final ArgumentCaptor<String> packets = ArgumentCaptor.forClass(String.class);
+        verify(messageSender, atLeast(2)).send(packets.capture());
+        int messages = 0;
+
+        // A message left alone is sent without a batch
+        for (final String packet : packets.getAllValues()) {
+            assertTrue(MessageBatch.getByteLength(packet) <= Constants.NETWORK_PACKET_SIZE);
+
+            if (packet.startsWith("1000!BATCH#Me:")) {
+                messages += packet.split("\\[19\\]").length - 1;
+            }
+
+            else {
+                assertTrue(packet.startsWith("1000!AWAY#Me:"));
+                messages++;
+            }
+        }
+
+        assertEquals(30, messages);
+    }
+
+    @Test
+    public void failureToSendShouldBeGivenToAllMessagesInTheBatch() throws Exception {
+        when(messageSender.send(anyString())).thenReturn(false);
+        batcher.start();
+
+        final Future<Boolean> idle = batcher.add(IDLE);
+        final Future<Boolean> writing = batcher.add(WRITING);
+
+        assertFalse(idle.get(5, TimeUnit.SECONDS));
+        assertFalse(writing.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void stopShouldSendWaitingMessagesWithoutWaitingForTheWindow() throws Exception {
+        batcher = new MessageBatcher(new SendQueue(), messageSender, new User("Me", 1000), 60000);
+        batcher.start();
+
+        final Future<Boolean> idle = batcher.add(IDLE);
+        final Future<Boolean> writing = batcher.add(WRITING);
+        batcher.stop();
+
+        assertTrue(idle.get(5, TimeUnit.SECONDS));
+        assertTrue(writing.get(5, TimeUnit.SECONDS));
+        verify(messageSender).send("1000!BATCH#Me:[13]" + IDLE + "[16]" + WRITING);
+    }
+
+    @Test
+    public void awaitStopShouldWaitForTheWaitingMessagesToBeSent() throws Exception {
+        batcher = new MessageBatcher(new SendQueue(), messageSender, new User("Me", 1000), 60000);
+        batcher.start();
+
+        final Future<Boolean> idle = batcher.add(IDLE);
+        batcher.stop();
+
+        assertTrue(batcher.awaitStop(5000));
+        assertTrue(idle.isDone());
+        verify(messageSender).send(IDLE);
+    }
+}
@@ -0,0 +1,426 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.nio.ByteBuffer;
+import java.util.EnumSet;
+
+import net.usikkert.kouchat.misc.Settings;
+import net.usikkert.kouchat.misc.User;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+
+/**
+ * Test of {@link MessageParser}.
+ *
+ * @author Christian Ihle
+ */
+public class MessageParserTest {
+
+    private MessageParser parser;
+    private MessageResponder responder;
+
+    @Before
+    public void setUp() {
+        responder = mock(MessageResponder.class);
+
+        final Settings settings = mock(Settings.class);
+        when(settings.getMe()).thenReturn(new User("Me", 1000));
+
+        parser = new MessageParser(responder, settings);
+    }
+
+    @Test
+    public void messagesShouldBeIgnoredBeforeLogon() {
+        parser.messageArrived("2000!MSG#Other:[-16777216]Hello", "192.168.1.2");
+
+        verifyZeroInteractions(responder);
+    }
+
+    @Test
+    public void ownLogonShouldNotifyResponder() {
+        parser.messageArrived("1000!LOGON#Me:", "192.168.1.1");
+
+        verify(responder).meLogOn("192.168.1.1");
+    }
+
+    @Test
+    public void ownIdleShouldOnlyNotifyResponderAfterLogon() {
+        parser.messageArrived("1000!IDLE#Me:", "192.168.1.1");
+        verifyZeroInteractions(responder);
+
+        logOn();
+        parser.messageArrived("1000!IDLE#Me:", "192.168.1.1");
+
+        verify(responder).meIdle("192.168.1.1");
+    }
+
+    @Test
+    public void ownMessagesShouldBeIgnored() {
+        logOn();
+        parser.messageArrived("1000!MSG#Me:[-16777216]Hello", "192.168.1.1");
+
+        verify(responder, never()).messageArrived(anyInt(), anyString(), anyInt());
+    }
+
+    @Test
+    public void chatMessageShouldBeParsed() {
+        logOn();
+        parser.messageArrived("2000!MSG#Other:[-16777216]Hello: [there] (you)", "192.168.1.2");
+
+        verify(responder).messageArrived(2000, "Hello: [there] (you)", -16777216);
+    }
+
+    @Test
+    public void chatMessageWithMultiByteCharactersShouldBeParsedFromDirectBuffer() throws Exception {
+        logOn();
+
+        final byte[] bytes = "  2000!MSG#Other:[255]Blåbærsyltetøy  \u0000\u0000".getBytes("UTF-8");
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes);
+        buffer.flip();
+
+        parser.messageArrived(buffer, "192.168.1.2");
+
+        verify(responder).messageArrived(2000, "Blåbærsyltetøy", 255);
+    }
+
+    @Test
+    public void logonShouldGiveTheUserDetailsToResponder() {
+        logOn();
+        parser.messageArrived("2000!LOGON#Other:", "192.168.1.2");
+
+        verify(responder).userLogOn(2000, "Other", "192.168.1.2");
+    }
+
+    @Test
+    public void exposingShouldIncludeAwayMessage() {
+        logOn();
+        parser.messageArrived("2000!EXPOSING#Other:Gone fishing", "192.168.1.2");
+
+        verify(responder).userExposing(2000, "Other", "Gone fishing", "192.168.1.2");
+    }
+
+    @Test
+    public void topicShouldBeParsed() {
+        logOn();
+        parser.messageArrived("2000!TOPIC#Other:(Other)[1234567890123]New topic", "192.168.1.2");
+
+        verify(responder).topicChanged(2000, "New topic", "Other", 1234567890123L);
+    }
+
+    @Test
+    public void emptyTopicShouldBeNull() {
+        logOn();
+        parser.messageArrived("2000!TOPIC#Other:(Other)[1234567890123]", "192.168.1.2");
+
+        verify(responder).topicChanged(2000, null, "Other", 1234567890123L);
+    }
+
+    @Test
+    public void sendFileToMeShouldBeParsed() {
+        logOn();
+        parser.messageArrived("2000!SENDFILE#Other:(1000)[5000]{123}file.txt", "192.168.1.2");
+
+        verify(responder).fileSend(2000, 5000, "file.txt", "Other", 123);
+    }
+
+    @Test
+    public void sendFileToSomeoneElseShouldBeIgnored() {
+        logOn();
+        parser.messageArrived("2000!SENDFILE#Other:(3000)[5000]{123}file.txt", "192.168.1.2");
+
+        verify(responder, never()).fileSend(anyInt(), anyLong(), anyString(), anyString(), anyInt());
+    }
+
+    @Test
+    public void groupFileSendShouldBeParsed() {
+        logOn();
+        parser.messageArrived("2000!SENDGROUPFILE#Other:(5678)[80800]{4294967295}<224.168.6.9:40856:51234>a (file).txt",
+                              "192.168.1.2");
+
+        final ArgumentCaptor<MulticastOffer> offer = ArgumentCaptor.forClass(MulticastOffer.class);
+        verify(responder).groupFileSend(eq(2000), offer.capture());
+
+        assertEquals(5678, offer.getValue().getTransferId());
+        assertEquals("a (file).txt", offer.getValue().getFileName());
+        assertEquals(80800L, offer.getValue().getSize());
+        assertEquals(4294967295L, offer.getValue().getChecksum());
+        assertEquals("224.168.6.9", offer.getValue().getGroupAddress());
+        assertEquals(40856, offer.getValue().getGroupPort());
+        assertEquals(51234, offer.getValue().getControlPort());
+    }
+
+    @Test
+    public void invalidGroupFileSendShouldBeIgnored() {
+        logOn();
+        parser.messageArrived("2000!SENDGROUPFILE#Other:(5678)[80800]{1}<224.168.6.9:40856>file.txt", "192.168.1.2");
+        parser.messageArrived("2000!SENDGROUPFILE#Other:(5678)[80800]{1}<:40856:51234>file.txt", "192.168.1.2");
+        parser.messageArrived("2000!SENDGROUPFILE#Other:(5678)[80800]{1}<224.168.6.9:40856:51234>", "192.168.1.2");
+        parser.messageArrived("2000!SENDGROUPFILE#Other:(5678)[80800]{1}224.168.6.9:40856:51234file.txt", "192.168.1.2");
+
+        verify(responder, never()).groupFileSend(anyInt(), any(MulticastOffer.class));
+    }
+
+    @Test
+    public void clientInfoWithEmptyPortShouldUsePortZero() {
+        logOn();
+        parser.messageArrived("2000!CLIENT#Other:(KouChat v1.0)[60000]{Linux}<>", "192.168.1.2");
+
+        verify(responder).clientInfo(2000, "KouChat v1.0", 60000, "Linux", 0, EnumSet.noneOf(Capability.class));
+    }
+
+    @Test
+    public void clientInfoShouldIncludeKnownCapabilities() {
+        logOn();
+        parser.messageArrived("2000!CLIENT#Other:(KouChat v1.0)[60000]{Linux}<40656>caps=something,batch", "192.168.1.2");
+
+        verify(responder).clientInfo(2000, "KouChat v1.0", 60000, "Linux", 40656, EnumSet.of(Capability.BATCH));
+    }
+
+    @Test
+    public void batchShouldParseEachMessage() {
+        logOn();
+        parser.messageArrived("2000!BATCH#Other:[16]2000!IDLE#Other:[19]2000!WRITING#Other:", "192.168.1.2");
+
+        final InOrder inOrder = inOrder(responder);
+        inOrder.verify(responder).userIdle(2000, "192.168.1.2");
+        inOrder.verify(responder).writingChanged(2000, true);
+    }
+
+    @Test
+    public void batchShouldCountBytesWhenLastMessageEndsWithWhitespace() {
+        logOn();
+        parser.messageArrived("2000!BATCH#Other:[16]2000!IDLE#Other:[24]2000!AWAY#Other:på tur ", "192.168.1.2");
+
+        verify(responder).userIdle(2000, "192.168.1.2");
+        verify(responder).awayChanged(2000, true, "på tur");
+    }
+
+    @Test
+    public void ownIdleInBatchShouldNotifyResponder() {
+        logOn();
+        parser.messageArrived("1000!BATCH#Me:[13]1000!IDLE#Me:[16]1000!WRITING#Me:", "192.168.1.1");
+
+        verify(responder).meIdle("192.168.1.1");
+        verify(responder, never()).writingChanged(anyInt(), anyBoolean());
+    }
+
+    @Test
+    public void batchShouldStopAtInvalidMessage() {
+        logOn();
+        parser.messageArrived("2000!BATCH#Other:[16]2000!IDLE#Other:[99]2000!WRITING#Other:", "192.168.1.2");
+        parser.messageArrived("2000!BATCH#Other:[x]2000!WRITING#Other:", "192.168.1.2");
+
+        verify(responder).userIdle(2000, "192.168.1.2");
+        verify(responder, never()).writingChanged(anyInt(), anyBoolean());
+    }
+
+    @Test
+    public void batchInsideBatchShouldBeIgnored() {
+        logOn();
+        parser.messageArrived("2000!BATCH#Other:[37]2000!BATCH#Other:[16]2000!IDLE#Other:", "192.168.1.2");
+
+        verify(responder, never()).userIdle(anyInt(), anyString());
+    }
+
+    @Test
+    public void fragmentedMessageShouldBeParsedWhenComplete() {
+        logOn();
+        parser.messageArrived("2000!FRAGMENT#Other:{1}[1/2]world", "192.168.1.2");
+        verifyZeroInteractions(responder);
+
+        parser.messageArrived("2000!FRAGMENT#Other:{1}[0/2]2000!MSG#Other:[-16777216]Hello ", "192.168.1.2");
+
+        verify(responder).messageArrived(2000, "Hello world", -16777216);
+    }
+
+    @Test
+    public void fragmentedMessageFromAnotherUserShouldBeIgnored() {
+        logOn();
+        parser.messageArrived("2000!FRAGMENT#Other:{1}[0/1]3000!MSG#Third:[-16777216]Hello", "192.168.1.2");
+
+        verifyZeroInteractions(responder);
+    }
+
+    @Test
+    public void chatMessageWithSequenceNumberShouldBeParsed() {
+        logOn();
+        parser.messageArrived("2000!MSG#Other:{0}[-16777216]Hello {there}", "192.168.1.2");
+
+        verify(responder).messageArrived(2000, "Hello {there}", -16777216);
+        verify(responder, never()).messagesLost(anyInt(), anyInt(), anyInt());
+    }
+
+    @Test
+    public void duplicateChatMessagesShouldBeIgnored() {
+        logOn();
+        parser.messageArrived("2000!MSG#Other:{4}[-16777216]Hello", "192.168.1.2");
+        parser.messageArrived("2000!MSG#Other:{4}[-16777216]Hello", "192.168.1.2");
+
+        verify(responder, times(1)).messageArrived(2000, "Hello", -16777216);
+    }
+
+    @Test
+    public void lostChatMessagesShouldBeReported() {
+        logOn();
+        parser.messageArrived("2000!MSG#Other:{4}[-16777216]First", "192.168.1.2");
+        parser.messageArrived("2000!MSG#Other:{8}[-16777216]Fifth", "192.168.1.2");
+
+        verify(responder).messagesLost(2000, 5, 7);
+        verify(responder).messageArrived(2000, "Fifth", -16777216);
+
+        // Sent again
+        parser.messageArrived("2000!MSG#Other:{6}[-16777216]Third", "192.168.1.2");
+        verify(responder).messageArrived(2000, "Third", -16777216);
+    }
+
+    @Test
+    public void lostChatMessagesAtTheEndShouldBeReportedByIdle() {
+        logOn();
+        parser.messageArrived("2000!MSG#Other:{4}[-16777216]First", "192.168.1.2");
+        parser.messageArrived("2000!IDLE#Other:{6}", "192.168.1.2");
+
+        verify(responder).userIdle(2000, "192.168.1.2");
+        verify(responder).messagesLost(2000, 5, 6);
+
+        // Not reported again by the next idle message
+        parser.messageArrived("2000!IDLE#Other:{6}", "192.168.1.2");
+        verify(responder, times(1)).messagesLost(anyInt(), anyInt(), anyInt());
+
+        // Sent again
+        parser.messageArrived("2000!MSG#Other:{6}[-16777216]Third", "192.168.1.2");
+        verify(responder).messageArrived(2000, "Third", -16777216);
+    }
+
+    @Test
+    public void idleWithoutSequenceNumberShouldNotReportLostMessages() {
+        logOn();
+        parser.messageArrived("2000!MSG#Other:{4}[-16777216]First", "192.168.1.2");
+        parser.messageArrived("2000!IDLE#Other:", "192.168.1.2");
+        parser.messageArrived("2000!IDLE#Other:{4}", "192.168.1.2");
+
+        verify(responder, times(2)).userIdle(2000, "192.168.1.2");
+        verify(responder, never()).messagesLost(anyInt(), anyInt(), anyInt());
+    }
+
+    @Test
+    public void sequenceNumbersShouldStartOverWhenUserLogsOn() {
+        logOn();
+        parser.messageArrived("2000!MSG#Other:{4}[-16777216]Hello", "192.168.1.2");
+        parser.messageArrived("2000!LOGON#Other:", "192.168.1.2");
+        parser.messageArrived("2000!MSG#Other:{0}[-16777216]Hello", "192.168.1.2");
+
+        verify(responder, times(2)).messageArrived(2000, "Hello", -16777216);
+    }
+
+    @Test
+    public void nackToMeShouldRequestResend() {
+        logOn();
+        parser.messageArrived("2000!NACK#Other:(1000)[5]{7}", "192.168.1.2");
+        parser.messageArrived("2000!NACK#Other:(3000)[1]{2}", "192.168.1.2");
+
+        verify(responder).resendRequested(2000, 5, 7);
+        verify(responder, never()).resendRequested(2000, 1, 2);
+    }
+
+    @Test
+    public void fileQueuedShouldBeParsed() {
+        logOn();
+        parser.messageArrived("2000!SENDFILEQUEUED#Other:(1000){12345}some file.txt", "192.168.1.2");
+
+        verify(responder).fileSendQueued(2000, "some file.txt", 12345);
+    }
+
+    @Test
+    public void fileAcceptShouldBeParsed() {
+        logOn();
+        parser.messageArrived("2000!SENDFILEACCEPT#Other:(1000)[40756]{12345}some file.txt", "192.168.1.2");
+
+        verify(responder).fileSendAccepted(2000, "some file.txt", 12345, 40756, new TransferOptions(0, 1, 0, false));
+    }
+
+    @Test
+    public void fileAcceptWithResumeOffsetShouldBeParsed() {
+        logOn();
+        parser.messageArrived("2000!SENDFILEACCEPT#Other:(1000)[40756/3000000000]{12345}some/file.txt", "192.168.1.2");
+
+        verify(responder).fileSendAccepted(2000, "some/file.txt", 12345, 40756, new TransferOptions(3000000000L, 1, 0, false));
+    }
+
+    @Test
+    public void fileAcceptWithStreamsShouldBeParsed() {
+        logOn();
+        parser.messageArrived("2000!SENDFILEACCEPT#Other:(1000)[40756/0/4]{12345}some/file.txt", "192.168.1.2");
+
+        verify(responder).fileSendAccepted(2000, "some/file.txt", 12345, 40756, new TransferOptions(0, 4, 0, false));
+    }
+
+    @Test
+    public void fileAcceptWithHandshakeShouldBeParsed() {
+        logOn();
+        parser.messageArrived("2000!SENDFILEACCEPT#Other:(1000)[40756/0/1/7]{12345}some/file.txt", "192.168.1.2");
+
+        verify(responder).fileSendAccepted(2000, "some/file.txt", 12345, 40756, new TransferOptions(0, 1, 7, false));
+    }
+
+    @Test
+    public void fileAcceptWithChecksumShouldBeParsed() {
+        logOn();
+        parser.messageArrived("2000!SENDFILEACCEPT#Other:(1000)[40756/0/1/0/1]{12345}some/file.txt", "192.168.1.2");
+
+        verify(responder).fileSendAccepted(2000, "some/file.txt", 12345, 40756, new TransferOptions(0, 1, 0, true));
+    }
+
+    @Test
+    public void unknownTypesShouldBeIgnored() {
+        logOn();
+        parser.messageArrived("2000!SOMETHING#Other:", "192.168.1.2");
+        parser.messageArrived("2000!MSGS#Other:[0]Hello", "192.168.1.2");
+
+        verifyNoMoreInteractions(responder);
+    }
+
+    @Test
+    public void badlyFormattedMessagesShouldBeIgnored() {
+        logOn();
+        parser.messageArrived("2000!MSG#Other", "192.168.1.2");
+        parser.messageArrived("20x0!MSG#Other:[0]Hello", "192.168.1.2");
+        parser.messageArrived("2000!MSG#Other:[0Hello", "192.168.1.2");
+        parser.messageArrived("99999999999!MSG#Other:[0]Hello", "192.168.1.2");
+        parser.messageArrived("", "192.168.1.2");
+
+        verifyNoMoreInteractions(responder);
+    }
+
+    private void logOn() {
+        parser.messageArrived("1000!LOGON#Me:", "192.168.1.1");
+        verify(responder).meLogOn("192.168.1.1");
+    }
+}
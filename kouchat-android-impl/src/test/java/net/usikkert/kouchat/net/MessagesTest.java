@@ -25,13 +25,20 @@ package net.usikkert.kouchat.net;
 import static org.mockito.Mockito.*;
 
 import java.io.File;
+import java.util.EnumSet;
+import java.util.concurrent.Future;
 
+import net.usikkert.kouchat.event.MessageSentListener;
 import net.usikkert.kouchat.misc.CommandException;
 import net.usikkert.kouchat.misc.Settings;
+import net.usikkert.kouchat.misc.SortedUserList;
 import net.usikkert.kouchat.misc.Topic;
 import net.usikkert.kouchat.misc.User;
+import net.usikkert.kouchat.misc.UserList;
 
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
 
 /**
  * Test of {@link Messages}.
@@ -52,18 +59,25 @@ public class MessagesTest {
     /** Mocked network service used by messages. */
     private final NetworkService service;
 
+    /** The list of online users. */
+    private final UserList userList;
+
     /**
      * Constructor.
      */
     public MessagesTest() {
         settings = mock(Settings.class);
         me = new User("TestUser", 123);
+        me.setMe(true);
         when(settings.getMe()).thenReturn(me);
 
         service = mock(NetworkService.class);
         when(service.sendMulticastMsg(anyString())).thenReturn(true);
+        when(service.waitForResult(Mockito.<Future<Boolean>>any())).thenReturn(true);
         when(service.sendUDPMsg(anyString(), anyString(), anyInt())).thenReturn(true);
-        messages = new Messages(service, settings);
+        userList = new SortedUserList();
+        userList.add(me);
+        messages = new Messages(service, settings, userList);
     }
 
     /**
@@ -92,7 +106,7 @@ public class MessagesTest {
     /**
      * Tests sendChatMessage().
      *
-     * Expects: 16899115!MSG#Christian:[-15987646]Some chat message
+     * Expects: 16899115!MSG#Christian:{0}[-15987646]Some chat message
      *
      * @throws CommandException In case the message could not be sent.
      */
@@ -100,25 +114,134 @@ public class MessagesTest {
     public void testSendChatMessage() throws CommandException {
         final String msg = "Some chat message";
         messages.sendChatMessage(msg);
-        verify(service).sendMulticastMsg(createMessage("MSG") + "[" + settings.getOwnColor() + "]" + msg);
+        verify(service).queueMulticastMsg(createMessage("MSG") + "{0}[" + settings.getOwnColor() + "]" + msg);
+    }
+
+    /**
+     * Tests that sendChatMessage() gives each message the next sequence number.
+     *
+     * @throws CommandException In case the message could not be sent.
+     */
+    @Test
+    public void testSendChatMessageIncreasesSequenceNumber() throws CommandException {
+        messages.sendChatMessage("First");
+        messages.sendChatMessage("Second");
+
+        verify(service).queueMulticastMsg(createMessage("MSG") + "{0}[" + settings.getOwnColor() + "]First");
+        verify(service).queueMulticastMsg(createMessage("MSG") + "{1}[" + settings.getOwnColor() + "]Second");
+    }
+
+    /**
+     * Tests that sendChatMessage() with a listener queues the message with the next sequence number.
+     *
+     * @throws CommandException In case the message could not be sent.
+     */
+    @Test
+    public void testSendChatMessageWithListener() throws CommandException {
+        final MessageSentListener listener = mock(MessageSentListener.class);
+
+        messages.sendChatMessage("First");
+        messages.sendChatMessage("Second", listener);
+
+        verify(service).queueMulticastMsg(eq(createMessage("MSG") + "{1}[" + settings.getOwnColor() + "]Second"),
+                any(MessageSentListener.class));
+    }
+
+    /**
+     * Tests that sendChatMessage() with a listener checks the network before notifying
+     * the listener, when the message was not sent.
+     */
+    @Test
+    public void testSendChatMessageWithListenerChecksNetworkWhenNotSent() {
+        final MessageSentListener listener = mock(MessageSentListener.class);
+        final ArgumentCaptor<MessageSentListener> captor = ArgumentCaptor.forClass(MessageSentListener.class);
+
+        messages.sendChatMessage("Hello", listener);
+
+        verify(service).queueMulticastMsg(anyString(), captor.capture());
+        captor.getValue().messageSent(false);
+
+        verify(service).checkNetwork();
+        verify(listener).messageSent(false);
+    }
+
+    /**
+     * Tests that sendChatMessage() waits for the queued chat message to be sent.
+     *
+     * @throws CommandException In case the message could not be sent.
+     */
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testSendChatMessageWaitsForTheQueuedMessage() throws CommandException {
+        final Future<Boolean> result = mock(Future.class);
+        when(service.queueMulticastMsg(anyString())).thenReturn(result);
+
+        messages.sendChatMessage("Hello");
+
+        verify(service).waitForResult(result);
+        verify(service, never()).sendMulticastMsg(anyString());
+    }
+
+    /**
+     * Tests sendNackMessage().
+     *
+     * Expects: 11515687!NACK#Christian:(124)[5]{7}
+     */
+    @Test
+    public void testSendNackMessage() {
+        messages.sendNackMessage(new User("Other", 124), 5, 7);
+        verify(service).queueMulticastMsg(createMessage("NACK") + "(124)[5]{7}");
+    }
+
+    /**
+     * Tests that resendChatMessages() sends the lost messages exactly like the first time.
+     *
+     * @throws CommandException In case the message could not be sent.
+     */
+    @Test
+    public void testResendChatMessages() throws CommandException {
+        messages.sendChatMessage("First");
+        messages.sendChatMessage("Second");
+        messages.sendChatMessage("Third");
+
+        messages.resendChatMessages(1, 2);
+
+        verify(service, times(2)).queueMulticastMsg(createMessage("MSG") + "{1}[" + settings.getOwnColor() + "]Second");
+        verify(service, times(2)).queueMulticastMsg(createMessage("MSG") + "{2}[" + settings.getOwnColor() + "]Third");
+        verify(service, times(1)).queueMulticastMsg(contains("First"));
     }
 
     /**
      * Tests sendClient().
      *
      * Expects: 13132531!CLIENT#Christian:(KouChat v0.9.9-dev null)[134]{Linux}<0>
+     *     caps=batch,fragment,resume,parallel,checksum,handshake,inline,multicast,keepalive
      */
     @Test
     public void testSendClientMessage() {
         final String startsWith = "(" + me.getClient() + ")[";
         final String middle = ".+\\)\\[\\d+\\]\\{.+"; // like:)[134[{
-        final String endsWidth = "]{" + me.getOperatingSystem() + "}<" + me.getPrivateChatPort() + ">";
+        final String endsWidth = "]{" + me.getOperatingSystem() + "}<" + me.getPrivateChatPort() +
+                ">caps=batch,fragment,resume,parallel,checksum,handshake,inline,multicast,keepalive";
 
         messages.sendClient();
 
-        verify(service).sendMulticastMsg(startsWith(createMessage("CLIENT") + startsWith));
-        verify(service).sendMulticastMsg(matches(middle));
-        verify(service).sendMulticastMsg(endsWith(endsWidth));
+        verify(service).queueMulticastMsg(startsWith(createMessage("CLIENT") + startsWith));
+        verify(service).queueMulticastMsg(matches(middle));
+        verify(service).queueMulticastMsg(endsWith(endsWidth));
+    }
+
+    /**
+     * Tests that sendClient() leaves out the capabilities that need channels,
+     * when file transfers use streams.
+     */
+    @Test
+    public void testSendClientMessageWithoutChannelTransfers() {
+        when(settings.isNoChannelTransfers()).thenReturn(true);
+
+        messages.sendClient();
+
+        verify(service).queueMulticastMsg(endsWith(">caps=batch,fragment,resume,checksum,handshake,inline,multicast"));
     }
 
     /**
@@ -129,7 +252,7 @@ public class MessagesTest {
     @Test
     public void testSendExposeMessage() {
         messages.sendExposeMessage();
-        verify(service).sendMulticastMsg(createMessage("EXPOSE"));
+        verify(service).queueMulticastMsg(createMessage("EXPOSE"));
     }
 
     /**
@@ -140,7 +263,7 @@ public class MessagesTest {
     @Test
     public void testSendExposingMessage() {
         messages.sendExposingMessage();
-        verify(service).sendMulticastMsg(createMessage("EXPOSING"));
+        verify(service).queueMulticastMsg(createMessage("EXPOSING"));
     }
 
     /**
@@ -172,6 +295,35 @@ public class MessagesTest {
         verify(service).sendMulticastMsg(createMessage("SENDFILE") + info);
     }
 
+    /**
+     * Tests sendGroupFile().
+     *
+     * Expects: 14394329!SENDGROUPFILE#Christian:(5678)[80800]{4294967295}&lt;224.168.6.9:40856:51234&gt;a_file.txt
+     *
+     * @throws CommandException In case the message could not be sent.
+     */
+    @Test
+    public void testSendGroupFileMessage() throws CommandException {
+        final MulticastOffer offer = new MulticastOffer(5678, "a_file.txt", 80800L, 4294967295L, "224.168.6.9", 40856, 51234);
+
+        messages.sendGroupFile(offer);
+        verify(service).sendMulticastMsg(createMessage("SENDGROUPFILE") +
+                "(5678)[80800]{4294967295}<224.168.6.9:40856:51234>a_file.txt");
+    }
+
+    /**
+     * Tests sendFileQueued().
+     *
+     * Expects: 15234876!SENDFILEQUEUED#Christian:(4321){8578765}another_file.txt
+     */
+    @Test
+    public void testSendFileQueuedMessage() {
+        final User user = new User("TestUser", 4321);
+
+        messages.sendFileQueued(user, 8578765, "another_file.txt");
+        verify(service).sendMulticastMsg(createMessage("SENDFILEQUEUED") + "(4321){8578765}another_file.txt");
+    }
+
     /**
      * Tests sendFileAbort().
      *
@@ -214,10 +366,128 @@ public class MessagesTest {
 
         final User user = new User("TestUser", userCode);
 
-        messages.sendFileAccept(user, port, fileHash, fileName);
+        messages.sendFileAccept(user, port, fileHash, fileName, new TransferOptions(0, 1, 0, false));
         verify(service).sendMulticastMsg(createMessage("SENDFILEACCEPT") + info);
     }
 
+    /**
+     * Tests sendFileAccept() when resuming a transfer from a user supporting it.
+     *
+     * Expects: 17247198!SENDFILEACCEPT#Christian:(4321)[20103/5000]{8578765}some_file.txt
+     *
+     * @throws CommandException In case the message could not be sent.
+     */
+    @Test
+    public void testSendFileAcceptMessageWithResumeOffset() throws CommandException {
+        final User user = new User("TestUser", 4321);
+        user.setCapabilities(EnumSet.of(Capability.RESUME));
+
+        messages.sendFileAccept(user, 20103, 8578765, "some_file.txt", new TransferOptions(5000, 1, 0, false));
+        verify(service).sendMulticastMsg(createMessage("SENDFILEACCEPT") + "(4321)[20103/5000]{8578765}some_file.txt");
+    }
+
+    /**
+     * Tests that sendFileAccept() never sends the resume offset to users that don't support it.
+     *
+     * @throws CommandException In case the message could not be sent.
+     */
+    @Test
+    public void testSendFileAcceptMessageWithResumeOffsetToOldClient() throws CommandException {
+        final User user = new User("TestUser", 4321);
+
+        messages.sendFileAccept(user, 20103, 8578765, "some_file.txt", new TransferOptions(5000, 1, 0, false));
+        verify(service).sendMulticastMsg(createMessage("SENDFILEACCEPT") + "(4321)[20103]{8578765}some_file.txt");
+    }
+
+    /**
+     * Tests sendFileAccept() when asking a user supporting it to send the file over several connections.
+     *
+     * Expects: 17247198!SENDFILEACCEPT#Christian:(4321)[20103/0/4]{8578765}some_file.txt
+     *
+     * @throws CommandException In case the message could not be sent.
+     */
+    @Test
+    public void testSendFileAcceptMessageWithStreams() throws CommandException {
+        final User user = new User("TestUser", 4321);
+        user.setCapabilities(EnumSet.of(Capability.RESUME, Capability.PARALLEL));
+
+        messages.sendFileAccept(user, 20103, 8578765, "some_file.txt", new TransferOptions(0, 4, 0, false));
+        verify(service).sendMulticastMsg(createMessage("SENDFILEACCEPT") + "(4321)[20103/0/4]{8578765}some_file.txt");
+    }
+
+    /**
+     * Tests that sendFileAccept() never sends the number of connections to users that don't support it.
+     *
+     * @throws CommandException In case the message could not be sent.
+     */
+    @Test
+    public void testSendFileAcceptMessageWithStreamsToOldClient() throws CommandException {
+        final User user = new User("TestUser", 4321);
+        user.setCapabilities(EnumSet.of(Capability.RESUME));
+
+        messages.sendFileAccept(user, 20103, 8578765, "some_file.txt", new TransferOptions(0, 4, 0, false));
+        verify(service).sendMulticastMsg(createMessage("SENDFILEACCEPT") + "(4321)[20103]{8578765}some_file.txt");
+    }
+
+    /**
+     * Tests sendFileAccept() when asking a user supporting it to start each connection with a handshake.
+     *
+     * Expects: 17247198!SENDFILEACCEPT#Christian:(4321)[40756/0/1/7]{8578765}some_file.txt
+     *
+     * @throws CommandException In case the message could not be sent.
+     */
+    @Test
+    public void testSendFileAcceptMessageWithHandshake() throws CommandException {
+        final User user = new User("TestUser", 4321);
+        user.setCapabilities(EnumSet.of(Capability.HANDSHAKE));
+
+        messages.sendFileAccept(user, 40756, 8578765, "some_file.txt", new TransferOptions(0, 1, 7, false));
+        verify(service).sendMulticastMsg(createMessage("SENDFILEACCEPT") + "(4321)[40756/0/1/7]{8578765}some_file.txt");
+    }
+
+    /**
+     * Tests that sendFileAccept() never sends the handshake id to users that don't support it.
+     *
+     * @throws CommandException In case the message could not be sent.
+     */
+    @Test
+    public void testSendFileAcceptMessageWithHandshakeToOldClient() throws CommandException {
+        final User user = new User("TestUser", 4321);
+
+        messages.sendFileAccept(user, 40756, 8578765, "some_file.txt", new TransferOptions(0, 1, 7, false));
+        verify(service).sendMulticastMsg(createMessage("SENDFILEACCEPT") + "(4321)[40756]{8578765}some_file.txt");
+    }
+
+    /**
+     * Tests sendFileAccept() when asking a user supporting it to exchange the checksum.
+     *
+     * Expects: 17247198!SENDFILEACCEPT#Christian:(4321)[40756/0/1/0/1]{8578765}some_file.txt
+     *
+     * @throws CommandException In case the message could not be sent.
+     */
+    @Test
+    public void testSendFileAcceptMessageWithChecksum() throws CommandException {
+        final User user = new User("TestUser", 4321);
+        user.setCapabilities(EnumSet.of(Capability.CHECKSUM));
+
+        messages.sendFileAccept(user, 40756, 8578765, "some_file.txt", new TransferOptions(0, 1, 0, true));
+        verify(service).sendMulticastMsg(createMessage("SENDFILEACCEPT") + "(4321)[40756/0/1/0/1]{8578765}some_file.txt");
+    }
+
+    /**
+     * Tests that sendFileAccept() never asks users that don't support it to exchange the checksum.
+     *
+     * @throws CommandException In case the message could not be sent.
+     */
+    @Test
+    public void testSendFileAcceptMessageWithChecksumToOldClient() throws CommandException {
+        final User user = new User("TestUser", 4321);
+        user.setCapabilities(EnumSet.of(Capability.HANDSHAKE));
+
+        messages.sendFileAccept(user, 40756, 8578765, "some_file.txt", new TransferOptions(0, 1, 7, true));
+        verify(service).sendMulticastMsg(createMessage("SENDFILEACCEPT") + "(4321)[40756/0/1/7]{8578765}some_file.txt");
+    }
+
     /**
      * Tests sendGetTopicMessage().
      *
@@ -226,7 +496,7 @@ public class MessagesTest {
     @Test
     public void testSendGetTopicMessage() {
         messages.sendGetTopicMessage();
-        verify(service).sendMulticastMsg(createMessage("GETTOPIC"));
+        verify(service).queueMulticastMsg(createMessage("GETTOPIC"));
     }
 
     /**
@@ -240,6 +510,22 @@ public class MessagesTest {
         verify(service).sendMulticastMsg(createMessage("IDLE"));
     }
 
+    /**
+     * Tests that sendIdleMessage() has the sequence number of the last chat message.
+     *
+     * Expects: 10223997!IDLE#Christian:{1}
+     *
+     * @throws CommandException In case the message could not be sent.
+     */
+    @Test
+    public void testSendIdleMessageWithLastChatSequence() throws CommandException {
+        messages.sendChatMessage("First");
+        messages.sendChatMessage("Second");
+        messages.sendIdleMessage();
+
+        verify(service).sendMulticastMsg(createMessage("IDLE") + "{1}");
+    }
+
     /**
      * Tests sendLogoffMessage().
      *
@@ -259,7 +545,7 @@ public class MessagesTest {
     @Test
     public void testSendLogonMessage() {
         messages.sendLogonMessage();
-        verify(service).sendMulticastMsg(createMessage("LOGON"));
+        verify(service).queueMulticastMsg(createMessage("LOGON"));
     }
 
     /**
@@ -271,7 +557,7 @@ public class MessagesTest {
     public void testSendNickCrashMessage() {
         final String nick = "niles";
         messages.sendNickCrashMessage(nick);
-        verify(service).sendMulticastMsg(createMessage("NICKCRASH") + nick);
+        verify(service).queueMulticastMsg(createMessage("NICKCRASH") + nick);
     }
 
     /**
@@ -312,6 +598,44 @@ public class MessagesTest {
         verify(service).sendUDPMsg(createMessage("PRIVMSG") + message, userIP, userPort);
     }
 
+    /**
+     * Tests sendFileData().
+     *
+     * Expects: 10897608!SENDFILEDATA#Christian:(435435)[12345]&lt;Zm9vYmFy&gt;some_file.txt
+     *
+     * @throws CommandException In case the message could not be sent.
+     */
+    @Test
+    public void testSendFileData() throws CommandException {
+        final User user = new User("TestUser", 435435);
+        user.setPrivateChatPort(12345);
+        user.setIpAddress("192.168.5.155");
+
+        messages.sendFileData(user, "some_file.txt", "foobar".getBytes(), 12345);
+        verify(service).sendUDPMsg(createMessage("SENDFILEDATA") + "(435435)[12345]<Zm9vYmFy>some_file.txt",
+                                   "192.168.5.155", 12345);
+    }
+
+    /**
+     * Tests sendFileDataAck().
+     *
+     * Expects: 10897608!SENDFILEDATAACK#Christian:(435435)[1]{8578765}some_file.txt
+     */
+    @Test
+    public void testSendFileDataAck() {
+        final User user = new User("TestUser", 435435);
+        user.setPrivateChatPort(12345);
+        user.setIpAddress("192.168.5.155");
+
+        messages.sendFileDataAck(user, 8578765, "some_file.txt", true);
+        verify(service).sendUDPMsg(createMessage("SENDFILEDATAACK") + "(435435)[1]{8578765}some_file.txt",
+                                   "192.168.5.155", 12345);
+
+        messages.sendFileDataAck(user, 8578765, "some_file.txt", false);
+        verify(service).sendUDPMsg(createMessage("SENDFILEDATAACK") + "(435435)[0]{8578765}some_file.txt",
+                                   "192.168.5.155", 12345);
+    }
+
     /**
      * Tests sendStoppedWritingMessage().
      *
@@ -320,7 +644,7 @@ public class MessagesTest {
     @Test
     public void testSendStoppedWritingMessage() {
         messages.sendStoppedWritingMessage();
-        verify(service).sendMulticastMsg(createMessage("STOPPEDWRITING"));
+        verify(service).queueMulticastMsg(createMessage("STOPPEDWRITING"));
     }
 
     /**
@@ -352,7 +676,7 @@ public class MessagesTest {
                 topic.getTopic();
 
         messages.sendTopicRequestedMessage(topic);
-        verify(service).sendMulticastMsg(createMessage("TOPIC") + message);
+        verify(service).queueMulticastMsg(createMessage("TOPIC") + message);
     }
 
     /**
@@ -363,7 +687,100 @@ public class MessagesTest {
     @Test
     public void testSendWritingMessage() {
         messages.sendWritingMessage();
-        verify(service).sendMulticastMsg(createMessage("WRITING"));
+        verify(service).queueMulticastMsg(createMessage("WRITING"));
+    }
+
+    /**
+     * Tests that status messages are batched when enabled, and all the other users support batches.
+     */
+    @Test
+    public void testStatusMessagesAreBatchedWhenAllUsersSupportIt() {
+        when(settings.isMessageBatching()).thenReturn(true);
+        when(service.sendBatchedMulticastMsg(anyString())).thenReturn(true);
+        userList.add(createUser("Other", 124, EnumSet.of(Capability.BATCH)));
+
+        messages.sendWritingMessage();
+        messages.sendStoppedWritingMessage();
+        messages.sendIdleMessage();
+
+        verify(service).queueBatchedMulticastMsg(createMessage("WRITING"));
+        verify(service).queueBatchedMulticastMsg(createMessage("STOPPEDWRITING"));
+        verify(service).sendBatchedMulticastMsg(createMessage("IDLE"));
+        verify(service, never()).queueMulticastMsg(anyString());
+        verify(service, never()).sendMulticastMsg(anyString());
+    }
+
+    /**
+     * Tests that status messages are not batched when a user does not support batches.
+     */
+    @Test
+    public void testStatusMessagesAreNotBatchedWhenSomeUserDoesNotSupportIt() {
+        when(settings.isMessageBatching()).thenReturn(true);
+        userList.add(createUser("Other", 124, EnumSet.of(Capability.BATCH)));
+        userList.add(createUser("Old", 125, EnumSet.noneOf(Capability.class)));
+
+        messages.sendWritingMessage();
+        messages.sendIdleMessage();
+
+        verify(service).queueMulticastMsg(createMessage("WRITING"));
+        verify(service).sendMulticastMsg(createMessage("IDLE"));
+        verify(service, never()).queueBatchedMulticastMsg(anyString());
+    }
+
+    /**
+     * Tests that status messages are batched when the capabilities of a user arrive after the user was added,
+     * and not batched again when a user without support logs on.
+     */
+    @Test
+    public void testStatusMessagesAreBatchedWhenCapabilitiesChange() {
+        when(settings.isMessageBatching()).thenReturn(true);
+        final User other = createUser("Other", 124, EnumSet.noneOf(Capability.class));
+        userList.add(other);
+
+        messages.sendWritingMessage();
+        verify(service).queueMulticastMsg(createMessage("WRITING"));
+
+        other.setCapabilities(EnumSet.of(Capability.BATCH));
+        userList.update(other);
+        messages.sendStoppedWritingMessage();
+        verify(service).queueBatchedMulticastMsg(createMessage("STOPPEDWRITING"));
+
+        final User old = createUser("Old", 125, EnumSet.noneOf(Capability.class));
+        userList.add(old);
+        messages.sendWritingMessage();
+        verify(service, times(2)).queueMulticastMsg(createMessage("WRITING"));
+
+        userList.remove(old);
+        messages.sendWritingMessage();
+        verify(service).queueBatchedMulticastMsg(createMessage("WRITING"));
+    }
+
+    /**
+     * Tests that status messages are not batched when batching is disabled.
+     */
+    @Test
+    public void testStatusMessagesAreNotBatchedWhenDisabled() {
+        userList.add(createUser("Other", 124, EnumSet.of(Capability.BATCH)));
+
+        messages.sendWritingMessage();
+
+        verify(service).queueMulticastMsg(createMessage("WRITING"));
+        verify(service, never()).queueBatchedMulticastMsg(anyString());
+    }
+
+    /**
+     * Creates a user with the given capabilities.
+     *
+     * @param nick The nick name of the user.
+     * @param code The user code.
+     * @param capabilities The capabilities of the user.
+     * @return The new user.
+     */
+    private User createUser(final String nick, final int code, final EnumSet<Capability> capabilities) {
+        final User user = new User(nick, code);
+        user.setCapabilities(capabilities);
+
+        return user;
     }
 
     /**
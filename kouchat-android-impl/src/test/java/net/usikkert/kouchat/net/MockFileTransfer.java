@@ -123,6 +123,36 @@ public class MockFileTransfer implements FileTransfer {
         return 100000;
     }
 
+    /**
+     * Returns 100000.
+     *
+     * @return 100000;
+     */
+    @Override
+    public long getSmoothedSpeed() {
+        return 100000;
+    }
+
+    /**
+     * Returns the seconds left of the file, at 100000 bytes per second.
+     *
+     * @return The seconds left.
+     */
+    @Override
+    public long getSecondsLeft() {
+        return (getFileSize() - transferred) / 100000;
+    }
+
+    /**
+     * Returns a history with one second at 100000 bytes per second.
+     *
+     * @return The history.
+     */
+    @Override
+    public long[] getSpeedHistory() {
+        return new long[] {100000};
+    }
+
     /**
      * Returns 1.
      *
@@ -159,6 +189,44 @@ public class MockFileTransfer implements FileTransfer {
         return false;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isQueued() {
+        return false;
+    }
+
+    /**
+     * Does nothing.
+     *
+     * @param queued Not used.
+     */
+    @Override
+    public void setQueued(final boolean queued) {
+
+    }
+
+    /**
+     * Returns -1.
+     *
+     * @return -1.
+     */
+    @Override
+    public long getChecksum() {
+        return -1;
+    }
+
+    /**
+     * Returns false.
+     *
+     * @return false.
+     */
+    @Override
+    public boolean isVerified() {
+        return false;
+    }
+
     /**
      * Registers the listener, and starts the thread which simulates the file transfer.
      *
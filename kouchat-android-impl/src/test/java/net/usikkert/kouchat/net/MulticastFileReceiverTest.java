@@ -0,0 +1,267 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of {@link MulticastFileReceiver}, with the test acting as the sender.
+ *
+ * <p>Uses the loopback address instead of a multicast group, so it works without a network.</p>
+ *
+ * @author Christian Ihle
+ */
+public class MulticastFileReceiverTest {
+
+    private static final int CHUNK = MulticastPacket.CHUNK_SIZE;
+
+    /** A full group, and a last group with 3 chunks where the last chunk is 100 bytes. */
+    private static final int SIZE = 10 * CHUNK + 100;
+
+    private File targetFile;
+    private byte[] content;
+    private DatagramSocket sender;
+    private SocketAddress group;
+    private MulticastOffer offer;
+    private MulticastFileReceiver receiver;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws IOException {
+        targetFile = File.createTempFile("kouchat-target", ".bin");
+
+        content = new byte[SIZE];
+        new Random(SIZE).nextBytes(content);
+
+        final DatagramSocket socket = new DatagramSocket();
+        final int groupPort = socket.getLocalPort();
+        socket.close();
+
+        sender = new DatagramSocket();
+        sender.setSoTimeout(5000);
+        group = new InetSocketAddress("127.0.0.1", groupPort);
+        offer = new MulticastOffer(7, "file.bin", SIZE, 0, "127.0.0.1", groupPort, sender.getLocalPort());
+        receiver = new MulticastFileReceiver(offer, "127.0.0.1");
+
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        sender.close();
+        targetFile.delete();
+    }
+
+    @Test
+    public void lostChunksShouldBeRecoveredOrAskedForAgain() throws Exception {
+        final AtomicLong progress = new AtomicLong();
+        final RandomAccessFile file = new RandomAccessFile(targetFile, "rw");
+
+        try {
+            final Future<Boolean> received = receive(file, progress);
+            assertEquals(MulticastPacket.JOIN, receiveAnswer().getType());
+
+            // Chunk 2 can be recovered from the parity, but not both 9 and 10
+            for (int i = 0; i < 11; i++) {
+                if (i != 2 && i != 9 && i != 10) {
+                    sendChunk(i);
+                }
+            }
+
+            sendParity(0, 0, 8);
+            sendParity(1, 8, 11);
+            sender.send(MulticastPacket.create(MulticastPacket.END, 7, 0, group));
+
+            assertArrayEquals(new int[] {9, 10}, receiveNack());
+
+            sendChunk(9);
+            sendChunk(10);
+
+            final MulticastPacket done = receiveAnswer();
+            assertEquals(MulticastPacket.DONE, done.getType());
+            assertEquals(1, done.getIndex());
+
+            assertTrue(received.get(5, TimeUnit.SECONDS));
+            assertEquals(SIZE, progress.get());
+
+            final byte[] actual = new byte[SIZE];
+            file.seek(0);
+            file.readFully(actual);
+            assertArrayEquals(content, actual);
+            assertEquals(checksumOfContent(), receiver.getChecksum());
+        }
+
+        finally {
+            file.close();
+        }
+    }
+
+    @Test
+    public void packetsFromOtherTransfersShouldBeIgnored() throws Exception {
+        final AtomicLong progress = new AtomicLong();
+        final RandomAccessFile file = new RandomAccessFile(targetFile, "rw");
+
+        try {
+            final Future<Boolean> received = receive(file, progress);
+            assertEquals(MulticastPacket.JOIN, receiveAnswer().getType());
+
+            final byte[] buffer = new byte[MulticastPacket.HEADER_SIZE + CHUNK];
+            MulticastPacket.writeHeader(buffer, MulticastPacket.DATA, 8, 0);
+            sender.send(new DatagramPacket(buffer, buffer.length, group));
+
+            for (int i = 0; i < 11; i++) {
+                sendChunk(i);
+            }
+
+            assertTrue(received.get(5, TimeUnit.SECONDS));
+            assertEquals(SIZE, progress.get());
+        }
+
+        finally {
+            file.close();
+        }
+    }
+
+    @Test
+    public void checksumShouldBeCombinedFromChunksArrivingInAnyOrder() throws Exception {
+        final AtomicLong progress = new AtomicLong();
+        final RandomAccessFile file = new RandomAccessFile(targetFile, "rw");
+
+        try {
+            final Future<Boolean> received = receive(file, progress);
+            assertEquals(MulticastPacket.JOIN, receiveAnswer().getType());
+
+            for (int i = 10; i >= 1; i--) {
+                sendChunk(i);
+            }
+
+            // Not known until the first chunk is written
+            Thread.sleep(100);
+            assertEquals(-1, receiver.getChecksum());
+
+            sendChunk(0);
+
+            assertTrue(received.get(5, TimeUnit.SECONDS));
+            assertEquals(checksumOfContent(), receiver.getChecksum());
+        }
+
+        finally {
+            file.close();
+        }
+    }
+
+    private long checksumOfContent() {
+        final CRC32 crc = new CRC32();
+        crc.update(content);
+
+        return crc.getValue();
+    }
+
+    private Future<Boolean> receive(final RandomAccessFile file, final AtomicLong progress) {
+        return executor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws IOException {
+                return receiver.receive(file, new FileCopier.Progress() {
+                    @Override
+                    public boolean isCanceled() {
+                        return false;
+                    }
+
+                    @Override
+                    public void bytesCopied(final long bytes) {
+                        progress.addAndGet(bytes);
+                    }
+                });
+            }
+        });
+    }
+
+    private void sendChunk(final int index) throws IOException {
+        final int length = Math.min(CHUNK, SIZE - index * CHUNK);
+        final byte[] buffer = new byte[MulticastPacket.HEADER_SIZE + length];
+
+        MulticastPacket.writeHeader(buffer, MulticastPacket.DATA, 7, index);
+        System.arraycopy(content, index * CHUNK, buffer, MulticastPacket.HEADER_SIZE, length);
+        sender.send(new DatagramPacket(buffer, buffer.length, group));
+    }
+
+    private void sendParity(final int groupIndex, final int from, final int to) throws IOException {
+        final byte[] parity = new byte[CHUNK];
+
+        for (int i = from; i < to; i++) {
+            ChunkTracker.xor(parity, content, i * CHUNK, Math.min(CHUNK, SIZE - i * CHUNK));
+        }
+
+        final byte[] buffer = new byte[MulticastPacket.HEADER_SIZE + CHUNK];
+        MulticastPacket.writeHeader(buffer, MulticastPacket.PARITY, 7, groupIndex);
+        System.arraycopy(parity, 0, buffer, MulticastPacket.HEADER_SIZE, CHUNK);
+        sender.send(new DatagramPacket(buffer, buffer.length, group));
+    }
+
+    private MulticastPacket receiveAnswer() throws IOException {
+        final DatagramPacket packet = new DatagramPacket(new byte[MulticastPacket.MAX_SIZE], MulticastPacket.MAX_SIZE);
+        sender.receive(packet);
+
+        final MulticastPacket answer = MulticastPacket.read(packet);
+        assertEquals(7, answer.getTransferId());
+
+        return answer;
+    }
+
+    /** Skips nacks sent because the receiver was idle, until the one asking for the last two chunks. */
+    private int[] receiveNack() throws IOException {
+        int[] ranges = null;
+
+        for (int i = 0; i < 5 && !Arrays.equals(new int[] {9, 10}, ranges); i++) {
+            final MulticastPacket answer = receiveAnswer();
+
+            if (answer.getType() == MulticastPacket.NACK) {
+                ranges = answer.readRanges();
+            }
+        }
+
+        return ranges;
+    }
+}
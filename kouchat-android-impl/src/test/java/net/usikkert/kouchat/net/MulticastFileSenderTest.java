@@ -0,0 +1,251 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.BitSet;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import net.usikkert.kouchat.event.FileTransferListener;
+import net.usikkert.kouchat.misc.User;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of {@link MulticastFileSender}, together with {@link FileReceiver} and {@link MulticastFileReceiver}.
+ *
+ * <p>Uses the loopback address instead of a multicast group, so it works without a network.</p>
+ *
+ * @author Christian Ihle
+ */
+public class MulticastFileSenderTest {
+
+    /** 100 chunks, which is 12 full groups and a group of 4 chunks. */
+    private static final int SIZE = 100 * MulticastPacket.CHUNK_SIZE;
+
+    private File sourceFile;
+    private File targetFile;
+    private byte[] content;
+    private int groupPort;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws IOException {
+        sourceFile = File.createTempFile("kouchat-source", ".bin");
+        targetFile = File.createTempFile("kouchat-target", ".bin");
+
+        content = new byte[SIZE];
+        new Random(SIZE).nextBytes(content);
+
+        final FileOutputStream outputStream = new FileOutputStream(sourceFile);
+
+        try {
+            outputStream.write(content);
+        }
+
+        finally {
+            outputStream.close();
+        }
+
+        final DatagramSocket socket = new DatagramSocket();
+        groupPort = socket.getLocalPort();
+        socket.close();
+
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        sourceFile.delete();
+        targetFile.delete();
+    }
+
+    @Test
+    public void offerShouldDescribeTheFile() throws ServerException {
+        final MulticastFileSender sender = new MulticastFileSender(sourceFile, 300);
+        final MulticastOffer offer = sender.start(null);
+        sender.stop();
+
+        final CRC32 crc = new CRC32();
+        crc.update(content);
+
+        assertEquals(300, offer.getTransferId());
+        assertEquals(sourceFile.getName(), offer.getFileName());
+        assertEquals(SIZE, offer.getSize());
+        assertEquals(crc.getValue(), offer.getChecksum());
+        assertEquals("224.168.6.47", offer.getGroupAddress());
+        assertEquals(40856, offer.getGroupPort());
+        assertTrue(offer.getControlPort() > 0);
+    }
+
+    @Test
+    public void fileShouldBeReceivedFromTheGroup() throws Exception {
+        final MulticastFileSender sender = new MulticastFileSender(sourceFile, 42, "127.0.0.1", groupPort);
+        final MulticastOffer offer = sender.start(null);
+
+        final User user = new User("Sender", 1234);
+        user.setIpAddress("127.0.0.1");
+
+        final FileReceiver fileReceiver = new FileReceiver(user, targetFile, SIZE, 1, TransferOptions.NONE);
+        fileReceiver.registerListener(mock(FileTransferListener.class));
+        fileReceiver.prepareMulticast(offer);
+        assertTrue(fileReceiver.isMulticast());
+
+        final Future<Boolean> received = executor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return fileReceiver.transfer();
+            }
+        });
+
+        assertEquals(1, sender.transfer());
+        assertTrue(received.get(10, TimeUnit.SECONDS));
+        assertTrue(fileReceiver.isVerified());
+        assertEquals(100, fileReceiver.getPercent());
+        assertEquals(offer.getChecksum(), fileReceiver.getChecksum());
+        assertArrayEquals(content, readFile(targetFile));
+    }
+
+    @Test
+    public void missingChunksShouldBeSentAgainOnceWithoutParity() throws Exception {
+        final MulticastFileSender sender = new MulticastFileSender(sourceFile, 42, "127.0.0.1", groupPort);
+        final SocketAddress control = new InetSocketAddress("127.0.0.1", sender.start(null).getControlPort());
+        final DatagramSocket receiver = new DatagramSocket(groupPort);
+        receiver.setSoTimeout(5000);
+
+        try {
+            receiver.send(MulticastPacket.create(MulticastPacket.JOIN, 42, 0, control));
+
+            final Future<Integer> completed = executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    return sender.transfer();
+                }
+            });
+
+            final BitSet parity = new BitSet();
+            final BitSet firstRound = receiveRound(receiver, 0, parity);
+            assertEquals(100, firstRound.cardinality());
+            assertEquals(13, parity.cardinality());
+
+            receiver.send(MulticastPacket.createNack(42, 0, new int[] {3, 3, 10, 12}, control));
+            parity.clear();
+            final BitSet secondRound = receiveRound(receiver, 1, parity);
+
+            assertEquals("{3, 10, 11, 12}", secondRound.toString());
+            assertTrue(parity.isEmpty());
+
+            receiver.send(MulticastPacket.create(MulticastPacket.DONE, 42, 1, control));
+
+            assertEquals(Integer.valueOf(1), completed.get(5, TimeUnit.SECONDS));
+            assertEquals(117, sender.getPacketsSent());
+        }
+
+        finally {
+            receiver.close();
+        }
+    }
+
+    @Test
+    public void canceledTransferShouldStopWaitingForReceivers() throws Exception {
+        final MulticastFileSender sender = new MulticastFileSender(sourceFile, 42, "127.0.0.1", groupPort);
+        sender.start(null);
+
+        final Future<Integer> completed = executor.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return sender.transfer();
+            }
+        });
+
+        Thread.sleep(200);
+        sender.cancel();
+
+        assertEquals(Integer.valueOf(0), completed.get(5, TimeUnit.SECONDS));
+        assertTrue(sender.isCanceled());
+        assertEquals(0, sender.getPacketsSent());
+    }
+
+    private BitSet receiveRound(final DatagramSocket receiver, final int round, final BitSet parity) throws IOException {
+        final BitSet chunks = new BitSet();
+        final DatagramPacket packet = new DatagramPacket(new byte[MulticastPacket.MAX_SIZE], MulticastPacket.MAX_SIZE);
+
+        while (true) {
+            receiver.receive(packet);
+            final MulticastPacket chunk = MulticastPacket.read(packet);
+            assertEquals(42, chunk.getTransferId());
+
+            if (chunk.getType() == MulticastPacket.DATA) {
+                assertFalse(chunks.get(chunk.getIndex()));
+                chunks.set(chunk.getIndex());
+            }
+
+            else if (chunk.getType() == MulticastPacket.PARITY) {
+                parity.set(chunk.getIndex());
+            }
+
+            else if (chunk.getType() == MulticastPacket.END) {
+                assertEquals(round, chunk.getIndex());
+                return chunks;
+            }
+        }
+    }
+
+    private byte[] readFile(final File file) throws IOException {
+        final byte[] bytes = new byte[(int) file.length()];
+        final FileInputStream inputStream = new FileInputStream(file);
+
+        try {
+            int read = 0;
+
+            while (read < bytes.length) {
+                read += inputStream.read(bytes, read, bytes.length - read);
+            }
+        }
+
+        finally {
+            inputStream.close();
+        }
+
+        return bytes;
+    }
+}
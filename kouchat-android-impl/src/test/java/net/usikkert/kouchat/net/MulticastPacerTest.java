@@ -0,0 +1,140 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Test of {@link MulticastPacer}.
+ *
+ * @author Christian Ihle
+ */
+public class MulticastPacerTest {
+
+    @Test
+    public void packetsShouldBePacedToTheRate() {
+        final FakeTimePacer pacer = new FakeTimePacer(1000);
+
+        pacer.pace(100);
+        pacer.pace(100);
+        pacer.pace(100);
+
+        // 300 bytes at 1000 bytes/s, minus the small burst allowed at the start
+        assertTrue(pacer.now >= 280000000L);
+        assertTrue(pacer.now <= 300000000L);
+    }
+
+    @Test
+    public void unlimitedRateShouldNeverSleep() {
+        final FakeTimePacer pacer = new FakeTimePacer(0);
+
+        for (int i = 0; i < 1000; i++) {
+            pacer.pace(1400);
+        }
+
+        assertEquals(0, pacer.now);
+        assertEquals(0, pacer.getRate());
+    }
+
+    @Test
+    public void rateShouldBeHalvedWhenManyChunksAreLost() {
+        final MulticastPacer pacer = new MulticastPacer(1024 * 1024);
+
+        pacer.roundDone(1000, 100);
+        assertEquals(512 * 1024, pacer.getRate());
+
+        pacer.roundDone(100, 100);
+        assertEquals(256 * 1024, pacer.getRate());
+    }
+
+    @Test
+    public void rateShouldNeverGoBelowTheMinRate() {
+        final MulticastPacer pacer = new MulticastPacer(1024 * 1024);
+
+        for (int i = 0; i < 20; i++) {
+            pacer.roundDone(100, 50);
+        }
+
+        assertEquals(MulticastPacer.MIN_RATE, pacer.getRate());
+    }
+
+    @Test
+    public void rateShouldIncreaseUpToTheMaxWhenAlmostNothingIsLost() {
+        final MulticastPacer pacer = new MulticastPacer(800 * 1024);
+
+        pacer.roundDone(100, 100);
+        assertEquals(400 * 1024, pacer.getRate());
+
+        pacer.roundDone(1000, 5);
+        assertEquals(500 * 1024, pacer.getRate());
+
+        for (int i = 0; i < 10; i++) {
+            pacer.roundDone(1000, 0);
+        }
+
+        assertEquals(800 * 1024, pacer.getRate());
+    }
+
+    @Test
+    public void rateShouldNotChangeWithModerateLoss() {
+        final MulticastPacer pacer = new MulticastPacer(800 * 1024);
+
+        pacer.roundDone(100, 100);
+        pacer.roundDone(1000, 30);
+
+        assertEquals(400 * 1024, pacer.getRate());
+    }
+
+    @Test
+    public void roundsWithoutChunksShouldNotChangeTheRate() {
+        final MulticastPacer pacer = new MulticastPacer(800 * 1024);
+
+        pacer.roundDone(0, 10);
+
+        assertEquals(800 * 1024, pacer.getRate());
+    }
+
+    /**
+     * A pacer where time only passes when sleeping.
+     */
+    private static class FakeTimePacer extends MulticastPacer {
+
+        private long now;
+
+        FakeTimePacer(final long maxRate) {
+            super(maxRate);
+        }
+
+        @Override
+        long nanoTime() {
+            return now;
+        }
+
+        @Override
+        void sleep(final long millis) {
+            now += millis * 1000000L;
+        }
+    }
+}
@@ -0,0 +1,269 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.usikkert.kouchat.event.FileTransferListener;
+import net.usikkert.kouchat.misc.User;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of {@link NetworkEventLoop}.
+ *
+ * @author Christian Ihle
+ */
+public class NetworkEventLoopTest {
+
+    private NetworkEventLoop eventLoop;
+
+    @Before
+    public void setUp() throws IOException {
+        eventLoop = new NetworkEventLoop();
+        eventLoop.start();
+    }
+
+    @After
+    public void tearDown() {
+        eventLoop.stop();
+    }
+
+    @Test
+    public void executeShouldRunTaskOnEventLoopThread() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicReference<String> threadName = new AtomicReference<String>();
+
+        eventLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                threadName.set(Thread.currentThread().getName());
+                latch.countDown();
+            }
+        });
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals("NetworkEventLoop", threadName.get());
+    }
+
+    @Test
+    public void scheduleShouldRunTaskAfterDelay() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final long start = System.nanoTime();
+
+        eventLoop.schedule(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        }, 100);
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 100);
+    }
+
+    @Test
+    public void canceledTimeoutShouldNotRun() throws InterruptedException {
+        final CountDownLatch canceled = new CountDownLatch(1);
+        final CountDownLatch later = new CountDownLatch(1);
+
+        final NetworkEventLoop.Timeout timeout = eventLoop.schedule(new Runnable() {
+            @Override
+            public void run() {
+                canceled.countDown();
+            }
+        }, 50);
+
+        timeout.cancel();
+
+        eventLoop.schedule(new Runnable() {
+            @Override
+            public void run() {
+                later.countDown();
+            }
+        }, 100);
+
+        assertTrue(later.await(5, TimeUnit.SECONDS));
+        assertEquals(1, canceled.getCount());
+        assertTrue(timeout.isCanceled());
+    }
+
+    @Test
+    public void registeredChannelShouldBeNotifiedWhenReadable() throws Exception {
+        final DatagramChannel receiver = DatagramChannel.open();
+        receiver.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicReference<String> message = new AtomicReference<String>();
+
+        eventLoop.register(receiver, SelectionKey.OP_READ, new NetworkEventLoop.ChannelHandler() {
+            @Override
+            public void channelReady(final SelectionKey key) throws IOException {
+                final ByteBuffer buffer = ByteBuffer.allocate(100);
+                ((DatagramChannel) key.channel()).receive(buffer);
+                message.set(new String(buffer.array(), 0, buffer.position(), "UTF-8"));
+                latch.countDown();
+            }
+        });
+
+        final DatagramChannel sender = DatagramChannel.open();
+        sender.send(ByteBuffer.wrap("Hello".getBytes("UTF-8")), receiver.socket().getLocalSocketAddress());
+
+        try {
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+            assertEquals("Hello", message.get());
+            assertFalse(receiver.isBlocking());
+        }
+
+        finally {
+            sender.close();
+            receiver.close();
+        }
+    }
+
+    @Test
+    public void releasedChannelShouldBeChangeableToBlockingMode() throws Exception {
+        final DatagramChannel receiver = DatagramChannel.open();
+        receiver.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicReference<Exception> error = new AtomicReference<Exception>();
+
+        eventLoop.register(receiver, SelectionKey.OP_READ, new NetworkEventLoop.ChannelHandler() {
+            @Override
+            public void channelReady(final SelectionKey key) throws IOException {
+                eventLoop.release(key, new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            receiver.configureBlocking(true);
+                        }
+
+                        catch (final Exception e) {
+                            error.set(e);
+                        }
+
+                        latch.countDown();
+                    }
+                });
+            }
+        });
+
+        final DatagramChannel sender = DatagramChannel.open();
+        sender.send(ByteBuffer.wrap("Hello".getBytes("UTF-8")), receiver.socket().getLocalSocketAddress());
+
+        try {
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+            assertNull(error.get());
+            assertTrue(receiver.isBlocking());
+            assertFalse(receiver.isRegistered());
+        }
+
+        finally {
+            sender.close();
+            receiver.close();
+        }
+    }
+
+    @Test
+    public void eventLoopShouldRunTasksAfterRestart() throws Exception {
+        eventLoop.stop();
+        assertFalse(eventLoop.isRunning());
+
+        eventLoop.start();
+        assertTrue(eventLoop.isRunning());
+
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        eventLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        });
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void fileReceiverShouldAcceptConnectionWithEventLoop() throws Exception {
+        final File file = File.createTempFile("kouchat", ".txt");
+        file.deleteOnExit();
+
+        final byte[] content = "This is the content of the file".getBytes("UTF-8");
+        final FileReceiver fileReceiver =
+                new FileReceiver(new User("Test", 1234), file, content.length, 1, TransferOptions.NONE);
+        fileReceiver.setEventLoop(eventLoop);
+        fileReceiver.registerListener(mock(FileTransferListener.class));
+
+        final int port = fileReceiver.startServer();
+
+        final Thread senderThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    final Socket socket = new Socket("127.0.0.1", port);
+                    final OutputStream outputStream = socket.getOutputStream();
+                    outputStream.write(content);
+                    outputStream.flush();
+                    socket.close();
+                }
+
+                catch (final IOException e) {
+                    fail(e.toString());
+                }
+            }
+        };
+
+        senderThread.start();
+
+        assertTrue(fileReceiver.transfer());
+        senderThread.join(5000);
+
+        final byte[] received = new byte[content.length];
+        final FileInputStream inputStream = new FileInputStream(file);
+
+        try {
+            assertEquals(content.length, inputStream.read(received));
+            assertArrayEquals(content, received);
+        }
+
+        finally {
+            inputStream.close();
+        }
+    }
+}
@@ -25,7 +25,9 @@ package net.usikkert.kouchat.net;
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 
+import net.usikkert.kouchat.event.ReceiverListener;
 import net.usikkert.kouchat.misc.Settings;
+import net.usikkert.kouchat.misc.User;
 import net.usikkert.kouchat.util.TestUtils;
 
 import org.junit.Before;
@@ -43,6 +45,7 @@ public class NetworkServiceTest {
     @Before
     public void setUp() {
         settings = mock(Settings.class);
+        when(settings.getMe()).thenReturn(new User("TestUser", 123));
     }
 
     @Test
@@ -65,6 +68,107 @@ public class NetworkServiceTest {
         assertNull(TestUtils.getFieldValue(networkService, UDPSender.class, "udpSender"));
     }
 
+    @Test
+    public void networkServiceShouldUseSocketReceiversByDefault() {
+        final NetworkService networkService = new NetworkService(settings);
+
+        assertEquals(MessageReceiver.class,
+                TestUtils.getFieldValue(networkService, MulticastReceiver.class, "messageReceiver").getClass());
+        assertEquals(UDPReceiver.class,
+                TestUtils.getFieldValue(networkService, UnicastReceiver.class, "udpReceiver").getClass());
+    }
+
+    @Test
+    public void networkServiceShouldUseChannelReceiversWithEventLoopWhenEnabled() {
+        when(settings.isNetworkEventLoop()).thenReturn(true);
+
+        final NetworkService networkService = new NetworkService(settings);
+        final NetworkEventLoop eventLoop = networkService.getEventLoop();
+
+        assertNotNull(eventLoop);
+        assertFalse(eventLoop.isRunning());
+        assertSame(eventLoop, TestUtils.getFieldValue(
+                TestUtils.getFieldValue(networkService, MulticastReceiver.class, "messageReceiver"),
+                NetworkEventLoop.class, "eventLoop"));
+        assertSame(eventLoop, TestUtils.getFieldValue(
+                TestUtils.getFieldValue(networkService, UnicastReceiver.class, "udpReceiver"),
+                NetworkEventLoop.class, "eventLoop"));
+    }
+
+    @Test
+    public void receiveQueuesShouldBeDisabledByDefault() {
+        final NetworkService networkService = new NetworkService(settings);
+
+        networkService.registerMessageReceiverListener(mock(ReceiverListener.class));
+        networkService.registerUDPReceiverListener(mock(ReceiverListener.class));
+
+        assertNull(networkService.getMessageQueue());
+        assertNull(networkService.getUDPQueue());
+    }
+
+    @Test
+    public void receiveQueuesShouldBeCreatedWhenReceiveQueueSizeIsSet() {
+        when(settings.getReceiveQueueSize()).thenReturn(16);
+        when(settings.getReceiveQueueOverflow()).thenReturn("block");
+
+        final NetworkService networkService = new NetworkService(settings);
+
+        networkService.registerMessageReceiverListener(mock(ReceiverListener.class));
+        networkService.registerUDPReceiverListener(mock(ReceiverListener.class));
+
+        assertEquals(16, networkService.getMessageQueue().getCapacity());
+        assertEquals(16, networkService.getUDPQueue().getCapacity());
+
+        final MulticastReceiver messageReceiver =
+                TestUtils.getFieldValue(networkService, MulticastReceiver.class, "messageReceiver");
+        assertSame(networkService.getMessageQueue(),
+                TestUtils.getFieldValue(messageReceiver, ReceiverListener.class, "listener"));
+    }
+
+    @Test
+    public void floodFiltersShouldBeDisabledByDefault() {
+        final NetworkService networkService = new NetworkService(settings);
+
+        networkService.registerMessageReceiverListener(mock(ReceiverListener.class));
+        networkService.registerUDPReceiverListener(mock(ReceiverListener.class));
+
+        assertNull(networkService.getMessageFloodFilter());
+        assertNull(networkService.getUDPFloodFilter());
+    }
+
+    @Test
+    public void floodFiltersShouldBeInFrontOfTheReceiveQueuesWhenEnabled() {
+        when(settings.isFloodProtection()).thenReturn(true);
+        when(settings.getReceiveQueueSize()).thenReturn(16);
+
+        final NetworkService networkService = new NetworkService(settings);
+
+        networkService.registerMessageReceiverListener(mock(ReceiverListener.class));
+        networkService.registerUDPReceiverListener(mock(ReceiverListener.class));
+
+        final FloodFilter messageFloodFilter = networkService.getMessageFloodFilter();
+        assertNotNull(messageFloodFilter);
+        assertNotNull(networkService.getUDPFloodFilter());
+
+        final MulticastReceiver messageReceiver =
+                TestUtils.getFieldValue(networkService, MulticastReceiver.class, "messageReceiver");
+        assertSame(messageFloodFilter, TestUtils.getFieldValue(messageReceiver, ReceiverListener.class, "listener"));
+        assertSame(networkService.getMessageQueue(),
+                TestUtils.getFieldValue(messageFloodFilter, ReceiverListener.class, "listener"));
+    }
+
+    @Test
+    public void networkServiceShouldUseChannelReceiversWhenNioNetworkEnabled() {
+        when(settings.isNioNetwork()).thenReturn(true);
+
+        final NetworkService networkService = new NetworkService(settings);
+
+        assertEquals(NioMessageReceiver.class,
+                TestUtils.getFieldValue(networkService, MulticastReceiver.class, "messageReceiver").getClass());
+        assertEquals(NioUDPReceiver.class,
+                TestUtils.getFieldValue(networkService, UnicastReceiver.class, "udpReceiver").getClass());
+    }
+
     @Test
     public void registerUDPReceiverListenerShouldNotFailWhenPrivateChatDisabled() {
         when(settings.isNoPrivateChat()).thenReturn(true);
@@ -0,0 +1,196 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.Random;
+
+import net.usikkert.kouchat.event.FileTransferListener;
+import net.usikkert.kouchat.misc.User;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of {@link ParallelTransfer}.
+ *
+ * @author Christian Ihle
+ */
+public class ParallelTransferTest {
+
+    private byte[] content;
+    private File sourceFile;
+    private File targetFile;
+    private User user;
+
+    @Before
+    public void setUp() throws IOException {
+        content = new byte[(int) ParallelTransfer.MIN_FILE_SIZE + 12345];
+        new Random(1).nextBytes(content);
+
+        sourceFile = File.createTempFile("kouchat", ".bin");
+        sourceFile.deleteOnExit();
+        targetFile = File.createTempFile("kouchat", ".bin");
+        targetFile.deleteOnExit();
+
+        final FileOutputStream outputStream = new FileOutputStream(sourceFile);
+
+        try {
+            outputStream.write(content);
+        }
+
+        finally {
+            outputStream.close();
+        }
+
+        user = new User("Test", 1234);
+        user.setIpAddress("127.0.0.1");
+        user.setCapabilities(EnumSet.of(Capability.RESUME, Capability.PARALLEL));
+    }
+
+    @After
+    public void tearDown() {
+        sourceFile.delete();
+        targetFile.delete();
+    }
+
+    @Test
+    public void chunkCountShouldIncludeTheLastPartialChunk() {
+        assertEquals(0, ParallelTransfer.getChunkCount(0));
+        assertEquals(1, ParallelTransfer.getChunkCount(1));
+        assertEquals(1, ParallelTransfer.getChunkCount(ParallelTransfer.CHUNK_SIZE));
+        assertEquals(2, ParallelTransfer.getChunkCount(ParallelTransfer.CHUNK_SIZE + 1));
+    }
+
+    @Test
+    public void fileShouldBeTransferredOverSeveralConnections() throws Exception {
+        final FileReceiver fileReceiver = createReceiver(content.length, 4);
+        assertEquals(4, fileReceiver.prepareStreams());
+
+        assertTrue(transferFile(fileReceiver, 4));
+        assertArrayEquals(content, readFile(targetFile));
+    }
+
+    @Test
+    public void chunkChecksumsShouldBeVerifiedOverSeveralConnections() throws Exception {
+        user.setCapabilities(EnumSet.of(Capability.RESUME, Capability.PARALLEL, Capability.CHECKSUM));
+        final FileReceiver fileReceiver = createReceiver(content.length, 4);
+        assertEquals(4, fileReceiver.prepareStreams());
+
+        assertTrue(transferFile(fileReceiver, 4));
+        assertArrayEquals(content, readFile(targetFile));
+        assertTrue(fileReceiver.isVerified());
+        assertTrue(fileReceiver.getChecksum() != -1);
+    }
+
+    @Test
+    public void streamsShouldBeLimitedToTheMax() {
+        final FileReceiver fileReceiver = createReceiver(content.length, 100);
+
+        assertEquals(ParallelTransfer.MAX_STREAMS, fileReceiver.prepareStreams());
+    }
+
+    @Test
+    public void oneStreamShouldBeUsedWhenTheSenderDoesNotSupportParallelTransfers() {
+        user.setCapabilities(EnumSet.of(Capability.RESUME));
+        final FileReceiver fileReceiver = createReceiver(content.length, 4);
+
+        assertEquals(1, fileReceiver.prepareStreams());
+    }
+
+    @Test
+    public void oneStreamShouldBeUsedForSmallFiles() {
+        final FileReceiver fileReceiver = createReceiver(ParallelTransfer.MIN_FILE_SIZE - 1, 4);
+
+        assertEquals(1, fileReceiver.prepareStreams());
+    }
+
+    @Test
+    public void oneStreamShouldBeUsedWithoutChannelTransfers() {
+        final FileReceiver fileReceiver = createReceiver(content.length, 4);
+        fileReceiver.setChannelTransfers(false);
+
+        assertEquals(1, fileReceiver.prepareStreams());
+    }
+
+    private FileReceiver createReceiver(final long size, final int maxStreams) {
+        return new FileReceiver(user, targetFile, size, 1, new TransferOptions(0, maxStreams, 0, false));
+    }
+
+    private boolean transferFile(final FileReceiver fileReceiver, final int streams) throws Exception {
+        fileReceiver.registerListener(mock(FileTransferListener.class));
+        final FileSender fileSender = new FileSender(user, sourceFile, 2, true);
+        fileSender.registerListener(mock(FileTransferListener.class));
+
+        final boolean checksum = fileReceiver.prepareChecksum();
+        final int port = fileReceiver.startServer();
+
+        final Thread senderThread = new Thread() {
+            @Override
+            public void run() {
+                fileSender.transfer(port, new TransferOptions(0, streams, 0, checksum));
+            }
+        };
+
+        senderThread.start();
+
+        final boolean received = fileReceiver.transfer();
+        senderThread.join(5000);
+
+        assertTrue(fileSender.isTransferred());
+        assertEquals(content.length, fileSender.getTransferred());
+        assertEquals(content.length, fileReceiver.getTransferred());
+        assertEquals(100, fileReceiver.getPercent());
+        assertEquals(fileReceiver.getChecksum(), fileSender.getChecksum());
+        assertEquals(fileReceiver.isVerified(), fileSender.isVerified());
+
+        return received;
+    }
+
+    private byte[] readFile(final File file) throws IOException {
+        final byte[] bytes = new byte[(int) file.length()];
+        final FileInputStream inputStream = new FileInputStream(file);
+
+        try {
+            int position = 0;
+
+            while (position < bytes.length) {
+                position += inputStream.read(bytes, position, bytes.length - position);
+            }
+        }
+
+        finally {
+            inputStream.close();
+        }
+
+        return bytes;
+    }
+}
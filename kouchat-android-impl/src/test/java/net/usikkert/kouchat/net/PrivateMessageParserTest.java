@@ -0,0 +1,130 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.mockito.Mockito.*;
+
+import net.usikkert.kouchat.misc.Settings;
+import net.usikkert.kouchat.misc.User;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of {@link PrivateMessageParser}.
+ *
+ * @author Christian Ihle
+ */
+public class PrivateMessageParserTest {
+
+    private PrivateMessageParser parser;
+    private PrivateMessageResponder responder;
+
+    @Before
+    public void setUp() {
+        responder = mock(PrivateMessageResponder.class);
+
+        final Settings settings = mock(Settings.class);
+        when(settings.getMe()).thenReturn(new User("Me", 1000));
+
+        parser = new PrivateMessageParser(responder, settings);
+    }
+
+    @Test
+    public void privateMessageToMeShouldBeParsed() {
+        parser.messageArrived("2000!PRIVMSG#Other:(1000)[-16777216]Hello (there)", "192.168.1.2");
+
+        verify(responder).messageArrived(2000, "Hello (there)", -16777216);
+    }
+
+    @Test
+    public void privateMessageToSomeoneElseShouldBeIgnored() {
+        parser.messageArrived("2000!PRIVMSG#Other:(3000)[-16777216]Hello", "192.168.1.2");
+
+        verifyZeroInteractions(responder);
+    }
+
+    @Test
+    public void privateMessageFromMeShouldBeIgnored() {
+        parser.messageArrived("1000!PRIVMSG#Me:(1000)[-16777216]Hello", "192.168.1.1");
+
+        verifyZeroInteractions(responder);
+    }
+
+    @Test
+    public void fragmentedPrivateMessageToMeShouldBeParsedWhenComplete() {
+        parser.messageArrived("2000!FRAGMENT#Other:{7}[0/2]2000!PRIVMSG#Other:(1000)[-16777216]Hello ", "192.168.1.2");
+        verifyZeroInteractions(responder);
+
+        parser.messageArrived("2000!FRAGMENT#Other:{7}[1/2](there)", "192.168.1.2");
+
+        verify(responder).messageArrived(2000, "Hello (there)", -16777216);
+    }
+
+    @Test
+    public void fileDataToMeShouldBeParsed() {
+        parser.messageArrived("2000!SENDFILEDATA#Other:(1000)[4294967295]<Zm9vYmFy>some <file>.txt", "192.168.1.2");
+
+        verify(responder).fileDataArrived(2000, "some <file>.txt", "foobar".getBytes(), 4294967295L);
+    }
+
+    @Test
+    public void fileDataToSomeoneElseShouldBeIgnored() {
+        parser.messageArrived("2000!SENDFILEDATA#Other:(3000)[1]<Zm9vYmFy>file.txt", "192.168.1.2");
+
+        verifyZeroInteractions(responder);
+    }
+
+    @Test
+    public void fileDataWithInvalidContentShouldBeIgnored() {
+        parser.messageArrived("2000!SENDFILEDATA#Other:(1000)[1]<Zm9vYmF>file.txt", "192.168.1.2");
+        parser.messageArrived("2000!SENDFILEDATA#Other:(1000)[1]<Zm9v*mFy>file.txt", "192.168.1.2");
+        parser.messageArrived("2000!SENDFILEDATA#Other:(1000)[1]Zm9vYmFy", "192.168.1.2");
+
+        verifyZeroInteractions(responder);
+    }
+
+    @Test
+    public void fileDataAckToMeShouldBeParsed() {
+        parser.messageArrived("2000!SENDFILEDATAACK#Other:(1000)[1]{12345}some {file}.txt", "192.168.1.2");
+        parser.messageArrived("2000!SENDFILEDATAACK#Other:(1000)[0]{12345}file.txt", "192.168.1.2");
+
+        verify(responder).fileDataAcknowledged(2000, "some {file}.txt", 12345, true);
+        verify(responder).fileDataAcknowledged(2000, "file.txt", 12345, false);
+    }
+
+    @Test
+    public void fileDataAckToSomeoneElseShouldBeIgnored() {
+        parser.messageArrived("2000!SENDFILEDATAACK#Other:(3000)[1]{12345}file.txt", "192.168.1.2");
+
+        verifyZeroInteractions(responder);
+    }
+
+    @Test
+    public void badlyFormattedMessagesShouldBeIgnored() {
+        parser.messageArrived("2000!PRIVMSG#Other:[0]Hello", "192.168.1.2");
+        parser.messageArrived("2000!PRIVMSG#Other:(1000)[red]Hello", "192.168.1.2");
+
+        verifyZeroInteractions(responder);
+    }
+}
@@ -0,0 +1,289 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import net.usikkert.kouchat.event.ByteReceiverListener;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of {@link ReceiverDispatchQueue}.
+ *
+ * @author Christian Ihle
+ */
+public class ReceiverDispatchQueueTest {
+
+    private static final String MSG = "1000!MSG#Nick:[0]Hello";
+    private static final String IDLE = "1000!IDLE#Nick:";
+    private static final String WRITING = "1000!WRITING#Nick:";
+
+    private BlockingListener listener;
+    private ReceiverDispatchQueue queue;
+
+    @Before
+    public void setUp() {
+        listener = new BlockingListener();
+    }
+
+    @After
+    public void tearDown() {
+        listener.release();
+
+        if (queue != null) {
+            queue.stop();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructorShouldValidateCapacity() {
+        new ReceiverDispatchQueue(listener, 0, ReceiverDispatchQueue.OverflowPolicy.DROP_OLDEST, "Test");
+    }
+
+    @Test
+    public void fromNameShouldIgnoreCaseAndDefaultToDropOldest() {
+        assertEquals(ReceiverDispatchQueue.OverflowPolicy.BLOCK, ReceiverDispatchQueue.OverflowPolicy.fromName("block"));
+        assertEquals(ReceiverDispatchQueue.OverflowPolicy.DROP_NEWEST,
+                ReceiverDispatchQueue.OverflowPolicy.fromName("Drop_Newest"));
+        assertEquals(ReceiverDispatchQueue.OverflowPolicy.DROP_OLDEST, ReceiverDispatchQueue.OverflowPolicy.fromName(null));
+        assertEquals(ReceiverDispatchQueue.OverflowPolicy.DROP_OLDEST, ReceiverDispatchQueue.OverflowPolicy.fromName("x"));
+    }
+
+    @Test
+    public void messagesShouldBeDispatchedDirectlyWhenNotStarted() {
+        listener.release();
+        queue = createQueue(2, ReceiverDispatchQueue.OverflowPolicy.DROP_OLDEST);
+
+        queue.messageArrived(MSG, "10.0.0.1");
+
+        assertEquals(Collections.singletonList(MSG + "@10.0.0.1"), listener.getMessages());
+        assertEquals(0, queue.getMaxQueueSize());
+    }
+
+    @Test
+    public void messagesShouldBeDispatchedInOrderOnTheDispatchThread() throws InterruptedException {
+        listener.release();
+        queue = createQueue(4, ReceiverDispatchQueue.OverflowPolicy.DROP_OLDEST);
+        queue.start();
+
+        for (int i = 0; i < 20; i++) {
+            queue.messageArrived("1000!MSG#Nick:[0]" + i, "10.0.0.1");
+        }
+
+        listener.awaitMessages(20);
+
+        for (int i = 0; i < 20; i++) {
+            assertEquals("1000!MSG#Nick:[0]" + i + "@10.0.0.1", listener.getMessages().get(i));
+        }
+
+        assertEquals("TestDispatchWorker", listener.getThreadName());
+        assertEquals(0, queue.getDroppedMessages());
+    }
+
+    @Test
+    public void dropOldestShouldDropOldestIdleMessageAndKeepChatMessages() throws InterruptedException {
+        queue = createQueue(3, ReceiverDispatchQueue.OverflowPolicy.DROP_OLDEST);
+        queue.start();
+        fillBehindBlockedMessage(MSG + "0", IDLE, MSG + "1");
+
+        // Full, so the IDLE is dropped to make room
+        queue.messageArrived(MSG + "2", "10.0.0.1");
+        assertEquals(1, queue.getDroppedMessages());
+
+        // Full again, and nothing else to drop, so the new WRITING is dropped
+        queue.messageArrived(WRITING, "10.0.0.1");
+
+        assertEquals(2, queue.getDroppedMessages());
+        assertEquals(3, queue.getQueueSize());
+        assertEquals(3, queue.getMaxQueueSize());
+
+        listener.release();
+        listener.awaitMessages(4);
+
+        assertEquals(messages("start", MSG + "0", MSG + "1", MSG + "2"), listener.getMessages());
+    }
+
+    @Test
+    public void dropNewestShouldDropNewIdleMessage() throws InterruptedException {
+        queue = createQueue(2, ReceiverDispatchQueue.OverflowPolicy.DROP_NEWEST);
+        queue.start();
+        fillBehindBlockedMessage(WRITING, MSG + "0");
+
+        queue.messageArrived(IDLE, "10.0.0.1");
+        assertEquals(1, queue.getDroppedMessages());
+
+        // Chat messages are never dropped, so the old WRITING has to go
+        queue.messageArrived(MSG + "1", "10.0.0.1");
+        assertEquals(2, queue.getDroppedMessages());
+
+        listener.release();
+        listener.awaitMessages(3);
+
+        assertEquals(messages("start", MSG + "0", MSG + "1"), listener.getMessages());
+    }
+
+    @Test
+    public void fullQueueWithoutDroppableMessagesShouldBlockUntilThereIsRoom() throws InterruptedException {
+        queue = createQueue(1, ReceiverDispatchQueue.OverflowPolicy.DROP_OLDEST);
+        queue.start();
+        fillBehindBlockedMessage(MSG + "0");
+
+        final Thread receiver = new Thread() {
+            @Override
+            public void run() {
+                queue.messageArrived(MSG + "1", "10.0.0.1");
+            }
+        };
+
+        receiver.start();
+        receiver.join(200);
+
+        assertTrue(receiver.isAlive());
+
+        listener.release();
+        receiver.join(5000);
+        listener.awaitMessages(3);
+
+        assertFalse(receiver.isAlive());
+        assertEquals(0, queue.getDroppedMessages());
+        assertTrue(queue.getBlockedMessages() > 0);
+        assertEquals(messages("start", MSG + "0", MSG + "1"), listener.getMessages());
+    }
+
+    @Test
+    public void stopShouldDispatchQueuedMessagesBeforeStopping() throws InterruptedException {
+        queue = createQueue(3, ReceiverDispatchQueue.OverflowPolicy.DROP_OLDEST);
+        queue.start();
+        fillBehindBlockedMessage(MSG + "0", MSG + "1");
+
+        queue.stop();
+        listener.release();
+        listener.awaitMessages(3);
+
+        assertEquals(messages("start", MSG + "0", MSG + "1"), listener.getMessages());
+    }
+
+    private ReceiverDispatchQueue createQueue(final int capacity, final ReceiverDispatchQueue.OverflowPolicy policy) {
+        return new ReceiverDispatchQueue(listener, capacity, policy, "TestDispatchWorker");
+    }
+
+    /**
+     * Sends a first message that blocks the dispatch thread in the listener, and then the given messages,
+     * which will wait in the queue.
+     */
+    private void fillBehindBlockedMessage(final String... queuedMessages) throws InterruptedException {
+        queue.messageArrived(MSG + "start", "10.0.0.1");
+        assertTrue(listener.awaitBlocked());
+
+        for (final String message : queuedMessages) {
+            queue.messageArrived(ByteBuffer.wrap(message.getBytes(MessageTokenizer.CHARSET)), "10.0.0.1");
+        }
+    }
+
+    private List<String> messages(final String... messages) {
+        final List<String> expected = new ArrayList<String>();
+
+        for (final String message : messages) {
+            if (message.equals("start")) {
+                expected.add(MSG + "start@10.0.0.1");
+            }
+
+            else {
+                expected.add(message + "@10.0.0.1");
+            }
+        }
+
+        return expected;
+    }
+
+    /**
+     * Listener that blocks the dispatch thread until released.
+     */
+    private static class BlockingListener implements ByteReceiverListener {
+
+        private final List<String> messages = Collections.synchronizedList(new ArrayList<String>());
+        private final CountDownLatch blocked = new CountDownLatch(1);
+        private final CountDownLatch released = new CountDownLatch(1);
+
+        private volatile String threadName;
+
+        @Override
+        public void messageArrived(final ByteBuffer message, final String ipAddress) {
+            final byte[] bytes = new byte[message.remaining()];
+            message.get(bytes);
+            messages.add(new String(bytes, MessageTokenizer.CHARSET) + "@" + ipAddress);
+            threadName = Thread.currentThread().getName();
+
+            blocked.countDown();
+
+            try {
+                released.await(5, TimeUnit.SECONDS);
+            }
+
+            catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void messageArrived(final String message, final String ipAddress) {
+            throw new UnsupportedOperationException();
+        }
+
+        public boolean awaitBlocked() throws InterruptedException {
+            return blocked.await(5, TimeUnit.SECONDS);
+        }
+
+        public void release() {
+            released.countDown();
+        }
+
+        public void awaitMessages(final int count) throws InterruptedException {
+            final long end = System.currentTimeMillis() + 5000;
+
+            while (messages.size() < count && System.currentTimeMillis() < end) {
+                Thread.sleep(10);
+            }
+        }
+
+        public List<String> getMessages() {
+            synchronized (messages) {
+                return new ArrayList<String>(messages);
+            }
+        }
+
+        public String getThreadName() {
+            return threadName;
+        }
+    }
+}
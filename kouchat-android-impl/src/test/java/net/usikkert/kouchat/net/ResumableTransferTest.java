@@ -0,0 +1,194 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of {@link ResumableTransfer}.
+ *
+ * @author Christian Ihle
+ */
+public class ResumableTransferTest {
+
+    private static final int SIZE = 10000;
+
+    private File file;
+    private File journalFile;
+    private byte[] content;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("kouchat", ".bin");
+        file.deleteOnExit();
+        journalFile = new File(file.getPath() + TransferJournal.SUFFIX);
+
+        content = new byte[SIZE];
+
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+
+        final FileOutputStream outputStream = new FileOutputStream(file);
+
+        try {
+            outputStream.write(content, 0, 5000);
+        }
+
+        finally {
+            outputStream.close();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        journalFile.delete();
+        file.delete();
+    }
+
+    @Test
+    public void offsetShouldBeFoundFromTheJournalOfAnEarlierAttempt() {
+        new TransferJournal(file, "file.bin", 123, SIZE).save(4000, checksumOf(4000));
+
+        final ResumableTransfer resume = createResume();
+
+        assertTrue(resume.matches());
+        assertEquals(4000, resume.findOffset(true));
+        assertEquals(4000, resume.getOffset());
+    }
+
+    @Test
+    public void offsetShouldBeZeroWhenTheSenderDoesNotSupportResume() {
+        new TransferJournal(file, "file.bin", 123, SIZE).save(4000, checksumOf(4000));
+
+        final ResumableTransfer resume = createResume();
+
+        assertEquals(0, resume.findOffset(false));
+        assertEquals(0, resume.getOffset());
+    }
+
+    @Test
+    public void journalShouldBeKeptWhenTheSenderDoesNotSupportResume() {
+        final ResumableTransfer resume = createResume();
+        assertEquals(0, resume.findOffset(false));
+
+        resume.started();
+        assertTrue(journalFile.exists());
+        assertFalse(createResume().matches());
+
+        resume.getChecksumToUpdate(null).update(content, 0, 3000);
+        resume.finished(false, 3000);
+
+        assertTrue(createResume().matches());
+        assertEquals(3000, createResume().findOffset(true));
+    }
+
+    @Test
+    public void checksumShouldContinueFromTheOffset() {
+        new TransferJournal(file, "file.bin", 123, SIZE).save(4000, checksumOf(4000));
+
+        final ResumableTransfer resume = createResume();
+        assertEquals(4000, resume.findOffset(true));
+
+        resume.getChecksumToUpdate(null).update(content, 4000, 1000);
+        resume.finished(false, 5000);
+
+        assertEquals(5000, createResume().findOffset(true));
+    }
+
+    @Test
+    public void checksumToCompareWithTheSenderShouldBeUpdatedInTheSamePass() {
+        new TransferJournal(file, "file.bin", 123, SIZE).save(4000, checksumOf(4000));
+
+        final ResumableTransfer resume = createResume();
+        assertEquals(4000, resume.findOffset(true));
+
+        final CRC32 crc = new CRC32();
+        final Checksum combined = resume.getChecksumToUpdate(crc);
+        combined.update(content, 4000, 1000);
+
+        final CRC32 expected = new CRC32();
+        expected.update(content, 4000, 1000);
+
+        assertEquals(expected.getValue(), crc.getValue());
+        assertEquals(checksumOf(5000), combined.getValue());
+    }
+
+    @Test
+    public void journalShouldBeDeletedWhenTheWholeFileIsReceived() {
+        final ResumableTransfer resume = createResume();
+        resume.findOffset(true);
+        resume.started();
+        assertTrue(journalFile.exists());
+
+        resume.finished(true, SIZE);
+
+        assertFalse(journalFile.exists());
+    }
+
+    @Test
+    public void journalShouldNotBeSavedWhenNothingWasReceived() {
+        final ResumableTransfer resume = createResume();
+        resume.findOffset(true);
+
+        resume.finished(false, 0);
+
+        assertFalse(journalFile.exists());
+    }
+
+    @Test
+    public void discardedJournalShouldNotBeSavedAgain() {
+        final ResumableTransfer resume = createResume();
+        resume.findOffset(true);
+        resume.started();
+
+        resume.discard();
+        assertFalse(journalFile.exists());
+
+        resume.bytesReceived(3000);
+        resume.finished(false, 3000);
+
+        assertFalse(journalFile.exists());
+    }
+
+    private ResumableTransfer createResume() {
+        return new ResumableTransfer(file, "file.bin", 123, SIZE);
+    }
+
+    private long checksumOf(final int length) {
+        final CRC32 crc = new CRC32();
+        crc.update(content, 0, length);
+
+        return crc.getValue();
+    }
+}
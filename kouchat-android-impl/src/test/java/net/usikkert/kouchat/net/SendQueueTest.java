@@ -0,0 +1,254 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import net.usikkert.kouchat.event.MessageSentListener;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of {@link SendQueue}.
+ *
+ * @author Christian Ihle
+ */
+public class SendQueueTest {
+
+    private SendQueue sendQueue;
+    private List<String> sent;
+
+    @Before
+    public void setUp() {
+        sendQueue = new SendQueue();
+        sent = Collections.synchronizedList(new ArrayList<String>());
+    }
+
+    @After
+    public void tearDown() {
+        sendQueue.stop();
+    }
+
+    @Test
+    public void priorityShouldDependOnMessageType() {
+        assertEquals(SendPriority.MESSAGE, SendPriority.of("123!MSG#Nick:[0]Hello"));
+        assertEquals(SendPriority.MESSAGE, SendPriority.of("123!PRIVMSG#Nick:(456)[0]Hello"));
+        assertEquals(SendPriority.MESSAGE, SendPriority.of("123!TOPIC#Nick:(Nick)[0]Topic"));
+        assertEquals(SendPriority.MESSAGE, SendPriority.of("123!NICK#Nick:"));
+        assertEquals(SendPriority.STATUS, SendPriority.of("123!IDLE#Nick:"));
+        assertEquals(SendPriority.STATUS, SendPriority.of("123!WRITING#Nick:"));
+        assertEquals(SendPriority.STATUS, SendPriority.of("123!STOPPEDWRITING#Nick:"));
+        assertEquals(SendPriority.MESSAGE, SendPriority.of("123!UNKNOWN#Nick:"));
+        assertEquals(SendPriority.MESSAGE, SendPriority.of("Garbage"));
+    }
+
+    @Test
+    public void messagesShouldBeSentDirectlyWhenNotStarted() throws Exception {
+        final Future<Boolean> result = sendQueue.add(send("direct", true), SendPriority.MESSAGE);
+
+        assertTrue(result.isDone());
+        assertTrue(result.get());
+        assertEquals(Arrays.asList("direct@" + Thread.currentThread().getName()), sent);
+    }
+
+    @Test
+    public void messagesWithListenerShouldNotBeSentByTheCallerWhenNotStarted() {
+        final List<Boolean> results = new ArrayList<Boolean>();
+
+        final Future<Boolean> result = sendQueue.add(send("direct", true), SendPriority.MESSAGE, new MessageSentListener() {
+            @Override
+            public void messageSent(final boolean sentOk) {
+                results.add(sentOk);
+            }
+        });
+
+        assertTrue(result.isCancelled());
+        assertEquals(Arrays.asList(false), results);
+        assertTrue(sent.isEmpty());
+    }
+
+    @Test
+    public void resultShouldBeAvailableFromFuture() throws Exception {
+        sendQueue.start();
+
+        assertTrue(sendQueue.add(send("ok", true), SendPriority.MESSAGE).get(5, TimeUnit.SECONDS));
+        assertFalse(sendQueue.add(send("failed", false), SendPriority.MESSAGE).get(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("ok@SendQueueWriter", "failed@SendQueueWriter"), sent);
+    }
+
+    @Test
+    public void listenerShouldBeNotifiedWhenTheMessageIsDone() throws Exception {
+        sendQueue.start();
+
+        final CountDownLatch done = new CountDownLatch(2);
+        final List<Boolean> results = Collections.synchronizedList(new ArrayList<Boolean>());
+
+        final MessageSentListener listener = new MessageSentListener() {
+            @Override
+            public void messageSent(final boolean sentOk) {
+                results.add(sentOk);
+                done.countDown();
+            }
+        };
+
+        sendQueue.add(send("ok", true), SendPriority.MESSAGE, listener);
+        sendQueue.add(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                throw new IllegalStateException("Failed");
+            }
+        }, SendPriority.MESSAGE, listener);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(true, false), results);
+    }
+
+    @Test
+    public void exceptionsShouldBeGivenToTheCaller() throws Exception {
+        sendQueue.start();
+
+        final Future<Boolean> result = sendQueue.add(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                throw new IllegalStateException("Failed");
+            }
+        }, SendPriority.MESSAGE);
+
+        try {
+            result.get(5, TimeUnit.SECONDS);
+            fail("Should throw exception");
+        }
+
+        catch (final ExecutionException e) {
+            assertEquals("Failed", e.getCause().getMessage());
+        }
+
+        // The writer thread should still be alive
+        assertTrue(sendQueue.add(send("after", true), SendPriority.MESSAGE).get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void chatAndControlMessagesShouldBeSentInOrderBeforeStatusMessages() throws Exception {
+        sendQueue.start();
+        final CountDownLatch release = blockWriter();
+
+        sendQueue.add(send("idle", true), SendPriority.STATUS);
+        sendQueue.add(send("topic", true), SendPriority.MESSAGE);
+        sendQueue.add(send("writing", true), SendPriority.STATUS);
+        sendQueue.add(send("chat1", true), SendPriority.MESSAGE);
+        sendQueue.add(send("nick", true), SendPriority.MESSAGE);
+        sendQueue.add(send("chat2", true), SendPriority.MESSAGE);
+
+        assertEquals(6, sendQueue.getQueueSize());
+        release.countDown();
+        sendQueue.stop();
+
+        assertTrue(sendQueue.awaitStop(5000));
+        assertEquals(Arrays.asList("topic@SendQueueWriter", "chat1@SendQueueWriter", "nick@SendQueueWriter",
+                "chat2@SendQueueWriter", "idle@SendQueueWriter", "writing@SendQueueWriter"), sent);
+    }
+
+    @Test
+    public void statusMessagesThatWaitedTooLongShouldBeSentBeforeChatMessages() throws Exception {
+        sendQueue = new SendQueue(100);
+        sendQueue.start();
+        final CountDownLatch release = blockWriter();
+
+        sendQueue.add(send("idle", true), SendPriority.STATUS);
+        Thread.sleep(150);
+        sendQueue.add(send("chat1", true), SendPriority.MESSAGE);
+        sendQueue.add(send("writing", true), SendPriority.STATUS);
+        sendQueue.add(send("chat2", true), SendPriority.MESSAGE);
+
+        release.countDown();
+        sendQueue.stop();
+
+        assertTrue(sendQueue.awaitStop(5000));
+        assertEquals(Arrays.asList("idle@SendQueueWriter", "chat1@SendQueueWriter", "chat2@SendQueueWriter",
+                "writing@SendQueueWriter"), sent);
+    }
+
+    @Test
+    public void awaitStopShouldWaitForTheWaitingMessagesToBeSent() throws Exception {
+        sendQueue.start();
+        final CountDownLatch release = blockWriter();
+
+        sendQueue.add(send("chat", true), SendPriority.MESSAGE);
+        sendQueue.add(send("idle", true), SendPriority.STATUS);
+        sendQueue.stop();
+
+        assertFalse(sendQueue.awaitStop(50));
+
+        release.countDown();
+
+        assertTrue(sendQueue.awaitStop(5000));
+        assertEquals(Arrays.asList("chat@SendQueueWriter", "idle@SendQueueWriter"), sent);
+    }
+
+    @Test
+    public void awaitStopShouldReturnAtOnceWhenNotStarted() {
+        sendQueue.stop();
+
+        assertTrue(sendQueue.awaitStop(5000));
+    }
+
+    private CountDownLatch blockWriter() throws InterruptedException {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        sendQueue.add(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws InterruptedException {
+                blocked.countDown();
+                release.await(5, TimeUnit.SECONDS);
+                return true;
+            }
+        }, SendPriority.STATUS);
+
+        assertTrue(blocked.await(5, TimeUnit.SECONDS));
+
+        return release;
+    }
+
+    private Callable<Boolean> send(final String message, final boolean result) {
+        return new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                sent.add(message + "@" + Thread.currentThread().getName());
+                return result;
+            }
+        };
+    }
+}
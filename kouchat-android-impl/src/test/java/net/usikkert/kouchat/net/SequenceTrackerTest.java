@@ -0,0 +1,162 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of {@link SequenceTracker}.
+ *
+ * @author Christian Ihle
+ */
+public class SequenceTrackerTest {
+
+    private SequenceTracker tracker;
+
+    @Before
+    public void setUp() {
+        tracker = new SequenceTracker();
+    }
+
+    @Test
+    public void firstMessageShouldNeverBeMissingAnything() {
+        assertEquals(0, tracker.accept(1000, 500));
+    }
+
+    @Test
+    public void messagesInOrderShouldNotBeMissingAnything() {
+        for (int i = 0; i < 100; i++) {
+            assertEquals(0, tracker.accept(1000, i));
+        }
+    }
+
+    @Test
+    public void gapsShouldBeReported() {
+        assertEquals(0, tracker.accept(1000, 1));
+        assertEquals(3, tracker.accept(1000, 5));
+        assertEquals(0, tracker.accept(1000, 6));
+    }
+
+    @Test
+    public void largeGapsShouldBeLimitedToTheWindow() {
+        assertEquals(0, tracker.accept(1000, 1));
+        assertEquals(SequenceTracker.WINDOW - 1, tracker.accept(1000, 1000));
+    }
+
+    @Test
+    public void duplicatesShouldBeDetected() {
+        assertEquals(0, tracker.accept(1000, 1));
+        assertEquals(SequenceTracker.DUPLICATE, tracker.accept(1000, 1));
+
+        assertEquals(2, tracker.accept(1000, 4));
+        assertEquals(SequenceTracker.DUPLICATE, tracker.accept(1000, 4));
+        assertEquals(SequenceTracker.DUPLICATE, tracker.accept(1000, 1));
+    }
+
+    @Test
+    public void lateMessagesInsideTheWindowShouldBeAcceptedOnce() {
+        assertEquals(0, tracker.accept(1000, 1));
+        assertEquals(2, tracker.accept(1000, 4));
+
+        assertEquals(0, tracker.accept(1000, 3));
+        assertEquals(0, tracker.accept(1000, 2));
+        assertEquals(SequenceTracker.DUPLICATE, tracker.accept(1000, 3));
+        assertEquals(SequenceTracker.DUPLICATE, tracker.accept(1000, 2));
+    }
+
+    @Test
+    public void messagesOlderThanTheWindowShouldBeDuplicates() {
+        assertEquals(0, tracker.accept(1000, 0));
+        assertEquals(SequenceTracker.WINDOW - 1, tracker.accept(1000, SequenceTracker.WINDOW + 10));
+
+        assertEquals(SequenceTracker.DUPLICATE, tracker.accept(1000, 5));
+    }
+
+    @Test
+    public void lostMessagesAtTheEndShouldBeReportedOnce() {
+        assertEquals(0, tracker.accept(1000, 1));
+        assertEquals(0, tracker.acceptLast(1000, 1));
+        assertEquals(2, tracker.acceptLast(1000, 3));
+        assertEquals(0, tracker.acceptLast(1000, 3));
+
+        assertEquals(0, tracker.accept(1000, 3));
+        assertEquals(0, tracker.accept(1000, 2));
+        assertEquals(SequenceTracker.DUPLICATE, tracker.accept(1000, 2));
+        assertEquals(0, tracker.accept(1000, 4));
+    }
+
+    @Test
+    public void lastMessageFromUnknownUserShouldNotBeMissingAnything() {
+        assertEquals(0, tracker.acceptLast(1000, 10));
+        assertEquals(0, tracker.accept(1000, 11));
+    }
+
+    @Test
+    public void largeGapsAtTheEndShouldBeLimitedToTheWindow() {
+        assertEquals(0, tracker.accept(1000, 1));
+        assertEquals(SequenceTracker.WINDOW, tracker.acceptLast(1000, 1000));
+    }
+
+    @Test
+    public void usersShouldBeTrackedSeparately() {
+        assertEquals(0, tracker.accept(1000, 1));
+        assertEquals(0, tracker.accept(2000, 1));
+        assertEquals(0, tracker.accept(2000, 2));
+        assertEquals(0, tracker.accept(1000, 2));
+    }
+
+    @Test
+    public void removedUsersShouldStartOver() {
+        assertEquals(0, tracker.accept(1000, 10));
+        tracker.remove(1000);
+
+        assertEquals(0, tracker.accept(1000, 1));
+        assertEquals(8, tracker.accept(1000, 10));
+    }
+
+    @Test
+    public void sentMessageBufferShouldOnlyResendKeptMessages() {
+        final SentMessageBuffer buffer = new SentMessageBuffer(4);
+
+        for (int i = 0; i < 6; i++) {
+            buffer.add(i, "message" + i);
+        }
+
+        assertEquals("[message2, message3, message4]", buffer.getMessagesToResend(0, 4).toString());
+        assertEquals("[message5]", buffer.getMessagesToResend(5, 8).toString());
+    }
+
+    @Test
+    public void sentMessageBufferShouldNotResendTheSameMessageTooOften() {
+        final SentMessageBuffer buffer = new SentMessageBuffer(4);
+        buffer.add(0, "message0");
+        buffer.add(1, "message1");
+
+        assertEquals("[message0]", buffer.getMessagesToResend(0, 0).toString());
+        assertEquals("[message1]", buffer.getMessagesToResend(0, 1).toString());
+        assertTrue(buffer.getMessagesToResend(0, 1).isEmpty());
+    }
+}
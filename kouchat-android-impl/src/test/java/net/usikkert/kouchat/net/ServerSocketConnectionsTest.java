@@ -0,0 +1,174 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Test of {@link ServerSocketConnections}.
+ *
+ * @author Christian Ihle
+ */
+public class ServerSocketConnectionsTest {
+
+    private ServerSocketConnections connections;
+
+    @After
+    public void tearDown() {
+        if (connections != null) {
+            connections.close();
+        }
+    }
+
+    @Test
+    public void connectionShouldHaveChannelWhenUsingChannelTransfers() throws Exception {
+        connections = new ServerSocketConnections(true, 5000);
+        final int port = connections.start();
+        final SocketChannel client = connect(port);
+
+        try {
+            final Socket connection = connections.waitForConnection();
+
+            assertNotNull(connection);
+            assertNotNull(connection.getChannel());
+
+            connection.close();
+        }
+
+        finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void connectionShouldNotHaveChannelWhenUsingStreams() throws Exception {
+        connections = new ServerSocketConnections(false, 5000);
+        final int port = connections.start();
+        final SocketChannel client = connect(port);
+
+        try {
+            final Socket connection = connections.waitForConnection();
+
+            assertNotNull(connection);
+            assertNull(connection.getChannel());
+
+            connection.close();
+        }
+
+        finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void nextConnectionsShouldBeAcceptedOnTheSamePort() throws Exception {
+        connections = new ServerSocketConnections(true, 5000);
+        final int port = connections.start();
+        final SocketChannel client1 = connect(port);
+        final SocketChannel client2 = connect(port);
+
+        try {
+            final Socket connection1 = connections.waitForConnection();
+            final SocketChannel connection2 = connections.waitForNextConnection();
+
+            assertNotNull(connection1);
+            assertNotNull(connection2);
+
+            connection1.close();
+            connection2.close();
+        }
+
+        finally {
+            client1.close();
+            client2.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void nextConnectionShouldFailAfterTheTimeout() throws Exception {
+        connections = new ServerSocketConnections(true, 200);
+        connections.start();
+
+        connections.waitForNextConnection();
+    }
+
+    @Test
+    public void serverShouldBeClosedAtTheTimeout() throws Exception {
+        connections = new ServerSocketConnections(true, 100);
+        connections.start();
+
+        Thread.sleep(500);
+
+        assertNull(connections.waitForConnection());
+    }
+
+    @Test
+    public void queuedSenderShouldBeAcceptedAfterTheTimeout() throws Exception {
+        connections = new ServerSocketConnections(true, 100);
+        final int port = connections.start();
+        connections.senderQueued();
+
+        Thread.sleep(500);
+        final SocketChannel client = connect(port);
+
+        try {
+            final Socket connection = connections.waitForConnection();
+
+            assertNotNull(connection);
+            connection.close();
+        }
+
+        finally {
+            client.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void nextConnectionShouldFailWhenClosed() throws Exception {
+        connections = new ServerSocketConnections(true, 5000);
+        connections.start();
+        connections.close();
+
+        connections.waitForNextConnection();
+    }
+
+    @Test
+    public void connectionsShouldNotUseHandshakeOrKeepAlive() {
+        connections = new ServerSocketConnections(true, 5000);
+
+        assertFalse(connections.isHandshakeNeeded());
+        assertFalse(connections.keepAlive(null));
+    }
+
+    private SocketChannel connect(final int port) throws IOException {
+        return SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+    }
+}
@@ -0,0 +1,218 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of {@link SharedServerConnections}.
+ *
+ * @author Christian Ihle
+ */
+public class SharedServerConnectionsTest {
+
+    private NetworkEventLoop eventLoop;
+    private FileTransferServer server;
+    private TransferHandshake handshake;
+
+    @Before
+    public void setUp() throws Exception {
+        eventLoop = new NetworkEventLoop();
+        eventLoop.start();
+        server = new FileTransferServer(eventLoop);
+        server.start();
+        handshake = new TransferHandshake(1234, 5);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+        eventLoop.stop();
+    }
+
+    @Test
+    public void connectionsWithTheHandshakeShouldBeTakenFromTheSharedServer() throws Exception {
+        final SharedServerConnections connections = new SharedServerConnections(server, handshake, 5000, false);
+        assertEquals(server.getPort(), connections.start());
+        assertTrue(connections.isHandshakeNeeded());
+
+        final SocketChannel client1 = connect();
+        final SocketChannel client2 = connect();
+
+        try {
+            final Socket connection1 = connections.waitForConnection();
+            final SocketChannel connection2 = connections.waitForNextConnection();
+
+            assertNotNull(connection1);
+            assertNotNull(connection1.getChannel());
+            assertNotNull(connection2);
+            assertTrue(connection2.isBlocking());
+
+            connection1.close();
+            connection2.close();
+        }
+
+        finally {
+            client1.close();
+            client2.close();
+            connections.close();
+        }
+    }
+
+    @Test
+    public void waitingShouldStopAtTheTimeout() throws Exception {
+        final SharedServerConnections connections = new SharedServerConnections(server, handshake, 200, false);
+        connections.start();
+
+        assertNull(connections.waitForConnection());
+
+        try {
+            connections.waitForNextConnection();
+            fail("Should time out");
+        }
+
+        catch (final IOException e) {
+            // Expected
+        }
+
+        connections.close();
+    }
+
+    @Test
+    public void queuedSenderShouldBeAcceptedAfterTheTimeout() throws Exception {
+        final SharedServerConnections connections = new SharedServerConnections(server, handshake, 100, false);
+        connections.start();
+        connections.senderQueued();
+
+        final SocketChannel[] client = new SocketChannel[1];
+
+        final Thread sender = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(500);
+                    client[0] = connect();
+                }
+
+                catch (final Exception e) {
+                    // The connection is missing below
+                }
+            }
+        };
+
+        sender.start();
+
+        try {
+            final Socket connection = connections.waitForConnection();
+
+            assertNotNull(connection);
+            connection.close();
+        }
+
+        finally {
+            sender.join(5000);
+
+            if (client[0] != null) {
+                client[0].close();
+            }
+
+            connections.close();
+        }
+    }
+
+    @Test
+    public void closeShouldEndTheWait() throws Exception {
+        final SharedServerConnections connections = new SharedServerConnections(server, handshake, 10000, false);
+        connections.start();
+
+        final Thread closer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    sleep(100);
+                }
+
+                catch (final InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+
+                connections.close();
+            }
+        };
+
+        closer.start();
+
+        final long start = System.currentTimeMillis();
+        assertNull(connections.waitForConnection());
+        assertTrue(System.currentTimeMillis() - start < 5000);
+
+        closer.join();
+    }
+
+    @Test
+    public void connectionShouldOnlyBeKeptAliveWhenTheSenderSupportsIt() throws IOException {
+        final FileTransferServer mockServer = mock(FileTransferServer.class);
+        final SocketChannel connection = SocketChannel.open();
+
+        try {
+            assertFalse(new SharedServerConnections(mockServer, handshake, 5000, false).keepAlive(connection));
+            verify(mockServer, never()).keepAlive(connection);
+
+            assertTrue(new SharedServerConnections(mockServer, handshake, 5000, true).keepAlive(connection));
+            verify(mockServer).keepAlive(connection);
+        }
+
+        finally {
+            connection.close();
+        }
+    }
+
+    @Test
+    public void closeShouldTellTheSharedServerToForgetTheHandshake() {
+        final FileTransferServer mockServer = mock(FileTransferServer.class);
+        final SharedServerConnections connections = new SharedServerConnections(mockServer, handshake, 5000, false);
+
+        connections.start();
+        verify(mockServer).expect(handshake);
+
+        connections.close();
+        verify(mockServer).forget(handshake);
+    }
+
+    private SocketChannel connect() throws IOException {
+        final SocketChannel client = SocketChannel.open(new InetSocketAddress("127.0.0.1", server.getPort()));
+        handshake.write(client);
+
+        return client;
+    }
+}
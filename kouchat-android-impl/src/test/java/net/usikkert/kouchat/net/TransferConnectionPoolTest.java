@@ -0,0 +1,223 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of {@link TransferConnectionPool}.
+ *
+ * @author Christian Ihle
+ */
+public class TransferConnectionPoolTest {
+
+    private ServerSocketChannel server;
+    private InetSocketAddress address;
+    private List<SocketChannel> channels;
+
+    @Before
+    public void setUp() throws IOException {
+        server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        address = new InetSocketAddress("127.0.0.1", server.socket().getLocalPort());
+        channels = new ArrayList<SocketChannel>();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (final SocketChannel channel : channels) {
+            channel.close();
+        }
+
+        server.close();
+    }
+
+    @Test
+    public void emptyPoolShouldHaveNoConnection() {
+        final TransferConnectionPool pool = new TransferConnectionPool(null);
+
+        assertNull(pool.acquire(address));
+        assertEquals(0, pool.getIdleCount());
+    }
+
+    @Test
+    public void releasedConnectionShouldBeAcquiredInBlockingMode() throws IOException {
+        final TransferConnectionPool pool = new TransferConnectionPool(null);
+        final SocketChannel connection = connect();
+
+        pool.release(address, connection);
+        assertEquals(1, pool.getIdleCount());
+
+        final SocketChannel acquired = pool.acquire(address);
+        assertSame(connection, acquired);
+        assertTrue(acquired.isBlocking());
+        assertEquals(0, pool.getIdleCount());
+        assertNull(pool.acquire(address));
+    }
+
+    @Test
+    public void connectionShouldOnlyBeAcquiredForTheSameAddress() throws IOException {
+        final TransferConnectionPool pool = new TransferConnectionPool(null);
+        pool.release(address, connect());
+
+        assertNull(pool.acquire(new InetSocketAddress("127.0.0.1", address.getPort() + 1)));
+        assertEquals(1, pool.getIdleCount());
+    }
+
+    @Test
+    public void mostRecentlyUsedConnectionShouldBeAcquiredFirst() throws IOException {
+        final TransferConnectionPool pool = new TransferConnectionPool(null);
+        final SocketChannel first = connect();
+        final SocketChannel second = connect();
+
+        pool.release(address, first);
+        pool.release(address, second);
+
+        assertSame(second, pool.acquire(address));
+        assertSame(first, pool.acquire(address));
+    }
+
+    @Test
+    public void leastRecentlyUsedConnectionShouldBeClosedWhenFull() throws IOException {
+        final TransferConnectionPool pool = new TransferConnectionPool(null);
+        final SocketChannel oldest = connect();
+        pool.release(address, oldest);
+
+        for (int i = 0; i < TransferConnectionPool.MAX_IDLE_PER_ADDRESS; i++) {
+            pool.release(address, connect());
+        }
+
+        assertEquals(TransferConnectionPool.MAX_IDLE_PER_ADDRESS, pool.getIdleCount());
+        assertFalse(oldest.isOpen());
+    }
+
+    @Test
+    public void closedConnectionShouldNotBeReleased() throws IOException {
+        final TransferConnectionPool pool = new TransferConnectionPool(null);
+        final SocketChannel connection = connect();
+        connection.close();
+
+        pool.release(address, connection);
+
+        assertEquals(0, pool.getIdleCount());
+    }
+
+    @Test
+    public void connectionClosedByReceiverShouldBeSkipped() throws Exception {
+        final TransferConnectionPool pool = new TransferConnectionPool(null);
+        final SocketChannel live = connect();
+        pool.release(address, live);
+
+        final SocketChannel dead = connect();
+        pool.release(address, dead);
+        server.accept().close();
+        server.accept().close();
+        Thread.sleep(100);
+
+        assertNull(pool.acquire(address));
+        assertFalse(live.isOpen());
+        assertFalse(dead.isOpen());
+    }
+
+    @Test
+    public void connectionWithUnexpectedBytesShouldBeSkipped() throws Exception {
+        final TransferConnectionPool pool = new TransferConnectionPool(null);
+        final SocketChannel connection = connect();
+        pool.release(address, connection);
+
+        final SocketChannel other = server.accept();
+        channels.add(other);
+        other.write(ByteBuffer.wrap(new byte[] {42}));
+        Thread.sleep(100);
+
+        assertNull(pool.acquire(address));
+        assertFalse(connection.isOpen());
+    }
+
+    @Test
+    public void idleConnectionShouldBeClosedAfterTimeoutWhenPoolIsUsed() throws Exception {
+        final TransferConnectionPool pool = new TransferConnectionPool(null, 50);
+        final SocketChannel connection = connect();
+        pool.release(address, connection);
+
+        Thread.sleep(100);
+
+        assertNull(pool.acquire(address));
+        assertFalse(connection.isOpen());
+    }
+
+    @Test
+    public void idleConnectionShouldBeClosedAfterTimeoutByEventLoop() throws Exception {
+        final NetworkEventLoop eventLoop = new NetworkEventLoop();
+        eventLoop.start();
+
+        try {
+            final TransferConnectionPool pool = new TransferConnectionPool(eventLoop, 50);
+            final SocketChannel connection = connect();
+            pool.release(address, connection);
+
+            Thread.sleep(300);
+
+            assertEquals(0, pool.getIdleCount());
+            assertFalse(connection.isOpen());
+        }
+
+        finally {
+            eventLoop.stop();
+        }
+    }
+
+    @Test
+    public void closeAllShouldCloseEveryIdleConnection() throws IOException {
+        final TransferConnectionPool pool = new TransferConnectionPool(null);
+        final SocketChannel first = connect();
+        final SocketChannel second = connect();
+        pool.release(address, first);
+        pool.release(new InetSocketAddress("127.0.0.2", address.getPort()), second);
+
+        pool.closeAll();
+
+        assertEquals(0, pool.getIdleCount());
+        assertFalse(first.isOpen());
+        assertFalse(second.isOpen());
+    }
+
+    private SocketChannel connect() throws IOException {
+        final SocketChannel connection = SocketChannel.open(address);
+        channels.add(connection);
+
+        return connection;
+    }
+}
@@ -0,0 +1,180 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of {@link TransferJournal}.
+ *
+ * @author Christian Ihle
+ */
+public class TransferJournalTest {
+
+    private static final int SIZE = 10000;
+
+    private File file;
+    private byte[] content;
+    private CRC32 checksum;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("kouchat", ".bin");
+        file.deleteOnExit();
+
+        content = new byte[5000];
+
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+
+        final FileOutputStream outputStream = new FileOutputStream(file);
+
+        try {
+            outputStream.write(content);
+        }
+
+        finally {
+            outputStream.close();
+        }
+
+        checksum = new CRC32();
+    }
+
+    @After
+    public void tearDown() {
+        new File(file.getPath() + TransferJournal.SUFFIX).delete();
+        file.delete();
+    }
+
+    @Test
+    public void journalShouldBeSavedNextToTheFile() {
+        final TransferJournal journal = createJournal();
+        journal.save(100, 1);
+
+        assertEquals(new File(file.getPath() + ".resume"), journal.getJournalFile());
+        assertTrue(journal.getJournalFile().exists());
+
+        journal.delete();
+        assertFalse(journal.getJournalFile().exists());
+    }
+
+    @Test
+    public void resumeOffsetShouldBeFoundWhenThePartialFileMatches() {
+        createJournal().save(4000, checksumOf(4000));
+
+        assertEquals(4000, createJournal().findResumeOffset(checksum));
+
+        // Ready to continue with the rest of the file
+        assertEquals(checksumOf(4000), checksum.getValue());
+    }
+
+    @Test
+    public void resumeOffsetShouldBeZeroWithoutJournal() {
+        checksum.update(1);
+
+        assertEquals(0, createJournal().findResumeOffset(checksum));
+        assertEquals(0, checksum.getValue());
+    }
+
+    @Test
+    public void resumeOffsetShouldBeZeroWhenThePartialFileIsChanged() {
+        createJournal().save(4000, checksumOf(4000) + 1);
+
+        assertEquals(0, createJournal().findResumeOffset(checksum));
+        assertEquals(0, checksum.getValue());
+    }
+
+    @Test
+    public void resumeOffsetShouldBeZeroWhenThePartialFileIsTooShort() {
+        createJournal().save(6000, checksumOf(4000));
+
+        assertEquals(0, createJournal().findResumeOffset(checksum));
+    }
+
+    @Test
+    public void resumeOffsetShouldBeZeroForAnotherFile() {
+        createJournal().save(4000, checksumOf(4000));
+
+        assertEquals(0, new TransferJournal(file, "other.bin", 123, SIZE).findResumeOffset(checksum));
+        assertEquals(0, new TransferJournal(file, "file.bin", 456, SIZE).findResumeOffset(checksum));
+        assertEquals(0, new TransferJournal(file, "file.bin", 123, SIZE + 1).findResumeOffset(checksum));
+    }
+
+    @Test
+    public void saveIfDueShouldWaitForTheSaveInterval() {
+        final TransferJournal journal = createJournal();
+        journal.save(1000, checksumOf(1000));
+        journal.saveIfDue(4000, checksumOf(4000));
+
+        assertEquals(1000, createJournal().findResumeOffset(checksum));
+    }
+
+    @Test
+    public void matchesShouldBeTrueForJournalOfTheSameFile() {
+        createJournal().save(4000, checksumOf(4000));
+
+        assertTrue(createJournal().matches());
+    }
+
+    @Test
+    public void matchesShouldBeFalseWithoutJournal() {
+        assertFalse(createJournal().matches());
+    }
+
+    @Test
+    public void matchesShouldBeFalseForAnotherFile() {
+        createJournal().save(4000, checksumOf(4000));
+
+        assertFalse(new TransferJournal(file, "file.bin", 124, SIZE).matches());
+        assertFalse(new TransferJournal(file, "other.bin", 123, SIZE).matches());
+        assertFalse(new TransferJournal(file, "file.bin", 123, SIZE + 1).matches());
+    }
+
+    @Test
+    public void matchesShouldBeFalseWhenThePartialFileIsTooShort() {
+        createJournal().save(6000, checksumOf(4000));
+
+        assertFalse(createJournal().matches());
+    }
+
+    private TransferJournal createJournal() {
+        return new TransferJournal(file, "file.bin", 123, SIZE);
+    }
+
+    private long checksumOf(final int length) {
+        final CRC32 crc = new CRC32();
+        crc.update(content, 0, length);
+
+        return crc.getValue();
+    }
+}
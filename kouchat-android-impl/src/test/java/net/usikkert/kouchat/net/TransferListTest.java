@@ -0,0 +1,219 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.List;
+
+import net.usikkert.kouchat.misc.User;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of {@link TransferList}.
+ *
+ * @author Christian Ihle
+ */
+public class TransferListTest {
+
+    private User user1;
+    private User user2;
+    private File file1;
+    private File file2;
+    private TransferList transferList;
+
+    @Before
+    public void setUp() {
+        user1 = new User("User1", 1001);
+        user2 = new User("User2", 1002);
+        file1 = new File("file1.txt");
+        file2 = new File("file2.txt");
+        transferList = new TransferList();
+    }
+
+    @Test
+    public void fileSenderShouldBeFoundByIdNameAndHash() {
+        final FileSender fileSender = transferList.addFileSender(user1, file1);
+
+        assertSame(fileSender, transferList.getFileSender(user1, fileSender.getId()));
+        assertSame(fileSender, transferList.getFileSender(user1, "file1.txt"));
+        assertSame(fileSender, transferList.getFileSender(user1, "file1.txt", file1.hashCode()));
+    }
+
+    @Test
+    public void fileSenderShouldNotBeFoundWithWrongUserOrHash() {
+        final FileSender fileSender = transferList.addFileSender(user1, file1);
+
+        assertNull(transferList.getFileSender(user2, fileSender.getId()));
+        assertNull(transferList.getFileSender(user2, "file1.txt"));
+        assertNull(transferList.getFileSender(user1, "file1.txt", file1.hashCode() + 1));
+        assertNull(transferList.getFileSender(user1, "file2.txt"));
+    }
+
+    @Test
+    public void userShouldBeMatchedByCode() {
+        final FileSender fileSender = transferList.addFileSender(user1, file1);
+        final User sameUser = new User("User1", 1001);
+
+        assertSame(fileSender, transferList.getFileSender(sameUser, "file1.txt"));
+    }
+
+    @Test
+    public void nullUserOrFileNameShouldFindNothing() {
+        transferList.addFileSender(user1, file1);
+
+        assertNull(transferList.getFileSender(null, "file1.txt"));
+        assertNull(transferList.getFileSender(user1, null));
+        assertNull(transferList.getFileSender(null, 1));
+        assertTrue(transferList.getFileSenders(null).isEmpty());
+    }
+
+    @Test
+    public void firstAddedFileSenderShouldBeFoundWhenSendingTheSameFileTwice() {
+        final FileSender first = transferList.addFileSender(user1, file1);
+        final FileSender second = transferList.addFileSender(user1, file1);
+
+        assertSame(first, transferList.getFileSender(user1, "file1.txt"));
+
+        transferList.removeFileSender(first);
+
+        assertSame(second, transferList.getFileSender(user1, "file1.txt"));
+    }
+
+    @Test
+    public void removedFileSenderShouldNotBeFound() {
+        final FileSender fileSender = transferList.addFileSender(user1, file1);
+        transferList.removeFileSender(fileSender);
+
+        assertNull(transferList.getFileSender(user1, fileSender.getId()));
+        assertNull(transferList.getFileSender(user1, "file1.txt"));
+        assertTrue(transferList.getFileSenders(user1).isEmpty());
+        assertTrue(transferList.getFileSenders().isEmpty());
+    }
+
+    @Test
+    public void removingUnknownFileSenderShouldDoNothing() {
+        final FileSender fileSender = transferList.addFileSender(user1, file1);
+        transferList.removeFileSender(new FileSender(user1, file1, fileSender.getId()));
+
+        assertSame(fileSender, transferList.getFileSender(user1, fileSender.getId()));
+    }
+
+    @Test
+    public void fileReceiverShouldBeFoundByOfferedNameAfterSavingWithAnotherName() {
+        final FileReceiver fileReceiver = transferList.addFileReceiver(user1, file1, 100);
+        fileReceiver.setFile(new File("file1_1.txt"));
+
+        assertSame(fileReceiver, transferList.getFileReceiver(user1, "file1.txt"));
+        assertSame(fileReceiver, transferList.getFileTransfer(user1, fileReceiver.getId()));
+
+        transferList.removeFileReceiver(fileReceiver);
+
+        assertNull(transferList.getFileReceiver(user1, "file1.txt"));
+        assertTrue(transferList.getFileReceivers().isEmpty());
+    }
+
+    @Test
+    public void fileTransferShouldPreferTheReceiver() {
+        final FileSender fileSender = transferList.addFileSender(user1, file1);
+        final FileReceiver fileReceiver = transferList.addFileReceiver(user1, file1, 100);
+
+        assertSame(fileReceiver, transferList.getFileTransfer(user1, "file1.txt"));
+        assertSame(fileSender, transferList.getFileTransfer(user1, fileSender.getId()));
+        assertSame(fileReceiver, transferList.getFileTransfer(user1, fileReceiver.getId()));
+    }
+
+    @Test
+    public void listsShouldBeInTheOrderTheTransfersWereAdded() {
+        final FileSender sender1 = transferList.addFileSender(user2, file2);
+        final FileSender sender2 = transferList.addFileSender(user1, file1);
+        final FileSender sender3 = transferList.addFileSender(user2, file1);
+
+        final List<FileSender> all = transferList.getFileSenders();
+        assertEquals(3, all.size());
+        assertSame(sender1, all.get(0));
+        assertSame(sender2, all.get(1));
+        assertSame(sender3, all.get(2));
+
+        final List<FileSender> forUser2 = transferList.getFileSenders(user2);
+        assertEquals(2, forUser2.size());
+        assertSame(sender1, forUser2.get(0));
+        assertSame(sender3, forUser2.get(1));
+    }
+
+    @Test
+    public void listsShouldBeSnapshots() {
+        transferList.addFileSender(user1, file1);
+
+        final List<FileSender> all = transferList.getFileSenders();
+        final List<FileSender> forUser = transferList.getFileSenders(user1);
+
+        transferList.addFileSender(user1, file2);
+
+        assertEquals(1, all.size());
+        assertEquals(1, forUser.size());
+        assertEquals(2, transferList.getFileSenders().size());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void listsShouldBeUnmodifiable() {
+        transferList.addFileSender(user1, file1);
+
+        transferList.getFileSenders(user1).clear();
+    }
+
+    @Test
+    public void addingAndRemovingFromSeveralThreadsShouldKeepTheIndexesConsistent() throws InterruptedException {
+        final Thread[] threads = new Thread[4];
+
+        for (int i = 0; i < threads.length; i++) {
+            final User user = new User("User" + i, i);
+
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 500; j++) {
+                        final FileSender fileSender = transferList.addFileSender(user, file1);
+                        assertSame(fileSender, transferList.getFileSender(user, fileSender.getId()));
+                        transferList.removeFileSender(fileSender);
+                    }
+
+                    transferList.addFileSender(user, file2);
+                }
+            });
+
+            threads[i].start();
+        }
+
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+
+        final List<FileSender> all = transferList.getFileSenders();
+        assertEquals(4, all.size());
+        assertNull(transferList.getFileSender(user1, "file1.txt"));
+    }
+}
@@ -0,0 +1,259 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Christian Ihle                                 *
+ *   kontakt@usikkert.net                                                  *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.File;
+
+import net.usikkert.kouchat.misc.User;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of {@link TransferScheduler}.
+ *
+ * @author Christian Ihle
+ */
+public class TransferSchedulerTest {
+
+    private User user1;
+    private User user2;
+    private TransferScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        user1 = new User("User1", 1001);
+        user2 = new User("User2", 1002);
+        scheduler = new TransferScheduler(2, 1, 0, 3000);
+    }
+
+    @Test
+    public void transfersShouldStartWhileBelowTheLimits() {
+        assertTrue(scheduler.tryAcquire(createTransfer(user1, FileTransfer.Direction.SEND)));
+        assertTrue(scheduler.tryAcquire(createTransfer(user2, FileTransfer.Direction.SEND)));
+
+        assertEquals(2, scheduler.getActiveCount());
+        assertEquals(0, scheduler.getQueueSize());
+    }
+
+    @Test
+    public void transferShouldBeQueuedWhenTheUserIsAtTheLimit() {
+        final FileTransfer transfer = createTransfer(user1, FileTransfer.Direction.SEND);
+
+        assertTrue(scheduler.tryAcquire(createTransfer(user1, FileTransfer.Direction.SEND)));
+        assertFalse(scheduler.tryAcquire(transfer));
+
+        verify(transfer).setQueued(true);
+        assertEquals(1, scheduler.getQueueSize());
+    }
+
+    @Test
+    public void userLoggedOnAgainShouldCountTheTransfersFromBefore() {
+        final User sameUser = new User("User1", user1.getCode());
+
+        assertTrue(scheduler.tryAcquire(createTransfer(user1, FileTransfer.Direction.SEND)));
+        assertFalse(scheduler.tryAcquire(createTransfer(sameUser, FileTransfer.Direction.SEND)));
+    }
+
+    @Test
+    public void queuedTransferForOneUserShouldNotBlockOtherUsers() {
+        assertTrue(scheduler.tryAcquire(createTransfer(user1, FileTransfer.Direction.SEND)));
+        assertFalse(scheduler.tryAcquire(createTransfer(user1, FileTransfer.Direction.SEND)));
+
+        assertTrue(scheduler.tryAcquire(createTransfer(user2, FileTransfer.Direction.RECEIVE)));
+    }
+
+    @Test
+    public void transferShouldBeQueuedWhenAtTheGlobalLimit() {
+        final User user3 = new User("User3", 1003);
+
+        assertTrue(scheduler.tryAcquire(createTransfer(user1, FileTransfer.Direction.SEND)));
+        assertTrue(scheduler.tryAcquire(createTransfer(user2, FileTransfer.Direction.SEND)));
+        assertFalse(scheduler.tryAcquire(createTransfer(user3, FileTransfer.Direction.SEND)));
+    }
+
+    @Test
+    public void limitsShouldBeCountedForEachDirection() {
+        assertTrue(scheduler.tryAcquire(createTransfer(user1, FileTransfer.Direction.SEND)));
+        assertTrue(scheduler.tryAcquire(createTransfer(user2, FileTransfer.Direction.SEND)));
+
+        assertTrue(scheduler.tryAcquire(createTransfer(user1, FileTransfer.Direction.RECEIVE)));
+        assertTrue(scheduler.tryAcquire(createTransfer(user2, FileTransfer.Direction.RECEIVE)));
+        assertFalse(scheduler.tryAcquire(createTransfer(user1, FileTransfer.Direction.RECEIVE)));
+    }
+
+    @Test
+    public void usersSendingFilesToEachOtherShouldNotQueueTheSenders() {
+        scheduler = new TransferScheduler(4, 2, 0, 0);
+
+        // Both users accept the two files from the other, so the receivers are active first
+        assertTrue(scheduler.tryAcquire(createTransfer(user1, FileTransfer.Direction.RECEIVE)));
+        assertTrue(scheduler.tryAcquire(createTransfer(user1, FileTransfer.Direction.RECEIVE)));
+
+        // Then the senders of the files to the other user get their turn when the other user accepts
+        assertTrue(scheduler.tryAcquire(createTransfer(user1, FileTransfer.Direction.SEND)));
+        assertTrue(scheduler.tryAcquire(createTransfer(user1, FileTransfer.Direction.SEND)));
+
+        assertEquals(0, scheduler.getQueueSize());
+    }
+
+    @Test
+    public void releaseShouldStartTheFirstTransferInTheQueue() throws InterruptedException {
+        final FileTransfer active = createTransfer(user1, FileTransfer.Direction.SEND);
+        final FileTransfer first = createTransfer(user1, FileTransfer.Direction.SEND);
+        final FileTransfer second = createTransfer(user1, FileTransfer.Direction.SEND);
+
+        assertTrue(scheduler.tryAcquire(active));
+        assertFalse(scheduler.tryAcquire(first));
+        assertFalse(scheduler.tryAcquire(second));
+
+        final boolean[] started = new boolean[1];
+
+        final Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                started[0] = scheduler.acquire(first);
+            }
+        };
+
+        waiter.start();
+        scheduler.release(active);
+        waiter.join(5000);
+
+        assertTrue(started[0]);
+        verify(first).setQueued(false);
+        assertFalse(scheduler.tryAcquire(second));
+        assertEquals(1, scheduler.getActiveCount());
+    }
+
+    @Test
+    public void acquireShouldGiveUpWhenTheTransferIsCanceled() {
+        final FileTransfer transfer = createTransfer(user1, FileTransfer.Direction.SEND);
+        when(transfer.isCanceled()).thenReturn(true);
+
+        assertTrue(scheduler.tryAcquire(createTransfer(user1, FileTransfer.Direction.SEND)));
+        assertFalse(scheduler.acquire(transfer));
+
+        assertEquals(0, scheduler.getQueueSize());
+    }
+
+    @Test
+    public void rateShouldBeSharedEqually() {
+        final FileTransfer transfer1 = createTransfer(user1, FileTransfer.Direction.RECEIVE);
+        final FileTransfer transfer2 = createTransfer(user2, FileTransfer.Direction.RECEIVE);
+
+        assertTrue(scheduler.tryAcquire(transfer1));
+        assertEquals(3000, scheduler.getShare(transfer1));
+
+        assertTrue(scheduler.tryAcquire(transfer2));
+        scheduler.throttle(transfer1, 1);
+        scheduler.throttle(transfer2, 1);
+
+        assertEquals(1500, scheduler.getShare(transfer1));
+        assertEquals(1500, scheduler.getShare(transfer2));
+    }
+
+    @Test
+    public void transfersThatAreNotCopyingShouldNotTakeAShare() {
+        final long[] now = {100000};
+        final TransferScheduler clocked = new TransferScheduler(0, 0, 0, 3000) {
+            @Override
+            long currentTimeMillis() {
+                return now[0];
+            }
+        };
+
+        final FileTransfer copying = createTransfer(user1, FileTransfer.Direction.RECEIVE);
+        final FileTransfer waiting = createTransfer(user2, FileTransfer.Direction.RECEIVE);
+
+        assertTrue(clocked.tryAcquire(copying));
+        assertTrue(clocked.tryAcquire(waiting));
+
+        // Waiting for the connection
+        assertEquals(3000, clocked.getShare(copying));
+
+        clocked.throttle(waiting, 1);
+        assertEquals(1500, clocked.getShare(copying));
+
+        // Stopped copying
+        now[0] += TransferScheduler.COPYING_TIMEOUT;
+        assertEquals(3000, clocked.getShare(copying));
+    }
+
+    @Test
+    public void directionWithoutRateShouldNotBeLimited() {
+        final FileTransfer transfer = createTransfer(user1, FileTransfer.Direction.SEND);
+        assertTrue(scheduler.tryAcquire(transfer));
+
+        assertEquals(0, scheduler.getShare(transfer));
+
+        final long start = System.currentTimeMillis();
+        scheduler.throttle(transfer, 1000000);
+        assertTrue(System.currentTimeMillis() - start < 100);
+    }
+
+    @Test
+    public void throttleShouldSleepWhenAboveTheShare() {
+        final FileTransfer transfer = createTransfer(user1, FileTransfer.Direction.RECEIVE);
+        assertTrue(scheduler.tryAcquire(transfer));
+
+        final long start = System.currentTimeMillis();
+        scheduler.throttle(transfer, 600);
+
+        assertTrue(System.currentTimeMillis() - start >= 150);
+    }
+
+    @Test
+    public void uploadRateShouldCapTheRateOfUnscheduledUploads() {
+        final TransferScheduler limited = new TransferScheduler(0, 0, 5000, 0);
+
+        assertEquals(5000, limited.capUploadRate(8000));
+        assertEquals(3000, limited.capUploadRate(3000));
+        assertEquals(5000, limited.capUploadRate(0));
+        assertEquals(8000, scheduler.capUploadRate(8000));
+        assertEquals(0, scheduler.capUploadRate(0));
+    }
+
+    @Test
+    public void removingFromTheTransferListShouldReleaseTheTransfer() {
+        final TransferList transferList = new TransferList(null, true, 1, scheduler, null);
+        final FileSender fileSender = transferList.addFileSender(user1, new File("file.txt"));
+
+        assertTrue(scheduler.tryAcquire(fileSender));
+        assertEquals(1, scheduler.getActiveCount());
+
+        transferList.removeFileSender(fileSender);
+        assertEquals(0, scheduler.getActiveCount());
+    }
+
+    private FileTransfer createTransfer(final User user, final FileTransfer.Direction direction) {
+        final FileTransfer transfer = mock(FileTransfer.class);
+        when(transfer.getUser()).thenReturn(user);
+        when(transfer.getDirection()).thenReturn(direction);
+
+        return transfer;
+    }
+}
@@ -412,6 +412,67 @@ public class ByteCounterTest {
         assertEquals(0, counter.getTimeCounted());
     }
 
+    /**
+     * Tests that each calculated second is added to the history, and that
+     * the smoothed speed moves a quarter of the way towards the newest second.
+     */
+    @Test
+    public void testHistoryAndSmoothedSpeed() {
+        assertEquals(0, counter.getHistory().length);
+        assertEquals(0, counter.getSmoothedBytesPerSec());
+
+        counter.updateCounters(1000, 1000);
+        assertArrayEquals(new long[] {1000}, counter.getHistory());
+        assertEquals(1000, counter.getSmoothedBytesPerSec());
+
+        counter.updateCounters(2000, 1000);
+        assertArrayEquals(new long[] {1000, 2000}, counter.getHistory());
+        assertEquals(1250, counter.getSmoothedBytesPerSec());
+        assertEquals(2000, counter.getBytesPerSec());
+    }
+
+    /**
+     * Tests that the history only keeps the last seconds, with the oldest first.
+     */
+    @Test
+    public void testHistoryKeepsOnlyTheLastSeconds() {
+        for (int i = 1; i <= ByteCounter.HISTORY_SIZE + 5; i++) {
+            counter.updateCounters(i, 1000);
+        }
+
+        final long[] history = counter.getHistory();
+        assertEquals(ByteCounter.HISTORY_SIZE, history.length);
+        assertEquals(6, history[0]);
+        assertEquals(ByteCounter.HISTORY_SIZE + 5, history[ByteCounter.HISTORY_SIZE - 1]);
+    }
+
+    /**
+     * Tests that the time left is unknown before the first second, and then
+     * estimated from the smoothed speed, rounded up.
+     */
+    @Test
+    public void testSecondsLeft() {
+        assertEquals(-1, counter.getSecondsLeft(2500));
+
+        counter.updateCounters(1000, 1000);
+
+        assertEquals(3, counter.getSecondsLeft(2500));
+        assertEquals(0, counter.getSecondsLeft(0));
+    }
+
+    /**
+     * Tests that prepare clears the history and the smoothed speed.
+     */
+    @Test
+    public void testPrepareClearsHistory() {
+        counter.updateCounters(1000, 1000);
+        counter.prepare();
+
+        assertEquals(0, counter.getHistory().length);
+        assertEquals(0, counter.getSmoothedBytesPerSec());
+        assertEquals(-1, counter.getSecondsLeft(1000));
+    }
+
     /**
      * Tests that adding bytes the official way works.
      *
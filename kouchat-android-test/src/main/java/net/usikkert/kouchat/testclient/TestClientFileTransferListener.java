@@ -41,6 +41,11 @@ public class TestClientFileTransferListener implements FileTransferListener {
 
     }
 
+    @Override
+    public void statusQueued() {
+
+    }
+
     @Override
     public void statusConnecting() {
 